@@ -25,6 +25,7 @@ import android.os.Build
 import android.os.Bundle
 import android.os.StrictMode
 import android.os.SystemClock
+import com.github.k1rakishou.AppendLogSettingsStore
 import com.github.k1rakishou.BookmarkGridViewInfo
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.ChanSettingsInfo
@@ -54,6 +55,7 @@ import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
 import com.github.k1rakishou.chan.core.manager.ReportManager
 import com.github.k1rakishou.chan.core.manager.SettingsNotificationManager
 import com.github.k1rakishou.chan.ui.adapter.PostsFilter
+import com.github.k1rakishou.chan.ui.controller.LogsController
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.getDimen
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.isDevBuild
@@ -92,6 +94,7 @@ import okhttp3.Protocol
 import okhttp3.dnsoverhttps.DnsOverHttps
 import org.joda.time.Duration
 import org.joda.time.format.PeriodFormatterBuilder
+import java.io.File
 import java.io.IOException
 import java.net.InetAddress
 import java.util.*
@@ -327,7 +330,8 @@ class Chan : Application(), ActivityLifecycleCallbacks {
       .build()
       .also { component -> component.inject(this) }
 
-    appDependenciesInitializer.init()
+    val startupTraceOutputFile = if (isDev) File(cacheDir, STARTUP_TRACE_FILE_NAME) else null
+    appDependenciesInitializer.init(startupTraceOutputFile)
     setupErrorHandlers()
   }
 
@@ -400,6 +404,11 @@ class Chan : Application(), ActivityLifecycleCallbacks {
     val message = extractExceptionMessage(exception)
     val stacktrace = exception.stackTraceToString()
 
+    // The process is about to be killed, CrashReportActivity is started in a new one. The logs are
+    // passed in a file because they may not fit into the intent (TransactionTooLargeException).
+    Logger.flush()
+    val crashLogsFile = writeCrashLogs()
+
     val bundle = Bundle()
       .apply {
         putString(CrashReportActivity.EXCEPTION_CLASS_NAME_KEY, exception::class.java.name)
@@ -407,6 +416,7 @@ class Chan : Application(), ActivityLifecycleCallbacks {
         putString(CrashReportActivity.EXCEPTION_STACKTRACE_KEY, stacktrace)
         putString(CrashReportActivity.USER_AGENT_KEY, appConstants.get().userAgent)
         putString(CrashReportActivity.APP_LIFE_TIME_KEY, formatAppRunningTime())
+        putString(CrashReportActivity.CRASH_LOGS_FILE_PATH_KEY, crashLogsFile?.absolutePath)
       }
 
     val intent = Intent(this, CrashReportActivity::class.java)
@@ -417,6 +427,18 @@ class Chan : Application(), ActivityLifecycleCallbacks {
     exitProcess(-1)
   }
 
+  private fun writeCrashLogs(): File? {
+    val crashLogsFile = File(cacheDir, CrashReportActivity.CRASH_LOGS_FILE_NAME)
+
+    return try {
+      crashLogsFile.writeText(LogsController.formatRecentLogs())
+      crashLogsFile
+    } catch (error: Throwable) {
+      Logger.e(TAG, "Failed to write crash logs into ${crashLogsFile.absolutePath}", error)
+      null
+    }
+  }
+
   private fun extractExceptionMessage(exception: Throwable): String? {
     var message = exception.message
     var throwable: Throwable? = exception
@@ -476,6 +498,8 @@ class Chan : Application(), ActivityLifecycleCallbacks {
       Logger.d(TAG, "vvv App went background vvv")
 
       applicationVisibilityManager.get().onEnteredBackground()
+      // The process may be killed at any moment once it's in the background
+      AppendLogSettingsStore.flushAll()
     }
   }
 
@@ -567,6 +591,12 @@ class Chan : Application(), ActivityLifecycleCallbacks {
     return appRunningTimeFormatter.print(Duration.millis(time).toPeriod())
   }
 
+  override fun onTrimMemory(level: Int) {
+    super.onTrimMemory(level)
+
+    AppendLogSettingsStore.flushAll()
+  }
+
   override fun onActivityCreated(activity: Activity, savedInstanceState: Bundle?) {}
   override fun onActivityStarted(activity: Activity) {
     activityEnteredForeground()
@@ -586,6 +616,7 @@ class Chan : Application(), ActivityLifecycleCallbacks {
   companion object {
     private const val TAG = "Chan"
     private const val ENABLE_STRICT_MODE = false
+    private const val STARTUP_TRACE_FILE_NAME = "startup_trace.json"
 
     private val appRunningTimeFormatter = PeriodFormatterBuilder()
       .printZeroAlways()
@@ -64,6 +64,8 @@ import com.github.k1rakishou.core_themes.ThemeEngine
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
+import java.io.File
+import java.io.IOException
 import javax.inject.Inject
 
 class CrashReportActivity : AppCompatActivity() {
@@ -94,6 +96,7 @@ class CrashReportActivity : AppCompatActivity() {
     val stacktrace = bundle.getString(EXCEPTION_STACKTRACE_KEY)
     val userAgent = bundle.getString(USER_AGENT_KEY) ?: "No user-agent"
     val appLifetime = bundle.getString(APP_LIFE_TIME_KEY) ?: "-1"
+    val crashLogsFilePath = bundle.getString(CRASH_LOGS_FILE_PATH_KEY)
 
     if (className == null || message == null || stacktrace == null) {
       Logger.e(TAG,
@@ -139,7 +142,8 @@ class CrashReportActivity : AppCompatActivity() {
             message = message,
             stacktrace = stacktrace,
             userAgent = userAgent,
-            appLifetime = appLifetime
+            appLifetime = appLifetime,
+            crashLogsFilePath = crashLogsFilePath
           )
         }
       }
@@ -160,7 +164,8 @@ class CrashReportActivity : AppCompatActivity() {
     message: String,
     stacktrace: String,
     userAgent: String,
-    appLifetime: String
+    appLifetime: String,
+    crashLogsFilePath: String?
   ) {
     val chanTheme = LocalChanTheme.current
     val insets by globalWindowInsetsManager.currentInsetsCompose
@@ -243,7 +248,8 @@ class CrashReportActivity : AppCompatActivity() {
             key1 = Unit,
             block = {
               logsMut = withContext(Dispatchers.IO) {
-                LogsController.loadLogs()
+                // This is a new process, the logs of the crashed one were written into a file
+                readCrashLogs(crashLogsFilePath) ?: LogsController.loadLogs()
               }
             }
           )
@@ -307,7 +313,7 @@ class CrashReportActivity : AppCompatActivity() {
 
               coroutineScope.launch {
                 val logsForSending = if (logs.isNullOrEmpty()) {
-                  withContext(Dispatchers.IO) { LogsController.loadLogs() }
+                  withContext(Dispatchers.IO) { readCrashLogs(crashLogsFilePath) ?: LogsController.loadLogs() }
                 } else {
                   logs
                 }
@@ -434,6 +440,24 @@ class CrashReportActivity : AppCompatActivity() {
     }
   }
 
+  private fun readCrashLogs(crashLogsFilePath: String?): String? {
+    if (crashLogsFilePath == null) {
+      return null
+    }
+
+    val crashLogsFile = File(crashLogsFilePath)
+    if (!crashLogsFile.exists()) {
+      return null
+    }
+
+    return try {
+      crashLogsFile.readText()
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to read crash logs from ${crashLogsFile.absolutePath}", error)
+      null
+    }
+  }
+
   companion object {
     private const val TAG = "CrashReportActivity"
 
@@ -443,6 +467,9 @@ class CrashReportActivity : AppCompatActivity() {
     const val EXCEPTION_STACKTRACE_KEY = "exception_stacktrace"
     const val USER_AGENT_KEY = "user_agent"
     const val APP_LIFE_TIME_KEY = "app_life_time"
+    const val CRASH_LOGS_FILE_PATH_KEY = "crash_logs_file_path"
+
+    const val CRASH_LOGS_FILE_NAME = "crash_logs.txt"
   }
 
 }
\ No newline at end of file
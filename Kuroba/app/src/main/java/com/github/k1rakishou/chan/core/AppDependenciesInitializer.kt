@@ -7,13 +7,24 @@ import com.github.k1rakishou.chan.core.manager.ChanFilterManager
 import com.github.k1rakishou.chan.core.manager.HistoryNavigationManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadBookmarkGroupManager
+import com.github.k1rakishou.chan.core.startup.StartupDependencyGraph
+import com.github.k1rakishou.chan.core.startup.StartupTask
+import com.github.k1rakishou.chan.core.startup.StartupTracer
 import com.github.k1rakishou.chan.core.watcher.BookmarkWatcherCoordinator
 import com.github.k1rakishou.chan.core.watcher.FilterWatcherCoordinator
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingCoordinator
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.site.ChanSiteData
 import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.io.File
 
 class AppDependenciesInitializer(
+  private val appScope: CoroutineScope,
   private val siteManager: SiteManager,
   private val boardManager: BoardManager,
   private val bookmarksManager: BookmarksManager,
@@ -25,25 +36,87 @@ class AppDependenciesInitializer(
   private val chanFilterManager: ChanFilterManager,
   private val threadDownloadingCoordinator: ThreadDownloadingCoordinator
 ) {
+  val startupTracer = StartupTracer()
 
-  fun init() {
-    val allSitesDeferred = CompletableDeferred<List<ChanSiteData>>()
-
-    siteManager.initialize(allSitesDeferred)
-    boardManager.initialize(allSitesDeferred)
+  @OptIn(ExperimentalCoroutinesApi::class)
+  private val startupDispatcher = Dispatchers.IO.limitedParallelism(STARTUP_PARALLELISM)
 
+  fun init(startupTraceOutputFile: File?) {
+    // The listeners and executors are registered synchronously, in this exact order, because other
+    // components may use them right after Application.onCreate()
+    siteManager.initialize()
+    boardManager.initialize()
     // threadBookmarkGroupManager must be initialized before bookmarksManager because it listens
     // for events from bookmarksManager
     threadBookmarkGroupManager.initialize()
     bookmarksManager.initialize()
     historyNavigationManager.initialize()
-
     bookmarkWatcherCoordinator.initialize()
     filterWatcherCoordinator.initialize()
     threadDownloadingCoordinator.initialize()
-
     archivesManager.initialize()
     chanFilterManager.initialize()
+
+    // The data is loaded in the background, every task suspends until its manager is loaded.
+    val graph = StartupDependencyGraph(createStartupTasks(), startupTracer)
+
+    appScope.launch {
+      val result = graph.execute(startupDispatcher)
+
+      result.failedTasks.forEach { (taskName, error) ->
+        Logger.e(TAG, "Startup task '${taskName}' failed", error)
+      }
+
+      if (result.skippedTasks.isNotEmpty()) {
+        Logger.e(TAG, "Startup tasks ${result.skippedTasks} were skipped because their dependencies failed")
+      }
+
+      if (startupTraceOutputFile != null) {
+        withContext(Dispatchers.IO) { exportStartupTrace(startupTraceOutputFile) }
+      }
+    }
+  }
+
+  private fun exportStartupTrace(outputFile: File) {
+    try {
+      startupTracer.exportChromeTrace(outputFile)
+      Logger.d(TAG, "exportStartupTrace() startup trace exported to '${outputFile.absolutePath}'")
+    } catch (error: Throwable) {
+      Logger.e(TAG, "exportStartupTrace() error", error)
+    }
+  }
+
+  private fun createStartupTasks(): List<StartupTask> {
+    val allSitesDeferred = CompletableDeferred<List<ChanSiteData>>()
+
+    return listOf(
+      StartupTask(name = SITE_MANAGER) {
+        siteManager.loadSites(allSitesDeferred)
+      },
+      StartupTask(name = BOARD_MANAGER, dependencies = setOf(SITE_MANAGER)) {
+        boardManager.loadBoards(allSitesDeferred)
+      },
+      StartupTask(name = BOOKMARKS_MANAGER) {
+        bookmarksManager.loadBookmarks()
+      },
+      StartupTask(name = CHAN_FILTER_MANAGER) {
+        chanFilterManager.loadFilters()
+      },
+      StartupTask(name = ARCHIVES_MANAGER) {
+        archivesManager.initializeArchives()
+      }
+    )
+  }
+
+  companion object {
+    private const val TAG = "AppDependenciesInitializer"
+    private const val STARTUP_PARALLELISM = 4
+
+    private const val SITE_MANAGER = "SiteManager"
+    private const val BOARD_MANAGER = "BoardManager"
+    private const val BOOKMARKS_MANAGER = "BookmarksManager"
+    private const val CHAN_FILTER_MANAGER = "ChanFilterManager"
+    private const val ARCHIVES_MANAGER = "ArchivesManager"
   }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+package com.github.k1rakishou.chan.core.backup
+
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.util.zip.CRC32
+import java.util.zip.ZipInputStream
+
+/**
+ * Restores a backup generation by chaining together the archives of all generations its manifest
+ * references. Every archive is read sequentially exactly once.
+ * */
+class BackupGenerationsRestorer {
+
+  /**
+   * @param manifest the manifest of the generation to restore.
+   * @param openArchive opens the archive of the generation with the given id.
+   * @param restoreEntry called once for every file of the backup. Must fully consume the stream.
+   * */
+  fun restore(
+    manifest: BackupManifest,
+    openArchive: (generationId: String) -> InputStream,
+    restoreEntry: (entryName: String, inputStream: InputStream) -> Unit
+  ) {
+    val entriesByLocation = manifest.entries.groupBy { entry -> entry.generationId to entry.archiveEntryName }
+    val restored = mutableSetOf<String>()
+
+    for (generationId in manifest.requiredGenerations()) {
+      openArchive(generationId).use { archiveInputStream ->
+        val zipInputStream = ZipInputStream(archiveInputStream)
+
+        while (true) {
+          val zipEntry = zipInputStream.nextEntry
+            ?: break
+
+          if (zipEntry.isDirectory || zipEntry.name == BackupManifest.MANIFEST_ENTRY_NAME) {
+            zipInputStream.closeEntry()
+            continue
+          }
+
+          val targets = entriesByLocation[generationId to zipEntry.name]
+          if (targets.isNullOrEmpty()) {
+            // Stale entry that is not a part of the generation we are restoring
+            zipInputStream.closeEntry()
+            continue
+          }
+
+          if (targets.size == 1) {
+            restoreVerified(targets.first(), zipInputStream, restoreEntry)
+          } else {
+            // Deduplicated content. It's small enough in practice (same thumbnails mostly) to
+            // buffer it in memory once and hand it to every target.
+            val bytes = zipInputStream.readBytes()
+            targets.forEach { target -> restoreVerified(target, bytes.inputStream(), restoreEntry) }
+          }
+
+          targets.forEach { target -> restored += target.name }
+          zipInputStream.closeEntry()
+        }
+      }
+    }
+
+    val notRestored = manifest.entries.filter { entry -> entry.name !in restored }
+    if (notRestored.isNotEmpty()) {
+      throw IOException("Backup is incomplete, failed to find ${notRestored.size} files, " +
+        "first: '${notRestored.first().name}' (generation ${notRestored.first().generationId})")
+    }
+  }
+
+  private fun restoreVerified(
+    entry: BackupManifest.Entry,
+    inputStream: InputStream,
+    restoreEntry: (String, InputStream) -> Unit
+  ) {
+    val verifyingInputStream = VerifyingInputStream(inputStream)
+    restoreEntry(entry.name, verifyingInputStream)
+
+    // Drain whatever the callback didn't read so that the checksum covers the whole entry
+    verifyingInputStream.skipToEnd()
+
+    if (verifyingInputStream.totalRead != entry.size || verifyingInputStream.crc32.value != entry.crc32) {
+      throw IOException("Backup entry '${entry.name}' is corrupted " +
+        "(size: ${verifyingInputStream.totalRead}/${entry.size}, " +
+        "crc: ${verifyingInputStream.crc32.value}/${entry.crc32})")
+    }
+  }
+
+  private class VerifyingInputStream(inputStream: InputStream) : FilterInputStream(inputStream) {
+    val crc32 = CRC32()
+    var totalRead = 0L
+      private set
+
+    override fun read(): Int {
+      val value = super.read()
+      if (value >= 0) {
+        crc32.update(value)
+        ++totalRead
+      }
+
+      return value
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+      val read = super.read(b, off, len)
+      if (read > 0) {
+        crc32.update(b, off, read)
+        totalRead += read
+      }
+
+      return read
+    }
+
+    override fun skip(n: Long): Long {
+      if (n <= 0L) {
+        return 0L
+      }
+
+      // Skipped bytes must be accounted for in the checksum as well
+      val buffer = ByteArray(minOf(n, 8192L).toInt())
+      var skipped = 0L
+
+      while (skipped < n) {
+        val read = read(buffer, 0, minOf(buffer.size.toLong(), n - skipped).toInt())
+        if (read < 0) {
+          break
+        }
+
+        skipped += read
+      }
+
+      return skipped
+    }
+
+    // The underlying zip stream must not be closed by the callback
+    override fun close() {
+      // no-op
+    }
+
+    fun skipToEnd() {
+      val buffer = ByteArray(8192)
+
+      while (read(buffer, 0, buffer.size) >= 0) {
+        // no-op
+      }
+    }
+  }
+
+  class MissingBackupGenerationsException(
+    val missingGenerations: Set<String>
+  ) : IOException("Backup is incremental and requires the archives of the previous backups: ${missingGenerations.joinToString()}")
+
+}
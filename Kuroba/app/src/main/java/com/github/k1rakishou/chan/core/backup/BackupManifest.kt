@@ -0,0 +1,138 @@
+package com.github.k1rakishou.chan.core.backup
+
+import java.io.IOException
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * Describes every file of a backup generation. Files that were not changed since one of the previous
+ * generations are not stored in the archive of this generation, instead [Entry.generationId] and
+ * [Entry.archiveEntryName] point to the archive (and the entry inside of it) that actually contains
+ * the file bytes.
+ *
+ * The manifest is serialized as a simple line-based text file (instead of json) so that it doesn't
+ * depend on reflection and can be read before any other archive entry is processed.
+ * */
+data class BackupManifest(
+  val generationId: String,
+  val createdOn: Long,
+  val entries: List<Entry>
+) {
+
+  fun requiredGenerations(): Set<String> {
+    return entries.mapTo(linkedSetOf()) { entry -> entry.generationId }
+  }
+
+  fun serialize(outputStream: OutputStream) {
+    val text = buildString {
+      append(HEADER).append(' ').append(VERSION).append('\n')
+      append(GENERATION).append(' ').append(generationId).append('\n')
+      append(CREATED_ON).append(' ').append(createdOn).append('\n')
+
+      entries.forEach { entry ->
+        append(ENTRY).append(' ')
+        append(entry.generationId).append('\t')
+        append(entry.size).append('\t')
+        append(entry.lastModified).append('\t')
+        append(entry.crc32).append('\t')
+        append(entry.sha256).append('\t')
+        append(if (entry.stored) STORED else DEFLATED).append('\t')
+        append(entry.archiveEntryName).append('\t')
+        append(entry.name).append('\n')
+      }
+    }
+
+    outputStream.write(text.toByteArray(Charsets.UTF_8))
+  }
+
+  data class Entry(
+    // Name of the file inside of the backup (the same as the zip entry name in non-incremental backups)
+    val name: String,
+    val size: Long,
+    val lastModified: Long,
+    val crc32: Long,
+    val sha256: String,
+    // Whether the entry was written without compression (already compressed media)
+    val stored: Boolean,
+    // Generation which archive actually contains the bytes of this file
+    val generationId: String,
+    // Name of the zip entry in the archive of [generationId]. May differ from [name] when the same
+    // content was deduplicated.
+    val archiveEntryName: String
+  )
+
+  companion object {
+    const val MANIFEST_ENTRY_NAME = "kurobaex_backup_manifest.txt"
+
+    private const val HEADER = "KurobaExBackupManifest"
+    private const val VERSION = 1
+    private const val GENERATION = "generation"
+    private const val CREATED_ON = "created_on"
+    private const val ENTRY = "entry"
+    private const val STORED = "stored"
+    private const val DEFLATED = "deflated"
+
+    fun deserialize(inputStream: InputStream): BackupManifest {
+      val lines = inputStream.readBytes().toString(Charsets.UTF_8).lines()
+
+      val header = lines.firstOrNull()?.split(' ')
+      if (header == null || header.size != 2 || header[0] != HEADER) {
+        throw IOException("Not a backup manifest")
+      }
+
+      val version = header[1].toIntOrNull()
+      if (version == null || version > VERSION) {
+        throw IOException("Unsupported backup manifest version: ${header[1]}")
+      }
+
+      var generationId: String? = null
+      var createdOn = 0L
+      val entries = mutableListOf<Entry>()
+
+      for (line in lines.drop(1)) {
+        if (line.isEmpty()) {
+          continue
+        }
+
+        val key = line.substringBefore(' ')
+        val value = line.substringAfter(' ')
+
+        when (key) {
+          GENERATION -> generationId = value
+          CREATED_ON -> createdOn = value.toLongOrNull() ?: 0L
+          ENTRY -> entries += parseEntry(value)
+          else -> throw IOException("Unknown manifest line: '$line'")
+        }
+      }
+
+      if (generationId.isNullOrEmpty()) {
+        throw IOException("Backup manifest has no generation id")
+      }
+
+      return BackupManifest(generationId, createdOn, entries)
+    }
+
+    private fun parseEntry(value: String): Entry {
+      val parts = value.split('\t', limit = 8)
+      if (parts.size != 8) {
+        throw IOException("Malformed manifest entry: '$value'")
+      }
+
+      try {
+        return Entry(
+          generationId = parts[0],
+          size = parts[1].toLong(),
+          lastModified = parts[2].toLong(),
+          crc32 = parts[3].toLong(),
+          sha256 = parts[4],
+          stored = parts[5] == STORED,
+          archiveEntryName = parts[6],
+          name = parts[7]
+        )
+      } catch (error: NumberFormatException) {
+        throw IOException("Malformed manifest entry: '$value'", error)
+      }
+    }
+  }
+
+}
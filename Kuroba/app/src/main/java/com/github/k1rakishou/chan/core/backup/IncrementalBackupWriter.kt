@@ -0,0 +1,218 @@
+package com.github.k1rakishou.chan.core.backup
+
+import java.io.BufferedInputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.OutputStream
+import java.security.MessageDigest
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Writes a backup generation. Only the files that were added or changed since [previousManifest]
+ * are written into the archive, the rest are referenced by the manifest. Files with identical
+ * contents are only stored once. Already compressed media files are written as STORED entries so
+ * that we don't waste time trying to compress them again.
+ * */
+class IncrementalBackupWriter(
+  private val bufferSize: Int = DEFAULT_BUFFER_SIZE
+) {
+
+  fun write(
+    generationId: String,
+    sourceFiles: List<BackupSourceFile>,
+    previousManifest: BackupManifest?,
+    outputStream: OutputStream
+  ): Result {
+    val previousEntriesByName = previousManifest?.entries
+      ?.associateBy { entry -> entry.name }
+      ?: emptyMap()
+
+    val knownContent = mutableMapOf<String, BackupManifest.Entry>()
+    previousManifest?.entries?.forEach { entry -> knownContent.putIfAbsent(contentKey(entry), entry) }
+
+    val entries = mutableListOf<BackupManifest.Entry>()
+    val toWrite = mutableListOf<Pair<BackupSourceFile, BackupManifest.Entry>>()
+    var hashedBytes = 0L
+
+    for (sourceFile in sourceFiles) {
+      val file = sourceFile.file
+      val size = file.length()
+      val lastModified = file.lastModified()
+
+      val previousEntry = previousEntriesByName[sourceFile.entryName]
+      if (previousEntry != null && previousEntry.size == size && previousEntry.lastModified == lastModified) {
+        // Same size and modification time, consider the file unchanged without reading it
+        entries += previousEntry
+        continue
+      }
+
+      val (crc32, sha256) = hashFile(file)
+      hashedBytes += size
+
+      val stored = isAlreadyCompressed(sourceFile.entryName)
+      val newEntry = BackupManifest.Entry(
+        name = sourceFile.entryName,
+        size = size,
+        lastModified = lastModified,
+        crc32 = crc32,
+        sha256 = sha256,
+        stored = stored,
+        generationId = generationId,
+        archiveEntryName = sourceFile.entryName
+      )
+
+      val existingContent = knownContent[contentKey(newEntry)]
+      if (existingContent != null) {
+        // The same content is already stored either in one of the previous generations or under
+        // a different name in this one
+        entries += newEntry.copy(
+          stored = existingContent.stored,
+          generationId = existingContent.generationId,
+          archiveEntryName = existingContent.archiveEntryName
+        )
+
+        continue
+      }
+
+      knownContent[contentKey(newEntry)] = newEntry
+      entries += newEntry
+      toWrite += sourceFile to newEntry
+    }
+
+    val manifest = BackupManifest(
+      generationId = generationId,
+      createdOn = System.currentTimeMillis(),
+      entries = entries
+    )
+
+    var writtenBytes = 0L
+    val zipOutputStream = ZipOutputStream(outputStream)
+
+    // The manifest always goes first so that the importer knows which generations it needs before
+    // restoring anything.
+    zipOutputStream.putNextEntry(ZipEntry(BackupManifest.MANIFEST_ENTRY_NAME))
+    manifest.serialize(zipOutputStream)
+    zipOutputStream.closeEntry()
+
+    for ((sourceFile, entry) in toWrite) {
+      val zipEntry = ZipEntry(entry.archiveEntryName)
+
+      if (entry.stored) {
+        zipEntry.method = ZipEntry.STORED
+        zipEntry.size = entry.size
+        zipEntry.compressedSize = entry.size
+        zipEntry.crc = entry.crc32
+      } else {
+        zipEntry.method = ZipEntry.DEFLATED
+      }
+
+      zipOutputStream.putNextEntry(zipEntry)
+
+      BufferedInputStream(FileInputStream(sourceFile.file), bufferSize).use { inputStream ->
+        writtenBytes += inputStream.copyTo(zipOutputStream, bufferSize)
+      }
+
+      zipOutputStream.closeEntry()
+    }
+
+    zipOutputStream.finish()
+    zipOutputStream.flush()
+
+    return Result(
+      manifest = manifest,
+      writtenFiles = toWrite.size,
+      writtenBytes = writtenBytes,
+      hashedBytes = hashedBytes
+    )
+  }
+
+  private fun hashFile(file: File): Pair<Long, String> {
+    val crc32 = CRC32()
+    val messageDigest = MessageDigest.getInstance("SHA-256")
+    val buffer = ByteArray(bufferSize)
+
+    FileInputStream(file).use { inputStream ->
+      while (true) {
+        val read = inputStream.read(buffer)
+        if (read < 0) {
+          break
+        }
+
+        crc32.update(buffer, 0, read)
+        messageDigest.update(buffer, 0, read)
+      }
+    }
+
+    return crc32.value to messageDigest.digest().joinToString(separator = "") { byte -> "%02x".format(byte) }
+  }
+
+  private fun contentKey(entry: BackupManifest.Entry): String {
+    return "${entry.sha256}_${entry.size}"
+  }
+
+  data class BackupSourceFile(
+    val entryName: String,
+    val file: File
+  )
+
+  data class Result(
+    val manifest: BackupManifest,
+    val writtenFiles: Int,
+    val writtenBytes: Long,
+    val hashedBytes: Long
+  )
+
+  companion object {
+    private const val DEFAULT_BUFFER_SIZE = 8192
+
+    private val ALREADY_COMPRESSED_EXTENSIONS = setOf(
+      "jpg", "jpeg", "png", "gif", "webp", "avif", "heic",
+      "webm", "mp4", "mkv", "mov", "m4v",
+      "mp3", "ogg", "opus", "m4a", "flac",
+      "zip", "gz", "7z", "rar", "apk", "pdf"
+    )
+
+    fun isAlreadyCompressed(entryName: String): Boolean {
+      val extension = entryName.substringAfterLast('.', missingDelimiterValue = "")
+      if (extension.isEmpty()) {
+        return false
+      }
+
+      return extension.lowercase() in ALREADY_COMPRESSED_EXTENSIONS
+    }
+
+    /**
+     * Flattens [files] (directories are traversed recursively) into a list of [BackupSourceFile].
+     * */
+    fun collectSourceFiles(
+      files: List<File>,
+      selectEntryName: (directory: String?, file: File) -> String
+    ): List<BackupSourceFile> {
+      val result = mutableListOf<BackupSourceFile>()
+      collectSourceFilesInternal(null, files, selectEntryName, result)
+      return result
+    }
+
+    private fun collectSourceFilesInternal(
+      directory: String?,
+      files: List<File>,
+      selectEntryName: (String?, File) -> String,
+      result: MutableList<BackupSourceFile>
+    ) {
+      for (file in files) {
+        if (file.isDirectory) {
+          val innerFiles = file.listFiles()?.sortedBy { innerFile -> innerFile.name } ?: emptyList()
+          val newDirectory = selectEntryName(directory, file) + "/"
+
+          collectSourceFilesInternal(newDirectory, innerFiles, selectEntryName, result)
+          continue
+        }
+
+        result += BackupSourceFile(selectEntryName(directory, file), file)
+      }
+    }
+  }
+
+}
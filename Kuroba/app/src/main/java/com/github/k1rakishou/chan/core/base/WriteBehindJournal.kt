@@ -0,0 +1,203 @@
+package com.github.k1rakishou.chan.core.base
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.common.ModularResult.Companion.Try
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+
+/**
+ * Write-behind layer for stores that are persisted way more often than they actually change.
+ * Instead of rewriting the whole store on every change, callers mark the keys that were changed
+ * (or deleted) and the journal coalesces them (only the latest value of every key is kept). The
+ * dirty entries are then handed to [writer] in one batch (which is supposed to be written in a
+ * single transaction) either when there are [maxPendingEntries] dirty entries, when [maxFlushDelayMs]
+ * has passed since the first not yet flushed change or when [flush]/[flushInBackground] is called.
+ *
+ * Entries are only removed from the journal after [writer] has successfully finished, so if the
+ * writer fails (or the process is killed in the middle of a flush) nothing is lost, the entries are
+ * going to be written again by the next flush. An entry that was changed while it was being flushed
+ * stays dirty as well.
+ * */
+class WriteBehindJournal<K : Any, V : Any>(
+  private val scope: CoroutineScope,
+  private val maxPendingEntries: Int,
+  private val maxFlushDelayMs: Long,
+  private val onFlushError: (Throwable) -> Unit = {},
+  private val writer: suspend (Batch<K, V>) -> Unit
+) {
+  private val lock = Any()
+  private val flushMutex = Mutex()
+
+  @GuardedBy("lock")
+  private val pending = LinkedHashMap<K, PendingEntry<V>>()
+  @GuardedBy("lock")
+  private var versionCounter = 0L
+  @GuardedBy("lock")
+  private var scheduledFlushJob: Job? = null
+
+  init {
+    require(maxPendingEntries > 0) { "Bad maxPendingEntries: $maxPendingEntries" }
+    require(maxFlushDelayMs > 0) { "Bad maxFlushDelayMs: $maxFlushDelayMs" }
+  }
+
+  fun markDirty(key: K, value: V) {
+    enqueue(key, value)
+  }
+
+  fun markDeleted(key: K) {
+    enqueue(key, null)
+  }
+
+  fun pendingCount(): Int {
+    return synchronized(lock) { pending.size }
+  }
+
+  fun isDirty(key: K): Boolean {
+    return synchronized(lock) { pending.containsKey(key) }
+  }
+
+  /**
+   * Discards all dirty entries without writing them and then executes [clearStore] (which is supposed to
+   * clear the whole store). Both happen under the flush mutex so a flush that is already in flight
+   * can't write the discarded entries back after the store was cleared.
+   * */
+  suspend fun <T> clear(clearStore: suspend () -> T): T {
+    return withContext(Dispatchers.IO) {
+      flushMutex.withLock {
+        synchronized(lock) {
+          scheduledFlushJob?.cancel()
+          scheduledFlushJob = null
+          pending.clear()
+        }
+
+        clearStore()
+      }
+    }
+  }
+
+  /**
+   * Writes all currently dirty entries and suspends until they are written.
+   * @return the amount of written entries.
+   * */
+  suspend fun flush(): ModularResult<Int> {
+    // The writer is a database transaction so it must never be executed on the caller's thread (which
+    // may be the main thread).
+    return withContext(Dispatchers.IO) { flushInternal() }
+  }
+
+  private suspend fun flushInternal(): ModularResult<Int> {
+    return flushMutex.withLock {
+      val snapshot = synchronized(lock) {
+        if (pending.isEmpty()) {
+          return@withLock ModularResult.value(0)
+        }
+
+        return@synchronized LinkedHashMap(pending)
+      }
+
+      val upserts = LinkedHashMap<K, V>(snapshot.size)
+      val deletes = LinkedHashSet<K>()
+
+      snapshot.forEach { (key, pendingEntry) ->
+        if (pendingEntry.value == null) {
+          deletes += key
+        } else {
+          upserts[key] = pendingEntry.value
+        }
+      }
+
+      val result = Try { writer(Batch(upserts, deletes)) }
+      if (result is ModularResult.Error) {
+        synchronized(lock) { scheduleFlushIfNeeded() }
+        return@withLock ModularResult.error(result.error)
+      }
+
+      synchronized(lock) {
+        snapshot.forEach { (key, flushedEntry) ->
+          if (pending[key]?.version == flushedEntry.version) {
+            pending.remove(key)
+          }
+        }
+      }
+
+      return@withLock ModularResult.value(snapshot.size)
+    }
+  }
+
+  /**
+   * Same as [flush] but doesn't wait for the entries to be written, errors are reported to
+   * [onFlushError]. Use it when the process is about to be stopped (the app went into the background)
+   * from a thread that must not be blocked, e.g. the main thread.
+   * */
+  fun flushInBackground() {
+    synchronized(lock) {
+      scheduledFlushJob?.cancel()
+      scheduledFlushJob = null
+    }
+
+    scope.launch { flushAndReportErrors() }
+  }
+
+  private fun enqueue(key: K, value: V?) {
+    val flushNow = synchronized(lock) {
+      pending.remove(key)
+      pending[key] = PendingEntry(++versionCounter, value)
+
+      if (pending.size >= maxPendingEntries) {
+        scheduledFlushJob?.cancel()
+        scheduledFlushJob = null
+        return@synchronized true
+      }
+
+      scheduleFlushIfNeeded()
+      return@synchronized false
+    }
+
+    if (flushNow) {
+      scope.launch { flushAndReportErrors() }
+    }
+  }
+
+  @GuardedBy("lock")
+  private fun scheduleFlushIfNeeded() {
+    if (scheduledFlushJob != null || pending.isEmpty()) {
+      return
+    }
+
+    scheduledFlushJob = scope.launch {
+      delay(maxFlushDelayMs)
+      synchronized(lock) { scheduledFlushJob = null }
+
+      flushAndReportErrors()
+    }
+  }
+
+  private suspend fun flushAndReportErrors() {
+    val result = flush()
+    if (result is ModularResult.Error) {
+      onFlushError(result.error)
+    }
+  }
+
+  class Batch<K, V>(
+    val upserts: Map<K, V>,
+    val deletes: Set<K>
+  ) {
+    val size: Int
+      get() = upserts.size + deletes.size
+  }
+
+  private class PendingEntry<V>(
+    val version: Long,
+    // null means the entry was deleted
+    val value: V?
+  )
+
+}
@@ -7,6 +7,7 @@ import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
 import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
+import com.github.k1rakishou.chan.core.net.ProxyHealthMonitor;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
 import com.github.k1rakishou.common.dns.CompositeDnsSelector;
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
@@ -27,6 +28,7 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
     private final Chan.OkHttpProtocols okHttpProtocols;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
     private final ProxyStorage proxyStorage;
+    private final ProxyHealthMonitor proxyHealthMonitor;
     private final SiteResolver siteResolver;
     private final FirewallBypassManager firewallBypassManager;
 
@@ -39,6 +41,7 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            ProxyHealthMonitor proxyHealthMonitor,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -48,6 +51,7 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
         this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
         this.okHttpProtocols = okHttpProtocols;
         this.proxyStorage = proxyStorage;
+        this.proxyHealthMonitor = proxyHealthMonitor;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
         this.firewallBypassManager = firewallBypassManager;
@@ -61,6 +65,7 @@ public class CoilOkHttpClient implements CustomOkHttpClient {
                 if (coilClient == null) {
                     KurobaProxySelector kurobaProxySelector = new KurobaProxySelector(
                             proxyStorage,
+                            proxyHealthMonitor,
                             ProxyStorage.ProxyActionType.SiteMediaPreviews
                     );
 
@@ -7,6 +7,7 @@ import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
 import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
+import com.github.k1rakishou.chan.core.net.ProxyHealthMonitor;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
 import com.github.k1rakishou.common.dns.CompositeDnsSelector;
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
@@ -25,6 +26,7 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
     private final Chan.OkHttpProtocols okHttpProtocols;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
     private final ProxyStorage proxyStorage;
+    private final ProxyHealthMonitor proxyHealthMonitor;
     private final SiteResolver siteResolver;
     private final FirewallBypassManager firewallBypassManager;
 
@@ -36,6 +38,7 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            ProxyHealthMonitor proxyHealthMonitor,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -44,6 +47,7 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
         this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
         this.okHttpProtocols = okHttpProtocols;
         this.proxyStorage = proxyStorage;
+        this.proxyHealthMonitor = proxyHealthMonitor;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
         this.firewallBypassManager = firewallBypassManager;
@@ -57,6 +61,7 @@ public class RealDownloaderOkHttpClient implements DownloaderOkHttpClient {
                 if (downloaderClient == null) {
                     KurobaProxySelector kurobaProxySelector = new KurobaProxySelector(
                             proxyStorage,
+                            proxyHealthMonitor,
                             ProxyStorage.ProxyActionType.SiteMediaFull
                     );
 
@@ -7,6 +7,7 @@ import com.github.k1rakishou.chan.Chan;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
 import com.github.k1rakishou.chan.core.net.KurobaProxySelector;
+import com.github.k1rakishou.chan.core.net.ProxyHealthMonitor;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
 import com.github.k1rakishou.common.dns.CompositeDnsSelector;
 import com.github.k1rakishou.common.dns.DnsOverHttpsSelectorFactory;
@@ -27,6 +28,7 @@ public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
     private final DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory;
     private final Chan.OkHttpProtocols okHttpProtocols;
     private final ProxyStorage proxyStorage;
+    private final ProxyHealthMonitor proxyHealthMonitor;
     private final HttpLoggingInterceptorLazy httpLoggingInterceptorLazy;
     private final SiteResolver siteResolver;
     private final FirewallBypassManager firewallBypassManager;
@@ -37,6 +39,7 @@ public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            ProxyHealthMonitor proxyHealthMonitor,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -45,6 +48,7 @@ public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
         this.dnsOverHttpsSelectorFactory = dnsOverHttpsSelectorFactory;
         this.okHttpProtocols = okHttpProtocols;
         this.proxyStorage = proxyStorage;
+        this.proxyHealthMonitor = proxyHealthMonitor;
         this.httpLoggingInterceptorLazy = httpLoggingInterceptorLazy;
         this.siteResolver = siteResolver;
         this.firewallBypassManager = firewallBypassManager;
@@ -58,6 +62,7 @@ public class RealProxiedOkHttpClient implements ProxiedOkHttpClient {
                 if (proxiedClient == null) {
                     KurobaProxySelector kurobaProxySelector = new KurobaProxySelector(
                             proxyStorage,
+                            proxyHealthMonitor,
                             ProxyStorage.ProxyActionType.SiteRequests
                     );
 
@@ -94,9 +94,15 @@ class CacheHandler(
         innerCacheChunksDirFile.mkdirs()
       }
 
+      val innerCacheVariantsDirFile = File(File(diskCacheDir, cacheFileType.id.toString()), "variants")
+      if (!innerCacheVariantsDirFile.exists()) {
+        innerCacheVariantsDirFile.mkdirs()
+      }
+
       val innerCache = InnerCache(
         cacheDirFile = innerCacheDirFile,
         chunksCacheDirFile = innerCacheChunksDirFile,
+        variantsCacheDirFile = innerCacheVariantsDirFile,
         fileCacheDiskSizeBytes = cacheFileType.calculateDiskSize(totalFileCacheDiskSizeBytes),
         cacheFileType = cacheFileType,
         isDevBuild = ENABLE_LOGGING
@@ -134,6 +140,32 @@ class CacheHandler(
     return file
   }
 
+  /**
+   * Returns an already scaled and transformed variant of the cache file of [url] (see
+   * [ThumbnailVariantStore]) or null if it was not created yet.
+   * */
+  fun getThumbnailVariantOrNull(cacheFileType: CacheFileType, url: String, variantKey: String): ByteArray? {
+    BackgroundUtils.ensureBackgroundThread()
+    val variant = getInnerCacheByFileType(cacheFileType).getThumbnailVariantOrNull(url, variantKey)
+
+    if (ENABLE_LOGGING) {
+      Logger.d(TAG, "getThumbnailVariantOrNull($cacheFileType, $url, $variantKey) -> ${variant?.size}")
+    }
+
+    return variant
+  }
+
+  fun putThumbnailVariant(cacheFileType: CacheFileType, url: String, variantKey: String, payload: ByteArray): Boolean {
+    BackgroundUtils.ensureBackgroundThread()
+    val stored = getInnerCacheByFileType(cacheFileType).putThumbnailVariant(url, variantKey, payload)
+
+    if (ENABLE_LOGGING) {
+      Logger.d(TAG, "putThumbnailVariant($cacheFileType, $url, $variantKey, ${payload.size}) -> $stored")
+    }
+
+    return stored
+  }
+
   fun getChunkCacheFileOrNull(cacheFileType: CacheFileType, chunkStart: Long, chunkEnd: Long, url: String): File? {
     if (ENABLE_LOGGING) {
       Logger.d(TAG, "getChunkCacheFileOrNull($cacheFileType, $chunkStart..$chunkEnd, $url)")
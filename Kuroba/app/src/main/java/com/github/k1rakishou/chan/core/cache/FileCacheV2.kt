@@ -531,6 +531,7 @@ class FileCacheV2(
     ) ?: return Flowable.error(FileCacheException.CouldNotCreateOutputCacheFile(url))
 
     if (cacheHandler.get().isAlreadyDownloaded(cacheFileType, outputFile)) {
+      request.cancelableDownload.downloadedPrefix.onCompleted(outputFile)
       return Flowable.just(FileDownloadResult.Success(outputFile, 0L))
     }
 
@@ -29,6 +29,7 @@ import kotlin.time.measureTime
 internal class InnerCache(
   cacheDirFile: File,
   chunksCacheDirFile: File,
+  variantsCacheDirFile: File,
   private val fileCacheDiskSizeBytes: Long,
   private val cacheFileType: CacheFileType,
   private val isDevBuild: Boolean
@@ -37,6 +38,7 @@ internal class InnerCache(
 
   private val executor = Executors.newSingleThreadExecutor()
   private val cacheHandlerSynchronizer = CacheHandlerSynchronizer()
+  private val thumbnailVariantStore = ThumbnailVariantStore(variantsCacheDirFile)
 
   /**
    * An estimation of the current size of the directory. Used to check if trim must be run
@@ -118,6 +120,49 @@ internal class InnerCache(
     }
   }
 
+  /**
+   * Returns the encoded variant [variantKey] of the cache file of [url] or null if there is no such
+   * variant or the cache file itself does not exist anymore.
+   * */
+  fun getThumbnailVariantOrNull(url: String, variantKey: String): ByteArray? {
+    BackgroundUtils.ensureBackgroundThread()
+    val cacheFile = getCacheFileByUrl(url)
+
+    return cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
+      if (!cacheFile.exists()) {
+        return@withLocalLock null
+      }
+
+      return@withLocalLock thumbnailVariantStore.getVariant(hashUrl(url), cacheFile.length(), variantKey)
+    }
+  }
+
+  fun putThumbnailVariant(url: String, variantKey: String, payload: ByteArray): Boolean {
+    BackgroundUtils.ensureBackgroundThread()
+    val cacheFile = getCacheFileByUrl(url)
+
+    val bytesWritten = cacheHandlerSynchronizer.withLocalLock(cacheFile.name) {
+      if (!cacheFile.exists()) {
+        // The source was evicted while we were creating the variant
+        return@withLocalLock null
+      }
+
+      try {
+        return@withLocalLock thumbnailVariantStore.putVariant(hashUrl(url), cacheFile.length(), variantKey, payload)
+      } catch (error: IOException) {
+        Logger.e(TAG, "Failed to store thumbnail variant for ${cacheFile.name}", error)
+        return@withLocalLock null
+      }
+    }
+
+    if (bytesWritten == null) {
+      return false
+    }
+
+    fileWasAdded(bytesWritten)
+    return true
+  }
+
   fun getCacheFileOrNull(url: String): File? {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -401,11 +446,14 @@ internal class InnerCache(
       synchronized(filesOnDiskCache) { filesOnDiskCache.remove(cacheFileName) }
       synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.remove(cacheFileName) }
 
+      // Variants are derived from the cache file so they are evicted together with it
+      val variantsSize = thumbnailVariantStore.deleteVariants(originalFileName)
+
       if (deleteCacheFileResult && deleteCacheFileMetaResult) {
         val fileSize = if (cacheFileSize < 0) {
-          0
+          variantsSize
         } else {
-          cacheFileSize
+          cacheFileSize + variantsSize
         }
 
         if (fileSize > 0) {
@@ -449,6 +497,8 @@ internal class InnerCache(
         }
       }
 
+      thumbnailVariantStore.clear()
+
       synchronized(filesOnDiskCache) { filesOnDiskCache.clear() }
       synchronized(fullyDownloadedFiles) { fullyDownloadedFiles.clear() }
 
@@ -755,6 +805,8 @@ internal class InnerCache(
 
             synchronized(filesOnDiskCache) { filesOnDiskCache.add(cacheFileName) }
           }
+
+          calculatedSize += thumbnailVariantStore.calculateSize()
         }
 
         size.set(calculatedSize)
@@ -0,0 +1,37 @@
+package com.github.k1rakishou.chan.core.cache
+
+/**
+ * The order in which a thumbnail is looked up: the memory cache first (nothing to read or decode),
+ * then the variant stored on the disk (see [ThumbnailVariantStore], a tiny image to decode) and only
+ * then the full-size source (decoded, scaled down and transformed). Whatever is loaded from a slower
+ * tier is put into the faster ones so that the next bind of the same thumbnail is as cheap as possible.
+ * */
+internal class ThumbnailVariantLookup<T : Any>(
+  private val getFromMemoryCache: (String) -> T?,
+  private val putIntoMemoryCache: (String, T) -> Unit,
+  private val loadVariant: () -> T?,
+  private val storeVariant: (T) -> Unit
+) {
+
+  suspend fun load(variantKey: String, decodeSource: suspend () -> T?): T? {
+    val fromMemoryCache = getFromMemoryCache(variantKey)
+    if (fromMemoryCache != null) {
+      return fromMemoryCache
+    }
+
+    val variant = loadVariant()
+    if (variant != null) {
+      putIntoMemoryCache(variantKey, variant)
+      return variant
+    }
+
+    val decoded = decodeSource()
+      ?: return null
+
+    putIntoMemoryCache(variantKey, decoded)
+    storeVariant(decoded)
+
+    return decoded
+  }
+
+}
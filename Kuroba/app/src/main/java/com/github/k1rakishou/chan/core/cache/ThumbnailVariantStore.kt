@@ -0,0 +1,176 @@
+package com.github.k1rakishou.chan.core.cache
+
+import com.github.k1rakishou.chan.utils.HashingUtil
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+
+/**
+ * Stores derived variants of the cache files: images that were already decoded, scaled down to the
+ * view size and transformed, then re-encoded into a small file. Loading a variant only requires
+ * decoding a tiny image instead of decoding the full-size source and applying all the
+ * transformations again.
+ *
+ * Variants of a source file live in their own directory named after the source cache file so that
+ * they can be deleted together with the source. Every variant also remembers the length of the
+ * source it was made from so a variant of a source that was re-downloaded in the meantime is never
+ * used.
+ * */
+internal class ThumbnailVariantStore(
+  variantsDirFile: File
+) {
+  private val _variantsDirFile: File = variantsDirFile
+  private val variantsDirFile: File
+    get() {
+      if (!_variantsDirFile.exists()) {
+        _variantsDirFile.mkdirs()
+      }
+
+      return _variantsDirFile
+    }
+
+  /**
+   * Returns the encoded variant or null if there is no variant for [variantKey] or it was made from a
+   * different version of the source file.
+   * */
+  fun getVariant(sourceFileName: String, sourceLength: Long, variantKey: String): ByteArray? {
+    val variantFile = getVariantFile(sourceFileName, variantKey)
+    if (!variantFile.exists()) {
+      return null
+    }
+
+    try {
+      DataInputStream(variantFile.inputStream().buffered()).use { inputStream ->
+        val magic = inputStream.readInt()
+        val variantSourceLength = inputStream.readLong()
+        val payloadLength = inputStream.readInt()
+
+        if (magic != VARIANT_MAGIC || variantSourceLength != sourceLength || payloadLength < 0) {
+          variantFile.delete()
+          return null
+        }
+
+        val payload = ByteArray(payloadLength)
+        inputStream.readFully(payload)
+
+        return payload
+      }
+    } catch (error: IOException) {
+      variantFile.delete()
+      return null
+    }
+  }
+
+  /**
+   * Stores the encoded variant. Returns the amount of bytes written.
+   * */
+  @Throws(IOException::class)
+  fun putVariant(sourceFileName: String, sourceLength: Long, variantKey: String, payload: ByteArray): Long {
+    val variantFile = getVariantFile(sourceFileName, variantKey)
+    val sourceVariantsDir = variantFile.parentFile!!
+
+    if (!sourceVariantsDir.exists() && !sourceVariantsDir.mkdirs()) {
+      throw IOException("Failed to create ${sourceVariantsDir.absolutePath}")
+    }
+
+    val oldVariantLength = variantFile.length()
+    val tmpFile = File(sourceVariantsDir, variantFile.name + ".tmp")
+
+    DataOutputStream(tmpFile.outputStream().buffered()).use { outputStream ->
+      outputStream.writeInt(VARIANT_MAGIC)
+      outputStream.writeLong(sourceLength)
+      outputStream.writeInt(payload.size)
+      outputStream.write(payload)
+    }
+
+    if (!tmpFile.renameTo(variantFile)) {
+      tmpFile.delete()
+      throw IOException("Failed to rename ${tmpFile.absolutePath} to ${variantFile.absolutePath}")
+    }
+
+    return variantFile.length() - oldVariantLength
+  }
+
+  /**
+   * Deletes all variants of the source file. Returns the amount of bytes freed.
+   * */
+  fun deleteVariants(sourceFileName: String): Long {
+    val sourceVariantsDir = getSourceVariantsDir(sourceFileName)
+    if (!sourceVariantsDir.exists()) {
+      return 0L
+    }
+
+    var freed = 0L
+
+    sourceVariantsDir.listFiles()?.forEach { variantFile ->
+      val length = variantFile.length()
+
+      if (variantFile.delete()) {
+        freed += length
+      }
+    }
+
+    sourceVariantsDir.delete()
+    return freed
+  }
+
+  fun hasVariants(sourceFileName: String): Boolean {
+    return getSourceVariantsDir(sourceFileName).list()?.isNotEmpty() == true
+  }
+
+  fun calculateSize(): Long {
+    return variantsDirFile.listFiles()
+      ?.sumOf { sourceVariantsDir -> sourceVariantsDir.listFiles()?.sumOf { file -> file.length() } ?: 0L }
+      ?: 0L
+  }
+
+  fun clear() {
+    variantsDirFile.listFiles()?.forEach { sourceVariantsDir -> sourceVariantsDir.deleteRecursively() }
+  }
+
+  private fun getSourceVariantsDir(sourceFileName: String): File {
+    return File(variantsDirFile, sourceFileName)
+  }
+
+  private fun getVariantFile(sourceFileName: String, variantKey: String): File {
+    return File(getSourceVariantsDir(sourceFileName), "${HashingUtil.stringHash(variantKey)}.${VARIANT_EXTENSION}")
+  }
+
+  companion object {
+    private const val VARIANT_MAGIC = 0x4B545656 // KTVV
+    private const val VARIANT_EXTENSION = "variant"
+
+    // Sizes are rounded up to a multiple of this value so that views of slightly different sizes
+    // (e.g. because of the different span counts) share the same variant
+    private const val SIZE_BUCKET_PX = 32
+
+    /**
+     * Builds the key of a variant from everything that affects the result: the source url, the
+     * (bucketed) target size and the transformation chain.
+     * */
+    fun variantKey(url: String, width: Int, height: Int, transformationKeys: List<String>): String {
+      return buildString {
+        append(url)
+        append('|')
+        append(sizeBucket(width))
+        append('x')
+        append(sizeBucket(height))
+
+        transformationKeys.forEach { transformationKey ->
+          append('|')
+          append(transformationKey)
+        }
+      }
+    }
+
+    fun sizeBucket(sizePx: Int): Int {
+      if (sizePx <= 0) {
+        return 0
+      }
+
+      return ((sizePx + SIZE_BUCKET_PX - 1) / SIZE_BUCKET_PX) * SIZE_BUCKET_PX
+    }
+  }
+
+}
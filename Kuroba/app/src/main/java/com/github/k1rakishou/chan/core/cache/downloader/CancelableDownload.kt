@@ -24,6 +24,12 @@ class CancelableDownload(
    * */
   private val disposeFuncList: MutableList<() -> Unit> = mutableListOf()
 
+  /**
+   * The part of the file that has already been downloaded. Can be used to show the file before it's
+   * fully downloaded.
+   * */
+  val downloadedPrefix = DownloadedPrefix()
+
   fun isRunning(): Boolean = state.get() == DownloadState.Running
   fun getState(): DownloadState = state.get()
 
@@ -111,6 +117,8 @@ class CancelableDownload(
   }
 
   private fun dispose() {
+    downloadedPrefix.onFailed(FileCacheException.CancellationException(state.get(), url))
+
     // We need to cancel the network requests on a background thread because otherwise it will
     // throw NetworkOnMainThread exception.
     // We also want it to be blocking so that we won't end up in a race condition when you
@@ -58,6 +58,9 @@ internal class ChunkMerger(
 
           outputStream.flush()
         }
+
+        // Readers of the prefix must switch to the output file before the chunk files are deleted
+        activeDownloads.get(url)?.cancelableDownload?.downloadedPrefix?.onCompleted(output)
       } finally {
         // In case of success or an error we want delete all chunk files
         chunkSuccessEvents.forEach { event ->
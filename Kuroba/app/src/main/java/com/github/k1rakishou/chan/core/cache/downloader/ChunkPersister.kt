@@ -66,6 +66,9 @@ internal class ChunkPersister(
           url = url
         ) ?: throw IOException("Couldn't create chunk cache file")
 
+        val downloadedPrefix = request.cancelableDownload.downloadedPrefix
+        downloadedPrefix.onChunkStarted(chunk, chunkCacheFile)
+
         try {
           response.useAsResponseBody { responseBody ->
             var chunkSize = responseBody.contentLength()
@@ -96,7 +99,8 @@ internal class ChunkPersister(
                   serializedEmitter,
                   chunkIndex,
                   chunkCacheFile,
-                  chunk
+                  chunk,
+                  downloadedPrefix
                 )
               }
             }
@@ -189,7 +193,8 @@ internal class ChunkPersister(
     serializedEmitter: FlowableEmitter<ChunkDownloadEvent>,
     chunkIndex: Int,
     chunkCacheFile: File,
-    chunk: Chunk
+    chunk: Chunk,
+    downloadedPrefix: DownloadedPrefix
   ) {
     var downloaded = 0L
     var notifyTotal = 0L
@@ -221,6 +226,10 @@ internal class ChunkPersister(
         if (downloaded >= notifyTotal + notifySize) {
           notifyTotal = downloaded
 
+          // Make what we have downloaded so far readable for the progressive preview
+          bufferedSink.flush()
+          downloadedPrefix.onChunkWritten(chunk, downloaded)
+
           serializedEmitter.onNext(
             ChunkDownloadEvent.Progress(
               chunkIndex,
@@ -249,6 +258,8 @@ internal class ChunkPersister(
         }
       }
 
+      downloadedPrefix.onChunkCompleted(chunk, downloaded)
+
       if (verboseLogs) {
         log(TAG, "pipeChunk($chunkIndex) ($url) SUCCESS for chunk ${chunk.start}..${chunk.end}")
       }
@@ -68,6 +68,7 @@ internal class ConcurrentChunkedFileDownloader @Inject constructor(
         }
         .doOnError { error ->
           logErrorsAndExtractErrorMessage(TAG, "Error while trying to download", error)
+          activeDownloads.get(url)?.cancelableDownload?.downloadedPrefix?.onFailed(error)
           removeChunksFromDisk(url)
         }
         .subscribeOn(workerScheduler)
@@ -0,0 +1,318 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.TreeMap
+
+/**
+ * Tracks the beginning of a file that is still being downloaded which can already be read from the
+ * disk. Every chunk is written into its own chunk file (see [ChunkPersister]) so the readable prefix
+ * consists of all the fully written chunks starting from the beginning of the file plus the flushed
+ * part of the first chunk that is still being downloaded. Once the chunks are merged the prefix
+ * switches to the output file.
+ *
+ * Written by the downloader threads, read with [Reader].
+ *
+ * ThreadSafe
+ * */
+class DownloadedPrefix {
+  // Chunk start -> chunk
+  private val chunks = TreeMap<Long, ChunkState>()
+  private val _state = MutableStateFlow<State>(State.Downloading(0L))
+
+  val state: StateFlow<State>
+    get() = _state.asStateFlow()
+
+  /**
+   * Called when a chunk starts being written into [chunkFile]. Chunks that are retried start over
+   * with an empty chunk file so the chunk's part of the prefix is dropped too.
+   * */
+  @Synchronized
+  fun onChunkStarted(chunk: Chunk, chunkFile: File) {
+    if (_state.value !is State.Downloading) {
+      return
+    }
+
+    chunks[chunk.start] = ChunkState(chunk, chunkFile)
+    publish()
+  }
+
+  /**
+   * Called after the first [written] bytes of [chunk] were flushed into the chunk file.
+   * */
+  @Synchronized
+  fun onChunkWritten(chunk: Chunk, written: Long) {
+    val chunkState = chunks[chunk.start]
+      ?: return
+
+    if (_state.value !is State.Downloading || chunkState.chunk != chunk) {
+      return
+    }
+
+    chunkState.written = written
+    publish()
+  }
+
+  @Synchronized
+  fun onChunkCompleted(chunk: Chunk, written: Long) {
+    val chunkState = chunks[chunk.start]
+      ?: return
+
+    if (_state.value !is State.Downloading || chunkState.chunk != chunk) {
+      return
+    }
+
+    chunkState.written = written
+    chunkState.completed = true
+    publish()
+  }
+
+  /**
+   * Must be called before the chunk files are deleted.
+   * */
+  @Synchronized
+  fun onCompleted(output: File) {
+    if (_state.value !is State.Downloading) {
+      return
+    }
+
+    chunks.clear()
+    _state.value = State.Completed(output, output.length())
+  }
+
+  @Synchronized
+  fun onFailed(error: Throwable) {
+    if (_state.value !is State.Downloading) {
+      return
+    }
+
+    chunks.clear()
+    _state.value = State.Failed(error)
+  }
+
+  fun newReader(): Reader = Reader(this)
+
+  /**
+   * The file containing [position] of the prefix, the offset of [position] in that file and how many
+   * bytes are readable starting from it. Null when [position] is not a part of the prefix.
+   * */
+  @Synchronized
+  private fun locate(position: Long): Location? {
+    when (val state = _state.value) {
+      is State.Failed -> return null
+      is State.Completed -> {
+        if (position >= state.length) {
+          return null
+        }
+
+        return Location(state.output, position, state.length - position)
+      }
+      is State.Downloading -> {
+        if (position >= state.length) {
+          return null
+        }
+
+        val chunkState = chunks.floorEntry(position)?.value
+          ?: return null
+
+        val offset = position - chunkState.chunk.start
+        if (offset >= chunkState.written) {
+          return null
+        }
+
+        return Location(chunkState.chunkFile, offset, chunkState.written - offset)
+      }
+    }
+  }
+
+  private fun publish() {
+    _state.value = State.Downloading(calculatePrefixLength())
+  }
+
+  private fun calculatePrefixLength(): Long {
+    var length = 0L
+
+    while (true) {
+      val chunkState = chunks[length]
+        ?: return length
+
+      if (!chunkState.completed) {
+        return length + chunkState.written
+      }
+
+      length += chunkState.written
+    }
+  }
+
+  private class ChunkState(
+    val chunk: Chunk,
+    val chunkFile: File
+  ) {
+    var written: Long = 0L
+    var completed: Boolean = false
+  }
+
+  private class Location(
+    val file: File,
+    val offset: Long,
+    val available: Long
+  )
+
+  sealed class State {
+    data class Downloading(val length: Long) : State()
+    data class Completed(val output: File, val length: Long) : State()
+    data class Failed(val error: Throwable) : State()
+  }
+
+  /**
+   * Incrementally reads the prefix into memory. Every [awaitNext] call only reads the bytes that were
+   * added since the previous call and it only returns once the prefix grew enough, so a consumer that
+   * decodes every snapshot before asking for the next one never gets ahead of the download and skips
+   * over the intermediate prefix states it had no time to decode.
+   *
+   * Not thread safe, must be used by one consumer.
+   * */
+  class Reader internal constructor(
+    private val downloadedPrefix: DownloadedPrefix
+  ) {
+    private var buffer = ByteArray(INITIAL_BUFFER_SIZE)
+
+    var length: Int = 0
+      private set
+
+    /**
+     * Suspends until at least [minGrowth] new bytes are readable (or the download ends) and reads
+     * them. Returns null when the download failed or was canceled or when the prefix is larger than
+     * [maxLength].
+     * */
+    suspend fun awaitNext(minGrowth: Long, maxLength: Int = Int.MAX_VALUE): Snapshot? {
+      require(minGrowth > 0) { "Bad minGrowth: $minGrowth" }
+
+      var stalledState: State? = null
+
+      while (true) {
+        val state = downloadedPrefix.state.first { state ->
+          if (state == stalledState) {
+            return@first false
+          }
+
+          when (state) {
+            is State.Downloading -> state.length >= length + minGrowth
+            is State.Completed,
+            is State.Failed -> true
+          }
+        }
+
+        when (state) {
+          is State.Failed -> return null
+          is State.Completed -> {
+            if (state.length > maxLength) {
+              return null
+            }
+
+            readAvailable(maxLength)
+
+            if (length.toLong() != state.length) {
+              // The output file was removed or modified, there is nothing we can do here
+              return null
+            }
+
+            return Snapshot(buffer, length, true)
+          }
+          is State.Downloading -> {
+            if (state.length > maxLength) {
+              return null
+            }
+
+            if (readAvailable(maxLength) > 0) {
+              return Snapshot(buffer, length, false)
+            }
+
+            // Either a chunk was restarted or the chunks are being merged, wait until the state
+            // changes
+            stalledState = state
+          }
+        }
+      }
+    }
+
+    private fun readAvailable(maxLength: Int): Int {
+      val startLength = length
+
+      while (length < maxLength) {
+        val location = downloadedPrefix.locate(length.toLong())
+          ?: break
+
+        val toRead = minOf(location.available, (maxLength - length).toLong()).toInt()
+        ensureCapacity(length + toRead)
+
+        val read = try {
+          readFully(location.file, location.offset, buffer, length, toRead)
+        } catch (error: IOException) {
+          // The chunk file was deleted, the state will change soon
+          0
+        }
+
+        length += read
+
+        if (read < toRead) {
+          // The chunk file was truncated because the chunk was restarted
+          break
+        }
+      }
+
+      return length - startLength
+    }
+
+    private fun ensureCapacity(capacity: Int) {
+      if (buffer.size >= capacity) {
+        return
+      }
+
+      var newSize = buffer.size
+      while (newSize < capacity) {
+        newSize = if (newSize > Int.MAX_VALUE / 2) Int.MAX_VALUE else newSize * 2
+      }
+
+      buffer = buffer.copyOf(newSize)
+    }
+
+    private fun readFully(file: File, offset: Long, to: ByteArray, toOffset: Int, count: Int): Int {
+      RandomAccessFile(file, "r").use { randomAccessFile ->
+        randomAccessFile.seek(offset)
+
+        var total = 0
+        while (total < count) {
+          val read = randomAccessFile.read(to, toOffset + total, count - total)
+          if (read < 0) {
+            break
+          }
+
+          total += read
+        }
+
+        return total
+      }
+    }
+
+    companion object {
+      private const val INITIAL_BUFFER_SIZE = 64 * 1024
+    }
+  }
+
+  /**
+   * The first [length] bytes of [bytes] are the prefix. [bytes] is reused by the following snapshots
+   * (only the bytes after [length] are ever written to) so it must not be modified.
+   * */
+  class Snapshot(
+    val bytes: ByteArray,
+    val length: Int,
+    val isComplete: Boolean
+  )
+
+}
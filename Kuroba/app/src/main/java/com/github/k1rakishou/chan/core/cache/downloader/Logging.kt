@@ -3,21 +3,23 @@ package com.github.k1rakishou.chan.core.cache.downloader
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.core_logger.Logger
 
+// The name of the calling thread is stored in every log record, no need to format it into the message
+
 internal fun log(tag: String, message: String) {
-  Logger.d(tag, String.format("[%s]: %s", Thread.currentThread().name, message))
+  Logger.d(tag, message)
 }
 
 internal fun logError(tag: String, message: String, error: Throwable? = null) {
   if (error == null) {
-    Logger.e(tag, String.format("[%s]: %s", Thread.currentThread().name, message))
+    Logger.e(tag, message)
   } else {
     if (error is FileCacheException.HttpCodeException
       || error is FileCacheException.CancellationException
       || error is FileCacheException.FileNotFoundOnTheServerException
     ) {
-      Logger.e(tag, String.format("[%s]: %s, error=%s", Thread.currentThread().name, message, error.errorMessageOrClassName()))
+      Logger.e(tag, "${message}, error=${error.errorMessageOrClassName()}")
     } else {
-      Logger.e(tag, String.format("[%s]: %s", Thread.currentThread().name, message), error)
+      Logger.e(tag, message, error)
     }
   }
-}
\ No newline at end of file
+}
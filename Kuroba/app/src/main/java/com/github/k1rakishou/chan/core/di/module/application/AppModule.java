@@ -64,6 +64,7 @@ public class AppModule {
     @Provides
     @Singleton
     public AppDependenciesInitializer provideAppDependenciesInitializer(
+            CoroutineScope appScope,
             SiteManager siteManager,
             BoardManager boardManager,
             BookmarksManager bookmarksManager,
@@ -78,6 +79,7 @@ public class AppModule {
         Logger.deps("AppDependenciesInitializer");
 
         return new AppDependenciesInitializer(
+                appScope,
                 siteManager,
                 boardManager,
                 bookmarksManager,
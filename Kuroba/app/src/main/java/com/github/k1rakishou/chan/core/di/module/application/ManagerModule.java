@@ -44,6 +44,7 @@ import com.github.k1rakishou.chan.core.loader.impl.PostHighlightFilterLoader;
 import com.github.k1rakishou.chan.core.loader.impl.PrefetchLoader;
 import com.github.k1rakishou.chan.core.loader.impl.ThirdEyeLoader;
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager;
+import com.github.k1rakishou.chan.core.manager.ArchiveHealthManager;
 import com.github.k1rakishou.chan.core.manager.ArchivesManager;
 import com.github.k1rakishou.chan.core.manager.BoardManager;
 import com.github.k1rakishou.chan.core.manager.BookmarksManager;
@@ -93,6 +94,7 @@ import com.github.k1rakishou.chan.features.image_saver.ImageSaverV2ServiceDelega
 import com.github.k1rakishou.chan.features.posting.LastReplyRepository;
 import com.github.k1rakishou.chan.features.posting.PostingServiceDelegate;
 import com.github.k1rakishou.chan.features.posting.solvers.two_captcha.TwoCaptchaSolver;
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex;
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadProgressNotifier;
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingCoordinator;
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate;
@@ -114,6 +116,7 @@ import com.github.k1rakishou.model.repository.ChanThreadViewableInfoRepository;
 import com.github.k1rakishou.model.repository.CompositeCatalogRepository;
 import com.github.k1rakishou.model.repository.HistoryNavigationRepository;
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository;
+import com.github.k1rakishou.model.repository.ImageSaverFileHashRepository;
 import com.github.k1rakishou.model.repository.SeenPostRepository;
 import com.github.k1rakishou.model.repository.SiteRepository;
 import com.github.k1rakishou.model.repository.ThreadBookmarkGroupRepository;
@@ -227,6 +230,13 @@ public class ManagerModule {
         );
     }
 
+    @Provides
+    @Singleton
+    public ArchiveHealthManager provideArchiveHealthManager() {
+        Logger.deps("ArchiveHealthManager");
+        return new ArchiveHealthManager();
+    }
+
     @Provides
     @Singleton
     public ReportManager provideReportManager(
@@ -297,6 +307,7 @@ public class ManagerModule {
     @Singleton
     public SeenPostsManager provideSeenPostsManager(
             CoroutineScope appScope,
+            ApplicationVisibilityManager applicationVisibilityManager,
             ChanThreadsCache chanThreadsCache,
             ChanCatalogSnapshotCache chanCatalogSnapshotCache,
             SeenPostRepository seenPostRepository
@@ -305,6 +316,7 @@ public class ManagerModule {
         return new SeenPostsManager(
                 appScope,
                 ChanSettings.verboseLogs.get(),
+                applicationVisibilityManager,
                 chanThreadsCache,
                 chanCatalogSnapshotCache,
                 seenPostRepository
@@ -743,6 +755,7 @@ public class ManagerModule {
             SiteResolver siteResolver,
             ChanPostImageRepository chanPostImageRepository,
             ImageDownloadRequestRepository imageDownloadRequestRepository,
+            ImageSaverFileHashRepository imageSaverFileHashRepository,
             ChanThreadManager chanThreadManager,
             ThreadDownloadManager threadDownloadManager
     ) {
@@ -758,6 +771,7 @@ public class ManagerModule {
                 siteResolver,
                 chanPostImageRepository,
                 imageDownloadRequestRepository,
+                imageSaverFileHashRepository,
                 chanThreadManager,
                 threadDownloadManager
         );
@@ -819,7 +833,8 @@ public class ManagerModule {
             CoroutineScope appScope,
             Lazy<ThreadDownloaderFileManagerWrapper> threadDownloaderFileManagerWrapper,
             Lazy<ThreadDownloadRepository> threadDownloadRepository,
-            Lazy<ChanPostRepository> chanPostRepository
+            Lazy<ChanPostRepository> chanPostRepository,
+            ThreadDownloadManifestIndex threadDownloadManifestIndex
     ) {
         Logger.deps("ThreadDownloadManager");
         return new ThreadDownloadManager(
@@ -827,7 +842,21 @@ public class ManagerModule {
                 appScope,
                 threadDownloaderFileManagerWrapper,
                 threadDownloadRepository,
-                chanPostRepository
+                chanPostRepository,
+                threadDownloadManifestIndex
+        );
+    }
+
+    @Singleton
+    @Provides
+    public ThreadDownloadManifestIndex provideThreadDownloadManifestIndex(
+            CoroutineScope appScope,
+            AppConstants appConstants
+    ) {
+        Logger.deps("ThreadDownloadManifestIndex");
+        return new ThreadDownloadManifestIndex(
+                appScope,
+                appConstants::getThreadDownloaderCacheDir
         );
     }
 
@@ -860,7 +889,8 @@ public class ManagerModule {
             ChanPostImageRepository chanPostImageRepository,
             ThreadDownloaderFileManagerWrapper threadDownloaderFileManagerWrapper,
             ThreadDownloadProgressNotifier threadDownloadProgressNotifier,
-            ThreadDownloaderPersistPostsInDatabaseUseCase threadDownloaderPersistPostsInDatabaseUseCase
+            ThreadDownloaderPersistPostsInDatabaseUseCase threadDownloaderPersistPostsInDatabaseUseCase,
+            ThreadDownloadManifestIndex threadDownloadManifestIndex
     ) {
         Logger.deps("ThreadDownloadingDelegate");
         return new ThreadDownloadingDelegate(
@@ -873,7 +903,8 @@ public class ManagerModule {
                 chanPostImageRepository,
                 threadDownloaderFileManagerWrapper,
                 threadDownloadProgressNotifier,
-                threadDownloaderPersistPostsInDatabaseUseCase
+                threadDownloaderPersistPostsInDatabaseUseCase,
+                threadDownloadManifestIndex
         );
     }
 
@@ -29,7 +29,10 @@ import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.cache.CacheHandler;
 import com.github.k1rakishou.chan.core.cache.FileCacheV2;
 import com.github.k1rakishou.chan.core.helper.ProxyStorage;
+import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager;
 import com.github.k1rakishou.chan.core.manager.FirewallBypassManager;
+import com.github.k1rakishou.chan.core.net.ProxyHealthMonitor;
+import com.github.k1rakishou.chan.core.net.SocketProxyProber;
 import com.github.k1rakishou.chan.core.site.SiteResolver;
 import com.github.k1rakishou.chan.core.site.http.HttpCallManager;
 import com.github.k1rakishou.common.AppConstants;
@@ -75,6 +78,16 @@ public class NetModule {
         );
     }
 
+    @Provides
+    @Singleton
+    public ProxyHealthMonitor provideProxyHealthMonitor(
+            CoroutineScope appScope,
+            ApplicationVisibilityManager applicationVisibilityManager
+    ) {
+        Logger.deps("ProxyHealthMonitor");
+        return new ProxyHealthMonitor(appScope, new SocketProxyProber(), applicationVisibilityManager);
+    }
+
     @Provides
     @Singleton
     public CacheHandler provideCacheHandler(AppConstants appConstants) {
@@ -129,6 +142,7 @@ public class NetModule {
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            ProxyHealthMonitor proxyHealthMonitor,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -140,6 +154,7 @@ public class NetModule {
                 dnsOverHttpsSelectorFactory,
                 okHttpProtocols,
                 proxyStorage,
+                proxyHealthMonitor,
                 httpLoggingInterceptorLazy,
                 siteResolver,
                 firewallBypassManager
@@ -157,6 +172,7 @@ public class NetModule {
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            ProxyHealthMonitor proxyHealthMonitor,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -169,6 +185,7 @@ public class NetModule {
                 dnsOverHttpsSelectorFactory,
                 okHttpProtocols,
                 proxyStorage,
+                proxyHealthMonitor,
                 httpLoggingInterceptorLazy,
                 siteResolver,
                 firewallBypassManager
@@ -185,6 +202,7 @@ public class NetModule {
             DnsOverHttpsSelectorFactory dnsOverHttpsSelectorFactory,
             Chan.OkHttpProtocols okHttpProtocols,
             ProxyStorage proxyStorage,
+            ProxyHealthMonitor proxyHealthMonitor,
             HttpLoggingInterceptorLazy httpLoggingInterceptorLazy,
             SiteResolver siteResolver,
             FirewallBypassManager firewallBypassManager
@@ -196,6 +214,7 @@ public class NetModule {
                 dnsOverHttpsSelectorFactory,
                 okHttpProtocols,
                 proxyStorage,
+                proxyHealthMonitor,
                 httpLoggingInterceptorLazy,
                 siteResolver,
                 firewallBypassManager
@@ -16,6 +16,7 @@ import com.github.k1rakishou.model.repository.CompositeCatalogRepository;
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository;
 import com.github.k1rakishou.model.repository.HistoryNavigationRepository;
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository;
+import com.github.k1rakishou.model.repository.ImageSaverFileHashRepository;
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository;
 import com.github.k1rakishou.model.repository.SeenPostRepository;
 import com.github.k1rakishou.model.repository.SiteRepository;
@@ -194,6 +195,15 @@ public class RoomDatabaseModule {
         return modelComponent.getImageDownloadRequestRepository();
     }
 
+    @Provides
+    @Singleton
+    public ImageSaverFileHashRepository provideImageSaverFileHashRepository(
+            ModelComponent modelComponent
+    ) {
+        Logger.deps("ImageSaverFileHashRepository");
+        return modelComponent.getImageSaverFileHashRepository();
+    }
+
     @Provides
     @Singleton
     public ThreadDownloadRepository provideThreadDownloadRepository(
@@ -9,6 +9,7 @@ import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient;
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier;
 import com.github.k1rakishou.chan.core.helper.FilterEngine;
+import com.github.k1rakishou.chan.core.manager.ArchivesManager;
 import com.github.k1rakishou.chan.core.manager.BoardManager;
 import com.github.k1rakishou.chan.core.manager.BookmarksManager;
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager;
@@ -34,6 +35,7 @@ import com.github.k1rakishou.chan.core.usecase.ExportDownloadedThreadAsHtmlUseCa
 import com.github.k1rakishou.chan.core.usecase.ExportDownloadedThreadMediaUseCase;
 import com.github.k1rakishou.chan.core.usecase.ExportFiltersUseCase;
 import com.github.k1rakishou.chan.core.usecase.ExtractPostMapInfoHolderUseCase;
+import com.github.k1rakishou.chan.core.usecase.FederatedSearchUseCase;
 import com.github.k1rakishou.chan.core.usecase.FetchThreadBookmarkInfoUseCase;
 import com.github.k1rakishou.chan.core.usecase.FilterOutHiddenImagesUseCase;
 import com.github.k1rakishou.chan.core.usecase.GetThreadBookmarkGroupIdsUseCase;
@@ -50,6 +52,7 @@ import com.github.k1rakishou.chan.core.usecase.ThreadDownloaderPersistPostsInDat
 import com.github.k1rakishou.chan.core.usecase.TwoCaptchaCheckBalanceUseCase;
 import com.github.k1rakishou.chan.core.usecase.YandexImageSearchUseCase;
 import com.github.k1rakishou.chan.features.posting.solvers.two_captcha.TwoCaptchaSolver;
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex;
 import com.github.k1rakishou.common.AppConstants;
 import com.github.k1rakishou.core_logger.Logger;
 import com.github.k1rakishou.core_themes.ThemeEngine;
@@ -121,14 +124,16 @@ public class UseCaseModule {
             CoroutineScope appScope,
             Lazy<ReplyParser> replyParser,
             SiteManager siteManager,
-            Lazy<ChanSavedReplyRepository> chanSavedReplyRepository
+            Lazy<ChanSavedReplyRepository> chanSavedReplyRepository,
+            AppConstants appConstants
     ) {
         Logger.deps("ParsePostRepliesUseCase");
         return new ParsePostRepliesUseCase(
                 appScope,
                 replyParser,
                 siteManager,
-                chanSavedReplyRepository
+                chanSavedReplyRepository,
+                appConstants
         );
     }
 
@@ -172,6 +177,21 @@ public class UseCaseModule {
         );
     }
 
+    @Provides
+    @Singleton
+    public FederatedSearchUseCase provideFederatedSearchUseCase(
+            SiteManager siteManager,
+            ArchivesManager archivesManager,
+            GlobalSearchUseCase globalSearchUseCase
+    ) {
+        Logger.deps("FederatedSearchUseCase");
+        return new FederatedSearchUseCase(
+                siteManager,
+                archivesManager,
+                globalSearchUseCase
+        );
+    }
+
     @Provides
     @Singleton
     public FilterOutHiddenImagesUseCase provideFilterOutHiddenImagesUseCase(
@@ -225,14 +245,16 @@ public class UseCaseModule {
             Context appContext,
             AppConstants appConstants,
             DatabaseMetaRepository databaseMetaRepository,
-            FileManager fileManager
+            FileManager fileManager,
+            Moshi moshi
     ) {
         Logger.deps("ExportBackupFileUseCase");
         return new ExportBackupFileUseCase(
                 appContext,
                 appConstants,
                 databaseMetaRepository,
-                fileManager
+                fileManager,
+                moshi
         );
     }
 
@@ -241,13 +263,15 @@ public class UseCaseModule {
     public ImportBackupFileUseCase provideImportBackupFileUseCase(
             Context appContext,
             AppConstants appConstants,
-            FileManager fileManager
+            FileManager fileManager,
+            ThreadDownloadManifestIndex threadDownloadManifestIndex
     ) {
         Logger.deps("ImportBackupFileUseCase");
         return new ImportBackupFileUseCase(
                 appContext,
                 appConstants,
-                fileManager
+                fileManager,
+                threadDownloadManifestIndex
         );
     }
 
@@ -0,0 +1,111 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+
+/**
+ * Finds the posts of a dead thread that only the archive has (they were deleted before the thread was
+ * last loaded or posted after that) so that they can be added to the cached thread. The archive posts
+ * are converted to posts of the original thread (the post descriptors of the posts, their replies and
+ * their images are moved from the archive site to the original site).
+ * */
+object ArchivePostsMerger {
+
+  /**
+   * Returns the posts of [archivePosts] that [cachedPosts] does not have, converted to the posts of
+   * [originalThreadDescriptor]. The posts older than the last cached post are marked as deleted since
+   * they must have been deleted before the thread was last loaded, the newer ones keep the archive's
+   * deleted flag. Nothing is returned when the cached thread has no original post.
+   * */
+  fun findPostsMissingFromCachedThread(
+    originalThreadDescriptor: ChanDescriptor.ThreadDescriptor,
+    cachedPosts: List<ChanPost>,
+    archivePosts: List<ChanPost>
+  ): List<ChanPost> {
+    if (cachedPosts.none { cachedPost -> cachedPost is ChanOriginalPost }) {
+      return emptyList()
+    }
+
+    val cachedPostNos = cachedPosts.mapTo(HashSet(cachedPosts.size)) { cachedPost ->
+      PostNo(cachedPost.postNo(), cachedPost.postSubNo())
+    }
+
+    val lastCachedPostNo = cachedPosts.maxOf { cachedPost -> cachedPost.postNo() }
+    val missingPosts = mutableListOf<ChanPost>()
+
+    archivePosts.forEach { archivePost ->
+      if (archivePost is ChanOriginalPost || archivePost.postDescriptor.isOP()) {
+        return@forEach
+      }
+
+      if (PostNo(archivePost.postNo(), archivePost.postSubNo()) in cachedPostNos) {
+        return@forEach
+      }
+
+      val deleted = archivePost.isDeleted || archivePost.postNo() < lastCachedPostNo
+      missingPosts += toOriginalThreadPost(originalThreadDescriptor, archivePost, deleted)
+    }
+
+    return missingPosts
+  }
+
+  private fun toOriginalThreadPost(
+    originalThreadDescriptor: ChanDescriptor.ThreadDescriptor,
+    archivePost: ChanPost,
+    deleted: Boolean
+  ): ChanPost {
+    val postDescriptor = PostDescriptor.create(
+      siteName = originalThreadDescriptor.siteName(),
+      boardCode = originalThreadDescriptor.boardCode(),
+      threadNo = originalThreadDescriptor.threadNo,
+      postNo = archivePost.postNo(),
+      postSubNo = archivePost.postSubNo()
+    )
+
+    val originalSiteName = originalThreadDescriptor.siteName()
+
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = postDescriptor,
+      _postImages = archivePost.postImages
+        .map { postImage -> postImage.copyForPost(postDescriptor) }
+        .toMutableList(),
+      postIcons = archivePost.postIcons,
+      repliesTo = archivePost.repliesTo.mapTo(HashSet()) { reply -> toSite(reply, originalSiteName) },
+      timestamp = archivePost.timestamp,
+      postComment = archivePost.postComment.copy(),
+      subject = archivePost.subject,
+      tripcode = archivePost.tripcode,
+      name = archivePost.name,
+      posterId = archivePost.posterId,
+      moderatorCapcode = archivePost.moderatorCapcode,
+      isSavedReply = false,
+      isSage = archivePost.isSage,
+      repliesFrom = archivePost.repliesFromCopy.mapTo(HashSet()) { reply -> toSite(reply, originalSiteName) },
+      deleted = deleted,
+      posterIdColor = archivePost.posterIdColor
+    )
+  }
+
+  private fun toSite(postDescriptor: PostDescriptor, siteName: String): PostDescriptor {
+    if (postDescriptor.siteDescriptor().siteName == siteName) {
+      return postDescriptor
+    }
+
+    return PostDescriptor.create(
+      siteName = siteName,
+      boardCode = postDescriptor.boardDescriptor().boardCode,
+      threadNo = postDescriptor.getThreadNo(),
+      postNo = postDescriptor.postNo,
+      postSubNo = postDescriptor.postSubNo
+    )
+  }
+
+  private data class PostNo(
+    val postNo: Long,
+    val postSubNo: Long
+  )
+
+}
@@ -0,0 +1,175 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.manager.ArchiveHealthManager
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.TimeoutException
+
+/**
+ * Requests a thread that is dead on the original site from several archives at the same time instead of
+ * making the user guess which archive has it.
+ *
+ * The archives are ranked by [ArchiveHealthManager] and the best [maxConcurrentArchives] of them are
+ * raced. Once the first archive returns the thread the rest get [gracePeriodMs] to respond and the
+ * archive that returned the most posts wins (archives often miss some posts or only have the thread
+ * up to the point when they archived it). The archives that did not respond in time are cancelled. When
+ * none of the raced archives has the thread the next best ones are raced. Every response (and every
+ * archive that turned out to be too slow) is recorded in [ArchiveHealthManager].
+ * */
+class ArchiveThreadRacer(
+  private val archiveHealthManager: ArchiveHealthManager,
+  private val maxConcurrentArchives: Int = DEFAULT_MAX_CONCURRENT_ARCHIVES,
+  private val gracePeriodMs: Long = DEFAULT_GRACE_PERIOD_MS,
+  private val archiveTimeoutMs: Long = DEFAULT_ARCHIVE_TIMEOUT_MS,
+  private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+
+  suspend fun race(
+    archiveDescriptors: List<ArchiveDescriptor>,
+    boardCode: String,
+    loadThread: suspend (ArchiveDescriptor) -> Response
+  ): RaceResult {
+    val rankedArchives = archiveHealthManager.rank(archiveDescriptors, boardCode)
+    val allResponses = LinkedHashMap<ArchiveDescriptor, Response>()
+
+    for (archives in rankedArchives.chunked(maxConcurrentArchives)) {
+      val responses = raceArchives(archives, boardCode, loadThread)
+      allResponses.putAll(responses)
+
+      val winner = pickWinner(responses)
+      if (winner != null) {
+        return RaceResult.Winner(
+          archiveDescriptor = winner.first,
+          postsCount = winner.second.postsCount,
+          responses = allResponses
+        )
+      }
+    }
+
+    return RaceResult.NoWinner(allResponses)
+  }
+
+  private suspend fun raceArchives(
+    archives: List<ArchiveDescriptor>,
+    boardCode: String,
+    loadThread: suspend (ArchiveDescriptor) -> Response
+  ): Map<ArchiveDescriptor, Response> {
+    return coroutineScope {
+      val startTime = clock()
+      val responsesChannel = Channel<Pair<ArchiveDescriptor, Response>>(Channel.UNLIMITED)
+
+      val jobs = archives.map { archiveDescriptor ->
+        launch {
+          val response = try {
+            withTimeoutOrNull(archiveTimeoutMs) { loadThread(archiveDescriptor) }
+              ?: Response.Error(TimeoutException("${archiveDescriptor.domain} timed out after ${archiveTimeoutMs}ms"))
+          } catch (error: CancellationException) {
+            throw error
+          } catch (error: Throwable) {
+            Response.Error(error)
+          }
+
+          responsesChannel.send(archiveDescriptor to response)
+        }
+      }
+
+      // Ordered by the time of arrival
+      val responses = LinkedHashMap<ArchiveDescriptor, Response>()
+      var deadline: Long? = null
+
+      while (responses.size < archives.size) {
+        val received = if (deadline == null) {
+          responsesChannel.receive()
+        } else {
+          withTimeoutOrNull(deadline - clock()) { responsesChannel.receive() }
+        }
+
+        if (received == null) {
+          break
+        }
+
+        val (archiveDescriptor, response) = received
+        responses[archiveDescriptor] = response
+
+        archiveHealthManager.onArchiveResponse(
+          archiveDescriptor = archiveDescriptor,
+          boardCode = boardCode,
+          outcome = response.toOutcome(),
+          latencyMs = clock() - startTime
+        )
+
+        if (deadline == null && response is Response.Found) {
+          deadline = clock() + gracePeriodMs
+        }
+      }
+
+      jobs.forEach { job -> job.cancel() }
+
+      archives.forEach { archiveDescriptor ->
+        if (archiveDescriptor !in responses) {
+          archiveHealthManager.onArchiveResponse(
+            archiveDescriptor = archiveDescriptor,
+            boardCode = boardCode,
+            outcome = ArchiveHealthManager.Outcome.TooSlow,
+            latencyMs = clock() - startTime
+          )
+        }
+      }
+
+      return@coroutineScope responses
+    }
+  }
+
+  private fun pickWinner(responses: Map<ArchiveDescriptor, Response>): Pair<ArchiveDescriptor, Response.Found>? {
+    var winner: Pair<ArchiveDescriptor, Response.Found>? = null
+
+    // The first archive to respond wins the ties
+    responses.forEach { (archiveDescriptor, response) ->
+      if (response !is Response.Found) {
+        return@forEach
+      }
+
+      if (winner == null || response.postsCount > winner!!.second.postsCount) {
+        winner = archiveDescriptor to response
+      }
+    }
+
+    return winner
+  }
+
+  private fun Response.toOutcome(): ArchiveHealthManager.Outcome {
+    return when (this) {
+      is Response.Found -> ArchiveHealthManager.Outcome.Found
+      Response.NotFound -> ArchiveHealthManager.Outcome.NotFound
+      is Response.Error -> ArchiveHealthManager.Outcome.Error
+    }
+  }
+
+  sealed class Response {
+    data class Found(val postsCount: Int) : Response()
+    object NotFound : Response()
+    data class Error(val error: Throwable) : Response()
+  }
+
+  sealed class RaceResult {
+    data class Winner(
+      val archiveDescriptor: ArchiveDescriptor,
+      val postsCount: Int,
+      val responses: Map<ArchiveDescriptor, Response>
+    ) : RaceResult()
+
+    data class NoWinner(
+      val responses: Map<ArchiveDescriptor, Response>
+    ) : RaceResult()
+  }
+
+  companion object {
+    const val DEFAULT_MAX_CONCURRENT_ARCHIVES = 3
+    const val DEFAULT_GRACE_PERIOD_MS = 2000L
+    const val DEFAULT_ARCHIVE_TIMEOUT_MS = 20_000L
+  }
+}
@@ -0,0 +1,224 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers, per board, which catalog threads were already checked by the filter watcher and did not
+ * match any of the watch filters. A thread is only parsed and matched again when it's new, when its
+ * OP was changed (detected by the hash of its raw subject and comment) or when the set of watch
+ * filters that apply to the board was changed (detected by the filter set fingerprint).
+ *
+ * Only non-matching threads are remembered: matched threads are always processed again because the
+ * filter watcher needs their parsed comment to create or update the bookmarks, and there are very few
+ * of them anyway.
+ * */
+class FilterWatcherLedger(
+  private val ledgerFile: File
+) {
+  private val boardLedgers = mutableMapOf<String, BoardLedger>()
+  private var loaded = false
+
+  @Synchronized
+  fun startRun(boardDescriptor: BoardDescriptor, filterSetFingerprint: Long): BoardRun {
+    ensureLoaded()
+
+    val boardKey = boardKey(boardDescriptor)
+    val boardLedger = boardLedgers[boardKey]
+      ?.takeIf { boardLedger -> boardLedger.filterSetFingerprint == filterSetFingerprint }
+
+    return BoardRun(
+      boardKey = boardKey,
+      filterSetFingerprint = filterSetFingerprint,
+      previousNonMatches = boardLedger?.nonMatchingThreads ?: emptyMap()
+    )
+  }
+
+  /**
+   * Replaces the ledgers of the boards of [boardRuns] with the threads that were seen during the runs
+   * (threads that are not in the catalog anymore are forgotten) and writes everything to disk.
+   * */
+  @Synchronized
+  @Throws(IOException::class)
+  fun commit(boardRuns: Collection<BoardRun>) {
+    ensureLoaded()
+
+    boardRuns.forEach { boardRun ->
+      boardLedgers[boardRun.boardKey] = BoardLedger(
+        filterSetFingerprint = boardRun.filterSetFingerprint,
+        nonMatchingThreads = HashMap(boardRun.currentNonMatches)
+      )
+    }
+
+    write()
+  }
+
+  @Synchronized
+  fun clear() {
+    boardLedgers.clear()
+    loaded = true
+
+    if (ledgerFile.exists()) {
+      ledgerFile.delete()
+    }
+  }
+
+  private fun ensureLoaded() {
+    if (loaded) {
+      return
+    }
+
+    loaded = true
+
+    try {
+      read()
+    } catch (error: IOException) {
+      // The ledger is just an optimization, start over
+      boardLedgers.clear()
+    }
+  }
+
+  private fun read() {
+    if (!ledgerFile.exists()) {
+      return
+    }
+
+    DataInputStream(ledgerFile.inputStream().buffered()).use { inputStream ->
+      val version = inputStream.readInt()
+      if (version != LEDGER_VERSION) {
+        return
+      }
+
+      val boardsCount = inputStream.readInt()
+
+      repeat(boardsCount) {
+        val boardKey = inputStream.readUTF()
+        val filterSetFingerprint = inputStream.readLong()
+        val threadsCount = inputStream.readInt()
+        if (threadsCount < 0) {
+          throw IOException("Bad threadsCount: ${threadsCount}")
+        }
+
+        val nonMatchingThreads = HashMap<Long, Long>()
+
+        repeat(threadsCount) {
+          val threadNo = inputStream.readLong()
+          val contentHash = inputStream.readLong()
+
+          nonMatchingThreads[threadNo] = contentHash
+        }
+
+        boardLedgers[boardKey] = BoardLedger(filterSetFingerprint, nonMatchingThreads)
+      }
+    }
+  }
+
+  private fun write() {
+    val tmpFile = File(ledgerFile.parentFile, ledgerFile.name + ".tmp")
+
+    DataOutputStream(tmpFile.outputStream().buffered()).use { outputStream ->
+      outputStream.writeInt(LEDGER_VERSION)
+      outputStream.writeInt(boardLedgers.size)
+
+      boardLedgers.forEach { (boardKey, boardLedger) ->
+        outputStream.writeUTF(boardKey)
+        outputStream.writeLong(boardLedger.filterSetFingerprint)
+        outputStream.writeInt(boardLedger.nonMatchingThreads.size)
+
+        boardLedger.nonMatchingThreads.forEach { (threadNo, contentHash) ->
+          outputStream.writeLong(threadNo)
+          outputStream.writeLong(contentHash)
+        }
+      }
+    }
+
+    if (!tmpFile.renameTo(ledgerFile)) {
+      tmpFile.delete()
+      throw IOException("Failed to rename '${tmpFile.absolutePath}' to '${ledgerFile.absolutePath}'")
+    }
+  }
+
+  private class BoardLedger(
+    val filterSetFingerprint: Long,
+    val nonMatchingThreads: Map<Long, Long>
+  )
+
+  class BoardRun internal constructor(
+    internal val boardKey: String,
+    internal val filterSetFingerprint: Long,
+    private val previousNonMatches: Map<Long, Long>
+  ) {
+    internal val currentNonMatches = ConcurrentHashMap<Long, Long>()
+
+    /**
+     * Returns true if the thread was checked before with the same content and the same filters and
+     * it didn't match anything, so it can be skipped. Thread-safe.
+     * */
+    fun isKnownNonMatch(threadNo: Long, contentHash: Long): Boolean {
+      if (previousNonMatches[threadNo] != contentHash) {
+        return false
+      }
+
+      currentNonMatches[threadNo] = contentHash
+      return true
+    }
+
+    fun recordNonMatch(threadNo: Long, contentHash: Long) {
+      currentNonMatches[threadNo] = contentHash
+    }
+  }
+
+  companion object {
+    private const val LEDGER_VERSION = 1
+
+    private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+    private const val FNV_PRIME = 0x100000001b3L
+
+    fun boardKey(boardDescriptor: BoardDescriptor): String {
+      return "${boardDescriptor.siteName()}/${boardDescriptor.boardCode}"
+    }
+
+    /**
+     * Fingerprint of everything that affects which of the [watchFilters] match a thread of a board
+     * (and in what order they are checked).
+     * */
+    fun filterSetFingerprint(boardDescriptor: BoardDescriptor, watchFilters: List<ChanFilter>): Long {
+      var hash = FNV_OFFSET_BASIS
+
+      watchFilters.forEach { watchFilter ->
+        if (!watchFilter.matchesBoard(boardDescriptor)) {
+          return@forEach
+        }
+
+        hash = fnv1a(hash, watchFilter.getDatabaseId().toString())
+        hash = fnv1a(hash, watchFilter.type.toString())
+        hash = fnv1a(hash, watchFilter.pattern ?: "")
+      }
+
+      return hash
+    }
+
+    fun contentHash(rawSubject: String, rawComment: String): Long {
+      return fnv1a(fnv1a(FNV_OFFSET_BASIS, rawSubject), rawComment)
+    }
+
+    private fun fnv1a(initial: Long, value: String): Long {
+      var hash = initial
+
+      for (char in value) {
+        hash = (hash xor (char.code.toLong() and 0xFF)) * FNV_PRIME
+        hash = (hash xor (char.code.toLong() ushr 8)) * FNV_PRIME
+      }
+
+      // Separator so that ("ab", "c") and ("a", "bc") hash differently
+      hash = (hash xor 0xFFL) * FNV_PRIME
+      return hash
+    }
+  }
+
+}
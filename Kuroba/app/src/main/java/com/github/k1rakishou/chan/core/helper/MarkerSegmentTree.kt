@@ -0,0 +1,255 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.usecase.PostMapInfoEntry
+
+/**
+ * Segment tree over post positions where every position is either unmarked or marked with a color.
+ * Every node knows how many of its positions are marked and whether all of them are marked with the
+ * same color which allows to jump over whole runs of marked (or unmarked) positions in O(log n).
+ *
+ * Not thread-safe.
+ * */
+internal class MarkerSegmentTree {
+  private var capacity = 1
+  private var markedCounts = IntArray(2)
+  private var uniformColors = IntArray(2)
+  // All positions of the node are marked with the same color (uniformColors[node])
+  private var uniform = BooleanArray(2)
+
+  var size = 0
+    private set
+
+  val markedCount: Int
+    get() = markedCounts[1]
+
+  fun resize(newSize: Int) {
+    require(newSize >= 0) { "Bad newSize: ${newSize}" }
+
+    if (newSize < size) {
+      for (position in newSize until size) {
+        clear(position)
+      }
+    } else if (newSize > capacity) {
+      grow(newSize)
+    }
+
+    size = newSize
+  }
+
+  fun isMarked(position: Int): Boolean {
+    return markedCounts[leaf(position)] != 0
+  }
+
+  fun colorAt(position: Int): Int {
+    return uniformColors[leaf(position)]
+  }
+
+  /**
+   * Returns false when the position was already marked with this color.
+   * */
+  fun mark(position: Int, color: Int): Boolean {
+    val leaf = leaf(position)
+    if (markedCounts[leaf] != 0 && uniformColors[leaf] == color) {
+      return false
+    }
+
+    markedCounts[leaf] = 1
+    uniformColors[leaf] = color
+    uniform[leaf] = true
+
+    pullUp(leaf)
+    return true
+  }
+
+  /**
+   * Returns false when the position was not marked.
+   * */
+  fun clear(position: Int): Boolean {
+    val leaf = leaf(position)
+    if (markedCounts[leaf] == 0) {
+      return false
+    }
+
+    markedCounts[leaf] = 0
+    uniformColors[leaf] = 0
+    uniform[leaf] = false
+
+    pullUp(leaf)
+    return true
+  }
+
+  /**
+   * First marked position that is not less than [from] or -1.
+   * */
+  fun nextMarked(from: Int): Int {
+    if (from >= size) {
+      return -1
+    }
+
+    return findMarked(1, 0, capacity, from)
+  }
+
+  /**
+   * First position that is not less than [from] and is not marked with [color] or [size].
+   * */
+  fun nextBreak(from: Int, color: Int): Int {
+    if (from >= size) {
+      return size
+    }
+
+    val position = findBreak(1, 0, capacity, from, color)
+    if (position < 0) {
+      return size
+    }
+
+    return minOf(position, size)
+  }
+
+  /**
+   * Marked positions as ranges for a scrollbar that can show [resolution] separate positions.
+   *
+   * When [resolution] is not less than [size] every run of the positions marked with the same color
+   * becomes a range. Otherwise the positions are split into [resolution] buckets, each bucket with at
+   * least one marked position gets the color of its first marked position and the neighbouring
+   * buckets with the same color are merged together. This way there are never more than [resolution]
+   * ranges and each one of them takes O(log n) to find.
+   * */
+  fun ranges(resolution: Int): List<PostMapInfoEntry> {
+    require(resolution > 0) { "Bad resolution: ${resolution}" }
+
+    if (size == 0 || markedCount == 0) {
+      return emptyList()
+    }
+
+    val exact = resolution >= size
+    val ranges = ArrayList<PostMapInfoEntry>()
+    var position = 0
+
+    while (true) {
+      val runStart = nextMarked(position)
+      if (runStart < 0) {
+        break
+      }
+
+      val color = colorAt(runStart)
+      val runEnd = nextBreak(runStart, color)
+
+      if (exact) {
+        ranges += PostMapInfoEntry(IntRange(runStart, runEnd - 1), color)
+        position = runEnd
+        continue
+      }
+
+      val rangeStart = bucketStart(bucketOf(runStart, resolution), resolution)
+      val rangeEnd = bucketStart(bucketOf(runEnd - 1, resolution) + 1, resolution)
+      val prevRange = ranges.lastOrNull()
+
+      if (prevRange != null && prevRange.range.last == rangeStart - 1 && prevRange.color == color) {
+        ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.range.first, rangeEnd - 1), color)
+      } else {
+        ranges += PostMapInfoEntry(IntRange(rangeStart, rangeEnd - 1), color)
+      }
+
+      position = rangeEnd
+    }
+
+    return ranges
+  }
+
+  private fun bucketOf(position: Int, resolution: Int): Int {
+    return (position.toLong() * resolution / size).toInt()
+  }
+
+  private fun bucketStart(bucket: Int, resolution: Int): Int {
+    return ((bucket.toLong() * size + resolution - 1) / resolution).toInt()
+  }
+
+  private fun findMarked(node: Int, nodeStart: Int, nodeEnd: Int, from: Int): Int {
+    if (nodeEnd <= from || markedCounts[node] == 0) {
+      return -1
+    }
+
+    if (node >= capacity) {
+      return nodeStart
+    }
+
+    val mid = (nodeStart + nodeEnd) ushr 1
+
+    val position = findMarked(node * 2, nodeStart, mid, from)
+    if (position >= 0) {
+      return position
+    }
+
+    return findMarked(node * 2 + 1, mid, nodeEnd, from)
+  }
+
+  private fun findBreak(node: Int, nodeStart: Int, nodeEnd: Int, from: Int, color: Int): Int {
+    if (nodeEnd <= from || (uniform[node] && uniformColors[node] == color)) {
+      return -1
+    }
+
+    if (node >= capacity) {
+      return nodeStart
+    }
+
+    val mid = (nodeStart + nodeEnd) ushr 1
+
+    val position = findBreak(node * 2, nodeStart, mid, from, color)
+    if (position >= 0) {
+      return position
+    }
+
+    return findBreak(node * 2 + 1, mid, nodeEnd, from, color)
+  }
+
+  private fun leaf(position: Int): Int {
+    if (position < 0 || position >= size) {
+      throw IndexOutOfBoundsException("position=${position}, size=${size}")
+    }
+
+    return capacity + position
+  }
+
+  private fun pullUp(leaf: Int) {
+    var node = leaf / 2
+
+    while (node >= 1) {
+      pull(node)
+      node /= 2
+    }
+  }
+
+  private fun pull(node: Int) {
+    val left = node * 2
+    val right = left + 1
+
+    markedCounts[node] = markedCounts[left] + markedCounts[right]
+    uniform[node] = uniform[left] && uniform[right] && uniformColors[left] == uniformColors[right]
+    uniformColors[node] = if (uniform[node]) uniformColors[left] else 0
+  }
+
+  private fun grow(newSize: Int) {
+    var newCapacity = capacity
+    while (newCapacity < newSize) {
+      newCapacity *= 2
+    }
+
+    val newMarkedCounts = IntArray(newCapacity * 2)
+    val newUniformColors = IntArray(newCapacity * 2)
+    val newUniform = BooleanArray(newCapacity * 2)
+
+    System.arraycopy(markedCounts, capacity, newMarkedCounts, newCapacity, size)
+    System.arraycopy(uniformColors, capacity, newUniformColors, newCapacity, size)
+    System.arraycopy(uniform, capacity, newUniform, newCapacity, size)
+
+    capacity = newCapacity
+    markedCounts = newMarkedCounts
+    uniformColors = newUniformColors
+    uniform = newUniform
+
+    for (node in capacity - 1 downTo 1) {
+      pull(node)
+    }
+  }
+
+}
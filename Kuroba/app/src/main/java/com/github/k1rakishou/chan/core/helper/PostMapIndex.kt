@@ -0,0 +1,214 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.usecase.PostMapInfoEntry
+import com.github.k1rakishou.chan.core.usecase.PostMapInfoHolder
+
+/**
+ * Positions of the scrollbar minimap markers of one post list. Every marker type has its own
+ * [MarkerSegmentTree] and the marker ranges are extracted from it for the resolution of the scrollbar
+ * in O(log n) per range.
+ *
+ * Every update of the list is first compared with the previous one ([diff]) by the keys of the posts
+ * ([K], the post descriptors). The markers of the posts that were already in the list are carried
+ * over so only the posts in [Diff.changedRanges] (new posts, usually just the ones appended at the end
+ * of the thread) have to be evaluated and only the positions that actually changed are updated in the
+ * trees ([update]).
+ *
+ * Thread-safe.
+ * */
+class PostMapIndex<K : Any> {
+  private val markerTrees = Array(Marker.values().size) { MarkerSegmentTree() }
+
+  // The list as of the previous update
+  private var postKeys: List<K> = emptyList()
+  private var markerBits = IntArray(0)
+  private var highlightColors = IntArray(0)
+  private var contextKey: Any? = null
+
+  /**
+   * [cheapMarkerBits] has the bits of the [CHEAP_MARKERS] for every post of [postKeys], these only
+   * read a field of the post so they are evaluated for every post on every update. [contextKey] must
+   * change whenever anything else the markers depend on changes (settings, our posts, highlight
+   * filters etc.) in which case every post has to be evaluated again.
+   * */
+  @Synchronized
+  fun diff(postKeys: List<K>, cheapMarkerBits: IntArray, contextKey: Any): Diff<K> {
+    require(cheapMarkerBits.size >= postKeys.size) { "cheapMarkerBits.size=${cheapMarkerBits.size}, postsCount=${postKeys.size}" }
+
+    val postsCount = postKeys.size
+    val newMarkerBits = IntArray(postsCount) { position -> cheapMarkerBits[position] and CHEAP_MARKERS_MASK }
+    val newHighlightColors = IntArray(postsCount)
+
+    if (contextKey != this.contextKey) {
+      val changedRanges = if (postsCount > 0) listOf(0 until postsCount) else emptyList()
+      return Diff(postKeys, contextKey, newMarkerBits, newHighlightColors, changedRanges, firstMovedPosition = 0)
+    }
+
+    val prevPostKeys = this.postKeys
+    val prevPostsCount = prevPostKeys.size
+    var firstMovedPosition = 0
+
+    while (firstMovedPosition < minOf(prevPostsCount, postsCount) && prevPostKeys[firstMovedPosition] == postKeys[firstMovedPosition]) {
+      carryOver(firstMovedPosition, firstMovedPosition, newMarkerBits, newHighlightColors)
+      ++firstMovedPosition
+    }
+
+    // Posts were removed from the list (or hidden) or inserted in the middle, find where the rest went
+    val prevPositions = if (firstMovedPosition < prevPostsCount && firstMovedPosition < postsCount) {
+      val positions = HashMap<K, Int>(prevPostsCount - firstMovedPosition)
+
+      for (prevPosition in firstMovedPosition until prevPostsCount) {
+        positions[prevPostKeys[prevPosition]] = prevPosition
+      }
+
+      positions
+    } else {
+      null
+    }
+
+    val changedRanges = ArrayList<IntRange>()
+    var changedRangeStart = -1
+
+    for (position in firstMovedPosition until postsCount) {
+      val prevPosition = prevPositions?.get(postKeys[position])
+
+      if (prevPosition != null) {
+        carryOver(prevPosition, position, newMarkerBits, newHighlightColors)
+
+        if (changedRangeStart >= 0) {
+          changedRanges += changedRangeStart until position
+          changedRangeStart = -1
+        }
+
+        continue
+      }
+
+      if (changedRangeStart < 0) {
+        changedRangeStart = position
+      }
+    }
+
+    if (changedRangeStart >= 0) {
+      changedRanges += changedRangeStart until postsCount
+    }
+
+    return Diff(postKeys, contextKey, newMarkerBits, newHighlightColors, changedRanges, firstMovedPosition)
+  }
+
+  /**
+   * Applies [diff] once the markers of the posts in [Diff.changedRanges] were set. Returns the amount
+   * of marker positions that had to be updated in the trees.
+   * */
+  @Synchronized
+  fun update(diff: Diff<K>): Int {
+    val postsCount = diff.postKeys.size
+    val prevPostsCount = postKeys.size
+    var updatedPositions = 0
+
+    markerTrees.forEach { markerTree -> markerTree.resize(postsCount) }
+
+    // Same posts at the same positions, only the cheap markers may have changed. Compared against the
+    // current state rather than the state the diff was made against so that an update made in the
+    // meantime doesn't leave stale positions behind.
+    for (position in 0 until minOf(diff.firstMovedPosition, prevPostsCount, postsCount)) {
+      if (diff.markerBits[position] == markerBits[position] && diff.highlightColors[position] == highlightColors[position]) {
+        continue
+      }
+
+      updatedPositions += updatePosition(position, diff.markerBits[position], diff.highlightColors[position])
+    }
+
+    for (position in minOf(diff.firstMovedPosition, prevPostsCount) until postsCount) {
+      updatedPositions += updatePosition(position, diff.markerBits[position], diff.highlightColors[position])
+    }
+
+    postKeys = diff.postKeys
+    markerBits = diff.markerBits
+    highlightColors = diff.highlightColors
+    contextKey = diff.contextKey
+
+    return updatedPositions
+  }
+
+  private fun carryOver(prevPosition: Int, position: Int, newMarkerBits: IntArray, newHighlightColors: IntArray) {
+    newMarkerBits[position] = newMarkerBits[position] or (markerBits[prevPosition] and CHEAP_MARKERS_MASK.inv())
+    newHighlightColors[position] = highlightColors[prevPosition]
+  }
+
+  private fun updatePosition(position: Int, bits: Int, highlightColor: Int): Int {
+    var updatedPositions = 0
+
+    for (marker in Marker.values()) {
+      val markerTree = markerTrees[marker.ordinal]
+
+      val updated = if (bits and marker.bit != 0) {
+        val color = if (marker == Marker.FilterHighlight) highlightColor else 0
+        markerTree.mark(position, color)
+      } else {
+        markerTree.clear(position)
+      }
+
+      if (updated) {
+        ++updatedPositions
+      }
+    }
+
+    return updatedPositions
+  }
+
+  @Synchronized
+  fun ranges(marker: Marker, resolution: Int): List<PostMapInfoEntry> {
+    return markerTrees[marker.ordinal].ranges(resolution)
+  }
+
+  @Synchronized
+  fun toPostMapInfoHolder(resolution: Int): PostMapInfoHolder {
+    return PostMapInfoHolder(
+      myPostsPositionRanges = ranges(Marker.MyPost, resolution),
+      replyPositionRanges = ranges(Marker.ReplyToMyPost, resolution),
+      crossThreadQuotePositionRanges = ranges(Marker.CrossThreadQuote, resolution),
+      postFilterHighlightRanges = ranges(Marker.FilterHighlight, resolution),
+      deletedPostsPositionRanges = ranges(Marker.DeletedPost, resolution),
+      hotPostsPositionRanges = ranges(Marker.HotPost, resolution),
+      thirdEyePostsPositionRanges = ranges(Marker.ThirdEyePost, resolution)
+    )
+  }
+
+  enum class Marker {
+    MyPost,
+    ReplyToMyPost,
+    CrossThreadQuote,
+    FilterHighlight,
+    DeletedPost,
+    HotPost,
+    ThirdEyePost;
+
+    val bit: Int
+      get() = 1 shl ordinal
+  }
+
+  class Diff<K : Any> internal constructor(
+    val postKeys: List<K>,
+    internal val contextKey: Any,
+    // The markers of the posts outside of changedRanges are already set
+    val markerBits: IntArray,
+    val highlightColors: IntArray,
+    // Positions of the posts that need to be evaluated
+    val changedRanges: List<IntRange>,
+    // Positions starting from this one hold different posts than before
+    internal val firstMovedPosition: Int
+  ) {
+
+    fun mark(position: Int, marker: Marker) {
+      markerBits[position] = markerBits[position] or marker.bit
+    }
+
+  }
+
+  companion object {
+    val CHEAP_MARKERS = setOf(Marker.DeletedPost, Marker.HotPost)
+
+    private val CHEAP_MARKERS_MASK = CHEAP_MARKERS.fold(0) { mask, marker -> mask or marker.bit }
+  }
+
+}
@@ -0,0 +1,194 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.site.parser.ReplyParser
+import com.github.k1rakishou.chan.core.usecase.ReplyToMyPost
+import com.github.k1rakishou.common.mutableMapWithCap
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkInfoPostObject
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+
+/**
+ * Finds the posts of a thread that reply to our posts. Only the posts after the thread's watermark
+ * (see [PostRepliesWatermarks]) are looked at and the quote patterns are only run over the raw
+ * comments that contain the number of at least one of our posts, which is checked with a single pass
+ * over the comment for all of our post numbers at once.
+ * */
+class PostRepliesDetector(
+  private val extractCommentReplies: (CharSequence) -> List<ReplyParser.ExtractedQuote>
+) {
+
+  fun detect(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    posts: List<ThreadBookmarkInfoPostObject>,
+    myPostNos: Set<Long>,
+    scanAfterPostNo: Long
+  ): DetectionResult {
+    if (myPostNos.isEmpty()) {
+      return DetectionResult(emptyMap(), scannedPosts = 0, parsedPosts = 0)
+    }
+
+    val postNoMatcher = PostNoMatcher(myPostNos)
+
+    // Key - postNo of our post.
+    // Value - replies to that post (in the order of the thread, without duplicates).
+    val repliesToMe = mutableMapWithCap<Long, LinkedHashMap<Long, ReplyToMyPost>>(myPostNos.size)
+    var scannedPosts = 0
+    var parsedPosts = 0
+
+    for (post in posts) {
+      val postNo = post.postNo()
+      if (postNo <= scanAfterPostNo) {
+        continue
+      }
+
+      ++scannedPosts
+
+      val comment = post.comment()
+      if (!postNoMatcher.containsAny(comment)) {
+        continue
+      }
+
+      ++parsedPosts
+
+      extractCommentReplies(comment).forEach { extractedQuote ->
+        val quotedPostNo = when (extractedQuote) {
+          is ReplyParser.ExtractedQuote.FullQuote -> {
+            val isQuotedPostInTheSameThread = (extractedQuote.boardCode == threadDescriptor.boardCode()
+              && extractedQuote.threadId == threadDescriptor.threadNo)
+
+            if (!isQuotedPostInTheSameThread) {
+              // Cross-thread reply or something like that, we don't support it since it shouldn't
+              // be used normally. The only use case that come to mind is when there are two
+              // different threads bookmarked and someone from one bookmarked thread replied to our
+              // post in another bookmarked thread. Normally, nobody would expect for this to work
+              // and that's why we don't support it.
+              return@forEach
+            }
+
+            extractedQuote.postId
+          }
+          is ReplyParser.ExtractedQuote.Quote -> extractedQuote.postId
+        }
+
+        if (quotedPostNo !in myPostNos) {
+          return@forEach
+        }
+
+        val replies = repliesToMe.getOrPut(quotedPostNo) { LinkedHashMap() }
+        if (!replies.containsKey(postNo)) {
+          replies[postNo] = ReplyToMyPost(PostDescriptor.create(threadDescriptor, postNo), comment)
+        }
+      }
+    }
+
+    return DetectionResult(
+      repliesToMe = repliesToMe.mapValues { (_, replies) -> replies.values.toList() },
+      scannedPosts = scannedPosts,
+      parsedPosts = parsedPosts
+    )
+  }
+
+  class DetectionResult(
+    // Key - postNo of our post, value - replies to it
+    val repliesToMe: Map<Long, List<ReplyToMyPost>>,
+    // Posts after the watermark
+    val scannedPosts: Int,
+    // Posts that contained the number of one of our posts and had to be run through the quote patterns
+    val parsedPosts: Int
+  )
+
+  /**
+   * Aho-Corasick automaton over the decimal digits of the post numbers. Since the alphabet only has
+   * ten symbols the transitions are stored as a dense table and any other character leads back to the
+   * root.
+   * */
+  internal class PostNoMatcher(postNos: Collection<Long>) {
+    private val transitions: IntArray
+    private val terminal: BooleanArray
+
+    init {
+      val needles = postNos.map { postNo -> postNo.toString() }
+      val maxStates = needles.sumOf { needle -> needle.length } + 1
+
+      val trie = IntArray(maxStates * DIGITS) { NO_STATE }
+      val isTerminal = BooleanArray(maxStates)
+      var statesCount = 1
+
+      for (needle in needles) {
+        var state = 0
+
+        for (char in needle) {
+          val index = state * DIGITS + (char - '0')
+          if (trie[index] == NO_STATE) {
+            trie[index] = statesCount++
+          }
+
+          state = trie[index]
+        }
+
+        isTerminal[state] = true
+      }
+
+      // Breadth first to turn the trie into a DFA using the failure links
+      val fail = IntArray(statesCount)
+      val queue = IntArray(statesCount)
+      var head = 0
+      var tail = 0
+
+      for (digit in 0 until DIGITS) {
+        val next = trie[digit]
+        if (next == NO_STATE) {
+          trie[digit] = 0
+        } else {
+          fail[next] = 0
+          queue[tail++] = next
+        }
+      }
+
+      while (head < tail) {
+        val state = queue[head++]
+        isTerminal[state] = isTerminal[state] || isTerminal[fail[state]]
+
+        for (digit in 0 until DIGITS) {
+          val index = state * DIGITS + digit
+          val next = trie[index]
+
+          if (next == NO_STATE) {
+            trie[index] = trie[fail[state] * DIGITS + digit]
+          } else {
+            fail[next] = trie[fail[state] * DIGITS + digit]
+            queue[tail++] = next
+          }
+        }
+      }
+
+      transitions = trie.copyOf(statesCount * DIGITS)
+      terminal = isTerminal.copyOf(statesCount)
+    }
+
+    fun containsAny(text: CharSequence): Boolean {
+      var state = 0
+
+      for (index in 0 until text.length) {
+        val char = text[index]
+        if (char < '0' || char > '9') {
+          state = 0
+          continue
+        }
+
+        state = transitions[state * DIGITS + (char - '0')]
+        if (terminal[state]) {
+          return true
+        }
+      }
+
+      return false
+    }
+
+    companion object {
+      private const val DIGITS = 10
+      private const val NO_STATE = -1
+    }
+  }
+
+}
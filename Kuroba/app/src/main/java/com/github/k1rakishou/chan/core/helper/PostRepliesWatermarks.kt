@@ -0,0 +1,177 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remembers, per bookmarked thread, the last post that was already scanned for replies to our posts
+ * together with the numbers of our posts that were known at that moment. On the next bookmark watcher
+ * cycle only the posts after that one need to be scanned. If some older post was marked as ours in
+ * the meantime then the thread is scanned again starting from that post (a post can only reply to
+ * the posts that were made before it).
+ * */
+class PostRepliesWatermarks(
+  private val watermarksFile: File
+) {
+  private val threadWatermarks = mutableMapOf<String, ThreadWatermark>()
+  private var loaded = false
+
+  @Synchronized
+  fun startRun(): Run {
+    ensureLoaded()
+
+    return Run(HashMap(threadWatermarks))
+  }
+
+  /**
+   * Replaces the watermarks with the ones of the threads that were processed during [run] (threads
+   * that were not processed will be scanned from the beginning next time) and writes them to disk.
+   * Must only be called once the replies found during [run] were persisted.
+   * */
+  @Synchronized
+  @Throws(IOException::class)
+  fun commit(run: Run) {
+    ensureLoaded()
+
+    threadWatermarks.clear()
+    threadWatermarks.putAll(run.currentWatermarks)
+
+    write()
+  }
+
+  @Synchronized
+  fun clear() {
+    threadWatermarks.clear()
+    loaded = true
+
+    if (watermarksFile.exists()) {
+      watermarksFile.delete()
+    }
+  }
+
+  private fun ensureLoaded() {
+    if (loaded) {
+      return
+    }
+
+    loaded = true
+
+    try {
+      read()
+    } catch (error: IOException) {
+      // The watermarks are just an optimization, start over
+      threadWatermarks.clear()
+    }
+  }
+
+  private fun read() {
+    if (!watermarksFile.exists()) {
+      return
+    }
+
+    DataInputStream(watermarksFile.inputStream().buffered()).use { inputStream ->
+      val version = inputStream.readInt()
+      if (version != WATERMARKS_VERSION) {
+        return
+      }
+
+      val threadsCount = inputStream.readInt()
+
+      repeat(threadsCount) {
+        val threadKey = inputStream.readUTF()
+        val lastProcessedPostNo = inputStream.readLong()
+        val myPostsCount = inputStream.readInt()
+        if (myPostsCount < 0) {
+          throw IOException("Bad myPostsCount: ${myPostsCount}")
+        }
+
+        val myPostNos = HashSet<Long>(myPostsCount)
+
+        repeat(myPostsCount) {
+          myPostNos += inputStream.readLong()
+        }
+
+        threadWatermarks[threadKey] = ThreadWatermark(lastProcessedPostNo, myPostNos)
+      }
+    }
+  }
+
+  private fun write() {
+    val tmpFile = File(watermarksFile.parentFile, watermarksFile.name + ".tmp")
+
+    DataOutputStream(tmpFile.outputStream().buffered()).use { outputStream ->
+      outputStream.writeInt(WATERMARKS_VERSION)
+      outputStream.writeInt(threadWatermarks.size)
+
+      threadWatermarks.forEach { (threadKey, threadWatermark) ->
+        outputStream.writeUTF(threadKey)
+        outputStream.writeLong(threadWatermark.lastProcessedPostNo)
+        outputStream.writeInt(threadWatermark.myPostNos.size)
+
+        threadWatermark.myPostNos.forEach { myPostNo ->
+          outputStream.writeLong(myPostNo)
+        }
+      }
+    }
+
+    if (!tmpFile.renameTo(watermarksFile)) {
+      tmpFile.delete()
+      throw IOException("Failed to rename '${tmpFile.absolutePath}' to '${watermarksFile.absolutePath}'")
+    }
+  }
+
+  internal class ThreadWatermark(
+    val lastProcessedPostNo: Long,
+    val myPostNos: Set<Long>
+  )
+
+  class Run internal constructor(
+    private val previousWatermarks: Map<String, ThreadWatermark>
+  ) {
+    internal val currentWatermarks = ConcurrentHashMap<String, ThreadWatermark>()
+
+    /**
+     * Posts with postNo greater than the returned one need to be scanned for replies to [myPostNos].
+     * Thread-safe.
+     * */
+    fun scanAfterPostNo(threadDescriptor: ChanDescriptor.ThreadDescriptor, myPostNos: Set<Long>): Long {
+      val previousWatermark = previousWatermarks[threadKey(threadDescriptor)]
+        ?: return 0L
+
+      var scanAfterPostNo = previousWatermark.lastProcessedPostNo
+
+      myPostNos.forEach { myPostNo ->
+        if (myPostNo !in previousWatermark.myPostNos && myPostNo < scanAfterPostNo) {
+          // An old post was marked as ours, the replies to it may be anywhere after it
+          scanAfterPostNo = myPostNo
+        }
+      }
+
+      return scanAfterPostNo
+    }
+
+    /**
+     * Thread-safe.
+     * */
+    fun recordProcessed(
+      threadDescriptor: ChanDescriptor.ThreadDescriptor,
+      lastProcessedPostNo: Long,
+      myPostNos: Set<Long>
+    ) {
+      currentWatermarks[threadKey(threadDescriptor)] = ThreadWatermark(lastProcessedPostNo, myPostNos)
+    }
+  }
+
+  companion object {
+    private const val WATERMARKS_VERSION = 1
+
+    fun threadKey(threadDescriptor: ChanDescriptor.ThreadDescriptor): String {
+      return "${threadDescriptor.siteName()}/${threadDescriptor.boardCode()}/${threadDescriptor.threadNo}"
+    }
+  }
+
+}
@@ -73,7 +73,11 @@ class ProxyStorage(
     return synchronized(this) { allProxiesMap.values.toList() }
   }
 
-  fun getProxyByUri(uri: URI, proxyActionType: ProxyActionType): List<Proxy> {
+  /**
+   * Returns the enabled proxies of the site of [uri] that support [proxyActionType] ordered by the order
+   * configured by the user.
+   * */
+  fun getProxiesByUri(uri: URI, proxyActionType: ProxyActionType): List<KurobaProxy> {
     loadProxies()
     awaitBlockingUntilDependenciesAreInitialized()
 
@@ -87,7 +91,7 @@ class ProxyStorage(
         ?.toList()
         ?.mapNotNull { proxyKey -> allProxiesMap[proxyKey] }
         ?.filter { kurobaProxy -> proxyActionType in kurobaProxy.supportedActions && kurobaProxy.enabled }
-        ?.map { it.asJavaProxy }
+        ?.sortedBy { kurobaProxy -> kurobaProxy.order }
         ?: emptyList()
     }
   }
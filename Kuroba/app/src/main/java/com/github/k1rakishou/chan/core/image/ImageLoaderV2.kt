@@ -3,6 +3,7 @@ package com.github.k1rakishou.chan.core.image
 import android.content.Context
 import android.content.res.Resources
 import android.graphics.Bitmap
+import android.graphics.BitmapFactory
 import android.graphics.Canvas
 import android.graphics.ColorFilter
 import android.graphics.Matrix
@@ -35,6 +36,8 @@ import com.github.k1rakishou.chan.core.base.okhttp.CoilOkHttpClient
 import com.github.k1rakishou.chan.core.cache.CacheFileType
 import com.github.k1rakishou.chan.core.cache.CacheHandler
 import com.github.k1rakishou.chan.core.cache.FileCacheV2
+import com.github.k1rakishou.chan.core.cache.ThumbnailVariantLookup
+import com.github.k1rakishou.chan.core.cache.ThumbnailVariantStore
 import com.github.k1rakishou.chan.core.helper.ImageLoaderFileManagerWrapper
 import com.github.k1rakishou.chan.core.manager.ReplyManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
@@ -43,6 +46,7 @@ import com.github.k1rakishou.chan.ui.widget.FixedViewSizeResolver
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.chan.utils.MediaUtils
 import com.github.k1rakishou.chan.utils.getLifecycleFromContext
+import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.BadContentTypeException
 import com.github.k1rakishou.common.DoNotStrip
 import com.github.k1rakishou.common.ModularResult
@@ -80,6 +84,7 @@ import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl.Companion.toHttpUrlOrNull
 import okhttp3.Request
+import java.io.ByteArrayOutputStream
 import java.io.File
 import java.io.FileOutputStream
 import java.io.IOException
@@ -474,20 +479,77 @@ class ImageLoaderV2(
       activeListener.transformations
     }
 
+    val variantKey = getThumbnailVariantKey(url, cacheFileType, activeListener.imageSize, transformations)
+    if (variantKey == null) {
+      val bitmap = executeTransformationsRequest(
+        context = context,
+        lifecycle = lifecycle,
+        fileLocation = fileLocation,
+        imageSize = activeListener.imageSize,
+        transformations = transformations,
+        url = url,
+        cacheFileType = cacheFileType,
+        memoryCacheKey = null
+      ) ?: return null
+
+      return BitmapDrawable(context.resources, bitmap)
+    }
+
+    val thumbnailVariantLookup = ThumbnailVariantLookup<Bitmap>(
+      getFromMemoryCache = { key -> imageLoader.memoryCache[MemoryCache.Key.invoke(key)] },
+      putIntoMemoryCache = { key, bitmap -> imageLoader.memoryCache[MemoryCache.Key.invoke(key)] = bitmap },
+      loadVariant = {
+        loadThumbnailVariant(
+          cacheFileType = cacheFileType,
+          url = url,
+          variantKey = variantKey,
+          // Same as what Coil would produce for this request
+          allowHardware = transformations.isEmpty() && imageLoader.defaults.allowHardware
+        )
+      },
+      storeVariant = { bitmap -> storeThumbnailVariant(cacheFileType, url, variantKey, bitmap) }
+    )
+
+    val bitmap = thumbnailVariantLookup.load(variantKey) {
+      executeTransformationsRequest(
+        context = context,
+        lifecycle = lifecycle,
+        fileLocation = fileLocation,
+        imageSize = activeListener.imageSize,
+        transformations = transformations,
+        url = url,
+        cacheFileType = cacheFileType,
+        memoryCacheKey = MemoryCache.Key.invoke(variantKey)
+      )
+    } ?: return null
+
+    return BitmapDrawable(context.resources, bitmap)
+  }
+
+  private suspend fun executeTransformationsRequest(
+    context: Context,
+    lifecycle: Lifecycle?,
+    fileLocation: Any,
+    imageSize: ImageSize,
+    transformations: List<Transformation>,
+    url: String,
+    cacheFileType: CacheFileType,
+    memoryCacheKey: MemoryCache.Key?
+  ): Bitmap? {
     val request = with(ImageRequest.Builder(context)) {
       lifecycle(lifecycle)
       data(fileLocation)
       scale(Scale.FIT)
       transformations(transformations)
-      applyImageSize(activeListener.imageSize)
+      applyImageSize(imageSize)
+      memoryCacheKey(memoryCacheKey)
 
       build()
     }
 
     when (val result = imageLoader.execute(request)) {
       is SuccessResult -> {
-        val bitmap = result.drawable.toBitmap()
-        return BitmapDrawable(context.resources, bitmap)
+        return result.drawable.toBitmap()
       }
       is ErrorResult -> {
         Logger.e(TAG, "applyTransformationsToDrawable() error, " +
@@ -502,6 +564,101 @@ class ImageLoaderV2(
     }
   }
 
+  /**
+   * Thumbnails are decoded from the full-size cached file and scaled/transformed again every time they
+   * are evicted from Coil's memory cache which happens all the time when scrolling big catalogs. So we
+   * store the final result next to the cached file (see [ThumbnailVariantStore]) and decode that
+   * instead next time (see [ThumbnailVariantLookup]). The key is also used as the memory cache key.
+   * Returns null when the variants can't be used for this request.
+   * */
+  private suspend fun getThumbnailVariantKey(
+    url: String,
+    cacheFileType: CacheFileType,
+    imageSize: ImageSize,
+    transformations: List<Transformation>
+  ): String? {
+    if (cacheFileType !in THUMBNAIL_VARIANT_CACHE_FILE_TYPES) {
+      return null
+    }
+
+    val pixelSize = imageSize.size()
+      ?: return null
+
+    if (pixelSize.width <= 0 || pixelSize.height <= 0) {
+      return null
+    }
+
+    return ThumbnailVariantStore.variantKey(
+      url = url,
+      width = pixelSize.width,
+      height = pixelSize.height,
+      transformationKeys = transformations.map { transformation -> transformation.key() }
+    )
+  }
+
+  private fun loadThumbnailVariant(
+    cacheFileType: CacheFileType,
+    url: String,
+    variantKey: String,
+    allowHardware: Boolean
+  ): Bitmap? {
+    val payload = cacheHandler.getThumbnailVariantOrNull(cacheFileType, url, variantKey)
+      ?: return null
+
+    val options = BitmapFactory.Options()
+    if (allowHardware && AndroidUtils.isAndroidO()) {
+      options.inPreferredConfig = Bitmap.Config.HARDWARE
+    }
+
+    val bitmap = BitmapFactory.decodeByteArray(payload, 0, payload.size, options)
+    if (bitmap == null) {
+      Logger.e(TAG, "loadThumbnailVariant() failed to decode variant of '$url'")
+      return null
+    }
+
+    return bitmap
+  }
+
+  private fun storeThumbnailVariant(
+    cacheFileType: CacheFileType,
+    url: String,
+    variantKey: String,
+    bitmap: Bitmap
+  ) {
+    appScope.launch(Dispatchers.IO) {
+      // Hardware bitmaps (produced when no transformations are used) can't be compressed directly
+      val isHardwareBitmap = AndroidUtils.isAndroidO() && bitmap.config == Bitmap.Config.HARDWARE
+      val softwareBitmap = if (isHardwareBitmap) {
+        bitmap.copy(Bitmap.Config.ARGB_8888, false)
+          ?: return@launch
+      } else {
+        bitmap
+      }
+
+      val compressFormat = if (softwareBitmap.hasAlpha()) {
+        Bitmap.CompressFormat.PNG
+      } else {
+        Bitmap.CompressFormat.JPEG
+      }
+
+      val payload = try {
+        ByteArrayOutputStream().use { outputStream ->
+          if (!softwareBitmap.compress(compressFormat, THUMBNAIL_VARIANT_QUALITY, outputStream)) {
+            return@launch
+          }
+
+          outputStream.toByteArray()
+        }
+      } finally {
+        if (softwareBitmap !== bitmap) {
+          softwareBitmap.recycle()
+        }
+      }
+
+      cacheHandler.putThumbnailVariant(cacheFileType, url, variantKey, payload)
+    }
+  }
+
   private suspend fun notifyListenersFailure(
     context: Context,
     url: String,
@@ -1484,7 +1641,16 @@ class ImageLoaderV2(
     private const val TAG = "ImageLoaderV2"
     private const val PREVIEW_SIZE = 1024
 
+    private const val THUMBNAIL_VARIANT_QUALITY = 90
+
     private val RESIZE_TRANSFORMATION = ResizeTransformation()
+
+    private val THUMBNAIL_VARIANT_CACHE_FILE_TYPES = setOf(
+      CacheFileType.PostMediaThumbnail,
+      CacheFileType.BookmarkThumbnail,
+      CacheFileType.NavHistoryThumbnail,
+      CacheFileType.ThreadDownloaderThumbnail
+    )
   }
 
 }
\ No newline at end of file
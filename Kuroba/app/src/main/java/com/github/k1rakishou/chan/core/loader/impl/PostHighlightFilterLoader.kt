@@ -48,8 +48,8 @@ class PostHighlightFilterLoader(
     val matchedKeywords = highlightFilters.flatMapNotNull { chanFilter ->
       val keywordsSet = mutableSetOf<HighlightFilterKeyword>()
 
-      if (filterEngine.matches(chanFilter, chanPost.postComment.comment(), false)) {
-        val keywords = filterEngine.extractMatchedKeywords(chanFilter, chanPost.postComment.comment())
+      if (filterEngine.matches(chanFilter, chanPost.postComment.commentText(), false)) {
+        val keywords = filterEngine.extractMatchedKeywords(chanFilter, chanPost.postComment.commentText())
         if (keywords.isNotEmpty()) {
           keywordsSet += keywords.toHashSetBy { keyword -> HighlightFilterKeyword(keyword, chanFilter.color) }
         }
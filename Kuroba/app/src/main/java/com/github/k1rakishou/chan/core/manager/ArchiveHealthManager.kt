@@ -0,0 +1,200 @@
+package com.github.k1rakishou.chan.core.manager
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import kotlin.math.max
+import kotlin.math.pow
+
+/**
+ * Keeps rolling (exponentially weighted) statistics of how the archives respond when a thread is
+ * requested from them: the latency, the error rate (network errors, bad statuses, timeouts) and the hit
+ * rate (how often the archive actually had the thread when it responded). The statistics are kept per
+ * archive and board (archives archive boards with very different success) and per archive (used for
+ * boards that have not been requested from the archive yet, an archive that is down is down for every
+ * board).
+ *
+ * Samples lose their weight over time (see [DECAY_HALF_LIFE_MS]) so that an archive that was down
+ * gets another chance eventually instead of always being ranked last.
+ *
+ * The statistics only live in memory.
+ * */
+class ArchiveHealthManager @JvmOverloads constructor(
+  private val clock: () -> Long = { System.currentTimeMillis() }
+) {
+  @GuardedBy("this")
+  private val boardStats = HashMap<BoardKey, Stats>()
+  @GuardedBy("this")
+  private val archiveStats = HashMap<String, Stats>()
+
+  @Synchronized
+  fun onArchiveResponse(
+    archiveDescriptor: ArchiveDescriptor,
+    boardCode: String,
+    outcome: Outcome,
+    latencyMs: Long
+  ) {
+    val now = clock()
+
+    boardStats.getOrPut(BoardKey(archiveDescriptor.domain, boardCode)) { Stats() }
+      .update(outcome, latencyMs, now)
+    archiveStats.getOrPut(archiveDescriptor.domain) { Stats() }
+      .update(outcome, latencyMs, now)
+  }
+
+  @Synchronized
+  fun getHealth(archiveDescriptor: ArchiveDescriptor, boardCode: String): ArchiveHealth {
+    val now = clock()
+
+    val stats = boardStats[BoardKey(archiveDescriptor.domain, boardCode)]
+      ?: archiveStats[archiveDescriptor.domain]
+      ?: return ArchiveHealth.UNKNOWN
+
+    return stats.toArchiveHealth(now)
+  }
+
+  /**
+   * Sorts [archiveDescriptors] by the expected time to get the thread from them (the healthiest first).
+   * Archives that were never requested are ranked with the default statistics which puts them in the
+   * middle: ahead of slow or failing archives but behind the ones that are known to work well.
+   * */
+  fun rank(archiveDescriptors: List<ArchiveDescriptor>, boardCode: String): List<ArchiveDescriptor> {
+    val scores = archiveDescriptors.associateWith { archiveDescriptor ->
+      getHealth(archiveDescriptor, boardCode).score
+    }
+
+    return archiveDescriptors.sortedBy { archiveDescriptor -> scores[archiveDescriptor]!! }
+  }
+
+  @Synchronized
+  fun clear() {
+    boardStats.clear()
+    archiveStats.clear()
+  }
+
+  enum class Outcome {
+    /** The archive returned the thread. */
+    Found,
+    /** The archive responded but does not have the thread. */
+    NotFound,
+    /** Network error, bad response status, parsing error or timeout. */
+    Error,
+    /**
+     * The archive did not respond before another archive won the race. Only tells that the latency is
+     * at least this much.
+     * */
+    TooSlow
+  }
+
+  data class ArchiveHealth(
+    val latencyMs: Double,
+    val errorRate: Double,
+    val hitRate: Double,
+    val samples: Int
+  ) {
+    /**
+     * The expected time (ms) it takes to get the thread from the archive, the lower the better.
+     * */
+    val score: Double
+      get() {
+        val successProbability = max(MIN_SUCCESS_PROBABILITY, (1.0 - errorRate) * hitRate)
+        return latencyMs / successProbability
+      }
+
+    companion object {
+      val UNKNOWN = ArchiveHealth(
+        latencyMs = PRIOR_LATENCY_MS,
+        errorRate = PRIOR_ERROR_RATE,
+        hitRate = PRIOR_HIT_RATE,
+        samples = 0
+      )
+    }
+  }
+
+  private data class BoardKey(
+    val archiveDomain: String,
+    val boardCode: String
+  )
+
+  private class Stats {
+    var latencyMs = PRIOR_LATENCY_MS
+    var errorRate = PRIOR_ERROR_RATE
+    var hitRate = PRIOR_HIT_RATE
+    var samples = 0
+    var lastUpdateTime = 0L
+
+    fun update(outcome: Outcome, latencyMs: Long, now: Long) {
+      decay(now)
+
+      when (outcome) {
+        Outcome.Found -> {
+          this.latencyMs = ewma(this.latencyMs, latencyMs.toDouble())
+          errorRate = ewma(errorRate, 0.0)
+          hitRate = ewma(hitRate, 1.0)
+        }
+        Outcome.NotFound -> {
+          this.latencyMs = ewma(this.latencyMs, latencyMs.toDouble())
+          errorRate = ewma(errorRate, 0.0)
+          hitRate = ewma(hitRate, 0.0)
+        }
+        Outcome.Error -> {
+          errorRate = ewma(errorRate, 1.0)
+        }
+        Outcome.TooSlow -> {
+          // Only a lower bound of the latency
+          if (latencyMs > this.latencyMs) {
+            this.latencyMs = ewma(this.latencyMs, latencyMs.toDouble())
+          }
+        }
+      }
+
+      ++samples
+      lastUpdateTime = now
+    }
+
+    fun toArchiveHealth(now: Long): ArchiveHealth {
+      val weight = decayWeight(now)
+
+      return ArchiveHealth(
+        latencyMs = decayed(PRIOR_LATENCY_MS, latencyMs, weight),
+        errorRate = decayed(PRIOR_ERROR_RATE, errorRate, weight),
+        hitRate = decayed(PRIOR_HIT_RATE, hitRate, weight),
+        samples = samples
+      )
+    }
+
+    private fun decay(now: Long) {
+      if (samples == 0) {
+        return
+      }
+
+      val weight = decayWeight(now)
+
+      latencyMs = decayed(PRIOR_LATENCY_MS, latencyMs, weight)
+      errorRate = decayed(PRIOR_ERROR_RATE, errorRate, weight)
+      hitRate = decayed(PRIOR_HIT_RATE, hitRate, weight)
+    }
+
+    private fun decayWeight(now: Long): Double {
+      val ageMs = (now - lastUpdateTime).coerceAtLeast(0L)
+      return 0.5.pow(ageMs.toDouble() / DECAY_HALF_LIFE_MS)
+    }
+
+    private fun decayed(prior: Double, value: Double, weight: Double): Double {
+      return prior + (value - prior) * weight
+    }
+
+    private fun ewma(prev: Double, sample: Double): Double {
+      return prev + (sample - prev) * EWMA_ALPHA
+    }
+  }
+
+  companion object {
+    private const val EWMA_ALPHA = 0.3
+    private const val DECAY_HALF_LIFE_MS = 30L * 60L * 1000L
+    private const val MIN_SUCCESS_PROBABILITY = 0.02
+
+    private const val PRIOR_LATENCY_MS = 3000.0
+    private const val PRIOR_ERROR_RATE = 0.1
+    private const val PRIOR_HIT_RATE = 0.5
+  }
+}
@@ -21,7 +21,7 @@ import com.google.gson.stream.JsonReader
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.io.InputStreamReader
 import java.util.*
 import java.util.concurrent.locks.ReentrantReadWriteLock
@@ -52,15 +52,19 @@ open class ArchivesManager(
   @GuardedBy("lock")
   private val allArchiveDescriptors = mutableListOf<ArchiveDescriptor>()
 
-  @OptIn(ExperimentalTime::class)
   fun initialize() {
     Logger.d(TAG, "ArchivesManager.initialize()")
+  }
 
-    applicationScope.launch(Dispatchers.IO) {
-      Logger.d(TAG, "initializeArchivesManagerInternal() start")
-      val time = measureTime { initializeArchivesManagerInternal() }
-      Logger.d(TAG, "initializeArchivesManagerInternal() end, took $time")
-    }
+  /**
+   * Suspends until the archives are loaded. Executed as a startup task (see
+   * [com.github.k1rakishou.chan.core.AppDependenciesInitializer]).
+   * */
+  @OptIn(ExperimentalTime::class)
+  suspend fun initializeArchives() {
+    Logger.d(TAG, "initializeArchivesManagerInternal() start")
+    val time = measureTime { withContext(Dispatchers.IO) { initializeArchivesManagerInternal() } }
+    Logger.d(TAG, "initializeArchivesManagerInternal() end, took $time")
   }
 
   private fun initializeArchivesManagerInternal() {
@@ -175,6 +179,33 @@ open class ArchivesManager(
     }
   }
 
+  /**
+   * Archives that can search the board with the code of [boardDescriptor]. [boardDescriptor] may belong
+   * either to a site or to an archive (in which case the archives of the same sites are returned). The
+   * archive [boardDescriptor] belongs to is not included.
+   * */
+  fun getArchivesSupportingSearch(boardDescriptor: BoardDescriptor): List<SiteDescriptor> {
+    return lock.read {
+      val siteDescriptor = boardDescriptor.siteDescriptor
+
+      val archivedSites = allArchivesData
+        .firstOrNull { archiveData -> archiveData.siteDescriptor == siteDescriptor }
+        ?.getSupportedSites()
+        ?: setOf(siteDescriptor)
+
+      return@read allArchivesData
+        .filter { archiveData ->
+          val boardsSupportingSearch = archiveData.boardsSupporingSearch
+            ?: return@filter false
+
+          return@filter archiveData.siteDescriptor != siteDescriptor
+            && archiveData.getSupportedSites().any { supportedSite -> supportedSite in archivedSites }
+            && boardDescriptor.boardCode in boardsSupportingSearch
+        }
+        .map { archiveData -> archiveData.siteDescriptor }
+    }
+  }
+
   private fun loadArchives(): List<ArchiveData> {
     return appContext.assets.open(ARCHIVES_JSON_FILE_NAME).use { inputStream ->
       return@use modifiedGson.fromJson<Array<ArchiveData>>(
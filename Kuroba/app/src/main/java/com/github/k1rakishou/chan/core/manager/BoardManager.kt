@@ -22,7 +22,7 @@ import io.reactivex.processors.PublishProcessor
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -50,15 +50,19 @@ class BoardManager(
   private val boardRepository: BoardRepository
     get() = _boardRepository.get()
 
-  @OptIn(ExperimentalTime::class)
-  fun initialize(siteDataListAsync: CompletableDeferred<List<ChanSiteData>>) {
+  fun initialize() {
     Logger.d(TAG, "BoardManager.initialize()")
+  }
 
-    appScope.launch(Dispatchers.IO) {
-      Logger.d(TAG, "loadBoardsInternal() start")
-      val time = measureTime { loadBoardsInternal(siteDataListAsync) }
-      Logger.d(TAG, "loadBoardsInternal() end, took ${time}")
-    }
+  /**
+   * Suspends until the boards of the sites from [siteDataListAsync] are loaded from the database.
+   * Executed as a startup task (see [com.github.k1rakishou.chan.core.AppDependenciesInitializer]).
+   * */
+  @OptIn(ExperimentalTime::class)
+  suspend fun loadBoards(siteDataListAsync: CompletableDeferred<List<ChanSiteData>>) {
+    Logger.d(TAG, "loadBoardsInternal() start")
+    val time = measureTime { withContext(Dispatchers.IO) { loadBoardsInternal(siteDataListAsync) } }
+    Logger.d(TAG, "loadBoardsInternal() end, took ${time}")
   }
 
   private suspend fun loadBoardsInternal(siteDataListAsync: CompletableDeferred<List<ChanSiteData>>) {
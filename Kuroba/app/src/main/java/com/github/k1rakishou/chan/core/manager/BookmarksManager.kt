@@ -3,6 +3,7 @@ package com.github.k1rakishou.chan.core.manager
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
 import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
+import com.github.k1rakishou.chan.core.base.WriteBehindJournal
 import com.github.k1rakishou.chan.core.site.SiteRegistry
 import com.github.k1rakishou.common.DoNotStrip
 import com.github.k1rakishou.common.ModularResult
@@ -25,6 +26,7 @@ import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import okhttp3.HttpUrl
 import org.joda.time.DateTime
 import java.util.*
@@ -52,6 +54,15 @@ class BookmarksManager(
   private val delayedBookmarksChangedExecutor = DebouncingCoroutineExecutor(appScope)
   private val suspendableInitializer = SuspendableInitializer<Unit>("BookmarksManager")
 
+  // Only the bookmarks that were actually changed since the last persist are written into the database
+  private val bookmarksJournal = WriteBehindJournal<ChanDescriptor.ThreadDescriptor, ThreadBookmark>(
+    scope = appScope,
+    maxPendingEntries = MAX_PENDING_BOOKMARK_CHANGES,
+    maxFlushDelayMs = BOOKMARK_CHANGES_FLUSH_DELAY_MS,
+    onFlushError = { error -> Logger.e(TAG, "bookmarksJournal flush error", error) },
+    writer = { batch -> bookmarksRepository.persistChanges(batch.upserts.values, batch.deletes).unwrap() }
+  )
+
   @GuardedBy("lock")
   private val bookmarks = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, ThreadBookmark>(256)
 
@@ -64,16 +75,20 @@ class BookmarksManager(
   private val currentOpenedDescriptorStateManager: CurrentOpenedDescriptorStateManager
     get() = _currentOpenedDescriptorStateManager.get()
 
-  @OptIn(ExperimentalTime::class)
   fun initialize() {
     Logger.d(TAG, "BookmarksManager.initialize()")
     startListeningForAppVisibilityUpdates()
+  }
 
-    appScope.launch(Dispatchers.IO) {
-      Logger.d(TAG, "initializeBookmarksInternal() start")
-      val time = measureTime { initializeBookmarksInternal() }
-      Logger.d(TAG, "initializeBookmarksInternal() end, took $time")
-    }
+  /**
+   * Suspends until the bookmarks are loaded from the database. Executed as a startup task (see
+   * [com.github.k1rakishou.chan.core.AppDependenciesInitializer]).
+   * */
+  @OptIn(ExperimentalTime::class)
+  suspend fun loadBookmarks() {
+    Logger.d(TAG, "initializeBookmarksInternal() start")
+    val time = measureTime { withContext(Dispatchers.IO) { initializeBookmarksInternal() } }
+    Logger.d(TAG, "initializeBookmarksInternal() end, took $time")
   }
 
   private fun startListeningForAppVisibilityUpdates() {
@@ -86,7 +101,9 @@ class BookmarksManager(
         return@addListener
       }
 
-      persistBookmarks(eager = true)
+      // The app may get killed at any moment after going into the background so we need to start
+      // writing everything right away instead of waiting for the flush delay.
+      bookmarksJournal.flushInBackground()
     }
   }
 
@@ -267,6 +284,7 @@ class BookmarksManager(
 
         actuallyCreated += threadDescriptor
         bookmarks[threadDescriptor] = threadBookmark
+        bookmarksJournal.markDirty(threadDescriptor, threadBookmark.deepCopy())
       }
     }
 
@@ -293,6 +311,7 @@ class BookmarksManager(
         }
 
         bookmarks.remove(threadDescriptor)
+        bookmarksJournal.markDeleted(threadDescriptor)
         actuallyDeleted += threadDescriptor
       }
 
@@ -355,6 +374,7 @@ class BookmarksManager(
 
         if (oldThreadBookmark != mutatedBookmark) {
           bookmarks[threadDescriptor] = mutatedBookmark
+          bookmarksJournal.markDirty(threadDescriptor, mutatedBookmark.deepCopy())
           updatedBookmarks += threadDescriptor
         }
       }
@@ -384,6 +404,7 @@ class BookmarksManager(
       if (toDelete.size > 0) {
         toDelete.forEach { threadDescriptor ->
           bookmarks.remove(threadDescriptor)
+          bookmarksJournal.markDeleted(threadDescriptor)
         }
       }
     }
@@ -404,7 +425,9 @@ class BookmarksManager(
     }
 
     persistBookmarksExecutor.post {
-      bookmarksRepository.deleteAll().safeUnwrap { error ->
+      val deleteAllResult = bookmarksJournal.clear { bookmarksRepository.deleteAll() }
+
+      deleteAllResult.safeUnwrap { error ->
         Logger.e(TAG, "deleteAllBookmarks() bookmarksRepository.deleteAll() error", error)
         return@post
       }
@@ -429,6 +452,8 @@ class BookmarksManager(
         threadBookmark.updateLastViewedPostNo(lastPostInThreadNo)
       }
 
+      bookmarksJournal.markDirty(threadDescriptor, threadBookmark.deepCopy())
+
       bookmarksChanged(BookmarkChange.BookmarksUpdated(listOf(threadDescriptor)))
     }
   }
@@ -441,8 +466,9 @@ class BookmarksManager(
         return@write
       }
 
-      bookmarks.entries.forEach { (_, threadBookmark) ->
+      bookmarks.entries.forEach { (threadDescriptor, threadBookmark) ->
         threadBookmark.readAllPostsAndNotifications()
+        bookmarksJournal.markDirty(threadDescriptor, threadBookmark.deepCopy())
       }
 
       bookmarksChanged(BookmarkChange.BookmarksUpdated(bookmarks.keys))
@@ -702,15 +728,15 @@ class BookmarksManager(
   }
 
   private suspend fun persistBookmarksInternal() {
-    bookmarksRepository.persist(getAllBookmarks())
+    val writtenCount = bookmarksJournal.flush()
       .safeUnwrap { error ->
         Logger.e(TAG, "Failed to persist bookmarks", error)
         return
       }
-  }
 
-  private fun getAllBookmarks(): List<ThreadBookmark> {
-    return lock.read { bookmarks.values.map { bookmark -> bookmark.deepCopy() } }
+    if (verboseLogsEnabled) {
+      Logger.d(TAG, "persistBookmarksInternal() written ${writtenCount} changed bookmarks")
+    }
   }
 
   private fun activeBookmarkPredicate(threadBookmark: ThreadBookmark): Boolean {
@@ -775,5 +801,8 @@ class BookmarksManager(
 
   companion object {
     private const val TAG = "BookmarksManager"
+
+    private const val MAX_PENDING_BOOKMARK_CHANGES = 128
+    private const val BOOKMARK_CHANGES_FLUSH_DELAY_MS = 1000L
   }
 }
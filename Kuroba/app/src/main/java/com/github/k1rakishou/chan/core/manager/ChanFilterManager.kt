@@ -19,7 +19,7 @@ import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.SharedFlow
 import kotlinx.coroutines.flow.asSharedFlow
-import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -64,16 +64,20 @@ class ChanFilterManager(
   private val postFilterHighlightManager: PostFilterHighlightManager
     get() = _postFilterHighlightManager.get()
 
-  @OptIn(ExperimentalTime::class)
   fun initialize() {
     Logger.d(TAG, "ChanFilterManager.initialize()")
     serializedCoroutineExecutor = SerializedCoroutineExecutor(appScope)
+  }
 
-    appScope.launch(Dispatchers.IO) {
-      Logger.d(TAG, "loadFiltersInternal() start")
-      val time = measureTime { loadFiltersInternal() }
-      Logger.d(TAG, "loadFiltersInternal() end, took ${time}")
-    }
+  /**
+   * Suspends until the filters are loaded from the database. Executed as a startup task (see
+   * [com.github.k1rakishou.chan.core.AppDependenciesInitializer]).
+   * */
+  @OptIn(ExperimentalTime::class)
+  suspend fun loadFilters() {
+    Logger.d(TAG, "loadFiltersInternal() start")
+    val time = measureTime { withContext(Dispatchers.IO) { loadFiltersInternal() } }
+    Logger.d(TAG, "loadFiltersInternal() end, took ${time}")
   }
 
   fun listenForFiltersChanges(): SharedFlow<FilterEvent> {
@@ -3,6 +3,7 @@ package com.github.k1rakishou.chan.core.manager
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.RendezvousCoroutineExecutor
+import com.github.k1rakishou.chan.core.base.WriteBehindJournal
 import com.github.k1rakishou.chan.core.helper.OneShotRunnable
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.mutableListWithCap
@@ -36,6 +37,18 @@ class HistoryNavigationManager(
 
   private val rendezvousCoroutineExecutor = RendezvousCoroutineExecutor(appScope)
 
+  // The navigation stack is ordered so it's always written as a whole (there is only one key so only
+  // the time threshold matters), but consecutive changes are coalesced into a single write.
+  private val navigationStackJournal = WriteBehindJournal<String, List<NavHistoryElement>>(
+    scope = appScope,
+    maxPendingEntries = Int.MAX_VALUE,
+    maxFlushDelayMs = FLUSH_DELAY_MS,
+    onFlushError = { error -> Logger.e(TAG, "Error while trying to persist navigation stack", error) },
+    writer = { batch ->
+      batch.upserts[NAVIGATION_STACK_KEY]?.let { navStack -> historyNavigationRepository.persist(navStack).unwrap() }
+    }
+  )
+
   private val mutex = Mutex()
   @GuardedBy("mutex")
   private val navigationStack = mutableListWithCap<NavHistoryElement>(MAX_NAV_HISTORY_ENTRIES)
@@ -509,26 +522,16 @@ class HistoryNavigationManager(
 
   private fun persistNavigationStack() {
     rendezvousCoroutineExecutor.post {
-      Logger.d(TAG, "persistNavigationStack async called")
-      persistNavigationStackInternal()
-      Logger.d(TAG, "persistNavigationStack async finished")
-    }
-  }
-
-  private suspend fun persistNavigationStackInternal() {
-    if (!initializationRunnable.alreadyRun) {
-      Logger.d(TAG, "persistNavigationStackInternal not initialized yet, can't persist")
-      return
-    }
+      if (!initializationRunnable.alreadyRun) {
+        Logger.d(TAG, "persistNavigationStack not initialized yet, can't persist")
+        return@post
+      }
 
-    val navStackCopy = mutex.withLock { navigationStack.toList() }
-    Logger.d(TAG, "persistNavigationStackInternal navStackCopy.size=${navStackCopy.size}")
+      val navStackCopy = mutex.withLock { navigationStack.toList() }
+      Logger.d(TAG, "persistNavigationStack navStackCopy.size=${navStackCopy.size}")
 
-    historyNavigationRepository.persist(navStackCopy)
-      .safeUnwrap { error ->
-        Logger.e(TAG, "Error while trying to persist navigation stack", error)
-        return
-      }
+      navigationStackJournal.markDirty(NAVIGATION_STACK_KEY, navStackCopy)
+    }
   }
 
   private suspend fun ensureInitialized() {
@@ -571,7 +574,7 @@ class HistoryNavigationManager(
         return@addListener
       }
 
-      persistNavigationStack()
+      navigationStackJournal.flushInBackground()
     }
   }
 
@@ -618,5 +621,8 @@ class HistoryNavigationManager(
     // Only used when reloading navigation history back from the database.
     // Can grow unlimited until the app restart.
     private const val MAX_NAV_HISTORY_ENTRIES = 256
+
+    private const val NAVIGATION_STACK_KEY = "navigation_stack"
+    private const val FLUSH_DELAY_MS = 500L
   }
 }
\ No newline at end of file
@@ -161,7 +161,7 @@ class SavedReplyManager(
   suspend fun savePost(postDescriptor: PostDescriptor) {
     val post = chanThreadsCache.getPostFromCache(postDescriptor)
 
-    val comment = post?.postComment?.originalComment()?.toString()
+    val comment = post?.postComment?.originalCommentText()?.toString()
     val subject = chanThreadsCache.getOriginalPostFromCache(postDescriptor)?.let { chanOriginalPost ->
       return@let ChanPostUtils.getTitle(chanOriginalPost, postDescriptor.descriptor)
     }
@@ -2,14 +2,13 @@ package com.github.k1rakishou.chan.core.manager
 
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
-import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
+import com.github.k1rakishou.chan.core.base.WriteBehindJournal
 import com.github.k1rakishou.common.errorMessageOrClassName
 import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.common.linkedMapWithCap
 import com.github.k1rakishou.common.mutableIteration
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.common.putIfNotContains
-import com.github.k1rakishou.common.toHashSetBy
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -33,6 +32,7 @@ import kotlin.time.measureTime
 class SeenPostsManager(
   private val appScope: CoroutineScope,
   private val verboseLogsEnabled: Boolean,
+  private val applicationVisibilityManager: ApplicationVisibilityManager,
   private val chanThreadsCache: ChanThreadsCache,
   private val catalogSnapshotCache: ChanCatalogSnapshotCache,
   private val seenPostsRepository: SeenPostRepository
@@ -41,8 +41,6 @@ class SeenPostsManager(
   @GuardedBy("lock")
   private val seenPostsMap = linkedMapWithCap<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>(256)
   @GuardedBy("lock")
-  private val seenPostsToPersist = mutableMapOf<ChanDescriptor.ThreadDescriptor, MutableMap<PostDescriptor, SeenPost>>()
-  @GuardedBy("lock")
   private var lastLoadedCatalogDescriptor: ChanDescriptor.ICatalogDescriptor? = null
   @GuardedBy("lock")
   private val alreadyLoadedDescriptorsForUnlimitedCatalog = hashSetWithCap<ChanDescriptor.ThreadDescriptor>(32)
@@ -51,9 +49,25 @@ class SeenPostsManager(
   val seenThreadUpdatesFlow: SharedFlow<ChanDescriptor.ThreadDescriptor>
     get() = _seenThreadUpdatesFlow.asSharedFlow()
 
-  private val debouncingCoroutineExecutor = DebouncingCoroutineExecutor(appScope)
+  private val seenPostsJournal = WriteBehindJournal<PostDescriptor, SeenPost>(
+    scope = appScope,
+    maxPendingEntries = MAX_PENDING_SEEN_POSTS,
+    maxFlushDelayMs = FLUSH_DELAY_MS,
+    onFlushError = { error ->
+      Logger.e(TAG, "Error while trying to store new seen posts, error = ${error.errorMessageOrClassName()}")
+    },
+    writer = { batch -> persistSeenPosts(batch.upserts.values) }
+  )
 
   init {
+    applicationVisibilityManager.addListener { visibility ->
+      if (visibility != ApplicationVisibility.Background) {
+        return@addListener
+      }
+
+      seenPostsJournal.flushInBackground()
+    }
+
     chanThreadsCache.addChanThreadDeleteEventListener { threadDeleteEvent ->
       if (verboseLogsEnabled) {
         Logger.d(TAG, "chanThreadsCache.chanThreadDeleteEventFlow() " +
@@ -178,80 +192,46 @@ class SeenPostsManager(
       return
     }
 
-    val needPersist = lock.write {
-      var needPersist = false
-
+    lock.read {
       for (seenPost in seenPosts) {
         val postDescriptor = seenPost.postDescriptor
-        val threadDescriptor = postDescriptor.threadDescriptor()
 
-        seenPostsToPersist.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
-
-        if (seenPostsMap[threadDescriptor]?.contains(postDescriptor) == true) {
+        if (seenPostsMap[postDescriptor.threadDescriptor()]?.contains(postDescriptor) == true) {
           continue
         }
 
-        if (seenPostsToPersist[threadDescriptor]?.contains(postDescriptor) == true) {
+        if (seenPostsJournal.isDirty(postDescriptor)) {
           continue
         }
 
-        seenPostsToPersist[threadDescriptor]!!.put(postDescriptor, seenPost)
-        needPersist = true
+        seenPostsJournal.markDirty(postDescriptor, seenPost)
       }
-
-      return@write needPersist
     }
+  }
 
-    if (!needPersist) {
+  private suspend fun persistSeenPosts(seenPosts: Collection<SeenPost>) {
+    val toPersistMap = seenPosts.groupBy { seenPost -> seenPost.postDescriptor.threadDescriptor() }
+    if (toPersistMap.isEmpty()) {
       return
     }
 
-    debouncingCoroutineExecutor.post(DEBOUNCE_TIMEOUT_MS) {
-      val threadDescriptors = seenPosts.toHashSetBy { seenPost -> seenPost.postDescriptor.threadDescriptor() }
-
-      val toPersistMap = lock.write {
-        val toPersistMap = mutableMapOf<ChanDescriptor.ThreadDescriptor, Set<SeenPost>>()
-
-        for (threadDescriptor in threadDescriptors) {
-          val seenPostsMap = seenPostsToPersist.remove(threadDescriptor)
-            ?.toMutableMap()
-
-          if (seenPostsMap == null || seenPostsMap.values.isEmpty()) {
-            continue
-          }
-
-          toPersistMap[threadDescriptor] = seenPostsMap.values.toSet()
-        }
-
-        return@write toPersistMap
-      }
-
-      if (toPersistMap.isEmpty()) {
-        return@post
-      }
-
-      toPersistMap.forEach { (threadDescriptor, seenPostSet) ->
-        if (verboseLogsEnabled) {
-          Logger.d(TAG, "onPostBind() persisting ${seenPostSet.size} posts")
-        }
-
-        seenPostsRepository.insertMany(threadDescriptor, seenPostSet)
-          .safeUnwrap { error ->
-            Logger.e(TAG, "Error while trying to store new seen post with threadDescriptor " +
-                "($threadDescriptor), error = ${error.errorMessageOrClassName()}")
-            return@post
-          }
+    if (verboseLogsEnabled) {
+      Logger.d(TAG, "persistSeenPosts() persisting ${seenPosts.size} posts of ${toPersistMap.size} threads")
+    }
 
-        lock.write {
-          seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
+    // All threads are written in one transaction. If it fails the journal will retry later.
+    seenPostsRepository.insertMany(toPersistMap).unwrap()
 
-          val innerMap = seenPostsMap[threadDescriptor]!!
-          seenPostSet.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
-        }
+    lock.write {
+      toPersistMap.forEach { (threadDescriptor, seenPostList) ->
+        seenPostsMap.putIfNotContains(threadDescriptor, mutableMapWithCap(32))
 
-        _seenThreadUpdatesFlow.emit(threadDescriptor)
+        val innerMap = seenPostsMap[threadDescriptor]!!
+        seenPostList.forEach { seenPost -> innerMap[seenPost.postDescriptor] = seenPost }
       }
     }
+
+    toPersistMap.keys.forEach { threadDescriptor -> _seenThreadUpdatesFlow.emit(threadDescriptor) }
   }
 
   private fun isEnabled() = ChanSettings.markUnseenPosts.get()
@@ -324,6 +304,7 @@ class SeenPostsManager(
 
   companion object {
     private const val TAG = "SeenPostsManager"
-    private const val DEBOUNCE_TIMEOUT_MS = 250L
+    private const val FLUSH_DELAY_MS = 250L
+    private const val MAX_PENDING_SEEN_POSTS = 256
   }
 }
\ No newline at end of file
@@ -20,7 +20,7 @@ import io.reactivex.processors.PublishProcessor
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import kotlin.concurrent.read
 import kotlin.concurrent.write
@@ -51,15 +51,19 @@ open class SiteManager(
   private val siteRepository: SiteRepository
     get() = _siteRepository.get()
 
-  @OptIn(ExperimentalTime::class)
-  fun initialize(allSitesDeferred: CompletableDeferred<List<ChanSiteData>>) {
+  fun initialize() {
     Logger.d(TAG, "SiteManager.initialize()")
+  }
 
-    appScope.launch(Dispatchers.IO) {
-      Logger.d(TAG, "loadSitesInternal() start")
-      val time = measureTime { loadSitesInternal(allSitesDeferred) }
-      Logger.d(TAG, "loadSitesInternal() end, took ${time}")
-    }
+  /**
+   * Suspends until the sites are loaded from the database. Executed as a startup task (see
+   * [com.github.k1rakishou.chan.core.AppDependenciesInitializer]).
+   * */
+  @OptIn(ExperimentalTime::class)
+  suspend fun loadSites(allSitesDeferred: CompletableDeferred<List<ChanSiteData>>) {
+    Logger.d(TAG, "loadSitesInternal() start")
+    val time = measureTime { withContext(Dispatchers.IO) { loadSitesInternal(allSitesDeferred) } }
+    Logger.d(TAG, "loadSitesInternal() end, took ${time}")
   }
 
   @OptIn(ExperimentalTime::class)
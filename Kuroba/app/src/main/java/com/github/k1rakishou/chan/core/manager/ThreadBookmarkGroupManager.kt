@@ -495,6 +495,7 @@ class ThreadBookmarkGroupManager(
 
         listOfGroups += GroupOfThreadBookmarkItemViews(
           groupId = threadBookmarkGroup.groupId,
+          groupName = threadBookmarkGroup.groupName,
           groupInfoText = createGroupInfoText(threadBookmarkGroup, threadBookmarkItemViews),
           isExpanded = shouldGroupBeExpanded,
           threadBookmarkItemViews = threadBookmarkItemViews
@@ -858,9 +859,10 @@ class ThreadBookmarkGroupManager(
     val watchingBookmarkInGroupCount = threadBookmarkItemViews
       .count { threadBookmarkItemView -> threadBookmarkItemView.threadBookmarkStats.watching }
 
-    return String.format(
-      Locale.ENGLISH,
-      "${threadBookmarkGroup.groupName} (${watchingBookmarkInGroupCount}/${totalBookmarksInGroupCount})"
+    return GroupOfThreadBookmarkItemViews.formatGroupInfoText(
+      groupName = threadBookmarkGroup.groupName,
+      watchingBookmarkInGroupCount = watchingBookmarkInGroupCount,
+      totalBookmarksInGroupCount = totalBookmarksInGroupCount
     )
   }
 
@@ -3,10 +3,10 @@ package com.github.k1rakishou.chan.core.manager
 import androidx.annotation.GuardedBy
 import com.github.k1rakishou.chan.core.helper.OneShotRunnable
 import com.github.k1rakishou.chan.core.helper.ThreadDownloaderFileManagerWrapper
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.common.extractFileName
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.fsaf.FileManager
@@ -35,7 +35,8 @@ class ThreadDownloadManager(
   private val appScope: CoroutineScope,
   private val _threadDownloaderFileManagerWrapper: Lazy<ThreadDownloaderFileManagerWrapper>,
   private val _threadDownloadRepository: Lazy<ThreadDownloadRepository>,
-  private val _chanPostRepository: Lazy<ChanPostRepository>
+  private val _chanPostRepository: Lazy<ChanPostRepository>,
+  private val threadDownloadManifestIndex: ThreadDownloadManifestIndex
 ) {
   private val mutex = Mutex()
 
@@ -273,6 +274,7 @@ class ThreadDownloadManager(
         .clone(DirectorySegment(threadDirName))
 
       fileManager.delete(resultDirectory)
+      threadDownloadManifestIndex.forget(threadDownload.threadDescriptor)
     }
 
     threadDescriptors.forEach { threadDescriptor ->
@@ -329,7 +331,11 @@ class ThreadDownloadManager(
     return true
   }
 
-  @OptIn(ExperimentalTime::class)
+  /**
+   * Called for every thumbnail/image of a downloaded thread so it must be cheap: once the manifest of
+   * the thread is loaded (see [ThreadDownloadManifestIndex]) this is the status check, a map lookup
+   * and a stat of the found file.
+   * */
   suspend fun findDownloadedFile(
     httpUrl: HttpUrl,
     threadDescriptor: ChanDescriptor.ThreadDescriptor
@@ -341,19 +347,19 @@ class ThreadDownloadManager(
       return null
     }
 
-    val fileName = httpUrl.extractFileName()
-    if (fileName == null) {
-      return null
+    val file = if (threadDownloadManifestIndex.isLoaded(threadDescriptor)) {
+      threadDownloadManifestIndex.findFile(threadDescriptor, httpUrl)
+    } else {
+      // Loads the manifest
+      withContext(Dispatchers.IO) { threadDownloadManifestIndex.findFile(threadDescriptor, httpUrl) }
     }
 
-    return withContext(Dispatchers.IO) {
-      val threadDownloaderCacheDir = fileManager.fromRawFile(appCostants.threadDownloaderCacheDir)
-
-      val resultDirectory = threadDownloaderCacheDir
-        .clone(DirectorySegment(ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor)))
-
-      return@withContext fileManager.findFile(resultDirectory, fileName)
+    if (file == null || !file.exists()) {
+      // Deleted files are dropped from the index by the reconciliation
+      return null
     }
+
+    return fileManager.fromRawFile(file)
   }
 
   suspend fun canUseThreadDownloaderCache(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
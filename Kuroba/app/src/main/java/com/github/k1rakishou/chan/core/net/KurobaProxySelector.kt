@@ -11,23 +11,27 @@ import java.net.URI
 
 class KurobaProxySelector(
   private val proxyStorage: ProxyStorage,
+  private val proxyHealthMonitor: ProxyHealthMonitor,
   private val proxyActionType: ProxyStorage.ProxyActionType
 ) : ProxySelector() {
 
   override fun select(uri: URI): List<Proxy> {
-    val proxies = proxyStorage.getProxyByUri(uri, proxyActionType)
-    if (proxies.isEmpty()) {
-      return listOf(Proxy.NO_PROXY)
+    val proxies = proxyStorage.getProxiesByUri(uri, proxyActionType)
+    if (proxies.isNotEmpty()) {
+      proxyHealthMonitor.startProbing { proxyStorage.getAllProxies() }
     }
 
-    return proxies
+    // OkHttp tries the proxies in the returned order and moves on to the next one when it can't
+    // connect to the current one
+    return proxyHealthMonitor.selectProxies(proxies)
   }
 
   override fun connectFailed(uri: URI, sa: SocketAddress, ioe: IOException) {
     Logger.e(TAG, "connectFailed($uri, $sa, ${ioe.errorMessageOrClassName()})")
+    proxyHealthMonitor.onConnectFailed(sa, ioe)
   }
 
   companion object {
     private const val TAG = "KurobaProxySelector"
   }
-}
\ No newline at end of file
+}
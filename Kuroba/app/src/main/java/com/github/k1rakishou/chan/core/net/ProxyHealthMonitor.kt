@@ -0,0 +1,352 @@
+package com.github.k1rakishou.chan.core.net
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.core.helper.ProxyStorage
+import com.github.k1rakishou.chan.core.manager.ApplicationVisibility
+import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityListener
+import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
+import com.github.k1rakishou.common.errorMessageOrClassName
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.asSharedFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.SocketAddress
+
+/**
+ * Tracks the health of the configured proxies so that a dead proxy does not make every request of its
+ * sites fail.
+ *
+ * Proxies are probed in the background (see [ProxyProber]) and every failed connection reported by
+ * OkHttp (via [KurobaProxySelector.connectFailed]) counts as a failure too. After
+ * [FAILURE_STREAK_THRESHOLD] failures in a row the circuit of the proxy is opened: the proxy is not
+ * returned by [selectProxies] for a cooldown period (doubled every time the circuit is opened again, up
+ * to [MAX_COOLDOWN_MS]). Once the cooldown is over the proxy is half-open: it is returned again but
+ * after the healthy proxies, and the first successful probe closes the circuit.
+ *
+ * The healthy proxies are ordered by their latency (in [LATENCY_BUCKET_MS] buckets so that proxies
+ * with about the same latency keep the order configured by the user) so that OkHttp tries the fastest
+ * one first and fails over to the next ones.
+ *
+ * The background probing only runs while the app is in the foreground, in the background the health is
+ * only updated by the failed connections (and the cooldowns still end on time).
+ * */
+class ProxyHealthMonitor @JvmOverloads constructor(
+  private val appScope: CoroutineScope,
+  private val proxyProber: ProxyProber,
+  applicationVisibilityManager: ApplicationVisibilityManager,
+  private val probeIntervalMs: Long = DEFAULT_PROBE_INTERVAL_MS,
+  private val clock: () -> Long = { System.currentTimeMillis() }
+) : ApplicationVisibilityListener {
+  @GuardedBy("this")
+  private val healthMap = mutableMapOf<ProxyStorage.ProxyKey, ProxyHealth>()
+
+  @GuardedBy("this")
+  private var proxiesToProbe: (() -> List<ProxyStorage.KurobaProxy>)? = null
+  @GuardedBy("this")
+  private var isAppInForeground = applicationVisibilityManager.isAppInForeground()
+  @GuardedBy("this")
+  private var probingJob: Job? = null
+
+  val isProbing: Boolean
+    @Synchronized get() = probingJob != null
+
+  init {
+    applicationVisibilityManager.addListener(this)
+  }
+
+  private val _healthUpdates = MutableSharedFlow<ProxyStorage.ProxyKey>(extraBufferCapacity = 32)
+  val healthUpdates: SharedFlow<ProxyStorage.ProxyKey>
+    get() = _healthUpdates.asSharedFlow()
+
+  /**
+   * Returns [proxies] (ordered by the user-configured order) in the order they should be tried. Proxies
+   * with an open circuit are skipped unless there is nothing else to try, in which case they are
+   * returned anyway (the ones that will be retried the soonest first) since going around the proxy is
+   * not an option.
+   * */
+  fun selectProxies(proxies: List<ProxyStorage.KurobaProxy>): List<Proxy> {
+    if (proxies.isEmpty()) {
+      return listOf(Proxy.NO_PROXY)
+    }
+
+    val now = clock()
+
+    val candidates = synchronized(this) {
+      proxies.mapIndexed { index, kurobaProxy ->
+        val proxyHealth = healthMap[kurobaProxy.proxyKey]
+        val state = proxyHealth?.state(now) ?: ProxyHealthState.Unknown
+
+        Candidate(
+          kurobaProxy = kurobaProxy,
+          state = state,
+          latencyBucket = (proxyHealth?.latencyMs ?: 0.0).toLong() / LATENCY_BUCKET_MS,
+          circuitOpenUntil = proxyHealth?.circuitOpenUntil ?: 0L,
+          index = index
+        )
+      }
+    }
+
+    val usable = candidates
+      .filter { candidate -> candidate.state != ProxyHealthState.CircuitOpen }
+      .sortedWith(
+        compareBy<Candidate> { candidate -> if (candidate.state == ProxyHealthState.HalfOpen) 1 else 0 }
+          .thenBy { candidate -> candidate.latencyBucket }
+          .thenBy { candidate -> candidate.index }
+      )
+
+    if (usable.isNotEmpty()) {
+      return usable.map { candidate -> candidate.kurobaProxy.asJavaProxy }
+    }
+
+    return candidates
+      .sortedWith(compareBy<Candidate> { candidate -> candidate.circuitOpenUntil }.thenBy { candidate -> candidate.index })
+      .map { candidate -> candidate.kurobaProxy.asJavaProxy }
+  }
+
+  fun onConnectFailed(proxyAddress: SocketAddress, error: Throwable) {
+    val inetSocketAddress = proxyAddress as? InetSocketAddress
+      ?: return
+
+    onFailure(ProxyStorage.ProxyKey(inetSocketAddress.hostString, inetSocketAddress.port), error)
+  }
+
+  fun onProbeResult(proxyKey: ProxyStorage.ProxyKey, probeResult: ProxyProber.ProbeResult) {
+    when (probeResult) {
+      is ProxyProber.ProbeResult.Success -> onSuccess(proxyKey, probeResult.latencyMs)
+      is ProxyProber.ProbeResult.Failure -> onFailure(proxyKey, probeResult.error)
+    }
+  }
+
+  @Synchronized
+  fun getStatus(proxyKey: ProxyStorage.ProxyKey): ProxyHealthStatus {
+    val now = clock()
+
+    val proxyHealth = healthMap[proxyKey]
+      ?: return ProxyHealthStatus.UNKNOWN
+
+    val state = proxyHealth.state(now)
+
+    return ProxyHealthStatus(
+      state = state,
+      latencyMs = proxyHealth.latencyMs?.toLong(),
+      failureStreak = proxyHealth.failureStreak,
+      retryInMs = if (state == ProxyHealthState.CircuitOpen) proxyHealth.circuitOpenUntil - now else null,
+      lastError = proxyHealth.lastError
+    )
+  }
+
+  /**
+   * Starts probing the enabled proxies returned by [proxiesToProbe] every [probeIntervalMs] (and right
+   * when a cooldown ends so that a proxy that came back is noticed quickly). The probing is paused while
+   * the app is in the background and resumed once it's back in the foreground. Does nothing if already
+   * started.
+   * */
+  @Synchronized
+  fun startProbing(proxiesToProbe: () -> List<ProxyStorage.KurobaProxy>) {
+    if (this.proxiesToProbe != null) {
+      return
+    }
+
+    this.proxiesToProbe = proxiesToProbe
+    updateProbingJob()
+  }
+
+  /**
+   * Stops the probing started by [startProbing] (it won't be resumed when the app comes back to the
+   * foreground). The health that was already collected is kept.
+   * */
+  @Synchronized
+  fun stopProbing() {
+    proxiesToProbe = null
+    updateProbingJob()
+  }
+
+  @Synchronized
+  override fun onApplicationVisibilityChanged(applicationVisibility: ApplicationVisibility) {
+    isAppInForeground = applicationVisibility.isInForeground()
+    updateProbingJob()
+  }
+
+  suspend fun probeProxies(proxies: List<ProxyStorage.KurobaProxy>) {
+    if (proxies.isEmpty()) {
+      return
+    }
+
+    coroutineScope {
+      proxies
+        .map { kurobaProxy ->
+          async {
+            val probeResult = withContext(Dispatchers.IO) { proxyProber.probe(kurobaProxy) }
+            onProbeResult(kurobaProxy.proxyKey, probeResult)
+          }
+        }
+        .awaitAll()
+    }
+  }
+
+  @Synchronized
+  fun forget(proxyKey: ProxyStorage.ProxyKey) {
+    healthMap.remove(proxyKey)
+  }
+
+  private fun onSuccess(proxyKey: ProxyStorage.ProxyKey, latencyMs: Long) {
+    synchronized(this) {
+      healthMap.getOrPut(proxyKey) { ProxyHealth() }.onSuccess(latencyMs)
+    }
+
+    _healthUpdates.tryEmit(proxyKey)
+  }
+
+  private fun onFailure(proxyKey: ProxyStorage.ProxyKey, error: Throwable) {
+    synchronized(this) {
+      healthMap.getOrPut(proxyKey) { ProxyHealth() }.onFailure(error, clock())
+    }
+
+    _healthUpdates.tryEmit(proxyKey)
+  }
+
+  @GuardedBy("this")
+  private fun updateProbingJob() {
+    val proxiesToProbe = proxiesToProbe
+
+    if (proxiesToProbe == null || !isAppInForeground) {
+      probingJob?.cancel()
+      probingJob = null
+      return
+    }
+
+    if (probingJob != null) {
+      return
+    }
+
+    probingJob = appScope.launch(Dispatchers.IO) {
+      while (isActive) {
+        probeProxies(proxiesToProbe().filter { kurobaProxy -> kurobaProxy.enabled })
+        delay(nextProbeDelayMs())
+      }
+    }
+  }
+
+  @Synchronized
+  private fun nextProbeDelayMs(): Long {
+    val now = clock()
+
+    val nearestCooldownEnd = healthMap.values
+      .filter { proxyHealth -> proxyHealth.state(now) == ProxyHealthState.CircuitOpen }
+      .minOfOrNull { proxyHealth -> proxyHealth.circuitOpenUntil - now }
+      ?: probeIntervalMs
+
+    return nearestCooldownEnd.coerceIn(MIN_PROBE_DELAY_MS, probeIntervalMs)
+  }
+
+  private class Candidate(
+    val kurobaProxy: ProxyStorage.KurobaProxy,
+    val state: ProxyHealthState,
+    val latencyBucket: Long,
+    val circuitOpenUntil: Long,
+    val index: Int
+  )
+
+  private class ProxyHealth {
+    var latencyMs: Double? = null
+    var failureStreak = 0
+    var circuitOpenedTimes = 0
+    var circuitOpenUntil = 0L
+    var lastError: String? = null
+
+    fun state(now: Long): ProxyHealthState {
+      if (failureStreak < FAILURE_STREAK_THRESHOLD) {
+        return if (latencyMs == null) ProxyHealthState.Unknown else ProxyHealthState.Healthy
+      }
+
+      if (now < circuitOpenUntil) {
+        return ProxyHealthState.CircuitOpen
+      }
+
+      return ProxyHealthState.HalfOpen
+    }
+
+    fun onSuccess(sampleLatencyMs: Long) {
+      val prevLatencyMs = latencyMs
+
+      latencyMs = if (prevLatencyMs == null) {
+        sampleLatencyMs.toDouble()
+      } else {
+        prevLatencyMs + (sampleLatencyMs - prevLatencyMs) * LATENCY_EWMA_ALPHA
+      }
+
+      failureStreak = 0
+      circuitOpenedTimes = 0
+      circuitOpenUntil = 0L
+      lastError = null
+    }
+
+    fun onFailure(error: Throwable, now: Long) {
+      ++failureStreak
+      lastError = error.errorMessageOrClassName()
+
+      // A proxy with an open circuit is not used so the failures reported while the circuit is open
+      // come from requests that were already in flight, they must not extend the cooldown.
+      if (failureStreak < FAILURE_STREAK_THRESHOLD || now < circuitOpenUntil) {
+        return
+      }
+
+      val cooldownMs = (BASE_COOLDOWN_MS shl circuitOpenedTimes.coerceAtMost(MAX_COOLDOWN_SHIFT))
+        .coerceAtMost(MAX_COOLDOWN_MS)
+
+      ++circuitOpenedTimes
+      circuitOpenUntil = now + cooldownMs
+    }
+  }
+
+  enum class ProxyHealthState {
+    /** Not probed yet. */
+    Unknown,
+    Healthy,
+    /** Failed too many times in a row, not used until the cooldown is over. */
+    CircuitOpen,
+    /** The cooldown is over, used again (after the healthy proxies) until the next probe. */
+    HalfOpen
+  }
+
+  data class ProxyHealthStatus(
+    val state: ProxyHealthState,
+    val latencyMs: Long?,
+    val failureStreak: Int,
+    val retryInMs: Long?,
+    val lastError: String?
+  ) {
+    companion object {
+      val UNKNOWN = ProxyHealthStatus(
+        state = ProxyHealthState.Unknown,
+        latencyMs = null,
+        failureStreak = 0,
+        retryInMs = null,
+        lastError = null
+      )
+    }
+  }
+
+  companion object {
+    const val FAILURE_STREAK_THRESHOLD = 3
+    const val BASE_COOLDOWN_MS = 30_000L
+    const val MAX_COOLDOWN_MS = 10L * 60L * 1000L
+    const val LATENCY_BUCKET_MS = 500L
+
+    private const val MAX_COOLDOWN_SHIFT = 5
+    private const val LATENCY_EWMA_ALPHA = 0.3
+    private const val DEFAULT_PROBE_INTERVAL_MS = 60_000L
+    private const val MIN_PROBE_DELAY_MS = 1000L
+  }
+}
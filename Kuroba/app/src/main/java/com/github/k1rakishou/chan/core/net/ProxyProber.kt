@@ -0,0 +1,115 @@
+package com.github.k1rakishou.chan.core.net
+
+import com.github.k1rakishou.chan.core.helper.ProxyStorage
+import java.io.BufferedReader
+import java.io.IOException
+import java.io.InputStreamReader
+import java.net.InetSocketAddress
+import java.net.Socket
+
+interface ProxyProber {
+  /**
+   * Blocking. Checks whether [kurobaProxy] is alive and how long it takes to respond.
+   * */
+  fun probe(kurobaProxy: ProxyStorage.KurobaProxy): ProbeResult
+
+  sealed class ProbeResult {
+    data class Success(val latencyMs: Long) : ProbeResult()
+    data class Failure(val error: Throwable) : ProbeResult()
+  }
+}
+
+/**
+ * Talks to the proxy directly instead of sending a real request through it: HTTP proxies are asked to
+ * open a tunnel (CONNECT) to [probeHost], SOCKS proxies are sent the SOCKS5 greeting. This way a probe
+ * does not depend on the state of the sites behind the proxy and costs a single round trip.
+ * */
+class SocketProxyProber(
+  private val connectTimeoutMs: Int = DEFAULT_CONNECT_TIMEOUT_MS,
+  private val readTimeoutMs: Int = DEFAULT_READ_TIMEOUT_MS,
+  private val probeHost: String = DEFAULT_PROBE_HOST,
+  private val probePort: Int = DEFAULT_PROBE_PORT
+) : ProxyProber {
+
+  override fun probe(kurobaProxy: ProxyStorage.KurobaProxy): ProxyProber.ProbeResult {
+    val start = System.currentTimeMillis()
+
+    return try {
+      Socket().use { socket ->
+        socket.soTimeout = readTimeoutMs
+        socket.connect(InetSocketAddress(kurobaProxy.address, kurobaProxy.port), connectTimeoutMs)
+
+        when (kurobaProxy.proxyType) {
+          ProxyStorage.KurobaProxyType.HTTP -> probeHttpProxy(socket)
+          ProxyStorage.KurobaProxyType.SOCKS -> probeSocksProxy(socket)
+        }
+      }
+
+      ProxyProber.ProbeResult.Success(System.currentTimeMillis() - start)
+    } catch (error: IOException) {
+      ProxyProber.ProbeResult.Failure(error)
+    }
+  }
+
+  private fun probeHttpProxy(socket: Socket) {
+    val request = "CONNECT $probeHost:$probePort HTTP/1.1\r\n" +
+      "Host: $probeHost:$probePort\r\n" +
+      "\r\n"
+
+    socket.getOutputStream().apply {
+      write(request.toByteArray(Charsets.US_ASCII))
+      flush()
+    }
+
+    val statusLine = BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.US_ASCII)).readLine()
+      ?: throw IOException("Proxy closed the connection without a response")
+
+    // "HTTP/1.1 200 Connection established"
+    val statusCode = statusLine.split(' ').getOrNull(1)?.toIntOrNull()
+    if (!statusLine.startsWith("HTTP/") || statusCode == null) {
+      throw IOException("Not an HTTP proxy response: '$statusLine'")
+    }
+
+    if (statusCode !in 200..299) {
+      throw IOException("Proxy responded with status $statusCode")
+    }
+  }
+
+  private fun probeSocksProxy(socket: Socket) {
+    // Version 5, one authentication method: no authentication
+    socket.getOutputStream().apply {
+      write(byteArrayOf(SOCKS_VERSION, 0x01, SOCKS_NO_AUTHENTICATION))
+      flush()
+    }
+
+    val response = ByteArray(2)
+    var read = 0
+
+    while (read < response.size) {
+      val count = socket.getInputStream().read(response, read, response.size - read)
+      if (count < 0) {
+        throw IOException("Proxy closed the connection without a response")
+      }
+
+      read += count
+    }
+
+    if (response[0] != SOCKS_VERSION) {
+      throw IOException("Not a SOCKS5 proxy response: version ${response[0]}")
+    }
+
+    if (response[1] != SOCKS_NO_AUTHENTICATION) {
+      throw IOException("Proxy requires an unsupported authentication method: ${response[1]}")
+    }
+  }
+
+  companion object {
+    const val DEFAULT_CONNECT_TIMEOUT_MS = 10_000
+    const val DEFAULT_READ_TIMEOUT_MS = 10_000
+    const val DEFAULT_PROBE_HOST = "example.com"
+    const val DEFAULT_PROBE_PORT = 443
+
+    private const val SOCKS_VERSION: Byte = 0x05
+    private const val SOCKS_NO_AUTHENTICATION: Byte = 0x00
+  }
+}
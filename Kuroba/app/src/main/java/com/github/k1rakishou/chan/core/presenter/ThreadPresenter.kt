@@ -59,6 +59,7 @@ import com.github.k1rakishou.chan.core.site.http.report.PostReportData
 import com.github.k1rakishou.chan.core.site.http.report.PostReportResult
 import com.github.k1rakishou.chan.core.site.loader.ChanLoaderException
 import com.github.k1rakishou.chan.core.site.loader.ClientException
+import com.github.k1rakishou.chan.core.site.loader.CompositeCatalogLoader
 import com.github.k1rakishou.chan.core.site.loader.ThreadLoadResult
 import com.github.k1rakishou.chan.features.drawer.data.NavigationHistoryEntry
 import com.github.k1rakishou.chan.features.media_viewer.helper.MediaViewerGoToPostHelper
@@ -93,6 +94,7 @@ import com.github.k1rakishou.core_themes.ThemeEngine
 import com.github.k1rakishou.core_themes.ThemeParser
 import com.github.k1rakishou.model.data.board.pages.BoardPage
 import com.github.k1rakishou.model.data.board.pages.BoardPages
+import com.github.k1rakishou.model.data.catalog.ChanCompositeCatalogSnapshot
 import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
@@ -106,6 +108,7 @@ import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.model.data.thread.ChanThread
+import com.github.k1rakishou.model.repository.ChanCatalogSnapshotRepository
 import com.github.k1rakishou.model.repository.ChanPostRepository
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.util.ChanPostUtils
@@ -120,9 +123,7 @@ import kotlinx.coroutines.Job
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.cancelChildren
 import kotlinx.coroutines.delay
-import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.debounce
-import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.withContext
@@ -160,6 +161,7 @@ class ThreadPresenter @Inject constructor(
   private val _postHighlightManager: Lazy<PostHighlightManager>,
   private val _currentOpenedDescriptorStateManager: Lazy<CurrentOpenedDescriptorStateManager>,
   private val _chanCatalogSnapshotCache: Lazy<ChanCatalogSnapshotCache>,
+  private val _chanCatalogSnapshotRepository: Lazy<ChanCatalogSnapshotRepository>,
   private val _compositeCatalogManager: Lazy<CompositeCatalogManager>
 ) : PostAdapterCallback,
   PostCellCallback,
@@ -215,6 +217,8 @@ class ThreadPresenter @Inject constructor(
     get() = _currentOpenedDescriptorStateManager.get()
   private val chanCatalogSnapshotCache: ChanCatalogSnapshotCache
     get() = _chanCatalogSnapshotCache.get()
+  private val chanCatalogSnapshotRepository: ChanCatalogSnapshotRepository
+    get() = _chanCatalogSnapshotRepository.get()
   private val compositeCatalogManager: CompositeCatalogManager
     get() = _compositeCatalogManager.get()
   private val mediaViewerGoToPostHelper: MediaViewerGoToPostHelper
@@ -679,82 +683,88 @@ class ThreadPresenter @Inject constructor(
         return@launch
       }
 
-      var lastThreadLoadResult: ThreadLoadResult? = null
-
-      while (isActive) {
-        ensureActive()
-
-        val catalogSnapshot = chanCatalogSnapshotCache.get(currentChanDescriptor)
-        if (catalogSnapshot == null) {
-          Logger.d(TAG, "loadWholeCompositeCatalog() catalogSnapshot == null exiting")
-          break
-        }
-
-        if (catalogSnapshot.isEndReached) {
-          Logger.d(TAG, "loadWholeCompositeCatalog() isEndReached == true exiting")
-          break
-        }
-
-        val catalogPageToLoad = catalogSnapshot.getNextCatalogPage()
-        val totalCatalogPages = (currentChanDescriptor.catalogDescriptors.size - 1)
-
-        Logger.d(TAG, "loadWholeCompositeCatalog() loading ${catalogPageToLoad}/${totalCatalogPages}...")
+      val catalogSnapshot = chanCatalogSnapshotCache.get(currentChanDescriptor)
+      if (catalogSnapshot == null) {
+        Logger.d(TAG, "loadWholeCompositeCatalog() catalogSnapshot == null exiting")
+        return@launch
+      }
 
-        val nextDescriptorToLoad = currentChanDescriptor.catalogDescriptors.getOrNull(catalogPageToLoad ?: 0)
-        if (nextDescriptorToLoad == null) {
-          Logger.d(TAG, "loadWholeCompositeCatalog() nextDescriptorToLoad == null exiting")
-          break
-        }
+      // Catalogs before this page were already loaded (by scrolling down the composite catalog) so
+      // they are not requested again but they still take part in the merge.
+      val firstCatalogPageToLoad = catalogSnapshot.getNextCatalogPage()
+      val catalogDescriptors = currentChanDescriptor.catalogDescriptors
+      val order = PostsFilter.Order.find(ChanSettings.boardOrder.get())
+
+      val lastUpdate = CompositeCatalogLoader().load(
+        catalogDescriptors = catalogDescriptors,
+        comparator = PostsFilter.compositeCatalogMergeComparator(order),
+        loadCatalog = { catalogPage, catalogDescriptor ->
+          if (catalogPage >= firstCatalogPageToLoad) {
+            Logger.d(TAG, "loadWholeCompositeCatalog() loading ${catalogDescriptor}...")
+
+            val threadLoadResult = chanThreadManager.loadThreadOrCatalog(
+              page = catalogPage,
+              compositeCatalogDescriptor = currentChanDescriptor,
+              chanDescriptor = catalogDescriptor,
+              chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateCache,
+              chanLoadOptions = ChanLoadOptions.retainAll(),
+              chanCacheOptions = ChanCacheOptions.onlyCacheInMemory(),
+              chanReadOptions = ChanReadOptions.default()
+            )
 
-        val message = "Loading catalog '${nextDescriptorToLoad.userReadableString()}' " +
-          "${catalogPageToLoad}/${totalCatalogPages}"
-        loadingController?.updateWithText(message)
-
-        lastThreadLoadResult = chanThreadManager.loadThreadOrCatalog(
-          page = catalogPageToLoad,
-          compositeCatalogDescriptor = currentChanDescriptor,
-          chanDescriptor = nextDescriptorToLoad,
-          chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateCache,
-          chanLoadOptions = ChanLoadOptions.retainAll(),
-          chanCacheOptions = ChanCacheOptions.onlyCacheInMemory(),
-          chanReadOptions = ChanReadOptions.default()
-        )
+            if (threadLoadResult is ThreadLoadResult.Error) {
+              Logger.e(TAG, "loadWholeCompositeCatalog() ${catalogDescriptor} error. " +
+                "Reason: ${threadLoadResult.exception.errorMessage}")
+              throw threadLoadResult.exception
+            }
 
-        when (lastThreadLoadResult) {
-          is ThreadLoadResult.Loaded -> {
-            Logger.d(TAG, "loadWholeCompositeCatalog() ${nextDescriptorToLoad} success")
+            Logger.d(TAG, "loadWholeCompositeCatalog() loading ${catalogDescriptor}...done")
           }
-          is ThreadLoadResult.Error -> {
-            Logger.e(TAG, "loadWholeCompositeCatalog() ${nextDescriptorToLoad} error. " +
-              "Reason: ${lastThreadLoadResult.exception.errorMessage}")
+
+          chanThreadManager.getChanCatalog(catalogDescriptor)
+            ?.mapPostsOrdered { chanOriginalPost -> chanOriginalPost }
+            ?: emptyList()
+        },
+        onUpdate = { update ->
+          val loadedCatalogs = catalogDescriptors.size - update.remaining
+          loadingController?.updateWithText("Loaded catalogs ${loadedCatalogs}/${catalogDescriptors.size}")
+
+          val lastLoadedCatalog = update.loaded.lastOrNull()
+          if (lastLoadedCatalog == null) {
+            // Nothing to show yet, all catalogs so far have failed to load
+            return@load
           }
-        }
 
-        catalogSnapshot.onCatalogLoaded(catalogPageToLoad)
-        Logger.d(TAG, "loadWholeCompositeCatalog() loading ${catalogPageToLoad}/${totalCatalogPages}...done")
-      }
+          (chanCatalogSnapshotCache.get(currentChanDescriptor) as? ChanCompositeCatalogSnapshot)
+            ?.updateMergedOrder(update.merged.map { chanOriginalPost -> chanOriginalPost.postDescriptor.threadDescriptor() })
 
-      when (lastThreadLoadResult) {
-        is ThreadLoadResult.Error -> {
-          onChanLoaderError(lastThreadLoadResult.chanDescriptor, lastThreadLoadResult.exception)
-        }
-        is ThreadLoadResult.Loaded -> {
+          // Show what we have so far without waiting for the rest of the catalogs
           val successfullyProcessedNewPosts = onChanLoaderData(
-            loadedChanDescriptor = lastThreadLoadResult.chanDescriptor,
+            loadedChanDescriptor = lastLoadedCatalog,
             refreshPostPopupHelperPosts = false
           )
-          if (!successfullyProcessedNewPosts) {
-            val error = getPossibleChanLoadError(currentChanDescriptor)
-            onChanLoaderError(lastThreadLoadResult.chanDescriptor, error)
-          } else {
-            chanCatalogSnapshotCache.get(currentChanDescriptor)
-              ?.onEndOfUnlimitedCatalogReached()
+
+          if (!successfullyProcessedNewPosts && update.isLast) {
+            onChanLoaderError(lastLoadedCatalog, getPossibleChanLoadError(currentChanDescriptor))
           }
         }
-        null -> {
-          chanCatalogSnapshotCache.get(currentChanDescriptor)
-            ?.onEndOfUnlimitedCatalogReached()
-        }
+      )
+
+      val lastFailure = lastUpdate.failed.entries.lastOrNull()
+      if (lastUpdate.loaded.isEmpty() && lastFailure != null) {
+        val error = lastFailure.value as? ChanLoaderException ?: ChanLoaderException(lastFailure.value)
+        onChanLoaderError(lastFailure.key, error)
+        return@launch
+      }
+
+      if (lastUpdate.failed.isNotEmpty()) {
+        val failedCatalogs = lastUpdate.failed.keys.joinToString { catalogDescriptor -> catalogDescriptor.userReadableString() }
+        showToast(context, getString(R.string.composite_catalog_failed_to_load_catalogs, failedCatalogs))
+      }
+
+      chanCatalogSnapshotCache.get(currentChanDescriptor)?.let { compositeCatalogSnapshot ->
+        compositeCatalogSnapshot.onCatalogLoaded(catalogDescriptors.lastIndex)
+        compositeCatalogSnapshot.onEndOfUnlimitedCatalogReached()
       }
 
       Logger.d(TAG, "loadWholeCompositeCatalog() end")
@@ -841,6 +851,9 @@ class ThreadPresenter @Inject constructor(
         null
       }
 
+      // Composite catalogs are paged: every page is a single catalog which is only requested once the
+      // user scrolls to the end of the previous one. There is nothing to load concurrently here, the
+      // whole composite catalog is loaded concurrently by loadWholeCompositeCatalog().
       val nextDescriptorToLoad = if (currentChanDescriptor is ChanDescriptor.CompositeCatalogDescriptor) {
         currentChanDescriptor.catalogDescriptors.getOrNull(catalogPageToLoad ?: 0)
       } else {
@@ -1182,11 +1195,42 @@ class ThreadPresenter @Inject constructor(
       if (localChanDescriptor is ChanDescriptor.ThreadDescriptor) {
         updateBookmarkInfoIfNecessary(localChanDescriptor)
       }
+
+      if (localChanDescriptor is ChanDescriptor.CatalogDescriptor) {
+        showCatalogChangesSinceLastVisit(localChanDescriptor)
+      }
     }
 
     return true
   }
 
+  private suspend fun showCatalogChangesSinceLastVisit(catalogDescriptor: ChanDescriptor.CatalogDescriptor) {
+    // Loading the next page of an unlimited catalog would look like a bunch of new threads
+    if (chanCatalogSnapshotCache.get(catalogDescriptor)?.isUnlimitedOrCompositeCatalog != false) {
+      return
+    }
+
+    val catalogSnapshotChanges = chanCatalogSnapshotRepository.consumeCatalogChangesSinceLastVisit(catalogDescriptor)
+      .peekError { error -> Logger.e(TAG, "consumeCatalogChangesSinceLastVisit($catalogDescriptor) error", error) }
+      .valueOrNull()
+
+    if (catalogSnapshotChanges == null || catalogSnapshotChanges.isEmpty()) {
+      return
+    }
+
+    withContext(Dispatchers.Main) {
+      if (currentChanDescriptor != catalogDescriptor || threadPresenterCallback?.canShowSnackBar() != true) {
+        return@withContext
+      }
+
+      threadPresenterCallback?.showCatalogChangesNotification(
+        newThreadsCount = catalogSnapshotChanges.newThreads.size,
+        bumpedThreadsCount = catalogSnapshotChanges.bumpedThreads.size,
+        droppedThreadsCount = catalogSnapshotChanges.droppedThreads.size
+      )
+    }
+  }
+
   private fun showThreadStatusSnackbar(chanThread: ChanThread?, newPostsCount: Int) {
     val isNowSticky = chanThread?.getAndConsumeIsStickyForUi()
     val isNowArchived = chanThread?.getAndConsumeIsArchivedForUi()
@@ -2971,6 +3015,7 @@ class ThreadPresenter @Inject constructor(
     fun showDeleting()
     fun hideDeleting(message: String)
     fun showNewPostsNotification(show: Boolean, newPostsCount: Int, deletedPostsCount: Int)
+    fun showCatalogChangesNotification(newThreadsCount: Int, bumpedThreadsCount: Int, droppedThreadsCount: Int)
     fun showThreadStatusNotification(
       show: Boolean,
       nowSticky: Boolean?,
@@ -47,8 +47,13 @@ class ImportExportRepository @Inject constructor(
     return exportBackupFileUseCase.execute(params)
   }
 
-  suspend fun importFrom(backupFile: ExternalFile): ModularResult<Unit> {
-    return importBackupFileUseCase.execute(backupFile)
+  suspend fun importFrom(
+    backupFile: ExternalFile,
+    previousGenerationFiles: List<ExternalFile> = emptyList()
+  ): ModularResult<Unit> {
+    val params = ImportBackupFileUseCase.Params(backupFile, previousGenerationFiles)
+
+    return importBackupFileUseCase.execute(params)
   }
 
   suspend fun importFromKuroba(settingsFile: ExternalFile): ModularResult<Boolean> {
@@ -16,9 +16,9 @@
  */
 package com.github.k1rakishou.chan.core.site
 
+import com.github.k1rakishou.AppendLogSettingProvider
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.Setting
-import com.github.k1rakishou.SharedPreferencesSettingProvider
 import com.github.k1rakishou.chan.Chan
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.core.base.okhttp.RealProxiedOkHttpClient
@@ -100,7 +100,9 @@ abstract class SiteBase : Site, CoroutineScope {
 
   protected val prefs by lazy {
     val sharedPrefs = AppModuleAndroidUtils.getPreferencesForSite(siteDescriptor())
-    return@lazy SharedPreferencesSettingProvider(sharedPrefs)
+    val sharedPrefsName = AppModuleAndroidUtils.getPreferencesNameForSite(siteDescriptor())
+
+    return@lazy AppendLogSettingProvider.forSharedPreferences(sharedPrefsName, sharedPrefs)
   }
 
   open val siteDomainSetting: StringSetting? = null
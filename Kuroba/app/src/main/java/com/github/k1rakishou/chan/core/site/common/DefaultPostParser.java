@@ -18,7 +18,6 @@ package com.github.k1rakishou.chan.core.site.common;
 
 import android.text.Spannable;
 import android.text.SpannableString;
-import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
@@ -38,13 +37,14 @@ import com.github.k1rakishou.core_parser.comment.HtmlNode;
 import com.github.k1rakishou.core_parser.comment.HtmlParser;
 import com.github.k1rakishou.core_parser.comment.HtmlTag;
 import com.github.k1rakishou.core_spannable.PostLinkable;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrBuilder;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrSpannables;
 import com.github.k1rakishou.model.data.post.ChanPost;
 import com.github.k1rakishou.model.data.post.ChanPostBuilder;
 
 import org.jsoup.parser.Parser;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,18 +76,16 @@ public class DefaultPostParser implements PostParser {
 
         if (!builder.postCommentBuilder.commentAlreadyParsed()) {
             if (builder.postCommentBuilder.hasUnparsedComment()) {
-                Spannable parsedComment = parseComment(
+                CommentIr parsedComment = parseCommentIr(
                         builder,
                         builder.postCommentBuilder.getUnparsedComment(),
                         callback
                 );
 
-                PostParserHelper.detectAndMarkThemeJsonSpan(parsedComment);
-
                 builder.postCommentBuilder.setParsedComment(parsedComment);
             } else {
                 builder.postCommentBuilder.setUnparsedComment("");
-                builder.postCommentBuilder.setParsedComment(new SpannableString(""));
+                builder.postCommentBuilder.setParsedComment(CommentIr.EMPTY);
             }
         }
 
@@ -131,8 +129,39 @@ public class DefaultPostParser implements PostParser {
             return SpannableString.valueOf(commentRaw);
         }
 
-        SpannableStringBuilder total = new SpannableStringBuilder("");
+        CommentIrBuilder builder = new CommentIrBuilder(commentRaw.length());
+        parseCommentInto(post, commentRaw, callback, builder);
+
+        return CommentIrSpannables.toSpannable(builder.build());
+    }
 
+    /**
+     * Parses the comment without creating any Android spans (except for the tags that are handled
+     * by actions, see {@link CommentParser#handleTagIr}). The spans are created once the comment is
+     * displayed.
+     */
+    public CommentIr parseCommentIr(
+            ChanPostBuilder post,
+            CharSequence commentRaw,
+            Callback callback
+    ) {
+        if (commentRaw.length() <= 0) {
+            return CommentIr.EMPTY;
+        }
+
+        CommentIrBuilder builder = new CommentIrBuilder(commentRaw.length());
+        parseCommentInto(post, commentRaw, callback, builder);
+        PostParserHelper.detectAndMarkThemeJsonSpan(builder);
+
+        return builder.build();
+    }
+
+    private void parseCommentInto(
+            ChanPostBuilder post,
+            CharSequence commentRaw,
+            Callback callback,
+            CommentIrBuilder builder
+    ) {
         try {
             String comment = commentRaw.toString().replace("<wbr>", "");
 
@@ -143,76 +172,61 @@ public class DefaultPostParser implements PostParser {
             }
 
             HtmlDocument document = htmlParser.parse(comment);
+            boolean forceHttpsScheme = ChanSettings.forceHttpsUrlScheme.get();
 
-            List<HtmlNode> nodes = document.getNodes();
-            List<CharSequence> texts = new ArrayList<>(nodes.size());
-
-            for (HtmlNode node : nodes) {
-                CharSequence nodeParsed = parseNode(post, callback, node);
-                if (nodeParsed != null) {
-                    texts.add(nodeParsed);
-                }
-            }
-
-            for (CharSequence text : texts) {
-                total.append(text);
+            for (HtmlNode node : document.getNodes()) {
+                parseNode(post, callback, node, forceHttpsScheme, builder);
             }
         } catch (Throwable e) {
             Logger.e(TAG, "Error parsing comment html", e);
         }
-
-        return SpannableString.valueOf(total);
     }
 
-    private CharSequence parseNode(
+    /**
+     * Appends the node to the builder. Children are appended before their parent tag is handled so
+     * the whole comment is built in one pass without concatenating the text of every nesting level.
+     */
+    private void parseNode(
             ChanPostBuilder post,
             Callback callback,
-            HtmlNode node
+            HtmlNode node,
+            boolean forceHttpsScheme,
+            CommentIrBuilder builder
     ) {
         if (node instanceof HtmlNode.Text) {
             HtmlNode.Text textNode = (HtmlNode.Text) node;
             String text = postProcessText(textNode, textNode.getText());
-            boolean forceHttpsScheme = ChanSettings.forceHttpsUrlScheme.get();
 
-            return CommentParserHelper.detectLinks(
+            CommentParserHelper.detectLinks(
                     post,
                     text,
                     forceHttpsScheme,
-                    this::handleLink
+                    this::handleLink,
+                    builder
             );
         } else if (node instanceof HtmlNode.Tag) {
             HtmlTag tag = commentParser.preprocessTag((HtmlNode.Tag) node);
             String nodeName = tag.getTagName();
 
+            int textStart = builder.getLength();
+            int spanStart = builder.getSpanCount();
+
             // Recursively call parseNode with the nodes of the paragraph.
-            List<HtmlNode> innerNodes = tag.getChildren();
-            List<CharSequence> texts = new ArrayList<>(innerNodes.size() + 1);
-
-            for (HtmlNode innerNode : innerNodes) {
-                CharSequence nodeParsed = parseNode(post, callback, innerNode);
-                if (nodeParsed != null) {
-                    texts.add(nodeParsed);
-                }
+            for (HtmlNode innerNode : tag.getChildren()) {
+                parseNode(post, callback, innerNode, forceHttpsScheme, builder);
             }
 
-            CharSequence allInnerText = TextUtils.concat(texts.toArray(new CharSequence[0]));
-
-            CharSequence result = commentParser.handleTag(
+            commentParser.handleTagIr(
                     callback,
                     post,
                     nodeName,
-                    allInnerText,
-                    tag
+                    tag,
+                    builder,
+                    textStart,
+                    spanStart
             );
-
-            if (result != null) {
-                return result;
-            } else {
-                return allInnerText;
-            }
         } else {
             Logger.e(TAG, "Unknown node instance: " + node.getClass().getName());
-            return ""; // ?
         }
     }
 
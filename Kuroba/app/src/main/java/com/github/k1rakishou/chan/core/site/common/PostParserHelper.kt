@@ -1,12 +1,10 @@
 package com.github.k1rakishou.chan.core.site.common
 
 import android.graphics.Color
-import android.text.Spannable
 import com.github.k1rakishou.common.groupOrNull
-import com.github.k1rakishou.common.setSpanSafe
-import com.github.k1rakishou.core_spannable.BackgroundColorSpanHashed
-import com.github.k1rakishou.core_spannable.ForegroundColorSpanHashed
 import com.github.k1rakishou.core_spannable.ThemeJsonSpannable
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrBuilder
 import com.github.k1rakishou.core_themes.ThemeEngine
 import java.util.regex.Pattern
 
@@ -26,7 +24,9 @@ object PostParserHelper {
   private val THEME_TYPE_PATTERN = Pattern.compile("\"is_light_theme\"\\s*:\\s*(true|false)")
 
   @JvmStatic
-  fun detectAndMarkThemeJsonSpan(parsedCommentText: Spannable) {
+  fun detectAndMarkThemeJsonSpan(builder: CommentIrBuilder) {
+    val parsedCommentText = builder.text
+
     if (!textContainsValidJson(parsedCommentText)) {
       return
     }
@@ -37,7 +37,7 @@ object PostParserHelper {
     }
 
     for ((jsonOpenBracketIndex, jsonEndBracketIndex) in jsonParts) {
-      val themeJson = parsedCommentText.subSequence(jsonOpenBracketIndex, jsonEndBracketIndex) as Spannable
+      val themeJson = parsedCommentText.subSequence(jsonOpenBracketIndex, jsonEndBracketIndex)
       if (!isProbablyThemeJson(themeJson)) {
         continue
       }
@@ -50,18 +50,18 @@ object PostParserHelper {
       val themeName = tryExtractThemeName(themeJson)
       val isLightTheme = isLightThemeMaybe == true
 
-      applyThemeJsonSpannable(parsedCommentText, jsonOpenBracketIndex, jsonEndBracketIndex, themeName, isLightTheme)
+      applyThemeJsonSpannable(builder, jsonOpenBracketIndex, jsonEndBracketIndex, themeName, isLightTheme)
     }
   }
 
   private fun applyThemeJsonSpannable(
-    parsedCommentText: Spannable,
+    builder: CommentIrBuilder,
     spannableStart: Int,
     spannableEnd: Int,
     themeName: String,
     isLightTheme: Boolean
   ) {
-    val matcher = RAW_COLOR_PATTERN.matcher(parsedCommentText)
+    val matcher = RAW_COLOR_PATTERN.matcher(builder.text)
     var hasAtLeastOneValidColor = false
 
     while (matcher.find()) {
@@ -80,8 +80,8 @@ object PostParserHelper {
         Color.BLACK
       }
 
-      parsedCommentText.setSpanSafe(BackgroundColorSpanHashed(color), matcher.start(), matcher.end(), 0)
-      parsedCommentText.setSpanSafe(ForegroundColorSpanHashed(textColor), matcher.start(), matcher.end(), 0)
+      builder.setSpan(CommentIr.SPAN_BACKGROUND_COLOR, matcher.start(), matcher.end(), 0, color)
+      builder.setSpan(CommentIr.SPAN_FOREGROUND_COLOR, matcher.start(), matcher.end(), 0, textColor)
 
       hasAtLeastOneValidColor = true
     }
@@ -91,7 +91,7 @@ object PostParserHelper {
     }
 
     val themeJsonSpannable = ThemeJsonSpannable(themeName, isLightTheme)
-    parsedCommentText.setSpanSafe(themeJsonSpannable, spannableStart, spannableEnd, 0)
+    builder.setObjectSpan(CommentIr.SPAN_OBJECT, spannableStart, spannableEnd, 0, themeJsonSpannable)
   }
 
   private fun tryExtractThemeName(themeJson: CharSequence): String {
@@ -20,6 +20,7 @@ import static com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.sp;
 
 import androidx.annotation.NonNull;
 
+import com.github.k1rakishou.chan.core.site.parser.AnchorRouteTable;
 import com.github.k1rakishou.chan.core.site.parser.CommentParser;
 import com.github.k1rakishou.chan.core.site.parser.ICommentParser;
 import com.github.k1rakishou.chan.core.site.parser.style.StyleRule;
@@ -30,6 +31,11 @@ import java.util.regex.Pattern;
 public class TaimabaCommentParser extends CommentParser implements ICommentParser {
     private static final Pattern QUOTE_PATTERN = Pattern.compile("#(\\d+)");
     private static final Pattern FULL_QUOTE_PATTERN = Pattern.compile("/(\\w+)/thread/(\\d+)#(\\d+)");
+    private static final AnchorRouteTable ANCHOR_ROUTE_TABLE = new AnchorRouteTable.Builder()
+            .fullQuote("/{board}/thread/{thread}#{post}")
+            .quote("#{post}")
+            .defaultBoardRoutes()
+            .build();
 
     public TaimabaCommentParser() {
         super();
@@ -55,4 +61,10 @@ public class TaimabaCommentParser extends CommentParser implements ICommentParse
     public Pattern getFullQuotePattern() {
         return FULL_QUOTE_PATTERN;
     }
-}
\ No newline at end of file
+
+    @NonNull
+    @Override
+    protected AnchorRouteTable getAnchorRouteTable() {
+        return ANCHOR_ROUTE_TABLE;
+    }
+}
@@ -18,6 +18,7 @@ package com.github.k1rakishou.chan.core.site.common.vichan;
 
 import androidx.annotation.NonNull;
 
+import com.github.k1rakishou.chan.core.site.parser.AnchorRouteTable;
 import com.github.k1rakishou.chan.core.site.parser.CommentParser;
 import com.github.k1rakishou.chan.core.site.parser.ICommentParser;
 import com.github.k1rakishou.chan.core.site.parser.style.StyleRule;
@@ -28,6 +29,11 @@ import java.util.regex.Pattern;
 public class VichanCommentParser extends CommentParser implements ICommentParser {
     private static final Pattern QUOTE_PATTERN = Pattern.compile("#(\\d+)");
     private static final Pattern FULL_QUOTE_PATTERN = Pattern.compile("/(\\w+)/\\w+/(\\d+)\\.html#(\\d+)");
+    private static final AnchorRouteTable ANCHOR_ROUTE_TABLE = new AnchorRouteTable.Builder()
+            .fullQuote("/{board}/{_}/{thread}.html#{post}")
+            .quote("#{post}")
+            .defaultBoardRoutes()
+            .build();
 
     public VichanCommentParser() {
         addDefaultRules();
@@ -53,4 +59,10 @@ public class VichanCommentParser extends CommentParser implements ICommentParser
     public Pattern getFullQuotePattern() {
         return FULL_QUOTE_PATTERN;
     }
+
+    @NonNull
+    @Override
+    protected AnchorRouteTable getAnchorRouteTable() {
+        return ANCHOR_ROUTE_TABLE;
+    }
 }
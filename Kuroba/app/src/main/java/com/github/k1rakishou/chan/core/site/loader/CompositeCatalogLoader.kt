@@ -0,0 +1,172 @@
+package com.github.k1rakishou.chan.core.site.loader
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import java.util.*
+
+/**
+ * Loads all catalogs of a composite catalog concurrently (at most [maxConcurrentLoads] at a time)
+ * instead of one catalog per page. Every time a catalog is loaded the threads of all catalogs loaded
+ * so far are k-way merged using the comparator and [onUpdate] is called with the result, so the
+ * first catalog can be shown as soon as it's loaded without waiting for the rest.
+ *
+ * A catalog that fails to load doesn't fail the whole load, its error is reported in [Update.failed]
+ * and the threads of the other catalogs are still shown.
+ * */
+class CompositeCatalogLoader(
+  private val maxConcurrentLoads: Int = DEFAULT_MAX_CONCURRENT_LOADS
+) {
+
+  init {
+    require(maxConcurrentLoads > 0) { "Bad maxConcurrentLoads: $maxConcurrentLoads" }
+  }
+
+  /**
+   * @param comparator sort order of the merged catalog. Threads that are equal according to it are
+   * interleaved (the first thread of every catalog, then the second thread of every catalog etc.)
+   * @param loadCatalog loads the catalog with the index and returns its threads. May throw.
+   * @param onUpdate called (sequentially) after every catalog either loaded or failed to load.
+   * */
+  suspend fun <T> load(
+    catalogDescriptors: List<ChanDescriptor.CatalogDescriptor>,
+    comparator: Comparator<in T>,
+    loadCatalog: suspend (Int, ChanDescriptor.CatalogDescriptor) -> List<T>,
+    onUpdate: suspend (Update<T>) -> Unit
+  ): Update<T> {
+    if (catalogDescriptors.isEmpty()) {
+      return Update(emptyList(), emptyList(), emptyMap(), 0)
+    }
+
+    val semaphore = Semaphore(maxConcurrentLoads)
+    val completions = Channel<Completion<T>>(capacity = Channel.UNLIMITED)
+
+    val runs = arrayOfNulls<List<T>>(catalogDescriptors.size)
+    val loaded = mutableListOf<ChanDescriptor.CatalogDescriptor>()
+    val failed = linkedMapOf<ChanDescriptor.CatalogDescriptor, Throwable>()
+    var lastUpdate: Update<T>? = null
+
+    coroutineScope {
+      catalogDescriptors.forEachIndexed { index, catalogDescriptor ->
+        launch {
+          val completion = semaphore.withPermit {
+            try {
+              // Each catalog is sorted on its own first (stable so that the catalog's own order is
+              // kept for equal threads), then all of them are merged together.
+              Completion.Success(index, loadCatalog(index, catalogDescriptor).sortedWith(comparator))
+            } catch (error: Throwable) {
+              if (error is CancellationException) {
+                throw error
+              }
+
+              Completion.Failure<T>(index, error)
+            }
+          }
+
+          completions.send(completion)
+        }
+      }
+
+      repeat(catalogDescriptors.size) { completedCount ->
+        when (val completion = completions.receive()) {
+          is Completion.Success -> {
+            runs[completion.index] = completion.threads
+            loaded += catalogDescriptors[completion.index]
+          }
+          is Completion.Failure -> {
+            failed[catalogDescriptors[completion.index]] = completion.error
+          }
+        }
+
+        val update = Update(
+          merged = merge(runs.toList(), comparator),
+          loaded = loaded.toList(),
+          failed = LinkedHashMap(failed),
+          remaining = catalogDescriptors.size - (completedCount + 1)
+        )
+
+        lastUpdate = update
+        onUpdate(update)
+      }
+    }
+
+    return lastUpdate!!
+  }
+
+  class Update<T>(
+    val merged: List<T>,
+    val loaded: List<ChanDescriptor.CatalogDescriptor>,
+    val failed: Map<ChanDescriptor.CatalogDescriptor, Throwable>,
+    val remaining: Int
+  ) {
+    val isLast: Boolean
+      get() = remaining == 0
+  }
+
+  private sealed class Completion<T> {
+    abstract val index: Int
+
+    class Success<T>(override val index: Int, val threads: List<T>) : Completion<T>()
+    class Failure<T>(override val index: Int, val error: Throwable) : Completion<T>()
+  }
+
+  private class Head<T>(
+    val runIndex: Int,
+    val position: Int,
+    val value: T
+  )
+
+  companion object {
+    private const val DEFAULT_MAX_CONCURRENT_LOADS = 4
+
+    /**
+     * Merges already sorted [runs] (null runs are skipped) into one sorted list in
+     * O(n * log(k)). Equal elements are ordered by their position in their run and then by the
+     * index of the run.
+     * */
+    fun <T> merge(runs: List<List<T>?>, comparator: Comparator<in T>): List<T> {
+      val totalSize = runs.sumOf { run -> run?.size ?: 0 }
+      val result = ArrayList<T>(totalSize)
+
+      val headComparator = Comparator<Head<T>> { lhs, rhs ->
+        val compareResult = comparator.compare(lhs.value, rhs.value)
+        if (compareResult != 0) {
+          return@Comparator compareResult
+        }
+
+        if (lhs.position != rhs.position) {
+          return@Comparator lhs.position.compareTo(rhs.position)
+        }
+
+        return@Comparator lhs.runIndex.compareTo(rhs.runIndex)
+      }
+
+      val queue = PriorityQueue(runs.size.coerceAtLeast(1), headComparator)
+
+      runs.forEachIndexed { runIndex, run ->
+        if (!run.isNullOrEmpty()) {
+          queue.add(Head(runIndex, 0, run[0]))
+        }
+      }
+
+      while (queue.isNotEmpty()) {
+        val head = queue.poll()!!
+        result += head.value
+
+        val run = runs[head.runIndex]!!
+        val nextPosition = head.position + 1
+
+        if (nextPosition < run.size) {
+          queue.add(Head(head.runIndex, nextPosition, run[nextPosition]))
+        }
+      }
+
+      return result
+    }
+  }
+
+}
@@ -0,0 +1,562 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+/**
+ * A declarative table of the anchor (`<a href>`) shapes a site uses for post quotes, board links and
+ * board searches. The table is compiled into a trie over the href path segments so that an href is
+ * resolved with a single walk instead of running a chain of regexes over it one after another.
+ *
+ * Route templates consist of literal text and the following placeholders:
+ *  - `{board}` a board code (`[A-Za-z0-9_]+`)
+ *  - `{thread}`, `{post}` a post number (`[0-9]+`)
+ *  - `{query}` the rest of the href (may only be used at the end of the fragment)
+ *  - `{_}` any word (`[A-Za-z0-9_]+`) that is not captured
+ *  - `*` any text inside a single path segment (e.g. `boards.4chan*.org`)
+ *
+ * Full quote templates must start with a '/' and are matched against the end of the href path (just
+ * like `Matcher.find()` would do), anything may follow the fragment. All other templates must match
+ * the whole href. When several routes match, full quotes win over quotes, quotes win over board links
+ * and board links win over board searches. Routes of the same type are tried in the order they were
+ * added.
+ * */
+class AnchorRouteTable private constructor(
+  private val fullQuoteRoot: Node,
+  private val root: Node
+) {
+
+  fun resolve(href: String): ResolvedAnchor {
+    val parsedHref = ParsedHref(href)
+
+    val fullQuote = walkSuffix(fullQuoteRoot, parsedHref, parsedHref.segmentsCount - 1)
+    if (fullQuote != null) {
+      return fullQuote
+    }
+
+    return walk(root, parsedHref, 0, null)
+      ?: ResolvedAnchor(ResolvedAnchor.Type.Link, href, null, 0L, 0L, null)
+  }
+
+  private fun walkSuffix(node: Node, parsedHref: ParsedHref, segmentIndex: Int): ResolvedAnchor? {
+    if (segmentIndex < 0) {
+      // Nothing left before the first template segment so it can't be preceded by a '/'
+      return null
+    }
+
+    if (segmentIndex < parsedHref.segmentsCount - 1) {
+      // The rest of the segments may be anything
+      for (route in node.routes) {
+        if (matchFragment(route, parsedHref, prefixOnly = true)) {
+          return route.toResolvedAnchor(parsedHref)
+        }
+      }
+    }
+
+    for (edge in node.edges) {
+      val matches = matchParts(
+        parts = edge.parts,
+        partIndex = 0,
+        parsedHref = parsedHref,
+        position = parsedHref.segmentStarts[segmentIndex],
+        end = parsedHref.segmentEnds[segmentIndex],
+        prefixOnly = false
+      )
+
+      if (matches) {
+        val resolvedAnchor = walkSuffix(edge.node, parsedHref, segmentIndex - 1)
+        if (resolvedAnchor != null) {
+          return resolvedAnchor
+        }
+      }
+    }
+
+    return null
+  }
+
+  private fun walk(
+    node: Node,
+    parsedHref: ParsedHref,
+    segmentIndex: Int,
+    bestSoFar: ResolvedAnchor?
+  ): ResolvedAnchor? {
+    var best = bestSoFar
+
+    if (segmentIndex == parsedHref.segmentsCount) {
+      for (route in node.routes) {
+        if (best != null && best.priority <= route.priority) {
+          continue
+        }
+
+        if (matchFragment(route, parsedHref, prefixOnly = false)) {
+          best = route.toResolvedAnchor(parsedHref)
+        }
+      }
+
+      return best
+    }
+
+    for (edge in node.edges) {
+      if (best != null && best.priority <= edge.node.minPriority) {
+        continue
+      }
+
+      val matches = matchParts(
+        parts = edge.parts,
+        partIndex = 0,
+        parsedHref = parsedHref,
+        position = parsedHref.segmentStarts[segmentIndex],
+        end = parsedHref.segmentEnds[segmentIndex],
+        prefixOnly = false
+      )
+
+      if (matches) {
+        best = walk(edge.node, parsedHref, segmentIndex + 1, best)
+      }
+    }
+
+    return best
+  }
+
+  private fun matchFragment(route: Route, parsedHref: ParsedHref, prefixOnly: Boolean): Boolean {
+    val fragmentParts = route.fragmentParts
+    if (fragmentParts == null) {
+      return parsedHref.fragmentStart < 0
+    }
+
+    if (parsedHref.fragmentStart < 0) {
+      return false
+    }
+
+    return matchParts(
+      parts = fragmentParts,
+      partIndex = 0,
+      parsedHref = parsedHref,
+      position = parsedHref.fragmentStart + 1,
+      end = parsedHref.href.length,
+      prefixOnly = prefixOnly
+    )
+  }
+
+  private fun matchParts(
+    parts: Array<Part>,
+    partIndex: Int,
+    parsedHref: ParsedHref,
+    position: Int,
+    end: Int,
+    prefixOnly: Boolean
+  ): Boolean {
+    if (partIndex == parts.size) {
+      return prefixOnly || position == end
+    }
+
+    val href = parsedHref.href
+
+    when (val part = parts[partIndex]) {
+      is Part.Literal -> {
+        if (position + part.text.length > end || !href.startsWith(part.text, position)) {
+          return false
+        }
+
+        return matchParts(parts, partIndex + 1, parsedHref, position + part.text.length, end, prefixOnly)
+      }
+      is Part.Placeholder -> {
+        when (part.kind) {
+          PlaceholderKind.Word,
+          PlaceholderKind.Digits -> {
+            var runEnd = position
+            while (runEnd < end && part.kind.accepts(href[runEnd])) {
+              ++runEnd
+            }
+
+            // Greedy, same as the regex quantifiers
+            for (placeholderEnd in runEnd downTo position + 1) {
+              parsedHref.capture(part.slot, position, placeholderEnd)
+
+              if (matchParts(parts, partIndex + 1, parsedHref, placeholderEnd, end, prefixOnly)) {
+                return true
+              }
+            }
+
+            return false
+          }
+          PlaceholderKind.Any -> {
+            // Lazy, same as the regex quantifiers
+            for (placeholderEnd in position..end) {
+              if (placeholderEnd > position && isLineTerminator(href[placeholderEnd - 1])) {
+                return false
+              }
+
+              if (matchParts(parts, partIndex + 1, parsedHref, placeholderEnd, end, prefixOnly)) {
+                return true
+              }
+            }
+
+            return false
+          }
+          PlaceholderKind.Rest -> {
+            for (index in position until end) {
+              if (isLineTerminator(href[index])) {
+                return false
+              }
+            }
+
+            parsedHref.capture(part.slot, position, end)
+            return true
+          }
+        }
+      }
+    }
+  }
+
+  enum class RouteType {
+    FullQuote,
+    Quote,
+    BoardLink,
+    BoardSearch
+  }
+
+  class Builder {
+    private val routes = mutableListOf<Pair<RouteType, String>>()
+
+    /**
+     * A link to a post that may or may not be in the current thread, e.g. `/{board}/{_}/{thread}#p{post}`
+     * */
+    fun fullQuote(template: String): Builder {
+      require(template.startsWith('/') && template.contains('#')) {
+        "Full quote template must start with a '/' and have a fragment: '$template'"
+      }
+
+      routes += RouteType.FullQuote to template
+      return this
+    }
+
+    /**
+     * A link to a post in the current thread, e.g. `#p{post}`
+     * */
+    fun quote(template: String): Builder {
+      routes += RouteType.Quote to template
+      return this
+    }
+
+    fun boardLink(template: String): Builder {
+      routes += RouteType.BoardLink to template
+      return this
+    }
+
+    fun boardSearch(template: String): Builder {
+      routes += RouteType.BoardSearch to template
+      return this
+    }
+
+    /**
+     * Board links and board searches that are used by most of the sites.
+     * */
+    fun defaultBoardRoutes(): Builder {
+      return this
+        .boardLink("//boards.4chan*.org/{board}/")
+        .boardLink("/{board}/index.html")
+        .boardSearch("//boards.4chan*.org/{board}/catalog#s={query}")
+    }
+
+    fun build(): AnchorRouteTable {
+      val fullQuoteRoot = Node()
+      val root = Node()
+
+      val sortedRoutes = routes.sortedBy { (routeType, _) -> routeType.ordinal }
+
+      sortedRoutes.forEachIndexed { priority, (routeType, template) ->
+        val fragmentIndex = template.indexOf('#')
+        val pathTemplate = if (fragmentIndex < 0) template else template.substring(0, fragmentIndex)
+        val fragmentTemplate = if (fragmentIndex < 0) null else template.substring(fragmentIndex + 1)
+
+        val route = Route(
+          type = routeType,
+          priority = priority,
+          fragmentParts = fragmentTemplate?.let { parseParts(it, template, isFragment = true) }
+        )
+
+        val segmentTemplates = pathTemplate.split('/')
+
+        if (routeType == RouteType.FullQuote) {
+          // Walked from the last segment. The first one is the empty string before the leading '/'
+          fullQuoteRoot.insert(segmentTemplates.drop(1).asReversed(), route, template)
+        } else {
+          root.insert(segmentTemplates, route, template)
+        }
+      }
+
+      return AnchorRouteTable(fullQuoteRoot, root)
+    }
+
+    private fun Node.insert(segmentTemplates: List<String>, route: Route, template: String) {
+      var node = this
+      node.minPriority = minOf(node.minPriority, route.priority)
+
+      for (segmentTemplate in segmentTemplates) {
+        val existingEdge = node.edges.firstOrNull { edge -> edge.template == segmentTemplate }
+        val edge = existingEdge
+          ?: Edge(segmentTemplate, parseParts(segmentTemplate, template, isFragment = false), Node())
+            .also { newEdge -> node.edges += newEdge }
+
+        node = edge.node
+        node.minPriority = minOf(node.minPriority, route.priority)
+      }
+
+      node.routes += route
+    }
+
+    private fun parseParts(text: String, template: String, isFragment: Boolean): Array<Part> {
+      val parts = mutableListOf<Part>()
+      val literal = StringBuilder()
+      var index = 0
+
+      fun flushLiteral() {
+        if (literal.isNotEmpty()) {
+          parts += Part.Literal(literal.toString())
+          literal.setLength(0)
+        }
+      }
+
+      while (index < text.length) {
+        val ch = text[index]
+
+        if (ch == '*') {
+          flushLiteral()
+          parts += Part.Placeholder(PlaceholderKind.Any, ParsedHref.NO_SLOT)
+          ++index
+          continue
+        }
+
+        if (ch != '{') {
+          literal.append(ch)
+          ++index
+          continue
+        }
+
+        val closingIndex = text.indexOf('}', index)
+        require(closingIndex > index) { "Unclosed placeholder in '$template'" }
+
+        flushLiteral()
+
+        parts += when (val name = text.substring(index + 1, closingIndex)) {
+          "board" -> Part.Placeholder(PlaceholderKind.Word, ParsedHref.BOARD_SLOT)
+          "thread" -> Part.Placeholder(PlaceholderKind.Digits, ParsedHref.THREAD_SLOT)
+          "post" -> Part.Placeholder(PlaceholderKind.Digits, ParsedHref.POST_SLOT)
+          "_" -> Part.Placeholder(PlaceholderKind.Word, ParsedHref.NO_SLOT)
+          "query" -> {
+            require(isFragment && closingIndex == text.lastIndex) {
+              "{query} may only be used at the end of the fragment in '$template'"
+            }
+
+            Part.Placeholder(PlaceholderKind.Rest, ParsedHref.QUERY_SLOT)
+          }
+          else -> throw IllegalArgumentException("Unknown placeholder '{$name}' in '$template'")
+        }
+
+        index = closingIndex + 1
+      }
+
+      flushLiteral()
+      return parts.toTypedArray()
+    }
+  }
+
+  private class Node {
+    val edges = mutableListOf<Edge>()
+    val routes = mutableListOf<Route>()
+    var minPriority = Int.MAX_VALUE
+  }
+
+  private class Edge(
+    val template: String,
+    val parts: Array<Part>,
+    val node: Node
+  )
+
+  private class Route(
+    val type: RouteType,
+    val priority: Int,
+    val fragmentParts: Array<Part>?
+  ) {
+
+    fun toResolvedAnchor(parsedHref: ParsedHref): ResolvedAnchor {
+      return when (type) {
+        RouteType.FullQuote -> {
+          val threadNo = parsedHref.captured(ParsedHref.THREAD_SLOT)!!.toLong()
+
+          ResolvedAnchor(
+            type = ResolvedAnchor.Type.FullQuote,
+            href = parsedHref.href,
+            board = parsedHref.captured(ParsedHref.BOARD_SLOT),
+            threadNo = threadNo,
+            postNo = parsedHref.captured(ParsedHref.POST_SLOT)?.toLong() ?: threadNo,
+            query = null,
+            priority = priority
+          )
+        }
+        RouteType.Quote -> {
+          ResolvedAnchor(
+            type = ResolvedAnchor.Type.Quote,
+            href = parsedHref.href,
+            board = null,
+            threadNo = 0L,
+            postNo = parsedHref.captured(ParsedHref.POST_SLOT)!!.toLong(),
+            query = null,
+            priority = priority
+          )
+        }
+        RouteType.BoardLink -> {
+          ResolvedAnchor(
+            type = ResolvedAnchor.Type.BoardLink,
+            href = parsedHref.href,
+            board = parsedHref.captured(ParsedHref.BOARD_SLOT),
+            threadNo = 0L,
+            postNo = 0L,
+            query = null,
+            priority = priority
+          )
+        }
+        RouteType.BoardSearch -> {
+          ResolvedAnchor(
+            type = ResolvedAnchor.Type.BoardSearch,
+            href = parsedHref.href,
+            board = parsedHref.captured(ParsedHref.BOARD_SLOT),
+            threadNo = 0L,
+            postNo = 0L,
+            query = parsedHref.captured(ParsedHref.QUERY_SLOT) ?: "",
+            priority = priority
+          )
+        }
+      }
+    }
+  }
+
+  private sealed class Part {
+    class Literal(val text: String) : Part()
+    class Placeholder(val kind: PlaceholderKind, val slot: Int) : Part()
+  }
+
+  private enum class PlaceholderKind {
+    Word,
+    Digits,
+    Any,
+    Rest;
+
+    fun accepts(ch: Char): Boolean {
+      return when (this) {
+        Word -> ch in 'a'..'z' || ch in 'A'..'Z' || ch in '0'..'9' || ch == '_'
+        Digits -> ch in '0'..'9'
+        Any,
+        Rest -> !isLineTerminator(ch)
+      }
+    }
+  }
+
+  /**
+   * The href split into the path segments and the fragment (everything after the first '#'). The
+   * segments are kept as offsets into the href so nothing is copied until a route matches.
+   * */
+  private class ParsedHref(val href: String) {
+    val fragmentStart: Int = href.indexOf('#')
+    val segmentsCount: Int
+    val segmentStarts: IntArray
+    val segmentEnds: IntArray
+
+    private val captureStarts = IntArray(SLOTS_COUNT) { -1 }
+    private val captureEnds = IntArray(SLOTS_COUNT) { -1 }
+
+    init {
+      val pathEnd = if (fragmentStart < 0) href.length else fragmentStart
+
+      var slashes = 0
+      for (index in 0 until pathEnd) {
+        if (href[index] == '/') {
+          ++slashes
+        }
+      }
+
+      segmentsCount = slashes + 1
+      segmentStarts = IntArray(segmentsCount)
+      segmentEnds = IntArray(segmentsCount)
+
+      var segmentIndex = 0
+      var segmentStart = 0
+
+      for (index in 0 until pathEnd) {
+        if (href[index] == '/') {
+          segmentStarts[segmentIndex] = segmentStart
+          segmentEnds[segmentIndex] = index
+          ++segmentIndex
+          segmentStart = index + 1
+        }
+      }
+
+      segmentStarts[segmentIndex] = segmentStart
+      segmentEnds[segmentIndex] = pathEnd
+    }
+
+    fun capture(slot: Int, start: Int, end: Int) {
+      if (slot == NO_SLOT) {
+        return
+      }
+
+      captureStarts[slot] = start
+      captureEnds[slot] = end
+    }
+
+    fun captured(slot: Int): String? {
+      if (captureStarts[slot] < 0) {
+        return null
+      }
+
+      return href.substring(captureStarts[slot], captureEnds[slot])
+    }
+
+    companion object {
+      const val NO_SLOT = -1
+      const val BOARD_SLOT = 0
+      const val THREAD_SLOT = 1
+      const val POST_SLOT = 2
+      const val QUERY_SLOT = 3
+      const val SLOTS_COUNT = 4
+    }
+  }
+
+  companion object {
+
+    /**
+     * 4chan style anchors (`/g/thread/123#p456`, `#p456`), this is what [CommentParser] uses when a
+     * site does not provide its own table.
+     * */
+    @JvmField
+    val DEFAULT = Builder()
+      .fullQuote("/{board}/{_}/{thread}#p{post}")
+      .quote("#p{post}")
+      .defaultBoardRoutes()
+      .build()
+
+    // Same as what the "." regex metacharacter does not match
+    private fun isLineTerminator(ch: Char): Boolean {
+      return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029'
+    }
+  }
+
+}
+
+class ResolvedAnchor(
+  val type: Type,
+  val href: String,
+  val board: String?,
+  val threadNo: Long,
+  val postNo: Long,
+  val query: String?,
+  internal val priority: Int = Int.MAX_VALUE
+) {
+
+  enum class Type {
+    FullQuote,
+    Quote,
+    BoardLink,
+    BoardSearch,
+    Link
+  }
+
+}
@@ -48,6 +48,8 @@ import com.github.k1rakishou.core_spannable.BackgroundColorSpanHashed;
 import com.github.k1rakishou.core_spannable.ForegroundColorIdSpan;
 import com.github.k1rakishou.core_spannable.ForegroundColorSpanHashed;
 import com.github.k1rakishou.core_spannable.PostLinkable;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrBuilder;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrSpannables;
 import com.github.k1rakishou.core_themes.ChanThemeColorId;
 import com.github.k1rakishou.model.data.post.ChanPostBuilder;
 import com.github.k1rakishou.model.data.post.ChanPostImageBuilder;
@@ -74,9 +76,6 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
     private final Pattern deadQuotePattern = Pattern.compile(">>(\\d+)");
     private final Pattern fullQuotePattern = Pattern.compile("/(\\w+)/\\w+/(\\d+)#p(\\d+)");
     private final Pattern quotePattern = Pattern.compile("#p(\\d+)");
-    private final Pattern boardLinkPattern = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/");
-    private final Pattern boardLinkPattern8Chan = Pattern.compile("/(.*?)/index.html");
-    private final Pattern boardSearchPattern = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/catalog#s=(.*)");
     private final Pattern colorPattern = Pattern.compile("color:#?(\\w+)");
     private final Pattern colorRgbFgBgPattern = Pattern.compile("color:rgb\\((\\d+),(\\d+),(\\d+)\\)\\;background\\-color\\:rgb\\((\\d+),(\\d+),(\\d+)\\)");
 
@@ -255,6 +254,111 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
         return text;
     }
 
+    /**
+     * Same as {@link #handleTag} but for comments built with {@link CommentIrBuilder}. The tag's
+     * text is what its children appended to {@code builder} after {@code textStart} (and the spans
+     * added after {@code spanStart}), the result replaces it in the builder.
+     * <p>
+     * Rules that can be applied to the builder directly are; for everything else (actions, linkify,
+     * wildcard rules) the children are materialized and passed to {@link #handleTag}.
+     */
+    public void handleTagIr(
+            PostParser.Callback callback,
+            ChanPostBuilder post,
+            String tag,
+            HtmlTag htmlTag,
+            CommentIrBuilder builder,
+            int textStart,
+            int spanStart
+    ) {
+        List<StyleRule> normalRules = this.rules.get(tag);
+
+        StyleRule rule = findRule(normalRules, htmlTag, StyleRule.Priority.BeforeWildcardRules);
+        if (rule == null) {
+            if (hasApplicableWildcardRule(htmlTag)) {
+                handleTagMaterialized(callback, post, tag, htmlTag, builder, textStart, spanStart);
+                return;
+            }
+
+            rule = findRule(normalRules, htmlTag, StyleRule.Priority.Normal);
+        }
+
+        if (rule == null) {
+            // Unknown tag, keep the text
+            return;
+        }
+
+        if (!rule.canApplyToIr()) {
+            handleTagMaterialized(callback, post, tag, htmlTag, builder, textStart, spanStart);
+            return;
+        }
+
+        rule.applyToIr(builder, textStart, spanStart, htmlTag, post);
+    }
+
+    private void handleTagMaterialized(
+            PostParser.Callback callback,
+            ChanPostBuilder post,
+            String tag,
+            HtmlTag htmlTag,
+            CommentIrBuilder builder,
+            int textStart,
+            int spanStart
+    ) {
+        CharSequence text = CommentIrSpannables.toSpannable(builder, textStart, spanStart);
+        CharSequence result = handleTag(callback, post, tag, text, htmlTag);
+
+        if (result == null) {
+            // Same as in DefaultPostParser, null means the children text is kept
+            return;
+        }
+
+        builder.truncate(textStart, spanStart);
+        CommentIrSpannables.append(builder, result);
+    }
+
+    @Nullable
+    private StyleRule findRule(
+            @Nullable List<StyleRule> normalRules,
+            HtmlTag htmlTag,
+            StyleRule.Priority priority
+    ) {
+        if (normalRules == null) {
+            return null;
+        }
+
+        for (int i = 0; i < 2; i++) {
+            boolean highPriority = i == 0;
+
+            for (StyleRule rule : normalRules) {
+                if (rule.rulePriority() != priority) {
+                    continue;
+                }
+
+                if (rule.highPriority() == highPriority && rule.applies(htmlTag)) {
+                    return rule;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private boolean hasApplicableWildcardRule(HtmlTag htmlTag) {
+        List<StyleRule> wildcardRules = this.rules.get("*");
+        if (wildcardRules == null) {
+            return false;
+        }
+
+        for (StyleRule rule : wildcardRules) {
+            if (rule.applies(htmlTag, true)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
     // <span style="color:#0893e1">Test</span>
     // <span style="color:red">Test</span>
     // <span style=\"color:rgb(77,100,77);background-color:rgb(241,140,31)\"
@@ -709,30 +813,31 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
         PostLinkable.Value value;
 
         String href = extractQuote(anchorTag.attrUnescapedOrNull("href"), post);
-        Matcher externalMatcher = matchExternalQuote(href, post);
-
-        if (externalMatcher.find()) {
-            String board = externalMatcher.group(1);
-            long threadId = Long.parseLong(externalMatcher.group(2));
-            long postId = Long.parseLong(externalMatcher.group(3));
-
-            boolean isInternalQuote = board.equals(post.boardDescriptor.getBoardCode())
-                    && callback.isInternal(postId)
-                    && !callback.isParsingCatalogPosts();
-
-            if (isInternalQuote) {
-                // link to post in same thread with post number (>>post)
-                type = PostLinkable.Type.QUOTE;
-                value = new PostLinkable.Value.LongValue(postId);
-            } else {
-                // link to post not in same thread with post number (>>post or >>>/board/post)
-                type = PostLinkable.Type.THREAD;
-                value = new PostLinkable.Value.ThreadOrPostLink(board, threadId, postId, 0L);
+        ResolvedAnchor resolvedAnchor = getAnchorRouteTable().resolve(href);
+
+        switch (resolvedAnchor.getType()) {
+            case FullQuote: {
+                String board = resolvedAnchor.getBoard();
+                long threadId = resolvedAnchor.getThreadNo();
+                long postId = resolvedAnchor.getPostNo();
+
+                boolean isInternalQuote = board.equals(post.boardDescriptor.getBoardCode())
+                        && callback.isInternal(postId)
+                        && !callback.isParsingCatalogPosts();
+
+                if (isInternalQuote) {
+                    // link to post in same thread with post number (>>post)
+                    type = PostLinkable.Type.QUOTE;
+                    value = new PostLinkable.Value.LongValue(postId);
+                } else {
+                    // link to post not in same thread with post number (>>post or >>>/board/post)
+                    type = PostLinkable.Type.THREAD;
+                    value = new PostLinkable.Value.ThreadOrPostLink(board, threadId, postId, 0L);
+                }
+                break;
             }
-        } else {
-            Matcher quoteMatcher = matchInternalQuote(href, post);
-            if (quoteMatcher.matches()) {
-                long postId = Long.parseLong(quoteMatcher.group(1));
+            case Quote: {
+                long postId = resolvedAnchor.getPostNo();
 
                 if (callback.isInternal(postId)) {
                     // TODO(KurobaEx / @GhostPosts): archive ghost posts
@@ -756,32 +861,34 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
                 }
 
                 value = new PostLinkable.Value.LongValue(postId);
-            } else {
-                Matcher boardLinkMatcher = matchBoardLink(href, post);
-                Matcher boardSearchMatcher = matchBoardSearch(href, post);
-
-                if (boardLinkMatcher.matches()) {
-                    // board link
-                    type = PostLinkable.Type.BOARD;
-                    value = new PostLinkable.Value.StringValue(boardLinkMatcher.group(1));
-                } else if (boardSearchMatcher.matches()) {
-                    // search link
-                    String board = boardSearchMatcher.group(1);
-                    String search;
-
-                    try {
-                        search = URLDecoder.decode(boardSearchMatcher.group(2), "US-ASCII");
-                    } catch (UnsupportedEncodingException e) {
-                        search = boardSearchMatcher.group(2);
-                    }
-
-                    type = PostLinkable.Type.SEARCH;
-                    value = new PostLinkable.Value.SearchLink(board, search);
-                } else {
-                    // normal link
-                    type = PostLinkable.Type.LINK;
-                    value = new PostLinkable.Value.StringValue(href);
+                break;
+            }
+            case BoardLink: {
+                // board link
+                type = PostLinkable.Type.BOARD;
+                value = new PostLinkable.Value.StringValue(resolvedAnchor.getBoard());
+                break;
+            }
+            case BoardSearch: {
+                // search link
+                String board = resolvedAnchor.getBoard();
+                String search;
+
+                try {
+                    search = URLDecoder.decode(resolvedAnchor.getQuery(), "US-ASCII");
+                } catch (UnsupportedEncodingException e) {
+                    search = resolvedAnchor.getQuery();
                 }
+
+                type = PostLinkable.Type.SEARCH;
+                value = new PostLinkable.Value.SearchLink(board, search);
+                break;
+            }
+            default: {
+                // normal link
+                type = PostLinkable.Type.LINK;
+                value = new PostLinkable.Value.StringValue(href);
+                break;
             }
         }
 
@@ -792,25 +899,13 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
         );
     }
 
-    protected Matcher matchBoardSearch(String href, ChanPostBuilder post) {
-        return boardSearchPattern.matcher(href);
-    }
-
-    protected Matcher matchBoardLink(String href, ChanPostBuilder post) {
-        Matcher chan4BoardLinkMatcher = boardLinkPattern.matcher(href);
-        if (chan4BoardLinkMatcher.matches()) {
-            return chan4BoardLinkMatcher;
-        }
-
-        return boardLinkPattern8Chan.matcher(href);
-    }
-
-    private Matcher matchInternalQuote(String href, ChanPostBuilder post) {
-        return getQuotePattern().matcher(href);
-    }
-
-    private Matcher matchExternalQuote(String href, ChanPostBuilder post) {
-        return getFullQuotePattern().matcher(href);
+    /**
+     * Anchor shapes of the site, must be kept in sync with {@link #getQuotePattern()} and
+     * {@link #getFullQuotePattern()} which are used to parse quotes out of the reply text.
+     * */
+    @NonNull
+    protected AnchorRouteTable getAnchorRouteTable() {
+        return AnchorRouteTable.DEFAULT;
     }
 
     protected String extractQuote(@Nullable String href, @NonNull ChanPostBuilder post) {
@@ -818,7 +913,7 @@ public class CommentParser implements ICommentParser, HasQuotePatterns {
             return "";
         }
 
-        if (defaultQuoteRegex.matcher(href).matches()) {
+        if (href.startsWith("//boards.4chan") && defaultQuoteRegex.matcher(href).matches()) {
             // gets us something like /board/ or /thread/postno#quoteno
             // hacky fix for 4chan having two domains but the same API
             return href.substring(2).substring(href.indexOf('/'));
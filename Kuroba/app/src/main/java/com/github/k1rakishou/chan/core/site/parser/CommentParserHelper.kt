@@ -19,8 +19,10 @@ package com.github.k1rakishou.chan.core.site.parser
 import android.text.SpannableString
 import android.text.Spanned
 import android.text.TextUtils
-import androidx.core.text.buildSpannedString
 import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrBuilder
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrSpannables
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
 import org.nibor.autolink.LinkExtractor
 import org.nibor.autolink.LinkSpan
@@ -41,67 +43,72 @@ object CommentParserHelper {
     forceHttpsScheme: Boolean,
     linkHandler: Function1<CharSequence, PostLinkable?>?
   ): SpannableString {
+    val builder = CommentIrBuilder(text.length)
+    detectLinks(post, text, forceHttpsScheme, linkHandler, builder)
+
+    return CommentIrSpannables.toSpannable(builder.build())
+  }
+
+  /**
+   * Same as above but appends the result to [builder] so that the post links are only turned into
+   * Android spans once the comment is displayed.
+   * */
+  @JvmStatic
+  fun detectLinks(
+    post: ChanPostBuilder,
+    text: CharSequence,
+    forceHttpsScheme: Boolean,
+    linkHandler: Function1<CharSequence, PostLinkable?>?,
+    builder: CommentIrBuilder
+  ) {
     val ranges = splitTextIntoRanges(text)
     if (ranges.isEmpty()) {
-      return SpannableString.valueOf(text)
+      CommentIrSpannables.append(builder, text)
+      return
     }
 
-    val spannedString = buildSpannedString {
-      for (range in ranges) {
-        if (range is TextRange) {
-          append(text.subSequence(range.start, range.end))
-          continue
-        }
+    // priority is 0 by default which is maximum above all else; higher priority is like
+    // higher layers, i.e. 2 is above 1, 3 is above 2, etc.
+    // we use 500 here for to go below post linkables, but above everything else basically
+    val linkFlags = (500 shl Spanned.SPAN_PRIORITY_SHIFT) and Spanned.SPAN_PRIORITY
 
-        var linkText = text.subSequence(range.start, range.end)
-        if (linkHandler != null) {
-          val postLinkable = linkHandler.invoke(linkText)
-          if (postLinkable != null) {
-            val newLink = SpannableString(postLinkable.key)
-
-            newLink.setSpan(
-              postLinkable,
-              0,
-              newLink.length,
-              (500 shl Spanned.SPAN_PRIORITY_SHIFT) and Spanned.SPAN_PRIORITY
-            )
-
-            append(newLink)
-            post.addLinkable(postLinkable)
-            continue
-          }
-
-          // fallthrough (linkHandler failed to parse link)
-        }
+    for (range in ranges) {
+      if (range is TextRange) {
+        CommentIrSpannables.append(builder, text.subSequence(range.start, range.end))
+        continue
+      }
+
+      var linkText = text.subSequence(range.start, range.end)
+      if (linkHandler != null) {
+        val postLinkable = linkHandler.invoke(linkText)
+        if (postLinkable != null) {
+          val linkStart = builder.length
+          CommentIrSpannables.append(builder, postLinkable.key)
+          builder.setObjectSpan(CommentIr.SPAN_OBJECT, linkStart, builder.length, linkFlags, postLinkable)
 
-        if (forceHttpsScheme && linkText.startsWith(HTTP_SCHEME)) {
-          linkText = TextUtils.replace(linkText, arrayOf(HTTP_SCHEME), arrayOf(HTTPS_SCHEME))
+          post.addLinkable(postLinkable)
+          continue
         }
 
-        val postLinkable = PostLinkable(
-          linkText,
-          PostLinkable.Value.StringValue(linkText),
-          PostLinkable.Type.LINK
-        )
-
-        val newLink = SpannableString(linkText)
-
-        // priority is 0 by default which is maximum above all else; higher priority is like
-        // higher layers, i.e. 2 is above 1, 3 is above 2, etc.
-        // we use 500 here for to go below post linkables, but above everything else basically
-        newLink.setSpan(
-          postLinkable,
-          0,
-          newLink.length,
-          (500 shl Spanned.SPAN_PRIORITY_SHIFT) and Spanned.SPAN_PRIORITY
-        )
-
-        append(newLink)
-        post.addLinkable(postLinkable)
+        // fallthrough (linkHandler failed to parse link)
       }
-    }
 
-    return SpannableString.valueOf(spannedString)
+      if (forceHttpsScheme && linkText.startsWith(HTTP_SCHEME)) {
+        linkText = TextUtils.replace(linkText, arrayOf(HTTP_SCHEME), arrayOf(HTTPS_SCHEME))
+      }
+
+      val postLinkable = PostLinkable(
+        linkText,
+        PostLinkable.Value.StringValue(linkText),
+        PostLinkable.Type.LINK
+      )
+
+      val linkStart = builder.length
+      CommentIrSpannables.append(builder, linkText)
+      builder.setObjectSpan(CommentIr.SPAN_OBJECT, linkStart, builder.length, linkFlags, postLinkable)
+
+      post.addLinkable(postLinkable)
+    }
   }
 
   fun splitTextIntoRanges(
@@ -38,6 +38,8 @@ import com.github.k1rakishou.core_spannable.ForegroundColorIdSpan;
 import com.github.k1rakishou.core_spannable.OverlineSpan;
 import com.github.k1rakishou.core_spannable.PostLinkable;
 import com.github.k1rakishou.core_spannable.ScriptSpan;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr;
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrBuilder;
 import com.github.k1rakishou.core_themes.ChanThemeColorId;
 import com.github.k1rakishou.model.data.post.ChanPostBuilder;
 import com.google.common.collect.Sets;
@@ -360,6 +362,111 @@ public class StyleRule {
         return resultText;
     }
 
+    /**
+     * Whether {@link #applyToIr} can be used instead of {@link #apply}. Actions and linkify need the
+     * text as a Spannable so rules that have them can't.
+     */
+    public boolean canApplyToIr() {
+        return actions.isEmpty() && !linkify;
+    }
+
+    /**
+     * Same as {@link #apply} but instead of creating a new Spannable the spans are added to the
+     * text the tag's children appended to {@code builder} (everything after {@code textStart}).
+     */
+    public void applyToIr(
+            @NonNull CommentIrBuilder builder,
+            int textStart,
+            int spanStart,
+            @NonNull HtmlTag htmlTag,
+            @Nullable ChanPostBuilder post
+    ) {
+        if (nullify) {
+            // apply() returns null which means the children text is used as is
+            return;
+        }
+
+        if (justText != null) {
+            builder.truncate(textStart, spanStart);
+            builder.append(justText);
+            return;
+        }
+
+        int textEnd = builder.getLength();
+        int flags = (1000 << Spanned.SPAN_PRIORITY_SHIFT) & Spanned.SPAN_PRIORITY;
+
+        if (backgroundChanThemeColorId != null) {
+            builder.setObjectSpan(CommentIr.SPAN_BACKGROUND_COLOR_ID, textStart, textEnd, flags, backgroundChanThemeColorId);
+        }
+
+        if (foregroundChanThemeColorId != null) {
+            builder.setObjectSpan(CommentIr.SPAN_FOREGROUND_COLOR_ID, textStart, textEnd, flags, foregroundChanThemeColorId);
+        }
+
+        if (strikeThrough) {
+            builder.setSpan(CommentIr.SPAN_STRIKETHROUGH, textStart, textEnd, flags, 0);
+        }
+
+        if (underline) {
+            builder.setSpan(CommentIr.SPAN_UNDERLINE, textStart, textEnd, flags, 0);
+        }
+
+        if (overline) {
+            builder.setSpan(CommentIr.SPAN_OVERLINE, textStart, textEnd, flags, 0);
+        }
+
+        if (superscript) {
+            builder.setSpan(CommentIr.SPAN_SUPERSCRIPT, textStart, textEnd, flags, 0);
+        }
+
+        if (subscript) {
+            builder.setSpan(CommentIr.SPAN_SUBSCRIPT, textStart, textEnd, flags, 0);
+        }
+
+        if (bold && italic) {
+            builder.setSpan(CommentIr.SPAN_STYLE, textStart, textEnd, flags, Typeface.BOLD_ITALIC);
+        } else if (bold) {
+            builder.setSpan(CommentIr.SPAN_STYLE, textStart, textEnd, flags, Typeface.BOLD);
+        } else if (italic) {
+            builder.setSpan(CommentIr.SPAN_STYLE, textStart, textEnd, flags, Typeface.ITALIC);
+        }
+
+        if (monospace) {
+            builder.setObjectSpan(CommentIr.SPAN_TYPEFACE, textStart, textEnd, flags, "monospace");
+        }
+
+        if (typeface != null) {
+            builder.setObjectSpan(CommentIr.SPAN_OBJECT, textStart, textEnd, flags, new CustomTypefaceSpan("", typeface));
+        }
+
+        if (size != 0) {
+            builder.setSpan(CommentIr.SPAN_ABSOLUTE_SIZE, textStart, textEnd, flags, size);
+        }
+
+        if (link != null && post != null) {
+            String linkText = builder.substring(textStart, textEnd);
+
+            PostLinkable pl = new PostLinkable(
+                    linkText,
+                    new PostLinkable.Value.StringValue(linkText),
+                    link
+            );
+
+            post.addLinkable(pl);
+            builder.setObjectSpan(CommentIr.SPAN_OBJECT, textStart, textEnd, flags, pl);
+        }
+
+        // Apply break if not the last element.
+        if (blockElement && htmlTag.hasNextSibling()) {
+            builder.append('\n');
+        }
+
+        boolean endsWithNewLine = builder.getLength() > textStart && builder.endsWith('\n');
+        if (newLine && !endsWithNewLine) {
+            builder.append('\n');
+        }
+    }
+
     private SpannableString applySpan(CharSequence text, List<Object> spans) {
         SpannableString result = new SpannableString(text);
 
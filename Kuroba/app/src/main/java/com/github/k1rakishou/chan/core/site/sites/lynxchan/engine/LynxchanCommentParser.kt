@@ -1,6 +1,7 @@
 package com.github.k1rakishou.chan.core.site.sites.lynxchan.engine
 
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.core.site.parser.AnchorRouteTable
 import com.github.k1rakishou.chan.core.site.parser.CommentParser
 import com.github.k1rakishou.chan.core.site.parser.style.StyleRule.tagRule
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.sp
@@ -31,8 +32,18 @@ class LynxchanCommentParser : CommentParser() {
     return FULL_QUOTE_PATTERN
   }
 
+  override fun getAnchorRouteTable(): AnchorRouteTable {
+    return ANCHOR_ROUTE_TABLE
+  }
+
   companion object {
     private val QUOTE_PATTERN = Pattern.compile("#(\\d+)")
     private val FULL_QUOTE_PATTERN = Pattern.compile("\\/(\\w+)\\/res\\/(\\d+).html#(\\d+)")
+
+    private val ANCHOR_ROUTE_TABLE = AnchorRouteTable.Builder()
+      .fullQuote("/{board}/res/{thread}.html#{post}")
+      .quote("#{post}")
+      .defaultBoardRoutes()
+      .build()
   }
 }
\ No newline at end of file
@@ -0,0 +1,327 @@
+package com.github.k1rakishou.chan.core.site.sites.search
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withTimeoutOrNull
+
+/**
+ * Searches several [Source]s (a site and the archives of a board) concurrently and merges their results
+ * into one stream of posts sorted by time (newest first) which is then split into pages.
+ *
+ * - The same post found by several sources (or several times by the same source) is only returned once.
+ *   Posts are matched by board code, thread no and post no since every archive reports the posts with
+ *   its own site descriptor. The copy of the source that comes first in [sources] wins.
+ * - A post is only put into a page once no source that still has more pages can return a newer post
+ *   (a source can't return anything newer than the oldest post it has returned so far). This way the
+ *   posts that were already shown never have to be reordered when the next page is loaded. Only the
+ *   sources all of whose posts went into the pages are asked for their next page.
+ * - A source that fails or does not respond within [sourceTimeoutMs] is excluded from the rest of the
+ *   search and reported with the page, the other sources continue. The page is only failed when every
+ *   source that was asked failed in which case loading it again asks them again.
+ * - The merged pages are cached so going back to a page that was already loaded does not search again.
+ * */
+class FederatedSearch(
+  val sources: List<Source>,
+  private val sourceTimeoutMs: Long = DEFAULT_SOURCE_TIMEOUT_MS
+) {
+  private val mutex = Mutex()
+
+  @GuardedBy("mutex")
+  private val sourceStates = sources.mapIndexed { index, source -> SourceState(index, source) }
+  @GuardedBy("mutex")
+  private val pages = mutableListOf<FederatedSearchResult.Page>()
+  @GuardedBy("mutex")
+  private val pendingPosts = HashMap<PostKey, PendingPost>()
+  @GuardedBy("mutex")
+  private val pagedPosts = HashSet<PostKey>()
+
+  init {
+    require(sources.isNotEmpty()) { "sources must not be empty" }
+  }
+
+  suspend fun getPage(pageIndex: Int): FederatedSearchResult {
+    require(pageIndex >= 0) { "Bad pageIndex: $pageIndex" }
+
+    return mutex.withLock {
+      while (pages.size <= pageIndex) {
+        if (!hasMorePosts()) {
+          return@withLock FederatedSearchResult.Page(
+            pageIndex = pageIndex,
+            posts = emptyList(),
+            hasMore = false,
+            failedSources = failedSources(),
+            totalFoundEntries = totalFoundEntries()
+          )
+        }
+
+        when (val result = loadNextPage()) {
+          is FederatedSearchResult.Page -> pages += result
+          is FederatedSearchResult.Failure -> return@withLock result
+        }
+      }
+
+      return@withLock pages[pageIndex]
+    }
+  }
+
+  suspend fun loadedPagesCount(): Int {
+    return mutex.withLock { pages.size }
+  }
+
+  @GuardedBy("mutex")
+  private suspend fun loadNextPage(): FederatedSearchResult {
+    while (true) {
+      // Sources which still have posts waiting to be put into a page can't return anything newer than
+      // that, there is no need to ask them for more yet.
+      val sourcesToFetch = sourceStates.filter { sourceState ->
+        sourceState.canFetchMore() && sourceState.pendingPostsCount == 0
+      }
+
+      if (sourcesToFetch.isNotEmpty()) {
+        val fetchResults = coroutineScope {
+          sourcesToFetch
+            .map { sourceState -> async { sourceState to fetch(sourceState) } }
+            .awaitAll()
+        }
+
+        val allFailed = fetchResults.all { (_, searchResult) -> searchResult is SearchResult.Failure }
+        if (allFailed && pendingPosts.isEmpty()) {
+          val errors = fetchResults.associate { (sourceState, searchResult) ->
+            sourceState.source.siteDescriptor to (searchResult as SearchResult.Failure).searchError
+          }
+
+          return FederatedSearchResult.Failure(errors)
+        }
+
+        // Apply in the order of the sources so that the source that comes first wins the duplicates no
+        // matter which one responded first.
+        fetchResults
+          .sortedBy { (sourceState, _) -> sourceState.index }
+          .forEach { (sourceState, searchResult) -> onFetched(sourceState, searchResult) }
+      }
+
+      val posts = takePagePosts()
+      if (posts.isNotEmpty() || !hasMorePosts()) {
+        return FederatedSearchResult.Page(
+          pageIndex = pages.size,
+          posts = posts,
+          hasMore = hasMorePosts(),
+          failedSources = failedSources(),
+          totalFoundEntries = totalFoundEntries()
+        )
+      }
+
+      // Everything the sources returned was already in the previous pages, ask them for more
+    }
+  }
+
+  private suspend fun fetch(sourceState: SourceState): SearchResult {
+    val result = try {
+      withTimeoutOrNull(sourceTimeoutMs) { sourceState.source.search(sourceState.nextPage) }
+    } catch (error: CancellationException) {
+      throw error
+    } catch (error: Throwable) {
+      SearchResult.Failure(SearchError.UnknownError(error))
+    }
+
+    return result
+      ?: SearchResult.Failure(SearchError.FailedToSearchError("Timed out after ${sourceTimeoutMs}ms"))
+  }
+
+  @GuardedBy("mutex")
+  private fun onFetched(sourceState: SourceState, searchResult: SearchResult) {
+    if (searchResult is SearchResult.Failure) {
+      sourceState.status = SourceStatus.Failed
+      sourceState.error = searchResult.searchError
+      return
+    }
+
+    searchResult as SearchResult.Success
+
+    val prevPage = sourceState.nextPage
+    var postsCount = 0
+
+    searchResult.searchEntries.forEach { searchEntry ->
+      searchEntry.posts.forEach { searchEntryPost ->
+        ++postsCount
+        addPendingPost(sourceState, searchEntryPost)
+      }
+    }
+
+    val nextPage = (searchResult.nextPageCursor as? PageCursor.Page)?.value
+    val pageAdvanced = nextPage != null && (prevPage == null || nextPage > prevPage)
+
+    sourceState.nextPage = nextPage
+    sourceState.totalFoundEntries = searchResult.totalFoundEntries
+    sourceState.status = if (pageAdvanced && postsCount > 0) {
+      SourceStatus.HasMore
+    } else {
+      SourceStatus.Exhausted
+    }
+  }
+
+  @GuardedBy("mutex")
+  private fun addPendingPost(sourceState: SourceState, searchEntryPost: SearchEntryPost) {
+    val postTime = searchEntryPost.dateTime.millis
+    if (postTime < sourceState.oldestPostTime) {
+      sourceState.oldestPostTime = postTime
+    }
+
+    val postKey = PostKey.fromPost(searchEntryPost)
+    if (postKey in pagedPosts) {
+      return
+    }
+
+    val prevPendingPost = pendingPosts[postKey]
+    if (prevPendingPost != null) {
+      if (prevPendingPost.sourceState.index <= sourceState.index) {
+        return
+      }
+
+      --prevPendingPost.sourceState.pendingPostsCount
+    }
+
+    pendingPosts[postKey] = PendingPost(sourceState, searchEntryPost)
+    ++sourceState.pendingPostsCount
+  }
+
+  @GuardedBy("mutex")
+  private fun takePagePosts(): List<SearchEntryPost> {
+    // A source that has more pages can't return anything newer than the oldest post it has returned so
+    // far (the posts on a page may not be perfectly ordered but the pages are) so only the posts that are
+    // not older than that for every such source can be put into a page.
+    val watermark = sourceStates
+      .filter { sourceState -> sourceState.canFetchMore() }
+      .maxOfOrNull { sourceState -> sourceState.oldestPostTime }
+      ?: Long.MIN_VALUE
+
+    val readyPosts = pendingPosts.entries
+      .filter { (_, pendingPost) -> pendingPost.searchEntryPost.dateTime.millis >= watermark }
+      .sortedWith(PENDING_POSTS_COMPARATOR)
+
+    readyPosts.forEach { (postKey, pendingPost) ->
+      pendingPosts.remove(postKey)
+      pagedPosts += postKey
+      --pendingPost.sourceState.pendingPostsCount
+    }
+
+    return readyPosts.map { (_, pendingPost) -> pendingPost.searchEntryPost }
+  }
+
+  @GuardedBy("mutex")
+  private fun hasMorePosts(): Boolean {
+    return pendingPosts.isNotEmpty() || sourceStates.any { sourceState -> sourceState.canFetchMore() }
+  }
+
+  @GuardedBy("mutex")
+  private fun failedSources(): Map<SiteDescriptor, SearchError> {
+    return sourceStates
+      .filter { sourceState -> sourceState.status == SourceStatus.Failed }
+      .associate { sourceState -> sourceState.source.siteDescriptor to sourceState.error!! }
+  }
+
+  /**
+   * The total amount of found posts is only known when there is only one source, the totals of several
+   * sources can't be added up since they share most of the posts.
+   * */
+  @GuardedBy("mutex")
+  private fun totalFoundEntries(): Int? {
+    if (sourceStates.size != 1) {
+      return null
+    }
+
+    return sourceStates.first().totalFoundEntries
+  }
+
+  class Source(
+    val siteDescriptor: SiteDescriptor,
+    /**
+     * Searches the page with the number of the [PageCursor.Page] the previous page of this source
+     * returned, or the first page when null.
+     * */
+    val search: suspend (page: Int?) -> SearchResult
+  )
+
+  private enum class SourceStatus {
+    NotStarted,
+    HasMore,
+    Exhausted,
+    Failed
+  }
+
+  private class SourceState(
+    val index: Int,
+    val source: Source
+  ) {
+    var status = SourceStatus.NotStarted
+    var nextPage: Int? = null
+    var oldestPostTime = Long.MAX_VALUE
+    var pendingPostsCount = 0
+    var totalFoundEntries: Int? = null
+    var error: SearchError? = null
+
+    fun canFetchMore(): Boolean {
+      return status == SourceStatus.NotStarted || status == SourceStatus.HasMore
+    }
+  }
+
+  private class PendingPost(
+    val sourceState: SourceState,
+    val searchEntryPost: SearchEntryPost
+  )
+
+  private data class PostKey(
+    val boardCode: String,
+    val threadNo: Long,
+    val postNo: Long,
+    val postSubNo: Long
+  ) {
+    companion object {
+      fun fromPost(searchEntryPost: SearchEntryPost): PostKey {
+        val postDescriptor = searchEntryPost.postDescriptor
+
+        return PostKey(
+          boardCode = postDescriptor.boardDescriptor().boardCode,
+          threadNo = postDescriptor.getThreadNo(),
+          postNo = postDescriptor.postNo,
+          postSubNo = postDescriptor.postSubNo
+        )
+      }
+    }
+  }
+
+  companion object {
+    const val DEFAULT_SOURCE_TIMEOUT_MS = 15_000L
+
+    private val PENDING_POSTS_COMPARATOR = compareByDescending<Map.Entry<PostKey, PendingPost>> { (_, pendingPost) ->
+      pendingPost.searchEntryPost.dateTime.millis
+    }
+      .thenBy { (postKey, _) -> postKey.boardCode }
+      .thenByDescending { (postKey, _) -> postKey.postNo }
+      .thenByDescending { (postKey, _) -> postKey.postSubNo }
+  }
+
+}
+
+sealed class FederatedSearchResult {
+  data class Page(
+    val pageIndex: Int,
+    val posts: List<SearchEntryPost>,
+    val hasMore: Boolean,
+    /**
+     * The sources that failed at some point of the search (and were excluded from it since).
+     * */
+    val failedSources: Map<SiteDescriptor, SearchError>,
+    val totalFoundEntries: Int?
+  ) : FederatedSearchResult()
+
+  data class Failure(
+    val errors: Map<SiteDescriptor, SearchError>
+  ) : FederatedSearchResult()
+}
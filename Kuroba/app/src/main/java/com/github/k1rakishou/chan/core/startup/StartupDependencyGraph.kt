@@ -0,0 +1,147 @@
+package com.github.k1rakishou.chan.core.startup
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.supervisorScope
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Startup tasks ordered by their declared dependencies. Independent tasks are executed concurrently
+ * on the provided dispatcher (which is supposed to have bounded parallelism) while a task is only
+ * started once every one of its dependencies has finished. Nothing waits for the graph itself, the
+ * screens wait for the data they need through the managers (e.g. awaitUntilInitialized()).
+ * */
+class StartupDependencyGraph(
+  tasks: List<StartupTask>,
+  private val tracer: StartupTracer
+) {
+  private val tasksByName = linkedMapOf<String, StartupTask>()
+  val sortedTasks: List<StartupTask>
+
+  init {
+    tasks.forEach { task ->
+      require(tasksByName.put(task.name, task) == null) { "Duplicate startup task: '${task.name}'" }
+    }
+
+    tasks.forEach { task ->
+      task.dependencies.forEach { dependency ->
+        require(tasksByName.containsKey(dependency)) {
+          "Startup task '${task.name}' depends on unknown task '${dependency}'"
+        }
+      }
+    }
+
+    sortedTasks = topologicalSort()
+  }
+
+  /**
+   * Launches every task at once and suspends until all of them are done. A task only waits for the
+   * tasks it declares as [StartupTask.dependencies]. A failed task doesn't affect anything but the
+   * tasks that (transitively) depend on it, those are skipped. Failures are reported in the returned
+   * [Result] instead of being thrown.
+   * */
+  suspend fun execute(dispatcher: CoroutineDispatcher): Result {
+    // true when the task has finished successfully, false when it has failed or was skipped
+    val completions = linkedMapOf<String, CompletableDeferred<Boolean>>()
+    sortedTasks.forEach { task -> completions[task.name] = CompletableDeferred() }
+
+    val failedTasks = ConcurrentHashMap<String, Throwable>()
+    val skippedTasks = ConcurrentHashMap.newKeySet<String>()
+
+    supervisorScope {
+      sortedTasks.forEach { task ->
+        launch(dispatcher) { executeTask(task, completions, failedTasks, skippedTasks) }
+      }
+    }
+
+    return Result(failedTasks.toMap(), skippedTasks.toSet())
+  }
+
+  private suspend fun executeTask(
+    task: StartupTask,
+    completions: Map<String, CompletableDeferred<Boolean>>,
+    failedTasks: MutableMap<String, Throwable>,
+    skippedTasks: MutableSet<String>
+  ) {
+    val completion = completions[task.name]!!
+
+    val dependenciesSucceeded = task.dependencies.all { dependency -> completions[dependency]!!.await() }
+    if (!dependenciesSucceeded) {
+      skippedTasks += task.name
+      completion.complete(false)
+      return
+    }
+
+    try {
+      tracer.trace(task.name) { task.action() }
+      completion.complete(true)
+    } catch (error: CancellationException) {
+      completion.cancel(error)
+      throw error
+    } catch (error: Throwable) {
+      failedTasks[task.name] = error
+      completion.complete(false)
+    }
+  }
+
+  /**
+   * Kahn's algorithm. Keeps the declaration order for independent tasks so that the execution order
+   * stays deterministic when the dispatcher is single threaded.
+   * */
+  private fun topologicalSort(): List<StartupTask> {
+    val inDegree = mutableMapOf<String, Int>()
+    val dependents = mutableMapOf<String, MutableList<String>>()
+
+    tasksByName.values.forEach { task ->
+      inDegree[task.name] = task.dependencies.size
+
+      task.dependencies.forEach { dependency ->
+        dependents.getOrPut(dependency) { mutableListOf() }.add(task.name)
+      }
+    }
+
+    val ready = ArrayDeque<String>()
+    tasksByName.keys
+      .filter { name -> inDegree[name] == 0 }
+      .forEach { name -> ready.addLast(name) }
+
+    val result = mutableListOf<StartupTask>()
+
+    while (ready.isNotEmpty()) {
+      val name = ready.removeFirst()
+      result += tasksByName[name]!!
+
+      dependents[name]?.forEach { dependent ->
+        val newDegree = inDegree[dependent]!! - 1
+        inDegree[dependent] = newDegree
+
+        if (newDegree == 0) {
+          ready.addLast(dependent)
+        }
+      }
+    }
+
+    if (result.size != tasksByName.size) {
+      val cycle = tasksByName.keys.filter { name -> inDegree[name]!! > 0 }
+      throw StartupCycleException(cycle)
+    }
+
+    return result
+  }
+
+  class Result(
+    val failedTasks: Map<String, Throwable>,
+    // Not executed because one of their dependencies has failed
+    val skippedTasks: Set<String>
+  ) {
+    val isSuccess: Boolean
+      get() = failedTasks.isEmpty() && skippedTasks.isEmpty()
+  }
+
+  class StartupCycleException(
+    val taskNames: List<String>
+  ) : IllegalStateException("Startup tasks have a dependency cycle: ${taskNames.joinToString()}")
+
+}
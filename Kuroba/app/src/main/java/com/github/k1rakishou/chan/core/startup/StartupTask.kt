@@ -0,0 +1,18 @@
+package com.github.k1rakishou.chan.core.startup
+
+/**
+ * A single step of the application startup. [dependencies] are the names of the tasks that must be
+ * finished before this task is allowed to start, every other task is executed concurrently with it.
+ * [action] must suspend until the work it stands for is actually done.
+ * */
+class StartupTask(
+  val name: String,
+  val dependencies: Set<String> = emptySet(),
+  val action: suspend () -> Unit
+) {
+
+  override fun toString(): String {
+    return "StartupTask(name='$name', dependencies=$dependencies)"
+  }
+
+}
@@ -0,0 +1,99 @@
+package com.github.k1rakishou.chan.core.startup
+
+import androidx.annotation.GuardedBy
+import java.io.File
+
+/**
+ * Records a timing span for every startup step. The spans can be exported in the Chrome trace event
+ * format (https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSsKchNAySU) so they
+ * can be opened in chrome://tracing or https://ui.perfetto.dev.
+ * */
+class StartupTracer(
+  private val nanoTimeProvider: () -> Long = { System.nanoTime() }
+) {
+  private val originNanos = nanoTimeProvider()
+
+  @GuardedBy("this")
+  private val spans = mutableListOf<Span>()
+
+  suspend fun <T> trace(name: String, func: suspend () -> T): T {
+    val threadName = Thread.currentThread().name
+    val threadId = Thread.currentThread().id
+    val start = nanoTimeProvider()
+
+    try {
+      return func()
+    } finally {
+      val end = nanoTimeProvider()
+
+      synchronized(this) {
+        spans += Span(
+          name = name,
+          threadName = threadName,
+          threadId = threadId,
+          startNanos = start - originNanos,
+          durationNanos = end - start
+        )
+      }
+    }
+  }
+
+  fun spans(): List<Span> {
+    return synchronized(this) { spans.toList() }
+  }
+
+  fun toChromeTraceJson(): String {
+    val spansCopy = spans()
+
+    return buildString {
+      append("{\"traceEvents\":[")
+
+      spansCopy.forEachIndexed { index, span ->
+        if (index > 0) {
+          append(',')
+        }
+
+        append("{\"name\":\"")
+        appendEscaped(span.name)
+        append("\",\"cat\":\"startup\",\"ph\":\"X\",\"pid\":1,\"tid\":")
+        append(span.threadId)
+        append(",\"ts\":")
+        append(span.startNanos / 1000L)
+        append(",\"dur\":")
+        append(span.durationNanos / 1000L)
+        append(",\"args\":{\"thread\":\"")
+        appendEscaped(span.threadName)
+        append("\"}}")
+      }
+
+      append("],\"displayTimeUnit\":\"ms\"}")
+    }
+  }
+
+  fun exportChromeTrace(outputFile: File) {
+    outputFile.writeText(toChromeTraceJson())
+  }
+
+  private fun StringBuilder.appendEscaped(string: String) {
+    for (ch in string) {
+      when {
+        ch == '"' -> append("\\\"")
+        ch == '\\' -> append("\\\\")
+        ch < ' ' -> append(String.format("\\u%04x", ch.code))
+        else -> append(ch)
+      }
+    }
+  }
+
+  data class Span(
+    val name: String,
+    val threadName: String,
+    val threadId: Long,
+    val startNanos: Long,
+    val durationNanos: Long
+  ) {
+    val endNanos: Long
+      get() = startNanos + durationNanos
+  }
+
+}
@@ -3,6 +3,7 @@ package com.github.k1rakishou.chan.core.usecase
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.okhttp.ProxiedOkHttpClient
 import com.github.k1rakishou.chan.core.helper.FilterEngine
+import com.github.k1rakishou.chan.core.helper.FilterWatcherLedger
 import com.github.k1rakishou.chan.core.manager.BoardManager
 import com.github.k1rakishou.chan.core.manager.BookmarksManager
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager
@@ -43,6 +44,7 @@ import okhttp3.Request
 import org.jsoup.parser.Parser
 import java.io.IOException
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 class BookmarkFilterWatchableThreadsUseCase(
   private val verboseLogsEnabled: Boolean,
@@ -59,6 +61,7 @@ class BookmarkFilterWatchableThreadsUseCase(
   private val chanPostRepository: ChanPostRepository,
   private val chanFilterWatchRepository: ChanFilterWatchRepository
 ) : ISuspendUseCase<Unit, ModularResult<Map<String, MutableList<ChanDescriptor.ThreadDescriptor>>>> {
+  private val filterWatcherLedger by lazy { FilterWatcherLedger(appConstants.filterWatcherLedgerFile) }
 
   /**
    * Returns true is we successfully fetched catalog threads, matched at least one filter with at
@@ -105,12 +108,31 @@ class BookmarkFilterWatchableThreadsUseCase(
       return emptyMap()
     }
 
+    val boardRuns = filterWatchCatalogInfoObjects.associate { filterWatchCatalogInfoObject ->
+      val boardDescriptor = filterWatchCatalogInfoObject.boardDescriptor
+      val filterSetFingerprint = FilterWatcherLedger.filterSetFingerprint(boardDescriptor, enabledWatchFilters)
+
+      return@associate boardDescriptor to filterWatcherLedger.startRun(boardDescriptor, filterSetFingerprint)
+    }
+
+    val skippedCatalogThreads = AtomicInteger(0)
+
     val matchedCatalogThreads = filterOutThreadsThatDoNotMatchWatchFilters(
       filterWatchCatalogInfoObjects
     ) { catalogThread ->
       val rawComment = catalogThread.comment()
       val subject = catalogThread.subject
       val catalogBoardDescriptor = catalogThread.threadDescriptor.boardDescriptor
+      val threadNo = catalogThread.threadDescriptor.threadNo
+      val contentHash = FilterWatcherLedger.contentHash(subject, rawComment)
+      val boardRun = boardRuns[catalogBoardDescriptor]
+
+      // Already checked this exact thread against these exact filters and it didn't match anything
+      if (boardRun != null && boardRun.isKnownNonMatch(threadNo, contentHash)) {
+        skippedCatalogThreads.incrementAndGet()
+        return@filterOutThreadsThatDoNotMatchWatchFilters false
+      }
+
       val parsedComment = simpleCommentParser.get().parseComment(rawComment) ?: ""
 
       // Update the old unparsed comment with the parsed one
@@ -126,11 +148,25 @@ class BookmarkFilterWatchableThreadsUseCase(
       if (matchedFilter != null) {
         // Set the matched filter which we will use for grouping
         catalogThread.setMatchedFilter(matchedFilter)
+      } else {
+        boardRun?.recordNonMatch(threadNo, contentHash)
       }
 
       return@filterOutThreadsThatDoNotMatchWatchFilters matchedFilter != null
     }
 
+    val catalogThreadsCount = filterWatchCatalogInfoObjects
+      .sumOf { filterWatchCatalogInfoObject -> filterWatchCatalogInfoObject.catalogThreads.size }
+
+    Logger.d(TAG, "doWorkInternal() catalogThreads=${catalogThreadsCount}, " +
+      "skipped (unchanged, not matching)=${skippedCatalogThreads.get()}")
+
+    try {
+      filterWatcherLedger.commit(boardRuns.values)
+    } catch (error: IOException) {
+      Logger.e(TAG, "doWorkInternal() filterWatcherLedger.commit() error", error)
+    }
+
     if (matchedCatalogThreads.isEmpty()) {
       Logger.d(TAG, "doWorkInternal() Nothing has left after filtering out non-matching catalog threads")
       return emptyMap()
@@ -1,7 +1,12 @@
 package com.github.k1rakishou.chan.core.usecase
 
 import android.content.Context
+import com.github.k1rakishou.AppendLogSettingProvider
+import com.github.k1rakishou.AppendLogSettingsStore
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.SharedPreferencesXmlWriter
+import com.github.k1rakishou.chan.core.backup.BackupManifest
+import com.github.k1rakishou.chan.core.backup.IncrementalBackupWriter
 import com.github.k1rakishou.chan.features.settings.screens.delegate.ExportBackupOptions
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.BackgroundUtils
@@ -14,13 +19,12 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.ExternalFile
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository
+import com.github.k1rakishou.prefs.MapSetting
+import com.squareup.moshi.Moshi
 import okhttp3.internal.closeQuietly
-import java.io.BufferedInputStream
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
+import java.util.*
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTime
 
@@ -28,7 +32,8 @@ class ExportBackupFileUseCase(
   private val appContext: Context,
   private val appConstants: AppConstants,
   private val databaseMetaRepository: DatabaseMetaRepository,
-  private val fileManager: FileManager
+  private val fileManager: FileManager,
+  private val moshi: Moshi
 ) : ISuspendUseCase<ExportBackupFileUseCase.Params, ModularResult<Unit>> {
 
   override suspend fun execute(parameter: Params): ModularResult<Unit> {
@@ -66,25 +71,46 @@ class ExportBackupFileUseCase(
     }
 
     val sharedFilesDir = File(appContext.applicationInfo.dataDir, ChanSettings.SHARED_PREFS_DIR_NAME)
-    val mainSharedPrefsFileName = ChanSettings.chanSettingsInfo.applicationId + "_preferences.xml"
-    val chanStatePrefsFileName = AndroidUtils.CHAN_STATE_PREFS_NAME + ".xml"
+    val mainSharedPrefsName = ChanSettings.chanSettingsInfo.applicationId + "_preferences"
+    val mainSharedPrefsFileName = "${mainSharedPrefsName}.xml"
+    val mainSettingsLogFileName = mainSharedPrefsName + AppendLogSettingProvider.LOG_FILE_EXTENSION
+
+    val legacySettingsDir = File(appContext.cacheDir, LEGACY_SETTINGS_DIR_NAME)
+    legacySettingsDir.deleteRecursively()
+    legacySettingsDir.mkdirs()
 
     sharedFilesDir.listFiles()?.forEach { file ->
       val fileName = file.name
 
-      if (fileName == mainSharedPrefsFileName) {
-        filesToExport += file
-        return@forEach
+      val sharedPrefsName = when {
+        fileName.endsWith(".xml") -> {
+          val settingsLogFile = File(sharedFilesDir, fileName.removeSuffix(".xml") + AppendLogSettingProvider.LOG_FILE_EXTENSION)
+          if (settingsLogFile.exists()) {
+            // The settings were already moved into the settings log, the xml file is stale
+            return@forEach
+          }
+
+          fileName.removeSuffix(".xml")
+        }
+        fileName.endsWith(AppendLogSettingProvider.LOG_FILE_EXTENSION) -> {
+          fileName.removeSuffix(AppendLogSettingProvider.LOG_FILE_EXTENSION)
+        }
+        else -> return@forEach
       }
 
-      if (fileName.startsWith(AppModuleAndroidUtils.SITE_PREFS_FILE_PREFIX) && fileName.endsWith(".xml")) {
-        filesToExport += file
+      val shouldExport = sharedPrefsName == mainSharedPrefsName ||
+        sharedPrefsName.startsWith(AppModuleAndroidUtils.SITE_PREFS_FILE_PREFIX) ||
+        sharedPrefsName == AndroidUtils.CHAN_STATE_PREFS_NAME
+
+      if (!shouldExport) {
         return@forEach
       }
 
-      if (fileName == chanStatePrefsFileName) {
-        filesToExport += file
-        return@forEach
+      filesToExport += file
+
+      if (fileName.endsWith(AppendLogSettingProvider.LOG_FILE_EXTENSION)) {
+        // Versions of the app from before the settings logs can only restore the xml files
+        filesToExport += writeLegacySettingsXml(file, File(legacySettingsDir, "${sharedPrefsName}.xml"))
       }
     }
 
@@ -105,74 +131,93 @@ class ExportBackupFileUseCase(
 
     Logger.d(TAG, "Executing checkpoint command... done! took ${time}")
 
+    val sourceFiles = IncrementalBackupWriter.collectSourceFiles(filesToExport) { directory, fileToExport ->
+      val fileName = when {
+        fileToExport.name == mainSharedPrefsFileName -> MAIN_PREFS_FILE_NAME
+        fileToExport.name == mainSettingsLogFileName -> MAIN_SETTINGS_LOG_FILE_NAME
+        fileToExport == appConstants.threadDownloaderCacheDir -> THREAD_DOWNLOADS_CACHE_DIR
+        else -> fileToExport.name
+      }
+
+      if (directory == null) {
+        return@collectSourceFiles fileName
+      }
+
+      return@collectSourceFiles directory + fileName
+    }
+
+    val lastBackupManifestFile = File(appContext.filesDir, LAST_BACKUP_MANIFEST_FILE_NAME)
+    val previousManifest = if (exportBackupOptions.incrementalBackup) {
+      readLastBackupManifest(lastBackupManifestFile)
+    } else {
+      null
+    }
+
+    Logger.d(TAG, "Incremental backup: ${exportBackupOptions.incrementalBackup}, " +
+      "previous generation: ${previousManifest?.generationId}")
+
     val outputStream = fileManager.getOutputStream(outputFile)
       ?: throw IOException("Failed to open output stream for file '${outputFile.getFullPath()}'")
-    val zipOutputStream = ZipOutputStream(outputStream)
 
     Logger.d(TAG, "Output zip file='${outputFile.getFullPath()}'")
 
     try {
-      zipFiles(null, filesToExport, zipOutputStream) { directory, fileToExport ->
-        val fileName = when {
-          fileToExport.name == mainSharedPrefsFileName -> MAIN_PREFS_FILE_NAME
-          fileToExport == appConstants.threadDownloaderCacheDir -> THREAD_DOWNLOADS_CACHE_DIR
-          else -> fileToExport.name
-        }
-
-        if (directory == null) {
-          return@zipFiles fileName
-        }
-
-        return@zipFiles directory + fileName
-      }
-
-      Logger.d(TAG, "Export success!")
+      val result = IncrementalBackupWriter(BUFFER_SIZE).write(
+        generationId = UUID.randomUUID().toString(),
+        sourceFiles = sourceFiles,
+        previousManifest = previousManifest,
+        outputStream = outputStream
+      )
+
+      storeLastBackupManifest(lastBackupManifestFile, result.manifest)
+
+      Logger.d(TAG, "Export success! generation: ${result.manifest.generationId}, " +
+        "files total: ${sourceFiles.size}, files written: ${result.writtenFiles}, " +
+        "bytes written: ${result.writtenBytes}, bytes hashed: ${result.hashedBytes}")
     } catch (error: Throwable) {
       Logger.e(TAG, "Export error", error)
       throw error
     } finally {
       outputStream.closeQuietly()
-      zipOutputStream.closeQuietly()
+      legacySettingsDir.deleteRecursively()
     }
   }
 
-  private fun zipFiles(
-    directory: String?,
-    filesToExport: List<File>,
-    zipOutputStream: ZipOutputStream,
-    selectFileName: (String?, File) -> String
-  ) {
-    for (fileToExport in filesToExport) {
-      if (fileToExport.isDirectory) {
-        val innerFiles = fileToExport.listFiles()?.toList() ?: emptyList()
-        val newDirectory = if (directory == null) {
-          selectFileName(null, fileToExport) + "/"
-        } else {
-          selectFileName(directory, fileToExport) + "/"
-        }
+  private fun writeLegacySettingsXml(settingsLogFile: File, outputFile: File): File {
+    val values = AppendLogSettingsStore.readValues(settingsLogFile).mapValues { (_, value) ->
+      if (value is Map<*, *>) {
+        // Stored entry by entry in the settings log, the xml files store the whole map as json
+        @Suppress("UNCHECKED_CAST")
+        return@mapValues MapSetting.convertStoredEntriesToJson(moshi, value as Map<String, String>)
+      }
 
-        zipFiles(newDirectory, innerFiles, zipOutputStream, selectFileName)
+      return@mapValues value
+    }
 
-        continue
-      }
+    outputFile.outputStream().use { outputStream -> SharedPreferencesXmlWriter.write(values, outputStream) }
+    return outputFile
+  }
 
-      val fileInputStream = FileInputStream(fileToExport)
-      val bufferedInputStream = BufferedInputStream(fileInputStream, BUFFER_SIZE)
-
-      try {
-        val zipEntryName = selectFileName(directory, fileToExport)
-        zipOutputStream.putNextEntry(ZipEntry(zipEntryName))
-        bufferedInputStream.copyTo(zipOutputStream, BUFFER_SIZE)
-
-        Logger.d(TAG, "Writing file (zipEntryName='${zipEntryName}') '${fileToExport.absolutePath}' success!")
-        zipOutputStream.closeEntry()
-      } catch (error: Throwable) {
-        Logger.e(TAG, "Writing file '${fileToExport.absolutePath}' error", error)
-        throw error
-      } finally {
-        fileInputStream.closeQuietly()
-        bufferedInputStream.closeQuietly()
-      }
+  private fun readLastBackupManifest(lastBackupManifestFile: File): BackupManifest? {
+    if (!lastBackupManifestFile.exists()) {
+      return null
+    }
+
+    return try {
+      lastBackupManifestFile.inputStream().use { inputStream -> BackupManifest.deserialize(inputStream) }
+    } catch (error: Throwable) {
+      Logger.e(TAG, "Failed to read last backup manifest, falling back to full backup", error)
+      null
+    }
+  }
+
+  private fun storeLastBackupManifest(lastBackupManifestFile: File, manifest: BackupManifest) {
+    val tempFile = File(lastBackupManifestFile.parentFile, lastBackupManifestFile.name + ".tmp")
+    tempFile.outputStream().use { outputStream -> manifest.serialize(outputStream) }
+
+    if (!tempFile.renameTo(lastBackupManifestFile)) {
+      tempFile.delete()
+      throw IOException("Failed to store backup manifest into '${lastBackupManifestFile.absolutePath}'")
     }
   }
 
@@ -184,7 +229,11 @@ class ExportBackupFileUseCase(
   companion object {
     private const val TAG = "ExportBackupFileUseCase"
     const val MAIN_PREFS_FILE_NAME = "main_prefs.xml"
+    const val MAIN_SETTINGS_LOG_FILE_NAME = "main_prefs" + AppendLogSettingProvider.LOG_FILE_EXTENSION
     const val THREAD_DOWNLOADS_CACHE_DIR = "thread_downloads_cache_dir"
     const val BUFFER_SIZE = 8192
+
+    private const val LAST_BACKUP_MANIFEST_FILE_NAME = "last_backup_manifest.txt"
+    private const val LEGACY_SETTINGS_DIR_NAME = "backup_legacy_settings"
   }
 }
\ No newline at end of file
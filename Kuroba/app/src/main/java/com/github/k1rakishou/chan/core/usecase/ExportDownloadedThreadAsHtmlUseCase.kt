@@ -3,32 +3,24 @@ package com.github.k1rakishou.chan.core.usecase
 import android.content.Context
 import android.net.Uri
 import com.github.k1rakishou.chan.R
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadHtmlWriter
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
-import com.github.k1rakishou.common.extractFileName
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.AbstractFile
-import com.github.k1rakishou.fsaf.file.FileSegment
-import com.github.k1rakishou.fsaf.file.Segment
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
-import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.repository.ChanPostRepository
-import com.github.k1rakishou.model.util.ChanPostUtils
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ensureActive
-import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.withContext
-import org.joda.time.DateTimeZone
-import org.joda.time.format.DateTimeFormatterBuilder
-import org.joda.time.format.ISODateTimeFormat
 import java.io.File
-import java.util.*
-import java.util.regex.Pattern
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
+import kotlin.coroutines.coroutineContext
 
 class ExportDownloadedThreadAsHtmlUseCase(
   private val appContext: Context,
@@ -57,7 +49,7 @@ class ExportDownloadedThreadAsHtmlUseCase(
             ?: throw ThreadExportException("Failed to create output file \'$fileName\' in directory \'${outputDir}\'")
 
           try {
-            exportThreadAsHtml(outputFile, threadDescriptor)
+            exportThreadAsHtml(outputFile, threadDescriptor, parameter.inlineStylesheet)
           } catch (error: Throwable) {
             fileManager.fromUri(outputDirUri)?.let { file ->
               if (fileManager.isFile(file)) {
@@ -78,186 +70,81 @@ class ExportDownloadedThreadAsHtmlUseCase(
 
   private suspend fun exportThreadAsHtml(
     outputFile: AbstractFile,
-    threadDescriptor: ChanDescriptor.ThreadDescriptor
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    inlineStylesheet: Boolean
   ) {
-    val postsLoadResult = chanPostRepository.getThreadPostsFromDatabase(threadDescriptor)
+    // Only the post ids are loaded upfront, the posts themselves are loaded page by page and written
+    // straight into the output so that huge threads don't have to be kept in memory.
+    val postDatabaseIds = chanPostRepository.getThreadPostDatabaseIds(threadDescriptor)
+      .unwrap()
 
-    val chanPosts = if (postsLoadResult is ModularResult.Error) {
-      throw postsLoadResult.error
-    } else {
-      postsLoadResult as ModularResult.Value
-      postsLoadResult.value.sortedBy { post -> post.postNo() }
-    }
-
-    if (chanPosts.isEmpty()) {
+    if (postDatabaseIds.isEmpty()) {
       throw ThreadExportException("Failed to load posts to export")
     }
 
-    if (chanPosts.first() !is ChanOriginalPost) {
-      throw ThreadExportException("First post is not OP")
-    }
-
     val outputFileUri = outputFile.getFullPath()
-    Logger.d(TAG, "exportThreadAsHtml exporting ${chanPosts.size} posts into file '$outputFileUri'")
+    Logger.d(TAG, "exportThreadAsHtml exporting ${postDatabaseIds.size} posts into file '$outputFileUri'")
 
     val outputStream = fileManager.getOutputStream(outputFile)
     if (outputStream == null) {
       throw ThreadExportException("Failed to open output stream for file '${outputFileUri}'")
     }
 
-    runInterruptible {
-      outputStream.use { os ->
-        ZipOutputStream(os).use { zos ->
+    outputStream.use { os ->
+      ZipOutputStream(os).use { zos ->
+        val stylesheet = if (inlineStylesheet) {
+          ThreadHtmlWriter.Stylesheet.Inlined {
+            appContext.resources.openRawResource(R.raw.tomorrow).bufferedReader(Charsets.UTF_8)
+          }
+        } else {
           appContext.resources.openRawResource(R.raw.tomorrow).use { cssFileInputStream ->
-            zos.putNextEntry(ZipEntry("tomorrow.css"))
+            zos.putNextEntry(ZipEntry(ThreadHtmlWriter.STYLESHEET_FILE_NAME))
             cssFileInputStream.copyTo(zos)
           }
 
-          kotlin.run {
-            zos.putNextEntry(ZipEntry("thread_data.html"))
-            HTML_TEMPLATE_START.byteInputStream().use { templateStartStream ->
-              templateStartStream.copyTo(zos)
-            }
-
-            chanPosts.forEach { chanPost ->
-              formatPost(chanPost).byteInputStream().use { formattedPostStream ->
-                formattedPostStream.copyTo(zos)
-              }
-            }
-
-            HTML_TEMPLATE_END.byteInputStream().use { templateEndStream ->
-              templateEndStream.copyTo(zos)
-            }
-          }
-
-          val threadMediaDirName = ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor)
-          val threadMediaDir = File(appConstants.threadDownloaderCacheDir, threadMediaDirName)
-
-          threadMediaDir.listFiles()?.forEach { mediaFile ->
-            zos.putNextEntry(ZipEntry(mediaFile.name))
-
-            mediaFile.inputStream().use { mediaFileSteam ->
-              mediaFileSteam.copyTo(zos)
-            }
-          }
+          ThreadHtmlWriter.Stylesheet.Linked(ThreadHtmlWriter.STYLESHEET_FILE_NAME)
         }
-      }
-    }
 
-    Logger.d(TAG, "exportThreadAsHtml done")
-  }
-
-  private fun formatPost(chanPost: ChanPost): String {
-    val template = if (chanPost is ChanOriginalPost) {
-      OP_POST_TEMPLATE
-    } else {
-      REGULAR_POST_TEMPLATE
-    }
+        zos.putNextEntry(ZipEntry("thread_data.html"))
 
-    val templateBuilder = StringBuilder(template.length)
-    val matcher = TEMPLATE_PARAMETER_PATTERN.matcher(template)
+        // Do not close the writer, it would close the zip stream as well
+        val writer = zos.bufferedWriter(Charsets.UTF_8)
+        val threadHtmlWriter = ThreadHtmlWriter(writer, stylesheet)
+        threadHtmlWriter.writeStart()
 
-    var offset = 0
+        postDatabaseIds.chunked(POSTS_PAGE_SIZE).forEachIndexed { pageIndex, postDatabaseIdsPage ->
+          coroutineContext.ensureActive()
 
-    while (matcher.find()) {
-      val startIndex = matcher.start(0)
-      val endIndex = matcher.end(0)
+          val chanPosts = chanPostRepository.getThreadPostsByDatabaseIds(threadDescriptor, postDatabaseIdsPage)
+            .unwrap()
+            .sortedBy { post -> post.postNo() }
 
-      templateBuilder.append(template.substring(offset, startIndex))
-
-      val templateParam = template.substring(startIndex, endIndex)
-        .removePrefix("{{")
-        .removeSuffix("}}")
+          if (pageIndex == 0 && chanPosts.firstOrNull() !is ChanOriginalPost) {
+            throw ThreadExportException("First post is not OP")
+          }
 
-      val templateValue = when (templateParam) {
-        "POST_NO" -> chanPost.postDescriptor.postNo.toString()
-        "ORIGINAL_POST_FILES",
-        "REGULAR_POST_FILES" -> formatPostFiles(chanPost)
-        "THREAD_SUBJECT" -> {
-          chanPost.subject ?: ""
-        }
-        "POSTER_NAME" -> {
-          chanPost.tripcode ?: ""
+          chanPosts.forEach { chanPost -> threadHtmlWriter.writePost(chanPost) }
         }
-        "DATE_TIME_FORMATTED" -> {
-          DATE_TIME_PRINTER.print(chanPost.timestamp * 1000L)
-        }
-        "POST_COMMENT" -> {
-          chanPost.postComment.originalUnparsedComment ?: ""
-        }
-        else -> error("Unknown template parameter: ${templateParam}")
-      }
-
-      templateBuilder
-        .append(templateValue)
-
-      offset = endIndex
-    }
-
-    templateBuilder.append(template.substring(offset, template.length))
-
-    return templateBuilder.toString()
-  }
-
-  private fun formatPostFiles(chanPost: ChanPost): String {
-    if (chanPost.postImages.isEmpty()) {
-      return ""
-    }
-
-    val templateBuilder = StringBuilder(128)
-    templateBuilder
-      .append("<div class=\"files_container\">")
-
-    chanPost.iteratePostImages { chanPostImage ->
-      val template = if (chanPost is ChanOriginalPost) {
-        ORIGINAL_POST_FILE_TEMPLATE
-      } else {
-        REGULAR_POST_FILE_TEMPLATE
-      }
 
-      val matcher = TEMPLATE_PARAMETER_PATTERN.matcher(template)
+        threadHtmlWriter.writeEnd()
 
-      var offset = 0
+        val threadMediaDirName = ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor)
+        val threadMediaDir = File(appConstants.threadDownloaderCacheDir, threadMediaDirName)
 
-      while (matcher.find()) {
-        val startIndex = matcher.start(0)
-        val endIndex = matcher.end(0)
-
-        templateBuilder.append(template.substring(offset, startIndex))
-
-        val templateParam = template.substring(startIndex, endIndex)
-          .removePrefix("{{")
-          .removeSuffix("}}")
-
-        val templateValue = when (templateParam) {
-          "POST_NO" -> chanPost.postDescriptor.postNo.toString()
-          "FILE_NAME_WEIGHT_DIMENS" -> {
-            val fileName = chanPostImage.formatFullOriginalFileName() ?: ""
-            val weight = ChanPostUtils.getReadableFileSize(chanPostImage.size)
-            val dimens = "${chanPostImage.imageWidth}x${chanPostImage.imageHeight}"
+        threadMediaDir.listFiles()
+          ?.filter { mediaFile -> !mediaFile.name.startsWith(ThreadDownloadManifestIndex.MANIFEST_FILE_NAME) }
+          ?.forEach { mediaFile ->
+            coroutineContext.ensureActive()
+            zos.putNextEntry(ZipEntry(mediaFile.name))
 
-            "${fileName}, $weight, $dimens"
+            mediaFile.inputStream().use { mediaFileSteam ->
+              mediaFileSteam.copyTo(zos)
+            }
           }
-          "FULL_IMAGE_NAME" -> chanPostImage.imageUrl?.extractFileName() ?: ""
-          "THUMBNAIL_NAME" -> chanPostImage.actualThumbnailUrl?.extractFileName() ?: ""
-          "FILE_WEIGHT" -> ChanPostUtils.getReadableFileSize(chanPostImage.size)
-          else -> error("Unknown template parameter: ${templateParam}")
-        }
-
-        templateBuilder
-          .append(templateValue)
-
-        offset = endIndex
       }
-
-      templateBuilder
-        .append(template.substring(offset, template.length))
     }
 
-    templateBuilder
-      .append("</div>")
-
-    return templateBuilder.toString()
+    Logger.d(TAG, "exportThreadAsHtml done")
   }
 
   class ThreadExportException(message: String) : Exception(message)
@@ -265,95 +152,13 @@ class ExportDownloadedThreadAsHtmlUseCase(
   data class Params(
     val outputDirUri: Uri,
     val threadDescriptors: List<ChanDescriptor.ThreadDescriptor>,
+    val inlineStylesheet: Boolean,
     val onUpdate: (Int, Int) -> Unit
   )
 
   companion object {
     private const val TAG = "ExportDownloadedThreadAsHtmlUseCase"
 
-    private val TEMPLATE_PARAMETER_PATTERN = Pattern.compile("\\{\\{\\w+\\}\\}")
-
-    private val DATE_TIME_PRINTER = DateTimeFormatterBuilder()
-      .append(ISODateTimeFormat.date())
-      .appendLiteral(' ')
-      .append(ISODateTimeFormat.hourMinuteSecond())
-      .toFormatter()
-      .withZone(DateTimeZone.forTimeZone(TimeZone.getDefault()))
-
-    private const val HTML_TEMPLATE_START = """
-<!DOCTYPE html>
-<head>
-   <link rel="stylesheet" title="switch" href="tomorrow.css">
-   <meta charset="utf-8">
-<body class="is_thread">
-   <form name="delform" id="delform">
-      <div class="board">
-         <div class="thread">
-    """
-
-    private const val HTML_TEMPLATE_END = """
-         </div>
-         <hr>
-      </div>
-   </form>
-</body>
-</head>
-    """
-
-    private const val OP_POST_TEMPLATE = """
-            <div class="postContainer opContainer" id="pc{{POST_NO}}">
-              <div id="p{{POST_NO}}" class="post op">
-                {{ORIGINAL_POST_FILES}}
-                  <div class="postInfo desktop" id="pi{{POST_NO}}">
-                    <span class="subject">{{THREAD_SUBJECT}}</span> 
-                    <span class="nameBlock">
-                      <span class="name">{{POSTER_NAME}}</span> 
-                    </span> 
-                    <span class="dateTime">{{DATE_TIME_FORMATTED}} No. {{POST_NO}}</span> 
-                  </div>
-                  <blockquote class="postMessage" id="m{{POST_NO}}">{{POST_COMMENT}}</blockquote>
-               </div>
-            </div>
-    """
-
-    private const val REGULAR_POST_TEMPLATE = """
-            <div class="postContainer replyContainer" id="pc{{POST_NO}}">
-               <div id="p{{POST_NO}}" class="post reply">
-                  <div class="postInfo desktop" id="pi{{POST_NO}}">
-                    <span class="nameBlock">
-                      <span class="name">{{POSTER_NAME}}</span>
-                    </span> 
-                    <span class="dateTime">{{DATE_TIME_FORMATTED}} No. {{POST_NO}}</span> 
-                  </div>
-                  {{REGULAR_POST_FILES}}
-                  <blockquote class="postMessage" id="m{{POST_NO}}">{{POST_COMMENT}}</blockquote>
-               </div>
-            </div>
-    """
-
-    private const val ORIGINAL_POST_FILE_TEMPLATE = """
-                <div class="files_container">
-                  <div class="file" id="f{{POST_NO}}">
-                     <div class="fileText" id="fT{{POST_NO}}">File: 
-                      <a href="{{FULL_IMAGE_NAME}}" target="_blank">{{FILE_NAME_WEIGHT_DIMENS}}</a>
-                  </div>
-                     <a class="fileThumb" href="{{FULL_IMAGE_NAME}}" target="_blank">
-                        <img src="{{THUMBNAIL_NAME}}" alt="{{FILE_WEIGHT}}" style="height: 200px; width: 250px;" loading="lazy">
-                     </a>
-                  </div>
-                </div>
-    """
-
-    private const val REGULAR_POST_FILE_TEMPLATE = """
-                <div class="file" id="f{{POST_NO}}">
-                  <div class="fileText" id="fT{{POST_NO}}">File:
-                    <a href="{{FULL_IMAGE_NAME}}" target="_blank">{{FILE_NAME_WEIGHT_DIMENS}}</a>
-                  </div>
-                  <a class="fileThumb" href="{{FULL_IMAGE_NAME}}" target="_blank">
-                    <img src="{{THUMBNAIL_NAME}}" alt="{{FILE_WEIGHT}}" style="height: 120px; width: 125px;" loading="lazy">
-                  </a>
-                </div>
-    """
-
+    private const val POSTS_PAGE_SIZE = 256
   }
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 package com.github.k1rakishou.chan.core.usecase
 
 import android.net.Uri
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
 import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
@@ -62,7 +63,8 @@ class ExportDownloadedThreadMediaUseCase(
     val threadMediaDir = File(appConstants.threadDownloaderCacheDir, threadMediaDirName)
 
     val threadMediaDirFiles = threadMediaDir.listFiles()
-      ?: emptyArray()
+      ?.filter { mediaFile -> !mediaFile.name.startsWith(ThreadDownloadManifestIndex.MANIFEST_FILE_NAME) }
+      ?: emptyList()
 
     Logger.d(TAG, "exportThreadMedia() start, totalFilesCount=${threadMediaDirFiles.size}")
 
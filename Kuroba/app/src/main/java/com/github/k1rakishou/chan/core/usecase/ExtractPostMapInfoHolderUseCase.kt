@@ -1,6 +1,7 @@
 package com.github.k1rakishou.chan.core.usecase
 
 import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.core.helper.PostMapIndex
 import com.github.k1rakishou.chan.core.manager.ChanFilterManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.PostFilterManager
@@ -10,11 +11,11 @@ import com.github.k1rakishou.chan.core.manager.ThirdEyeManager
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.core_spannable.PostLinkable
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
 import com.github.k1rakishou.model.data.filter.FilterAction
 import com.github.k1rakishou.model.data.post.ChanPost
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
-import java.util.*
 
 class ExtractPostMapInfoHolderUseCase(
   private val savedReplyManager: SavedReplyManager,
@@ -32,44 +33,56 @@ class ExtractPostMapInfoHolderUseCase(
       val postsMap = chanThreadManager.getPosts(postDescriptors)
         .associateBy { it.postDescriptor }
 
-      return@withContext PostMapInfoHolder(
-        myPostsPositionRanges = extractMyPostsPositionsFromPostList(parameter),
-        replyPositionRanges = extractReplyPositionsFromPostList(parameter, postsMap),
-        crossThreadQuotePositionRanges = extractCrossThreadReplyPositionsFromPostList(parameter, postsMap),
-        postFilterHighlightRanges = extractPostFilterHighlightsFromPostList(parameter),
-        deletedPostsPositionRanges = extractDeletedPostsPositionsFromPostList(parameter, postsMap),
-        hotPostsPositionRanges = extractHotPostsPositionsFromPostList(parameter, postsMap),
-        thirdEyePostsPositionRanges = extractThirdEyePostsPositionsFromPostList(parameter, postsMap)
+      // Cheap enough to be evaluated for every post every time, see PostMapIndex.CHEAP_MARKERS
+      val cheapMarkerBits = IntArray(postDescriptors.size)
+      markDeletedPosts(parameter, postsMap, cheapMarkerBits)
+      markHotPosts(parameter, postsMap, cheapMarkerBits)
+
+      val savedPostDescriptors = getSavedPostDescriptors(parameter)
+      val highlightFiltersMap = chanFilterManager.getEnabledHighlightFilters()
+        .associateBy { chanFilter -> chanFilter.getDatabaseId() }
+
+      val contextKey = ContextKey(
+        isViewingThread = parameter.isViewingThread,
+        markYourPosts = ChanSettings.markYourPostsOnScrollbar.get(),
+        markRepliesToYourPosts = ChanSettings.markRepliesToYourPostOnScrollbar.get(),
+        markCrossThreadQuotes = ChanSettings.markCrossThreadQuotesOnScrollbar.get(),
+        thirdEyeEnabled = thirdEyeManager.isEnabled(),
+        savedPostDescriptors = savedPostDescriptors,
+        highlightFilters = highlightFiltersMap.values.toList()
       )
-    }
-  }
 
-  private suspend fun extractThirdEyePostsPositionsFromPostList(
-    params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
+      val postMapIndex = parameter.postMapIndex
+      val diff = postMapIndex.diff(postDescriptors, cheapMarkerBits, contextKey)
 
-    if (!thirdEyeManager.isEnabled()) {
-      return emptyList()
-    }
+      if (diff.changedRanges.isNotEmpty()) {
+        markMyPosts(contextKey, diff)
+        markReplies(contextKey, postsMap, diff)
+        markCrossThreadReplies(contextKey, postsMap, diff)
+        markPostFilterHighlights(highlightFiltersMap, diff)
+        markThirdEyePosts(contextKey, postsMap, diff)
+      }
 
-    val postDescriptors = params.postDescriptors
-    if (postDescriptors.isEmpty()) {
-      return emptyList()
+      postMapIndex.update(diff)
+
+      return@withContext postMapIndex.toPostMapInfoHolder(parameter.scrollbarResolution)
     }
+  }
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
+  private suspend fun markThirdEyePosts(
+    contextKey: ContextKey,
+    postsMap: Map<PostDescriptor, ChanPost>,
+    diff: PostMapIndex.Diff<PostDescriptor>
+  ) {
+    BackgroundUtils.ensureBackgroundThread()
 
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      if (!duplicateChecker.add(index)) {
-        continue
-      }
+    if (!contextKey.thirdEyeEnabled) {
+      return
+    }
 
+    forEachChangedPost(diff) { index, postDescriptor ->
       val post = postsMap[postDescriptor]
-        ?: continue
+        ?: return@forEachChangedPost
 
       val postImages = post.postImages
 
@@ -82,29 +95,27 @@ class ExtractPostMapInfoHolderUseCase(
       }
 
       if (!hasThirdEyeImageHash) {
-        continue
+        return@forEachChangedPost
       }
 
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
+      diff.mark(index, PostMapIndex.Marker.ThirdEyePost)
     }
-
-    return replyRanges
   }
 
-  private fun extractHotPostsPositionsFromPostList(
+  private fun markHotPosts(
     params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
+    postsMap: Map<PostDescriptor, ChanPost>,
+    markerBits: IntArray
+  ) {
     BackgroundUtils.ensureBackgroundThread()
 
     if (!ChanSettings.markHotPostsOnScrollbar.get()) {
-      return emptyList()
+      return
     }
 
     val postDescriptors = params.postDescriptors
     if (postDescriptors.isEmpty()) {
-      return emptyList()
+      return
     }
 
     var totalPostsWithRepliesCount = 0
@@ -127,282 +138,211 @@ class ExtractPostMapInfoHolderUseCase(
     }
 
     if (totalReplyCount <= 0 || totalPostsWithRepliesCount <= 0) {
-      return emptyList()
+      return
     }
 
     val medianRepliesCount = totalReplyCount.toFloat() / totalPostsWithRepliesCount.toFloat()
     if (medianRepliesCount <= 1f) {
-      return emptyList()
+      return
     }
 
     // We consider posts HOT if their reply count is 3x higher than the median reply count in the thread
     val targetRepliesCount = medianRepliesCount * 3f
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
-
     for ((index, postDescriptor) in postDescriptors.withIndex()) {
       val post = postsMap[postDescriptor]
         ?: continue
 
-      if (post.isOP() || post.repliesFromCount <= targetRepliesCount || !duplicateChecker.add(index)) {
+      if (post.isOP() || post.repliesFromCount <= targetRepliesCount) {
         continue
       }
 
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
+      mark(markerBits, index, PostMapIndex.Marker.HotPost)
     }
-
-    return replyRanges
   }
 
-  private fun extractDeletedPostsPositionsFromPostList(
+  private fun markDeletedPosts(
     params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
+    postsMap: Map<PostDescriptor, ChanPost>,
+    markerBits: IntArray
+  ) {
     BackgroundUtils.ensureBackgroundThread()
 
     if (!ChanSettings.markDeletedPostsOnScrollbar.get()) {
-      return emptyList()
+      return
     }
 
     val postDescriptors = params.postDescriptors
     if (postDescriptors.isEmpty()) {
-      return emptyList()
+      return
     }
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
-
     for ((index, postDescriptor) in postDescriptors.withIndex()) {
       val post = postsMap[postDescriptor]
         ?: continue
 
-      if (!post.isDeleted || !duplicateChecker.add(index)) {
+      if (!post.isDeleted) {
         continue
       }
 
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
+      mark(markerBits, index, PostMapIndex.Marker.DeletedPost)
     }
-
-    return replyRanges
   }
 
-  private fun extractPostFilterHighlightsFromPostList(params: Params): List<PostMapInfoEntry> {
+  private fun markPostFilterHighlights(
+    filtersMap: Map<Long, ChanFilter>,
+    diff: PostMapIndex.Diff<PostDescriptor>
+  ) {
     BackgroundUtils.ensureBackgroundThread()
 
-    val postDescriptors = params.postDescriptors
-    if (postDescriptors.isEmpty()) {
-      return emptyList()
-    }
-
-    val filtersMap = chanFilterManager.getEnabledHighlightFilters()
-      .associateBy { chanFilter -> chanFilter.getDatabaseId() }
     if (filtersMap.isEmpty()) {
-      return emptyList()
+      return
     }
 
-    val filterHighlightsMap = postFilterManager.getManyFilterHighlights(postDescriptors)
+    val changedPostDescriptors = ArrayList<PostDescriptor>()
+    forEachChangedPost(diff) { _, postDescriptor -> changedPostDescriptors += postDescriptor }
+
+    val filterHighlightsMap = postFilterManager.getManyFilterHighlights(changedPostDescriptors)
     if (filterHighlightsMap.isEmpty()) {
-      return emptyList()
+      return
     }
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList()
-    val duplicateChecker: MutableSet<Int> = HashSet()
-    var prevIndex = 0
-
-    for ((index, post) in postDescriptors.withIndex()) {
-      val filterHighlight = filterHighlightsMap[post]
-        ?: continue
+    forEachChangedPost(diff) { index, postDescriptor ->
+      val filterHighlight = filterHighlightsMap[postDescriptor]
+        ?: return@forEachChangedPost
 
-      if (filterHighlight.ownerFilterId == null
-        || filterHighlight.highlightedColor == 0
-        || !duplicateChecker.add(index)
-      ) {
-        continue
+      if (filterHighlight.ownerFilterId == null || filterHighlight.highlightedColor == 0) {
+        return@forEachChangedPost
       }
 
       val chanFilter = filtersMap[filterHighlight.ownerFilterId]
       if (chanFilter?.action != FilterAction.COLOR.id) {
-        continue
+        return@forEachChangedPost
       }
 
-      connectRangesIfContiguousWithColor(prevIndex, index, chanFilter.color, replyRanges)
-      prevIndex = index
+      diff.mark(index, PostMapIndex.Marker.FilterHighlight)
+      diff.highlightColors[index] = chanFilter.color
     }
-
-    return replyRanges
   }
 
-  private fun extractMyPostsPositionsFromPostList(params: Params): List<PostMapInfoEntry> {
-    BackgroundUtils.ensureBackgroundThread()
-
-    if (!ChanSettings.markYourPostsOnScrollbar.get()) {
-      return emptyList()
-    }
-
+  private fun getSavedPostDescriptors(params: Params): Set<PostDescriptor> {
     val postDescriptors = params.postDescriptors
-    val isViewingThread = params.isViewingThread
+    if (postDescriptors.isEmpty() || !params.isViewingThread) {
+      return emptySet()
+    }
 
-    if (postDescriptors.isEmpty() || !isViewingThread) {
-      return emptyList()
+    if (!ChanSettings.markYourPostsOnScrollbar.get() && !ChanSettings.markRepliesToYourPostOnScrollbar.get()) {
+      return emptySet()
     }
 
     val siteDescriptor = postDescriptors.first().siteDescriptor()
     if (siteManager.bySiteDescriptor(siteDescriptor) == null) {
-      return emptyList()
+      return emptySet()
     }
 
     val threadDescriptor = postDescriptors.first().threadDescriptor()
-    val savedPostDescriptorSet = HashSet(
-      savedReplyManager.retainSavedPostNoMap(postDescriptors, threadDescriptor)
-    )
-
-    if (savedPostDescriptorSet.isEmpty()) {
-      return emptyList()
-    }
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList(savedPostDescriptorSet.size)
-    val duplicateChecker: MutableSet<Int> = HashSet(savedPostDescriptorSet.size)
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
-      if (!savedPostDescriptorSet.contains(postDescriptor) || !duplicateChecker.add(index)) {
-        continue
-      }
-
-      connectRangesIfContiguous(prevIndex, index, replyRanges)
-      prevIndex = index
-    }
-
-    return replyRanges
+    return savedReplyManager.getThreadSavedReplies(threadDescriptor)
+      .mapTo(HashSet()) { chanSavedReply -> chanSavedReply.postDescriptor }
   }
 
-  private fun extractReplyPositionsFromPostList(
-    params: Params,
-    postsMap: Map<PostDescriptor, ChanPost>
-  ): List<PostMapInfoEntry> {
+  private fun markMyPosts(contextKey: ContextKey, diff: PostMapIndex.Diff<PostDescriptor>) {
     BackgroundUtils.ensureBackgroundThread()
 
-    if (!ChanSettings.markRepliesToYourPostOnScrollbar.get()) {
-      return emptyList()
+    if (!contextKey.markYourPosts || contextKey.savedPostDescriptors.isEmpty()) {
+      return
     }
 
-    val postDescriptors = params.postDescriptors
-    val isViewingThread = params.isViewingThread
-
-    if (postDescriptors.isEmpty() || !isViewingThread) {
-      return emptyList()
-    }
+    forEachChangedPost(diff) { index, postDescriptor ->
+      if (!contextKey.savedPostDescriptors.contains(postDescriptor)) {
+        return@forEachChangedPost
+      }
 
-    val siteDescriptor = postDescriptors.first().siteDescriptor()
-    if (siteManager.bySiteDescriptor(siteDescriptor) == null) {
-      return emptyList()
+      diff.mark(index, PostMapIndex.Marker.MyPost)
     }
+  }
 
-    val threadDescriptor = postDescriptors.first().threadDescriptor()
-    val savedPostNoSet = HashSet(
-      savedReplyManager.retainSavedPostNoMap(postDescriptors, threadDescriptor)
-    )
+  private fun markReplies(
+    contextKey: ContextKey,
+    postsMap: Map<PostDescriptor, ChanPost>,
+    diff: PostMapIndex.Diff<PostDescriptor>
+  ) {
+    BackgroundUtils.ensureBackgroundThread()
 
-    if (savedPostNoSet.isEmpty()) {
-      return emptyList()
+    if (!contextKey.markRepliesToYourPosts || contextKey.savedPostDescriptors.isEmpty()) {
+      return
     }
 
-    val replyRanges: MutableList<PostMapInfoEntry> = ArrayList(savedPostNoSet.size)
-    val duplicateChecker: MutableSet<Int> = HashSet(savedPostNoSet.size)
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
+    forEachChangedPost(diff) { index, postDescriptor ->
       val post = postsMap[postDescriptor]
-        ?: continue
+        ?: return@forEachChangedPost
 
-      for (replyTo in post.repliesTo) {
-        if (!savedPostNoSet.contains(replyTo) || !duplicateChecker.add(index)) {
-          continue
-        }
-
-        connectRangesIfContiguous(prevIndex, index, replyRanges)
-        prevIndex = index
-        break
+      if (post.repliesTo.any { replyTo -> contextKey.savedPostDescriptors.contains(replyTo) }) {
+        diff.mark(index, PostMapIndex.Marker.ReplyToMyPost)
       }
     }
-
-    return replyRanges
   }
 
-  private fun extractCrossThreadReplyPositionsFromPostList(params: Params, postsMap: Map<PostDescriptor, ChanPost>): List<PostMapInfoEntry> {
+  private fun markCrossThreadReplies(
+    contextKey: ContextKey,
+    postsMap: Map<PostDescriptor, ChanPost>,
+    diff: PostMapIndex.Diff<PostDescriptor>
+  ) {
     BackgroundUtils.ensureBackgroundThread()
 
-    if (!ChanSettings.markCrossThreadQuotesOnScrollbar.get()) {
-      return emptyList()
+    if (!contextKey.markCrossThreadQuotes || !contextKey.isViewingThread) {
+      return
     }
 
-    val postDescriptors = params.postDescriptors
-    val isViewingThread = params.isViewingThread
-
-    if (postDescriptors.isEmpty() || !isViewingThread) {
-      return emptyList()
-    }
-
-    val crossThreadReplyRanges: MutableList<PostMapInfoEntry> = ArrayList(16)
-    val duplicateChecker: MutableSet<Int> = HashSet(16)
-    var prevIndex = 0
-
-    for ((index, postDescriptor) in postDescriptors.withIndex()) {
+    forEachChangedPost(diff) { index, postDescriptor ->
       val post = postsMap[postDescriptor]
-        ?: continue
+        ?: return@forEachChangedPost
 
-      for (postLinkable in post.postComment.linkables) {
-        if (postLinkable.type != PostLinkable.Type.THREAD || !duplicateChecker.add(index)) {
-          continue
-        }
+      val hasCrossThreadQuote = post.postComment.linkables
+        .any { postLinkable -> postLinkable.type == PostLinkable.Type.THREAD }
 
-        connectRangesIfContiguous(prevIndex, index, crossThreadReplyRanges)
-        prevIndex = index
-        break
+      if (hasCrossThreadQuote) {
+        diff.mark(index, PostMapIndex.Marker.CrossThreadQuote)
       }
     }
-
-    return crossThreadReplyRanges
-  }
-
-  private fun connectRangesIfContiguous(prevIndex: Int, index: Int, ranges: MutableList<PostMapInfoEntry>) {
-    if (prevIndex == index - 1 && ranges.size > 0) {
-      val prevRange = ranges[ranges.lastIndex].range
-
-      ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.first, index), 0)
-    } else {
-      ranges.add(PostMapInfoEntry(IntRange(index, index), 0))
-    }
   }
 
-  private fun connectRangesIfContiguousWithColor(
-    prevIndex: Int,
-    index: Int,
-    newColor: Int,
-    ranges: MutableList<PostMapInfoEntry>
+  private inline fun forEachChangedPost(
+    diff: PostMapIndex.Diff<PostDescriptor>,
+    block: (Int, PostDescriptor) -> Unit
   ) {
-    if (prevIndex == index - 1 && ranges.size > 0) {
-      val prevColor = ranges[ranges.lastIndex].color
-      if (prevColor == newColor) {
-        val prevRange = ranges[ranges.lastIndex].range
-        ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.first, index), newColor)
-        return
+    diff.changedRanges.forEach { changedRange ->
+      for (index in changedRange) {
+        block(index, diff.postKeys[index])
       }
-
-      // fallthrough
     }
+  }
 
-    ranges.add(PostMapInfoEntry(IntRange(index, index), newColor))
+  private fun mark(markerBits: IntArray, index: Int, marker: PostMapIndex.Marker) {
+    markerBits[index] = markerBits[index] or marker.bit
   }
 
+  /**
+   * Everything the markers that are not re-evaluated for every post depend on (besides the posts
+   * themselves). All of the posts are evaluated again when it changes.
+   * */
+  private data class ContextKey(
+    val isViewingThread: Boolean,
+    val markYourPosts: Boolean,
+    val markRepliesToYourPosts: Boolean,
+    val markCrossThreadQuotes: Boolean,
+    val thirdEyeEnabled: Boolean,
+    val savedPostDescriptors: Set<PostDescriptor>,
+    val highlightFilters: List<ChanFilter>
+  )
+
   data class Params(
     val postDescriptors: List<PostDescriptor>,
-    val isViewingThread: Boolean
+    val isViewingThread: Boolean,
+    // Owned by the post list, keeps the marker positions between the updates of that list
+    val postMapIndex: PostMapIndex<PostDescriptor>,
+    // How many separate positions the scrollbar can show (usually its height in pixels)
+    val scrollbarResolution: Int
   )
 
 }
@@ -0,0 +1,164 @@
+package com.github.k1rakishou.chan.core.usecase
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.chan.core.manager.ArchivesManager
+import com.github.k1rakishou.chan.core.manager.SiteManager
+import com.github.k1rakishou.chan.core.site.sites.search.Chan4SearchParams
+import com.github.k1rakishou.chan.core.site.sites.search.DvachSearchParams
+import com.github.k1rakishou.chan.core.site.sites.search.FederatedSearch
+import com.github.k1rakishou.chan.core.site.sites.search.FederatedSearchResult
+import com.github.k1rakishou.chan.core.site.sites.search.FoolFuukaSearchParams
+import com.github.k1rakishou.chan.core.site.sites.search.FuukaSearchParams
+import com.github.k1rakishou.chan.core.site.sites.search.SearchError
+import com.github.k1rakishou.chan.core.site.sites.search.SearchParams
+import com.github.k1rakishou.chan.core.site.sites.search.SiteGlobalSearchType
+import com.github.k1rakishou.core_logger.Logger
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import kotlinx.coroutines.CancellationException
+
+/**
+ * Searches the site of [Params.searchParams] together with every archive that can search the same board
+ * (see [FederatedSearch]). The searches are cached by their [SearchParams] (without the page) so paging
+ * back and forth or opening the same search again shortly after does not search again.
+ * */
+class FederatedSearchUseCase(
+  private val siteManager: SiteManager,
+  private val archivesManager: ArchivesManager,
+  private val globalSearchUseCase: GlobalSearchUseCase
+) : ISuspendUseCase<FederatedSearchUseCase.Params, FederatedSearchResult> {
+
+  @GuardedBy("this")
+  private val searchCache = object : LinkedHashMap<SearchParams, CachedSearch>(16, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<SearchParams, CachedSearch>?): Boolean {
+      return size > MAX_CACHED_SEARCHES
+    }
+  }
+
+  override suspend fun execute(parameter: Params): FederatedSearchResult {
+    return try {
+      getOrCreateSearch(parameter.searchParams).getPage(parameter.pageIndex)
+    } catch (error: CancellationException) {
+      throw error
+    } catch (error: Throwable) {
+      Logger.e(TAG, "execute() Unknown error", error)
+
+      val siteDescriptor = parameter.searchParams.siteDescriptor
+      FederatedSearchResult.Failure(mapOf(siteDescriptor to SearchError.UnknownError(error)))
+    }
+  }
+
+  private suspend fun getOrCreateSearch(searchParams: SearchParams): FederatedSearch {
+    val key = firstPageParams(searchParams)
+    val now = System.currentTimeMillis()
+
+    synchronized(this) {
+      val cachedSearch = searchCache[key]
+      if (cachedSearch != null && now - cachedSearch.createdAt < CACHED_SEARCH_TTL_MS) {
+        return cachedSearch.federatedSearch
+      }
+    }
+
+    siteManager.awaitUntilInitialized()
+    archivesManager.awaitUntilInitialized()
+
+    val federatedSearch = FederatedSearch(sources = createSources(key))
+    Logger.d(TAG, "getOrCreateSearch() searchParams=$key, " +
+      "sources=${federatedSearch.sources.map { source -> source.siteDescriptor.siteName }}")
+
+    synchronized(this) {
+      val cachedSearch = searchCache[key]
+      if (cachedSearch != null && now - cachedSearch.createdAt < CACHED_SEARCH_TTL_MS) {
+        return cachedSearch.federatedSearch
+      }
+
+      searchCache[key] = CachedSearch(federatedSearch, now)
+    }
+
+    return federatedSearch
+  }
+
+  private fun createSources(searchParams: SearchParams): List<FederatedSearch.Source> {
+    val sources = mutableListOf<FederatedSearch.Source>()
+    sources += createSource(searchParams)
+
+    val boardDescriptor = boardDescriptorOf(searchParams)
+      ?: return sources
+
+    val subject = when (searchParams) {
+      is FoolFuukaSearchParams -> searchParams.subject
+      is FuukaSearchParams -> searchParams.subject
+      else -> ""
+    }
+
+    archivesManager.getArchivesSupportingSearch(boardDescriptor).forEach { archiveSiteDescriptor ->
+      val searchType = siteManager.bySiteDescriptor(archiveSiteDescriptor)?.siteGlobalSearchType()
+        ?: return@forEach
+
+      val archiveBoardDescriptor = BoardDescriptor.create(archiveSiteDescriptor, boardDescriptor.boardCode)
+
+      val archiveSearchParams = when (searchType) {
+        SiteGlobalSearchType.FoolFuukaSearch -> {
+          FoolFuukaSearchParams(archiveBoardDescriptor, searchParams.query, subject, null)
+        }
+        SiteGlobalSearchType.FuukaSearch -> {
+          FuukaSearchParams(archiveBoardDescriptor, searchParams.query, subject, null)
+        }
+        SiteGlobalSearchType.SearchNotSupported,
+        SiteGlobalSearchType.SimpleQuerySearch,
+        SiteGlobalSearchType.SimpleQueryBoardSearch -> return@forEach
+      }
+
+      sources += createSource(archiveSearchParams)
+    }
+
+    return sources
+  }
+
+  private fun createSource(searchParams: SearchParams): FederatedSearch.Source {
+    return FederatedSearch.Source(searchParams.siteDescriptor) { page ->
+      globalSearchUseCase.execute(withPage(searchParams, page))
+    }
+  }
+
+  private fun boardDescriptorOf(searchParams: SearchParams): BoardDescriptor? {
+    return when (searchParams) {
+      is Chan4SearchParams -> {
+        searchParams.boardCode?.let { boardCode -> BoardDescriptor.create(searchParams.siteDescriptor, boardCode) }
+      }
+      is DvachSearchParams -> BoardDescriptor.create(searchParams.siteDescriptor, searchParams.boardCode)
+      is FoolFuukaSearchParams -> searchParams.boardDescriptor
+      is FuukaSearchParams -> searchParams.boardDescriptor
+      else -> null
+    }
+  }
+
+  private fun firstPageParams(searchParams: SearchParams): SearchParams {
+    return withPage(searchParams, null)
+  }
+
+  private fun withPage(searchParams: SearchParams, page: Int?): SearchParams {
+    return when (searchParams) {
+      is Chan4SearchParams -> searchParams.copy(page = page)
+      is FoolFuukaSearchParams -> searchParams.copy(page = page)
+      is FuukaSearchParams -> searchParams.copy(page = page)
+      else -> searchParams
+    }
+  }
+
+  data class Params(
+    val searchParams: SearchParams,
+    val pageIndex: Int
+  )
+
+  private class CachedSearch(
+    val federatedSearch: FederatedSearch,
+    val createdAt: Long
+  )
+
+  companion object {
+    private const val TAG = "FederatedSearchUseCase"
+
+    private const val MAX_CACHED_SEARCHES = 8
+    private const val CACHED_SEARCH_TTL_MS = 10L * 60L * 1000L
+  }
+}
@@ -45,7 +45,7 @@ class GetThreadBookmarkGroupIdsUseCase(
         val groupIdWithName = threadBookmarkGroupManager.getMatchingGroupIdWithName(
           chanOriginalPost.postDescriptor.threadDescriptor().boardDescriptor,
           chanOriginalPost.subject ?: "",
-          chanOriginalPost.postComment.comment()
+          chanOriginalPost.postComment.commentText()
         )
 
         resultMap[threadDescriptor] = groupIdWithName
@@ -1,8 +1,13 @@
 package com.github.k1rakishou.chan.core.usecase
 
 import android.content.Context
+import com.github.k1rakishou.AppendLogSettingProvider
+import com.github.k1rakishou.AppendLogSettingsStore
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.BuildConfig
+import com.github.k1rakishou.chan.core.backup.BackupGenerationsRestorer
+import com.github.k1rakishou.chan.core.backup.BackupManifest
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.AppConstants
@@ -15,51 +20,127 @@ import com.github.k1rakishou.model.KurobaDatabase
 import okhttp3.internal.closeQuietly
 import java.io.File
 import java.io.IOException
-import java.util.zip.ZipEntry
+import java.io.InputStream
 import java.util.zip.ZipInputStream
 
 class ImportBackupFileUseCase(
   private val appContext: Context,
   private val appConstants: AppConstants,
-  private val fileManager: FileManager
-) : ISuspendUseCase<ExternalFile, ModularResult<Unit>> {
+  private val fileManager: FileManager,
+  private val threadDownloadManifestIndex: ThreadDownloadManifestIndex
+) : ISuspendUseCase<ImportBackupFileUseCase.Params, ModularResult<Unit>> {
 
-  override suspend fun execute(parameter: ExternalFile): ModularResult<Unit> {
+  override suspend fun execute(parameter: Params): ModularResult<Unit> {
     BackgroundUtils.ensureBackgroundThread()
 
     return ModularResult.Try { importInternal(parameter) }
   }
 
-  private fun importInternal(backupFile: ExternalFile) {
+  private fun importInternal(params: Params) {
     Logger.d(TAG, "Import start")
 
+    val backupFile = params.backupFile
+    val manifest = readManifest(backupFile)
+    val restoredSettingsLogFiles = mutableSetOf<File>()
+
+    try {
+      if (manifest == null) {
+        Logger.d(TAG, "No manifest found, importing as a regular backup")
+        importLegacy(backupFile, restoredSettingsLogFiles)
+      } else {
+        Logger.d(TAG, "Importing backup generation ${manifest.generationId}, " +
+          "required generations: ${manifest.requiredGenerations()}")
+        importGenerations(manifest, backupFile, params.previousGenerationFiles, restoredSettingsLogFiles)
+      }
+    } finally {
+      // The thread directories (and their manifests) may have been overwritten, even partially
+      threadDownloadManifestIndex.forgetAll()
+    }
+
+    Logger.d(TAG, "Import success!")
+  }
+
+  private fun importGenerations(
+    manifest: BackupManifest,
+    backupFile: ExternalFile,
+    previousGenerationFiles: List<ExternalFile>,
+    restoredSettingsLogFiles: MutableSet<File>
+  ) {
+    val generationFiles = mutableMapOf<String, ExternalFile>()
+    generationFiles[manifest.generationId] = backupFile
+
+    previousGenerationFiles.forEach { previousGenerationFile ->
+      val previousManifest = readManifest(previousGenerationFile)
+      if (previousManifest == null) {
+        Logger.e(TAG, "File '${previousGenerationFile.getFullPath()}' is not an incremental backup")
+        return@forEach
+      }
+
+      generationFiles.putIfAbsent(previousManifest.generationId, previousGenerationFile)
+    }
+
+    val missingGenerations = manifest.requiredGenerations() - generationFiles.keys
+    if (missingGenerations.isNotEmpty()) {
+      throw BackupGenerationsRestorer.MissingBackupGenerationsException(missingGenerations)
+    }
+
+    BackupGenerationsRestorer().restore(
+      manifest = manifest,
+      openArchive = { generationId ->
+        val generationFile = generationFiles[generationId]!!
+
+        fileManager.getInputStream(generationFile)
+          ?: throw IOException("Failed to open input stream for file '${generationFile.getFullPath()}'")
+      },
+      restoreEntry = { entryName, inputStream ->
+        Logger.d(TAG, "restoring ${entryName}")
+
+        if (!restoreFile(entryName, inputStream, restoredSettingsLogFiles)) {
+          Logger.e(TAG, "Unknown file: $entryName")
+        }
+      }
+    )
+  }
+
+  /**
+   * Returns the manifest of an incremental backup (which is always the first entry of the archive)
+   * or null if [backupFile] is a regular backup.
+   * */
+  private fun readManifest(backupFile: ExternalFile): BackupManifest? {
+    val inputStream = fileManager.getInputStream(backupFile)
+      ?: throw IOException("Failed to open input stream for file '${backupFile.getFullPath()}'")
+
+    return ZipInputStream(inputStream).use { zipInputStream ->
+      val firstEntry = zipInputStream.nextEntry
+      if (firstEntry == null || firstEntry.name != BackupManifest.MANIFEST_ENTRY_NAME) {
+        return@use null
+      }
+
+      return@use BackupManifest.deserialize(zipInputStream)
+    }
+  }
+
+  private fun importLegacy(backupFile: ExternalFile, restoredSettingsLogFiles: MutableSet<File>) {
     val inputStream = fileManager.getInputStream(backupFile)
       ?: throw IOException("Failed to open input stream for file '${backupFile.getFullPath()}'")
 
     val zipInputStream = ZipInputStream(inputStream)
-    var zipEntry: ZipEntry? = null
     var zipMalformed = true
 
     try {
       while (true) {
-        zipEntry = zipInputStream.nextEntry
+        val zipEntry = zipInputStream.nextEntry
           ?: break
 
         val fileName = zipEntry.name
         Logger.d(TAG, "zipEntry.name = ${fileName}")
 
-        if (fileName.contains(KurobaDatabase.DATABASE_NAME, ignoreCase = true)) {
-          handleDatabaseFile(fileName, zipInputStream)
-        } else if (fileName.endsWith(".xml")) {
-          handleSharedPrefsFile(fileName, zipInputStream)
-        } else if (
-          fileName.contains(ThemeParser.LIGHT_THEME_FILE_NAME) ||
-          fileName.contains(ThemeParser.DARK_THEME_FILE_NAME)
-        ) {
-          handleThemeFile(fileName, zipInputStream)
-        } else if (fileName.startsWith("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")) {
-          handleThreadDownloadFile(zipEntry, zipInputStream)
-        } else {
+        if (zipEntry.isDirectory) {
+          zipInputStream.closeEntry()
+          continue
+        }
+
+        if (!restoreFile(fileName, zipInputStream, restoredSettingsLogFiles)) {
           Logger.e(TAG, "Unknown file: $fileName")
           zipInputStream.closeEntry()
           continue
@@ -76,25 +157,42 @@ class ImportBackupFileUseCase(
     if (zipMalformed) {
       throw IOException("Failed to open file '${backupFile.getFullPath()}'. Make sure the file is not malformed.")
     }
+  }
+
+  private fun restoreFile(
+    fileName: String,
+    inputStream: InputStream,
+    restoredSettingsLogFiles: MutableSet<File>
+  ): Boolean {
+    if (fileName.contains(KurobaDatabase.DATABASE_NAME, ignoreCase = true)) {
+      handleDatabaseFile(fileName, inputStream)
+    } else if (fileName.endsWith(".xml") || fileName.endsWith(AppendLogSettingProvider.LOG_FILE_EXTENSION)) {
+      handleSharedPrefsFile(fileName, inputStream, restoredSettingsLogFiles)
+    } else if (
+      fileName.contains(ThemeParser.LIGHT_THEME_FILE_NAME) ||
+      fileName.contains(ThemeParser.DARK_THEME_FILE_NAME)
+    ) {
+      handleThemeFile(fileName, inputStream)
+    } else if (fileName.startsWith("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")) {
+      handleThreadDownloadFile(fileName, inputStream)
+    } else {
+      return false
+    }
 
-    Logger.d(TAG, "Import success!")
+    return true
   }
 
-  private fun handleThreadDownloadFile(zipEntry: ZipEntry, zipInputStream: ZipInputStream) {
+  private fun handleThreadDownloadFile(fileName: String, inputStream: InputStream) {
     val threadDownloaderCacheDir = appConstants.threadDownloaderCacheDir
     if (!threadDownloaderCacheDir.exists()) {
       threadDownloaderCacheDir.mkdirs()
     }
 
-    val threadDownloadCacheName = zipEntry.name.removePrefix("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")
+    val threadDownloadCacheName = fileName.removePrefix("${ExportBackupFileUseCase.THREAD_DOWNLOADS_CACHE_DIR}/")
     val outputFile = File(threadDownloaderCacheDir, threadDownloadCacheName)
 
-    if (zipEntry.isDirectory) {
-      return
-    }
-
     if (outputFile.parentFile?.exists() == false) {
-      outputFile.parentFile?.mkdir()
+      outputFile.parentFile?.mkdirs()
     }
 
     if (!outputFile.exists()) {
@@ -102,54 +200,103 @@ class ImportBackupFileUseCase(
     }
 
     outputFile.outputStream().use { outputStream ->
-      zipInputStream.copyTo(outputStream, ExportBackupFileUseCase.BUFFER_SIZE)
+      inputStream.copyTo(outputStream, ExportBackupFileUseCase.BUFFER_SIZE)
     }
   }
 
-  private fun handleThemeFile(fileName: String, zipInputStream: ZipInputStream) {
+  private fun handleThemeFile(fileName: String, inputStream: InputStream) {
     val themeFile = File(AndroidUtils.getFilesDir(), fileName)
     if (!themeFile.exists()) {
       check(themeFile.createNewFile()) { "Failed to create ${themeFile.absolutePath}" }
     }
 
     themeFile.outputStream().use { outputStream ->
-      zipInputStream.copyTo(outputStream, ExportBackupFileUseCase.BUFFER_SIZE)
+      inputStream.copyTo(outputStream, ExportBackupFileUseCase.BUFFER_SIZE)
     }
   }
 
-  private fun handleSharedPrefsFile(fileName: String, zipInputStream: ZipInputStream) {
-    val outputFileStream = if (fileName == ExportBackupFileUseCase.MAIN_PREFS_FILE_NAME) {
-      val mainSharedPrefsFile = ChanSettings.getMainSharedPrefsFileForThisFlavor()
-      Logger.d(TAG, "Creating ${mainSharedPrefsFile.absolutePath} for flavor ${BuildConfig.FLAVOR}")
+  /**
+   * Backups contain both the settings logs and the xml files generated from them (for the versions of
+   * the app from before the settings logs). [restoredSettingsLogFiles] are the logs restored so far
+   * by the current import, they are kept when the xml file is restored after them.
+   * */
+  private fun handleSharedPrefsFile(
+    fileName: String,
+    inputStream: InputStream,
+    restoredSettingsLogFiles: MutableSet<File>
+  ) {
+    val sharedPrefsFile = when (fileName) {
+      ExportBackupFileUseCase.MAIN_PREFS_FILE_NAME -> {
+        val mainSharedPrefsFile = ChanSettings.getMainSharedPrefsFileForThisFlavor()
+        Logger.d(TAG, "Creating ${mainSharedPrefsFile.absolutePath} for flavor ${BuildConfig.FLAVOR}")
 
-      mainSharedPrefsFile.outputStream()
-    } else {
-      val sharedPrefsDir = File(AndroidUtils.getAppDir(), ChanSettings.SHARED_PREFS_DIR_NAME)
-      if (!sharedPrefsDir.exists()) {
-        check(sharedPrefsDir.mkdirs()) { "Failed to create ${sharedPrefsDir.absolutePath}" }
+        mainSharedPrefsFile
       }
+      ExportBackupFileUseCase.MAIN_SETTINGS_LOG_FILE_NAME -> {
+        val mainSharedPrefsFile = ChanSettings.getMainSharedPrefsFileForThisFlavor()
+        val mainSettingsLogFile = settingsLogFileFor(mainSharedPrefsFile)
+        Logger.d(TAG, "Creating ${mainSettingsLogFile.absolutePath} for flavor ${BuildConfig.FLAVOR}")
 
-      val sharedPrefsFile = File(sharedPrefsDir, fileName)
-      sharedPrefsFile.outputStream()
+        mainSettingsLogFile
+      }
+      else -> {
+        val sharedPrefsDir = File(AndroidUtils.getAppDir(), ChanSettings.SHARED_PREFS_DIR_NAME)
+        if (!sharedPrefsDir.exists()) {
+          check(sharedPrefsDir.mkdirs()) { "Failed to create ${sharedPrefsDir.absolutePath}" }
+        }
+
+        File(sharedPrefsDir, fileName)
+      }
     }
 
+    if (sharedPrefsFile.name.endsWith(AppendLogSettingProvider.LOG_FILE_EXTENSION)) {
+      // The settings are still open, make sure they don't write anything into the restored log
+      AppendLogSettingsStore.closeStore(sharedPrefsFile)
+      restoredSettingsLogFiles += sharedPrefsFile
+    }
+
+    val outputFileStream = sharedPrefsFile.outputStream()
+
     try {
-      zipInputStream.copyTo(outputFileStream, ExportBackupFileUseCase.BUFFER_SIZE)
+      inputStream.copyTo(outputFileStream, ExportBackupFileUseCase.BUFFER_SIZE)
     } finally {
       outputFileStream.closeQuietly()
     }
+
+    if (sharedPrefsFile.name.endsWith(".xml")) {
+      val settingsLogFile = settingsLogFileFor(sharedPrefsFile)
+      if (settingsLogFile in restoredSettingsLogFiles) {
+        return
+      }
+
+      // Backups made before the settings were moved into the settings logs only contain the xml
+      // files. Delete the current settings log so that it's imported again from the restored file.
+      AppendLogSettingsStore.closeStore(settingsLogFile)
+      settingsLogFile.delete()
+    }
   }
 
-  private fun handleDatabaseFile(fileName: String?, zipInputStream: ZipInputStream) {
+  private fun settingsLogFileFor(sharedPrefsFile: File): File {
+    val sharedPrefsName = sharedPrefsFile.name.removeSuffix(".xml")
+    return File(sharedPrefsFile.parentFile, sharedPrefsName + AppendLogSettingProvider.LOG_FILE_EXTENSION)
+  }
+
+  private fun handleDatabaseFile(fileName: String, inputStream: InputStream) {
     val outputFileStream = appContext.getDatabasePath(fileName).outputStream()
 
     try {
-      zipInputStream.copyTo(outputFileStream, ExportBackupFileUseCase.BUFFER_SIZE)
+      inputStream.copyTo(outputFileStream, ExportBackupFileUseCase.BUFFER_SIZE)
     } finally {
       outputFileStream.closeQuietly()
     }
   }
 
+  data class Params(
+    val backupFile: ExternalFile,
+    // Archives of the previous backup generations, only needed when importing an incremental backup
+    val previousGenerationFiles: List<ExternalFile> = emptyList()
+  )
+
   companion object {
     private const val TAG = "ImportBackupFileUseCase"
   }
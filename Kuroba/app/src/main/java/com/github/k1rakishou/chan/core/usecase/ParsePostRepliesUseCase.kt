@@ -1,15 +1,16 @@
 package com.github.k1rakishou.chan.core.usecase
 
+import com.github.k1rakishou.chan.core.helper.PostRepliesDetector
+import com.github.k1rakishou.chan.core.helper.PostRepliesWatermarks
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.site.parser.ReplyParser
+import com.github.k1rakishou.common.AppConstants
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.common.mutableMapWithCap
-import com.github.k1rakishou.common.putIfNotContains
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
-import com.github.k1rakishou.model.data.post.ChanSavedReply
 import com.github.k1rakishou.model.repository.ChanSavedReplyRepository
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
@@ -18,6 +19,8 @@ import kotlinx.coroutines.async
 import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
 
 typealias YousPerThreadMap = Map<ChanDescriptor.ThreadDescriptor, Map<Long, List<ReplyToMyPost>>>
 
@@ -25,22 +28,43 @@ class ParsePostRepliesUseCase(
   private val appScope: CoroutineScope,
   private val replyParser: Lazy<ReplyParser>,
   private val siteManager: SiteManager,
-  private val savedReplyRepository: Lazy<ChanSavedReplyRepository>
-) : ISuspendUseCase<List<ThreadBookmarkFetchResult.Success>, YousPerThreadMap> {
+  private val savedReplyRepository: Lazy<ChanSavedReplyRepository>,
+  private val appConstants: AppConstants
+) : ISuspendUseCase<List<ThreadBookmarkFetchResult.Success>, ParsePostRepliesUseCase.Result> {
+  private val postRepliesWatermarks by lazy { PostRepliesWatermarks(appConstants.postRepliesWatermarksFile) }
 
-  override suspend fun execute(parameter: List<ThreadBookmarkFetchResult.Success>): YousPerThreadMap {
+  override suspend fun execute(parameter: List<ThreadBookmarkFetchResult.Success>): Result {
     require(siteManager.isReady()) { "SiteManager is not initialized yet!" }
 
-    return parsePostReplies(parameter)
+    val run = postRepliesWatermarks.startRun()
+    val postsQuotingMe = parsePostReplies(parameter, run)
+
+    return Result(postsQuotingMe, run)
+  }
+
+  /**
+   * Must be called once the replies of [result] (returned by [execute]) were persisted. Until then
+   * the same posts will be scanned again on every call of [execute].
+   * */
+  fun commitProcessedPosts(result: Result) {
+    try {
+      postRepliesWatermarks.commit(result.run)
+    } catch (error: IOException) {
+      Logger.e(TAG, "Failed to persist post replies watermarks", error)
+      postRepliesWatermarks.clear()
+    }
   }
 
   private suspend fun parsePostReplies(
-    successThreadBookmarkFetchResults: List<ThreadBookmarkFetchResult.Success>
+    successThreadBookmarkFetchResults: List<ThreadBookmarkFetchResult.Success>,
+    run: PostRepliesWatermarks.Run
   ): Map<ChanDescriptor.ThreadDescriptor, Map<Long, List<ReplyToMyPost>>> {
     val cap = successThreadBookmarkFetchResults.size
     val quotesToMePerThreadMap = mutableMapWithCap<ChanDescriptor.ThreadDescriptor, Map<Long, List<ReplyToMyPost>>>(cap)
     val mutex = Mutex()
 
+    val stats = RunStats()
+
     successThreadBookmarkFetchResults
       .chunked(BATCH_SIZE)
       .forEach { chunk ->
@@ -48,7 +72,7 @@ class ParsePostRepliesUseCase(
           appScope.async(Dispatchers.IO) {
             return@async ModularResult.Try {
               val threadDescriptor = successFetchResult.threadDescriptor
-              val quotesToMeInThreadMap = parsePostRepliesWorker(successFetchResult)
+              val quotesToMeInThreadMap = parsePostRepliesWorker(successFetchResult, run, stats)
 
               mutex.withLock {
                 quotesToMePerThreadMap[threadDescriptor] = quotesToMeInThreadMap
@@ -61,151 +85,71 @@ class ParsePostRepliesUseCase(
         }.awaitAll()
       }
 
+    Logger.d(TAG, "parsePostReplies() threads=${successThreadBookmarkFetchResults.size}, " +
+      "threadsWithoutMyPosts=${stats.threadsWithoutMyPosts.get()}, totalPosts=${stats.totalPosts.get()}, " +
+      "scannedPosts=${stats.scannedPosts.get()}, parsedPosts=${stats.parsedPosts.get()}")
+
     return quotesToMePerThreadMap
   }
 
   private suspend fun parsePostRepliesWorker(
-    successFetchResult: ThreadBookmarkFetchResult.Success
+    successFetchResult: ThreadBookmarkFetchResult.Success,
+    run: PostRepliesWatermarks.Run,
+    stats: RunStats
   ): Map<Long, List<ReplyToMyPost>> {
     val threadDescriptor = successFetchResult.threadDescriptor
+    val simplePostObjects = successFetchResult.threadBookmarkInfoObject.simplePostObjects
+    val lastPostNo = simplePostObjects.maxOfOrNull { simplePostObject -> simplePostObject.postNo() } ?: 0L
 
-    // Key - postNo of a post that quotes other posts.
-    // Value - set of postNo that the "Key" quotes.
-    val quoteOwnerPostsMap = mutableMapWithCap<Long, MutableSet<TempReplyToMyPost>>(32)
-
-    successFetchResult.threadBookmarkInfoObject.simplePostObjects.forEach { simplePostObject ->
-      val extractedQuotes = replyParser.get().extractCommentReplies(
-        threadDescriptor.siteDescriptor(),
-        simplePostObject.comment()
-      )
-
-      extractedQuotes.forEach { extractedQuote ->
-        when (extractedQuote) {
-          is ReplyParser.ExtractedQuote.FullQuote -> {
-            val isQuotedPostInTheSameThread = (extractedQuote.boardCode == threadDescriptor.boardCode()
-              && extractedQuote.threadId == threadDescriptor.threadNo)
-
-            if (!isQuotedPostInTheSameThread) {
-              // Cross-thread reply or something like that, we don't support it since it shouldn't
-              // be used normally. The only use case that come to mind is when there are two
-              // different threads bookmarked and someone from one bookmarked thread replied to our
-              // post in another bookmarked thread. Normally, nobody would expect for this to work
-              // and that's why we don't support it.
-              return@forEach
-            }
-
-            quoteOwnerPostsMap.putIfNotContains(extractedQuote.postId, hashSetWithCap(16))
-
-            val tempReplyToMyPost = TempReplyToMyPost(
-              simplePostObject.postNo(),
-              simplePostObject.comment()
-            )
-            quoteOwnerPostsMap[extractedQuote.postId]!!.add(tempReplyToMyPost)
-          }
-          is ReplyParser.ExtractedQuote.Quote -> {
-            quoteOwnerPostsMap.putIfNotContains(extractedQuote.postId, hashSetWithCap(16))
-
-            val tempReplyToMyPost = TempReplyToMyPost(
-              simplePostObject.postNo(),
-              simplePostObject.comment()
-            )
-            quoteOwnerPostsMap[extractedQuote.postId]!!.add(tempReplyToMyPost)
-          }
-        }
-      }
-    }
-
-    if (quoteOwnerPostsMap.isEmpty()) {
-      return emptyMap()
-    }
+    stats.totalPosts.addAndGet(simplePostObjects.size)
 
     if (siteManager.bySiteDescriptor(threadDescriptor.siteDescriptor()) == null) {
       return emptyMap()
     }
 
+    // Check whether we have posted in this thread at all before touching the posts
     val threadSavedReplies = savedReplyRepository.get().preloadForThread(threadDescriptor)
       .peekError { error -> Logger.e(TAG, "savedReplyRepository.preloadForThread($threadDescriptor) error", error) }
-      .valueOrNull() ?: emptyList()
+      .valueOrNull() ?: return emptyMap()
 
-    if (threadSavedReplies.isEmpty()) {
-      return emptyMap()
-    }
+    val myPostNos = threadSavedReplies
+      .mapTo(hashSetWithCap(threadSavedReplies.size)) { chanSavedReply -> chanSavedReply.postDescriptor.postNo }
 
-    val quotesToMeInThreadMap = retainSavedPostNoMap(
-      threadSavedReplies,
-      quoteOwnerPostsMap
-    )
-
-    if (quotesToMeInThreadMap.isEmpty()) {
+    if (myPostNos.isEmpty()) {
+      stats.threadsWithoutMyPosts.incrementAndGet()
+      run.recordProcessed(threadDescriptor, lastPostNo, myPostNos)
       return emptyMap()
     }
 
-    val quotePostDescriptorsMap = HashMap<Long, MutableList<ReplyToMyPost>>(quotesToMeInThreadMap.size)
-
-    quotesToMeInThreadMap.forEach { (myPostNo, repliesToMeSet) ->
-      quotePostDescriptorsMap.putIfNotContains(myPostNo, ArrayList(repliesToMeSet.size))
-
-      repliesToMeSet.forEach { tempReplyToMyPost ->
-        val replyToMyPost = ReplyToMyPost(
-          PostDescriptor.create(threadDescriptor, tempReplyToMyPost.postNo),
-          tempReplyToMyPost.commentRaw
-        )
-
-        quotePostDescriptorsMap[myPostNo]!!.add(replyToMyPost)
-      }
+    val postRepliesDetector = PostRepliesDetector { comment ->
+      replyParser.get().extractCommentReplies(threadDescriptor.siteDescriptor(), comment)
     }
 
-    return quotePostDescriptorsMap
-  }
-
-  private fun retainSavedPostNoMap(
-    threadSavedReplies: List<ChanSavedReply>,
-    quoteOwnerPostsMap: Map<Long, Set<TempReplyToMyPost>>
-  ): Map<Long, MutableSet<TempReplyToMyPost>> {
-    val resultMap: MutableMap<Long, MutableSet<TempReplyToMyPost>> = mutableMapWithCap(16)
-
-    val savedRepliesNoSet = threadSavedReplies
-      .map { chanSavedReply -> chanSavedReply.postDescriptor.postNo }
-      .toSet()
-
-    for ((quotePostNo, tempReplies) in quoteOwnerPostsMap) {
-      for (tempReply in tempReplies) {
-        if (!savedRepliesNoSet.contains(quotePostNo)) {
-          continue
-        }
+    val detectionResult = postRepliesDetector.detect(
+      threadDescriptor = threadDescriptor,
+      posts = simplePostObjects,
+      myPostNos = myPostNos,
+      scanAfterPostNo = run.scanAfterPostNo(threadDescriptor, myPostNos)
+    )
 
-        resultMap.putIfNotContains(quotePostNo, mutableSetOf())
-        resultMap[quotePostNo]!!.add(tempReply)
-      }
-    }
+    stats.scannedPosts.addAndGet(detectionResult.scannedPosts)
+    stats.parsedPosts.addAndGet(detectionResult.parsedPosts)
 
-    return resultMap
+    run.recordProcessed(threadDescriptor, lastPostNo, myPostNos)
+    return detectionResult.repliesToMe
   }
 
-  class TempReplyToMyPost(
-    val postNo: Long,
-    val commentRaw: String
-  ) {
-
-    override fun equals(other: Any?): Boolean {
-      if (this === other) return true
-      if (javaClass != other?.javaClass) return false
-
-      other as TempReplyToMyPost
-
-      if (postNo != other.postNo) return false
-
-      return true
-    }
-
-    override fun hashCode(): Int {
-      return postNo.hashCode()
-    }
-
-    override fun toString(): String {
-      return "TempReplyToMyPost(postNo=$postNo, commentRaw='${commentRaw.take(50)}')"
-    }
-
+  class Result(
+    val postsQuotingMe: YousPerThreadMap,
+    // Every call of execute() has its own run so that concurrent calls don't commit each other's runs
+    internal val run: PostRepliesWatermarks.Run
+  )
+
+  private class RunStats {
+    val threadsWithoutMyPosts = AtomicInteger(0)
+    val totalPosts = AtomicInteger(0)
+    val scannedPosts = AtomicInteger(0)
+    val parsedPosts = AtomicInteger(0)
   }
 
   companion object {
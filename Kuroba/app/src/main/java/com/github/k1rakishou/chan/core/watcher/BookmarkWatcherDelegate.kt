@@ -239,7 +239,8 @@ class BookmarkWatcherDelegate(
   }
 
   private suspend fun processSuccessFetchResults(successFetchResults: List<ThreadBookmarkFetchResult.Success>) {
-    val postsQuotingMe = parsePostRepliesUseCase.get().execute(successFetchResults)
+    val parsePostRepliesResult = parsePostRepliesUseCase.get().execute(successFetchResults)
+    val postsQuotingMe = parsePostRepliesResult.postsQuotingMe
 
     val fetchResultPairsList = successFetchResults.map { fetchResult ->
       fetchResult.threadDescriptor to fetchResult.threadBookmarkInfoObject
@@ -266,6 +267,9 @@ class BookmarkWatcherDelegate(
     }
 
     bookmarksManager.persistBookmarksManually(updatedBookmarkDescriptors)
+
+    // The replies are persisted now so the posts they were found in don't need to be scanned again
+    parsePostRepliesUseCase.get().commitProcessedPosts(parsePostRepliesResult)
   }
 
   private fun updateSingleBookmark(
@@ -309,6 +313,10 @@ class BookmarkWatcherDelegate(
       threadBookmark.seenPostsCount = threadBookmarkInfoObject.countAmountOfSeenPosts(lastViewedPostNo)
     }
 
+    // Only the replies from the posts that were not scanned before are in quotesToMeMap so the
+    // already known replies are updated separately
+    updateExistingRepliesToMyPosts(threadBookmark, lastViewedPostNo)
+
     quotesToMeMap.forEach { (myPostNo, replyToMyPostList) ->
       replyToMyPostList.forEach { replyToMyPost ->
         createOrUpdateReplyToMyPosts(
@@ -344,6 +352,24 @@ class BookmarkWatcherDelegate(
     threadBookmark.clearFirstFetchFlag()
   }
 
+  private fun updateExistingRepliesToMyPosts(threadBookmark: ThreadBookmark, lastViewedPostNo: Long) {
+    threadBookmark.threadBookmarkReplies.values.forEach { existingReply ->
+      val alreadyRead = lastViewedPostNo >= existingReply.postDescriptor.postNo
+
+      if (!existingReply.alreadySeen) {
+        existingReply.alreadySeen = alreadyRead
+      }
+
+      if (!existingReply.alreadyNotified) {
+        existingReply.alreadyNotified = alreadyRead
+      }
+
+      if (!existingReply.alreadyRead) {
+        existingReply.alreadyRead = alreadyRead
+      }
+    }
+  }
+
   private fun createOrUpdateReplyToMyPosts(
     threadBookmark: ThreadBookmark,
     replyToMyPost: ReplyToMyPost,
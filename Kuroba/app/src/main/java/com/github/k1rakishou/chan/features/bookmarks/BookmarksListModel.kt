@@ -0,0 +1,381 @@
+package com.github.k1rakishou.chan.features.bookmarks
+
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.features.bookmarks.data.GroupOfThreadBookmarkItemViews
+import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkItemView
+import com.github.k1rakishou.common.mutableListWithCap
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+
+/**
+ * Grouped, sorted and filtered list of bookmarks shown on the bookmarks screen. After the list is
+ * built once with [reset] the updated bookmarks (which is what the bookmark watcher produces every
+ * time it fetches the bookmarked threads) are moved to their new positions inside of their groups
+ * with [update] instead of grouping, sorting and filtering all of the bookmarks again. Each group is
+ * kept sorted in a list so the new position of a bookmark is found with a binary search.
+ *
+ * The returned [Change]s describe what happened to the visible part of the list (the bookmarks of
+ * the collapsed groups are not visible) in the order they were applied.
+ *
+ * Not thread-safe.
+ * */
+class BookmarksListModel {
+  private var config: Config? = null
+  private var query: String? = null
+  private var comparator: Comparator<Entry> = compareBy { entry -> entry.entryIndex }
+
+  private val groups = mutableListOf<GroupState>()
+  private val placements = mutableMapOf<ChanDescriptor.ThreadDescriptor, MutableList<Placement>>()
+
+  fun isInitialized(config: Config): Boolean = this.config == config
+
+  /**
+   * [groupedBookmarks] must be in the order returned by ThreadBookmarkGroupManager.groupBookmarks()
+   * (called without a search query), that is ordered groups of bookmarks in their custom order.
+   * */
+  fun reset(
+    config: Config,
+    groupedBookmarks: List<GroupOfThreadBookmarkItemViews>,
+    query: String?
+  ): List<Change> {
+    this.config = config
+    this.query = query
+    this.comparator = createComparator(config)
+
+    groups.clear()
+    placements.clear()
+
+    groupedBookmarks.forEach { groupOfThreadBookmarkItemViews ->
+      val groupState = GroupState(
+        groupId = groupOfThreadBookmarkItemViews.groupId,
+        groupName = groupOfThreadBookmarkItemViews.groupName,
+        isExpanded = groupOfThreadBookmarkItemViews.isExpanded
+      )
+
+      groupOfThreadBookmarkItemViews.threadBookmarkItemViews.forEachIndexed { entryIndex, threadBookmarkItemView ->
+        val entry = Entry(threadBookmarkItemView, entryIndex)
+
+        groupState.sorted += entry
+        if (threadBookmarkItemView.threadBookmarkStats.watching) {
+          ++groupState.watchingCount
+        }
+
+        val placement = Placement(groupState, entryIndex, threadBookmarkItemView)
+        placements.getOrPut(threadBookmarkItemView.threadDescriptor) { mutableListOf() } += placement
+      }
+
+      groupState.sorted.sortWith(comparator)
+      groupState.updateInfoText()
+      groupState.refilter(query)
+
+      groups += groupState
+    }
+
+    return listOf(Change.Reset)
+  }
+
+  /**
+   * Returns null when one of the bookmarks is not in the list (a new bookmark or a bookmark that
+   * was moved into a different group), the list must then be built again with [reset].
+   * */
+  fun update(threadBookmarkItemViews: Collection<ThreadBookmarkItemView>): List<Change>? {
+    checkNotNull(config) { "reset() must be called first" }
+
+    if (threadBookmarkItemViews.any { threadBookmarkItemView -> threadBookmarkItemView.threadDescriptor !in placements }) {
+      return null
+    }
+
+    val changes = mutableListOf<Change>()
+
+    threadBookmarkItemViews.forEach { threadBookmarkItemView ->
+      placements[threadBookmarkItemView.threadDescriptor]!!.forEach { placement ->
+        updateInGroup(placement, threadBookmarkItemView, changes)
+      }
+    }
+
+    val changedGroupIds = changes
+      .filterIsInstance<Change.GroupItemsChanged>()
+      .mapTo(mutableSetOf()) { change -> change.groupId }
+
+    if (changedGroupIds.isEmpty()) {
+      return changes
+    }
+
+    // The bookmarks of these groups have to be displayed again anyway so their item changes are useless
+    return changes.filter { change ->
+      change is Change.GroupItemsChanged
+        || change is Change.GroupUpdated
+        || change.groupId() !in changedGroupIds
+    }
+  }
+
+  /**
+   * The order of the bookmarks does not depend on the search query so only the visible bookmarks of
+   * every group are filtered again.
+   * */
+  fun updateQuery(query: String?): List<Change> {
+    if (this.query == query) {
+      return emptyList()
+    }
+
+    this.query = query
+    groups.forEach { groupState -> groupState.refilter(query) }
+
+    return listOf(Change.Reset)
+  }
+
+  fun isEmpty(): Boolean = groups.isEmpty()
+
+  /**
+   * The same list as the one that is built from scratch by grouping, sorting and filtering all of
+   * the bookmarks.
+   * */
+  fun toGroupedBookmarks(): List<GroupOfThreadBookmarkItemViews> {
+    val hasSearchQuery = query != null
+
+    return groups.map { groupState ->
+      val threadBookmarkItemViews = mutableListWithCap<ThreadBookmarkItemView>(groupState.visible.size)
+      groupState.visible.forEach { entry -> threadBookmarkItemViews += entry.item }
+
+      GroupOfThreadBookmarkItemViews(
+        groupId = groupState.groupId,
+        groupName = groupState.groupName,
+        groupInfoText = groupState.infoText,
+        isExpanded = groupState.isExpanded || hasSearchQuery,
+        threadBookmarkItemViews = threadBookmarkItemViews
+      )
+    }
+  }
+
+  private fun updateInGroup(
+    placement: Placement,
+    threadBookmarkItemView: ThreadBookmarkItemView,
+    changes: MutableList<Change>
+  ) {
+    val groupState = placement.groupState
+
+    val oldSortedIndex = groupState.sorted.binarySearch(placement.entry(), comparator)
+    check(oldSortedIndex >= 0) { "Entry ${threadBookmarkItemView.threadDescriptor} not found" }
+
+    val oldEntry = groupState.sorted[oldSortedIndex]
+    if (oldEntry.item == threadBookmarkItemView) {
+      return
+    }
+
+    val newEntry = Entry(threadBookmarkItemView, placement.entryIndex)
+    val isGroupVisible = groupState.isExpanded || query != null
+
+    groupState.sorted.removeAt(oldSortedIndex)
+    val newSortedIndex = groupState.sorted.binarySearch(newEntry, comparator)
+    check(newSortedIndex < 0) { "Duplicate entry ${threadBookmarkItemView.threadDescriptor}" }
+    groupState.sorted.add(-(newSortedIndex + 1), newEntry)
+
+    placement.item = threadBookmarkItemView
+
+    val oldWatching = oldEntry.item.threadBookmarkStats.watching
+    val newWatching = threadBookmarkItemView.threadBookmarkStats.watching
+
+    if (oldWatching != newWatching) {
+      groupState.watchingCount += if (newWatching) 1 else -1
+
+      val oldGroupMatches = groupState.groupMatches(query)
+      groupState.updateInfoText()
+
+      // The group header is visible even when the group is collapsed
+      changes += Change.GroupUpdated(groupState.groupId)
+
+      if (oldGroupMatches != groupState.groupMatches(query)) {
+        // Either all of the bookmarks of this group are visible now or only the ones that match
+        groupState.refilter(query)
+
+        if (isGroupVisible) {
+          changes += Change.GroupItemsChanged(groupState.groupId)
+        }
+
+        return
+      }
+    }
+
+    val oldVisibleIndex = groupState.visible.binarySearch(oldEntry, comparator)
+    if (oldVisibleIndex >= 0) {
+      groupState.visible.removeAt(oldVisibleIndex)
+    }
+
+    var newVisibleIndex = -1
+    if (groupState.isVisible(newEntry, query)) {
+      newVisibleIndex = -(groupState.visible.binarySearch(newEntry, comparator) + 1)
+      groupState.visible.add(newVisibleIndex, newEntry)
+    }
+
+    if (!isGroupVisible) {
+      return
+    }
+
+    val groupId = groupState.groupId
+    val threadDescriptor = threadBookmarkItemView.threadDescriptor
+
+    when {
+      oldVisibleIndex >= 0 && newVisibleIndex >= 0 -> {
+        if (oldVisibleIndex == newVisibleIndex) {
+          changes += Change.ItemUpdated(groupId, threadDescriptor, newVisibleIndex)
+        } else {
+          changes += Change.ItemMoved(groupId, threadDescriptor, oldVisibleIndex, newVisibleIndex)
+        }
+      }
+      oldVisibleIndex >= 0 -> changes += Change.ItemRemoved(groupId, threadDescriptor, oldVisibleIndex)
+      newVisibleIndex >= 0 -> changes += Change.ItemInserted(groupId, threadDescriptor, newVisibleIndex)
+    }
+  }
+
+  data class Config(
+    val sortOrder: ChanSettings.BookmarksSortOrder,
+    val moveDeadBookmarksToEnd: Boolean,
+    val moveBookmarksWithUnreadRepliesToTop: Boolean
+  )
+
+  sealed class Change {
+
+    fun groupId(): String? {
+      return when (this) {
+        Reset -> null
+        is GroupUpdated -> groupId
+        is GroupItemsChanged -> groupId
+        is ItemUpdated -> groupId
+        is ItemMoved -> groupId
+        is ItemInserted -> groupId
+        is ItemRemoved -> groupId
+      }
+    }
+
+    object Reset : Change()
+    data class GroupUpdated(val groupId: String) : Change()
+    data class GroupItemsChanged(val groupId: String) : Change()
+    data class ItemUpdated(
+      val groupId: String,
+      val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+      val position: Int
+    ) : Change()
+
+    data class ItemMoved(
+      val groupId: String,
+      val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+      val fromPosition: Int,
+      val toPosition: Int
+    ) : Change()
+
+    data class ItemInserted(
+      val groupId: String,
+      val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+      val position: Int
+    ) : Change()
+
+    data class ItemRemoved(
+      val groupId: String,
+      val threadDescriptor: ChanDescriptor.ThreadDescriptor,
+      val position: Int
+    ) : Change()
+  }
+
+  private class Entry(
+    val item: ThreadBookmarkItemView,
+    // Position of the bookmark in its group in the custom order
+    val entryIndex: Int
+  )
+
+  private class Placement(
+    val groupState: GroupState,
+    val entryIndex: Int,
+    // The current version of the bookmark in groupState.sorted
+    var item: ThreadBookmarkItemView
+  ) {
+    fun entry(): Entry = Entry(item, entryIndex)
+  }
+
+  private class GroupState(
+    val groupId: String,
+    val groupName: String,
+    val isExpanded: Boolean
+  ) {
+    val sorted = mutableListOf<Entry>()
+    // Subsequence of sorted that matches the search query
+    val visible = mutableListOf<Entry>()
+    var watchingCount = 0
+    var infoText = ""
+      private set
+
+    fun updateInfoText() {
+      infoText = GroupOfThreadBookmarkItemViews.formatGroupInfoText(
+        groupName = groupName,
+        watchingBookmarkInGroupCount = watchingCount,
+        totalBookmarksInGroupCount = sorted.size
+      )
+    }
+
+    fun groupMatches(query: String?): Boolean {
+      return query == null || infoText.contains(query, ignoreCase = true)
+    }
+
+    fun isVisible(entry: Entry, query: String?): Boolean {
+      return groupMatches(query) || entry.item.title.contains(query!!, ignoreCase = true)
+    }
+
+    fun refilter(query: String?) {
+      visible.clear()
+
+      if (groupMatches(query)) {
+        visible.addAll(sorted)
+        return
+      }
+
+      sorted.forEach { entry ->
+        if (isVisible(entry, query)) {
+          visible += entry
+        }
+      }
+    }
+  }
+
+  companion object {
+
+    /**
+     * The same order the bookmarks got by sorting them with the sort order comparator, then moving
+     * the dead bookmarks to the end and then moving the bookmarks with unread replies to the top
+     * (each one of those being a stable sort of the bookmarks in their custom order).
+     * */
+    @Suppress("WHEN_ENUM_CAN_BE_NULL_IN_JAVA")
+    private fun createComparator(config: Config): Comparator<Entry> {
+      val sortOrder = config.sortOrder
+
+      val sortOrderComparator: Comparator<Entry> = when (sortOrder) {
+        ChanSettings.BookmarksSortOrder.CreatedOnAscending -> compareBy { entry -> entry.item.createdOn }
+        ChanSettings.BookmarksSortOrder.CreatedOnDescending -> compareByDescending { entry -> entry.item.createdOn }
+        ChanSettings.BookmarksSortOrder.ThreadIdAscending -> compareBy { entry -> entry.item.threadDescriptor }
+        ChanSettings.BookmarksSortOrder.ThreadIdDescending -> compareByDescending { entry -> entry.item.threadDescriptor }
+        ChanSettings.BookmarksSortOrder.UnreadRepliesAscending -> compareBy { entry -> entry.item.threadBookmarkStats.newQuotes }
+        ChanSettings.BookmarksSortOrder.UnreadRepliesDescending -> compareByDescending { entry -> entry.item.threadBookmarkStats.newQuotes }
+        ChanSettings.BookmarksSortOrder.UnreadPostsAscending -> compareBy { entry -> entry.item.threadBookmarkStats.newPosts }
+        ChanSettings.BookmarksSortOrder.UnreadPostsDescending -> compareByDescending { entry -> entry.item.threadBookmarkStats.newPosts }
+        ChanSettings.BookmarksSortOrder.CustomAscending -> compareBy { entry -> entry.entryIndex }
+        ChanSettings.BookmarksSortOrder.CustomDescending -> compareByDescending { entry -> entry.entryIndex }
+      }
+
+      // The custom order makes the order total
+      var comparator = sortOrderComparator.thenBy { entry -> entry.entryIndex }
+
+      if (config.moveDeadBookmarksToEnd) {
+        comparator = compareBy<Entry> { entry -> entry.item.threadBookmarkStats.isDeadOrNotWatching() }
+          .then(comparator)
+      }
+
+      val sortedByUnreadReplies = sortOrder == ChanSettings.BookmarksSortOrder.UnreadRepliesAscending
+        || sortOrder == ChanSettings.BookmarksSortOrder.UnreadRepliesDescending
+
+      if (config.moveBookmarksWithUnreadRepliesToTop && !sortedByUnreadReplies) {
+        comparator = compareByDescending<Entry> { entry -> entry.item.threadBookmarkStats.newQuotes }
+          .then(comparator)
+      }
+
+      return comparator
+    }
+  }
+
+}
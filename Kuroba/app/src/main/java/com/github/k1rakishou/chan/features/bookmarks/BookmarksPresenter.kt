@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.features.bookmarks
 
+import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.BasePresenter
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
@@ -8,15 +9,13 @@ import com.github.k1rakishou.chan.core.manager.PageRequestManager
 import com.github.k1rakishou.chan.core.manager.ThreadBookmarkGroupManager
 import com.github.k1rakishou.chan.core.manager.ThreadDownloadManager
 import com.github.k1rakishou.chan.features.bookmarks.data.BookmarksControllerState
-import com.github.k1rakishou.chan.features.bookmarks.data.GroupOfThreadBookmarkItemViews
 import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkItemView
 import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkSelection
 import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkStats
 import com.github.k1rakishou.chan.utils.BackgroundUtils
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.errorMessageOrClassName
-import com.github.k1rakishou.common.isNotNullNorEmpty
-import com.github.k1rakishou.common.mutableIteration
+import com.github.k1rakishou.common.withLockNonCancellable
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkView
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -30,8 +29,10 @@ import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.collect
 import kotlinx.coroutines.flow.debounce
+import kotlinx.coroutines.flow.onEach
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.withContext
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.time.Duration
@@ -50,6 +51,12 @@ class BookmarksPresenter(
   private val bookmarksRefreshed = AtomicBoolean(false)
   private val isReorderingMode = AtomicBoolean(false)
 
+  private val bookmarksListModelMutex = Mutex()
+  @GuardedBy("bookmarksListModelMutex")
+  private val bookmarksListModel = BookmarksListModel()
+  @GuardedBy("itself")
+  private val pendingBookmarkChanges = mutableListOf<BookmarksManager.BookmarkChange>()
+
   private val bookmarksControllerStateSubject = PublishProcessor.create<BookmarksControllerState>()
     .toSerialized()
 
@@ -63,12 +70,24 @@ class BookmarksPresenter(
     scope.launch {
       scope.launch {
         bookmarksManager.listenForBookmarksChanges()
+          .onEach { bookmarkChange ->
+            // debounce() drops all but the last change so they are accumulated here
+            synchronized(pendingBookmarkChanges) { pendingBookmarkChanges += bookmarkChange }
+          }
           .debounce(Duration.milliseconds(100))
           .collect {
             withContext(Dispatchers.Default) {
               Logger.d(TAG, "calling showBookmarks() because bookmarks have changed")
 
-              ModularResult.Try { showBookmarks() }.safeUnwrap { error ->
+              val bookmarkChanges = synchronized(pendingBookmarkChanges) {
+                val bookmarkChanges = pendingBookmarkChanges.toList()
+                pendingBookmarkChanges.clear()
+                bookmarkChanges
+              }
+
+              val bookmarksUpdate = BookmarksUpdate.fromBookmarkChanges(bookmarkChanges)
+
+              ModularResult.Try { showBookmarks(bookmarksUpdate = bookmarksUpdate) }.safeUnwrap { error ->
                 Logger.e(TAG, "showBookmarks() listenForBookmarksChanges error", error)
                 setState(BookmarksControllerState.Error(error.errorMessageOrClassName()))
 
@@ -85,7 +104,7 @@ class BookmarksPresenter(
             withContext(Dispatchers.Default) {
               Logger.d(TAG, "calling showBookmarks() because bookmark selection has changed")
 
-              ModularResult.Try { showBookmarks() }.safeUnwrap { error ->
+              ModularResult.Try { showBookmarks(bookmarksUpdate = BookmarksUpdate.AllBookmarks) }.safeUnwrap { error ->
                 Logger.e(TAG, "showBookmarks() listenForSelectionChanges error", error)
                 setState(BookmarksControllerState.Error(error.errorMessageOrClassName()))
 
@@ -107,7 +126,7 @@ class BookmarksPresenter(
             withContext(Dispatchers.Default) {
               Logger.d(TAG, "calling showBookmarks() because search query was entered")
 
-              ModularResult.Try { showBookmarks() }.safeUnwrap { error ->
+              ModularResult.Try { showBookmarks(bookmarksUpdate = BookmarksUpdate.Query) }.safeUnwrap { error ->
                 Logger.e(TAG, "showBookmarks() searchSubject error", error)
                 setState(BookmarksControllerState.Error(error.errorMessageOrClassName()))
 
@@ -285,11 +304,13 @@ class BookmarksPresenter(
     }
   }
 
-  private suspend fun showBookmarks(loadingStateCancellationJob: Job? = null) {
+  private suspend fun showBookmarks(
+    loadingStateCancellationJob: Job? = null,
+    bookmarksUpdate: BookmarksUpdate = BookmarksUpdate.Full
+  ) {
     BackgroundUtils.ensureBackgroundThread()
     bookmarksManager.awaitUntilInitialized()
 
-    val isWatcherEnabled = ChanSettings.watchEnabled.get()
     val searchQuery = searchFlow.value as? SearchQuery.Searching
 
     val query = if (searchQuery?.query?.length ?: 0 >= MIN_QUERY_LENGTH) {
@@ -298,184 +319,139 @@ class BookmarksPresenter(
       null
     }
 
-    Logger.d(TAG, "showBookmarks($query)")
-
-    val downloadingThreadDescriptors = threadDownloadManager.getDownloadingThreadDescriptors()
-
-    val threadBookmarkItemViewList = bookmarksManager
-      .mapAllBookmarks<ThreadBookmarkItemView> { threadBookmarkView ->
-        val title = threadBookmarkView.title
-          ?: "No title"
-
-        val threadBookmarkStats = getThreadBookmarkStats(
-          isWatcherEnabled = isWatcherEnabled,
-          threadBookmarkView = threadBookmarkView,
-          downloadingThreadDescriptors = downloadingThreadDescriptors
-        )
-
-        val selection = if (bookmarksSelectionHelper.isInSelectionMode()) {
-          val isSelected = bookmarksSelectionHelper.isSelected(threadBookmarkView.threadDescriptor)
-          ThreadBookmarkSelection(isSelected)
-        } else {
-          null
-        }
+    Logger.d(TAG, "showBookmarks($query, ${bookmarksUpdate})")
 
-        return@mapAllBookmarks ThreadBookmarkItemView(
-          threadDescriptor = threadBookmarkView.threadDescriptor,
-          title = title,
-          highlight = threadBookmarkView.threadDescriptor in bookmarksToHighlight,
-          thumbnailUrl = threadBookmarkView.thumbnailUrl,
-          threadBookmarkStats = threadBookmarkStats,
-          selection = selection,
-          createdOn = threadBookmarkView.createdOn
-        )
-      }
-
-    val groupedBookmarks = threadBookmarkGroupManager.groupBookmarks(
-      threadBookmarkViewList = threadBookmarkItemViewList.toList(),
-      bookmarksToHighlight = bookmarksToHighlight,
-      hasSearchQuery = query.isNotNullNorEmpty()
+    val config = BookmarksListModel.Config(
+      sortOrder = ChanSettings.bookmarksSortOrder.get(),
+      moveDeadBookmarksToEnd = ChanSettings.moveNotActiveBookmarksToBottom.get(),
+      moveBookmarksWithUnreadRepliesToTop = ChanSettings.moveBookmarksWithUnreadRepliesToTop.get()
     )
 
-    val groupedFilteredBookmarks = if (query.isNotNullNorEmpty()) {
-      processSearchQuery(groupedBookmarks, query)
-    } else {
-      groupedBookmarks
-    }
-
-    // The function call order matters!
-    // First we need to do the general sorting.
-    sortBookmarks(groupedFilteredBookmarks)
-
-    // Then we need to move dead bookmarks to bottom.
-    moveDeadBookmarksToEnd(groupedFilteredBookmarks)
-
-    // Bookmarks with replies have the highest priority, so we are moving them at the latest step.
-    moveBookmarksWithUnreadRepliesToTop(groupedFilteredBookmarks)
-
-    // Cancel the setState(Loading) event
-    loadingStateCancellationJob?.let { job ->
-      if (!job.isCancelled) {
-        job.cancel()
-      }
-    }
+    val state = bookmarksListModelMutex.withLockNonCancellable {
+      val changes = updateBookmarksListModel(config, query, bookmarksUpdate)
 
-    if (groupedFilteredBookmarks.isEmpty()) {
-      if (query != null) {
-        setState(BookmarksControllerState.NothingFound(query))
-      } else {
-        setState(BookmarksControllerState.Empty)
+      // Cancel the setState(Loading) event
+      loadingStateCancellationJob?.let { job ->
+        if (!job.isCancelled) {
+          job.cancel()
+        }
       }
 
-      return
-    }
-
-    setState(BookmarksControllerState.Data(isReorderingMode.get(), groupedFilteredBookmarks))
-  }
-
-  private fun processSearchQuery(
-    groupedBookmarks: List<GroupOfThreadBookmarkItemViews>,
-    query: String
-  ): List<GroupOfThreadBookmarkItemViews> {
-    val resultGroupedBookmarks = mutableListOf<GroupOfThreadBookmarkItemViews>()
-
-    for (groupedBookmark in groupedBookmarks) {
-      if (groupedBookmark.groupInfoText.contains(query, ignoreCase = true)) {
-        resultGroupedBookmarks += groupedBookmark
-        continue
+      if (changes.isEmpty()) {
+        // Nothing visible has changed
+        return@withLockNonCancellable null
       }
 
-      groupedBookmark.threadBookmarkItemViews.mutableIteration { mutableIterator, threadBookmarkItemView ->
-        if (!threadBookmarkItemView.title.contains(query, ignoreCase = true)) {
-          mutableIterator.remove()
+      if (bookmarksListModel.isEmpty()) {
+        if (query != null) {
+          return@withLockNonCancellable BookmarksControllerState.NothingFound(query)
         }
 
-        return@mutableIteration true
+        return@withLockNonCancellable BookmarksControllerState.Empty
       }
 
-      resultGroupedBookmarks += groupedBookmark
+      return@withLockNonCancellable BookmarksControllerState.Data(
+        isReorderingMode = isReorderingMode.get(),
+        groupedBookmarks = bookmarksListModel.toGroupedBookmarks()
+      )
     }
 
-    return resultGroupedBookmarks
+    if (state != null) {
+      setState(state)
+    }
   }
 
-  private fun moveBookmarksWithUnreadRepliesToTop(
-    bookmarks: List<GroupOfThreadBookmarkItemViews>
-  ) {
-    if (!ChanSettings.moveBookmarksWithUnreadRepliesToTop.get()) {
-      return
-    }
+  private suspend fun updateBookmarksListModel(
+    config: BookmarksListModel.Config,
+    query: String?,
+    bookmarksUpdate: BookmarksUpdate
+  ): List<BookmarksListModel.Change> {
+    require(bookmarksListModelMutex.isLocked) { "Mutex is not locked!" }
+
+    if (bookmarksUpdate !is BookmarksUpdate.Full && bookmarksListModel.isInitialized(config)) {
+      val threadBookmarkItemViews = when (bookmarksUpdate) {
+        BookmarksUpdate.Full -> null
+        BookmarksUpdate.Query -> emptyList()
+        BookmarksUpdate.AllBookmarks -> createThreadBookmarkItemViews(null)
+        is BookmarksUpdate.Bookmarks -> createThreadBookmarkItemViews(bookmarksUpdate.threadDescriptors)
+      }
 
-    val bookmarksSortOrder = ChanSettings.bookmarksSortOrder.get()
+      if (threadBookmarkItemViews != null) {
+        val queryChanges = bookmarksListModel.updateQuery(query)
 
-    if (bookmarksSortOrder == ChanSettings.BookmarksSortOrder.UnreadRepliesAscending
-      || bookmarksSortOrder == ChanSettings.BookmarksSortOrder.UnreadRepliesDescending) {
-      return
-    }
+        val bookmarkChanges = bookmarksListModel.update(threadBookmarkItemViews)
+        if (bookmarkChanges != null) {
+          Logger.d(TAG, "updateBookmarksListModel() updated ${threadBookmarkItemViews.size} bookmarks, " +
+            "changes: ${queryChanges.size + bookmarkChanges.size}")
 
-    bookmarks.forEach { groupOfThreadBookmarkItemViews ->
-      groupOfThreadBookmarkItemViews.threadBookmarkItemViews.sortWith(
-        MOVE_BOOKMARKS_WITH_UNREAD_REPLIES_TO_TOP_COMPARATOR
-      )
+          return queryChanges + bookmarkChanges
+        }
+      }
     }
+
+    val groupedBookmarks = threadBookmarkGroupManager.groupBookmarks(
+      threadBookmarkViewList = createThreadBookmarkItemViews(null)!!,
+      bookmarksToHighlight = bookmarksToHighlight,
+      hasSearchQuery = false
+    )
+
+    return bookmarksListModel.reset(config, groupedBookmarks, query)
   }
 
-  private fun moveDeadBookmarksToEnd(
-    bookmarks: List<GroupOfThreadBookmarkItemViews>
-  ) {
-    if (!ChanSettings.moveNotActiveBookmarksToBottom.get()) {
-      return
-    }
+  /**
+   * Returns null when one of the bookmarks does not exist anymore. When [threadDescriptors] is null
+   * all bookmarks are returned.
+   * */
+  private suspend fun createThreadBookmarkItemViews(
+    threadDescriptors: Collection<ChanDescriptor.ThreadDescriptor>?
+  ): List<ThreadBookmarkItemView>? {
+    val isWatcherEnabled = ChanSettings.watchEnabled.get()
+    val downloadingThreadDescriptors = threadDownloadManager.getDownloadingThreadDescriptors()
 
-    bookmarks.forEach { groupOfThreadBookmarkItemViews ->
-      groupOfThreadBookmarkItemViews.threadBookmarkItemViews.sortWith(
-        MOVE_DEAD_BOOKMARKS_TO_END_COMPARATOR
-      )
+    val mapper = { threadBookmarkView: ThreadBookmarkView ->
+      createThreadBookmarkItemView(threadBookmarkView, isWatcherEnabled, downloadingThreadDescriptors)
     }
-  }
 
-  @Suppress("WHEN_ENUM_CAN_BE_NULL_IN_JAVA")
-  private fun sortBookmarks(
-    bookmarks: List<GroupOfThreadBookmarkItemViews>
-  ) {
-    val comparator = when (val sortOrder = ChanSettings.bookmarksSortOrder.get()) {
-      ChanSettings.BookmarksSortOrder.CreatedOnAscending -> BOOKMARK_CREATED_ON_ASC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.CreatedOnDescending -> BOOKMARK_CREATED_ON_DESC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.ThreadIdAscending -> THREAD_ID_ASC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.ThreadIdDescending -> THREAD_ID_DESC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.UnreadRepliesAscending -> UNREAD_REPLIES_ASC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.UnreadRepliesDescending -> UNREAD_REPLIES_DESC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.UnreadPostsAscending -> UNREAD_POSTS_ASC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.UnreadPostsDescending -> UNREAD_POSTS_DESC_COMPARATOR
-      ChanSettings.BookmarksSortOrder.CustomAscending,
-      ChanSettings.BookmarksSortOrder.CustomDescending -> {
-        handleCustomOrder(sortOrder, bookmarks)
-        return
-      }
+    if (threadDescriptors == null) {
+      return bookmarksManager.mapAllBookmarks(mapper)
     }
 
-    bookmarks.forEach { groupOfThreadBookmarkItemViews ->
-      groupOfThreadBookmarkItemViews.threadBookmarkItemViews.sortWith(comparator)
+    return threadDescriptors.map { threadDescriptor ->
+      bookmarksManager.mapBookmark(threadDescriptor, mapper)
+        ?: return null
     }
   }
 
-  private fun handleCustomOrder(
-    sortOrder: ChanSettings.BookmarksSortOrder?,
-    bookmarks: List<GroupOfThreadBookmarkItemViews>
-  ) {
-    if (sortOrder == ChanSettings.BookmarksSortOrder.CustomAscending) {
-      return
-    }
+  private fun createThreadBookmarkItemView(
+    threadBookmarkView: ThreadBookmarkView,
+    isWatcherEnabled: Boolean,
+    downloadingThreadDescriptors: Set<ChanDescriptor.ThreadDescriptor>
+  ): ThreadBookmarkItemView {
+    val title = threadBookmarkView.title
+      ?: "No title"
 
-    check(sortOrder == ChanSettings.BookmarksSortOrder.CustomDescending) {
-      "Unexpected sortOrder! sortOrder: $sortOrder"
-    }
+    val threadBookmarkStats = getThreadBookmarkStats(
+      isWatcherEnabled = isWatcherEnabled,
+      threadBookmarkView = threadBookmarkView,
+      downloadingThreadDescriptors = downloadingThreadDescriptors
+    )
 
-    bookmarks.forEach { groupOfThreadBookmarkItemViews ->
-      groupOfThreadBookmarkItemViews.threadBookmarkItemViews.reverse()
+    val selection = if (bookmarksSelectionHelper.isInSelectionMode()) {
+      val isSelected = bookmarksSelectionHelper.isSelected(threadBookmarkView.threadDescriptor)
+      ThreadBookmarkSelection(isSelected)
+    } else {
+      null
     }
 
-    return
+    return ThreadBookmarkItemView(
+      threadDescriptor = threadBookmarkView.threadDescriptor,
+      title = title,
+      highlight = threadBookmarkView.threadDescriptor in bookmarksToHighlight,
+      thumbnailUrl = threadBookmarkView.thumbnailUrl,
+      threadBookmarkStats = threadBookmarkStats,
+      selection = selection,
+      createdOn = threadBookmarkView.createdOn
+    )
   }
 
   private fun getThreadBookmarkStats(
@@ -525,33 +501,43 @@ class BookmarksPresenter(
     class Searching(val query: String) : SearchQuery()
   }
 
+  private sealed class BookmarksUpdate {
+    // Groups, sorts and filters all bookmarks again
+    object Full : BookmarksUpdate()
+    object Query : BookmarksUpdate()
+    // The bookmarks themselves have not changed but the way they are displayed has (e.g. selection)
+    object AllBookmarks : BookmarksUpdate()
+    class Bookmarks(val threadDescriptors: Set<ChanDescriptor.ThreadDescriptor>) : BookmarksUpdate() {
+      override fun toString(): String = "Bookmarks(${threadDescriptors.size})"
+    }
+
+    override fun toString(): String = javaClass.simpleName
+
+    companion object {
+      fun fromBookmarkChanges(bookmarkChanges: List<BookmarksManager.BookmarkChange>): BookmarksUpdate {
+        val threadDescriptors = mutableSetOf<ChanDescriptor.ThreadDescriptor>()
+
+        bookmarkChanges.forEach { bookmarkChange ->
+          if (bookmarkChange !is BookmarksManager.BookmarkChange.BookmarksUpdated) {
+            // Bookmarks were created or deleted, the groups have changed
+            return Full
+          }
+
+          threadDescriptors += bookmarkChange.threadDescriptors
+            ?: return Full
+        }
+
+        if (threadDescriptors.isEmpty()) {
+          return Full
+        }
+
+        return Bookmarks(threadDescriptors)
+      }
+    }
+  }
+
   companion object {
     private const val TAG = "BookmarksPresenter"
     private const val MIN_QUERY_LENGTH = 3
-
-    private val BOOKMARK_CREATED_ON_ASC_COMPARATOR =
-      compareBy<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.createdOn }
-    private val BOOKMARK_CREATED_ON_DESC_COMPARATOR =
-      compareByDescending<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.createdOn }
-
-    private val THREAD_ID_ASC_COMPARATOR =
-      compareBy<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadDescriptor }
-    private val THREAD_ID_DESC_COMPARATOR =
-      compareByDescending<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadDescriptor }
-
-    private val UNREAD_REPLIES_ASC_COMPARATOR =
-      compareBy<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadBookmarkStats.newQuotes }
-    private val UNREAD_REPLIES_DESC_COMPARATOR =
-      compareByDescending<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadBookmarkStats.newQuotes }
-
-    private val UNREAD_POSTS_ASC_COMPARATOR =
-      compareBy<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadBookmarkStats.newPosts }
-    private val UNREAD_POSTS_DESC_COMPARATOR =
-      compareByDescending<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadBookmarkStats.newPosts }
-
-    private val MOVE_DEAD_BOOKMARKS_TO_END_COMPARATOR =
-      compareBy<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadBookmarkStats.isDeadOrNotWatching() }
-    private val MOVE_BOOKMARKS_WITH_UNREAD_REPLIES_TO_TOP_COMPARATOR =
-      compareByDescending<ThreadBookmarkItemView> { bookmarkItemView -> bookmarkItemView.threadBookmarkStats.newQuotes }
   }
 }
\ No newline at end of file
@@ -1,8 +1,26 @@
 package com.github.k1rakishou.chan.features.bookmarks.data
 
+import java.util.*
+
 data class GroupOfThreadBookmarkItemViews(
   val groupId: String,
+  val groupName: String,
   val groupInfoText: String,
   val isExpanded: Boolean,
   val threadBookmarkItemViews: MutableList<ThreadBookmarkItemView>
-)
\ No newline at end of file
+) {
+
+  companion object {
+    fun formatGroupInfoText(
+      groupName: String,
+      watchingBookmarkInGroupCount: Int,
+      totalBookmarksInGroupCount: Int
+    ): String {
+      return String.format(
+        Locale.ENGLISH,
+        "${groupName} (${watchingBookmarkInGroupCount}/${totalBookmarksInGroupCount})"
+      )
+    }
+  }
+
+}
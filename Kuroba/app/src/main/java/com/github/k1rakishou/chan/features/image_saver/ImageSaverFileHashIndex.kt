@@ -0,0 +1,134 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import com.github.k1rakishou.model.data.download.ImageSaverFileHash
+
+/**
+ * An index of the image saver output directories keyed by file MD5 and size. Files written by the
+ * image saver are added to the index with the hash calculated while the file was being written, so
+ * they never have to be read again to find out whether an image was already saved. Files that were
+ * not written by us (or were modified by somebody else since, which is detected by comparing length
+ * and last modified time) are hashed lazily, once, when they are first looked at.
+ * */
+class ImageSaverFileHashIndex(
+  private val storage: Storage,
+  private val fileAccessor: FileAccessor
+) {
+
+  /**
+   * Whether a file named [fileName] in the directory [dirUri] has the [fileMd5] hash and the
+   * [fileSize] size.
+   * */
+  suspend fun isSameFile(dirUri: String, fileName: String, fileMd5: String, fileSize: Long): Boolean {
+    val fileHash = getActualFileHash(dirUri, fileName)
+      ?: return false
+
+    return fileHash.fileSize == fileSize && fileHash.fileMd5 == normalizeMd5(fileMd5)
+  }
+
+  /**
+   * Looks for a file with the [fileMd5] hash and the [fileSize] size (with any name) in the
+   * directory [dirUri]. Returns its name or null if there is no such file.
+   * */
+  suspend fun findSameFile(dirUri: String, fileMd5: String, fileSize: Long): String? {
+    val normalizedMd5 = normalizeMd5(fileMd5)
+
+    for (candidate in storage.selectByHash(dirUri, normalizedMd5, fileSize)) {
+      val fileHash = revalidate(candidate)
+        ?: continue
+
+      if (fileHash.fileSize == fileSize && fileHash.fileMd5 == normalizedMd5) {
+        return fileHash.fileName
+      }
+    }
+
+    return null
+  }
+
+  suspend fun onFileWritten(dirUri: String, fileName: String, fileMd5: String, fileSize: Long) {
+    val lastModified = fileAccessor.lastModified(dirUri, fileName)
+
+    val fileHash = ImageSaverFileHash(
+      dirUri = dirUri,
+      fileName = fileName,
+      fileMd5 = normalizeMd5(fileMd5),
+      fileSize = fileSize,
+      lastModified = lastModified
+    )
+
+    storage.insertOrReplace(fileHash)
+  }
+
+  suspend fun onFileDeleted(dirUri: String, fileName: String) {
+    storage.delete(dirUri, fileName)
+  }
+
+  private suspend fun getActualFileHash(dirUri: String, fileName: String): ImageSaverFileHash? {
+    val fileHash = storage.select(dirUri, fileName)
+    if (fileHash != null) {
+      return revalidate(fileHash)
+    }
+
+    return hashAndStore(dirUri, fileName)
+  }
+
+  /**
+   * Returns the stored hash if the file wasn't changed since it was hashed, otherwise re-hashes the
+   * file. Returns null (and removes it from the index) if the file doesn't exist anymore.
+   * */
+  private suspend fun revalidate(fileHash: ImageSaverFileHash): ImageSaverFileHash? {
+    val length = fileAccessor.length(fileHash.dirUri, fileHash.fileName)
+    if (length < 0) {
+      storage.delete(fileHash.dirUri, fileHash.fileName)
+      return null
+    }
+
+    val lastModified = fileAccessor.lastModified(fileHash.dirUri, fileHash.fileName)
+    if (length == fileHash.fileSize && lastModified == fileHash.lastModified) {
+      return fileHash
+    }
+
+    return hashAndStore(fileHash.dirUri, fileHash.fileName)
+  }
+
+  private suspend fun hashAndStore(dirUri: String, fileName: String): ImageSaverFileHash? {
+    val length = fileAccessor.length(dirUri, fileName)
+    if (length < 0) {
+      storage.delete(dirUri, fileName)
+      return null
+    }
+
+    val lastModified = fileAccessor.lastModified(dirUri, fileName)
+    val fileMd5 = fileAccessor.md5(dirUri, fileName)
+      ?: return null
+
+    val fileHash = ImageSaverFileHash(
+      dirUri = dirUri,
+      fileName = fileName,
+      fileMd5 = normalizeMd5(fileMd5),
+      fileSize = length,
+      lastModified = lastModified
+    )
+
+    storage.insertOrReplace(fileHash)
+    return fileHash
+  }
+
+  private fun normalizeMd5(fileMd5: String): String = fileMd5.lowercase()
+
+  interface Storage {
+    suspend fun select(dirUri: String, fileName: String): ImageSaverFileHash?
+    suspend fun selectByHash(dirUri: String, fileMd5: String, fileSize: Long): List<ImageSaverFileHash>
+    suspend fun insertOrReplace(imageSaverFileHash: ImageSaverFileHash)
+    suspend fun delete(dirUri: String, fileName: String)
+  }
+
+  interface FileAccessor {
+    /**
+     * Returns -1 if the file does not exist.
+     * */
+    fun length(dirUri: String, fileName: String): Long
+    fun lastModified(dirUri: String, fileName: String): Long
+    fun md5(dirUri: String, fileName: String): String?
+  }
+
+}
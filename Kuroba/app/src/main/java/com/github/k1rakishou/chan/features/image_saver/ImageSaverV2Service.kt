@@ -131,7 +131,10 @@ class ImageSaverV2Service : Service() {
       imageSaverV2ServiceDelegate.get().downloadImages(imageSaverInputData)
     }
 
-    return START_STICKY
+    // If the process gets killed in the middle of a download we want the intent back so that the
+    // remaining (not yet completed) requests of this download are restarted (and resumed from where
+    // they stopped).
+    return START_REDELIVER_INTENT
   }
 
   private suspend fun convertInputData(intent: Intent): ImageDownloadInputData? {
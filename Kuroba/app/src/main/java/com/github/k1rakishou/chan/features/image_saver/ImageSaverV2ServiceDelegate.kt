@@ -29,21 +29,22 @@ import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.file.AbstractFile
 import com.github.k1rakishou.fsaf.file.DirectorySegment
 import com.github.k1rakishou.fsaf.file.FileSegment
+import com.github.k1rakishou.fsaf.file.RawFile
 import com.github.k1rakishou.fsaf.file.Segment
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.download.ImageDownloadRequest
+import com.github.k1rakishou.model.data.download.ImageSaverFileHash
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.model.repository.ChanPostImageRepository
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository
+import com.github.k1rakishou.model.repository.ImageSaverFileHashRepository
 import com.github.k1rakishou.persist_state.ImageSaverV2Options
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.Job
 import kotlinx.coroutines.ObsoleteCoroutinesApi
-import kotlinx.coroutines.async
-import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.channels.BufferOverflow
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.MutableSharedFlow
@@ -52,7 +53,6 @@ import kotlinx.coroutines.flow.asSharedFlow
 import kotlinx.coroutines.isActive
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.runInterruptible
-import kotlinx.coroutines.supervisorScope
 import kotlinx.coroutines.sync.Mutex
 import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
@@ -60,12 +60,17 @@ import okhttp3.HttpUrl
 import okhttp3.Request
 import okhttp3.ResponseBody
 import okhttp3.internal.closeQuietly
+import okio.ByteString.Companion.toByteString
+import java.io.File
 import java.io.IOException
 import java.io.InputStream
+import java.security.DigestInputStream
+import java.security.MessageDigest
 import java.util.*
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.time.ExperimentalTime
 import kotlin.time.measureTimedValue
@@ -82,6 +87,7 @@ class ImageSaverV2ServiceDelegate(
   private val siteResolver: SiteResolver,
   private val chanPostImageRepository: ChanPostImageRepository,
   private val imageDownloadRequestRepository: ImageDownloadRequestRepository,
+  private val imageSaverFileHashRepository: ImageSaverFileHashRepository,
   private val chanThreadManager: ChanThreadManager,
   private val threadDownloadManager: ThreadDownloadManager
 ) {
@@ -94,6 +100,17 @@ class ImageSaverV2ServiceDelegate(
   private val cancelNotificationJobMap = ConcurrentHashMap<String, Job>()
 
   private val serializedCoroutineExecutor = SerializedCoroutineExecutor(appScope)
+  private val resumableFileDownloader = ResumableFileDownloader(
+    okHttpClientProvider = { downloaderOkHttpClient.get().okHttpClient() }
+  )
+
+  // Output directories resolved by getFullFileUri() by their full path, used by fileHashIndex to
+  // access the files
+  private val outputDirectories = ConcurrentHashMap<String, AbstractFile>()
+  private val fileHashIndex = ImageSaverFileHashIndex(
+    storage = FileHashIndexStorage(),
+    fileAccessor = FileHashIndexFileAccessor()
+  )
 
   private val fileManager: FileManager
     get() = imageSaverFileManager.fileManager
@@ -120,6 +137,11 @@ class ImageSaverV2ServiceDelegate(
     Logger.d(TAG, "deleteDownload('$uniqueId')")
     ImageSaverV2Service.cancelNotification(notificationManagerCompat, uniqueId)
 
+    imageDownloadRequestRepository.selectMany(uniqueId)
+      .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.selectMany($uniqueId) error", error) }
+      .valueOrNull()
+      ?.forEach { imageDownloadRequest -> deletePartialFile(uniqueId, imageDownloadRequest.imageFullUrl) }
+
     imageDownloadRequestRepository.deleteByUniqueId(uniqueId)
       .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.deleteByUniqueId($uniqueId) error", error) }
       .ignore()
@@ -252,72 +274,89 @@ class ImageSaverV2ServiceDelegate(
         hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
       )
 
-      supervisorScope {
-        imageDownloadRequests
-          .chunked(appConstants.processorsCount * 2)
-          .forEach { imageDownloadRequestBatch ->
-            val updatedImageDownloadRequestBatch = imageDownloadRequestBatch.map { imageDownloadRequest ->
-              return@map appScope.async(Dispatchers.IO) {
-                val (outImageDownloadRequest, duration) = measureTimedValue {
-                  return@measureTimedValue downloadSingleImage(
-                    imageDownloadInputData = imageDownloadInputData,
-                    imageDownloadRequest = imageDownloadRequest,
-                    hasResultDirAccessErrors = hasResultDirAccessErrors,
-                    hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
-                    hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried,
-                    currentChanPostImage = currentChanPostImage,
-                    canceledRequests = canceledRequests,
-                    duplicates = duplicates,
-                    failedRequests = failedRequests,
-                    outputDirUri = outputDirUri,
-                    completedRequests = completedRequests
-                  )
-                }
-
-                if (verboseLogs) {
-                  Logger.d(TAG, "downloadSingleImage(${imageDownloadRequest.imageFullUrl}) took $duration")
-                }
-
-                return@async outImageDownloadRequest
-              }
-            }.awaitAll()
-
-            imageDownloadRequestRepository.completeMany(updatedImageDownloadRequestBatch)
-              .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.updateMany() error", error) }
-              .ignore()
-
-            val canceledNow = (getDownloadContext(imageDownloadInputData)?.isCanceled() ?: true)
-              || hasResultDirAccessErrors.get() || hasOutOfDiskSpaceErrors.get()
-
-            if (!canceledNow) {
-              val notificationSummary = extractNotificationSummaryText(
-                imageDownloadInputData = imageDownloadInputData,
-                currentChanPostImage = currentChanPostImage,
-                imageDownloadRequests = imageDownloadRequests,
-                isCompleted = false
-              )
-
-              // Progress event
-              emitNotificationUpdate(
-                uniqueId = imageDownloadInputData.uniqueId,
-                imageSaverOptionsJson = imageDownloadInputData.imageSaverOptionsJson,
-                completed = false,
-                notificationSummary = notificationSummary,
-                totalImagesCount = imageDownloadInputData.requestsCount(),
-                canceledRequests = canceledRequests.get(),
-                completedRequests = completedRequestsToDownloadedImagesResult(
-                  completedRequests = completedRequests,
-                  outputDirUri = outputDirUri
-                ),
-                duplicates = duplicates.get(),
-                failedRequests = failedRequests.get(),
-                hasResultDirAccessErrors = hasResultDirAccessErrors.get(),
-                hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors.get(),
-                hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
-              )
-            }
-          }
+      val processedRequests = mutableListOf<ImageDownloadRequest>()
+
+      suspend fun flushProcessedRequests() {
+        if (processedRequests.isEmpty()) {
+          return
+        }
+
+        imageDownloadRequestRepository.completeMany(processedRequests.toList())
+          .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.updateMany() error", error) }
+          .ignore()
+
+        processedRequests.clear()
+
+        val canceledNow = (getDownloadContext(imageDownloadInputData)?.isCanceled() ?: true)
+          || hasResultDirAccessErrors.get() || hasOutOfDiskSpaceErrors.get()
+
+        if (!canceledNow) {
+          val notificationSummary = extractNotificationSummaryText(
+            imageDownloadInputData = imageDownloadInputData,
+            currentChanPostImage = currentChanPostImage,
+            imageDownloadRequests = imageDownloadRequests,
+            isCompleted = false
+          )
+
+          // Progress event
+          emitNotificationUpdate(
+            uniqueId = imageDownloadInputData.uniqueId,
+            imageSaverOptionsJson = imageDownloadInputData.imageSaverOptionsJson,
+            completed = false,
+            notificationSummary = notificationSummary,
+            totalImagesCount = imageDownloadInputData.requestsCount(),
+            canceledRequests = canceledRequests.get(),
+            completedRequests = completedRequestsToDownloadedImagesResult(
+              completedRequests = completedRequests,
+              outputDirUri = outputDirUri
+            ),
+            duplicates = duplicates.get(),
+            failedRequests = failedRequests.get(),
+            hasResultDirAccessErrors = hasResultDirAccessErrors.get(),
+            hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors.get(),
+            hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried.get()
+          )
+        }
       }
+
+      val maxConcurrentDownloads = appConstants.processorsCount * 2
+
+      PerHostDownloadPipeline(maxConcurrentDownloads = maxConcurrentDownloads).process(
+        items = imageDownloadRequests,
+        hostSelector = { imageDownloadRequest -> imageDownloadRequest.imageFullUrl.host },
+        download = { imageDownloadRequest ->
+          val (outImageDownloadRequest, duration) = measureTimedValue {
+            return@measureTimedValue downloadSingleImage(
+              imageDownloadInputData = imageDownloadInputData,
+              imageDownloadRequest = imageDownloadRequest,
+              hasResultDirAccessErrors = hasResultDirAccessErrors,
+              hasOutOfDiskSpaceErrors = hasOutOfDiskSpaceErrors,
+              hasRequestsThatCanBeRetried = hasRequestsThatCanBeRetried,
+              currentChanPostImage = currentChanPostImage,
+              canceledRequests = canceledRequests,
+              duplicates = duplicates,
+              failedRequests = failedRequests,
+              outputDirUri = outputDirUri,
+              completedRequests = completedRequests
+            )
+          }
+
+          if (verboseLogs) {
+            Logger.d(TAG, "downloadSingleImage(${imageDownloadRequest.imageFullUrl}) took $duration")
+          }
+
+          outImageDownloadRequest
+        },
+        onResult = { _, outImageDownloadRequest ->
+          processedRequests += outImageDownloadRequest
+
+          if (processedRequests.size >= maxConcurrentDownloads) {
+            flushProcessedRequests()
+          }
+        }
+      )
+
+      flushProcessedRequests()
     } finally {
       val notificationSummary = extractNotificationSummaryText(
         imageDownloadInputData = imageDownloadInputData,
@@ -415,12 +454,18 @@ class ImageSaverV2ServiceDelegate(
           "imageUrl='${imageDownloadRequest.imageFullUrl}'")
     }
 
+    val partialDownload = PartialDownload(
+      uniqueId = imageDownloadRequest.uniqueId,
+      downloadedBytes = AtomicLong(imageDownloadRequest.downloadedBytes)
+    )
+
     val downloadImageResult = downloadSingleImageInternal(
       hasResultDirAccessErrors,
       hasOutOfDiskSpaceErrors,
       currentChanPostImage,
       imageDownloadInputData,
-      imageDownloadRequest
+      imageDownloadRequest,
+      partialDownload
     )
 
     when (downloadImageResult) {
@@ -475,7 +520,8 @@ class ImageSaverV2ServiceDelegate(
       downloadImageResultToStatus(downloadImageResult),
       getDuplicateUriOrNull(downloadImageResult),
       imageDownloadRequest.duplicatesResolution,
-      imageDownloadRequest.createdOn
+      imageDownloadRequest.createdOn,
+      partialDownload.downloadedBytes.get()
     )
   }
 
@@ -613,7 +659,7 @@ class ImageSaverV2ServiceDelegate(
   }
 
   @Suppress("MoveVariableDeclarationIntoWhen")
-  private fun getFullFileUri(
+  private suspend fun getFullFileUri(
     chanPostImage: ChanPostImage,
     imageSaverV2Options: ImageSaverV2Options,
     imageDownloadRequest: ImageDownloadRequest,
@@ -671,15 +717,10 @@ class ImageSaverV2ServiceDelegate(
 
     val resultFile = rootDirectory.clone(segments)
     val resultFileUri = Uri.parse(resultFile.getFullPath())
-    val resultDirUri = Uri.parse(resultDir.getFullPath())
+    val resultDirPath = resultDir.getFullPath()
+    val resultDirUri = Uri.parse(resultDirPath)
 
-    if (!fileManager.exists(resultFile)) {
-      return ResultFile.File(
-        resultDirUri,
-        resultFileUri,
-        resultFile
-      )
-    }
+    outputDirectories[resultDirPath] = resultDir
 
     var duplicatesResolution =
       ImageSaverV2Options.DuplicatesResolution.fromRawValue(imageSaverV2Options.duplicatesResolution)
@@ -690,8 +731,29 @@ class ImageSaverV2ServiceDelegate(
       duplicatesResolution = imageDownloadRequest.duplicatesResolution
     }
 
+    // Do not download images that are already in the output directory, even under a different name,
+    // unless the user explicitly wants to overwrite them or to save them as duplicates
+    val canSkipSameFiles = duplicatesResolution == ImageSaverV2Options.DuplicatesResolution.Skip
+      || duplicatesResolution == ImageSaverV2Options.DuplicatesResolution.AskWhatToDo
+
+    if (canSkipSameFiles) {
+      val sameFileName = findSameFileName(chanPostImage, resultDirPath)
+      if (sameFileName != null) {
+        val sameFileUri = Uri.parse(resultDir.clone(FileSegment(sameFileName)).getFullPath())
+        return ResultFile.Skip(resultDirUri, sameFileUri, fileIsNotEmpty = true)
+      }
+    }
+
+    if (!fileManager.exists(resultFile)) {
+      return ResultFile.File(
+        resultDirUri,
+        resultFileUri,
+        resultFile
+      )
+    }
+
     // Do not process images with the same name, size and hash as the local ones
-    val areImagesExactlyTheSame = areImagesExactlyTheSame(chanPostImage, resultFile)
+    val areImagesExactlyTheSame = areImagesExactlyTheSame(chanPostImage, resultDirPath, resultFileName)
     if (areImagesExactlyTheSame) {
       val fileIsNotEmpty = fileManager.getLength(resultFile) > 0
       return ResultFile.Skip(resultDirUri, resultFileUri, fileIsNotEmpty)
@@ -729,6 +791,8 @@ class ImageSaverV2ServiceDelegate(
           return ResultFile.FailedToOpenResultDir(resultFile.getFullPath())
         }
 
+        fileHashIndex.onFileDeleted(resultDirPath, resultFileName)
+
         // Fallthrough, continue downloading the file
       }
     }
@@ -740,22 +804,26 @@ class ImageSaverV2ServiceDelegate(
     )
   }
 
-  private fun areImagesExactlyTheSame(
+  private suspend fun areImagesExactlyTheSame(
     chanPostImage: ChanPostImage,
-    resultFile: AbstractFile
+    resultDirPath: String,
+    resultFileName: String
   ): Boolean {
-    if (chanPostImage.size != fileManager.getLength(resultFile)) {
+    val fileHash = chanPostImage.fileHash
+    if (fileHash.isNullOrEmpty()) {
       return false
     }
 
-    if (chanPostImage.fileHash.isNullOrEmpty()) {
-      return false
-    }
+    return fileHashIndex.isSameFile(resultDirPath, resultFileName, fileHash, chanPostImage.size)
+  }
 
-    val localFileMd5 = fileManager.getInputStream(resultFile)
-      ?.let { inputStream -> HashingUtil.inputStreamMd5(inputStream) }
+  private suspend fun findSameFileName(chanPostImage: ChanPostImage, resultDirPath: String): String? {
+    val fileHash = chanPostImage.fileHash
+    if (fileHash.isNullOrEmpty() || chanPostImage.size <= 0) {
+      return null
+    }
 
-    return chanPostImage.fileHash.equals(localFileMd5, ignoreCase = true)
+    return fileHashIndex.findSameFile(resultDirPath, fileHash, chanPostImage.size)
   }
 
   sealed class ResultFile {
@@ -782,7 +850,8 @@ class ImageSaverV2ServiceDelegate(
     hasOutOfDiskSpaceErrors: AtomicBoolean,
     currentChanPostImage: AtomicReference<ChanPostImage>,
     imageDownloadInputData: ImageSaverV2Service.ImageDownloadInputData,
-    imageDownloadRequest: ImageDownloadRequest
+    imageDownloadRequest: ImageDownloadRequest,
+    partialDownload: PartialDownload
   ): DownloadImageResult {
     BackgroundUtils.ensureBackgroundThread()
 
@@ -885,10 +954,10 @@ class ImageSaverV2ServiceDelegate(
       val imageUrl = checkNotNull(chanPostImage!!.imageUrl) { "Image url is empty!" }
       val threadDescriptor = chanPostImage!!.ownerPostDescriptor.threadDescriptor()
 
-      try {
+      val outputFileMd5 = try {
         doIoTaskWithAttempts(MAX_IO_ERROR_RETRIES_COUNT) {
           try {
-            downloadFileIntoFile(imageUrl, actualOutputFile, threadDescriptor)
+            downloadFileIntoFile(imageUrl, actualOutputFile, threadDescriptor, partialDownload)
           } catch (error: IOException) {
             if (error.isOutOfDiskSpaceError()) {
               throw OutOfDiskSpaceException()
@@ -913,21 +982,40 @@ class ImageSaverV2ServiceDelegate(
         }
       }
 
+      fileHashIndex.onFileWritten(
+        dirUri = outputDirUri.toString(),
+        fileName = fileManager.getName(actualOutputFile),
+        fileMd5 = outputFileMd5,
+        fileSize = fileManager.getLength(actualOutputFile)
+      )
+
       return@Try DownloadImageResult.Success(outputDirUri, imageDownloadRequest)
     }.mapErrorToValue { error -> DownloadImageResult.Failure(error, true) }
   }
 
+  /**
+   * When [partialDownload] is not null the image is downloaded into a partial file first so that the
+   * download can be resumed later (see [ResumableFileDownloader]). [PartialDownload.downloadedBytes] is
+   * where to resume from and it's updated (and persisted) as the download progresses. Once complete the
+   * partial file is renamed into [outputFile] when both are on the same filesystem and only copied into
+   * it otherwise (SAF files, a different storage).
+   *
+   * @return the MD5 of the written file (calculated while writing it, or by reading the partial file when
+   * it was renamed).
+   * */
   @Throws(ResultFileAccessError::class, IOException::class, NotFoundException::class)
   suspend fun downloadFileIntoFile(
     imageUrl: HttpUrl,
     outputFile: AbstractFile,
-    threadDescriptor: ChanDescriptor.ThreadDescriptor?
-  ) {
+    threadDescriptor: ChanDescriptor.ThreadDescriptor?,
+    partialDownload: PartialDownload? = null
+  ): String {
     BackgroundUtils.ensureBackgroundThread()
 
     val fileUrl = imageUrl.toString()
     val cacheFileType = CacheFileType.PostMediaFull
     var localInputStream: InputStream? = null
+    var partialFile: File? = null
 
     try {
       if (cacheHandler.get().cacheFileExists(cacheFileType, fileUrl)) {
@@ -945,6 +1033,24 @@ class ImageSaverV2ServiceDelegate(
           ?.let { file -> fileManager.getInputStream(file) }
       }
 
+      if (localInputStream == null && partialDownload != null) {
+        val downloadedPartialFile = downloadIntoPartialFile(imageUrl, partialDownload)
+        partialFile = downloadedPartialFile
+
+        if (outputFile is RawFile) {
+          val partialFileMd5 = runInterruptible { calculateMd5(downloadedPartialFile) }
+
+          if (downloadedPartialFile.renameTo(File(outputFile.getFullPath()))) {
+            partialDownload.downloadedBytes.set(0L)
+            return partialFileMd5
+          }
+
+          // Different filesystems (e.g. the output directory is on the sd-card), fallback to copying
+        }
+
+        localInputStream = downloadedPartialFile.inputStream()
+      }
+
       if (localInputStream == null) {
         localInputStream = downloadAndGetResponseBody(imageUrl).source().inputStream()
       }
@@ -952,20 +1058,89 @@ class ImageSaverV2ServiceDelegate(
       val outputFileStream = fileManager.getOutputStream(outputFile)
         ?: throw ResultFileAccessError(outputFile.getFullPath())
 
+      val messageDigest = MessageDigest.getInstance("MD5")
+
       runInterruptible {
-        localInputStream!!.use { inputStream ->
+        DigestInputStream(localInputStream!!, messageDigest).use { inputStream ->
           outputFileStream.use { outputStream ->
             inputStream.copyTo(outputStream)
           }
         }
       }
+
+      if (partialFile != null && partialDownload != null) {
+        deletePartialFile(partialDownload.uniqueId, imageUrl)
+        partialDownload.downloadedBytes.set(0L)
+      }
+
+      return messageDigest.digest().toByteString().hex()
     } finally {
       localInputStream?.closeQuietly()
       localInputStream = null
     }
   }
 
-  private suspend fun downloadAndGetResponseBody(imageUrl: HttpUrl): ResponseBody {
+  private fun calculateMd5(file: File): String {
+    val messageDigest = MessageDigest.getInstance("MD5")
+    val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+
+    DigestInputStream(file.inputStream(), messageDigest).use { inputStream ->
+      while (inputStream.read(buffer) >= 0) {
+        // Only reading it to update the digest
+      }
+    }
+
+    return messageDigest.digest().toByteString().hex()
+  }
+
+  private suspend fun downloadIntoPartialFile(imageUrl: HttpUrl, partialDownload: PartialDownload): File {
+    val uniqueId = partialDownload.uniqueId
+    val downloadedBytes = partialDownload.downloadedBytes
+    val partialFile = getPartialFile(uniqueId, imageUrl)
+
+    try {
+      resumableFileDownloader.download(
+        requestBuilder = createMediaDownloadRequestBuilder(imageUrl),
+        partialFile = partialFile,
+        resumeFrom = downloadedBytes.get(),
+        onCheckpoint = { checkpointedBytes ->
+          downloadedBytes.set(checkpointedBytes)
+
+          imageDownloadRequestRepository.updateDownloadedBytes(uniqueId, imageUrl, checkpointedBytes)
+            .peekError { error -> Logger.e(TAG, "imageDownloadRequestRepository.updateDownloadedBytes() error", error) }
+            .ignore()
+        }
+      )
+    } catch (error: BadStatusResponseException) {
+      if (error.isNotFoundError()) {
+        // Nothing to resume anymore
+        deletePartialFile(uniqueId, imageUrl)
+        downloadedBytes.set(0L)
+
+        throw NotFoundException()
+      }
+
+      throw error
+    }
+
+    return partialFile
+  }
+
+  // The same image may be requested by multiple downloads at the same time (e.g. into different
+  // directories) so the partial file belongs to the download request, not just to the url.
+  private fun getPartialFile(uniqueId: String, imageUrl: HttpUrl): File {
+    return File(appConstants.imageSaverPartialDownloadsDir, HashingUtil.stringHash("${uniqueId}_${imageUrl}"))
+  }
+
+  private fun deletePartialFile(uniqueId: String, imageUrl: HttpUrl) {
+    val partialFile = getPartialFile(uniqueId, imageUrl)
+
+    if (partialFile.exists() && !partialFile.delete()) {
+      Logger.e(TAG, "Failed to delete partial file '${partialFile.absolutePath}'")
+    }
+  }
+
+  private fun createMediaDownloadRequestBuilder(imageUrl: HttpUrl): Request.Builder {
     val requestBuilder = Request.Builder()
       .url(imageUrl)
 
@@ -973,6 +1148,12 @@ class ImageSaverV2ServiceDelegate(
       site.requestModifier().modifyMediaDownloadRequest(site, requestBuilder)
     }
 
+    return requestBuilder
+  }
+
+  private suspend fun downloadAndGetResponseBody(imageUrl: HttpUrl): ResponseBody {
+    val requestBuilder = createMediaDownloadRequestBuilder(imageUrl)
+
     val response = downloaderOkHttpClient.get().okHttpClient().suspendCall(requestBuilder.build())
 
     if (!response.isSuccessful) {
@@ -1012,6 +1193,68 @@ class ImageSaverV2ServiceDelegate(
     cancelNotificationJobMap.remove(uniqueId)?.cancel()
   }
 
+  private inner class FileHashIndexStorage : ImageSaverFileHashIndex.Storage {
+    override suspend fun select(dirUri: String, fileName: String): ImageSaverFileHash? {
+      return imageSaverFileHashRepository.select(dirUri, fileName)
+        .peekError { error -> Logger.e(TAG, "imageSaverFileHashRepository.select() error", error) }
+        .valueOrNull()
+    }
+
+    override suspend fun selectByHash(dirUri: String, fileMd5: String, fileSize: Long): List<ImageSaverFileHash> {
+      return imageSaverFileHashRepository.selectByHash(dirUri, fileMd5, fileSize)
+        .peekError { error -> Logger.e(TAG, "imageSaverFileHashRepository.selectByHash() error", error) }
+        .valueOrNull()
+        ?: emptyList()
+    }
+
+    override suspend fun insertOrReplace(imageSaverFileHash: ImageSaverFileHash) {
+      imageSaverFileHashRepository.insertOrReplace(imageSaverFileHash)
+        .peekError { error -> Logger.e(TAG, "imageSaverFileHashRepository.insertOrReplace() error", error) }
+        .ignore()
+    }
+
+    override suspend fun delete(dirUri: String, fileName: String) {
+      imageSaverFileHashRepository.delete(dirUri, fileName)
+        .peekError { error -> Logger.e(TAG, "imageSaverFileHashRepository.delete() error", error) }
+        .ignore()
+    }
+  }
+
+  private inner class FileHashIndexFileAccessor : ImageSaverFileHashIndex.FileAccessor {
+    override fun length(dirUri: String, fileName: String): Long {
+      val file = getFile(dirUri, fileName)
+      if (file == null || !fileManager.exists(file)) {
+        return -1L
+      }
+
+      return fileManager.getLength(file)
+    }
+
+    override fun lastModified(dirUri: String, fileName: String): Long {
+      val file = getFile(dirUri, fileName)
+        ?: return 0L
+
+      return fileManager.lastModified(file)
+    }
+
+    override fun md5(dirUri: String, fileName: String): String? {
+      val file = getFile(dirUri, fileName)
+        ?: return null
+
+      return fileManager.getInputStream(file)
+        ?.let { inputStream -> HashingUtil.inputStreamMd5(inputStream) }
+    }
+
+    private fun getFile(dirUri: String, fileName: String): AbstractFile? {
+      return outputDirectories[dirUri]?.clone(FileSegment(fileName))
+    }
+  }
+
+  class PartialDownload(
+    val uniqueId: String,
+    val downloadedBytes: AtomicLong
+  )
+
   class ResultFileAccessError(val resultFileUri: String) : Exception("Failed to access result file: $resultFileUri")
   class NotFoundException : Exception("Not found on server")
   class OutOfDiskSpaceException : Exception("Out of disk space")
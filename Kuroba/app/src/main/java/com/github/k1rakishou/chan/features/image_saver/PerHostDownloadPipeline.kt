@@ -0,0 +1,73 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Runs downloads in a sliding window instead of fixed size batches: a new download is started as
+ * soon as any other download finishes, so one huge file no longer holds the rest of its batch back.
+ * On top of the global limit there is a per-host limit so that a single slow host can't take all the
+ * slots (or get us rate limited) while images from other hosts are waiting.
+ *
+ * Results are passed to onResult one at a time in completion order.
+ * */
+class PerHostDownloadPipeline(
+  private val maxConcurrentDownloads: Int,
+  private val maxConcurrentDownloadsPerHost: Int = DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_HOST,
+  private val downloadContext: CoroutineContext = Dispatchers.IO
+) {
+
+  init {
+    require(maxConcurrentDownloads > 0) { "Bad maxConcurrentDownloads: $maxConcurrentDownloads" }
+    require(maxConcurrentDownloadsPerHost > 0) { "Bad maxConcurrentDownloadsPerHost: $maxConcurrentDownloadsPerHost" }
+  }
+
+  suspend fun <T, R> process(
+    items: List<T>,
+    hostSelector: (T) -> String,
+    download: suspend (T) -> R,
+    onResult: suspend (T, R) -> Unit
+  ) {
+    if (items.isEmpty()) {
+      return
+    }
+
+    val globalSemaphore = Semaphore(maxConcurrentDownloads)
+    val hostSemaphores = mutableMapOf<String, Semaphore>()
+    val results = Channel<Pair<T, R>>(Channel.UNLIMITED)
+
+    coroutineScope {
+      items.forEach { item ->
+        val hostSemaphore = hostSemaphores.getOrPut(hostSelector(item)) {
+          Semaphore(maxConcurrentDownloadsPerHost)
+        }
+
+        launch(downloadContext) {
+          // Wait for the host slot first so that we don't occupy a global slot while waiting for it
+          val result = hostSemaphore.withPermit {
+            globalSemaphore.withPermit { download(item) }
+          }
+
+          results.send(Pair(item, result))
+        }
+      }
+
+      repeat(items.size) {
+        val (item, result) = results.receive()
+        onResult(item, result)
+      }
+    }
+
+    results.close()
+  }
+
+  companion object {
+    private const val DEFAULT_MAX_CONCURRENT_DOWNLOADS_PER_HOST = 4
+  }
+
+}
@@ -0,0 +1,209 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import com.github.k1rakishou.common.BadStatusResponseException
+import com.github.k1rakishou.common.EmptyBodyResponseException
+import com.github.k1rakishou.common.suspendCall
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.Response
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * Downloads a file into [partialFile] so that an interrupted download (a network error or even the
+ * process being killed) can be continued from where it stopped using an HTTP Range request instead
+ * of starting from the first byte again.
+ *
+ * Every [checkpointBytes] the written data is synced to disk and then reported via the onCheckpoint
+ * callback so that the caller can persist it. Only persisted (checkpointed) bytes are trusted when
+ * resuming, anything past them is discarded.
+ * */
+class ResumableFileDownloader(
+  private val okHttpClientProvider: () -> OkHttpClient,
+  private val checkpointBytes: Long = DEFAULT_CHECKPOINT_BYTES
+) {
+
+  /**
+   * @param resumeFrom the last checkpointed offset of [partialFile] (0 to start from scratch).
+   * @param onCheckpoint called with the amount of bytes of [partialFile] that are safely on disk.
+   * @return the size of the downloaded file.
+   * */
+  @Throws(IOException::class)
+  suspend fun download(
+    requestBuilder: Request.Builder,
+    partialFile: File,
+    resumeFrom: Long,
+    onCheckpoint: suspend (Long) -> Unit
+  ): Long {
+    var offset = prepareResume(partialFile, resumeFrom)
+
+    if (offset > 0) {
+      requestBuilder.header("Range", "bytes=${offset}-")
+    }
+
+    val response = okHttpClientProvider().suspendCall(requestBuilder.build())
+
+    return response.use {
+      val expectedTotalLength = when (response.code) {
+        HTTP_PARTIAL_CONTENT -> {
+          val contentRange = parseContentRange(response.header("Content-Range"))
+          if (contentRange == null || contentRange.start != offset) {
+            // The server answered with some other range, the only way to recover is to start over
+            truncate(partialFile, 0)
+            onCheckpoint(0)
+
+            throw IOException("Unexpected Content-Range: '${response.header("Content-Range")}', offset=${offset}")
+          }
+
+          contentRange.totalLength
+        }
+        HTTP_RANGE_NOT_SATISFIABLE -> {
+          truncate(partialFile, 0)
+          onCheckpoint(0)
+
+          throw IOException("Range not satisfiable, offset=${offset}")
+        }
+        else -> {
+          if (!response.isSuccessful) {
+            throw BadStatusResponseException(response.code)
+          }
+
+          // Range is not supported (or we didn't ask for it), the whole file is being sent again
+          if (offset > 0) {
+            truncate(partialFile, 0)
+            offset = 0
+          }
+
+          null
+        }
+      }
+
+      val body = response.body
+        ?: throw EmptyBodyResponseException()
+
+      val contentLength = body.contentLength()
+      val totalLength = expectedTotalLength
+        ?: if (contentLength >= 0) offset + contentLength else null
+
+      val fileLength = writeBody(response, partialFile, offset, onCheckpoint)
+      if (totalLength != null && fileLength != totalLength) {
+        throw IOException("Incomplete download: fileLength=${fileLength}, totalLength=${totalLength}")
+      }
+
+      return@use fileLength
+    }
+  }
+
+  private suspend fun writeBody(
+    response: Response,
+    partialFile: File,
+    offset: Long,
+    onCheckpoint: suspend (Long) -> Unit
+  ): Long {
+    return withContext(Dispatchers.IO) {
+      val inputStream = response.body!!.byteStream()
+      val buffer = ByteArray(BUFFER_SIZE)
+
+      var written = offset
+      var lastCheckpoint = offset
+
+      FileOutputStream(partialFile, true).use { outputStream ->
+        try {
+          while (true) {
+            ensureActive()
+
+            val read = inputStream.read(buffer)
+            if (read < 0) {
+              break
+            }
+
+            outputStream.write(buffer, 0, read)
+            written += read
+
+            if (written - lastCheckpoint >= checkpointBytes) {
+              outputStream.flush()
+              outputStream.fd.sync()
+
+              onCheckpoint(written)
+              lastCheckpoint = written
+            }
+          }
+        } catch (error: IOException) {
+          // Whatever we have managed to download can still be resumed from
+          outputStream.flush()
+          outputStream.fd.sync()
+          onCheckpoint(written)
+
+          throw error
+        }
+
+        outputStream.flush()
+        outputStream.fd.sync()
+      }
+
+      onCheckpoint(written)
+      return@withContext written
+    }
+  }
+
+  private fun prepareResume(partialFile: File, resumeFrom: Long): Long {
+    val fileLength = if (partialFile.exists()) partialFile.length() else 0L
+
+    // The file is shorter than what was checkpointed (or there is nothing to resume from), start over
+    val offset = if (resumeFrom in 1..fileLength) resumeFrom else 0L
+    truncate(partialFile, offset)
+
+    return offset
+  }
+
+  private fun truncate(partialFile: File, length: Long) {
+    if (length == 0L) {
+      if (partialFile.exists() && !partialFile.delete()) {
+        throw IOException("Failed to delete partial file '${partialFile.absolutePath}'")
+      }
+
+      return
+    }
+
+    RandomAccessFile(partialFile, "rw").use { randomAccessFile -> randomAccessFile.setLength(length) }
+  }
+
+  data class ContentRange(val start: Long, val end: Long, val totalLength: Long?)
+
+  companion object {
+    private const val HTTP_PARTIAL_CONTENT = 206
+    private const val HTTP_RANGE_NOT_SATISFIABLE = 416
+
+    private const val BUFFER_SIZE = 64 * 1024
+    private const val DEFAULT_CHECKPOINT_BYTES = 1024L * 1024L
+
+    private val CONTENT_RANGE_REGEX = Regex("""bytes (\d+)-(\d+)/(\d+|\*)""")
+
+    /**
+     * Parses "Content-Range: bytes 100-199/1000" (or "bytes 100-199/\*" when the total length is
+     * unknown).
+     * */
+    fun parseContentRange(header: String?): ContentRange? {
+      if (header == null) {
+        return null
+      }
+
+      val matchResult = CONTENT_RANGE_REGEX.matchEntire(header.trim())
+        ?: return null
+
+      val (start, end, totalLength) = matchResult.destructured
+
+      return ContentRange(
+        start = start.toLongOrNull() ?: return null,
+        end = end.toLongOrNull() ?: return null,
+        totalLength = totalLength.toLongOrNull()
+      )
+    }
+  }
+
+}
@@ -199,7 +199,7 @@ class ReportIssueController(
         LaunchedEffect(key1 = Unit, block = {
           reportLogs = withContext(Dispatchers.Default) {
             val logs = LogsController.loadLogs()
-            if (logs.isNullOrEmpty()) {
+            if (logs.isEmpty()) {
               return@withContext ""
             }
 
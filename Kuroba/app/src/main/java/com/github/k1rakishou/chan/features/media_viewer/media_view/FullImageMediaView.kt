@@ -25,6 +25,7 @@ import com.github.k1rakishou.chan.ui.view.CustomScaleImageView
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils.getString
 import com.github.k1rakishou.chan.utils.setVisibilityFast
+import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.awaitCatching
 import com.github.k1rakishou.common.errorMessageOrClassName
@@ -72,6 +73,7 @@ class FullImageMediaView(
 
   private var fullImageDeferred = CompletableDeferred<MediaPreloadResult>()
   private var preloadCancelableDownload: CancelableDownload? = null
+  private var progressivePreviewJob: Job? = null
 
   override val hasContent: Boolean
     get() = actualImageView.hasImage()
@@ -126,6 +128,8 @@ class FullImageMediaView(
               fullMediaDeferred = fullImageDeferred,
               onEndFunc = { preloadCancelableDownload = null }
             )
+
+            startProgressivePreview(preloadCancelableDownload)
           }
 
           return@GestureDetectorListener true
@@ -222,6 +226,8 @@ class FullImageMediaView(
           fullMediaDeferred = fullImageDeferred,
           onEndFunc = { preloadCancelableDownload = null }
         )
+
+        startProgressivePreview(preloadCancelableDownload)
       }
     } else if (viewableMedia.mediaLocation is MediaLocation.Local) {
       if (viewableMedia.mediaLocation.isUri) {
@@ -310,6 +316,9 @@ class FullImageMediaView(
       fullImageDeferred.cancel()
     }
 
+    progressivePreviewJob?.cancel()
+    progressivePreviewJob = null
+
     preloadCancelableDownload?.cancel()
     preloadCancelableDownload = null
 
@@ -352,9 +361,38 @@ class FullImageMediaView(
       onEndFunc = { preloadCancelableDownload = null }
     )
 
+    startProgressivePreview(preloadCancelableDownload)
     show(isLifecycleChange = false)
   }
 
+  private fun startProgressivePreview(cancelableDownload: CancelableDownload?) {
+    if (cancelableDownload == null || viewableMedia.viewableMediaMeta.isGif || fullImageDeferred.isCompleted) {
+      return
+    }
+
+    progressivePreviewJob?.cancel()
+
+    val displaySize = AndroidUtils.getDisplaySize(context)
+
+    val progressiveImagePreview = ProgressiveImagePreview(
+      downloadedPrefix = cancelableDownload.downloadedPrefix,
+      maxWidth = width.takeIf { it > 0 } ?: displaySize.x,
+      maxHeight = height.takeIf { it > 0 } ?: displaySize.y
+    )
+
+    val job = scope.launch {
+      progressiveImagePreview.run { bitmap ->
+        if (!fullImageDeferred.isCompleted) {
+          thumbnailMediaView.setPreview(bitmap)
+        }
+      }
+    }
+
+    // The full image is loaded by the CustomScaleImageView once the download is done
+    fullImageDeferred.invokeOnCompletion { job.cancel() }
+    progressivePreviewJob = job
+  }
+
   private suspend fun setBigImageFromFile(
     isLifecycleChange: Boolean,
     mediaPreloadResult: MediaPreloadResult
@@ -0,0 +1,155 @@
+package com.github.k1rakishou.chan.features.media_viewer.media_view
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import com.github.k1rakishou.chan.core.cache.downloader.DownloadedPrefix
+import com.github.k1rakishou.core_logger.Logger
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+/**
+ * Decodes the already downloaded part of a progressive JPEG while the rest of it is still being
+ * downloaded. Every scan of a progressive JPEG covers the whole image so each decode shows the whole
+ * image in a better quality than the previous one.
+ *
+ * Only one decode is running at a time and the next one waits until the prefix grew by at least as
+ * much as was already decoded. This way the decodes never get ahead of the download and the total
+ * decoding work stays proportional to the file size.
+ * */
+class ProgressiveImagePreview(
+  private val downloadedPrefix: DownloadedPrefix,
+  private val maxWidth: Int,
+  private val maxHeight: Int
+) {
+
+  /**
+   * Returns when the file is fully downloaded (the full image is then loaded as usual), when the
+   * download fails or when the image is not a progressive JPEG.
+   * */
+  suspend fun run(onPreview: (Bitmap) -> Unit) {
+    val reader = downloadedPrefix.newReader()
+    var minGrowth = FIRST_DECODE_SIZE
+
+    while (true) {
+      val snapshot = withContext(Dispatchers.IO) { reader.awaitNext(minGrowth, MAX_IMAGE_SIZE) }
+      if (snapshot == null || snapshot.isComplete) {
+        return
+      }
+
+      when (isProgressiveJpeg(snapshot.bytes, snapshot.length)) {
+        false -> return
+        null -> {
+          // Not enough data to find the frame header yet
+          minGrowth = MIN_DECODE_STEP
+          continue
+        }
+        true -> {
+          // no-op
+        }
+      }
+
+      val bitmap = withContext(Dispatchers.Default) { decode(snapshot) }
+      if (bitmap != null) {
+        onPreview(bitmap)
+      }
+
+      minGrowth = maxOf(MIN_DECODE_STEP, snapshot.length.toLong())
+    }
+  }
+
+  private fun decode(snapshot: DownloadedPrefix.Snapshot): Bitmap? {
+    val boundsOptions = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+    BitmapFactory.decodeByteArray(snapshot.bytes, 0, snapshot.length, boundsOptions)
+
+    if (boundsOptions.outWidth <= 0 || boundsOptions.outHeight <= 0) {
+      return null
+    }
+
+    var inSampleSize = 1
+    while (boundsOptions.outWidth / (inSampleSize * 2) >= maxWidth
+      || boundsOptions.outHeight / (inSampleSize * 2) >= maxHeight) {
+      inSampleSize *= 2
+    }
+
+    val options = BitmapFactory.Options().apply {
+      this.inSampleSize = inSampleSize
+      this.inPreferredConfig = Bitmap.Config.RGB_565
+    }
+
+    return try {
+      BitmapFactory.decodeByteArray(snapshot.bytes, 0, snapshot.length, options)
+    } catch (error: Throwable) {
+      Logger.e(TAG, "decode() error: ${error.javaClass.simpleName}, length=${snapshot.length}")
+      null
+    }
+  }
+
+  companion object {
+    private const val TAG = "ProgressiveImagePreview"
+
+    private const val FIRST_DECODE_SIZE = 64L * 1024L
+    private const val MIN_DECODE_STEP = 32L * 1024L
+    private const val MAX_IMAGE_SIZE = 32 * 1024 * 1024
+
+    /**
+     * Walks over the JPEG markers until the frame header. Returns null when the first [length] bytes
+     * are not enough to tell.
+     * */
+    fun isProgressiveJpeg(bytes: ByteArray, length: Int): Boolean? {
+      if (length < 2) {
+        return null
+      }
+
+      if (bytes[0] != 0xFF.toByte() || bytes[1] != 0xD8.toByte()) {
+        return false
+      }
+
+      var position = 2
+
+      while (true) {
+        val markerStart = position
+
+        // Markers may be preceded by any number of 0xFF fill bytes
+        while (position < length && bytes[position] == 0xFF.toByte()) {
+          ++position
+        }
+
+        if (position >= length) {
+          return null
+        }
+
+        if (position == markerStart) {
+          // Not a marker
+          return false
+        }
+
+        val marker = bytes[position].toInt() and 0xFF
+        when (marker) {
+          // SOF2, SOF6, SOF10, SOF14
+          0xC2, 0xC6, 0xCA, 0xCE -> return true
+          // The rest of SOFn (0xC4 is DHT, 0xC8 is JPG, 0xCC is DAC)
+          0xC0, 0xC1, 0xC3, 0xC5, 0xC7, 0xC9, 0xCB, 0xCD, 0xCF -> return false
+          // SOS or EOI before the frame header
+          0xDA, 0xD9 -> return false
+          // Markers without a segment
+          0x01, in 0xD0..0xD7 -> {
+            ++position
+            continue
+          }
+        }
+
+        if (position + 2 >= length) {
+          return null
+        }
+
+        val segmentLength = ((bytes[position + 1].toInt() and 0xFF) shl 8) or (bytes[position + 2].toInt() and 0xFF)
+        if (segmentLength < 2) {
+          return false
+        }
+
+        position += 1 + segmentLength
+      }
+    }
+  }
+
+}
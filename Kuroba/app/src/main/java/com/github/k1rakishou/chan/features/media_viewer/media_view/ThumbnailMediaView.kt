@@ -45,6 +45,7 @@ class ThumbnailMediaView @JvmOverloads constructor(
 
   private var currentlyVisible = false
   private var requestDisposable: Disposable? = null
+  private var hasPreview = false
 
   @Inject
   lateinit var imageLoaderV2: Lazy<ImageLoaderV2>
@@ -113,9 +114,19 @@ class ThumbnailMediaView @JvmOverloads constructor(
     requestDisposable = null
 
     thumbnailView.setImageDrawable(null)
+    hasPreview = false
     cancellableToast.cancel()
   }
 
+  /**
+   * Replaces the thumbnail with a better looking [bitmap] decoded from the partially downloaded
+   * original image.
+   * */
+  fun setPreview(bitmap: Bitmap) {
+    hasPreview = true
+    thumbnailView.setImageBitmap(bitmap)
+  }
+
   fun setError(errorText: String) {
     thumbnailView.setVisibilityFast(View.INVISIBLE)
     errorViewContainer.setVisibilityFast(View.VISIBLE)
@@ -133,7 +144,10 @@ class ThumbnailMediaView @JvmOverloads constructor(
         requestDisposable = null
 
         thumbnailView.setOriginalMediaPlayable(parameters.isOriginalMediaPlayable)
-        thumbnailView.setImageDrawable(drawable)
+
+        if (!hasPreview) {
+          thumbnailView.setImageDrawable(drawable)
+        }
 
         onThumbnailFullyLoaded()
       }
@@ -9,6 +9,7 @@ import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.helper.ProxyStorage
 import com.github.k1rakishou.chan.core.manager.GlobalWindowInsetsManager
 import com.github.k1rakishou.chan.core.manager.WindowInsetsListener
+import com.github.k1rakishou.chan.core.net.ProxyHealthMonitor
 import com.github.k1rakishou.chan.features.drawer.MainControllerCallbacks
 import com.github.k1rakishou.chan.features.proxies.data.ProxyEntryView
 import com.github.k1rakishou.chan.features.proxies.data.ProxySetupState
@@ -37,6 +38,8 @@ class ProxySetupController(
   @Inject
   lateinit var proxyStorage: ProxyStorage
   @Inject
+  lateinit var proxyHealthMonitor: ProxyHealthMonitor
+  @Inject
   lateinit var globalWindowInsetsManager: GlobalWindowInsetsManager
 
   private lateinit var epoxyRecyclerView: ColorizableEpoxyRecyclerView
@@ -47,7 +50,8 @@ class ProxySetupController(
   private val presenter by lazy {
     ProxySetupPresenter(
       proxySelectionHelper = proxySelectionHelper,
-      proxyStorage = proxyStorage
+      proxyStorage = proxyStorage,
+      proxyHealthMonitor = proxyHealthMonitor
     )
   }
 
@@ -204,6 +208,7 @@ class ProxySetupController(
               proxySupportedSites(proxyEntryView.supportedSites)
               proxySupportedActions(proxyEntryView.supportedActions)
               proxyType(proxyEntryView.proxyType)
+              proxyHealth(proxyEntryView.health)
               proxySelection(proxyEntryView.selection)
               proxyHolderClickListener { onProxyItemViewClick(proxyEntryView) }
               proxyHolderLongClickListener { onProxyViewItemLongClick(proxyEntryView) }
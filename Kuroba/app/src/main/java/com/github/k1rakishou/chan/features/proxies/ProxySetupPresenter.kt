@@ -3,6 +3,7 @@ package com.github.k1rakishou.chan.features.proxies
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.core.base.BasePresenter
 import com.github.k1rakishou.chan.core.helper.ProxyStorage
+import com.github.k1rakishou.chan.core.net.ProxyHealthMonitor
 import com.github.k1rakishou.chan.features.proxies.data.ProxyEntryView
 import com.github.k1rakishou.chan.features.proxies.data.ProxyEntryViewSelection
 import com.github.k1rakishou.chan.features.proxies.data.ProxySetupState
@@ -21,7 +22,8 @@ import kotlin.time.milliseconds
 
 class ProxySetupPresenter(
   private val proxySelectionHelper: ProxySelectionHelper,
-  private val proxyStorage: ProxyStorage
+  private val proxyStorage: ProxyStorage,
+  private val proxyHealthMonitor: ProxyHealthMonitor
 ) : BasePresenter<ProxySetupView>() {
 
   @ExperimentalCoroutinesApi
@@ -37,6 +39,12 @@ class ProxySetupPresenter(
         .collect { reloadProxies() }
     }
 
+    scope.launch {
+      proxyHealthMonitor.healthUpdates
+        .debounce(500.milliseconds)
+        .collect { reloadProxies() }
+    }
+
     reloadProxies()
   }
 
@@ -119,7 +127,8 @@ class ProxySetupPresenter(
             supportedActions = kurobaProxy.supportedActions.joinToString { proxyActionType ->
               proxyActionTypeToString(proxyActionType)
             },
-            proxyType = proxyTypeToString(kurobaProxy.proxyType)
+            proxyType = proxyTypeToString(kurobaProxy.proxyType),
+            health = proxyHealthToString(proxyHealthMonitor.getStatus(kurobaProxy.proxyKey))
           )
         }
 
@@ -134,6 +143,28 @@ class ProxySetupPresenter(
     }
   }
 
+  private fun proxyHealthToString(proxyHealthStatus: ProxyHealthMonitor.ProxyHealthStatus): String {
+    return when (proxyHealthStatus.state) {
+      ProxyHealthMonitor.ProxyHealthState.Unknown -> {
+        getString(R.string.controller_proxy_setup_health_unknown)
+      }
+      ProxyHealthMonitor.ProxyHealthState.Healthy -> {
+        getString(R.string.controller_proxy_setup_health_healthy, proxyHealthStatus.latencyMs ?: 0L)
+      }
+      ProxyHealthMonitor.ProxyHealthState.CircuitOpen -> {
+        getString(
+          R.string.controller_proxy_setup_health_circuit_open,
+          proxyHealthStatus.failureStreak,
+          ((proxyHealthStatus.retryInMs ?: 0L) / 1000L).coerceAtLeast(1L),
+          proxyHealthStatus.lastError ?: ""
+        )
+      }
+      ProxyHealthMonitor.ProxyHealthState.HalfOpen -> {
+        getString(R.string.controller_proxy_setup_health_half_open, proxyHealthStatus.lastError ?: "")
+      }
+    }
+  }
+
   private fun proxyActionTypeToString(proxyActionType: ProxyStorage.ProxyActionType): String {
     return when (proxyActionType) {
       ProxyStorage.ProxyActionType.SiteRequests -> "Site requests"
@@ -9,7 +9,8 @@ data class ProxyEntryView(
   val selection: ProxyEntryViewSelection?,
   val supportedSites: String,
   val supportedActions: String,
-  val proxyType: String
+  val proxyType: String,
+  val health: String
 ) {
 
   fun proxyKeyString(): String = "${address}_${port}"
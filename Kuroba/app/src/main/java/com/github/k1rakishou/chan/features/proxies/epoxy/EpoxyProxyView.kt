@@ -43,6 +43,7 @@ class EpoxyProxyView @JvmOverloads constructor(
   private val proxyType: MaterialTextView
   private val proxySupportedSites: MaterialTextView
   private val proxySupportedActions: MaterialTextView
+  private val proxyHealth: MaterialTextView
   private val proxySelectionCheckView: SelectionCheckView
 
   init {
@@ -59,6 +60,7 @@ class EpoxyProxyView @JvmOverloads constructor(
     proxyType = findViewById(R.id.proxy_type)
     proxySupportedSites = findViewById(R.id.proxy_supported_sites)
     proxySupportedActions = findViewById(R.id.proxy_supported_actions)
+    proxyHealth = findViewById(R.id.proxy_health)
     proxySelectionCheckView = findViewById(R.id.proxy_selection_check_view)
 
     onThemeChanged()
@@ -68,6 +70,7 @@ class EpoxyProxyView @JvmOverloads constructor(
     updateProxyTypeTextColor()
     updateProxySupportedSitesTextColor()
     updateProxySupportedActionsTextColor()
+    updateProxyHealthTextColor()
   }
 
   @ModelProp(options = [ModelProp.Option.NullOnRecycle, ModelProp.Option.DoNotHash])
@@ -108,6 +111,12 @@ class EpoxyProxyView @JvmOverloads constructor(
     updateProxyTypeTextColor()
   }
 
+  @ModelProp
+  fun proxyHealth(health: String) {
+    proxyHealth.text = context.getString(R.string.epoxy_proxy_view_health, health)
+    updateProxyHealthTextColor()
+  }
+
   @ModelProp
   fun proxySelection(proxyEntryViewSelection: ProxyEntryViewSelection?) {
     if (proxyEntryViewSelection == null) {
@@ -188,6 +197,10 @@ class EpoxyProxyView @JvmOverloads constructor(
     proxySupportedSites.setTextColor(themeEngine.chanTheme.textColorSecondary)
   }
 
+  private fun updateProxyHealthTextColor() {
+    proxyHealth.setTextColor(themeEngine.chanTheme.textColorSecondary)
+  }
+
   private fun updateProxyTypeTextColor() {
     proxyType.setTextColor(themeEngine.chanTheme.textColorSecondary)
   }
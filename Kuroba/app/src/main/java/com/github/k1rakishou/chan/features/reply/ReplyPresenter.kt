@@ -670,7 +670,7 @@ class ReplyPresenter @Inject constructor(
 
   fun quote(post: ChanPost, withText: Boolean) {
     val comment = if (withText) {
-      post.postComment.comment().toString()
+      post.postComment.commentText().toString()
     } else {
       null
     }
@@ -12,7 +12,7 @@ import com.github.k1rakishou.chan.core.helper.StartActivityStartupHandlerHelper
 import com.github.k1rakishou.chan.core.manager.GlobalWindowInsetsManager
 import com.github.k1rakishou.chan.core.manager.WindowInsetsListener
 import com.github.k1rakishou.chan.core.site.sites.search.PageCursor
-import com.github.k1rakishou.chan.core.usecase.GlobalSearchUseCase
+import com.github.k1rakishou.chan.core.usecase.FederatedSearchUseCase
 import com.github.k1rakishou.chan.features.search.data.SearchParameters
 import com.github.k1rakishou.chan.features.search.data.SearchResultsControllerState
 import com.github.k1rakishou.chan.features.search.data.SearchResultsControllerStateData
@@ -43,7 +43,7 @@ class SearchResultsController(
 ) : Controller(context), SearchResultsView, WindowInsetsListener {
 
   @Inject
-  lateinit var globalSearchUseCase: GlobalSearchUseCase
+  lateinit var federatedSearchUseCase: FederatedSearchUseCase
   @Inject
   lateinit var themeEngine: ThemeEngine
   @Inject
@@ -53,7 +53,7 @@ class SearchResultsController(
     SearchResultsPresenter(
       siteDescriptor = siteDescriptor,
       searchParameters = searchParameters,
-      globalSearchUseCase = globalSearchUseCase,
+      federatedSearchUseCase = federatedSearchUseCase,
       themeEngine = themeEngine
     )
   }
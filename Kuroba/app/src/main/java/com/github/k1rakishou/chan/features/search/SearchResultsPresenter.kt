@@ -7,14 +7,15 @@ import androidx.core.text.buildSpannedString
 import com.github.k1rakishou.chan.core.base.BasePresenter
 import com.github.k1rakishou.chan.core.site.sites.search.Chan4SearchParams
 import com.github.k1rakishou.chan.core.site.sites.search.DvachSearchParams
+import com.github.k1rakishou.chan.core.site.sites.search.FederatedSearchResult
 import com.github.k1rakishou.chan.core.site.sites.search.FoolFuukaSearchParams
 import com.github.k1rakishou.chan.core.site.sites.search.FuukaSearchParams
 import com.github.k1rakishou.chan.core.site.sites.search.PageCursor
 import com.github.k1rakishou.chan.core.site.sites.search.SearchBoard
 import com.github.k1rakishou.chan.core.site.sites.search.SearchEntryPost
 import com.github.k1rakishou.chan.core.site.sites.search.SearchError
-import com.github.k1rakishou.chan.core.site.sites.search.SearchResult
-import com.github.k1rakishou.chan.core.usecase.GlobalSearchUseCase
+import com.github.k1rakishou.chan.core.site.sites.search.SearchParams
+import com.github.k1rakishou.chan.core.usecase.FederatedSearchUseCase
 import com.github.k1rakishou.chan.features.search.data.CharSequenceMurMur
 import com.github.k1rakishou.chan.features.search.data.CurrentQueryInfo
 import com.github.k1rakishou.chan.features.search.data.ErrorInfo
@@ -46,7 +47,7 @@ import java.util.*
 internal class SearchResultsPresenter(
   private val siteDescriptor: SiteDescriptor,
   private val searchParameters: SearchParameters,
-  private val globalSearchUseCase: GlobalSearchUseCase,
+  private val federatedSearchUseCase: FederatedSearchUseCase,
   private val themeEngine: ThemeEngine
 ) : BasePresenter<SearchResultsView>(), ThemeEngine.ThemeChangesListener {
 
@@ -56,7 +57,7 @@ internal class SearchResultsPresenter(
 
   @get:Synchronized
   @set:Synchronized
-  private var currentPage: Int? = null
+  private var currentPageIndex: Int = 0
 
   override fun onCreate(view: SearchResultsView) {
     super.onCreate(view)
@@ -139,7 +140,7 @@ internal class SearchResultsPresenter(
       val nextPage = (data.nextPageCursor as? PageCursor.Page)?.value
         ?: return@launch
 
-      currentPage = nextPage
+      currentPageIndex = nextPage
       doSearch()
     }
   }
@@ -147,35 +148,45 @@ internal class SearchResultsPresenter(
   private suspend fun doSearch() {
     withContext(Dispatchers.Default) {
       BackgroundUtils.ensureBackgroundThread()
-      Logger.d(TAG, "doSearch() siteDescriptor=$siteDescriptor, searchParameters=$searchParameters, currentPage=$currentPage")
+      Logger.d(TAG, "doSearch() siteDescriptor=$siteDescriptor, searchParameters=$searchParameters, " +
+        "currentPageIndex=$currentPageIndex")
 
       val prevState = requireNotNull(searchResultsControllerStateSubject.value) { "Initial state was not set!" }
       val prevStateData = (prevState as? SearchResultsControllerState.Data)?.data
 
       val searchResult = executeRequest()
-      if (searchResult is SearchResult.Failure) {
-        logSearchError(searchResult)
+      if (searchResult is FederatedSearchResult.Failure) {
+        searchResult.errors.forEach { (failedSiteDescriptor, searchError) ->
+          logSearchError(failedSiteDescriptor, searchError)
+        }
+
+        val errorText = searchFailureToErrorText(searchResult)
 
         if (prevStateData == null) {
-          setState(SearchResultsControllerState.Data(errorState(searchFailureToErrorText(searchResult))))
+          setState(SearchResultsControllerState.Data(errorState(errorText)))
           return@withContext
         }
 
-        val newDataState = prevStateData.copy(errorInfo = ErrorInfo(searchFailureToErrorText(searchResult)))
+        val newDataState = prevStateData.copy(errorInfo = ErrorInfo(errorText))
         setState(SearchResultsControllerState.Data(newDataState))
         return@withContext
       }
 
-      searchResult as SearchResult.Success
+      searchResult as FederatedSearchResult.Page
+
+      // The sources that failed are excluded from the search, the results of the rest are still shown
+      searchResult.failedSources.forEach { (failedSiteDescriptor, searchError) ->
+        logSearchError(failedSiteDescriptor, searchError)
+      }
 
-      if (searchResult.searchEntries.isEmpty()) {
+      if (searchResult.posts.isEmpty() && prevStateData == null) {
         Logger.d(TAG, "doSearch() nothing found, searchParameters = ${searchParameters}")
         setState(SearchResultsControllerState.NothingFound(searchParameters))
         return@withContext
       }
 
-      Logger.d(TAG, "doSearch() found = ${searchResult.searchEntries.size} results " +
-        "and ${searchResult.totalFoundEntries} in total")
+      Logger.d(TAG, "doSearch() found = ${searchResult.posts.size} results " +
+        "and ${searchResult.totalFoundEntries} in total, hasMore=${searchResult.hasMore}")
       val newStateData = createNewDataState(prevStateData, searchResult)
 
       setState(SearchResultsControllerState.Data(newStateData))
@@ -183,22 +194,26 @@ internal class SearchResultsPresenter(
     }
   }
 
-  private fun logSearchError(searchResult: SearchResult.Failure) {
-    when (val searchError = searchResult.searchError) {
-      SearchError.NotImplemented -> Logger.e(TAG, "NotImplemented")
-      is SearchError.SiteNotFound -> Logger.e(TAG, "$searchError")
-      is SearchError.ServerError -> Logger.e(TAG, "$searchError")
-      is SearchError.ParsingError -> Logger.e(TAG, "$searchError")
-      is SearchError.UnknownError -> Logger.e(TAG, "Unknown error", searchError.error)
-      is SearchError.FailedToSearchError -> Logger.e(TAG, "FailedToSearchError, message: ${searchError.message}")
-      is SearchError.SiteSpecificError -> Logger.e(TAG, "SiteSpecificError, message: ${searchError.message}")
+  private fun logSearchError(failedSiteDescriptor: SiteDescriptor, searchError: SearchError) {
+    val site = failedSiteDescriptor.siteName
+
+    when (searchError) {
+      SearchError.NotImplemented -> Logger.e(TAG, "$site NotImplemented")
+      is SearchError.SiteNotFound -> Logger.e(TAG, "$site $searchError")
+      is SearchError.ServerError -> Logger.e(TAG, "$site $searchError")
+      is SearchError.ParsingError -> Logger.e(TAG, "$site $searchError")
+      is SearchError.UnknownError -> Logger.e(TAG, "$site Unknown error", searchError.error)
+      is SearchError.FailedToSearchError -> Logger.e(TAG, "$site FailedToSearchError, message: ${searchError.message}")
+      is SearchError.SiteSpecificError -> Logger.e(TAG, "$site SiteSpecificError, message: ${searchError.message}")
     }
   }
 
-  private suspend fun executeRequest(): SearchResult {
+  private suspend fun executeRequest(): FederatedSearchResult {
     searchParameters.assertValid()
 
-    val requestSearchParams = when (val params = searchParameters) {
+    // Always the params of the first page, the pages of every site/archive are tracked by the federated
+    // search itself
+    val requestSearchParams: SearchParams = when (val params = searchParameters) {
       is SearchParameters.SimpleQuerySearchParameters -> {
         when (params) {
           is SearchParameters.Chan4SearchParams -> {
@@ -212,7 +227,7 @@ internal class SearchResultsPresenter(
               boardCode = boardCode,
               siteDescriptor = siteDescriptor,
               query = params.query,
-              page = currentPage
+              page = null
             )
           }
           is SearchParameters.DvachSearchParams -> {
@@ -242,7 +257,7 @@ internal class SearchResultsPresenter(
               boardDescriptor = boardDescriptor,
               query = params.query,
               subject = params.subject,
-              page = currentPage
+              page = null
             )
           }
           is SearchParameters.FoolFuukaSearchParameters -> {
@@ -254,7 +269,7 @@ internal class SearchResultsPresenter(
               boardDescriptor = boardDescriptor,
               query = params.query,
               subject = params.subject,
-              page = currentPage
+              page = null
             )
           }
           else -> throw IllegalStateException("Unknown params: ${params.javaClass.simpleName}")
@@ -262,12 +277,14 @@ internal class SearchResultsPresenter(
       }
     }.exhaustive
 
-    return globalSearchUseCase.execute(requestSearchParams)
+    return federatedSearchUseCase.execute(
+      FederatedSearchUseCase.Params(searchParams = requestSearchParams, pageIndex = currentPageIndex)
+    )
   }
 
   private fun createNewDataState(
     prevStateData: SearchResultsControllerStateData?,
-    searchResult: SearchResult.Success
+    searchResult: FederatedSearchResult.Page
   ): SearchResultsControllerStateData {
     val combinedSearchPostInfoList = prevStateData?.searchPostInfoList?.toMutableList()
       ?: mutableListOf()
@@ -278,28 +295,32 @@ internal class SearchResultsPresenter(
 
     val themeHash = themeEngine.chanTheme.hashCode()
 
-    searchResult.searchEntries.forEach { searchEntry ->
-      searchEntry.posts.forEach { searchEntryPost ->
-        if (searchEntryPost.postDescriptor in postDescriptorsSet) {
-          // 4chan can show the same post multiple times so we need to filter out duplicates to avoid
-          // crashes
-          return@forEach
-        }
-
-        combinedSearchPostInfoList += SearchPostInfo(
-          postDescriptor = searchEntryPost.postDescriptor,
-          opInfo = createHeaderInfo(searchEntryPost),
-          postInfo = createPostInfo(searchEntryPost),
-          thumbnail = createThumbnailInfo(searchEntryPost),
-          postComment = createPostComment(searchEntryPost),
-          themeHash = themeHash
-        )
+    searchResult.posts.forEach { searchEntryPost ->
+      if (searchEntryPost.postDescriptor in postDescriptorsSet) {
+        // The federated search already merges the duplicates but better safe than sorry since
+        // duplicates crash epoxy
+        return@forEach
       }
+
+      combinedSearchPostInfoList += SearchPostInfo(
+        postDescriptor = searchEntryPost.postDescriptor,
+        opInfo = createHeaderInfo(searchEntryPost),
+        postInfo = createPostInfo(searchEntryPost),
+        thumbnail = createThumbnailInfo(searchEntryPost),
+        postComment = createPostComment(searchEntryPost),
+        themeHash = themeHash
+      )
+    }
+
+    val nextPageCursor = if (searchResult.hasMore) {
+      PageCursor.Page(searchResult.pageIndex + 1)
+    } else {
+      PageCursor.End
     }
 
     return SearchResultsControllerStateData(
       searchPostInfoList = combinedSearchPostInfoList,
-      nextPageCursor = searchResult.nextPageCursor,
+      nextPageCursor = nextPageCursor,
       errorInfo = null,
       currentQueryInfo = CurrentQueryInfo(searchParameters, searchResult.totalFoundEntries)
     )
@@ -370,13 +391,23 @@ internal class SearchResultsPresenter(
     return spannedSubject
   }
 
-  private fun searchFailureToErrorText(failure: SearchResult.Failure): String {
-    return when (val searchError = failure.searchError) {
+  private fun searchFailureToErrorText(failure: FederatedSearchResult.Failure): String {
+    return failure.errors.entries.joinToString(separator = "\n") { (failedSiteDescriptor, searchError) ->
+      if (failure.errors.size == 1) {
+        return@joinToString searchErrorToText(failedSiteDescriptor, searchError)
+      }
+
+      return@joinToString "${failedSiteDescriptor.siteName}: ${searchErrorToText(failedSiteDescriptor, searchError)}"
+    }
+  }
+
+  private fun searchErrorToText(failedSiteDescriptor: SiteDescriptor, searchError: SearchError): String {
+    return when (searchError) {
       SearchError.NotImplemented -> {
         "Not implemented"
       }
       is SearchError.SiteNotFound -> {
-        "Site \"${siteDescriptor.siteName}\" was not found in the database"
+        "Site \"${failedSiteDescriptor.siteName}\" was not found in the database"
       }
       is SearchError.ServerError -> {
         "Bad response status: ${searchError.statusCode}"
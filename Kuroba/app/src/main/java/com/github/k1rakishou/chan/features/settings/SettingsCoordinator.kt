@@ -38,6 +38,7 @@ import com.github.k1rakishou.chan.features.settings.screens.MediaSettingsScreen
 import com.github.k1rakishou.chan.features.settings.screens.PluginSettingsScreen
 import com.github.k1rakishou.chan.features.settings.screens.SecuritySettingsScreen
 import com.github.k1rakishou.chan.features.settings.screens.WatcherSettingsScreen
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex
 import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadingDelegate
 import com.github.k1rakishou.chan.ui.controller.navigation.NavigationController
 import com.github.k1rakishou.chan.ui.helper.AppSettingsUpdateAppRefreshHelper
@@ -127,6 +128,8 @@ class SettingsCoordinator(
   @Inject
   lateinit var threadDownloadingDelegate: ThreadDownloadingDelegate
   @Inject
+  lateinit var threadDownloadManifestIndex: ThreadDownloadManifestIndex
+  @Inject
   lateinit var updateManager: Lazy<UpdateManager>
   @Inject
   lateinit var installMpvNativeLibrariesFromGithubUseCase: InstallMpvNativeLibrariesFromGithubUseCase
@@ -243,7 +246,8 @@ class SettingsCoordinator(
       cacheHandler,
       fileCacheV2,
       appConstants,
-      dialogFactory
+      dialogFactory,
+      threadDownloadManifestIndex
     )
   }
 
@@ -282,6 +282,7 @@ sealed class WatcherScreen(
 
     object ThreadDownloaderUpdateInterval : ThreadDownloaderGroup("thread_downloader_update_interval")
     object ThreadDownloaderDownloadMediaOnMeteredNetwork : ThreadDownloaderGroup("thread_downloader_download_media_on_metered_network")
+    object ThreadDownloaderExportHtmlInlineStylesheet : ThreadDownloaderGroup("thread_downloader_export_html_inline_stylesheet")
 
     companion object : IGroupIdentifier() {
       override fun screenIdentifier(): ScreenIdentifier = WatcherScreen.screenIdentifier()
@@ -469,6 +470,7 @@ sealed class BehaviorScreen(
     object PostLinksTakeWholeHorizSpace : PostGroup("post_links_take_whole_horiz_space")
     object MarkUnseenPosts : PostGroup("mark_unseen_posts")
     object MarkSeenThreads : PostGroup("mark_seen_threads")
+    object MergeDeletedPostsFromArchives : PostGroup("merge_deleted_posts_from_archives")
 
     companion object : IGroupIdentifier() {
       override fun screenIdentifier(): ScreenIdentifier = BehaviorScreen.screenIdentifier()
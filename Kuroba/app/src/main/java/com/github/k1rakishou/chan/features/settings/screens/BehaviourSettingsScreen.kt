@@ -180,6 +180,14 @@ class BehaviourSettingsScreen(
           requiresUiRefresh = true
         )
 
+        group += BooleanSettingV2.createBuilder(
+          context = context,
+          identifier = BehaviorScreen.PostGroup.MergeDeletedPostsFromArchives,
+          topDescriptionIdFunc = { R.string.setting_merge_deleted_posts_from_archives_title },
+          bottomDescriptionIdFunc = { R.string.setting_merge_deleted_posts_from_archives_description },
+          setting = ChanSettings.mergeDeletedPostsFromArchives
+        )
+
         group
       }
     )
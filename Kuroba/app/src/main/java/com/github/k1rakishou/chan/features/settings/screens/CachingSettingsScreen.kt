@@ -11,6 +11,7 @@ import com.github.k1rakishou.chan.features.settings.CachingScreen
 import com.github.k1rakishou.chan.features.settings.SettingsGroup
 import com.github.k1rakishou.chan.features.settings.setting.LinkSettingV2
 import com.github.k1rakishou.chan.features.settings.setting.RangeSettingV2
+import com.github.k1rakishou.chan.features.thread_downloading.ThreadDownloadManifestIndex
 import com.github.k1rakishou.chan.utils.AppModuleAndroidUtils
 import com.github.k1rakishou.chan.utils.IOUtils
 import com.github.k1rakishou.common.AppConstants
@@ -26,7 +27,8 @@ class CachingSettingsScreen(
   private val cacheHandler: Lazy<CacheHandler>,
   private val fileCacheV2: FileCacheV2,
   private val appConstants: AppConstants,
-  private val dialogFactory: DialogFactory
+  private val dialogFactory: DialogFactory,
+  private val threadDownloadManifestIndex: ThreadDownloadManifestIndex
 ) : BaseSettingsScreen(
   context,
   CachingScreen,
@@ -122,6 +124,8 @@ class CachingSettingsScreen(
                   }
                 }
 
+                threadDownloadManifestIndex.forgetAll()
+
                 AppModuleAndroidUtils.showToast(context, "Thread downloader cached cleared")
               }
             )
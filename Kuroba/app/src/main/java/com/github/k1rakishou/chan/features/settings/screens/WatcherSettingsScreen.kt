@@ -93,6 +93,14 @@ class WatcherSettingsScreen(
           setting = ChanSettings.threadDownloaderDownloadMediaOnMeteredNetwork
         )
 
+        group += BooleanSettingV2.createBuilder(
+          context = context,
+          identifier = WatcherScreen.ThreadDownloaderGroup.ThreadDownloaderExportHtmlInlineStylesheet,
+          topDescriptionIdFunc = { R.string.setting_thread_downloader_export_html_inline_stylesheet },
+          bottomDescriptionIdFunc = { R.string.setting_thread_downloader_export_html_inline_stylesheet_description },
+          setting = ChanSettings.threadDownloaderExportHtmlInlineStylesheet
+        )
+
         group
       }
     )
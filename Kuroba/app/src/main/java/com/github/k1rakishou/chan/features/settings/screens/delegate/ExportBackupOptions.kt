@@ -2,4 +2,5 @@ package com.github.k1rakishou.chan.features.settings.screens.delegate
 
 data class ExportBackupOptions(
   val exportDownloadedThreadsMedia: Boolean = false,
+  val incrementalBackup: Boolean = false,
 )
\ No newline at end of file
@@ -5,6 +5,7 @@ import android.net.Uri
 import android.widget.Toast
 import com.github.k1rakishou.chan.BuildConfig
 import com.github.k1rakishou.chan.R
+import com.github.k1rakishou.chan.core.backup.BackupGenerationsRestorer
 import com.github.k1rakishou.chan.core.helper.AppRestarter
 import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.repository.ImportExportRepository
@@ -20,6 +21,7 @@ import com.github.k1rakishou.fsaf.FileChooser
 import com.github.k1rakishou.fsaf.FileManager
 import com.github.k1rakishou.fsaf.callback.FileChooserCallback
 import com.github.k1rakishou.fsaf.callback.FileCreateCallback
+import com.github.k1rakishou.fsaf.file.ExternalFile
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
@@ -148,19 +150,30 @@ class ImportExportSettingsDelegate(
       return
     }
 
+    importBackup(externalFile, emptyList())
+  }
+
+  private fun importBackup(backupFile: ExternalFile, previousGenerationFiles: List<ExternalFile>) {
     coroutineScope.launch {
       navigationController.presentController(loadingViewController)
 
       val result = withContext(Dispatchers.Default) {
-        importExportRepository.importFrom(externalFile)
+        importExportRepository.importFrom(backupFile, previousGenerationFiles)
       }
 
       loadingViewController.stopPresenting()
 
       when (result) {
         is ModularResult.Error -> {
-          Logger.e(TAG, "Import error", result.error)
-          showToast(context, getString(R.string.import_export_backup_import_error, result.error))
+          val error = result.error
+          if (error is BackupGenerationsRestorer.MissingBackupGenerationsException) {
+            Logger.d(TAG, "Import requires previous generations: ${error.missingGenerations}")
+            requestPreviousGeneration(backupFile, previousGenerationFiles, error.missingGenerations.size)
+            return@launch
+          }
+
+          Logger.e(TAG, "Import error", error)
+          showToast(context, getString(R.string.import_export_backup_import_error, error))
         }
         is ModularResult.Value -> {
           dialogFactory.createSimpleInformationDialog(
@@ -174,6 +187,43 @@ class ImportExportSettingsDelegate(
     }
   }
 
+  private fun requestPreviousGeneration(
+    backupFile: ExternalFile,
+    previousGenerationFiles: List<ExternalFile>,
+    missingGenerationsCount: Int
+  ) {
+    // SAF doesn't let us look for the previous backups next to the selected one so we have to ask
+    // the user to select them one by one.
+    dialogFactory.createSimpleConfirmationDialog(
+      context = context,
+      titleText = getString(R.string.import_export_backup_import_previous_generations_required),
+      descriptionText = getString(
+        R.string.import_export_backup_import_previous_generations_required_description,
+        missingGenerationsCount
+      ),
+      positiveButtonText = getString(R.string.import_export_backup_import_select_previous_generation),
+      onPositiveButtonClickListener = {
+        fileChooser.openChooseFileDialog(object : FileChooserCallback() {
+          override fun onResult(uri: Uri) {
+            val previousGenerationFile = fileManager.fromUri(uri)
+            if (previousGenerationFile == null) {
+              val message = "requestPreviousGeneration() fileManager.fromUri() returned null, uri = $uri"
+              Logger.d(TAG, message)
+              showToast(context, message, Toast.LENGTH_LONG)
+              return
+            }
+
+            importBackup(backupFile, previousGenerationFiles + previousGenerationFile)
+          }
+
+          override fun onCancel(reason: String) {
+            showToast(context, reason, Toast.LENGTH_LONG)
+          }
+        })
+      }
+    )
+  }
+
   private fun onImportFromKurobaFileChosen(uri: Uri) {
     val externalFile = fileManager.fromUri(uri)
     if (externalFile == null) {
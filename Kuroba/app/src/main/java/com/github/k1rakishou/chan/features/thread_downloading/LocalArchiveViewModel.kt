@@ -5,6 +5,7 @@ import androidx.compose.runtime.Composable
 import androidx.compose.runtime.MutableState
 import androidx.compose.runtime.State
 import androidx.compose.runtime.mutableStateOf
+import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.core.base.BaseViewModel
 import com.github.k1rakishou.chan.core.base.DebouncingCoroutineExecutor
@@ -416,6 +417,7 @@ class LocalArchiveViewModel : BaseViewModel() {
         val ownerThreadDatabaseId = threadDownloadView.ownerThreadDatabaseId
 
         val files = directory.listFiles()
+          ?.filter { file -> !file.name.startsWith(ThreadDownloadManifestIndex.MANIFEST_FILE_NAME) }
         val filesTotalSize = files?.sumOf { file -> file.length() } ?: 0L
         val mediaCount = files?.size?.div(2) ?: 0
 
@@ -485,7 +487,12 @@ class LocalArchiveViewModel : BaseViewModel() {
     threadDescriptors: List<ChanDescriptor.ThreadDescriptor>,
     onUpdate: (Int, Int) -> Unit
   ): ModularResult<Unit> {
-    val params = ExportDownloadedThreadAsHtmlUseCase.Params(outputDirUri, threadDescriptors, onUpdate)
+    val params = ExportDownloadedThreadAsHtmlUseCase.Params(
+      outputDirUri = outputDirUri,
+      threadDescriptors = threadDescriptors,
+      inlineStylesheet = ChanSettings.threadDownloaderExportHtmlInlineStylesheet.get(),
+      onUpdate = onUpdate
+    )
     return exportDownloadedThreadAsHtmlUseCase.execute(params)
       .peekError { error -> Logger.e(TAG, "exportThreadsAsHtml() error", error) }
   }
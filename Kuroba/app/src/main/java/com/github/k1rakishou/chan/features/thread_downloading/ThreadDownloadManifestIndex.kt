@@ -0,0 +1,344 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.common.extractFileName
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import okhttp3.HttpUrl
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * An in-memory index of the media downloaded by [ThreadDownloadingDelegate] so that looking up a
+ * downloaded thumbnail/image does not have to probe the thread directory every time.
+ *
+ * Every thread directory contains a manifest file: an append-only log with one line per media file
+ * that was fully downloaded (file name, size, MD5 and the media url). A line is only appended once the
+ * file is completely written so a file that is present in the directory but not in the manifest is a
+ * leftover of an interrupted download (the app was killed etc.) and is never returned by [findFile]. The
+ * manifest of a thread is loaded the first time the thread is looked up and then checked against the
+ * directory in the background ([reconcile]) to drop the files that were deleted since. Directories
+ * created before the manifest existed have all their non-empty files adopted, the same files the
+ * directory probe used to find.
+ * */
+class ThreadDownloadManifestIndex(
+  private val appScope: CoroutineScope,
+  private val threadDownloaderCacheDirProvider: () -> File
+) {
+  private val threadManifests = ConcurrentHashMap<ChanDescriptor.ThreadDescriptor, ThreadManifest>()
+
+  fun isLoaded(threadDescriptor: ChanDescriptor.ThreadDescriptor): Boolean {
+    return threadManifests[threadDescriptor]?.loaded == true
+  }
+
+  /**
+   * Blocking if the manifest of [threadDescriptor] is not loaded yet (see [isLoaded]), lock-free
+   * otherwise.
+   * */
+  fun findFile(threadDescriptor: ChanDescriptor.ThreadDescriptor, mediaUrl: HttpUrl): File? {
+    val fileName = mediaUrl.extractFileName()
+      ?: return null
+
+    val threadManifest = getOrLoad(threadDescriptor)
+    val manifestEntry = threadManifest.entries[fileName]
+      ?: return null
+
+    return File(threadManifest.directory, manifestEntry.fileName)
+  }
+
+  /**
+   * Blocking. Same as [findFile] but by the name of the file in the thread directory.
+   * */
+  fun findEntry(threadDescriptor: ChanDescriptor.ThreadDescriptor, fileName: String): ManifestEntry? {
+    return getOrLoad(threadDescriptor).entries[fileName]
+  }
+
+  /**
+   * Blocking. Must only be called once the file [fileName] is completely written.
+   * */
+  fun onMediaDownloaded(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    mediaUrl: HttpUrl,
+    fileName: String,
+    fileSize: Long,
+    fileMd5: String
+  ) {
+    val threadManifest = getOrLoad(threadDescriptor)
+
+    val manifestEntry = ManifestEntry(
+      fileName = fileName,
+      fileSize = fileSize,
+      fileMd5 = fileMd5,
+      mediaUrl = mediaUrl.toString()
+    )
+
+    synchronized(threadManifest) {
+      // If the line can't be written the file will be downloaded again after the app restart
+      appendEntry(threadManifest, manifestEntry)
+      threadManifest.entries[fileName] = manifestEntry
+    }
+  }
+
+  /**
+   * Blocking. Drops the entries whose files were deleted or have a different size than the downloaded
+   * one and compacts the manifest. Returns the count of dropped entries.
+   * */
+  fun reconcile(threadDescriptor: ChanDescriptor.ThreadDescriptor): Int {
+    val threadManifest = threadManifests[threadDescriptor]
+      ?: return 0
+
+    if (!threadManifest.loaded) {
+      return 0
+    }
+
+    synchronized(threadManifest) {
+      val fileSizes = (threadManifest.directory.listFiles() ?: emptyArray())
+        .associate { file -> file.name to file.length() }
+
+      val staleEntries = threadManifest.entries.values
+        .filter { manifestEntry -> fileSizes[manifestEntry.fileName] != manifestEntry.fileSize }
+
+      staleEntries.forEach { manifestEntry ->
+        threadManifest.entries.remove(manifestEntry.fileName, manifestEntry)
+      }
+
+      if (staleEntries.isNotEmpty() || threadManifest.manifestLines > threadManifest.entries.size) {
+        rewriteManifest(threadManifest)
+      }
+
+      return staleEntries.size
+    }
+  }
+
+  /**
+   * The thread directory was deleted.
+   * */
+  fun forget(threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    threadManifests.remove(threadDescriptor)
+  }
+
+  /**
+   * The thread downloader cache directory was cleared or overwritten (backup restore).
+   * */
+  fun forgetAll() {
+    threadManifests.clear()
+  }
+
+  private fun getOrLoad(threadDescriptor: ChanDescriptor.ThreadDescriptor): ThreadManifest {
+    val threadManifest = threadManifests.getOrPut(threadDescriptor) {
+      val directoryName = ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor)
+      ThreadManifest(File(threadDownloaderCacheDirProvider(), directoryName))
+    }
+
+    if (threadManifest.loaded) {
+      return threadManifest
+    }
+
+    val reconcileNeeded = synchronized(threadManifest) {
+      if (threadManifest.loaded) {
+        return threadManifest
+      }
+
+      val manifestLoaded = load(threadManifest)
+      threadManifest.loaded = true
+
+      return@synchronized manifestLoaded
+    }
+
+    if (reconcileNeeded) {
+      appScope.launch(Dispatchers.IO) { reconcile(threadDescriptor) }
+    }
+
+    return threadManifest
+  }
+
+  /**
+   * Returns true if the manifest was loaded from disk and false if the directory had to be scanned
+   * (there was no manifest yet) in which case there is nothing to reconcile.
+   * */
+  private fun load(threadManifest: ThreadManifest): Boolean {
+    val manifestFile = File(threadManifest.directory, MANIFEST_FILE_NAME)
+
+    if (!manifestFile.exists()) {
+      adoptDirectoryFiles(threadManifest)
+      return false
+    }
+
+    var manifestLines = 0
+    var hasBrokenLines = false
+
+    try {
+      manifestFile.forEachLine(Charsets.UTF_8) { line ->
+        val manifestEntry = parseEntry(line)
+        if (manifestEntry == null) {
+          // The last line is cut off if the app was killed while it was being appended
+          hasBrokenLines = true
+          return@forEachLine
+        }
+
+        ++manifestLines
+        threadManifest.entries[manifestEntry.fileName] = manifestEntry
+      }
+
+      if (!endsWithNewLine(manifestFile)) {
+        hasBrokenLines = true
+      }
+    } catch (error: IOException) {
+      hasBrokenLines = true
+    }
+
+    threadManifest.manifestLines = manifestLines
+
+    if (hasBrokenLines) {
+      // New lines must not be appended to a broken one
+      rewriteManifest(threadManifest)
+    }
+
+    return true
+  }
+
+  private fun endsWithNewLine(file: File): Boolean {
+    RandomAccessFile(file, "r").use { randomAccessFile ->
+      if (randomAccessFile.length() == 0L) {
+        return true
+      }
+
+      randomAccessFile.seek(randomAccessFile.length() - 1)
+      return randomAccessFile.read() == '\n'.code
+    }
+  }
+
+  private fun adoptDirectoryFiles(threadManifest: ThreadManifest) {
+    val files = threadManifest.directory.listFiles()
+      ?: return
+
+    files.forEach { file ->
+      if (file.name.startsWith(".") || !file.isFile) {
+        return@forEach
+      }
+
+      val fileSize = file.length()
+      if (fileSize <= 0L) {
+        return@forEach
+      }
+
+      threadManifest.entries[file.name] = ManifestEntry(
+        fileName = file.name,
+        fileSize = fileSize,
+        fileMd5 = null,
+        mediaUrl = null
+      )
+    }
+
+    rewriteManifest(threadManifest)
+  }
+
+  private fun appendEntry(threadManifest: ThreadManifest, manifestEntry: ManifestEntry) {
+    val manifestFile = File(threadManifest.directory, MANIFEST_FILE_NAME)
+
+    try {
+      FileOutputStream(manifestFile, true).use { outputStream ->
+        outputStream.write(formatEntry(manifestEntry).toByteArray(Charsets.UTF_8))
+      }
+
+      ++threadManifest.manifestLines
+    } catch (error: IOException) {
+      // Ignored, the file is treated as not downloaded after the restart
+    }
+  }
+
+  private fun rewriteManifest(threadManifest: ThreadManifest) {
+    if (!threadManifest.directory.exists()) {
+      return
+    }
+
+    val manifestFile = File(threadManifest.directory, MANIFEST_FILE_NAME)
+    val tempManifestFile = File(threadManifest.directory, MANIFEST_TEMP_FILE_NAME)
+    val manifestEntries = threadManifest.entries.values.toList()
+
+    try {
+      tempManifestFile.outputStream().bufferedWriter(Charsets.UTF_8).use { writer ->
+        manifestEntries.forEach { manifestEntry -> writer.write(formatEntry(manifestEntry)) }
+      }
+
+      if (!tempManifestFile.renameTo(manifestFile)) {
+        tempManifestFile.delete()
+        return
+      }
+
+      threadManifest.manifestLines = manifestEntries.size
+    } catch (error: IOException) {
+      tempManifestFile.delete()
+    }
+  }
+
+  private fun formatEntry(manifestEntry: ManifestEntry): String {
+    return buildString {
+      append(manifestEntry.fileName)
+      append(SEPARATOR)
+      append(manifestEntry.fileSize)
+      append(SEPARATOR)
+      append(manifestEntry.fileMd5 ?: "")
+      append(SEPARATOR)
+      append(manifestEntry.mediaUrl ?: "")
+      append(SEPARATOR)
+      append(LINE_END_MARKER)
+      append('\n')
+    }
+  }
+
+  private fun parseEntry(line: String): ManifestEntry? {
+    val parts = line.split(SEPARATOR)
+    if (parts.size != 5 || parts[4] != LINE_END_MARKER) {
+      return null
+    }
+
+    val fileName = parts[0]
+    val fileSize = parts[1].toLongOrNull()
+
+    if (fileName.isEmpty() || fileSize == null || fileSize <= 0L) {
+      return null
+    }
+
+    return ManifestEntry(
+      fileName = fileName,
+      fileSize = fileSize,
+      fileMd5 = parts[2].takeIf { fileMd5 -> fileMd5.isNotEmpty() },
+      mediaUrl = parts[3].takeIf { mediaUrl -> mediaUrl.isNotEmpty() }
+    )
+  }
+
+  data class ManifestEntry(
+    val fileName: String,
+    val fileSize: Long,
+    /** Null for the files that were downloaded before the manifest existed. */
+    val fileMd5: String?,
+    /** Null for the files that were downloaded before the manifest existed. */
+    val mediaUrl: String?
+  )
+
+  private class ThreadManifest(val directory: File) {
+    val entries = ConcurrentHashMap<String, ManifestEntry>()
+
+    @Volatile
+    var loaded = false
+
+    @GuardedBy("this")
+    var manifestLines = 0
+  }
+
+  companion object {
+    const val MANIFEST_FILE_NAME = ".manifest"
+    private const val MANIFEST_TEMP_FILE_NAME = ".manifest.tmp"
+
+    private const val SEPARATOR = '\t'
+    // A line that was cut off while being written must not be parsed as a shorter valid line
+    private const val LINE_END_MARKER = "$"
+  }
+
+}
@@ -39,6 +39,9 @@ import okhttp3.HttpUrl
 import okhttp3.OkHttpClient
 import okhttp3.Request
 import okhttp3.internal.closeQuietly
+import okio.ByteString.Companion.toByteString
+import java.security.DigestInputStream
+import java.security.MessageDigest
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.coroutines.coroutineContext
 import kotlin.time.ExperimentalTime
@@ -54,7 +57,8 @@ class ThreadDownloadingDelegate(
   private val chanPostImageRepository: ChanPostImageRepository,
   private val threadDownloaderFileManagerWrapper: ThreadDownloaderFileManagerWrapper,
   private val threadDownloadProgressNotifier: ThreadDownloadProgressNotifier,
-  private val threadDownloaderPersistPostsInDatabaseUseCase: ThreadDownloaderPersistPostsInDatabaseUseCase
+  private val threadDownloaderPersistPostsInDatabaseUseCase: ThreadDownloaderPersistPostsInDatabaseUseCase,
+  private val threadDownloadManifestIndex: ThreadDownloadManifestIndex
 ) {
   private val fileManager: FileManager
     get() = threadDownloaderFileManagerWrapper.fileManager
@@ -317,6 +321,7 @@ class ThreadDownloadingDelegate(
 
       if (thumbnailUrl != null && thumbnailName.isNotNullNorEmpty()) {
         downloadImage(
+          threadDescriptor = threadDescriptor,
           outputDirectory = outputDirectory,
           isThumbnail = true,
           name = thumbnailName,
@@ -340,6 +345,7 @@ class ThreadDownloadingDelegate(
 
       if (fullImageUrl != null && fullImageName.isNotNullNorEmpty()) {
         downloadImage(
+          threadDescriptor = threadDescriptor,
           outputDirectory = outputDirectory,
           isThumbnail = false,
           name = fullImageName,
@@ -363,6 +369,7 @@ class ThreadDownloadingDelegate(
   }
 
   private suspend fun downloadImage(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
     outputDirectory: AbstractFile,
     isThumbnail: Boolean,
     name: String,
@@ -370,7 +377,16 @@ class ThreadDownloadingDelegate(
     outOfDiskSpaceError: AtomicBoolean,
     outputDirError: AtomicBoolean,
   ) {
+    // Only the files from the manifest are fully downloaded, the rest are leftovers of interrupted
+    // downloads which are overwritten.
+    val manifestEntry = threadDownloadManifestIndex.findEntry(threadDescriptor, name)
     var outputFile = fileManager.findFile(outputDirectory, name)
+
+    if (manifestEntry != null && outputFile != null && fileManager.getLength(outputFile) == manifestEntry.fileSize) {
+      // Already downloaded, nothing to do
+      return
+    }
+
     if (outputFile == null) {
       outputFile = fileManager.create(outputDirectory, listOf(FileSegment(name)))
     }
@@ -380,11 +396,6 @@ class ThreadDownloadingDelegate(
       return
     }
 
-    if (fileManager.exists(outputFile) && fileManager.getLength(outputFile) > 0L) {
-      // Already downloaded, nothing to do
-      return
-    }
-
     val site = siteResolver.findSiteForUrl(imageUrl.toString())
     val requestModifier = site?.requestModifier()
 
@@ -423,13 +434,25 @@ class ThreadDownloadingDelegate(
         return
       }
 
-      runInterruptible {
-        responseBody.byteStream().use { inputStream ->
+      val messageDigest = MessageDigest.getInstance("MD5")
+
+      val fileSize = runInterruptible {
+        DigestInputStream(responseBody.byteStream(), messageDigest).use { inputStream ->
           outputStream.use { os ->
             inputStream.copyTo(os)
           }
         }
       }
+
+      if (fileSize > 0L) {
+        threadDownloadManifestIndex.onMediaDownloaded(
+          threadDescriptor = threadDescriptor,
+          mediaUrl = imageUrl,
+          fileName = name,
+          fileSize = fileSize,
+          fileMd5 = messageDigest.digest().toByteString().hex()
+        )
+      }
     } catch (error: Throwable) {
       if (error.isOutOfDiskSpaceError()) {
         outOfDiskSpaceError.set(true)
@@ -0,0 +1,262 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.common.extractFileName
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.util.ChanPostUtils
+import org.joda.time.DateTimeZone
+import org.joda.time.format.DateTimeFormatter
+import org.joda.time.format.DateTimeFormatterBuilder
+import org.joda.time.format.ISODateTimeFormat
+import java.io.Reader
+import java.io.Writer
+import java.util.*
+import java.util.regex.Pattern
+
+/**
+ * Renders a downloaded thread as html directly into [writer] one post at a time so that the whole
+ * document (or even a single post) never has to be built in memory. The templates are parsed once,
+ * rendering a post only writes the template literals and parameter values one after another.
+ *
+ * Usage: [writeStart], then [writePost] for every post (the OP first), then [writeEnd].
+ * */
+class ThreadHtmlWriter(
+  private val writer: Writer,
+  private val stylesheet: Stylesheet,
+  private val dateTimePrinter: DateTimeFormatter = DATE_TIME_PRINTER
+) {
+
+  fun writeStart() {
+    HTML_START.write(writer) { templateParam ->
+      when (templateParam) {
+        "STYLESHEET" -> writeStylesheet()
+        else -> error("Unknown template parameter: ${templateParam}")
+      }
+    }
+  }
+
+  fun writePost(chanPost: ChanPost) {
+    val template = if (chanPost is ChanOriginalPost) {
+      OP_POST
+    } else {
+      REGULAR_POST
+    }
+
+    template.write(writer) { templateParam ->
+      when (templateParam) {
+        "POST_NO" -> writer.write(chanPost.postDescriptor.postNo.toString())
+        "ORIGINAL_POST_FILES",
+        "REGULAR_POST_FILES" -> writePostFiles(chanPost)
+        "THREAD_SUBJECT" -> chanPost.subject?.let { subject -> writer.append(subject) }
+        "POSTER_NAME" -> chanPost.tripcode?.let { tripcode -> writer.append(tripcode) }
+        "DATE_TIME_FORMATTED" -> dateTimePrinter.printTo(writer, chanPost.timestamp * 1000L)
+        "POST_COMMENT" -> chanPost.postComment.originalUnparsedComment?.let { comment -> writer.write(comment) }
+        else -> error("Unknown template parameter: ${templateParam}")
+      }
+    }
+  }
+
+  fun writeEnd() {
+    HTML_END.write(writer) { templateParam -> error("Unknown template parameter: ${templateParam}") }
+    writer.flush()
+  }
+
+  private fun writeStylesheet() {
+    when (stylesheet) {
+      is Stylesheet.Linked -> {
+        writer.write("<link rel=\"stylesheet\" title=\"switch\" href=\"")
+        writer.write(stylesheet.fileName)
+        writer.write("\">")
+      }
+      is Stylesheet.Inlined -> {
+        writer.write("<style>\n")
+        stylesheet.openReader().use { reader -> reader.copyTo(writer) }
+        writer.write("\n</style>")
+      }
+    }
+  }
+
+  private fun writePostFiles(chanPost: ChanPost) {
+    if (chanPost.postImages.isEmpty()) {
+      return
+    }
+
+    val template = if (chanPost is ChanOriginalPost) {
+      ORIGINAL_POST_FILE
+    } else {
+      REGULAR_POST_FILE
+    }
+
+    writer.write("<div class=\"files_container\">")
+
+    chanPost.iteratePostImages { chanPostImage ->
+      template.write(writer) { templateParam ->
+        when (templateParam) {
+          "POST_NO" -> writer.write(chanPost.postDescriptor.postNo.toString())
+          "FILE_NAME_WEIGHT_DIMENS" -> writeFileNameWeightDimens(chanPostImage)
+          "FULL_IMAGE_NAME" -> writer.write(chanPostImage.imageUrl?.extractFileName() ?: "")
+          "THUMBNAIL_NAME" -> writer.write(chanPostImage.actualThumbnailUrl?.extractFileName() ?: "")
+          "FILE_WEIGHT" -> writer.write(ChanPostUtils.getReadableFileSize(chanPostImage.size))
+          else -> error("Unknown template parameter: ${templateParam}")
+        }
+      }
+    }
+
+    writer.write("</div>")
+  }
+
+  private fun writeFileNameWeightDimens(chanPostImage: ChanPostImage) {
+    writer.write(chanPostImage.formatFullOriginalFileName() ?: "")
+    writer.write(", ")
+    writer.write(ChanPostUtils.getReadableFileSize(chanPostImage.size))
+    writer.write(", ")
+    writer.write(chanPostImage.imageWidth.toString())
+    writer.write("x")
+    writer.write(chanPostImage.imageHeight.toString())
+  }
+
+  sealed class Stylesheet {
+    /**
+     * The stylesheet is stored next to the html file.
+     * */
+    data class Linked(val fileName: String) : Stylesheet()
+
+    /**
+     * The stylesheet is embedded into the html file so that it can be opened on its own.
+     * */
+    class Inlined(val openReader: () -> Reader) : Stylesheet()
+  }
+
+  /**
+   * A template split into literals and parameters (`{{PARAM_NAME}}`) once.
+   * */
+  class CompiledTemplate private constructor(
+    private val literals: List<String>,
+    private val parameters: List<String>
+  ) {
+
+    fun write(writer: Writer, writeParameter: (String) -> Unit) {
+      for (index in parameters.indices) {
+        writer.write(literals[index])
+        writeParameter(parameters[index])
+      }
+
+      writer.write(literals.last())
+    }
+
+    companion object {
+      private val TEMPLATE_PARAMETER_PATTERN = Pattern.compile("\\{\\{(\\w+)\\}\\}")
+
+      fun compile(template: String): CompiledTemplate {
+        val literals = mutableListOf<String>()
+        val parameters = mutableListOf<String>()
+        val matcher = TEMPLATE_PARAMETER_PATTERN.matcher(template)
+
+        var offset = 0
+
+        while (matcher.find()) {
+          literals += template.substring(offset, matcher.start(0))
+          parameters += matcher.group(1)!!
+          offset = matcher.end(0)
+        }
+
+        literals += template.substring(offset, template.length)
+        return CompiledTemplate(literals, parameters)
+      }
+    }
+  }
+
+  companion object {
+    const val STYLESHEET_FILE_NAME = "tomorrow.css"
+
+    private val DATE_TIME_PRINTER = DateTimeFormatterBuilder()
+      .append(ISODateTimeFormat.date())
+      .appendLiteral(' ')
+      .append(ISODateTimeFormat.hourMinuteSecond())
+      .toFormatter()
+      .withZone(DateTimeZone.forTimeZone(TimeZone.getDefault()))
+
+    private const val HTML_TEMPLATE_START = """
+<!DOCTYPE html>
+<head>
+   {{STYLESHEET}}
+   <meta charset="utf-8">
+<body class="is_thread">
+   <form name="delform" id="delform">
+      <div class="board">
+         <div class="thread">
+    """
+
+    private const val HTML_TEMPLATE_END = """
+         </div>
+         <hr>
+      </div>
+   </form>
+</body>
+</head>
+    """
+
+    private const val OP_POST_TEMPLATE = """
+            <div class="postContainer opContainer" id="pc{{POST_NO}}">
+              <div id="p{{POST_NO}}" class="post op">
+                {{ORIGINAL_POST_FILES}}
+                  <div class="postInfo desktop" id="pi{{POST_NO}}">
+                    <span class="subject">{{THREAD_SUBJECT}}</span> 
+                    <span class="nameBlock">
+                      <span class="name">{{POSTER_NAME}}</span> 
+                    </span> 
+                    <span class="dateTime">{{DATE_TIME_FORMATTED}} No. {{POST_NO}}</span> 
+                  </div>
+                  <blockquote class="postMessage" id="m{{POST_NO}}">{{POST_COMMENT}}</blockquote>
+               </div>
+            </div>
+    """
+
+    private const val REGULAR_POST_TEMPLATE = """
+            <div class="postContainer replyContainer" id="pc{{POST_NO}}">
+               <div id="p{{POST_NO}}" class="post reply">
+                  <div class="postInfo desktop" id="pi{{POST_NO}}">
+                    <span class="nameBlock">
+                      <span class="name">{{POSTER_NAME}}</span>
+                    </span> 
+                    <span class="dateTime">{{DATE_TIME_FORMATTED}} No. {{POST_NO}}</span> 
+                  </div>
+                  {{REGULAR_POST_FILES}}
+                  <blockquote class="postMessage" id="m{{POST_NO}}">{{POST_COMMENT}}</blockquote>
+               </div>
+            </div>
+    """
+
+    private const val ORIGINAL_POST_FILE_TEMPLATE = """
+                <div class="files_container">
+                  <div class="file" id="f{{POST_NO}}">
+                     <div class="fileText" id="fT{{POST_NO}}">File: 
+                      <a href="{{FULL_IMAGE_NAME}}" target="_blank">{{FILE_NAME_WEIGHT_DIMENS}}</a>
+                  </div>
+                     <a class="fileThumb" href="{{FULL_IMAGE_NAME}}" target="_blank">
+                        <img src="{{THUMBNAIL_NAME}}" alt="{{FILE_WEIGHT}}" style="height: 200px; width: 250px;" loading="lazy">
+                     </a>
+                  </div>
+                </div>
+    """
+
+    private const val REGULAR_POST_FILE_TEMPLATE = """
+                <div class="file" id="f{{POST_NO}}">
+                  <div class="fileText" id="fT{{POST_NO}}">File:
+                    <a href="{{FULL_IMAGE_NAME}}" target="_blank">{{FILE_NAME_WEIGHT_DIMENS}}</a>
+                  </div>
+                  <a class="fileThumb" href="{{FULL_IMAGE_NAME}}" target="_blank">
+                    <img src="{{THUMBNAIL_NAME}}" alt="{{FILE_WEIGHT}}" style="height: 120px; width: 125px;" loading="lazy">
+                  </a>
+                </div>
+    """
+
+    private val HTML_START = CompiledTemplate.compile(HTML_TEMPLATE_START)
+    private val HTML_END = CompiledTemplate.compile(HTML_TEMPLATE_END)
+    private val OP_POST = CompiledTemplate.compile(OP_POST_TEMPLATE)
+    private val REGULAR_POST = CompiledTemplate.compile(REGULAR_POST_TEMPLATE)
+    private val ORIGINAL_POST_FILE = CompiledTemplate.compile(ORIGINAL_POST_FILE_TEMPLATE)
+    private val REGULAR_POST_FILE = CompiledTemplate.compile(REGULAR_POST_FILE_TEMPLATE)
+  }
+}
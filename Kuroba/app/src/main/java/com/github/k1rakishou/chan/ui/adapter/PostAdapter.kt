@@ -333,7 +333,7 @@ class PostAdapter(
   ) {
     BackgroundUtils.ensureMainThread()
 
-    threadCellData.updateThreadData(
+    val diffResult = threadCellData.updateThreadData(
       postCellCallback = postCellCallback,
       chanDescriptor = chanDescriptor,
       postIndexedList = postIndexedList,
@@ -348,9 +348,14 @@ class PostAdapter(
       )
     }
 
-    notifyDataSetChanged()
+    if (diffResult == null) {
+      notifyDataSetChanged()
+      Logger.d(TAG, "setThread() notifyDataSetChanged called, postIndexedList.size=" + postIndexedList.size)
+      return
+    }
 
-    Logger.d(TAG, "setThread() notifyDataSetChanged called, postIndexedList.size=" + postIndexedList.size)
+    diffResult.dispatchUpdatesTo(this)
+    Logger.d(TAG, "setThread() dispatched the diff updates, postIndexedList.size=" + postIndexedList.size)
   }
 
   fun cleanup() {
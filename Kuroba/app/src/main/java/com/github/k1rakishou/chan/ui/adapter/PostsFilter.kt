@@ -107,6 +107,28 @@ class PostsFilter(
       }
     }
 
+    /**
+     * Comparator used to merge the catalogs of a composite catalog together. There is no bump order
+     * across different boards so the last modification time of a thread (when it was last bumped on
+     * most sites) is used instead. Threads with equal last modification time (e.g. when the site
+     * doesn't provide it) end up interleaved.
+     * */
+    fun compositeCatalogMergeComparator(order: Order): Comparator<ChanOriginalPost> {
+      return when (order) {
+        Order.IMAGE -> IMAGE_COMPARATOR
+        Order.REPLY -> REPLY_COMPARATOR
+        Order.NEWEST -> NEWEST_COMPARATOR
+        Order.OLDEST -> OLDEST_COMPARATOR
+        Order.ACTIVITY -> THREAD_ACTIVITY_COMPARATOR
+        Order.MODIFIED,
+        Order.BUMP -> LAST_MODIFIED_COMPARATOR
+      }
+    }
+
+    private val LAST_MODIFIED_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
+      rhs.lastModified.compareTo(lhs.lastModified)
+    }
+
     private val IMAGE_COMPARATOR = Comparator<ChanOriginalPost> { lhs, rhs ->
       rhs.catalogImagesCount - lhs.catalogImagesCount
     }
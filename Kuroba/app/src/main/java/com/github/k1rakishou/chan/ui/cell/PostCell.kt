@@ -655,7 +655,7 @@ class PostCell @JvmOverloads constructor(
 
   private fun bindPostTitle(pcd: PostCellData) {
     if (::title.isInitialized) {
-      title.setText(pcd.postTitle, TextView.BufferType.SPANNABLE)
+      setPostText(pcd, PostTextLayoutCache.TextKind.Title, title, pcd.postTitle)
     }
   }
 
@@ -921,7 +921,7 @@ class PostCell @JvmOverloads constructor(
   @SuppressLint("ClickableViewAccessibility")
   private fun bindPostContent(postCellData: PostCellData) {
     val theme = postCellData.theme
-    comment.setText(postCellData.commentText, TextView.BufferType.SPANNABLE)
+    setPostText(postCellData, PostTextLayoutCache.TextKind.Comment, comment, postCellData.commentText)
 
     if (postCellData.isSelectionMode) {
       comment.customSelectionActionModeCallback = null
@@ -967,6 +967,21 @@ class PostCell @JvmOverloads constructor(
     comment.setEditTextCursorColor(theme)
   }
 
+  private fun setPostText(
+    postCellData: PostCellData,
+    textKind: PostTextLayoutCache.TextKind,
+    textView: TextView,
+    text: CharSequence
+  ) {
+    val postCellTextLayouts = postCellData.postCellTextLayouts
+    if (postCellTextLayouts == null) {
+      textView.setText(text, TextView.BufferType.SPANNABLE)
+      return
+    }
+
+    postCellTextLayouts.setText(postCellData, textKind, textView, text)
+  }
+
   private fun setPostLinkableListener(postCellData: PostCellData, bind: Boolean) {
     val postComment = postCellData.fullPostComment
     if (postComment !is Spanned) {
@@ -44,8 +44,8 @@ import java.util.*
 
 data class PostCellData(
   val chanDescriptor: ChanDescriptor,
-  val post: ChanPost,
-  val postImages: List<ChanPostImage>,
+  var post: ChanPost,
+  var postImages: List<ChanPostImage>,
   val postIndex: Int,
   val postCellDataWidthNoPaddings: Int,
   val textSizeSp: Int,
@@ -54,7 +54,7 @@ data class PostCellData(
   var showDivider: Boolean,
   var boardPostViewMode: ChanSettings.BoardPostViewMode,
   val boardPostsSortOrder: PostsFilter.Order,
-  val boardPage: BoardPage?,
+  var boardPage: BoardPage?,
   val neverShowPages: Boolean,
   val tapNoReply: Boolean,
   val postFullDate: Boolean,
@@ -67,7 +67,7 @@ data class PostCellData(
   val markUnseenPosts: Boolean,
   val markSeenThreads: Boolean,
   var compact: Boolean,
-  val postHideMap: Map<PostDescriptor, ChanPostHide>,
+  var postHideMap: Map<PostDescriptor, ChanPostHide>,
   val theme: ChanTheme,
   val postViewMode: PostViewMode,
   val searchQuery: SearchQuery,
@@ -80,6 +80,7 @@ data class PostCellData(
   val isSplitLayout: Boolean
 ) {
   var postCellCallback: PostCellInterface.PostCellCallback? = null
+  var postCellTextLayouts: PostCellTextLayouts? = null
 
   private var postTitleStubPrecalculated: CharSequence? = null
   private var postTitlePrecalculated: CharSequence? = null
@@ -196,6 +197,26 @@ data class PostCellData(
   val repliesToThisPostText
     get() = _repliesToThisPostText.value()
 
+  /**
+   * Points this cell at [newPost] (the same post recreated by a thread update, see [PostCellDataReuse])
+   * and at the board page and the hidden posts of that update when the cell is reused so that it doesn't
+   * keep the previous ones alive. The already calculated texts are kept since the content is the same.
+   * */
+  fun rebindPost(
+    newPost: ChanPost,
+    newBoardPage: BoardPage?,
+    newPostHideMap: Map<PostDescriptor, ChanPostHide>
+  ) {
+    require(newPost.postDescriptor == post.postDescriptor) {
+      "Different posts: ${newPost.postDescriptor} != ${post.postDescriptor}"
+    }
+
+    post = newPost
+    postImages = newPost.postImages
+    boardPage = newBoardPage
+    postHideMap = newPostHideMap
+  }
+
   fun hashForAdapter(): Long {
     val repliesFromCount = post.repliesFromCount
     return (repliesFromCount.toLong() shl 32) + post.postNo() + post.postSubNo()
@@ -307,6 +328,7 @@ data class PostCellData(
       isSplitLayout = isSplitLayout
     ).also { newPostCellData ->
       newPostCellData.postCellCallback = postCellCallback
+      newPostCellData.postCellTextLayouts = postCellTextLayouts
       newPostCellData.postTitlePrecalculated = postTitlePrecalculated
       newPostCellData.postTitleStubPrecalculated = postTitleStubPrecalculated
       newPostCellData.commentTextPrecalculated = commentTextPrecalculated
@@ -316,6 +338,7 @@ data class PostCellData(
 
   fun cleanup() {
     postCellCallback = null
+    postCellTextLayouts = null
     resetEverything()
   }
 
@@ -795,14 +818,16 @@ data class PostCellData(
         .append(imagesCountText)
     }
 
+    val currentBoardPage = boardPage
+
     if (!isViewingThread
       && !neverShowPages
       && boardPostsSortOrder != PostsFilter.Order.BUMP
-      && boardPage != null
+      && currentBoardPage != null
     ) {
       catalogRepliesTextBuilder
         .append(", page ")
-        .append(boardPage.currentPage)
+        .append(currentBoardPage.currentPage)
     }
 
     return catalogRepliesTextBuilder.toString()
@@ -902,16 +927,18 @@ data class PostCellData(
         append(getString(R.string.card_stats_images_compact, catalogImagesCount))
       }
 
+      val currentBoardPage = boardPage
+
       if (isViewingCatalog
         && !neverShowPages
         && boardPostsSortOrder != PostsFilter.Order.BUMP
-        && boardPage != null
+        && currentBoardPage != null
       ) {
         if (isNotEmpty()) {
           append(", ")
         }
 
-        append(getString(R.string.card_stats_page_compact, boardPage.currentPage))
+        append(getString(R.string.card_stats_page_compact, currentBoardPage.currentPage))
       }
     }
   }
@@ -0,0 +1,212 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import androidx.recyclerview.widget.DiffUtil
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+
+/**
+ * Remembers the cells built by the previous thread update so that the next update only builds the cells
+ * of the posts that were added or changed since then.
+ *
+ * A cell is reused when the post with the same descriptor has the same fingerprint (see [fingerprint],
+ * a hash of the post content and of the per-post state the cell is built from: its hide entry, the
+ * highlighted keywords, the divider etc.) and the global key (everything that is shared by all the cells:
+ * settings, theme, width etc.) did not change. Posts are recreated by every thread update
+ * (see ChanThread.mergePosts) and some of their fields are mutable so they can't be compared by
+ * reference nor with [ChanPost.equals].
+ * */
+class PostCellDataReuse<T : Any> {
+  private var globalKey: Any? = null
+  private var prevCells: Map<PostDescriptor, ReusableCell<T>> = emptyMap()
+
+  /**
+   * [reuseCell] is given the index of the post and the previous cell of that post, it returns the cell
+   * to use instead of it (e.g. the previous cell pointed at the new post object).
+   * */
+  @Synchronized
+  fun update(
+    globalKey: Any,
+    postKeys: List<CellKey.Post>,
+    reuseCell: (Int, T) -> T = { _, prevCell -> prevCell },
+    createCell: (Int) -> T
+  ): Update<T> {
+    val globalKeyChanged = this.globalKey != globalKey
+    val newCells = LinkedHashMap<PostDescriptor, ReusableCell<T>>(postKeys.size)
+    val cells = ArrayList<T>(postKeys.size)
+    val reused = BooleanArray(postKeys.size)
+
+    postKeys.forEachIndexed { index, postKey ->
+      val prevCell = prevCells[postKey.postDescriptor]
+
+      val cell = if (!globalKeyChanged && prevCell != null && prevCell.fingerprint == postKey.fingerprint) {
+        reused[index] = true
+        reuseCell(index, prevCell.cell)
+      } else {
+        createCell(index)
+      }
+
+      cells += cell
+      newCells[postKey.postDescriptor] = ReusableCell(postKey.fingerprint, cell)
+    }
+
+    this.globalKey = globalKey
+    this.prevCells = newCells
+
+    return Update(
+      cells = cells,
+      reused = reused,
+      globalKeyChanged = globalKeyChanged
+    )
+  }
+
+  /**
+   * The cell of [postDescriptor] was replaced outside of [update] (e.g. after the post content was
+   * loaded on demand), it must be built again by the next update.
+   * */
+  @Synchronized
+  fun forget(postDescriptors: Collection<PostDescriptor>) {
+    if (postDescriptors.isEmpty() || prevCells.isEmpty()) {
+      return
+    }
+
+    prevCells = prevCells.filterKeys { postDescriptor -> postDescriptor !in postDescriptors }
+  }
+
+  @Synchronized
+  fun clear() {
+    globalKey = null
+    prevCells = emptyMap()
+  }
+
+  class Update<T>(
+    val cells: List<T>,
+    private val reused: BooleanArray,
+    val globalKeyChanged: Boolean
+  ) {
+    val recomputedCount: Int
+      get() = reused.count { isReused -> !isReused }
+
+    fun isReused(index: Int): Boolean = reused[index]
+  }
+
+  private class ReusableCell<T>(
+    val fingerprint: Long,
+    val cell: T
+  )
+
+  /**
+   * The items of a posts list as the adapter displays them.
+   * */
+  sealed class CellKey {
+    data class Post(
+      val postDescriptor: PostDescriptor,
+      val fingerprint: Long
+    ) : CellKey()
+
+    object LastSeenIndicator : CellKey()
+
+    /** The thread status/loading more cell, it displays the thread stats so it is always rebound. */
+    object Status : CellKey()
+  }
+
+  companion object {
+
+    /**
+     * Calculates the adapter updates that turn [oldKeys] into [newKeys]. Returns null when it's cheaper
+     * to just rebind everything: when nothing was displayed before or when every cell was rebuilt
+     * anyway ([globalKeyChanged]).
+     * */
+    fun calculateDiff(
+      oldKeys: List<CellKey>,
+      newKeys: List<CellKey>,
+      globalKeyChanged: Boolean
+    ): DiffUtil.DiffResult? {
+      if (oldKeys.isEmpty() || newKeys.isEmpty() || globalKeyChanged) {
+        return null
+      }
+
+      val callback = object : DiffUtil.Callback() {
+        override fun getOldListSize(): Int = oldKeys.size
+
+        override fun getNewListSize(): Int = newKeys.size
+
+        override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+          val oldKey = oldKeys[oldItemPosition]
+          val newKey = newKeys[newItemPosition]
+
+          if (oldKey is CellKey.Post && newKey is CellKey.Post) {
+            return oldKey.postDescriptor == newKey.postDescriptor
+          }
+
+          return oldKey === newKey
+        }
+
+        override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
+          val oldKey = oldKeys[oldItemPosition]
+          if (oldKey === CellKey.Status) {
+            return false
+          }
+
+          return oldKey == newKeys[newItemPosition]
+        }
+      }
+
+      // Moves are only possible in catalogs (bumped threads) where a remove + insert does the job as
+      // well and detecting them is quadratic.
+      return DiffUtil.calculateDiff(callback, false)
+    }
+
+    /**
+     * Hashes the post fields the cell is built from plus [cellInputs] (the per-post cell state). Only
+     * content hashes are used: [ChanPost.subject] and [ChanPost.tripcode] may be spannables which are
+     * hashed by identity.
+     * */
+    fun fingerprint(post: ChanPost, vararg cellInputs: Any?): Long {
+      var result = post.postDescriptor.hashCode().toLong()
+      result = 31 * result + post.timestamp
+      result = 31 * result + post.postComment.hashCode()
+      result = 31 * result + (post.postComment.updatedCommentHash?.hashCode() ?: 0)
+      result = 31 * result + (post.subject?.toString()?.hashCode() ?: 0)
+      result = 31 * result + (post.tripcode?.toString()?.hashCode() ?: 0)
+      result = 31 * result + (post.name?.hashCode() ?: 0)
+      result = 31 * result + (post.posterId?.hashCode() ?: 0)
+      result = 31 * result + post.posterIdColor
+      result = 31 * result + (post.moderatorCapcode?.hashCode() ?: 0)
+      result = 31 * result + post.isSavedReply.hashCode()
+      result = 31 * result + post.isSage.hashCode()
+      result = 31 * result + post.isDeleted.hashCode()
+      result = 31 * result + post.repliesTo.hashCode()
+      result = 31 * result + post.repliesFromCopy.hashCode()
+      result = 31 * result + post.postIcons.hashCode()
+
+      post.postImages.forEach { postImage ->
+        result = 31 * result + postImage.hashCode()
+        result = 31 * result + (postImage.filename?.hashCode() ?: 0)
+        result = 31 * result + (postImage.extension?.hashCode() ?: 0)
+        result = 31 * result + postImage.imageWidth
+        result = 31 * result + postImage.imageHeight
+        result = 31 * result + postImage.size
+        result = 31 * result + postImage.spoiler.hashCode()
+      }
+
+      if (post is ChanOriginalPost) {
+        result = 31 * result + post.catalogRepliesCount
+        result = 31 * result + post.catalogImagesCount
+        result = 31 * result + post.uniqueIps
+        result = 31 * result + post.lastModified
+        result = 31 * result + post.sticky.hashCode()
+        result = 31 * result + post.closed.hashCode()
+        result = 31 * result + post.archived.hashCode()
+        result = 31 * result + post.endless.hashCode()
+      }
+
+      cellInputs.forEach { cellInput ->
+        result = 31 * result + (cellInput?.hashCode() ?: 0)
+      }
+
+      return result
+    }
+
+  }
+}
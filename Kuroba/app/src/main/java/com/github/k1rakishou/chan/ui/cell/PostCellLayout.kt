@@ -614,16 +614,34 @@ open class PostCellLayout @JvmOverloads constructor(
       return PostCommentShiftResult.ShiftAndAttachToTheSideOfThumbnail
     }
 
-    val titleTextBounds = title.getTextBounds(postCellData.postTitle, availableWidth)
+    val titleTextBounds = measureTextBounds(
+      postCellData = postCellData,
+      textKind = PostTextLayoutCache.TextKind.Title,
+      textView = title,
+      text = postCellData.postTitle,
+      availableWidth = availableWidth
+    )
 
     val imageFileNameTextBounds = if (imageFileName != null && imageFileName!!.visibility == View.VISIBLE) {
-      imageFileName!!.getTextBounds(postFileInfo, availableWidth)
+      measureTextBounds(
+        postCellData = postCellData,
+        textKind = PostTextLayoutCache.TextKind.FileName,
+        textView = imageFileName!!,
+        text = postFileInfo,
+        availableWidth = availableWidth
+      )
     } else {
       TextBounds.EMPTY
     }
 
     val resultTitleTextBounds = titleTextBounds.mergeWith(imageFileNameTextBounds)
-    val commentTextBounds = comment.getTextBounds(postCellData.commentText, (availableWidthIncludingThumbnail))
+    val commentTextBounds = measureTextBounds(
+      postCellData = postCellData,
+      textKind = PostTextLayoutCache.TextKind.Comment,
+      textView = comment,
+      text = postCellData.commentText,
+      availableWidth = availableWidthIncludingThumbnail
+    )
     val commentHeight = commentTextBounds.textHeight
 
     val multiplier = when (postCellData.postAlignmentMode) {
@@ -691,6 +709,19 @@ open class PostCellLayout @JvmOverloads constructor(
     return PostCommentShiftResult.CannotShiftComment
   }
 
+  private fun measureTextBounds(
+    postCellData: PostCellData,
+    textKind: PostTextLayoutCache.TextKind,
+    textView: TextView,
+    text: CharSequence,
+    availableWidth: Int
+  ): TextBounds {
+    val postCellTextLayouts = postCellData.postCellTextLayouts
+      ?: return textView.getTextBounds(text, availableWidth)
+
+    return postCellTextLayouts.getOrMeasureTextBounds(postCellData, textKind, textView, text, availableWidth)
+  }
+
   private class PostTopPartLayoutResult(
     var totalWidthTaken: Int = 0,
     var commentLeftOffset: Int = 0
@@ -0,0 +1,311 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import android.text.Spanned
+import android.text.style.AbsoluteSizeSpan
+import android.text.style.BackgroundColorSpan
+import android.text.style.ForegroundColorSpan
+import android.text.style.MetricAffectingSpan
+import android.text.style.RelativeSizeSpan
+import android.text.style.StyleSpan
+import android.text.style.TypefaceSpan
+import android.text.style.URLSpan
+import android.widget.TextView
+import androidx.core.text.PrecomputedTextCompat
+import androidx.core.widget.TextViewCompat
+import com.github.k1rakishou.chan.ui.cell.PostTextLayoutCache.TextKind
+import com.github.k1rakishou.chan.utils.BackgroundUtils
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.common.TextBounds
+import com.github.k1rakishou.common.getTextBounds
+import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+ * Measures the comment, the title and the file name of the posts on a background thread (when
+ * ThreadCellData preloads the PostCellData) so that PostCell/PostCellLayout do not have to do the text
+ * measurement and line breaking on the main thread:
+ *
+ * - The comment and the title are precomputed with [PrecomputedTextCompat] which then can be passed
+ *   directly into the TextView (Android 10 and above, where TextView actually uses the precomputed
+ *   glyph measurements).
+ * - The text bounds that PostCellLayout needs to decide whether the comment can be shifted to the side
+ *   of the thumbnail are calculated for the width the layout used last time for this column width.
+ *
+ * The text metrics (text size, typeface, break strategy etc.) and the widths are taken from the actual
+ * TextViews the first time something is bound/measured so they always match, [onTextMetricsChanged] is
+ * called (on the main thread) when they change so that the texts can be precomputed again.
+ * */
+class PostCellTextLayouts(
+  private val onTextMetricsChanged: (PostDescriptor) -> Unit
+) {
+  private val cache = PostTextLayoutCache<PrecomputedTextCompat, TextBounds>()
+  private val textMetricsParams = AtomicReferenceArray<PrecomputedTextCompat.Params>(TextKind.values().size)
+  private val textBoundsSpecs = AtomicReferenceArray<TextBoundsSpec>(TextKind.values().size)
+
+  fun setText(postCellData: PostCellData, textKind: TextKind, textView: TextView, text: CharSequence) {
+    BackgroundUtils.ensureMainThread()
+
+    val params = TextViewCompat.getTextMetricsParams(textView)
+    if (textMetricsParams.getAndSet(textKind.ordinal, params) != params) {
+      onTextMetricsChanged(postCellData.postDescriptor)
+    }
+
+    if (AndroidUtils.isAndroid10() && text.isNotEmpty()) {
+      val measuredTextKey = measuredTextKey(postCellData, textKind, text, params)
+      val measuredText = cache.getMeasuredText(postCellData.postDescriptor, measuredTextKey)
+
+      if (measuredText != null) {
+        TextViewCompat.setPrecomputedText(textView, measuredText)
+        return
+      }
+    }
+
+    textView.setText(text, TextView.BufferType.SPANNABLE)
+  }
+
+  fun getOrMeasureTextBounds(
+    postCellData: PostCellData,
+    textKind: TextKind,
+    textView: TextView,
+    text: CharSequence,
+    availableWidth: Int
+  ): TextBounds {
+    BackgroundUtils.ensureMainThread()
+
+    val textBoundsSpec = TextBoundsSpec(
+      columnWidthPx = postCellData.postCellDataWidthNoPaddings,
+      widthPx = availableWidth,
+      textMetrics = TextBoundsMetrics(
+        params = TextViewCompat.getTextMetricsParams(textView),
+        justificationMode = if (AndroidUtils.isAndroid10()) textView.justificationMode else 0,
+        maxLines = textView.maxLines
+      )
+    )
+
+    val prevTextBoundsSpec = textBoundsSpecs.getAndSet(textKind.ordinal, textBoundsSpec)
+
+    // Only start over when the column width or the metrics change, not when a post just happens to
+    // have a thumbnail of a different width.
+    if (
+      prevTextBoundsSpec == null
+      || prevTextBoundsSpec.columnWidthPx != textBoundsSpec.columnWidthPx
+      || prevTextBoundsSpec.textMetrics != textBoundsSpec.textMetrics
+    ) {
+      onTextMetricsChanged(postCellData.postDescriptor)
+    }
+
+    val textBoundsKey = textBoundsKey(textKind, text, textBoundsSpec)
+
+    val cachedTextBounds = cache.getTextBounds(postCellData.postDescriptor, textBoundsKey)
+    if (cachedTextBounds != null) {
+      return cachedTextBounds
+    }
+
+    val textBounds = textView.getTextBounds(text, availableWidth)
+    cache.putTextBounds(postCellData.postDescriptor, textBoundsKey, text.toString(), textBounds)
+
+    return textBounds
+  }
+
+  fun precompute(postCellData: PostCellData) {
+    BackgroundUtils.ensureBackgroundThread()
+
+    precomputeText(postCellData, TextKind.Comment, postCellData.commentText)
+    precomputeText(postCellData, TextKind.Title, postCellData.postTitle)
+
+    val postFileInfo = postCellData.firstImage
+      ?.let { firstImage -> postCellData.postFileInfoMap[firstImage] }
+
+    if (postFileInfo != null) {
+      precomputeText(postCellData, TextKind.FileName, postFileInfo)
+    }
+  }
+
+  fun onColumnWidthChanged(columnWidthPx: Int) {
+    cache.onColumnWidthChanged(columnWidthPx)
+  }
+
+  fun onThemeChanged(themeHash: Int) {
+    cache.onThemeChanged(themeHash)
+  }
+
+  fun onSearchQueryChanged(searchQuery: PostCellData.SearchQuery): Set<PostDescriptor> {
+    return cache.onSearchQueryChanged(searchQuery.query, searchQuery.queryMinValidLength)
+  }
+
+  fun invalidate(postDescriptors: Collection<PostDescriptor>) {
+    cache.invalidate(postDescriptors)
+  }
+
+  fun retainAll(postDescriptors: Set<PostDescriptor>) {
+    cache.retainAll(postDescriptors)
+  }
+
+  fun clear() {
+    cache.clear()
+  }
+
+  private fun precomputeText(postCellData: PostCellData, textKind: TextKind, text: CharSequence) {
+    if (text.isEmpty()) {
+      return
+    }
+
+    val postDescriptor = postCellData.postDescriptor
+    var measuredText: CharSequence = text
+
+    val params = textMetricsParams.get(textKind.ordinal)
+    if (params != null && textKind != TextKind.FileName && AndroidUtils.isAndroid10()) {
+      val measuredTextKey = measuredTextKey(postCellData, textKind, text, params)
+
+      measuredText = cache.getMeasuredText(postDescriptor, measuredTextKey)
+        ?: PrecomputedTextCompat.create(text, params)
+          .also { precomputedText -> cache.putMeasuredText(postDescriptor, measuredTextKey, text.toString(), precomputedText) }
+    }
+
+    // Text bounds are only used by PostCellLayout to figure out whether the comment can be shifted
+    if (!postCellData.shiftPostComment || !postCellData.singleImageMode || postCellData.forceShiftPostComment) {
+      return
+    }
+
+    val textBoundsSpec = textBoundsSpecs.get(textKind.ordinal)
+    if (textBoundsSpec == null || textBoundsSpec.columnWidthPx != postCellData.postCellDataWidthNoPaddings) {
+      return
+    }
+
+    val textBoundsKey = textBoundsKey(textKind, text, textBoundsSpec)
+    if (cache.getTextBounds(postDescriptor, textBoundsKey) != null) {
+      return
+    }
+
+    val textMetrics = textBoundsSpec.textMetrics
+    val textBoundsParams = textMetrics.params
+
+    val textBounds = textBoundsParams.textPaint.getTextBounds(
+      text = measuredText,
+      availableWidth = textBoundsSpec.widthPx,
+      breakStrategy = if (AndroidUtils.isAndroidM()) textBoundsParams.breakStrategy else 0,
+      hyphenationFrequency = if (AndroidUtils.isAndroidM()) textBoundsParams.hyphenationFrequency else 0,
+      justificationMode = textMetrics.justificationMode,
+      maxLines = textMetrics.maxLines
+    )
+
+    cache.putTextBounds(postDescriptor, textBoundsKey, text.toString(), textBounds)
+  }
+
+  private fun measuredTextKey(
+    postCellData: PostCellData,
+    textKind: TextKind,
+    text: CharSequence,
+    params: PrecomputedTextCompat.Params
+  ): PostTextLayoutCache.MeasuredTextKey {
+    return PostTextLayoutCache.MeasuredTextKey(
+      textKind = textKind,
+      textHash = textHash(text),
+      spansHash = spansHash(text),
+      textMetrics = params,
+      themeHash = postCellData.theme.hashCode(),
+      searchQueryMatch = PostTextLayoutCache.searchQueryMatch(
+        text = text,
+        query = postCellData.searchQuery.query,
+        minQueryLength = postCellData.searchQuery.queryMinValidLength
+      )
+    )
+  }
+
+  private fun textBoundsKey(
+    textKind: TextKind,
+    text: CharSequence,
+    textBoundsSpec: TextBoundsSpec
+  ): PostTextLayoutCache.TextBoundsKey {
+    return PostTextLayoutCache.TextBoundsKey(
+      textKind = textKind,
+      textHash = textHash(text),
+      textMetrics = textBoundsSpec.textMetrics,
+      columnWidthPx = textBoundsSpec.columnWidthPx,
+      widthPx = textBoundsSpec.widthPx
+    )
+  }
+
+  private data class TextBoundsMetrics(
+    val params: PrecomputedTextCompat.Params,
+    val justificationMode: Int,
+    val maxLines: Int
+  )
+
+  private data class TextBoundsSpec(
+    val columnWidthPx: Int,
+    val widthPx: Int,
+    val textMetrics: TextBoundsMetrics
+  )
+
+  companion object {
+    private const val HASH_SEED = 1125899906842597L
+    private const val OWN_SPANS_PACKAGE = "com.github.k1rakishou."
+
+    /**
+     * Hash of the characters of [text] and of the spans that change the glyph metrics.
+     * */
+    private fun textHash(text: CharSequence): Long {
+      var hash = HASH_SEED
+
+      for (index in 0 until text.length) {
+        hash = 31 * hash + text[index].code
+      }
+
+      if (text is Spanned) {
+        text.getSpans(0, text.length, MetricAffectingSpan::class.java).forEach { span ->
+          hash = 31 * hash + spanHash(text, span)
+        }
+      }
+
+      return hash
+    }
+
+    /**
+     * Hash of the spans of [text] that do not change the glyph metrics (colors, links etc.).
+     * */
+    private fun spansHash(text: CharSequence): Long {
+      if (text !is Spanned) {
+        return 0L
+      }
+
+      var hash = HASH_SEED
+
+      text.getSpans(0, text.length, Any::class.java).forEach { span ->
+        if (span !is MetricAffectingSpan) {
+          hash = 31 * hash + spanHash(text, span)
+        }
+      }
+
+      return hash
+    }
+
+    private fun spanHash(text: Spanned, span: Any): Long {
+      var hash = text.getSpanStart(span).toLong()
+      hash = 31 * hash + text.getSpanEnd(span)
+      hash = 31 * hash + text.getSpanFlags(span)
+
+      // PostLinkables are hashed by identity since PostCell updates their state (marked post etc.) via
+      // the post comment so the TextView must display the very same PostLinkable objects. Our other
+      // spans implement hashCode() (the "Hashed" spans), the framework spans do not so their parameters
+      // are hashed manually. The rest of the spans (UnderlineSpan, StrikethroughSpan etc.) have no
+      // parameters so the class name is enough.
+      val spanContentHash = when {
+        span is PostLinkable -> System.identityHashCode(span)
+        span.javaClass.name.startsWith(OWN_SPANS_PACKAGE) -> span.hashCode()
+        span is StyleSpan -> span.style
+        span is AbsoluteSizeSpan -> span.size
+        span is RelativeSizeSpan -> span.sizeChange.toRawBits()
+        span is TypefaceSpan -> span.family?.hashCode() ?: 0
+        span is ForegroundColorSpan -> span.foregroundColor
+        span is BackgroundColorSpan -> span.backgroundColor
+        span is URLSpan -> span.url?.hashCode() ?: 0
+        else -> span.javaClass.name.hashCode()
+      }
+
+      return 31 * hash + spanContentHash
+    }
+  }
+
+}
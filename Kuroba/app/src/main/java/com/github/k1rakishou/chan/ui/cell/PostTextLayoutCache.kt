@@ -0,0 +1,274 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import androidx.annotation.GuardedBy
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import java.util.*
+
+/**
+ * Results of measuring the texts of post cells (see [TextKind]) which are calculated on a background
+ * thread ahead of time so that binding and measuring a post cell on the main thread only has to look
+ * them up. Two kinds of results are stored per text:
+ *
+ * - The measured text ([MeasuredTextKey]). Depends on the text with all its spans, the text metrics
+ *   (text size, typeface etc.), the theme (the spans carry the colors) and the search query matches
+ *   but not on the width the text is laid out with.
+ * - The text bounds ([TextBoundsKey]), the result of line breaking the text for a width. Depends on the
+ *   text with the spans that change the metrics of the glyphs, the text metrics and the width but not
+ *   on the theme or the search query since neither changes the glyph widths.
+ *
+ * A lookup only returns a result when every part of the key is equal to the key the result was stored
+ * with, so a stale result can never be returned. [onColumnWidthChanged], [onThemeChanged] and
+ * [onSearchQueryChanged] evict the results which became stale, everything else is kept, e.g. a theme
+ * change keeps all the text bounds and a search query change only evicts the texts of the posts which
+ * match either the old or the new query.
+ *
+ * Thread-safe.
+ * */
+class PostTextLayoutCache<MeasuredText : Any, Bounds : Any>(
+  private val maxTextBoundsPerText: Int = DEFAULT_MAX_TEXT_BOUNDS_PER_TEXT
+) {
+  @GuardedBy("this")
+  private val postEntries = HashMap<PostDescriptor, Array<TextEntry<MeasuredText, Bounds>?>>(64)
+
+  @Synchronized
+  fun getMeasuredText(postDescriptor: PostDescriptor, key: MeasuredTextKey): MeasuredText? {
+    val textEntry = postEntries[postDescriptor]?.get(key.textKind.ordinal)
+      ?: return null
+
+    if (textEntry.measuredTextKey != key) {
+      return null
+    }
+
+    return textEntry.measuredText
+  }
+
+  @Synchronized
+  fun putMeasuredText(
+    postDescriptor: PostDescriptor,
+    key: MeasuredTextKey,
+    plainText: String,
+    measuredText: MeasuredText
+  ) {
+    val textEntry = getOrCreateTextEntry(postDescriptor, key.textKind, key.textHash, plainText)
+
+    textEntry.measuredTextKey = key
+    textEntry.measuredText = measuredText
+  }
+
+  @Synchronized
+  fun getTextBounds(postDescriptor: PostDescriptor, key: TextBoundsKey): Bounds? {
+    val textEntry = postEntries[postDescriptor]?.get(key.textKind.ordinal)
+      ?: return null
+
+    val textBounds = textEntry.textBounds
+    val index = textBounds.indexOfFirst { (textBoundsKey, _) -> textBoundsKey == key }
+    if (index < 0) {
+      return null
+    }
+
+    val entry = textBounds[index]
+    if (index != textBounds.lastIndex) {
+      // Keep the most recently used widths at the end
+      textBounds.removeAt(index)
+      textBounds.add(entry)
+    }
+
+    return entry.second
+  }
+
+  @Synchronized
+  fun putTextBounds(
+    postDescriptor: PostDescriptor,
+    key: TextBoundsKey,
+    plainText: String,
+    bounds: Bounds
+  ) {
+    val textEntry = getOrCreateTextEntry(postDescriptor, key.textKind, key.textHash, plainText)
+    val textBounds = textEntry.textBounds
+
+    textBounds.removeAll { (textBoundsKey, _) -> textBoundsKey == key }
+    textBounds.add(key to bounds)
+
+    while (textBounds.size > maxTextBoundsPerText) {
+      textBounds.removeAt(0)
+    }
+  }
+
+  /**
+   * Evicts the text bounds calculated for any other column width. The measured texts do not depend on
+   * the width and are kept. Returns the amount of evicted text bounds.
+   * */
+  @Synchronized
+  fun onColumnWidthChanged(columnWidthPx: Int): Int {
+    var evicted = 0
+
+    forEachTextEntry { textEntry ->
+      val sizeBefore = textEntry.textBounds.size
+      textEntry.textBounds.removeAll { (textBoundsKey, _) -> textBoundsKey.columnWidthPx != columnWidthPx }
+      evicted += sizeBefore - textEntry.textBounds.size
+    }
+
+    return evicted
+  }
+
+  /**
+   * Evicts the measured texts calculated with any other theme. The text bounds do not depend on the
+   * theme and are kept. Returns the amount of evicted measured texts.
+   * */
+  @Synchronized
+  fun onThemeChanged(themeHash: Int): Int {
+    var evicted = 0
+
+    forEachTextEntry { textEntry ->
+      val measuredTextKey = textEntry.measuredTextKey
+        ?: return@forEachTextEntry
+
+      if (measuredTextKey.themeHash != themeHash) {
+        textEntry.clearMeasuredText()
+        ++evicted
+      }
+    }
+
+    return evicted
+  }
+
+  /**
+   * Evicts the measured texts of the posts which either had matches of the previous search query or
+   * have matches of the new one since the search query matches are marked with spans. Returns the
+   * posts which had at least one of their texts evicted.
+   * */
+  @Synchronized
+  fun onSearchQueryChanged(query: String, minQueryLength: Int): Set<PostDescriptor> {
+    val affectedPosts = hashSetOf<PostDescriptor>()
+
+    postEntries.forEach { (postDescriptor, textEntries) ->
+      textEntries.forEach { textEntry ->
+        val measuredTextKey = textEntry?.measuredTextKey
+          ?: return@forEach
+
+        val searchQueryMatch = searchQueryMatch(textEntry.plainText, query, minQueryLength)
+        if (measuredTextKey.searchQueryMatch != searchQueryMatch) {
+          textEntry.clearMeasuredText()
+          affectedPosts += postDescriptor
+        }
+      }
+    }
+
+    return affectedPosts
+  }
+
+  @Synchronized
+  fun invalidate(postDescriptors: Collection<PostDescriptor>) {
+    postDescriptors.forEach { postDescriptor -> postEntries.remove(postDescriptor) }
+  }
+
+  /**
+   * Evicts everything calculated for the posts which are not in [postDescriptors] anymore (hidden,
+   * removed or belonging to a different thread).
+   * */
+  @Synchronized
+  fun retainAll(postDescriptors: Set<PostDescriptor>) {
+    postEntries.keys.retainAll(postDescriptors)
+  }
+
+  @Synchronized
+  fun clear() {
+    postEntries.clear()
+  }
+
+  @Synchronized
+  fun postsCount(): Int = postEntries.size
+
+  private fun getOrCreateTextEntry(
+    postDescriptor: PostDescriptor,
+    textKind: TextKind,
+    textHash: Long,
+    plainText: String
+  ): TextEntry<MeasuredText, Bounds> {
+    val textEntries = postEntries.getOrPut(postDescriptor) { arrayOfNulls(TextKind.values().size) }
+    val textEntry = textEntries[textKind.ordinal]
+
+    if (textEntry != null && textEntry.textHash == textHash) {
+      return textEntry
+    }
+
+    // The text of the post has changed (or there was nothing for this text yet), everything calculated
+    // for the previous text is useless now.
+    return TextEntry<MeasuredText, Bounds>(textHash, plainText)
+      .also { newTextEntry -> textEntries[textKind.ordinal] = newTextEntry }
+  }
+
+  private inline fun forEachTextEntry(func: (TextEntry<MeasuredText, Bounds>) -> Unit) {
+    postEntries.values.forEach { textEntries ->
+      textEntries.forEach { textEntry ->
+        if (textEntry != null) {
+          func(textEntry)
+        }
+      }
+    }
+  }
+
+  private class TextEntry<MeasuredText : Any, Bounds : Any>(
+    val textHash: Long,
+    val plainText: String
+  ) {
+    var measuredTextKey: MeasuredTextKey? = null
+    var measuredText: MeasuredText? = null
+    val textBounds = ArrayList<Pair<TextBoundsKey, Bounds>>(2)
+
+    fun clearMeasuredText() {
+      measuredTextKey = null
+      measuredText = null
+    }
+  }
+
+  enum class TextKind {
+    Comment,
+    Title,
+    FileName
+  }
+
+  /**
+   * [textHash] is the hash of the text and the spans that change the glyph metrics, [spansHash] is the
+   * hash of all the other spans (colors, links etc.). [textMetrics] is anything that describes how the
+   * TextView measures text (text size, typeface, break strategy etc.) and has proper equals/hashCode.
+   * */
+  data class MeasuredTextKey(
+    val textKind: TextKind,
+    val textHash: Long,
+    val spansHash: Long,
+    val textMetrics: Any,
+    val themeHash: Int,
+    val searchQueryMatch: String
+  )
+
+  data class TextBoundsKey(
+    val textKind: TextKind,
+    val textHash: Long,
+    val textMetrics: Any,
+    val columnWidthPx: Int,
+    val widthPx: Int
+  )
+
+  companion object {
+    private const val DEFAULT_MAX_TEXT_BOUNDS_PER_TEXT = 4
+
+    /**
+     * The part of the search query that affects how [text] is highlighted. Mirrors the rules of
+     * SpannableHelper.findAllQueryEntriesInsideSpannableStringAndMarkThem(): a query that is too short
+     * or has no (case-insensitive) matches in the text does not mark anything.
+     * */
+    fun searchQueryMatch(text: CharSequence, query: String, minQueryLength: Int): String {
+      if (query.isEmpty() || query.length < minQueryLength || query.length > text.length) {
+        return ""
+      }
+
+      if (!text.contains(query, ignoreCase = true)) {
+        return ""
+      }
+
+      return query.lowercase(Locale.ENGLISH)
+    }
+  }
+
+}
@@ -1,5 +1,6 @@
 package com.github.k1rakishou.chan.ui.cell
 
+import androidx.recyclerview.widget.DiffUtil
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.core.base.KurobaCoroutineScope
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
@@ -17,10 +18,12 @@ import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.common.mutableMapWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.core_themes.ChanTheme
+import com.github.k1rakishou.model.data.board.pages.BoardPage
 import com.github.k1rakishou.model.data.board.pages.BoardPages
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHide
 import com.github.k1rakishou.model.data.post.PostIndexed
 import dagger.Lazy
 import kotlinx.coroutines.CoroutineScope
@@ -42,7 +45,11 @@ class ThreadCellData(
   initialTheme: ChanTheme
 ): Iterable<ThreadCellData.PostCellDataLazy> {
   private val postCellDataLazyList: MutableList<PostCellDataLazy> = mutableListWithCap(64)
+  private val postCellDataReuse = PostCellDataReuse<PostCellDataLazy>()
   private val coroutineScope = KurobaCoroutineScope()
+  private val postCellTextLayouts = PostCellTextLayouts(
+    onTextMetricsChanged = { postDescriptor -> restartTextPrecomputation(postDescriptor) }
+  )
 
   private val chanThreadViewableInfoManager: ChanThreadViewableInfoManager
     get() = _chanThreadViewableInfoManager.get()
@@ -61,6 +68,8 @@ class ThreadCellData(
   @Volatile private var postCellCallback: PostCellInterface.PostCellCallback? = null
   private var currentTheme: ChanTheme = initialTheme
   private var lazyCalculationJob: Job? = null
+  private var textPrecomputationJob: Job? = null
+  private var adapterCellKeys: List<PostCellDataReuse.CellKey> = emptyList()
 
   var postViewMode: PostCellData.PostViewMode = PostCellData.PostViewMode.Normal
   var defaultIsCompact: Boolean = false
@@ -117,10 +126,12 @@ class ThreadCellData(
           postDescriptors = listOf(updatedPost.postDescriptor),
           postCellDataWidthNoPaddings = oldPostCellData.postCellDataWidthNoPaddings,
           oldPostCellData = oldPostCellData
-        )
+        ).postCellDataLazyList
 
         // precalculate right away
-        updatedPostCellData.forEach { postCellDataLazy -> postCellDataLazy.getOrCalculate(isPrecalculating = true) }
+        updatedPostCellData.forEach { postCellDataLazy ->
+          postCellTextLayouts.precompute(postCellDataLazy.getOrCalculate(isPrecalculating = true))
+        }
 
         return@withContext updatedPostCellData
       }
@@ -139,12 +150,18 @@ class ThreadCellData(
       }
 
       postCellDataLazyList[postCellDataIndex] = updatedPostCellData.first()
+      postCellDataReuse.forget(listOf(updatedPost.postDescriptor))
       updatedAtLeastOne = true
     }
 
     return updatedAtLeastOne
   }
 
+  /**
+   * Only the cells of the posts that were added or changed since the previous update are built again,
+   * the rest are carried over (see [PostCellDataReuse]). Returns the adapter updates between the
+   * previous and the new posts list or null if the whole list has to be rebound.
+   * */
   @OptIn(ExperimentalTime::class)
   suspend fun updateThreadData(
     postCellCallback: PostCellInterface.PostCellCallback,
@@ -153,7 +170,7 @@ class ThreadCellData(
     postCellDataWidthNoPaddings: Int,
     theme: ChanTheme,
     prevScrollPositionData: PreviousThreadScrollPositionData? = null
-  ) {
+  ): DiffUtil.DiffResult? {
     require(postCellDataWidthNoPaddings > 0) { "Bad postCellDataWidthNoPaddings: ${postCellDataWidthNoPaddings}" }
     BackgroundUtils.ensureMainThread()
 
@@ -165,7 +182,14 @@ class ThreadCellData(
       postIndexed.chanPost.postDescriptor
     }
 
-    val newPostCellDataLazyList = withContext(Dispatchers.Default) {
+    textPrecomputationJob?.cancel()
+    textPrecomputationJob = null
+
+    postCellTextLayouts.retainAll(postDescriptors.toHashSet())
+    postCellTextLayouts.onColumnWidthChanged(postCellDataWidthNoPaddings)
+    postCellTextLayouts.onThemeChanged(theme.hashCode())
+
+    val calculatedPostCells = withContext(Dispatchers.Default) {
       return@withContext postIndexedListToLazyPostCellDataList(
         postCellCallback = postCellCallback,
         chanDescriptor = chanDescriptor,
@@ -173,16 +197,46 @@ class ThreadCellData(
         postIndexedList = postIndexedList,
         postDescriptors = postDescriptors,
         postCellDataWidthNoPaddings = postCellDataWidthNoPaddings,
-        oldPostCellData = null
+        oldPostCellData = null,
+        postCellDataReuse = postCellDataReuse
       )
     }
 
+    val newPostCellDataLazyList = calculatedPostCells.postCellDataLazyList
+    val reuseUpdate = calculatedPostCells.reuseUpdate
+    val globalKeyChanged = reuseUpdate?.globalKeyChanged ?: true
+
+    if (reuseUpdate != null) {
+      Logger.d(TAG) {
+        "updateThreadData() postsCount=${newPostCellDataLazyList.size}, " +
+          "recomputed=${reuseUpdate.recomputedCount}, globalKeyChanged=${globalKeyChanged}"
+      }
+    }
+
+    val newLastSeenIndicatorPosition = if (postViewMode.canShowLastSeenIndicator()) {
+      getLastSeenIndicatorPosition(chanDescriptor, newPostCellDataLazyList) ?: -1
+    } else {
+      lastSeenIndicatorPosition
+    }
+
+    val oldAdapterCellKeys = adapterCellKeys
+    val newAdapterCellKeys = toAdapterCellKeys(calculatedPostCells.postKeys, newLastSeenIndicatorPosition)
+
+    val diffResult = withContext(Dispatchers.Default) {
+      return@withContext PostCellDataReuse.calculateDiff(oldAdapterCellKeys, newAdapterCellKeys, globalKeyChanged)
+    }
+
     if (newPostCellDataLazyList.isNotEmpty()) {
       lazyCalculationJob?.cancel()
       lazyCalculationJob = coroutineScope.launch(Dispatchers.IO) {
         Logger.d(TAG, "runPreloading() start")
-        val preloadingDuration = measureTime { runPreloadingTask(prevScrollPositionData, newPostCellDataLazyList) }
-        Logger.d(TAG, "runPreloading() end, took $preloadingDuration")
+        val preloadingDuration = measureTime {
+          runPreloadingTask(prevScrollPositionData, newPostCellDataLazyList) { index, postCellDataLazy ->
+            // The reused cells were already preloaded by one of the previous updates
+            reuseUpdate == null || !reuseUpdate.isReused(index) || !postCellDataLazy.isInitialized
+          }
+        }
+        Logger.d(TAG) { "runPreloading() end, took $preloadingDuration" }
       }
     }
 
@@ -190,15 +244,34 @@ class ThreadCellData(
 
     this.postCellDataLazyList.clear()
     this.postCellDataLazyList.addAll(newPostCellDataLazyList)
+    this.lastSeenIndicatorPosition = newLastSeenIndicatorPosition
+    this.adapterCellKeys = newAdapterCellKeys
+
+    return diffResult
+  }
+
+  private fun toAdapterCellKeys(
+    postKeys: List<PostCellDataReuse.CellKey.Post>,
+    lastSeenIndicatorPosition: Int
+  ): List<PostCellDataReuse.CellKey> {
+    val adapterCellKeys = mutableListWithCap<PostCellDataReuse.CellKey>(postKeys.size + 2)
+    adapterCellKeys.addAll(postKeys)
+
+    if (lastSeenIndicatorPosition in 0..adapterCellKeys.size) {
+      adapterCellKeys.add(lastSeenIndicatorPosition, PostCellDataReuse.CellKey.LastSeenIndicator)
+    }
 
-    if (postViewMode.canShowLastSeenIndicator()) {
-      this.lastSeenIndicatorPosition = getLastSeenIndicatorPosition(chanDescriptor) ?: -1
+    if (showStatusView()) {
+      adapterCellKeys.add(PostCellDataReuse.CellKey.Status)
     }
+
+    return adapterCellKeys
   }
 
   private fun CoroutineScope.runPreloadingTask(
     prevScrollPositionData: PreviousThreadScrollPositionData?,
-    newPostCellDataLazyList: List<PostCellDataLazy>
+    newPostCellDataLazyList: List<PostCellDataLazy>,
+    needsPreloading: (Int, PostCellDataLazy) -> Boolean
   ) {
     var startingPosition = 0
 
@@ -223,16 +296,47 @@ class ThreadCellData(
       return
     }
 
-    Logger.d(TAG, "runPreloading() startingPosition=$startingPosition, dataListSize=${newPostCellDataLazyList.size}")
+    Logger.d(TAG) { "runPreloading() startingPosition=$startingPosition, dataListSize=${newPostCellDataLazyList.size}" }
 
     newPostCellDataLazyList
       .bidirectionalSequenceIndexed(startingPosition.coerceIn(0, newPostCellDataLazyList.lastIndex))
-      .forEach { (_, newPostCellDataLazy) ->
+      .forEach { (index, newPostCellDataLazy) ->
         ensureActive()
-        newPostCellDataLazy.getOrCalculate(isPrecalculating = true)
+
+        if (needsPreloading(index, newPostCellDataLazy)) {
+          postCellTextLayouts.precompute(newPostCellDataLazy.getOrCalculate(isPrecalculating = true))
+        }
       }
   }
 
+  /**
+   * Called when a PostCell is bound/measured with different text metrics or widths than the ones the
+   * texts were precomputed with (the very first bind, text size change, rotation etc.) to precompute
+   * the texts again starting from the post that was bound.
+   * */
+  private fun restartTextPrecomputation(startingPostDescriptor: PostDescriptor) {
+    BackgroundUtils.ensureMainThread()
+
+    val postCellDataLazyListCopy = postCellDataLazyList.toList()
+    if (postCellDataLazyListCopy.isEmpty()) {
+      return
+    }
+
+    val startingPosition = postCellDataLazyListCopy
+      .indexOfFirst { postCellDataLazy -> postCellDataLazy.postDescriptor == startingPostDescriptor }
+      .coerceAtLeast(0)
+
+    textPrecomputationJob?.cancel()
+    textPrecomputationJob = coroutineScope.launch(Dispatchers.IO) {
+      postCellDataLazyListCopy
+        .bidirectionalSequenceIndexed(startingPosition)
+        .forEach { (_, postCellDataLazy) ->
+          ensureActive()
+          postCellTextLayouts.precompute(postCellDataLazy.getOrCalculate(isPrecalculating = true))
+        }
+    }
+  }
+
   private suspend fun postIndexedListToLazyPostCellDataList(
     postCellCallback: PostCellInterface.PostCellCallback,
     chanDescriptor: ChanDescriptor,
@@ -240,12 +344,12 @@ class ThreadCellData(
     postIndexedList: List<PostIndexed>,
     postDescriptors: List<PostDescriptor>,
     postCellDataWidthNoPaddings: Int,
-    oldPostCellData: PostCellData?
-  ): List<PostCellDataLazy> {
+    oldPostCellData: PostCellData?,
+    postCellDataReuse: PostCellDataReuse<PostCellDataLazy>? = null
+  ): CalculatedPostCells {
     BackgroundUtils.ensureBackgroundThread()
 
     val totalPostsCount = postIndexedList.size
-    val resultList = mutableListWithCap<PostCellDataLazy>(totalPostsCount)
 
     val textSizeSp = ChanSettings.fontSize.get().toInt()
     val detailsSizeSp = ChanSettings.detailsSizeSp()
@@ -265,6 +369,7 @@ class ThreadCellData(
     val boardPages = getBoardPages(chanDescriptor, neverShowPages, postCellCallback)
     val isTablet = isTablet()
     val isSplitLayout = ChanSettings.isSplitLayoutMode()
+    val postMultipleImagesCompactModeSetting = ChanSettings.postMultipleImagesCompactMode.get()
 
     val postHideMap = when (chanDescriptor) {
       is ChanDescriptor.ICatalogDescriptor -> {
@@ -297,18 +402,29 @@ class ThreadCellData(
 
     val highlightFilterKeywordMap = postFilterHighlightManager.getHighlightFilterKeywordForDescriptor(postDescriptors)
 
-    postIndexedList.forEachIndexed { orderInList, postIndexed ->
+    // The mutable defaults are read once so that the cells and the global key see the same values
+    val markedPostNo = defaultMarkedNo
+    val isCompact = defaultIsCompact
+    val boardPostViewMode = defaultBoardPostViewMode
+    val searchQuery = defaultSearchQuery
+    val currentPostViewMode = postViewMode
+
+    fun findBoardPage(postDescriptor: PostDescriptor): BoardPage? {
+      return boardPages?.boardPages
+        ?.firstOrNull { boardPage -> boardPage.threads[postDescriptor.threadDescriptor()] != null }
+    }
+
+    fun createPostCellDataLazy(orderInList: Int): PostCellDataLazy {
+      val postIndexed = postIndexedList[orderInList]
+
       val lazyFunc = lazy {
         val chanPost = postIndexed.chanPost
         val postDescriptor = chanPost.postDescriptor
 
-        val postMultipleImagesCompactMode = ChanSettings.postMultipleImagesCompactMode.get()
-          && postViewMode != PostCellData.PostViewMode.Search
+        val postMultipleImagesCompactMode = postMultipleImagesCompactModeSetting
+          && currentPostViewMode != PostCellData.PostViewMode.Search
           && chanPost.postImages.size > 1
 
-        val boardPage = boardPages?.boardPages
-          ?.firstOrNull { boardPage -> boardPage.threads[postDescriptor.threadDescriptor()] != null }
-
         val postCellData = PostCellData(
           chanDescriptor = chanDescriptor,
           post = chanPost,
@@ -318,13 +434,13 @@ class ThreadCellData(
           textSizeSp = textSizeSp,
           detailsSizeSp = detailsSizeSp,
           theme = chanTheme,
-          postViewMode = postViewMode,
-          markedPostNo = defaultMarkedNo,
+          postViewMode = currentPostViewMode,
+          markedPostNo = markedPostNo,
           showDivider = oldPostCellData?.showDivider ?: defaultShowDividerFunc.invoke(orderInList, totalPostsCount),
-          compact = defaultIsCompact,
-          boardPostViewMode = defaultBoardPostViewMode,
+          compact = isCompact,
+          boardPostViewMode = boardPostViewMode,
           boardPostsSortOrder = boardPostsSortOrder,
-          boardPage = boardPage,
+          boardPage = findBoardPage(postDescriptor),
           neverShowPages = neverShowPages,
           tapNoReply = tapNoReply,
           postFullDate = postFullDate,
@@ -337,7 +453,7 @@ class ThreadCellData(
           markUnseenPosts = markUnseenPosts,
           markSeenThreads = markSeenThreads,
           postHideMap = postHideMap,
-          searchQuery = defaultSearchQuery,
+          searchQuery = searchQuery,
           keywordsToHighlight = highlightFilterKeywordMap[postDescriptor] ?: emptySet(),
           postAlignmentMode = postAlignmentMode,
           postCellThumbnailSizePercents = postCellThumbnailSizePercents,
@@ -349,20 +465,99 @@ class ThreadCellData(
         )
 
         postCellData.postCellCallback = postCellCallback
+        postCellData.postCellTextLayouts = postCellTextLayouts
         postCellData.preload()
 
         return@lazy postCellData
       }
 
-      val postCellDataLazy = PostCellDataLazy(
+      return PostCellDataLazy(
         post = postIndexed.chanPost,
         lazyDataCalcFunc = lazyFunc
       )
+    }
+
+    if (postCellDataReuse == null) {
+      return CalculatedPostCells(
+        postCellDataLazyList = List(totalPostsCount) { orderInList -> createPostCellDataLazy(orderInList) },
+        postKeys = emptyList(),
+        reuseUpdate = null
+      )
+    }
+
+    val globalKey = listOf(
+      chanDescriptor,
+      postCellCallback,
+      postCellDataWidthNoPaddings,
+      textSizeSp,
+      detailsSizeSp,
+      boardPostsSortOrder,
+      neverShowPages,
+      tapNoReply,
+      postFullDate,
+      postFullDateLocalLocale,
+      shiftPostComment,
+      forceShiftPostComment,
+      textOnly,
+      showPostFileInfo,
+      markUnseenPosts,
+      markSeenThreads,
+      theme.hashCode(),
+      postCellThumbnailSizePercents,
+      isTablet,
+      isSplitLayout,
+      postMultipleImagesCompactModeSetting,
+      postAlignmentMode,
+      currentPostViewMode,
+      markedPostNo,
+      isCompact,
+      boardPostViewMode,
+      searchQuery
+    )
+
+    val postKeys = postIndexedList.mapIndexed { orderInList, postIndexed ->
+      val chanPost = postIndexed.chanPost
+      val postDescriptor = chanPost.postDescriptor
+
+      val boardPage = findBoardPage(postDescriptor)
+
+      // The hidden replies are not counted (see PostCellData.formatPostReplyCountString())
+      val repliesFromPostHides = chanPost.repliesFromCopy
+        .mapNotNull { replyFrom -> postHideMap[replyFrom] }
+
+      val fingerprint = PostCellDataReuse.fingerprint(
+        chanPost,
+        postIndexed.postIndex,
+        defaultShowDividerFunc.invoke(orderInList, totalPostsCount),
+        boardPage?.currentPage,
+        postHideMap[postDescriptor],
+        repliesFromPostHides,
+        highlightFilterKeywordMap[postDescriptor],
+        chanPost.repliesTo.any { replyTo -> threadPostReplyMap[replyTo] == true }
+      )
 
-      resultList += postCellDataLazy
+      return@mapIndexed PostCellDataReuse.CellKey.Post(postDescriptor, fingerprint)
     }
 
-    return resultList
+    val reuseUpdate = postCellDataReuse.update(
+      globalKey = globalKey,
+      postKeys = postKeys,
+      reuseCell = { orderInList, prevPostCellDataLazy ->
+        val chanPost = postIndexedList[orderInList].chanPost
+
+        // Not calculated yet, there is nothing to keep (and its lazy function references the previous
+        // posts list) so it's created again which is cheap
+        prevPostCellDataLazy.reuseFor(chanPost, findBoardPage(chanPost.postDescriptor), postHideMap)
+          ?: createPostCellDataLazy(orderInList)
+      },
+      createCell = { orderInList -> createPostCellDataLazy(orderInList) }
+    )
+
+    return CalculatedPostCells(
+      postCellDataLazyList = reuseUpdate.cells,
+      postKeys = postKeys,
+      reuseUpdate = reuseUpdate
+    )
   }
 
   private fun getBoardPages(
@@ -390,8 +585,12 @@ class ThreadCellData(
   fun cleanup() {
     lazyCalculationJob?.cancel()
     lazyCalculationJob = null
+    textPrecomputationJob?.cancel()
+    textPrecomputationJob = null
 
     coroutineScope.cancelChildren()
+    postCellTextLayouts.clear()
+    postCellDataReuse.clear()
 
     postCellDataLazyList.forEach { postCellDataLazy ->
       if (postCellDataLazy.isInitialized) {
@@ -400,6 +599,7 @@ class ThreadCellData(
     }
 
     postCellDataLazyList.clear()
+    adapterCellKeys = emptyList()
 
     lastSeenIndicatorPosition = -1
     defaultMarkedNo = null
@@ -410,6 +610,7 @@ class ThreadCellData(
 
   fun setSearchQuery(searchQuery: PostCellData.SearchQuery) {
     defaultSearchQuery = searchQuery
+    postCellTextLayouts.onSearchQueryChanged(searchQuery)
 
     postCellDataLazyList.forEach { postCellDataLazy ->
       if (postCellDataLazy.isInitialized) {
@@ -450,6 +651,8 @@ class ThreadCellData(
   }
 
   fun resetCachedPostData(postDescriptors: Collection<PostDescriptor>) {
+    postCellTextLayouts.invalidate(postDescriptors)
+
     postDescriptors.forEach { postDescriptor ->
       val postCellDataIndex = postCellDataLazyList
         .indexOfFirst { postCellDataLazy -> postCellDataLazy.postDescriptor == postDescriptor }
@@ -576,7 +779,10 @@ class ThreadCellData(
     return postPosition
   }
 
-  private fun getLastSeenIndicatorPosition(chanDescriptor: ChanDescriptor?): Int? {
+  private fun getLastSeenIndicatorPosition(
+    chanDescriptor: ChanDescriptor?,
+    postCellDataLazyList: List<PostCellDataLazy>
+  ): Int? {
     if (chanDescriptor == null) {
       return null
     }
@@ -605,6 +811,12 @@ class ThreadCellData(
     }
   }
 
+  private class CalculatedPostCells(
+    val postCellDataLazyList: List<PostCellDataLazy>,
+    val postKeys: List<PostCellDataReuse.CellKey.Post>,
+    val reuseUpdate: PostCellDataReuse.Update<PostCellDataLazy>?
+  )
+
   class PostCellDataLazy(
     val post: ChanPost,
     private val lazyDataCalcFunc: kotlin.Lazy<PostCellData>
@@ -621,6 +833,28 @@ class ThreadCellData(
         return lazyDataCalcFunc.value
       }
 
+    /**
+     * Returns the cell of [newPost] (the same post recreated by a thread update) that keeps the already
+     * calculated [PostCellData] pointed at [newPost] or null if it wasn't calculated yet.
+     * */
+    fun reuseFor(
+      newPost: ChanPost,
+      newBoardPage: BoardPage?,
+      newPostHideMap: Map<PostDescriptor, ChanPostHide>
+    ): PostCellDataLazy? {
+      if (!lazyDataCalcFunc.isInitialized()) {
+        return null
+      }
+
+      val postCellData = lazyDataCalcFunc.value
+      postCellData.rebindPost(newPost, newBoardPage, newPostHideMap)
+
+      return PostCellDataLazy(
+        post = newPost,
+        lazyDataCalcFunc = lazyOf(postCellData)
+      )
+    }
+
     fun getOrCalculate(isPrecalculating: Boolean = false): PostCellData {
       val isAlreadyCalculated = lazyDataCalcFunc.isInitialized()
       val calculatedValue = lazyDataCalcFunc.value
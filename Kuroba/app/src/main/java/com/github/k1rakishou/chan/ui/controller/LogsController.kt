@@ -85,7 +85,7 @@ class LogsController(context: Context) : Controller(context) {
         val logs = withContext(Dispatchers.IO) {
           buildString(capacity = 4096) {
             val logs = loadLogs()
-            if (logs == null) {
+            if (logs.isEmpty()) {
               return@buildString
             }
 
@@ -116,9 +116,33 @@ class LogsController(context: Context) : Controller(context) {
     private const val DEFAULT_LINES_COUNT = 300
     private const val ACTION_LOGS_COPY = 1
 
-    fun loadLogs(): String? {
-      val logMpv = ChanSettings.showMpvInternalLogs.get()
+    fun loadLogs(): String {
+      val logs = formatRecentLogs()
+      if (!ChanSettings.showMpvInternalLogs.get()) {
+        return logs
+      }
+
+      val mpvLogs = loadMpvLogs()
+        ?: return logs
+
+      return logs + mpvLogs
+    }
+
+    /**
+     * The recent records are kept in memory by [Logger] so this does not need to go through logcat.
+     * */
+    fun formatRecentLogs(): String {
+      val recentRecords = Logger.getRecentRecords(DEFAULT_LINES_COUNT)
 
+      return buildString(capacity = recentRecords.size * 128) {
+        recentRecords.forEach { logRecord -> appendLine(logRecord.format()) }
+      }
+    }
+
+    /**
+     * mpv logs into logcat directly from the native code.
+     * */
+    private fun loadMpvLogs(): String? {
       val process = try {
         ProcessBuilder().command(
           "logcat",
@@ -134,21 +158,15 @@ class LogsController(context: Context) : Controller(context) {
       }
 
       val outputStream = process.inputStream
-
-      // This filters our log output to just stuff we care about in-app
-      // (and if a crash happens, the uncaught handler gets it and this will still allow it through)
-      val fullLogsString = StringBuilder(1024)
-      val lineTag = "${AndroidUtils.getApplicationLabel()} | "
+      val mpvLogsString = StringBuilder(1024)
 
       for (line in IOUtils.readString(outputStream).split("\n").toTypedArray()) {
-        if (line.contains(lineTag, ignoreCase = true)) {
-          fullLogsString.appendLine(line)
-        } else if (logMpv && line.contains("mpv", ignoreCase = true)) {
-          fullLogsString.appendLine(line)
+        if (line.contains("mpv", ignoreCase = true)) {
+          mpvLogsString.appendLine(line)
         }
       }
 
-      return fullLogsString.toString()
+      return mpvLogsString.toString()
     }
   }
 }
\ No newline at end of file
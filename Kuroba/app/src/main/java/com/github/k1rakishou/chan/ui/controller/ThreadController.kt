@@ -21,13 +21,17 @@ import android.view.KeyEvent
 import android.view.MotionEvent
 import android.widget.Toast
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout.OnRefreshListener
+import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.chan.R
 import com.github.k1rakishou.chan.controller.Controller
 import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
+import com.github.k1rakishou.chan.core.helper.ArchivePostsMerger
+import com.github.k1rakishou.chan.core.helper.ArchiveThreadRacer
 import com.github.k1rakishou.chan.core.helper.DialogFactory
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibility
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityListener
 import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
+import com.github.k1rakishou.chan.core.manager.ArchiveHealthManager
 import com.github.k1rakishou.chan.core.manager.ArchivesManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadViewableInfoManager
@@ -36,6 +40,7 @@ import com.github.k1rakishou.chan.core.manager.GlobalWindowInsetsManager
 import com.github.k1rakishou.chan.core.manager.SiteManager
 import com.github.k1rakishou.chan.core.manager.ThreadFollowHistoryManager
 import com.github.k1rakishou.chan.core.site.Site
+import com.github.k1rakishou.chan.core.site.loader.ThreadLoadResult
 import com.github.k1rakishou.chan.features.drawer.MainControllerCallbacks
 import com.github.k1rakishou.chan.features.filters.FiltersController
 import com.github.k1rakishou.chan.features.media_viewer.MediaLocation
@@ -66,6 +71,11 @@ import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.data.descriptor.PostDescriptor
 import com.github.k1rakishou.model.data.filter.ChanFilterMutable
 import com.github.k1rakishou.model.data.filter.FilterType
+import com.github.k1rakishou.model.data.options.ChanCacheOption
+import com.github.k1rakishou.model.data.options.ChanCacheOptions
+import com.github.k1rakishou.model.data.options.ChanCacheUpdateOptions
+import com.github.k1rakishou.model.data.options.ChanLoadOptions
+import com.github.k1rakishou.model.data.options.ChanReadOptions
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostImage
 import com.github.k1rakishou.persist_state.ReplyMode
@@ -99,6 +109,8 @@ abstract class ThreadController(
   @Inject
   lateinit var _archivesManager: Lazy<ArchivesManager>
   @Inject
+  lateinit var _archiveHealthManager: Lazy<ArchiveHealthManager>
+  @Inject
   lateinit var _globalWindowInsetsManager: Lazy<GlobalWindowInsetsManager>
   @Inject
   lateinit var _chanThreadViewableInfoManager: Lazy<ChanThreadViewableInfoManager>
@@ -121,6 +133,8 @@ abstract class ThreadController(
     get() = _chanThreadViewableInfoManager.get()
   protected val archivesManager: ArchivesManager
     get() = _archivesManager.get()
+  protected val archiveHealthManager: ArchiveHealthManager
+    get() = _archiveHealthManager.get()
   protected val dialogFactory: DialogFactory
     get() = _dialogFactory.get()
   protected val chanThreadManager: ChanThreadManager
@@ -539,12 +553,17 @@ abstract class ThreadController(
     val descriptor = postDescriptor.descriptor as? ChanDescriptor.ThreadDescriptor
       ?: return
 
-    val supportedArchiveDescriptors = archivesManager.getSupportedArchiveDescriptors(descriptor)
+    val enabledArchiveDescriptors = archivesManager.getSupportedArchiveDescriptors(descriptor)
       .filter { archiveDescriptor ->
         return@filter siteManager.bySiteDescriptor(archiveDescriptor.siteDescriptor)?.enabled()
           ?: false
       }
 
+    val supportedArchiveDescriptors = archiveHealthManager.rank(
+      archiveDescriptors = enabledArchiveDescriptors,
+      boardCode = descriptor.boardCode()
+    )
+
     if (supportedArchiveDescriptors.isEmpty()) {
       Logger.d(TAG, "showAvailableArchives($descriptor) supportedThreadDescriptors is empty")
 
@@ -561,6 +580,28 @@ abstract class ThreadController(
       return
     }
 
+    if (canAutoSelectArchive) {
+      mainScope.launch {
+        val raceResult = raceArchives(descriptor, supportedArchiveDescriptors)
+        if (raceResult is ArchiveThreadRacer.RaceResult.Winner) {
+          onArchiveSelected(raceResult.archiveDescriptor, postDescriptor, preview)
+          return@launch
+        }
+
+        showArchivesListMenu(supportedArchiveDescriptors, postDescriptor, preview)
+      }
+
+      return
+    }
+
+    showArchivesListMenu(supportedArchiveDescriptors, postDescriptor, preview)
+  }
+
+  private fun showArchivesListMenu(
+    supportedArchiveDescriptors: List<ArchiveDescriptor>,
+    postDescriptor: PostDescriptor,
+    preview: Boolean
+  ) {
     val items = mutableListOf<FloatingListMenuItem>()
 
     supportedArchiveDescriptors.forEach { archiveDescriptor ->
@@ -571,7 +612,7 @@ abstract class ThreadController(
     }
 
     if (items.isEmpty()) {
-      Logger.d(TAG, "showAvailableArchives($descriptor) items is empty")
+      Logger.d(TAG, "showArchivesListMenu($postDescriptor) items is empty")
       return
     }
 
@@ -592,6 +633,109 @@ abstract class ThreadController(
     presentController(floatingListMenuController)
   }
 
+  private suspend fun raceArchives(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    archiveDescriptors: List<ArchiveDescriptor>
+  ): ArchiveThreadRacer.RaceResult {
+    showToast(getString(R.string.thread_presenter_looking_for_thread_in_archives, archiveDescriptors.size))
+
+    val archiveThreadRacer = ArchiveThreadRacer(archiveHealthManager)
+
+    val raceResult = archiveThreadRacer.race(
+      archiveDescriptors = archiveDescriptors,
+      boardCode = threadDescriptor.boardCode()
+    ) { archiveDescriptor -> loadArchiveThread(archiveDescriptor, threadDescriptor) }
+
+    when (raceResult) {
+      is ArchiveThreadRacer.RaceResult.Winner -> {
+        Logger.d(TAG, "raceArchives($threadDescriptor) winner: ${raceResult.archiveDescriptor.domain} " +
+          "with ${raceResult.postsCount} posts, responses: ${raceResult.responses.size}")
+
+        if (ChanSettings.mergeDeletedPostsFromArchives.get()) {
+          mergeArchivePostsIntoCachedThread(threadDescriptor, raceResult.archiveDescriptor)
+        }
+      }
+      is ArchiveThreadRacer.RaceResult.NoWinner -> {
+        Logger.d(TAG, "raceArchives($threadDescriptor) no winner, responses: ${raceResult.responses.size}")
+      }
+    }
+
+    return raceResult
+  }
+
+  private suspend fun loadArchiveThread(
+    archiveDescriptor: ArchiveDescriptor,
+    threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ): ArchiveThreadRacer.Response {
+    val archiveThreadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+      archiveDescriptor.domain,
+      threadDescriptor.boardCode(),
+      threadDescriptor.threadNo
+    )
+
+    val threadLoadResult = chanThreadManager.loadThreadOrCatalog(
+      page = null,
+      compositeCatalogDescriptor = null,
+      chanDescriptor = archiveThreadDescriptor,
+      chanCacheUpdateOptions = ChanCacheUpdateOptions.UpdateIfCacheIsOlderThan(
+        timePeriodMs = ChanCacheUpdateOptions.DEFAULT_PERIOD
+      ),
+      chanLoadOptions = ChanLoadOptions.retainAll(),
+      chanCacheOptions = ChanCacheOptions.singleOption(ChanCacheOption.StoreInMemory),
+      chanReadOptions = ChanReadOptions.default()
+    )
+
+    return when (threadLoadResult) {
+      is ThreadLoadResult.Loaded -> {
+        val postsCount = chanThreadManager.getThreadPostsCount(archiveThreadDescriptor)
+        if (postsCount <= 0) {
+          ArchiveThreadRacer.Response.NotFound
+        } else {
+          ArchiveThreadRacer.Response.Found(postsCount)
+        }
+      }
+      is ThreadLoadResult.Error -> {
+        if (threadLoadResult.exception.isNotFound) {
+          ArchiveThreadRacer.Response.NotFound
+        } else {
+          ArchiveThreadRacer.Response.Error(threadLoadResult.exception)
+        }
+      }
+    }
+  }
+
+  private fun mergeArchivePostsIntoCachedThread(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    archiveDescriptor: ArchiveDescriptor
+  ) {
+    val cachedThread = chanThreadManager.getChanThread(threadDescriptor)
+      ?: return
+
+    val archiveThreadDescriptor = ChanDescriptor.ThreadDescriptor.create(
+      archiveDescriptor.domain,
+      threadDescriptor.boardCode(),
+      threadDescriptor.threadNo
+    )
+
+    val archiveThread = chanThreadManager.getChanThread(archiveThreadDescriptor)
+      ?: return
+
+    val missingPosts = ArchivePostsMerger.findPostsMissingFromCachedThread(
+      originalThreadDescriptor = threadDescriptor,
+      cachedPosts = cachedThread.getAll(),
+      archivePosts = archiveThread.getAll()
+    )
+
+    if (missingPosts.isEmpty()) {
+      return
+    }
+
+    Logger.d(TAG, "mergeArchivePostsIntoCachedThread($threadDescriptor) merging ${missingPosts.size} " +
+      "posts from ${archiveDescriptor.domain}")
+
+    cachedThread.addOrUpdatePosts(missingPosts, null)
+  }
+
   private suspend fun onArchiveSelected(
     archiveDescriptor: ArchiveDescriptor,
     postDescriptor: PostDescriptor,
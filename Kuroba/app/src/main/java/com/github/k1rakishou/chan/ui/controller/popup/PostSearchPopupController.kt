@@ -277,7 +277,7 @@ class PostSearchPopupController(
   }
 
   private fun matchesQuery(chanPost: ChanPost, query: String): Boolean {
-    if (chanPost.postComment.originalComment().contains(query, ignoreCase = true)) {
+    if (chanPost.postComment.originalCommentText().contains(query, ignoreCase = true)) {
       return true
     }
 
@@ -596,7 +596,7 @@ class ThreadLayout @JvmOverloads constructor(
   }
 
   override fun clipboardPost(post: ChanPost) {
-    AndroidUtils.setClipboardContent("Post text", post.postComment.comment().toString())
+    AndroidUtils.setClipboardContent("Post text", post.postComment.commentText().toString())
     showToast(context, R.string.post_text_copied)
   }
 
@@ -1127,6 +1127,50 @@ class ThreadLayout @JvmOverloads constructor(
     }
   }
 
+  override fun showCatalogChangesNotification(
+    newThreadsCount: Int,
+    bumpedThreadsCount: Int,
+    droppedThreadsCount: Int
+  ) {
+    if (!canShowSnackBar()) {
+      return
+    }
+
+    val type = threadControllerType
+      ?: return
+
+    val changes = mutableListOf<String>()
+
+    if (newThreadsCount > 0) {
+      changes += getQuantityString(R.plurals.catalog_new_threads, newThreadsCount, newThreadsCount)
+    }
+
+    if (bumpedThreadsCount > 0) {
+      changes += getQuantityString(R.plurals.catalog_bumped_threads, bumpedThreadsCount, bumpedThreadsCount)
+    }
+
+    if (droppedThreadsCount > 0) {
+      changes += getQuantityString(R.plurals.catalog_dropped_threads, droppedThreadsCount, droppedThreadsCount)
+    }
+
+    if (changes.isEmpty()) {
+      return
+    }
+
+    dismissSnackbar()
+
+    newPostsNotification = SnackbarWrapper.create(
+      globalViewStateManager,
+      globalWindowInsetsManager,
+      themeEngine.chanTheme,
+      this,
+      getString(R.string.catalog_changes_since_last_visit, changes.joinToString(separator = ", ")),
+      Snackbar.LENGTH_LONG
+    ).apply {
+      show(type)
+    }
+  }
+
   override fun showThreadStatusNotification(
     show: Boolean,
     nowSticky: Boolean?,
@@ -42,6 +42,7 @@ import com.github.k1rakishou.chan.core.base.SerializedCoroutineExecutor
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressEvent
 import com.github.k1rakishou.chan.core.helper.ChanLoadProgressNotifier
 import com.github.k1rakishou.chan.core.helper.LastViewedPostNoInfoHolder
+import com.github.k1rakishou.chan.core.helper.PostMapIndex
 import com.github.k1rakishou.chan.core.manager.BottomNavBarVisibilityStateManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadManager
 import com.github.k1rakishou.chan.core.manager.ChanThreadViewableInfoManager
@@ -358,6 +359,7 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
   private var layoutManager: RecyclerView.LayoutManager? = null
   private var fastScroller: FastScroller? = null
   private var postInfoMapItemDecoration: PostInfoMapItemDecoration? = null
+  private val postMapIndex = PostMapIndex<PostDescriptor>()
   private var callback: ThreadListLayoutPresenterCallback? = null
   private var navigationViewContractType: NavigationViewContract.Type = NavigationViewContract.Type.BottomNavView
   private var threadListLayoutCallback: ThreadListLayoutCallback? = null
@@ -1143,6 +1145,9 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
     }
 
     val postDescriptors = posts.map { postIndexed -> postIndexed.chanPost.postDescriptor }
+    val scrollbarResolution = recyclerView.height
+      .takeIf { height -> height > 0 }
+      ?: Int.MAX_VALUE
 
     when (chanDescriptor) {
       is ChanDescriptor.ICatalogDescriptor -> {
@@ -1152,7 +1157,9 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
 
         val params = ExtractPostMapInfoHolderUseCase.Params(
           postDescriptors = postDescriptors,
-          isViewingThread = false
+          isViewingThread = false,
+          postMapIndex = postMapIndex,
+          scrollbarResolution = scrollbarResolution
         )
 
         postInfoMapItemDecoration!!.setItems(
@@ -1167,7 +1174,9 @@ class ThreadListLayout(context: Context, attrs: AttributeSet?)
 
         val params = ExtractPostMapInfoHolderUseCase.Params(
           postDescriptors = postDescriptors,
-          isViewingThread = true
+          isViewingThread = true,
+          postMapIndex = postMapIndex,
+          scrollbarResolution = scrollbarResolution
         )
 
         postInfoMapItemDecoration!!.setItems(
@@ -593,14 +593,16 @@ public class AppModuleAndroidUtils {
     }
 
     public static SharedPreferences getPreferencesForSite(SiteDescriptor siteDescriptor) {
-        String preferencesFileName = SITE_PREFS_FILE_PREFIX + siteDescriptor.getSiteName();
-
         return application.getSharedPreferences(
-                preferencesFileName,
+                getPreferencesNameForSite(siteDescriptor),
                 Context.MODE_PRIVATE
         );
     }
 
+    public static String getPreferencesNameForSite(SiteDescriptor siteDescriptor) {
+        return SITE_PREFS_FILE_PREFIX + siteDescriptor.getSiteName();
+    }
+
     public static ActivityComponent extractActivityComponent(Context context) {
         if (context instanceof StartActivity) {
             return ((StartActivity) context).getActivityComponent();
@@ -0,0 +1,210 @@
+package com.github.k1rakishou.chan.core.backup
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import kotlin.random.Random
+
+class IncrementalBackupTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `test restoring a chain of generations is byte exact`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val archives = mutableMapOf<String, ByteArray>()
+
+    val database = writeFile(sourceDir, "kurobaex.db", randomBytes(64 * 1024, seed = 1), lastModified = 1000L)
+    writeFile(sourceDir, "main_prefs.xml", "<map></map>".toByteArray(), lastModified = 1000L)
+    writeFile(sourceDir, "media/1.jpg", randomBytes(128 * 1024, seed = 2), lastModified = 1000L)
+
+    val first = writeGeneration("gen1", sourceDir, null, archives)
+
+    writeFile(sourceDir, "media/2.webm", randomBytes(256 * 1024, seed = 3), lastModified = 2000L)
+    val second = writeGeneration("gen2", sourceDir, first.manifest, archives)
+
+    database.writeBytes(randomBytes(64 * 1024, seed = 4))
+    database.setLastModified(3000L)
+    val third = writeGeneration("gen3", sourceDir, second.manifest, archives)
+
+    assertEquals(setOf("gen1", "gen2", "gen3"), third.manifest.requiredGenerations())
+
+    val restored = restore(third.manifest, archives)
+    assertEquals(readSourceFiles(sourceDir), restored)
+  }
+
+  @Test
+  fun `test unchanged files are not written again`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val archives = mutableMapOf<String, ByteArray>()
+
+    (0 until 20).forEach { index ->
+      writeFile(sourceDir, "media/$index.jpg", randomBytes(32 * 1024, seed = index), lastModified = 1000L)
+    }
+
+    val database = writeFile(sourceDir, "kurobaex.db", randomBytes(16 * 1024, seed = 100), lastModified = 1000L)
+
+    val full = writeGeneration("gen1", sourceDir, null, archives)
+    assertEquals(21, full.writtenFiles)
+
+    database.writeBytes(randomBytes(16 * 1024, seed = 101))
+    database.setLastModified(2000L)
+
+    val incremental = writeGeneration("gen2", sourceDir, full.manifest, archives)
+    assertEquals(1, incremental.writtenFiles)
+    assertEquals(16 * 1024L, incremental.writtenBytes)
+    assertEquals(16 * 1024L, incremental.hashedBytes)
+    assertTrue(archives["gen2"]!!.size * 10 < archives["gen1"]!!.size)
+  }
+
+  @Test
+  fun `test identical files are stored once`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val archives = mutableMapOf<String, ByteArray>()
+    val content = randomBytes(64 * 1024, seed = 1)
+
+    writeFile(sourceDir, "thread_1/thumb.jpg", content, lastModified = 1000L)
+    writeFile(sourceDir, "thread_2/thumb.jpg", content, lastModified = 2000L)
+
+    val result = writeGeneration("gen1", sourceDir, null, archives)
+    assertEquals(1, result.writtenFiles)
+    assertEquals(2, result.manifest.entries.size)
+    assertEquals(1, archiveEntries(archives["gen1"]!!).count { entry -> entry.name != BackupManifest.MANIFEST_ENTRY_NAME })
+
+    assertEquals(readSourceFiles(sourceDir), restore(result.manifest, archives))
+  }
+
+  @Test
+  fun `test already compressed media is stored without compression`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val archives = mutableMapOf<String, ByteArray>()
+
+    writeFile(sourceDir, "image.JPG", randomBytes(1024, seed = 1), lastModified = 1000L)
+    writeFile(sourceDir, "video.webm", randomBytes(1024, seed = 2), lastModified = 1000L)
+    writeFile(sourceDir, "kurobaex.db", ByteArray(1024), lastModified = 1000L)
+
+    writeGeneration("gen1", sourceDir, null, archives)
+
+    val methods = archiveEntries(archives["gen1"]!!).associate { entry -> entry.name to entry.method }
+    assertEquals(ZipEntry.STORED, methods["image.JPG"])
+    assertEquals(ZipEntry.STORED, methods["video.webm"])
+    assertEquals(ZipEntry.DEFLATED, methods["kurobaex.db"])
+  }
+
+  @Test
+  fun `test manifest survives serialization`() {
+    val manifest = BackupManifest(
+      generationId = "gen",
+      createdOn = 123L,
+      entries = listOf(
+        BackupManifest.Entry("dir/file name.jpg", 10L, 20L, 30L, "abc", true, "prev", "dir/other.jpg"),
+        BackupManifest.Entry("main_prefs.xml", 1L, 2L, 3L, "def", false, "gen", "main_prefs.xml")
+      )
+    )
+
+    val outputStream = ByteArrayOutputStream()
+    manifest.serialize(outputStream)
+
+    assertEquals(manifest, BackupManifest.deserialize(ByteArrayInputStream(outputStream.toByteArray())))
+  }
+
+  @Test
+  fun `test corrupted or missing entries are detected`() {
+    val sourceDir = temporaryFolder.newFolder("source")
+    val archives = mutableMapOf<String, ByteArray>()
+
+    writeFile(sourceDir, "kurobaex.db", randomBytes(1024, seed = 1), lastModified = 1000L)
+    val result = writeGeneration("gen1", sourceDir, null, archives)
+
+    val brokenManifest = result.manifest.copy(
+      entries = result.manifest.entries.map { entry -> entry.copy(crc32 = entry.crc32 + 1) }
+    )
+    assertRestoreFails(brokenManifest, archives)
+
+    val missingManifest = result.manifest.copy(
+      entries = result.manifest.entries.map { entry -> entry.copy(archiveEntryName = "missing") }
+    )
+    assertRestoreFails(missingManifest, archives)
+  }
+
+  private fun assertRestoreFails(manifest: BackupManifest, archives: Map<String, ByteArray>) {
+    try {
+      restore(manifest, archives)
+      fail("Restore must fail")
+    } catch (error: IOException) {
+      assertFalse(error.message.isNullOrEmpty())
+    }
+  }
+
+  private fun writeGeneration(
+    generationId: String,
+    sourceDir: File,
+    previousManifest: BackupManifest?,
+    archives: MutableMap<String, ByteArray>
+  ): IncrementalBackupWriter.Result {
+    val sourceFiles = IncrementalBackupWriter.collectSourceFiles(sourceDir.listFiles()!!.sortedBy { it.name }) { directory, file ->
+      (directory ?: "") + file.name
+    }
+
+    val outputStream = ByteArrayOutputStream()
+    val result = IncrementalBackupWriter().write(generationId, sourceFiles, previousManifest, outputStream)
+    archives[generationId] = outputStream.toByteArray()
+
+    return result
+  }
+
+  private fun restore(manifest: BackupManifest, archives: Map<String, ByteArray>): Map<String, List<Byte>> {
+    val restored = mutableMapOf<String, List<Byte>>()
+
+    BackupGenerationsRestorer().restore(
+      manifest = manifest,
+      openArchive = { generationId -> ByteArrayInputStream(archives[generationId]!!) },
+      restoreEntry = { entryName, inputStream -> restored[entryName] = inputStream.readBytes().toList() }
+    )
+
+    return restored
+  }
+
+  private fun readSourceFiles(sourceDir: File): Map<String, List<Byte>> {
+    return sourceDir.walkTopDown()
+      .filter { file -> file.isFile }
+      .associate { file -> file.relativeTo(sourceDir).invariantSeparatorsPath to file.readBytes().toList() }
+  }
+
+  private fun archiveEntries(archive: ByteArray): List<ZipEntry> {
+    val entries = mutableListOf<ZipEntry>()
+
+    ZipInputStream(ByteArrayInputStream(archive)).use { zipInputStream ->
+      while (true) {
+        entries += zipInputStream.nextEntry ?: break
+      }
+    }
+
+    return entries
+  }
+
+  private fun writeFile(dir: File, name: String, content: ByteArray, lastModified: Long): File {
+    val file = File(dir, name)
+    file.parentFile?.mkdirs()
+    file.writeBytes(content)
+    file.setLastModified(lastModified)
+
+    return file
+  }
+
+  private fun randomBytes(size: Int, seed: Int): ByteArray {
+    return Random(seed).nextBytes(size)
+  }
+
+}
@@ -0,0 +1,267 @@
+package com.github.k1rakishou.chan.core.base
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.async
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class WriteBehindJournalTest {
+  private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Default)
+
+  @After
+  fun tearDown() {
+    scope.cancel()
+  }
+
+  @Test
+  fun `test updates of the same key are coalesced`() {
+    runBlocking {
+      val store = FakeStore()
+      val journal = createJournal(store)
+
+      repeat(100) { value -> journal.markDirty(1, "value_$value") }
+      assertEquals(1, journal.flush().unwrap())
+
+      assertEquals(1, store.writtenRows.get())
+      assertEquals("value_99", store.rows[1])
+      assertEquals(0, journal.pendingCount())
+    }
+  }
+
+  @Test
+  fun `test only dirty rows are written per watcher cycle`() {
+    runBlocking {
+      val bookmarksCount = 500
+      val updatedPerCycle = 5
+      val cycles = 20
+
+      val store = FakeStore()
+      val journal = createJournal(store)
+      val bookmarks = (0 until bookmarksCount).associateWith { id -> "bookmark_${id}_0" }.toMutableMap()
+
+      bookmarks.forEach { (id, value) -> journal.markDirty(id, value) }
+      journal.flush().unwrap()
+      store.writtenRows.set(0)
+
+      // Before: every persist rewrites every bookmark
+      var fullRewriteRows = 0
+
+      repeat(cycles) { cycle ->
+        (0 until updatedPerCycle).forEach { index ->
+          val id = (cycle * updatedPerCycle + index) % bookmarksCount
+          bookmarks[id] = "bookmark_${id}_${cycle + 1}"
+          journal.markDirty(id, bookmarks[id]!!)
+        }
+
+        fullRewriteRows += bookmarks.size
+        journal.flush().unwrap()
+      }
+
+      assertEquals(cycles * updatedPerCycle, store.writtenRows.get())
+      assertEquals(cycles * bookmarksCount, fullRewriteRows)
+      assertEquals(bookmarks, store.rows)
+    }
+  }
+
+  @Test
+  fun `test nothing is lost when the process is killed during a flush`() {
+    runBlocking {
+      val store = FakeStore(failOnWriteNumber = 1)
+      val journal = createJournal(store)
+
+      (0 until 10).forEach { id -> journal.markDirty(id, "value_$id") }
+      journal.markDeleted(100)
+
+      // The "transaction" is rolled back in the middle of the flush
+      assertTrue(journal.flush().isError())
+      assertEquals(11, journal.pendingCount())
+      assertTrue(store.rows.isEmpty())
+
+      assertEquals(11, journal.flush().unwrap())
+      assertEquals(0, journal.pendingCount())
+      assertEquals((0 until 10).associateWith { id -> "value_$id" }, store.rows)
+      assertEquals(setOf(100), store.deletedKeys)
+    }
+  }
+
+  @Test
+  fun `test entry changed during a flush stays dirty`() {
+    runBlocking {
+      val writeStarted = CompletableDeferred<Unit>()
+      val releaseWrite = CompletableDeferred<Unit>()
+      val store = FakeStore()
+
+      val journal = WriteBehindJournal<Int, String>(
+        scope = scope,
+        maxPendingEntries = Int.MAX_VALUE,
+        maxFlushDelayMs = 60_000L,
+        writer = { batch ->
+          writeStarted.complete(Unit)
+          releaseWrite.await()
+          store.write(batch)
+        }
+      )
+
+      journal.markDirty(1, "old")
+      val flushDeferred = async(Dispatchers.Default) { journal.flush() }
+
+      writeStarted.await()
+      journal.markDirty(1, "new")
+      releaseWrite.complete(Unit)
+      flushDeferred.await().unwrap()
+
+      assertEquals("old", store.rows[1])
+      assertTrue(journal.isDirty(1))
+
+      journal.flush().unwrap()
+      assertEquals("new", store.rows[1])
+      assertEquals(0, journal.pendingCount())
+    }
+  }
+
+  @Test
+  fun `test flush is triggered by size and time thresholds`() {
+    runBlocking {
+      val sizeStore = FakeStore()
+      val sizeJournal = createJournal(sizeStore, maxPendingEntries = 10, maxFlushDelayMs = 60_000L)
+
+      (0 until 10).forEach { id -> sizeJournal.markDirty(id, "value_$id") }
+      awaitUntil { sizeStore.rows.size == 10 }
+      assertEquals(0, sizeJournal.pendingCount())
+
+      val timeStore = FakeStore()
+      val timeJournal = createJournal(timeStore, maxPendingEntries = 1000, maxFlushDelayMs = 50L)
+
+      (0 until 10).forEach { id -> timeJournal.markDirty(id, "value_$id") }
+      assertEquals(0, timeStore.writtenRows.get())
+
+      awaitUntil { timeStore.rows.size == 10 }
+      assertEquals(1, timeStore.batches.get())
+    }
+  }
+
+  @Test
+  fun `test flushInBackground writes everything without blocking the caller`() {
+    runBlocking {
+      val releaseWrite = CompletableDeferred<Unit>()
+      val store = FakeStore()
+
+      val journal = WriteBehindJournal<Int, String>(
+        scope = scope,
+        maxPendingEntries = Int.MAX_VALUE,
+        maxFlushDelayMs = 60_000L,
+        writer = { batch ->
+          releaseWrite.await()
+          store.write(batch)
+        }
+      )
+
+      (0 until 10).forEach { id -> journal.markDirty(id, "value_$id") }
+      journal.flushInBackground()
+      assertTrue(store.rows.isEmpty())
+
+      releaseWrite.complete(Unit)
+      awaitUntil { store.rows.size == 10 }
+      awaitUntil { journal.pendingCount() == 0 }
+    }
+  }
+
+  @Test
+  fun `test flush in flight does not write cleared entries back`() {
+    runBlocking {
+      val writeStarted = CompletableDeferred<Unit>()
+      val releaseWrite = CompletableDeferred<Unit>()
+      val store = FakeStore()
+
+      val journal = WriteBehindJournal<Int, String>(
+        scope = scope,
+        maxPendingEntries = Int.MAX_VALUE,
+        maxFlushDelayMs = 60_000L,
+        writer = { batch ->
+          writeStarted.complete(Unit)
+          releaseWrite.await()
+          store.write(batch)
+        }
+      )
+
+      (0 until 10).forEach { id -> journal.markDirty(id, "value_$id") }
+      val flushDeferred = async(Dispatchers.Default) { journal.flush() }
+      writeStarted.await()
+
+      val clearDeferred = async(Dispatchers.Default) { journal.clear { store.rows.clear() } }
+      releaseWrite.complete(Unit)
+
+      flushDeferred.await().unwrap()
+      clearDeferred.await()
+
+      assertTrue(store.rows.isEmpty())
+      assertEquals(0, journal.pendingCount())
+      assertEquals(0, journal.flush().unwrap())
+    }
+  }
+
+  private fun createJournal(
+    store: FakeStore,
+    maxPendingEntries: Int = Int.MAX_VALUE,
+    maxFlushDelayMs: Long = 60_000L
+  ): WriteBehindJournal<Int, String> {
+    return WriteBehindJournal(
+      scope = scope,
+      maxPendingEntries = maxPendingEntries,
+      maxFlushDelayMs = maxFlushDelayMs,
+      writer = { batch -> store.write(batch) }
+    )
+  }
+
+  private suspend fun awaitUntil(predicate: () -> Boolean) {
+    withTimeout(5_000L) {
+      while (!predicate()) {
+        delay(10L)
+      }
+    }
+  }
+
+  private class FakeStore(
+    private val failOnWriteNumber: Int = -1
+  ) {
+    val rows = ConcurrentHashMap<Int, String>()
+    val deletedKeys = mutableSetOf<Int>()
+    val writtenRows = AtomicInteger(0)
+    val batches = AtomicInteger(0)
+
+    @Synchronized
+    fun write(batch: WriteBehindJournal.Batch<Int, String>) {
+      val writeNumber = batches.incrementAndGet()
+      val transaction = HashMap(rows)
+
+      batch.upserts.entries.forEachIndexed { index, (key, value) ->
+        if (writeNumber == failOnWriteNumber && index == batch.upserts.size / 2) {
+          // Simulate a process kill in the middle of the transaction, nothing is committed
+          throw IOException("Killed")
+        }
+
+        transaction[key] = value
+      }
+
+      batch.deletes.forEach { key -> transaction.remove(key) }
+
+      rows.clear()
+      rows.putAll(transaction)
+      deletedKeys.addAll(batch.deletes)
+      writtenRows.addAndGet(batch.size)
+    }
+  }
+
+}
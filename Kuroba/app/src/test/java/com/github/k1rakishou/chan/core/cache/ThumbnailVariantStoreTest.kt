@@ -0,0 +1,248 @@
+package com.github.k1rakishou.chan.core.cache
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.runBlocking
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.awt.RenderingHints
+import java.awt.image.BufferedImage
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.util.*
+import javax.imageio.ImageIO
+
+class ThumbnailVariantStoreTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `test variant is returned only for the same version of the source`() {
+    val store = ThumbnailVariantStore(variantsDir())
+    val variantKey = ThumbnailVariantStore.variantKey(URL, 150, 150, emptyList())
+    val payload = byteArrayOf(1, 2, 3, 4, 5)
+
+    assertNull(store.getVariant(SOURCE_FILE_NAME, 1000L, variantKey))
+
+    val written = store.putVariant(SOURCE_FILE_NAME, 1000L, variantKey, payload)
+    assertTrue(written > payload.size)
+    assertEquals(written, store.calculateSize())
+
+    assertTrue(Arrays.equals(payload, store.getVariant(SOURCE_FILE_NAME, 1000L, variantKey)))
+
+    // The source was re-downloaded and now has a different length
+    assertNull(store.getVariant(SOURCE_FILE_NAME, 2000L, variantKey))
+    // And the stale variant was removed
+    assertNull(store.getVariant(SOURCE_FILE_NAME, 1000L, variantKey))
+    assertEquals(0L, store.calculateSize())
+  }
+
+  @Test
+  fun `test variants are deleted together with the source`() {
+    val store = ThumbnailVariantStore(variantsDir())
+    var written = 0L
+
+    for (size in listOf(100, 200, 300)) {
+      val variantKey = ThumbnailVariantStore.variantKey(URL, size, size, emptyList())
+      written += store.putVariant(SOURCE_FILE_NAME, 1000L, variantKey, ByteArray(size))
+    }
+
+    val otherVariantKey = ThumbnailVariantStore.variantKey(OTHER_URL, 100, 100, emptyList())
+    val otherWritten = store.putVariant(OTHER_SOURCE_FILE_NAME, 500L, otherVariantKey, ByteArray(100))
+
+    assertTrue(store.hasVariants(SOURCE_FILE_NAME))
+    assertEquals(written + otherWritten, store.calculateSize())
+
+    assertEquals(written, store.deleteVariants(SOURCE_FILE_NAME))
+    assertFalse(store.hasVariants(SOURCE_FILE_NAME))
+    assertEquals(0L, store.deleteVariants(SOURCE_FILE_NAME))
+
+    assertNotNull(store.getVariant(OTHER_SOURCE_FILE_NAME, 500L, otherVariantKey))
+    assertEquals(otherWritten, store.calculateSize())
+
+    store.clear()
+    assertEquals(0L, store.calculateSize())
+    assertNull(store.getVariant(OTHER_SOURCE_FILE_NAME, 500L, otherVariantKey))
+  }
+
+  @Test
+  fun `test overwriting a variant returns the size delta`() {
+    val store = ThumbnailVariantStore(variantsDir())
+    val variantKey = ThumbnailVariantStore.variantKey(URL, 150, 150, emptyList())
+
+    val first = store.putVariant(SOURCE_FILE_NAME, 1000L, variantKey, ByteArray(100))
+    val second = store.putVariant(SOURCE_FILE_NAME, 1000L, variantKey, ByteArray(40))
+
+    assertEquals(-60L, second)
+    assertEquals(first + second, store.calculateSize())
+  }
+
+  @Test
+  fun `test corrupted variant is discarded`() {
+    val variantsDir = variantsDir()
+    val store = ThumbnailVariantStore(variantsDir)
+    val variantKey = ThumbnailVariantStore.variantKey(URL, 150, 150, emptyList())
+
+    store.putVariant(SOURCE_FILE_NAME, 1000L, variantKey, ByteArray(100) { it.toByte() })
+
+    val variantFile = File(variantsDir, SOURCE_FILE_NAME).listFiles()!!.single()
+    variantFile.writeBytes(variantFile.readBytes().copyOf(50))
+
+    assertNull(store.getVariant(SOURCE_FILE_NAME, 1000L, variantKey))
+    assertFalse(variantFile.exists())
+
+    variantFile.writeText("garbage that is long enough to contain a header")
+    assertNull(store.getVariant(SOURCE_FILE_NAME, 1000L, variantKey))
+    assertFalse(variantFile.exists())
+  }
+
+  @Test
+  fun `test variant key depends on size bucket and transformations`() {
+    assertEquals(0, ThumbnailVariantStore.sizeBucket(0))
+    assertEquals(0, ThumbnailVariantStore.sizeBucket(-10))
+    assertEquals(32, ThumbnailVariantStore.sizeBucket(1))
+    assertEquals(32, ThumbnailVariantStore.sizeBucket(32))
+    assertEquals(64, ThumbnailVariantStore.sizeBucket(33))
+
+    // Thumbnails of slightly different sizes share the same variant
+    assertEquals(
+      ThumbnailVariantStore.variantKey(URL, 140, 150, listOf("circle")),
+      ThumbnailVariantStore.variantKey(URL, 130, 160, listOf("circle"))
+    )
+
+    assertFalse(
+      ThumbnailVariantStore.variantKey(URL, 140, 150, listOf("circle")) ==
+        ThumbnailVariantStore.variantKey(URL, 140, 150, listOf("grayscale"))
+    )
+
+    assertFalse(
+      ThumbnailVariantStore.variantKey(URL, 140, 150, emptyList()) ==
+        ThumbnailVariantStore.variantKey(URL, 300, 150, emptyList())
+    )
+
+    assertFalse(
+      ThumbnailVariantStore.variantKey(URL, 140, 150, emptyList()) ==
+        ThumbnailVariantStore.variantKey(OTHER_URL, 140, 150, emptyList())
+    )
+  }
+
+  @Test
+  fun `test thumbnails are decoded from the source only once`() {
+    runBlocking {
+      val store = ThumbnailVariantStore(variantsDir())
+      val random = Random(1)
+      val thumbnailSize = 160
+
+      val sources = (0 until 12).map { index ->
+        "source_$index.cache" to encodeJpeg(syntheticImage(random, 400, 300))
+      }
+
+      // Only fits a few thumbnails, like the memory cache when scrolling a big catalog
+      val memoryCache = object : LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, BufferedImage>?): Boolean {
+          return size > 4
+        }
+      }
+
+      var sourceDecodes = 0
+      var variantDecodes = 0
+
+      suspend fun bind(sourceFileName: String, sourceBytes: ByteArray) {
+        val variantKey = ThumbnailVariantStore.variantKey(sourceFileName, thumbnailSize, thumbnailSize, emptyList())
+
+        val thumbnailVariantLookup = ThumbnailVariantLookup<BufferedImage>(
+          getFromMemoryCache = { key -> memoryCache[key] },
+          putIntoMemoryCache = { key, image -> memoryCache[key] = image },
+          loadVariant = {
+            store.getVariant(sourceFileName, sourceBytes.size.toLong(), variantKey)?.let { payload ->
+              ++variantDecodes
+              ImageIO.read(ByteArrayInputStream(payload))
+            }
+          },
+          storeVariant = { image ->
+            store.putVariant(sourceFileName, sourceBytes.size.toLong(), variantKey, encodeJpeg(image))
+          }
+        )
+
+        val thumbnail = thumbnailVariantLookup.load(variantKey) {
+          ++sourceDecodes
+          scaleDown(ImageIO.read(ByteArrayInputStream(sourceBytes)), thumbnailSize)
+        }
+
+        assertTrue(thumbnail!!.width <= thumbnailSize)
+      }
+
+      repeat(3) {
+        sources.forEach { (sourceFileName, sourceBytes) -> bind(sourceFileName, sourceBytes) }
+      }
+
+      // The memory cache is too small to keep them all so the next binds read the variants
+      assertEquals(sources.size, sourceDecodes)
+      assertEquals(2 * sources.size, variantDecodes)
+
+      // Nothing is read from the disk when the thumbnail is still in the memory cache
+      val (lastSourceFileName, lastSourceBytes) = sources.last()
+      bind(lastSourceFileName, lastSourceBytes)
+
+      assertEquals(sources.size, sourceDecodes)
+      assertEquals(2 * sources.size, variantDecodes)
+
+      // The source was re-downloaded, the old variant must not be used
+      val (firstSourceFileName, _) = sources.first()
+      bind(firstSourceFileName, encodeJpeg(syntheticImage(random, 400, 300)))
+
+      assertEquals(sources.size + 1, sourceDecodes)
+      assertEquals(2 * sources.size, variantDecodes)
+    }
+  }
+
+  private fun variantsDir(): File = temporaryFolder.root.resolve("variants")
+
+  private fun syntheticImage(random: Random, width: Int, height: Int): BufferedImage {
+    val image = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+    val graphics = image.createGraphics()
+
+    repeat(200) {
+      graphics.color = java.awt.Color(random.nextInt(0xFFFFFF))
+      graphics.fillOval(random.nextInt(width), random.nextInt(height), random.nextInt(400), random.nextInt(400))
+    }
+
+    graphics.dispose()
+    return image
+  }
+
+  private fun scaleDown(image: BufferedImage, maxSize: Int): BufferedImage {
+    val scale = minOf(maxSize.toFloat() / image.width, maxSize.toFloat() / image.height)
+    val width = (image.width * scale).toInt().coerceAtLeast(1)
+    val height = (image.height * scale).toInt().coerceAtLeast(1)
+
+    val scaled = BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+    val graphics = scaled.createGraphics()
+    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR)
+    graphics.drawImage(image, 0, 0, width, height, null)
+    graphics.dispose()
+
+    return scaled
+  }
+
+  private fun encodeJpeg(image: BufferedImage): ByteArray {
+    return ByteArrayOutputStream().use { outputStream ->
+      ImageIO.write(image, "jpg", outputStream)
+      outputStream.toByteArray()
+    }
+  }
+
+  companion object {
+    private const val URL = "https://i.4cdn.org/g/1234567890s.jpg"
+    private const val OTHER_URL = "https://i.4cdn.org/g/1234567891s.jpg"
+    private const val SOURCE_FILE_NAME = "1c5d0e1b3f9a1a2b.cache"
+    private const val OTHER_SOURCE_FILE_NAME = "2c5d0e1b3f9a1a2b.cache"
+  }
+
+}
@@ -0,0 +1,343 @@
+package com.github.k1rakishou.chan.core.cache.downloader
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeoutOrNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+class DownloadedPrefixTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `test every snapshot is a prefix of the file and the last one is the whole file`() {
+    repeat(10) { iteration ->
+      val data = Random(iteration).nextBytes(512 * 1024 + iteration)
+      val chunks = chunkLong(data.size.toLong(), 4, 1024)
+
+      val downloadedPrefix = DownloadedPrefix()
+      val source = ThrottledSource(data, chunks, downloadedPrefix, temporaryFolder.newFolder(), iteration)
+      val downloadThread = thread { source.download() }
+
+      val snapshots = readAll(downloadedPrefix, minGrowth = 16 * 1024L) { snapshot ->
+        assertPrefix(data, snapshot)
+      }
+
+      downloadThread.join()
+
+      val last = snapshots.last()
+      assertTrue(last.isComplete)
+      assertEquals(data.size, last.length)
+      assertTrue(Arrays.equals(data, last.bytes.copyOf(last.length)))
+
+      // Lengths never go back (the completed snapshot may have the same length as the last one)
+      snapshots.zipWithNext().forEach { (prev, next) ->
+        assertTrue(next.length > prev.length || next.isComplete && next.length == prev.length)
+      }
+    }
+  }
+
+  @Test
+  fun `test restarted chunk does not break the prefix`() {
+    val data = Random(100).nextBytes(256 * 1024)
+    val chunks = chunkLong(data.size.toLong(), 2, 1024)
+
+    val downloadedPrefix = DownloadedPrefix()
+    val source = ThrottledSource(
+      data = data,
+      chunks = chunks,
+      downloadedPrefix = downloadedPrefix,
+      dir = temporaryFolder.newFolder(),
+      seed = 100,
+      restartFirstChunkAt = 64 * 1024
+    )
+
+    val downloadThread = thread { source.download() }
+
+    val snapshots = readAll(downloadedPrefix, minGrowth = 4 * 1024L) { snapshot ->
+      assertPrefix(data, snapshot)
+    }
+
+    downloadThread.join()
+
+    assertTrue(snapshots.last().isComplete)
+    assertTrue(Arrays.equals(data, snapshots.last().bytes.copyOf(data.size)))
+  }
+
+  @Test
+  fun `test single chunk of unknown size`() {
+    val data = Random(5).nextBytes(100 * 1024)
+
+    val downloadedPrefix = DownloadedPrefix()
+    val source = ThrottledSource(data, listOf(Chunk.wholeFile()), downloadedPrefix, temporaryFolder.newFolder(), 5)
+    val downloadThread = thread { source.download() }
+
+    val snapshots = readAll(downloadedPrefix, minGrowth = 1024L) { snapshot ->
+      assertPrefix(data, snapshot)
+    }
+
+    downloadThread.join()
+
+    assertTrue(snapshots.size > 1)
+    assertTrue(snapshots.last().isComplete)
+    assertTrue(Arrays.equals(data, snapshots.last().bytes.copyOf(data.size)))
+  }
+
+  @Test
+  fun `test failed download wakes up the reader`() {
+    val data = Random(1).nextBytes(128 * 1024)
+    val chunks = chunkLong(data.size.toLong(), 2, 1024)
+
+    val downloadedPrefix = DownloadedPrefix()
+    val source = ThrottledSource(
+      data = data,
+      chunks = chunks,
+      downloadedPrefix = downloadedPrefix,
+      dir = temporaryFolder.newFolder(),
+      seed = 1,
+      failAt = 40 * 1024
+    )
+
+    val downloadThread = thread { source.download() }
+
+    val snapshots = readAll(downloadedPrefix, minGrowth = 1024L) { snapshot ->
+      assertPrefix(data, snapshot)
+      assertFalse(snapshot.isComplete)
+    }
+
+    downloadThread.join()
+
+    assertTrue(downloadedPrefix.state.value is DownloadedPrefix.State.Failed)
+    // The failing chunk writes at most one more part after reaching failAt
+    assertTrue(snapshots.all { snapshot -> snapshot.length < 48 * 1024 })
+  }
+
+  @Test
+  fun `test waiting reader can be canceled`() {
+    val downloadedPrefix = DownloadedPrefix()
+    val reader = downloadedPrefix.newReader()
+
+    val snapshot = runBlocking {
+      withTimeoutOrNull(100) { reader.awaitNext(1024L) }
+    }
+
+    assertNull(snapshot)
+    assertEquals(0, reader.length)
+
+    // Canceling the download while the reader is waiting
+    val latch = CountDownLatch(1)
+    val canceler = thread {
+      latch.await()
+      Thread.sleep(20)
+      downloadedPrefix.onFailed(IOException("Canceled"))
+    }
+
+    val result = runBlocking {
+      latch.countDown()
+      reader.awaitNext(1024L)
+    }
+
+    canceler.join()
+    assertNull(result)
+  }
+
+  @Test
+  fun `test slow reader never gets ahead of the download and skips intermediate states`() {
+    val data = Random(2).nextBytes(512 * 1024)
+    val chunks = chunkLong(data.size.toLong(), 4, 1024)
+
+    val downloadedPrefix = DownloadedPrefix()
+    val source = ThrottledSource(data, chunks, downloadedPrefix, temporaryFolder.newFolder(), 2)
+    val downloadThread = thread { source.download() }
+
+    val minGrowth = 32 * 1024L
+    var decodes = 0
+
+    val snapshots = readAll(downloadedPrefix, minGrowth = minGrowth) { snapshot ->
+      assertPrefix(data, snapshot)
+
+      // Pretend to decode the prefix
+      ++decodes
+      Thread.sleep(5)
+    }
+
+    downloadThread.join()
+
+    snapshots.zipWithNext().forEach { (prev, next) ->
+      assertTrue(next.isComplete || next.length - prev.length >= minGrowth)
+    }
+
+    assertTrue("updates=${source.publishedUpdates}, decodes=${decodes}", decodes < source.publishedUpdates)
+  }
+
+  @Test
+  fun `test prefix larger than max length is not read`() {
+    val data = Random(3).nextBytes(64 * 1024)
+    val chunks = chunkLong(data.size.toLong(), 2, 1024)
+
+    val downloadedPrefix = DownloadedPrefix()
+    ThrottledSource(data, chunks, downloadedPrefix, temporaryFolder.newFolder(), 3).download()
+
+    val reader = downloadedPrefix.newReader()
+    assertNull(runBlocking { reader.awaitNext(1024L, maxLength = 1024) })
+
+    val snapshot = runBlocking { downloadedPrefix.newReader().awaitNext(1024L) }
+    assertNotNull(snapshot)
+    assertTrue(snapshot!!.isComplete)
+  }
+
+  private fun readAll(
+    downloadedPrefix: DownloadedPrefix,
+    minGrowth: Long,
+    onSnapshot: (Snapshot) -> Unit
+  ): List<Snapshot> {
+    val reader = downloadedPrefix.newReader()
+    val snapshots = mutableListOf<Snapshot>()
+
+    runBlocking {
+      while (true) {
+        val prefixSnapshot = reader.awaitNext(minGrowth)
+          ?: break
+
+        val snapshot = Snapshot(prefixSnapshot.bytes, prefixSnapshot.length, prefixSnapshot.isComplete)
+        onSnapshot(snapshot)
+        snapshots += snapshot
+
+        if (snapshot.isComplete) {
+          break
+        }
+      }
+    }
+
+    return snapshots
+  }
+
+  private fun assertPrefix(data: ByteArray, snapshot: Snapshot) {
+    assertTrue(snapshot.length <= data.size)
+
+    for (index in 0 until snapshot.length) {
+      if (data[index] != snapshot.bytes[index]) {
+        throw AssertionError("Byte at ${index} differs, length=${snapshot.length}")
+      }
+    }
+  }
+
+  class Snapshot(bytes: ByteArray, val length: Int, val isComplete: Boolean) {
+    // Copied because the reader keeps writing into the same array
+    val bytes: ByteArray = bytes.copyOf(length)
+  }
+
+  /**
+   * Writes the chunks of [data] into chunk files concurrently in small randomly delayed parts, the
+   * same way ChunkPersister does (write, flush, publish), and then merges them like ChunkMerger.
+   * */
+  private class ThrottledSource(
+    private val data: ByteArray,
+    private val chunks: List<Chunk>,
+    private val downloadedPrefix: DownloadedPrefix,
+    private val dir: File,
+    private val seed: Int,
+    private val restartFirstChunkAt: Int = -1,
+    private val failAt: Int = -1
+  ) {
+    private val _publishedUpdates = AtomicInteger(0)
+
+    val publishedUpdates: Int
+      get() = _publishedUpdates.get()
+
+    fun download() {
+      val chunkFiles = chunks.map { chunk -> File(dir, "chunk_${chunk.start}") }
+      val error = AtomicReference<Throwable>(null)
+
+      val threads = chunks.mapIndexed { index, chunk ->
+        thread {
+          try {
+            writeChunk(chunk, chunkFiles[index], Random(seed * 31 + index))
+          } catch (throwable: Throwable) {
+            error.compareAndSet(null, throwable)
+          }
+        }
+      }
+
+      threads.forEach { thread -> thread.join() }
+
+      if (error.get() != null) {
+        downloadedPrefix.onFailed(error.get())
+        chunkFiles.forEach { chunkFile -> chunkFile.delete() }
+        return
+      }
+
+      val output = File(dir, "output")
+      output.outputStream().use { outputStream ->
+        chunkFiles.forEach { chunkFile -> chunkFile.inputStream().use { it.copyTo(outputStream) } }
+      }
+
+      downloadedPrefix.onCompleted(output)
+      chunkFiles.forEach { chunkFile -> chunkFile.delete() }
+    }
+
+    private fun writeChunk(chunk: Chunk, chunkFile: File, random: Random) {
+      val start = chunk.start.toInt()
+      val end = if (chunk.isWholeFile()) data.size else chunk.realEnd.toInt()
+      var restarted = false
+
+      while (true) {
+        downloadedPrefix.onChunkStarted(chunk, chunkFile)
+
+        var written = 0
+        var needsRestart = false
+
+        FileOutputStream(chunkFile).use { outputStream ->
+          while (start + written < end) {
+            if (failAt in (start + 1)..(start + written)) {
+              throw IOException("Connection reset")
+            }
+
+            if (!restarted && start == 0 && restartFirstChunkAt in 1..written) {
+              needsRestart = true
+              return@use
+            }
+
+            val count = minOf(random.nextInt(512, 8 * 1024), end - start - written)
+            outputStream.write(data, start + written, count)
+            outputStream.flush()
+            written += count
+
+            downloadedPrefix.onChunkWritten(chunk, written.toLong())
+            _publishedUpdates.incrementAndGet()
+
+            if (random.nextInt(4) == 0) {
+              Thread.sleep(1)
+            }
+          }
+        }
+
+        if (needsRestart) {
+          restarted = true
+          continue
+        }
+
+        downloadedPrefix.onChunkCompleted(chunk, written.toLong())
+        _publishedUpdates.incrementAndGet()
+        return
+      }
+    }
+  }
+
+}
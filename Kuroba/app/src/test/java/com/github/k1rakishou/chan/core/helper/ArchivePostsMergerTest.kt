@@ -0,0 +1,153 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.PostComment
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+
+class ArchivePostsMergerTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L)
+  private val archiveThreadDescriptor = ChanDescriptor.ThreadDescriptor.create("archive.org", "g", 1L)
+
+  @Test
+  fun `nothing is merged into an empty cached thread`() {
+    val archivePosts = listOf(createPost(archiveThreadDescriptor, 1L), createPost(archiveThreadDescriptor, 2L))
+
+    val missingPosts = ArchivePostsMerger.findPostsMissingFromCachedThread(
+      originalThreadDescriptor = threadDescriptor,
+      cachedPosts = emptyList(),
+      archivePosts = archivePosts
+    )
+
+    assertTrue(missingPosts.isEmpty())
+  }
+
+  @Test
+  fun `only the posts missing from the cached thread are returned`() {
+    val cachedPosts = listOf(1L, 2L, 4L, 6L).map { postNo -> createPost(threadDescriptor, postNo) }
+    val archivePosts = (1L..7L).map { postNo -> createPost(archiveThreadDescriptor, postNo) }
+
+    val missingPosts = ArchivePostsMerger.findPostsMissingFromCachedThread(
+      originalThreadDescriptor = threadDescriptor,
+      cachedPosts = cachedPosts,
+      archivePosts = archivePosts
+    )
+
+    assertEquals(listOf(3L, 5L, 7L), missingPosts.map { missingPost -> missingPost.postNo() })
+    missingPosts.forEach { missingPost ->
+      assertEquals(threadDescriptor, missingPost.postDescriptor.descriptor)
+    }
+  }
+
+  @Test
+  fun `posts older than the last cached post are marked as deleted`() {
+    val cachedPosts = listOf(1L, 2L, 4L).map { postNo -> createPost(threadDescriptor, postNo) }
+    val archivePosts = listOf(
+      createPost(archiveThreadDescriptor, 1L),
+      createPost(archiveThreadDescriptor, 3L),
+      createPost(archiveThreadDescriptor, 5L),
+      createPost(archiveThreadDescriptor, 6L, deleted = true)
+    )
+
+    val missingPosts = ArchivePostsMerger.findPostsMissingFromCachedThread(
+      originalThreadDescriptor = threadDescriptor,
+      cachedPosts = cachedPosts,
+      archivePosts = archivePosts
+    ).associateBy { missingPost -> missingPost.postNo() }
+
+    assertTrue(missingPosts[3L]!!.isDeleted)
+    assertFalse(missingPosts[5L]!!.isDeleted)
+    assertTrue(missingPosts[6L]!!.isDeleted)
+  }
+
+  @Test
+  fun `replies and images are moved to the original site`() {
+    val cachedPosts = listOf(1L, 2L).map { postNo -> createPost(threadDescriptor, postNo) }
+
+    val archivePost = createPost(
+      threadDescriptor = archiveThreadDescriptor,
+      postNo = 3L,
+      repliesTo = setOf(PostDescriptor.create(archiveThreadDescriptor, 2L)),
+      repliesFrom = setOf(PostDescriptor.create(archiveThreadDescriptor, 4L)),
+      withImage = true
+    )
+
+    val missingPost = ArchivePostsMerger.findPostsMissingFromCachedThread(
+      originalThreadDescriptor = threadDescriptor,
+      cachedPosts = cachedPosts,
+      archivePosts = listOf(archivePost)
+    ).single()
+
+    assertEquals(setOf(PostDescriptor.create(threadDescriptor, 2L)), missingPost.repliesTo)
+    assertEquals(setOf(PostDescriptor.create(threadDescriptor, 4L)), missingPost.repliesFromCopy)
+    assertEquals(missingPost.postDescriptor, missingPost.postImages.single().ownerPostDescriptor)
+
+    // The archive post is left intact
+    assertEquals(archivePost.postDescriptor, archivePost.postImages.single().ownerPostDescriptor)
+  }
+
+  private fun createPost(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    postNo: Long,
+    deleted: Boolean = false,
+    repliesTo: Set<PostDescriptor> = emptySet(),
+    repliesFrom: Set<PostDescriptor> = emptySet(),
+    withImage: Boolean = false
+  ): ChanPost {
+    val postDescriptor = PostDescriptor.create(threadDescriptor, postNo)
+    val postComment = PostComment(originalComment = "$postNo", originalUnparsedComment = "$postNo", emptyList())
+
+    val postImages = mutableListOf<ChanPostImage>()
+    if (withImage) {
+      postImages += ChanPostImage(serverFilename = "$postNo").also { postImage ->
+        postImage.setPostDescriptor(postDescriptor)
+      }
+    }
+
+    if (threadDescriptor.threadNo == postNo) {
+      return ChanOriginalPost(
+        chanPostId = 0L,
+        postDescriptor = postDescriptor,
+        postImages = postImages,
+        postIcons = mutableListOf<ChanPostHttpIcon>(),
+        repliesTo = repliesTo,
+        timestamp = postNo,
+        postComment = postComment,
+        isSavedReply = false,
+        isSage = false,
+        repliesFrom = repliesFrom,
+        deleted = deleted,
+        posterIdColor = 0,
+        archived = true,
+        closed = false,
+        endless = false,
+        sticky = false,
+        lastModified = 0L
+      )
+    }
+
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = postDescriptor,
+      _postImages = postImages,
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = repliesTo,
+      timestamp = postNo,
+      postComment = postComment,
+      subject = null,
+      tripcode = null,
+      isSavedReply = false,
+      isSage = false,
+      repliesFrom = repliesFrom,
+      deleted = deleted,
+      posterIdColor = 0
+    )
+  }
+}
@@ -0,0 +1,214 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.manager.ArchiveHealthManager
+import com.github.k1rakishou.common.data.ArchiveType
+import com.github.k1rakishou.model.data.descriptor.ArchiveDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestCoroutineScope
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Test
+import java.io.IOException
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class ArchiveThreadRacerTest {
+  private val archive1 = ArchiveDescriptor("Archive1", "archive1.org", ArchiveType.ForPlebs)
+  private val archive2 = ArchiveDescriptor("Archive2", "archive2.org", ArchiveType.Nyafuu)
+  private val archive3 = ArchiveDescriptor("Archive3", "archive3.org", ArchiveType.Warosu)
+  private val archive4 = ArchiveDescriptor("Archive4", "archive4.org", ArchiveType.DesuArchive)
+
+  @Test
+  fun `unknown archives keep their order`() {
+    val archiveHealthManager = ArchiveHealthManager(clock = { 0L })
+
+    val ranked = archiveHealthManager.rank(listOf(archive1, archive2, archive3), BOARD)
+    assertEquals(listOf(archive1, archive2, archive3), ranked)
+  }
+
+  @Test
+  fun `failing and empty archives are ranked behind the working ones`() {
+    val archiveHealthManager = ArchiveHealthManager(clock = { 0L })
+
+    repeat(3) {
+      archiveHealthManager.onArchiveResponse(archive1, BOARD, ArchiveHealthManager.Outcome.Error, 100)
+      archiveHealthManager.onArchiveResponse(archive2, BOARD, ArchiveHealthManager.Outcome.NotFound, 100)
+      archiveHealthManager.onArchiveResponse(archive3, BOARD, ArchiveHealthManager.Outcome.Found, 500)
+    }
+
+    val ranked = archiveHealthManager.rank(listOf(archive1, archive2, archive3, archive4), BOARD)
+    assertEquals(archive3, ranked.first())
+    assertEquals(archive1, ranked.last())
+  }
+
+  @Test
+  fun `board statistics do not leak into other boards except through the archive fallback`() {
+    val archiveHealthManager = ArchiveHealthManager(clock = { 0L })
+
+    repeat(5) {
+      archiveHealthManager.onArchiveResponse(archive1, BOARD, ArchiveHealthManager.Outcome.NotFound, 100)
+      archiveHealthManager.onArchiveResponse(archive1, OTHER_BOARD, ArchiveHealthManager.Outcome.Found, 100)
+    }
+
+    val boardHealth = archiveHealthManager.getHealth(archive1, BOARD)
+    val otherBoardHealth = archiveHealthManager.getHealth(archive1, OTHER_BOARD)
+    assertTrue(boardHealth.hitRate < 0.5)
+    assertTrue(otherBoardHealth.hitRate > 0.5)
+
+    // Never requested board falls back to the archive-wide statistics
+    assertEquals(10, archiveHealthManager.getHealth(archive1, "c").samples)
+  }
+
+  @Test
+  fun `statistics decay back to the defaults over time`() {
+    var now = 0L
+    val archiveHealthManager = ArchiveHealthManager(clock = { now })
+
+    repeat(10) {
+      archiveHealthManager.onArchiveResponse(archive1, BOARD, ArchiveHealthManager.Outcome.Error, 100)
+    }
+
+    val errorRateRightAway = archiveHealthManager.getHealth(archive1, BOARD).errorRate
+    now += 24L * 60L * 60L * 1000L
+    val errorRateNextDay = archiveHealthManager.getHealth(archive1, BOARD).errorRate
+
+    assertTrue(errorRateRightAway > 0.9)
+    assertEquals(ArchiveHealthManager.ArchiveHealth.UNKNOWN.errorRate, errorRateNextDay, 0.001)
+  }
+
+  @Test
+  fun `the most complete response within the grace period wins`() = runBlockingTest {
+    val archiveHealthManager = ArchiveHealthManager(clock = { currentTime })
+    val racer = racer(archiveHealthManager)
+
+    val responders = mapOf(
+      archive1 to FakeArchive(delayMs = 100, response = ArchiveThreadRacer.Response.Found(postsCount = 50)),
+      archive2 to FakeArchive(delayMs = 1500, response = ArchiveThreadRacer.Response.Found(postsCount = 80)),
+      archive3 to FakeArchive(delayMs = 5000, response = ArchiveThreadRacer.Response.Found(postsCount = 100))
+    )
+
+    val raceResult = racer.race(listOf(archive1, archive2, archive3), BOARD) { archiveDescriptor ->
+      responders[archiveDescriptor]!!.respond()
+    }
+
+    raceResult as ArchiveThreadRacer.RaceResult.Winner
+    assertEquals(archive2, raceResult.archiveDescriptor)
+    assertEquals(80, raceResult.postsCount)
+
+    // archive3 did not make it in time and got cancelled
+    assertEquals(2, raceResult.responses.size)
+    assertTrue(responders[archive3]!!.cancelled)
+    assertEquals(1, archiveHealthManager.getHealth(archive3, BOARD).samples)
+
+    val ranked = archiveHealthManager.rank(listOf(archive3, archive2, archive1), BOARD)
+    assertEquals(listOf(archive1, archive2, archive3), ranked)
+  }
+
+  @Test
+  fun `ties go to the archive that responded first`() = runBlockingTest {
+    val racer = racer(ArchiveHealthManager(clock = { currentTime }))
+
+    val responders = mapOf(
+      archive1 to FakeArchive(delayMs = 300, response = ArchiveThreadRacer.Response.Found(postsCount = 10)),
+      archive2 to FakeArchive(delayMs = 200, response = ArchiveThreadRacer.Response.Found(postsCount = 10))
+    )
+
+    val raceResult = racer.race(listOf(archive1, archive2), BOARD) { archiveDescriptor ->
+      responders[archiveDescriptor]!!.respond()
+    }
+
+    raceResult as ArchiveThreadRacer.RaceResult.Winner
+    assertEquals(archive2, raceResult.archiveDescriptor)
+  }
+
+  @Test
+  fun `the next best archives are raced when the best ones do not have the thread`() = runBlockingTest {
+    val archiveHealthManager = ArchiveHealthManager(clock = { currentTime })
+    val racer = racer(archiveHealthManager, maxConcurrentArchives = 2)
+
+    val responders = mapOf(
+      archive1 to FakeArchive(delayMs = 100, response = ArchiveThreadRacer.Response.NotFound),
+      archive2 to FakeArchive(delayMs = 100, error = IOException("Connection reset")),
+      archive3 to FakeArchive(delayMs = 100, response = ArchiveThreadRacer.Response.Found(postsCount = 5)),
+      archive4 to FakeArchive(delayMs = 100, response = ArchiveThreadRacer.Response.NotFound)
+    )
+
+    val raceResult = racer.race(listOf(archive1, archive2, archive3, archive4), BOARD) { archiveDescriptor ->
+      responders[archiveDescriptor]!!.respond()
+    }
+
+    raceResult as ArchiveThreadRacer.RaceResult.Winner
+    assertEquals(archive3, raceResult.archiveDescriptor)
+    assertEquals(4, raceResult.responses.size)
+    assertTrue(raceResult.responses[archive2] is ArchiveThreadRacer.Response.Error)
+
+    // The next time the archive that had the thread goes first and the broken one goes last
+    val ranked = archiveHealthManager.rank(listOf(archive1, archive2, archive3, archive4), BOARD)
+    assertEquals(archive3, ranked.first())
+    assertEquals(archive2, ranked.last())
+  }
+
+  @Test
+  fun `archives that never respond time out`() = runBlockingTest {
+    val archiveHealthManager = ArchiveHealthManager(clock = { currentTime })
+    val racer = racer(archiveHealthManager, archiveTimeoutMs = 1000)
+
+    val responders = mapOf(
+      archive1 to FakeArchive(delayMs = Long.MAX_VALUE, response = ArchiveThreadRacer.Response.NotFound),
+      archive2 to FakeArchive(delayMs = 100, response = ArchiveThreadRacer.Response.NotFound)
+    )
+
+    val raceResult = racer.race(listOf(archive1, archive2), BOARD) { archiveDescriptor ->
+      responders[archiveDescriptor]!!.respond()
+    }
+
+    raceResult as ArchiveThreadRacer.RaceResult.NoWinner
+    assertTrue(raceResult.responses[archive1] is ArchiveThreadRacer.Response.Error)
+    assertEquals(ArchiveThreadRacer.Response.NotFound, raceResult.responses[archive2])
+    assertTrue(archiveHealthManager.getHealth(archive1, BOARD).errorRate > ArchiveHealthManager.ArchiveHealth.UNKNOWN.errorRate)
+  }
+
+  private fun TestCoroutineScope.racer(
+    archiveHealthManager: ArchiveHealthManager,
+    maxConcurrentArchives: Int = 3,
+    archiveTimeoutMs: Long = 20_000L
+  ): ArchiveThreadRacer {
+    return ArchiveThreadRacer(
+      archiveHealthManager = archiveHealthManager,
+      maxConcurrentArchives = maxConcurrentArchives,
+      gracePeriodMs = 2000L,
+      archiveTimeoutMs = archiveTimeoutMs,
+      clock = { currentTime }
+    )
+  }
+
+  private class FakeArchive(
+    private val delayMs: Long,
+    private val response: ArchiveThreadRacer.Response? = null,
+    private val error: Throwable? = null
+  ) {
+    var cancelled = false
+
+    suspend fun respond(): ArchiveThreadRacer.Response {
+      try {
+        delay(delayMs)
+      } catch (cancellation: CancellationException) {
+        cancelled = true
+        throw cancellation
+      }
+
+      if (error != null) {
+        throw error
+      }
+
+      return response!!
+    }
+  }
+
+  companion object {
+    private const val BOARD = "g"
+    private const val OTHER_BOARD = "a"
+  }
+}
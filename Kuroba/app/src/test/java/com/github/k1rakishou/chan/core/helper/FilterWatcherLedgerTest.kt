@@ -0,0 +1,201 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
+import com.github.k1rakishou.model.data.filter.ChanFilter
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import kotlin.random.Random
+
+class FilterWatcherLedgerTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val board = BoardDescriptor.create("test", "g")
+  private val otherBoard = BoardDescriptor.create("test", "a")
+
+  @Test
+  fun `test incremental matching gives the same results as full matching`() {
+    val ledger = FilterWatcherLedger(ledgerFile())
+    val filters = listOf(filter(1L, "kuroba"), filter(2L, "[0-9]{4}"))
+    val random = Random(1)
+
+    var threads = (0 until 150L).associateWith { threadNo -> randomComment(random, threadNo) }
+    var nextThreadNo = 150L
+
+    repeat(20) { runIndex ->
+      val incremental = runWatcher(ledger, board, filters, threads)
+      val full = runWatcher(null, board, filters, threads)
+
+      assertEquals(full.matched, incremental.matched)
+      assertEquals(threads.size, full.evaluated)
+
+      if (runIndex > 0) {
+        // Only new and edited threads (plus the matched ones) are evaluated again
+        assertTrue(incremental.evaluated < threads.size / 2)
+      }
+
+      // Simulate the catalog changing between runs: some threads fall off, some are edited and some are new
+      threads = threads.toMutableMap().apply {
+        keys.take(5).forEach { threadNo -> remove(threadNo) }
+        keys.shuffled(random).take(3).forEach { threadNo -> put(threadNo, randomComment(random, threadNo)) }
+        repeat(5) { put(nextThreadNo, randomComment(random, nextThreadNo++)) }
+      }
+    }
+  }
+
+  @Test
+  fun `test unchanged catalog is not evaluated again`() {
+    val ledger = FilterWatcherLedger(ledgerFile())
+    val filters = listOf(filter(1L, "match"))
+    val threads = mapOf(1L to "no", 2L to "match", 3L to "nope")
+
+    assertEquals(3, runWatcher(ledger, board, filters, threads).evaluated)
+
+    val secondRun = runWatcher(ledger, board, filters, threads)
+    assertEquals(setOf(2L), secondRun.matched)
+    // Matched threads are always evaluated again
+    assertEquals(1, secondRun.evaluated)
+  }
+
+  @Test
+  fun `test edited thread is evaluated again`() {
+    val ledger = FilterWatcherLedger(ledgerFile())
+    val filters = listOf(filter(1L, "match"))
+
+    runWatcher(ledger, board, filters, mapOf(1L to "no", 2L to "nope"))
+    val secondRun = runWatcher(ledger, board, filters, mapOf(1L to "no", 2L to "now a match"))
+
+    assertEquals(setOf(2L), secondRun.matched)
+    assertEquals(1, secondRun.evaluated)
+  }
+
+  @Test
+  fun `test changed filters invalidate the ledger`() {
+    val ledger = FilterWatcherLedger(ledgerFile())
+    val threads = mapOf(1L to "foo", 2L to "bar", 3L to "baz")
+
+    runWatcher(ledger, board, listOf(filter(1L, "foo")), threads)
+
+    val newFilterRun = runWatcher(ledger, board, listOf(filter(1L, "foo"), filter(2L, "bar")), threads)
+    assertEquals(setOf(1L, 2L), newFilterRun.matched)
+    assertEquals(3, newFilterRun.evaluated)
+
+    val changedPatternRun = runWatcher(ledger, board, listOf(filter(1L, "foo"), filter(2L, "baz")), threads)
+    assertEquals(setOf(1L, 3L), changedPatternRun.matched)
+    assertEquals(3, changedPatternRun.evaluated)
+  }
+
+  @Test
+  fun `test filters for other boards do not invalidate the ledger`() {
+    val ledger = FilterWatcherLedger(ledgerFile())
+    val threads = mapOf(1L to "foo", 2L to "bar")
+
+    runWatcher(ledger, board, listOf(filter(1L, "foo")), threads)
+
+    val filters = listOf(filter(1L, "foo"), filter(2L, "bar", setOf(otherBoard)))
+    val secondRun = runWatcher(ledger, board, filters, threads)
+
+    assertEquals(setOf(1L), secondRun.matched)
+    assertEquals(1, secondRun.evaluated)
+  }
+
+  @Test
+  fun `test ledger is persisted`() {
+    val ledgerFile = ledgerFile()
+    val filters = listOf(filter(1L, "match"))
+    val threads = mapOf(1L to "no", 2L to "nope", 3L to "match")
+
+    runWatcher(FilterWatcherLedger(ledgerFile), board, filters, threads)
+
+    val secondRun = runWatcher(FilterWatcherLedger(ledgerFile), board, filters, threads)
+    assertEquals(setOf(3L), secondRun.matched)
+    assertEquals(1, secondRun.evaluated)
+  }
+
+  @Test
+  fun `test corrupted ledger file is ignored`() {
+    val ledgerFile = ledgerFile()
+    ledgerFile.writeBytes(Random(2).nextBytes(100))
+
+    val filters = listOf(filter(1L, "match"))
+    val threads = mapOf(1L to "no", 2L to "match")
+
+    val firstRun = runWatcher(FilterWatcherLedger(ledgerFile), board, filters, threads)
+    assertEquals(setOf(2L), firstRun.matched)
+    assertEquals(2, firstRun.evaluated)
+
+    val secondRun = runWatcher(FilterWatcherLedger(ledgerFile), board, filters, threads)
+    assertEquals(1, secondRun.evaluated)
+  }
+
+  private fun ledgerFile() = temporaryFolder.root.resolve("filter_watcher_ledger")
+
+  /**
+   * Does the same thing BookmarkFilterWatchableThreadsUseCase does with the ledger but with a simple
+   * regex matcher instead of the FilterEngine.
+   * */
+  private fun runWatcher(
+    ledger: FilterWatcherLedger?,
+    boardDescriptor: BoardDescriptor,
+    filters: List<ChanFilter>,
+    threads: Map<Long, String>
+  ): RunResult {
+    val boardRun = ledger?.startRun(
+      boardDescriptor,
+      FilterWatcherLedger.filterSetFingerprint(boardDescriptor, filters)
+    )
+
+    val matched = mutableSetOf<Long>()
+    var evaluated = 0
+
+    threads.forEach { (threadNo, comment) ->
+      val contentHash = FilterWatcherLedger.contentHash("", comment)
+      if (boardRun != null && boardRun.isKnownNonMatch(threadNo, contentHash)) {
+        return@forEach
+      }
+
+      ++evaluated
+
+      val matchedFilter = filters
+        .filter { filter -> filter.matchesBoard(boardDescriptor) }
+        .firstOrNull { filter -> Regex(filter.pattern!!).containsMatchIn(comment) }
+
+      if (matchedFilter != null) {
+        matched += threadNo
+      } else {
+        boardRun?.recordNonMatch(threadNo, contentHash)
+      }
+    }
+
+    if (ledger != null && boardRun != null) {
+      ledger.commit(listOf(boardRun))
+    }
+
+    return RunResult(matched, evaluated)
+  }
+
+  private fun randomComment(random: Random, threadNo: Long): String {
+    return buildString {
+      append("thread $threadNo ")
+
+      repeat(10) {
+        when (random.nextInt(80)) {
+          0 -> append("kuroba ")
+          1 -> append("${1000 + random.nextInt(9000)} ")
+          else -> append("word${random.nextInt(100)} ")
+        }
+      }
+    }
+  }
+
+  private fun filter(databaseId: Long, pattern: String, boards: Set<BoardDescriptor> = emptySet()): ChanFilter {
+    return ChanFilter(filterDatabaseId = databaseId, pattern = pattern, boards = boards)
+  }
+
+  private class RunResult(val matched: Set<Long>, val evaluated: Int)
+
+}
@@ -0,0 +1,378 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.usecase.PostMapInfoEntry
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class PostMapIndexTest {
+
+  @Test
+  fun `test index matches full rebuild for random update sequences`() {
+    repeat(20) { iteration ->
+      val random = Random(iteration)
+      val thread = SyntheticThread()
+      val postMapIndex = PostMapIndex<Long>()
+
+      repeat(100) {
+        thread.randomUpdate(random)
+        thread.applyTo(postMapIndex)
+
+        for (marker in PostMapIndex.Marker.values()) {
+          val expected = fullRebuild(thread, marker)
+
+          assertEquals(expected, postMapIndex.ranges(marker, Int.MAX_VALUE))
+
+          if (thread.size > 0) {
+            assertEquals(expected, postMapIndex.ranges(marker, thread.size))
+          }
+
+          for (resolution in intArrayOf(1, 7, 64, 333)) {
+            assertEquals(bucketed(thread, marker, resolution), postMapIndex.ranges(marker, resolution))
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  fun `test only new posts are evaluated`() {
+    val random = Random(1)
+    val thread = SyntheticThread()
+    thread.append(random, 100)
+
+    val postMapIndex = PostMapIndex<Long>()
+    val initialResult = thread.applyTo(postMapIndex)
+    assertEquals(listOf(0 until 100), initialResult.changedRanges)
+    assertTrue(initialResult.updatedPositions > 0)
+
+    val unchangedResult = thread.applyTo(postMapIndex)
+    assertTrue(unchangedResult.changedRanges.isEmpty())
+    assertEquals(0, unchangedResult.updatedPositions)
+
+    thread.append(random, 3)
+    val appendResult = thread.applyTo(postMapIndex)
+    assertEquals(listOf(100 until 103), appendResult.changedRanges)
+    assertTrue(appendResult.updatedPositions <= 3 * PostMapIndex.Marker.values().size)
+
+    // Hidden posts are removed from the list, the rest of the posts keep their markers
+    thread.remove(10)
+    thread.remove(50)
+    assertTrue(thread.applyTo(postMapIndex).changedRanges.isEmpty())
+
+    thread.insert(random, 20, 2)
+    assertEquals(listOf(20 until 22), thread.applyTo(postMapIndex).changedRanges)
+
+    // Only the cheap markers are evaluated for every post
+    thread.flipCheapMarkers(random, 10)
+    assertTrue(thread.applyTo(postMapIndex).changedRanges.isEmpty())
+
+    for (marker in PostMapIndex.Marker.values()) {
+      assertEquals(fullRebuild(thread, marker), postMapIndex.ranges(marker, Int.MAX_VALUE))
+    }
+  }
+
+  @Test
+  fun `test every post is evaluated when the context changes`() {
+    val random = Random(2)
+    val thread = SyntheticThread()
+    thread.append(random, 50)
+
+    val postMapIndex = PostMapIndex<Long>()
+    thread.applyTo(postMapIndex)
+
+    // E.g. a highlight filter was added
+    thread.changeContext(random, 10)
+    assertEquals(listOf(0 until 50), thread.applyTo(postMapIndex).changedRanges)
+
+    for (marker in PostMapIndex.Marker.values()) {
+      assertEquals(fullRebuild(thread, marker), postMapIndex.ranges(marker, Int.MAX_VALUE))
+    }
+  }
+
+  @Test
+  fun `test ranges never exceed the resolution`() {
+    val random = Random(3)
+    val thread = SyntheticThread()
+    thread.append(random, 5000)
+
+    val postMapIndex = PostMapIndex<Long>()
+    thread.applyTo(postMapIndex)
+
+    for (marker in PostMapIndex.Marker.values()) {
+      for (resolution in intArrayOf(10, 100, 1000)) {
+        val ranges = postMapIndex.ranges(marker, resolution)
+        assertTrue(ranges.size <= resolution)
+
+        ranges.zipWithNext().forEach { (prev, next) ->
+          assertTrue(prev.range.last < next.range.first)
+        }
+      }
+    }
+  }
+
+  @Test
+  fun `test updates of 5k post threads only evaluate the appended posts`() {
+    val random = Random(4)
+    val threads = (0 until 10).map { SyntheticThread().apply { append(random, 5000) } }
+    val indexes = threads.map { thread -> PostMapIndex<Long>().apply { thread.applyTo(this) } }
+
+    val scrollbarResolution = 2000
+    val updates = 50
+
+    var appendedPosts = 0
+    var evaluatedPosts = 0
+    var updatedPositions = 0
+    var fullRebuildRanges = 0
+    var indexRanges = 0
+
+    repeat(updates) {
+      threads.forEachIndexed { index, thread ->
+        // A thread update: a couple of new posts and some old posts deleted or became hot
+        val appendCount = random.nextInt(0, 5)
+        thread.append(random, appendCount)
+        thread.flipCheapMarkers(random, 5)
+        appendedPosts += appendCount
+
+        val result = thread.applyTo(indexes[index])
+        evaluatedPosts += result.changedRanges.sumOf { changedRange -> changedRange.count() }
+        updatedPositions += result.updatedPositions
+
+        PostMapIndex.Marker.values().forEach { marker ->
+          fullRebuildRanges += fullRebuild(thread, marker).size
+        }
+
+        val holder = indexes[index].toPostMapInfoHolder(scrollbarResolution)
+        indexRanges += holder.myPostsPositionRanges.size + holder.replyPositionRanges.size +
+          holder.crossThreadQuotePositionRanges.size + holder.postFilterHighlightRanges.size +
+          holder.deletedPostsPositionRanges.size + holder.hotPostsPositionRanges.size +
+          holder.thirdEyePostsPositionRanges.size
+      }
+    }
+
+    val totalUpdates = updates * threads.size
+
+    assertEquals(appendedPosts, evaluatedPosts)
+    // At most every marker of the appended posts and of the flipped ones
+    assertTrue(
+      "updatedPositions=${updatedPositions}, appendedPosts=${appendedPosts}",
+      updatedPositions <= (appendedPosts + totalUpdates * 5) * PostMapIndex.Marker.values().size
+    )
+    assertTrue("indexRanges=${indexRanges}, fullRebuildRanges=${fullRebuildRanges}", indexRanges <= fullRebuildRanges)
+  }
+
+  /**
+   * What ExtractPostMapInfoHolderUseCase did before: a walk over the whole post list per marker
+   * type connecting the neighbouring positions into ranges.
+   * */
+  private fun fullRebuild(thread: SyntheticThread, marker: PostMapIndex.Marker): List<PostMapInfoEntry> {
+    val ranges = ArrayList<PostMapInfoEntry>()
+    var prevIndex = 0
+
+    for (index in 0 until thread.size) {
+      if (thread.markerBits(index) and marker.bit == 0) {
+        continue
+      }
+
+      val color = if (marker == PostMapIndex.Marker.FilterHighlight) thread.highlightColor(index) else 0
+
+      if (prevIndex == index - 1 && ranges.size > 0 && ranges.last().color == color) {
+        val prevRange = ranges[ranges.lastIndex].range
+        ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.first, index), color)
+      } else {
+        ranges.add(PostMapInfoEntry(IntRange(index, index), color))
+      }
+
+      prevIndex = index
+    }
+
+    return ranges
+  }
+
+  /**
+   * Brute force version of the bucketed ranges: every bucket with a marked position gets the color
+   * of its first marked position and the neighbouring buckets with the same color are merged.
+   * */
+  private fun bucketed(thread: SyntheticThread, marker: PostMapIndex.Marker, resolution: Int): List<PostMapInfoEntry> {
+    val size = thread.size
+    if (resolution >= size) {
+      return fullRebuild(thread, marker)
+    }
+
+    val ranges = ArrayList<PostMapInfoEntry>()
+
+    for (bucket in 0 until resolution) {
+      val bucketStart = ((bucket.toLong() * size + resolution - 1) / resolution).toInt()
+      val bucketEnd = (((bucket + 1).toLong() * size + resolution - 1) / resolution).toInt()
+
+      val firstMarked = (bucketStart until bucketEnd)
+        .firstOrNull { position -> thread.markerBits(position) and marker.bit != 0 }
+        ?: continue
+
+      val color = if (marker == PostMapIndex.Marker.FilterHighlight) thread.highlightColor(firstMarked) else 0
+      val prevRange = ranges.lastOrNull()
+
+      if (prevRange != null && prevRange.range.last == bucketStart - 1 && prevRange.color == color) {
+        ranges[ranges.lastIndex] = PostMapInfoEntry(IntRange(prevRange.range.first, bucketEnd - 1), color)
+      } else {
+        ranges += PostMapInfoEntry(IntRange(bucketStart, bucketEnd - 1), color)
+      }
+    }
+
+    return ranges
+  }
+
+  private class SyntheticPost(
+    val postId: Long,
+    // DeletedPost and HotPost, may change at any time
+    var cheapBits: Int,
+    // The rest of the markers, only change along with the context
+    var expensiveBits: Int,
+    var highlightColor: Int
+  )
+
+  private class ApplyResult(
+    val changedRanges: List<IntRange>,
+    val updatedPositions: Int
+  )
+
+  private class SyntheticThread {
+    private val posts = ArrayList<SyntheticPost>()
+    private var nextPostId = 1L
+    private var context = 0
+
+    val size: Int
+      get() = posts.size
+
+    fun markerBits(position: Int): Int = posts[position].cheapBits or posts[position].expensiveBits
+    fun highlightColor(position: Int): Int = posts[position].highlightColor
+
+    /**
+     * What ExtractPostMapInfoHolderUseCase does: the cheap markers for every post, the rest only for
+     * the posts the index asks for.
+     * */
+    fun applyTo(postMapIndex: PostMapIndex<Long>): ApplyResult {
+      val cheapMarkerBits = IntArray(posts.size) { position -> posts[position].cheapBits }
+      val diff = postMapIndex.diff(posts.map { post -> post.postId }, cheapMarkerBits, context)
+
+      diff.changedRanges.forEach { changedRange ->
+        for (position in changedRange) {
+          val post = posts[position]
+
+          PostMapIndex.Marker.values().forEach { marker ->
+            if (post.expensiveBits and marker.bit != 0) {
+              diff.mark(position, marker)
+            }
+          }
+
+          diff.highlightColors[position] = post.highlightColor
+        }
+      }
+
+      return ApplyResult(diff.changedRanges, postMapIndex.update(diff))
+    }
+
+    fun randomUpdate(random: Random) {
+      when (random.nextInt(12)) {
+        0 -> {
+          // Hidden posts are removed from the list
+          repeat(random.nextInt(0, size / 4 + 1)) { remove(random.nextInt(size)) }
+        }
+        1 -> {
+          // The hot posts threshold changed, lots of positions change at once
+          val bit = PostMapIndex.Marker.HotPost.bit
+          posts.forEach { post ->
+            post.cheapBits = if (random.nextInt(4) == 0) post.cheapBits or bit else post.cheapBits and bit.inv()
+          }
+        }
+        2 -> changeContext(random, random.nextInt(1, 20))
+        3 -> {
+          // Unhidden posts come back in the middle of the list
+          insert(random, random.nextInt(0, size + 1), random.nextInt(1, 5))
+        }
+        4, 5, 6 -> flipCheapMarkers(random, random.nextInt(1, 20))
+        else -> append(random, random.nextInt(0, 40))
+      }
+    }
+
+    fun append(random: Random, count: Int) {
+      insert(random, size, count)
+    }
+
+    fun insert(random: Random, position: Int, count: Int) {
+      val newPosts = (0 until count).map { createPost(random) }
+      posts.addAll(position, newPosts)
+    }
+
+    fun remove(position: Int) {
+      posts.removeAt(position)
+    }
+
+    fun flipCheapMarkers(random: Random, count: Int) {
+      if (size == 0) {
+        return
+      }
+
+      repeat(count) {
+        val post = posts[random.nextInt(size)]
+        post.cheapBits = post.cheapBits xor PostMapIndex.CHEAP_MARKERS.random(random).bit
+      }
+    }
+
+    fun changeContext(random: Random, count: Int) {
+      ++context
+
+      if (size == 0) {
+        return
+      }
+
+      repeat(count) {
+        val post = posts[random.nextInt(size)]
+
+        if (random.nextBoolean()) {
+          // Re-highlighted
+          post.expensiveBits = post.expensiveBits xor EXPENSIVE_MARKERS.random(random).bit
+          post.highlightColor = randomColor(random)
+        } else {
+          post.expensiveBits = randomBits(random) and CHEAP_MARKERS_MASK.inv()
+        }
+      }
+    }
+
+    private fun createPost(random: Random): SyntheticPost {
+      val bits = randomBits(random)
+
+      return SyntheticPost(
+        postId = nextPostId++,
+        cheapBits = bits and CHEAP_MARKERS_MASK,
+        expensiveBits = bits and CHEAP_MARKERS_MASK.inv(),
+        highlightColor = randomColor(random)
+      )
+    }
+
+    private fun randomBits(random: Random): Int {
+      var bits = 0
+
+      PostMapIndex.Marker.values().forEachIndexed { index, marker ->
+        // Different markers have different density, some come in long runs
+        if (random.nextInt(3 + index * 2) == 0) {
+          bits = bits or marker.bit
+        }
+      }
+
+      return bits
+    }
+
+    private fun randomColor(random: Random): Int {
+      return COLORS[random.nextInt(COLORS.size)]
+    }
+  }
+
+  companion object {
+    private val COLORS = intArrayOf(0xFFFF0000.toInt(), 0xFF00FF00.toInt(), 0xFF0000FF.toInt())
+    private val CHEAP_MARKERS_MASK = PostMapIndex.CHEAP_MARKERS.fold(0) { mask, marker -> mask or marker.bit }
+    private val EXPENSIVE_MARKERS = PostMapIndex.Marker.values().filter { marker -> marker !in PostMapIndex.CHEAP_MARKERS }
+  }
+
+}
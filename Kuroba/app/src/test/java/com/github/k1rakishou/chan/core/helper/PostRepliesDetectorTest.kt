@@ -0,0 +1,274 @@
+package com.github.k1rakishou.chan.core.helper
+
+import com.github.k1rakishou.chan.core.site.parser.ReplyParser
+import com.github.k1rakishou.model.data.bookmark.StickyThread
+import com.github.k1rakishou.model.data.bookmark.ThreadBookmarkInfoPostObject
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.util.regex.Pattern
+import kotlin.random.Random
+
+class PostRepliesDetectorTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val detector = PostRepliesDetector { comment -> extractCommentReplies(comment) }
+
+  @Test
+  fun `test incremental detection finds the same replies as the full scan`() {
+    val random = Random(1)
+    val watermarksFile = temporaryFolder.newFile()
+    var watermarks = PostRepliesWatermarks(watermarksFile)
+
+    val threads = (0 until 20).map { index -> SyntheticThread(threadDescriptor(1000L + index * 10_000L)) }
+    // Replies to my posts that were found so far, like ThreadBookmark.threadBookmarkReplies
+    val foundReplies = threads.associate { thread -> thread.threadDescriptor to mutableMapOf<Long, MutableSet<Long>>() }
+
+    var totalPosts = 0
+    var totalScanned = 0
+    var totalParsed = 0
+
+    repeat(30) { cycle ->
+      threads.forEachIndexed { index, thread ->
+        // A third of the threads never has our posts
+        thread.grow(random, canPost = index % 3 != 0)
+      }
+
+      if (cycle == 15) {
+        // App restart
+        watermarks = PostRepliesWatermarks(watermarksFile)
+      }
+
+      val run = watermarks.startRun()
+      var cycleScanned = 0
+      var cycleParsed = 0
+
+      threads.forEach { thread ->
+        val expected = fullScan(thread.threadDescriptor, thread.posts, thread.myPostNos)
+
+        val lastPostNo = thread.posts.last().postNo()
+        if (thread.myPostNos.isEmpty()) {
+          run.recordProcessed(thread.threadDescriptor, lastPostNo, thread.myPostNos)
+          assertTrue(expected.isEmpty())
+          return@forEach
+        }
+
+        val result = detector.detect(
+          threadDescriptor = thread.threadDescriptor,
+          posts = thread.posts,
+          myPostNos = thread.myPostNos,
+          scanAfterPostNo = run.scanAfterPostNo(thread.threadDescriptor, thread.myPostNos)
+        )
+
+        run.recordProcessed(thread.threadDescriptor, lastPostNo, thread.myPostNos.toSet())
+
+        val threadReplies = foundReplies[thread.threadDescriptor]!!
+        result.repliesToMe.forEach { (myPostNo, replies) ->
+          replies.forEach { reply ->
+            assertEquals(thread.threadDescriptor, reply.postDescriptor.descriptor)
+            threadReplies.getOrPut(myPostNo) { mutableSetOf() }.add(reply.postDescriptor.postNo)
+          }
+        }
+
+        assertEquals(expected, threadReplies)
+
+        cycleScanned += result.scannedPosts
+        cycleParsed += result.parsedPosts
+      }
+
+      watermarks.commit(run)
+
+      val cyclePosts = threads.sumOf { thread -> thread.posts.size }
+      totalPosts += cyclePosts
+      totalScanned += cycleScanned
+      totalParsed += cycleParsed
+    }
+
+    assertTrue("scanned=${totalScanned}, total=${totalPosts}", totalScanned < totalPosts / 4)
+    assertTrue("parsed=${totalParsed}, scanned=${totalScanned}", totalParsed < totalScanned)
+  }
+
+  @Test
+  fun `test old post marked as mine is rescanned from that post`() {
+    val watermarks = PostRepliesWatermarks(temporaryFolder.newFile())
+    val threadDescriptor = threadDescriptor(1L)
+
+    val firstRun = watermarks.startRun()
+    assertEquals(0L, firstRun.scanAfterPostNo(threadDescriptor, setOf(5L)))
+    firstRun.recordProcessed(threadDescriptor, 100L, setOf(5L))
+    watermarks.commit(firstRun)
+
+    val secondRun = watermarks.startRun()
+    // Nothing changed
+    assertEquals(100L, secondRun.scanAfterPostNo(threadDescriptor, setOf(5L)))
+    // A new post of ours, nobody could have replied to it before it was made
+    assertEquals(100L, secondRun.scanAfterPostNo(threadDescriptor, setOf(5L, 120L)))
+    // An old post was marked as ours
+    assertEquals(42L, secondRun.scanAfterPostNo(threadDescriptor, setOf(5L, 42L, 70L)))
+
+    // Threads that were not processed during the last run are forgotten
+    secondRun.recordProcessed(threadDescriptor(2L), 10L, emptySet())
+    watermarks.commit(secondRun)
+    assertEquals(0L, watermarks.startRun().scanAfterPostNo(threadDescriptor, setOf(5L)))
+  }
+
+  @Test
+  fun `test corrupted watermarks file is ignored`() {
+    val watermarksFile = temporaryFolder.newFile()
+    watermarksFile.writeBytes(byteArrayOf(0, 0, 0, 1, 0, 0, 0, 5, 1))
+
+    val run = PostRepliesWatermarks(watermarksFile).startRun()
+    assertEquals(0L, run.scanAfterPostNo(threadDescriptor(1L), setOf(1L)))
+  }
+
+  @Test
+  fun `test post number matcher`() {
+    val matcher = PostRepliesDetector.PostNoMatcher(listOf(123L, 2345L, 99L))
+
+    assertTrue(matcher.containsAny("&gt;&gt;123"))
+    assertTrue(matcher.containsAny("x12345y"))
+    assertTrue(matcher.containsAny("#p1299"))
+    assertTrue(matcher.containsAny("12 2345"))
+    assertFalse(matcher.containsAny("12 3"))
+    assertFalse(matcher.containsAny("234 5"))
+    assertFalse(matcher.containsAny("9 9 1 2"))
+    assertFalse(matcher.containsAny(""))
+    assertFalse(PostRepliesDetector.PostNoMatcher(emptyList()).containsAny("123"))
+  }
+
+  /**
+   * What ParsePostRepliesUseCase did before: every post of the thread is run through the quote
+   * patterns and only then the quotes are filtered by our posts.
+   * */
+  private fun fullScan(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    posts: List<ThreadBookmarkInfoPostObject>,
+    myPostNos: Set<Long>
+  ): Map<Long, Set<Long>> {
+    val quoteOwnerPostsMap = mutableMapOf<Long, MutableSet<Long>>()
+
+    posts.forEach { post ->
+      extractCommentReplies(post.comment()).forEach { extractedQuote ->
+        when (extractedQuote) {
+          is ReplyParser.ExtractedQuote.FullQuote -> {
+            if (extractedQuote.boardCode != threadDescriptor.boardCode()
+              || extractedQuote.threadId != threadDescriptor.threadNo) {
+              return@forEach
+            }
+
+            quoteOwnerPostsMap.getOrPut(extractedQuote.postId) { mutableSetOf() }.add(post.postNo())
+          }
+          is ReplyParser.ExtractedQuote.Quote -> {
+            quoteOwnerPostsMap.getOrPut(extractedQuote.postId) { mutableSetOf() }.add(post.postNo())
+          }
+        }
+      }
+    }
+
+    return quoteOwnerPostsMap.filterKeys { quotedPostNo -> quotedPostNo in myPostNos }
+  }
+
+  // Same as ReplyParser with the quote patterns of CommentParser
+  private fun extractCommentReplies(comment: CharSequence): List<ReplyParser.ExtractedQuote> {
+    var matcher = FULL_QUOTE_PATTERN.matcher(comment)
+    if (matcher.find()) {
+      matcher.reset()
+      val result = mutableListOf<ReplyParser.ExtractedQuote>()
+
+      while (matcher.find()) {
+        result += ReplyParser.ExtractedQuote.FullQuote(matcher.group(1)!!, matcher.group(2)!!.toLong(), matcher.group(3)!!.toLong())
+      }
+
+      return result
+    }
+
+    matcher = QUOTE_PATTERN.matcher(comment)
+    val result = mutableListOf<ReplyParser.ExtractedQuote>()
+
+    while (matcher.find()) {
+      result += ReplyParser.ExtractedQuote.Quote(matcher.group(1)!!.toLong())
+    }
+
+    return result
+  }
+
+  private fun threadDescriptor(threadNo: Long): ChanDescriptor.ThreadDescriptor {
+    return ChanDescriptor.ThreadDescriptor.create("test", "g", threadNo)
+  }
+
+  private class SyntheticThread(val threadDescriptor: ChanDescriptor.ThreadDescriptor) {
+    val posts = mutableListOf<ThreadBookmarkInfoPostObject>(
+      ThreadBookmarkInfoPostObject.OriginalPost(
+        postNo = threadDescriptor.threadNo,
+        closed = false,
+        archived = false,
+        isBumpLimit = false,
+        isImageLimit = false,
+        stickyThread = StickyThread.NotSticky,
+        comment = "OP"
+      )
+    )
+
+    val myPostNos = mutableSetOf<Long>()
+    private var nextPostNo = threadDescriptor.threadNo + 1
+
+    fun grow(random: Random, canPost: Boolean) {
+      repeat(random.nextInt(0, 15)) {
+        val postNo = nextPostNo
+        nextPostNo += random.nextLong(1, 3)
+
+        posts += ThreadBookmarkInfoPostObject.RegularPost(postNo, randomComment(random))
+
+        if (canPost && random.nextInt(10) == 0) {
+          myPostNos += postNo
+        }
+      }
+
+      if (canPost && random.nextInt(20) == 0) {
+        // Marking some old post as ours
+        myPostNos += posts[random.nextInt(posts.size)].postNo()
+      }
+    }
+
+    private fun randomComment(random: Random): String {
+      val builder = StringBuilder()
+
+      repeat(random.nextInt(0, 4)) {
+        val quotedPostNo = if (myPostNos.isNotEmpty() && random.nextInt(3) == 0) {
+          myPostNos.random(random)
+        } else {
+          posts[random.nextInt(posts.size)].postNo()
+        }
+
+        when (random.nextInt(5)) {
+          0 -> {
+            // Cross-thread quote
+            builder.append("<a href=\"/g/thread/${quotedPostNo + 7}#p${quotedPostNo}\" class=\"quotelink\">&gt;&gt;${quotedPostNo}</a><br>")
+          }
+          1 -> {
+            // Not a quote but has the number in it
+            builder.append("I counted ${quotedPostNo}${random.nextInt(10)} of them<br>")
+          }
+          else -> {
+            builder.append("<a href=\"#p${quotedPostNo}\" class=\"quotelink\">&gt;&gt;${quotedPostNo}</a><br>")
+          }
+        }
+      }
+
+      builder.append("text ").append(random.nextInt(1000))
+      return builder.toString()
+    }
+  }
+
+  companion object {
+    private val QUOTE_PATTERN = Pattern.compile("#p(\\d+)")
+    private val FULL_QUOTE_PATTERN = Pattern.compile("/(\\w+)/\\w+/(\\d+)#p(\\d+)")
+  }
+
+}
@@ -0,0 +1,358 @@
+package com.github.k1rakishou.chan.core.net
+
+import com.github.k1rakishou.chan.core.helper.ProxyStorage
+import com.github.k1rakishou.chan.core.manager.ApplicationVisibility
+import com.github.k1rakishou.chan.core.manager.ApplicationVisibilityManager
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import org.junit.After
+import org.junit.Test
+import java.io.BufferedReader
+import java.io.DataInputStream
+import java.io.IOException
+import java.io.InputStreamReader
+import java.net.InetSocketAddress
+import java.net.Proxy
+import java.net.ProxySelector
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketAddress
+import java.net.URI
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class ProxyHealthMonitorTest {
+  private var now = 0L
+  private val proxyStubs = mutableListOf<ProxyStub>()
+
+  private val proxyHealthMonitor = ProxyHealthMonitor(
+    appScope = CoroutineScope(Job()),
+    proxyProber = SocketProxyProber(connectTimeoutMs = 2000, readTimeoutMs = 5000),
+    applicationVisibilityManager = ApplicationVisibilityManager(),
+    clock = { now }
+  )
+
+  @After
+  fun tearDown() {
+    proxyStubs.forEach { proxyStub -> proxyStub.kill() }
+  }
+
+  @Test
+  fun `not probed proxies keep the configured order`() {
+    val proxies = listOf(
+      kurobaProxy(1000, ProxyStorage.KurobaProxyType.HTTP),
+      kurobaProxy(1001, ProxyStorage.KurobaProxyType.SOCKS)
+    )
+
+    assertEquals(proxies.map { it.asJavaProxy }, proxyHealthMonitor.selectProxies(proxies))
+    assertEquals(listOf(Proxy.NO_PROXY), proxyHealthMonitor.selectProxies(emptyList()))
+  }
+
+  @Test
+  fun `dead proxy is skipped after the failure streak and is used again once it recovers`() {
+    val httpStub = startStub(ProxyStorage.KurobaProxyType.HTTP, "http")
+    val socksStub = startStub(ProxyStorage.KurobaProxyType.SOCKS, "socks")
+    val httpProxy = httpStub.kurobaProxy()
+    val socksProxy = socksStub.kurobaProxy()
+    val proxies = listOf(httpProxy, socksProxy)
+
+    probe(proxies)
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.Healthy, status(httpProxy).state)
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.Healthy, status(socksProxy).state)
+    assertEquals(listOf(httpProxy, socksProxy).map { it.asJavaProxy }, proxyHealthMonitor.selectProxies(proxies))
+
+    httpStub.kill()
+
+    repeat(ProxyHealthMonitor.FAILURE_STREAK_THRESHOLD - 1) { probe(proxies) }
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.Healthy, status(httpProxy).state)
+
+    probe(proxies)
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.CircuitOpen, status(httpProxy).state)
+    assertEquals(listOf(socksProxy.asJavaProxy), proxyHealthMonitor.selectProxies(proxies))
+
+    // Still dead when the cooldown is over, the next cooldown is longer
+    now += ProxyHealthMonitor.BASE_COOLDOWN_MS
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.HalfOpen, status(httpProxy).state)
+    assertEquals(listOf(socksProxy, httpProxy).map { it.asJavaProxy }, proxyHealthMonitor.selectProxies(proxies))
+
+    probe(proxies)
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.CircuitOpen, status(httpProxy).state)
+    assertEquals(ProxyHealthMonitor.BASE_COOLDOWN_MS * 2, status(httpProxy).retryInMs)
+
+    httpStub.start()
+    now += ProxyHealthMonitor.BASE_COOLDOWN_MS * 2
+    probe(proxies)
+
+    assertEquals(ProxyHealthMonitor.ProxyHealthState.Healthy, status(httpProxy).state)
+    assertEquals(listOf(httpProxy, socksProxy).map { it.asJavaProxy }, proxyHealthMonitor.selectProxies(proxies))
+  }
+
+  @Test
+  fun `slow proxy is tried after the fast ones until it speeds up`() {
+    val slowStub = startStub(ProxyStorage.KurobaProxyType.SOCKS, "slow")
+    val fastStub = startStub(ProxyStorage.KurobaProxyType.HTTP, "fast")
+    val slowProxy = slowStub.kurobaProxy()
+    val fastProxy = fastStub.kurobaProxy()
+    val proxies = listOf(slowProxy, fastProxy)
+
+    slowStub.responseDelayMs = 1200L
+    probe(proxies)
+
+    assertTrue(status(slowProxy).latencyMs!! >= 1200L)
+    assertEquals(listOf(fastProxy, slowProxy).map { it.asJavaProxy }, proxyHealthMonitor.selectProxies(proxies))
+
+    slowStub.responseDelayMs = 0L
+    repeat(3) { probe(proxies) }
+
+    assertEquals(listOf(slowProxy, fastProxy).map { it.asJavaProxy }, proxyHealthMonitor.selectProxies(proxies))
+  }
+
+  @Test
+  fun `proxies with open circuits are still returned when there is nothing else`() {
+    val proxy1 = kurobaProxy(1000, ProxyStorage.KurobaProxyType.HTTP)
+    val proxy2 = kurobaProxy(1001, ProxyStorage.KurobaProxyType.HTTP)
+
+    repeat(ProxyHealthMonitor.FAILURE_STREAK_THRESHOLD) {
+      proxyHealthMonitor.onConnectFailed(proxy2.asJavaProxy.address(), IOException("Connection refused"))
+    }
+
+    now += 1000L
+
+    repeat(ProxyHealthMonitor.FAILURE_STREAK_THRESHOLD) {
+      proxyHealthMonitor.onConnectFailed(proxy1.asJavaProxy.address(), IOException("Connection refused"))
+    }
+
+    // proxy2 will be retried sooner
+    assertEquals(
+      listOf(proxy2, proxy1).map { it.asJavaProxy },
+      proxyHealthMonitor.selectProxies(listOf(proxy1, proxy2))
+    )
+  }
+
+  @Test
+  fun `okhttp fails over to the next proxy when the first one is dead`() {
+    val deadStub = startStub(ProxyStorage.KurobaProxyType.HTTP, "dead")
+    val aliveStub = startStub(ProxyStorage.KurobaProxyType.HTTP, "alive")
+    val proxies = listOf(deadStub.kurobaProxy(), aliveStub.kurobaProxy())
+
+    deadStub.kill()
+
+    val okHttpClient = OkHttpClient.Builder()
+      .connectTimeout(5, TimeUnit.SECONDS)
+      .readTimeout(5, TimeUnit.SECONDS)
+      .proxySelector(object : ProxySelector() {
+        override fun select(uri: URI): List<Proxy> = proxyHealthMonitor.selectProxies(proxies)
+
+        override fun connectFailed(uri: URI, sa: SocketAddress, ioe: IOException) {
+          proxyHealthMonitor.onConnectFailed(sa, ioe)
+        }
+      })
+      .build()
+
+    val body = okHttpClient.newCall(Request.Builder().url("http://kuroba.test/").build()).execute()
+      .use { response -> response.body!!.string() }
+
+    assertEquals("alive", body)
+    assertEquals(1, status(proxies[0]).failureStreak)
+    assertEquals(0, status(proxies[1]).failureStreak)
+  }
+
+  @Test
+  fun `proxies are only probed while the app is in the foreground until the probing is stopped`() {
+    val probesCount = AtomicInteger(0)
+    val monitor = ProxyHealthMonitor(
+      appScope = CoroutineScope(Job()),
+      proxyProber = object : ProxyProber {
+        override fun probe(kurobaProxy: ProxyStorage.KurobaProxy): ProxyProber.ProbeResult {
+          probesCount.incrementAndGet()
+          return ProxyProber.ProbeResult.Success(latencyMs = 1L)
+        }
+      },
+      applicationVisibilityManager = ApplicationVisibilityManager(),
+      probeIntervalMs = PROBE_INTERVAL_MS
+    )
+    val proxies = listOf(kurobaProxy(1000, ProxyStorage.KurobaProxyType.HTTP))
+
+    // The app starts in the background
+    monitor.startProbing { proxies }
+    assertFalse(monitor.isProbing)
+
+    monitor.onApplicationVisibilityChanged(ApplicationVisibility.Foreground)
+    assertTrue(monitor.isProbing)
+    waitUntil { probesCount.get() >= 2 }
+
+    monitor.onApplicationVisibilityChanged(ApplicationVisibility.Background)
+    assertFalse(monitor.isProbing)
+    assertProbesCountDoesNotChange(probesCount)
+
+    monitor.onApplicationVisibilityChanged(ApplicationVisibility.Foreground)
+    val probesCountInForeground = probesCount.get()
+    waitUntil { probesCount.get() > probesCountInForeground }
+
+    monitor.stopProbing()
+    assertFalse(monitor.isProbing)
+    assertProbesCountDoesNotChange(probesCount)
+
+    monitor.onApplicationVisibilityChanged(ApplicationVisibility.Background)
+    monitor.onApplicationVisibilityChanged(ApplicationVisibility.Foreground)
+    assertFalse(monitor.isProbing)
+  }
+
+  private fun assertProbesCountDoesNotChange(probesCount: AtomicInteger) {
+    // A probe that was already running when the probing got paused may still finish
+    Thread.sleep(100L)
+    val expectedProbesCount = probesCount.get()
+
+    Thread.sleep(PROBE_INTERVAL_MS * 2)
+    assertEquals(expectedProbesCount, probesCount.get())
+  }
+
+  private fun waitUntil(condition: () -> Boolean) {
+    val deadline = System.currentTimeMillis() + PROBE_INTERVAL_MS * 5
+
+    while (!condition()) {
+      assertTrue("Timed out", System.currentTimeMillis() < deadline)
+      Thread.sleep(10L)
+    }
+  }
+
+  private fun probe(proxies: List<ProxyStorage.KurobaProxy>) {
+    runBlocking { proxyHealthMonitor.probeProxies(proxies) }
+  }
+
+  private fun status(kurobaProxy: ProxyStorage.KurobaProxy): ProxyHealthMonitor.ProxyHealthStatus {
+    return proxyHealthMonitor.getStatus(kurobaProxy.proxyKey)
+  }
+
+  private fun startStub(proxyType: ProxyStorage.KurobaProxyType, name: String): ProxyStub {
+    return ProxyStub(proxyType, name)
+      .also { proxyStub -> proxyStubs += proxyStub }
+      .also { proxyStub -> proxyStub.start() }
+  }
+
+  private fun kurobaProxy(port: Int, proxyType: ProxyStorage.KurobaProxyType): ProxyStorage.KurobaProxy {
+    return ProxyStorage.KurobaProxy(
+      address = LOCALHOST,
+      port = port,
+      enabled = true,
+      order = port,
+      supportedSites = emptySet(),
+      supportedActions = setOf(ProxyStorage.ProxyActionType.SiteRequests),
+      proxyType = proxyType
+    )
+  }
+
+  private fun ProxyStub.kurobaProxy(): ProxyStorage.KurobaProxy = kurobaProxy(port, proxyType)
+
+  /**
+   * A minimal in-process proxy. HTTP: answers CONNECT with 200 and any other request with its name as
+   * the body. SOCKS: only answers the SOCKS5 greeting. Can be killed, restarted on the same port and
+   * slowed down.
+   * */
+  private class ProxyStub(
+    val proxyType: ProxyStorage.KurobaProxyType,
+    private val name: String
+  ) {
+    @Volatile
+    var responseDelayMs = 0L
+    var port = 0
+      private set
+
+    @Volatile
+    private var serverSocket: ServerSocket? = null
+    private val clientSockets = CopyOnWriteArrayList<Socket>()
+
+    fun start() {
+      val newServerSocket = ServerSocket()
+      newServerSocket.reuseAddress = true
+      newServerSocket.bind(InetSocketAddress(LOCALHOST, port))
+
+      port = newServerSocket.localPort
+      serverSocket = newServerSocket
+
+      thread(isDaemon = true) { acceptLoop(newServerSocket) }
+    }
+
+    fun kill() {
+      serverSocket?.close()
+      serverSocket = null
+
+      clientSockets.forEach { socket -> socket.close() }
+      clientSockets.clear()
+    }
+
+    private fun acceptLoop(serverSocket: ServerSocket) {
+      while (!serverSocket.isClosed) {
+        val socket = try {
+          serverSocket.accept()
+        } catch (error: IOException) {
+          return
+        }
+
+        clientSockets += socket
+        thread(isDaemon = true) { handle(socket) }
+      }
+    }
+
+    private fun handle(socket: Socket) {
+      try {
+        socket.use {
+          when (proxyType) {
+            ProxyStorage.KurobaProxyType.HTTP -> handleHttp(socket)
+            ProxyStorage.KurobaProxyType.SOCKS -> handleSocks(socket)
+          }
+        }
+      } catch (error: IOException) {
+        // Killed
+      }
+    }
+
+    private fun handleHttp(socket: Socket) {
+      val reader = BufferedReader(InputStreamReader(socket.getInputStream(), Charsets.US_ASCII))
+      val requestLine = reader.readLine()
+        ?: return
+
+      while (reader.readLine()?.isNotEmpty() == true) {
+        // Skip the headers
+      }
+
+      Thread.sleep(responseDelayMs)
+
+      val response = if (requestLine.startsWith("CONNECT")) {
+        "HTTP/1.1 200 Connection established\r\n\r\n"
+      } else {
+        "HTTP/1.1 200 OK\r\nContent-Length: ${name.length}\r\nConnection: close\r\n\r\n$name"
+      }
+
+      socket.getOutputStream().apply {
+        write(response.toByteArray(Charsets.US_ASCII))
+        flush()
+      }
+    }
+
+    private fun handleSocks(socket: Socket) {
+      // Version, methods count, one method
+      DataInputStream(socket.getInputStream()).readFully(ByteArray(3))
+
+      Thread.sleep(responseDelayMs)
+
+      socket.getOutputStream().apply {
+        write(byteArrayOf(0x05, 0x00))
+        flush()
+      }
+    }
+  }
+
+  companion object {
+    private const val LOCALHOST = "127.0.0.1"
+    private const val PROBE_INTERVAL_MS = 1000L
+  }
+}
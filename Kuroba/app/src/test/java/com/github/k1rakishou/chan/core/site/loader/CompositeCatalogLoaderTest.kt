@@ -0,0 +1,184 @@
+package com.github.k1rakishou.chan.core.site.loader
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Test
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class CompositeCatalogLoaderTest {
+
+  @Test
+  fun `test threads of all catalogs are merged by the sort key`() {
+    runBlockingTest {
+      val catalogs = mapOf(
+        catalog("a") to listOf(thread("a", 1, 50), thread("a", 2, 10), thread("a", 3, 30)),
+        catalog("b") to listOf(thread("b", 1, 40), thread("b", 2, 20)),
+        catalog("c") to listOf(thread("c", 1, 60))
+      )
+
+      val result = CompositeCatalogLoader().load(
+        catalogDescriptors = catalogs.keys.toList(),
+        comparator = REPLIES_DESC,
+        loadCatalog = { _, catalogDescriptor -> catalogs[catalogDescriptor]!! },
+        onUpdate = { }
+      )
+
+      assertEquals(listOf(60, 50, 40, 30, 20, 10), result.merged.map { thread -> thread.replies })
+      assertEquals(3, result.loaded.size)
+      assertTrue(result.failed.isEmpty())
+      assertTrue(result.isLast)
+    }
+  }
+
+  @Test
+  fun `test equal threads are interleaved`() {
+    runBlockingTest {
+      val catalogs = mapOf(
+        catalog("a") to (1..3).map { threadNo -> thread("a", threadNo.toLong(), 0) },
+        catalog("b") to (1..2).map { threadNo -> thread("b", threadNo.toLong(), 0) },
+        catalog("c") to (1..3).map { threadNo -> thread("c", threadNo.toLong(), 0) }
+      )
+
+      val result = CompositeCatalogLoader().load(
+        catalogDescriptors = catalogs.keys.toList(),
+        comparator = REPLIES_DESC,
+        loadCatalog = { index, catalogDescriptor ->
+          // Make the catalogs complete in the reverse order
+          delay((catalogs.size - index) * 100L)
+          catalogs[catalogDescriptor]!!
+        },
+        onUpdate = { }
+      )
+
+      assertEquals(
+        listOf("a1", "b1", "c1", "a2", "b2", "c2", "a3", "c3"),
+        result.merged.map { thread -> "${thread.board}${thread.threadNo}" }
+      )
+    }
+  }
+
+  @Test
+  fun `test failed catalog does not fail the rest`() {
+    runBlockingTest {
+      val catalogs = mapOf(
+        catalog("a") to listOf(thread("a", 1, 30)),
+        catalog("b") to emptyList(),
+        catalog("c") to listOf(thread("c", 1, 20))
+      )
+
+      val updates = mutableListOf<CompositeCatalogLoader.Update<TestThread>>()
+
+      val result = CompositeCatalogLoader().load(
+        catalogDescriptors = catalogs.keys.toList(),
+        comparator = REPLIES_DESC,
+        loadCatalog = { index, catalogDescriptor ->
+          delay(index * 100L)
+
+          if (catalogDescriptor == catalog("b")) {
+            throw IOException("Bad status code 500")
+          }
+
+          catalogs[catalogDescriptor]!!
+        },
+        onUpdate = { update -> updates += update }
+      )
+
+      assertEquals(listOf(30, 20), result.merged.map { thread -> thread.replies })
+      assertEquals(listOf(catalog("a"), catalog("c")), result.loaded)
+      assertEquals(setOf(catalog("b")), result.failed.keys)
+      assertTrue(result.failed[catalog("b")] is IOException)
+
+      assertEquals(listOf(2, 1, 0), updates.map { update -> update.remaining })
+      assertEquals(listOf(1, 1, 2), updates.map { update -> update.merged.size })
+    }
+  }
+
+  @Test
+  fun `test concurrent loads are limited`() {
+    runBlockingTest {
+      val catalogDescriptors = (0 until 10).map { index -> catalog("board$index") }
+      val activeLoads = AtomicInteger(0)
+      val maxActiveLoads = AtomicInteger(0)
+
+      val result = CompositeCatalogLoader(maxConcurrentLoads = 3).load(
+        catalogDescriptors = catalogDescriptors,
+        comparator = REPLIES_DESC,
+        loadCatalog = { index, catalogDescriptor ->
+          val active = activeLoads.incrementAndGet()
+          maxActiveLoads.getAndUpdate { max -> maxOf(max, active) }
+
+          delay(100L + index * 10L)
+          activeLoads.decrementAndGet()
+
+          listOf(thread(catalogDescriptor.boardCode(), 1, index))
+        },
+        onUpdate = { }
+      )
+
+      assertEquals(3, maxActiveLoads.get())
+      assertEquals(10, result.merged.size)
+    }
+  }
+
+  @Test
+  fun `test first catalog is shown without waiting for the rest`() {
+    runBlockingTest {
+      val latencies = listOf(300L, 100L, 500L, 400L)
+      val catalogDescriptors = latencies.indices.map { index -> catalog("board$index") }
+      val updateTimes = mutableListOf<Long>()
+
+      CompositeCatalogLoader().load(
+        catalogDescriptors = catalogDescriptors,
+        comparator = REPLIES_DESC,
+        loadCatalog = { index, catalogDescriptor ->
+          delay(latencies[index])
+          listOf(thread(catalogDescriptor.boardCode(), 1, index))
+        },
+        onUpdate = { updateTimes += currentTime }
+      )
+
+      // Sequential loading would show the first catalog after 300ms and the whole composite catalog
+      // after 1300ms
+      assertEquals(listOf(100L, 300L, 400L, 500L), updateTimes)
+    }
+  }
+
+  @Test
+  fun `test merge`() {
+    val runs = listOf(
+      listOf(9, 5, 1),
+      null,
+      emptyList(),
+      listOf(8, 7, 2),
+      listOf(6)
+    )
+
+    val merged = CompositeCatalogLoader.merge(runs, Comparator<Int> { lhs, rhs -> rhs.compareTo(lhs) })
+    assertEquals(listOf(9, 8, 7, 6, 5, 2, 1), merged)
+  }
+
+  private data class TestThread(
+    val board: String,
+    val threadNo: Long,
+    val replies: Int
+  )
+
+  private fun thread(board: String, threadNo: Long, replies: Int): TestThread {
+    return TestThread(board, threadNo, replies)
+  }
+
+  private fun catalog(board: String): ChanDescriptor.CatalogDescriptor {
+    return ChanDescriptor.CatalogDescriptor.create("test", board)
+  }
+
+  companion object {
+    private val REPLIES_DESC = Comparator<TestThread> { lhs, rhs -> rhs.replies.compareTo(lhs.replies) }
+  }
+
+}
@@ -0,0 +1,274 @@
+package com.github.k1rakishou.chan.core.site.parser
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import java.util.*
+import java.util.regex.Pattern
+
+class AnchorRouteTableTest {
+
+  @Test
+  fun `test default table resolves 4chan anchors`() {
+    val table = AnchorRouteTable.DEFAULT
+
+    assertEquals("FullQuote g 75659307 75659400", describe(table.resolve("/g/thread/75659307#p75659400")))
+    assertEquals("FullQuote g 75659307 75659400", describe(table.resolve("boards.4channel.org/g/thread/75659307#p75659400")))
+    assertEquals("Quote 75659400", describe(table.resolve("#p75659400")))
+    assertEquals("BoardLink g", describe(table.resolve("//boards.4channel.org/g/")))
+    assertEquals("BoardLink b", describe(table.resolve("/b/index.html")))
+    assertEquals("BoardSearch g fglt%20thread", describe(table.resolve("//boards.4channel.org/g/catalog#s=fglt%20thread")))
+    assertEquals("Link https://www.youtube.com/watch?v=dQw4w9WgXcQ", describe(table.resolve("https://www.youtube.com/watch?v=dQw4w9WgXcQ")))
+    assertEquals("Link ", describe(table.resolve("")))
+  }
+
+  @Test
+  fun `test full quotes win over other routes`() {
+    val table = AnchorRouteTable.Builder()
+      .boardSearch("/{board}/catalog#s={query}")
+      .quote("#p{post}")
+      .fullQuote("/{board}/{_}/{thread}#p{post}")
+      .build()
+
+    assertEquals("FullQuote a 1 2", describe(table.resolve("/a/catalog/1#p2")))
+    assertEquals("BoardSearch a q", describe(table.resolve("/a/catalog#s=q")))
+  }
+
+  @Test
+  fun `test route table gives the same results as the regex chain`() {
+    for (site in SITES) {
+      val corpus = buildCorpus(site, Random(site.name.hashCode().toLong()), count = 20_000)
+
+      for (href in corpus) {
+        assertEquals(
+          "${site.name}: '$href'",
+          site.regexChain.resolve(href),
+          describe(site.routeTable.resolve(extractQuote(href)))
+        )
+      }
+    }
+  }
+
+  @Test
+  fun `test known differences with the regex chain`() {
+    val table = AnchorRouteTable.DEFAULT
+    val regexChain = SITES.first().regexChain
+
+    // The regex chain took everything between ".org/" and the last '/' as the board code
+    assertEquals("BoardLink g/catalog", regexChain.resolve("//boards.4chan.org/g/catalog/"))
+    assertEquals("Link //boards.4chan.org/g/catalog/", describe(table.resolve("//boards.4chan.org/g/catalog/")))
+  }
+
+  @Test
+  fun `test anchors per second`() {
+    for (site in SITES) {
+      val corpus = buildCorpus(site, Random(1), count = 50_000)
+
+      // Warm up
+      repeat(3) {
+        corpus.forEach { href -> site.regexChain.resolve(href) }
+        corpus.forEach { href -> site.routeTable.resolve(extractQuote(href)) }
+      }
+
+      val regexChainTime = measureNanos { corpus.forEach { href -> site.regexChain.resolve(href) } }
+      val routeTableTime = measureNanos { corpus.forEach { href -> site.routeTable.resolve(extractQuote(href)) } }
+
+      val regexChainAnchorsPerSecond = anchorsPerSecond(corpus.size, regexChainTime)
+      val routeTableAnchorsPerSecond = anchorsPerSecond(corpus.size, routeTableTime)
+
+      assertTrue(
+        "${site.name}: regex chain ${regexChainAnchorsPerSecond} anchors/sec, " +
+          "route table ${routeTableAnchorsPerSecond} anchors/sec",
+        routeTableAnchorsPerSecond > regexChainAnchorsPerSecond
+      )
+    }
+  }
+
+  private fun measureNanos(func: () -> Unit): Long {
+    var best = Long.MAX_VALUE
+
+    repeat(5) {
+      val start = System.nanoTime()
+      func()
+      best = minOf(best, System.nanoTime() - start)
+    }
+
+    return best
+  }
+
+  private fun anchorsPerSecond(count: Int, nanos: Long): Long {
+    return (count * 1_000_000_000L) / nanos.coerceAtLeast(1L)
+  }
+
+  private fun buildCorpus(site: Site, random: Random, count: Int): List<String> {
+    val boards = listOf("g", "a", "vg", "3", "trash", "tv", "mu", "b", "pol", "v_")
+
+    fun board() = boards[random.nextInt(boards.size)]
+    fun postNo() = (1L + random.nextInt(Int.MAX_VALUE)).toString()
+
+    val generators = listOf<() -> String>(
+      { "#p${postNo()}" },
+      { "#${postNo()}" },
+      { "/${board()}/thread/${postNo()}#p${postNo()}" },
+      { "/${board()}/thread/${postNo()}#${postNo()}" },
+      { "/${board()}/thread/${postNo()}" },
+      { "/${board()}/res/${postNo()}.html#${postNo()}" },
+      { "/${board()}/res/${postNo()}.html" },
+      { "//boards.4chan.org/${board()}/thread/${postNo()}#p${postNo()}" },
+      { "//boards.4channel.org/${board()}/thread/${postNo()}#p${postNo()}" },
+      { "https://boards.4channel.org/${board()}/thread/${postNo()}#p${postNo()}" },
+      { "https://boards.4channel.org/${board()}/thread/${postNo()}/some-thread-subject#p${postNo()}" },
+      { "//boards.4chan.org/${board()}/" },
+      { "//boards.4channel.org/${board()}/" },
+      { "/${board()}/index.html" },
+      { "/${board()}/" },
+      { "//boards.4chan.org/${board()}/catalog#s=${board()}%20general" },
+      { "//boards.4channel.org/${board()}/catalog#s=" },
+      { "https://archived.moe/${board()}/thread/${postNo()}/#${postNo()}" },
+      { "https://desuarchive.org/${board()}/post/${postNo()}/" },
+      { "https://www.youtube.com/watch?v=dQw4w9WgXcQ&t=${postNo()}" },
+      { "https://i.4cdn.org/${board()}/${postNo()}.png" },
+      { "https://en.wikipedia.org/wiki/Regular_expression#Formal_language_theory" },
+      { "https://github.com/K1rakishou/Kuroba-Experimental/issues/${postNo()}" },
+      { "mailto:anon@example.com" },
+      { "" },
+    )
+
+    return (0 until count).map {
+      generators[random.nextInt(generators.size)]()
+    } + site.extraCorpus
+  }
+
+  private fun describe(resolvedAnchor: ResolvedAnchor): String {
+    return when (resolvedAnchor.type) {
+      ResolvedAnchor.Type.FullQuote -> "FullQuote ${resolvedAnchor.board} ${resolvedAnchor.threadNo} ${resolvedAnchor.postNo}"
+      ResolvedAnchor.Type.Quote -> "Quote ${resolvedAnchor.postNo}"
+      ResolvedAnchor.Type.BoardLink -> "BoardLink ${resolvedAnchor.board}"
+      ResolvedAnchor.Type.BoardSearch -> "BoardSearch ${resolvedAnchor.board} ${resolvedAnchor.query}"
+      ResolvedAnchor.Type.Link -> "Link ${resolvedAnchor.href}"
+    }
+  }
+
+  private class Site(
+    val name: String,
+    val regexChain: RegexChain,
+    val routeTable: AnchorRouteTable,
+    val extraCorpus: List<String> = emptyList()
+  )
+
+  /**
+   * What CommentParser.matchAnchor() used to do before the route tables.
+   * */
+  private class RegexChain(
+    private val quotePattern: Pattern,
+    private val fullQuotePattern: Pattern
+  ) {
+    private val boardLinkPattern = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/")
+    private val boardLinkPattern8Chan = Pattern.compile("/(.*?)/index.html")
+    private val boardSearchPattern = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/catalog#s=(.*)")
+
+    fun resolve(rawHref: String): String {
+      val href = extractQuote(rawHref)
+
+      val externalMatcher = fullQuotePattern.matcher(href)
+      if (externalMatcher.find()) {
+        return "FullQuote ${externalMatcher.group(1)} ${externalMatcher.group(2).toLong()} ${externalMatcher.group(3).toLong()}"
+      }
+
+      val quoteMatcher = quotePattern.matcher(href)
+      if (quoteMatcher.matches()) {
+        return "Quote ${quoteMatcher.group(1).toLong()}"
+      }
+
+      val chan4BoardLinkMatcher = boardLinkPattern.matcher(href)
+      if (chan4BoardLinkMatcher.matches()) {
+        return "BoardLink ${chan4BoardLinkMatcher.group(1)}"
+      }
+
+      val chan8BoardLinkMatcher = boardLinkPattern8Chan.matcher(href)
+      if (chan8BoardLinkMatcher.matches()) {
+        return "BoardLink ${chan8BoardLinkMatcher.group(1)}"
+      }
+
+      val boardSearchMatcher = boardSearchPattern.matcher(href)
+      if (boardSearchMatcher.matches()) {
+        return "BoardSearch ${boardSearchMatcher.group(1)} ${boardSearchMatcher.group(2)}"
+      }
+
+      return "Link $href"
+    }
+  }
+
+  companion object {
+    private val DEFAULT_QUOTE_REGEX = Pattern.compile("//boards\\.4chan.*?\\.org/(.*?)/thread/(\\d*?)#p(\\d*)")
+
+    // Same as CommentParser.extractQuote()
+    private fun extractQuote(href: String): String {
+      if (href.startsWith("//boards.4chan") && DEFAULT_QUOTE_REGEX.matcher(href).matches()) {
+        return href.substring(2).substring(href.indexOf('/'))
+      }
+
+      return href
+    }
+
+    private val SITES = listOf(
+      Site(
+        name = "Default",
+        regexChain = RegexChain(
+          quotePattern = Pattern.compile("#p(\\d+)"),
+          fullQuotePattern = Pattern.compile("/(\\w+)/\\w+/(\\d+)#p(\\d+)")
+        ),
+        routeTable = AnchorRouteTable.DEFAULT,
+        extraCorpus = listOf(
+          "//boards.4chan.org/g/thread/#p",
+          "//boards.4chan.org/g/thread/1#p",
+          "#p",
+          "#p1a",
+          "/g/thread/1#p2/3",
+          "g/thread/1#p2",
+          "//boards.4chan.org/g",
+          "//boards.4chan.org/g/catalog#s=a#b",
+          "//boards.4chan.org/g/catalog#s=a\nb",
+        )
+      ),
+      Site(
+        name = "Vichan",
+        regexChain = RegexChain(
+          quotePattern = Pattern.compile("#(\\d+)"),
+          fullQuotePattern = Pattern.compile("/(\\w+)/\\w+/(\\d+)\\.html#(\\d+)")
+        ),
+        routeTable = AnchorRouteTable.Builder()
+          .fullQuote("/{board}/{_}/{thread}.html#{post}")
+          .quote("#{post}")
+          .defaultBoardRoutes()
+          .build(),
+        extraCorpus = listOf("/b/res/1.html#", "/b/res/.html#2", "/b/res/1xhtml#2")
+      ),
+      Site(
+        name = "Taimaba",
+        regexChain = RegexChain(
+          quotePattern = Pattern.compile("#(\\d+)"),
+          fullQuotePattern = Pattern.compile("/(\\w+)/thread/(\\d+)#(\\d+)")
+        ),
+        routeTable = AnchorRouteTable.Builder()
+          .fullQuote("/{board}/thread/{thread}#{post}")
+          .quote("#{post}")
+          .defaultBoardRoutes()
+          .build()
+      ),
+      Site(
+        name = "Lynxchan",
+        regexChain = RegexChain(
+          quotePattern = Pattern.compile("#(\\d+)"),
+          fullQuotePattern = Pattern.compile("\\/(\\w+)\\/res\\/(\\d+).html#(\\d+)")
+        ),
+        routeTable = AnchorRouteTable.Builder()
+          .fullQuote("/{board}/res/{thread}.html#{post}")
+          .quote("#{post}")
+          .defaultBoardRoutes()
+          .build()
+      ),
+    )
+  }
+
+}
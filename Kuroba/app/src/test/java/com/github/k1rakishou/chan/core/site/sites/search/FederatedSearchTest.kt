@@ -0,0 +1,332 @@
+package com.github.k1rakishou.chan.core.site.sites.search
+
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.descriptor.SiteDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runBlockingTest
+import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
+import org.junit.Test
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class FederatedSearchTest {
+
+  @Test
+  fun `test overlapping results of all sources are merged, deduplicated and sorted by time`() {
+    runBlockingTest {
+      val site = FakeResponder(
+        "site",
+        listOf(post(10, 1000), post(8, 800), post(5, 500))
+      )
+      val archive1 = FakeResponder(
+        "archive1",
+        listOf(post(9, 900), post(8, 800), post(5, 500), post(3, 300))
+      )
+      val archive2 = FakeResponder(
+        "archive2",
+        listOf(post(8, 800), post(7, 700), post(3, 300), post(1, 100))
+      )
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), archive1.source(), archive2.source()))
+      val page = federatedSearch.getPage(0) as FederatedSearchResult.Page
+
+      assertEquals(listOf(10L, 9L, 8L, 7L, 5L, 3L, 1L), page.posts.map { post -> post.postDescriptor.postNo })
+      assertFalse(page.hasMore)
+      assertTrue(page.failedSources.isEmpty())
+
+      // The copy of the source that comes first wins
+      assertEquals("site", siteNameOf(page, 8))
+      assertEquals("site", siteNameOf(page, 5))
+      assertEquals("archive1", siteNameOf(page, 3))
+      assertEquals("archive2", siteNameOf(page, 7))
+    }
+  }
+
+  @Test
+  fun `test a later source that responds first does not win the duplicates`() {
+    runBlockingTest {
+      val site = FakeResponder("site", listOf(post(2, 200), post(1, 100)), delayMs = 500)
+      val archive = FakeResponder("archive", listOf(post(2, 200), post(1, 100)))
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), archive.source()))
+      val page = federatedSearch.getPage(0) as FederatedSearchResult.Page
+
+      assertEquals(listOf(2L, 1L), page.posts.map { post -> post.postDescriptor.postNo })
+      assertTrue(page.posts.all { post -> post.postDescriptor.siteDescriptor().siteName == "site" })
+    }
+  }
+
+  @Test
+  fun `test out of order results are never reordered across pages`() {
+    runBlockingTest {
+      // The site returns its pages slightly out of order, the archive is much slower paced so the site
+      // has to be paged through several times before the archive posts can be put into a page
+      val site = FakeResponder(
+        "site",
+        listOf(post(20, 2000), post(22, 2200), post(19, 1900), post(18, 1800), post(16, 1600), post(17, 1700)),
+        pageSize = 2
+      )
+      val archive = FakeResponder(
+        "archive",
+        listOf(post(21, 2100), post(15, 1500), post(14, 1400), post(13, 1300)),
+        pageSize = 2
+      )
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), archive.source()))
+      val pages = loadAllPages(federatedSearch)
+
+      val allPosts = pages.flatMap { page -> page.posts.map { post -> post.postDescriptor.postNo } }
+      assertEquals(listOf(22L, 21L, 20L, 19L, 18L, 17L, 16L, 15L, 14L, 13L), allPosts)
+      assertTrue(pages.size > 1)
+      assertTrue(pages.dropLast(1).all { page -> page.hasMore })
+      assertFalse(pages.last().hasMore)
+    }
+  }
+
+  @Test
+  fun `test only the sources whose results are all paged are asked for the next page`() {
+    runBlockingTest {
+      val site = FakeResponder("site", (1..6).map { no -> post(100L - no, 10_000L - no) }, pageSize = 3)
+      val archive = FakeResponder("archive", (1..6).map { no -> post(50L - no, 5_000L - no) }, pageSize = 3)
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), archive.source()))
+
+      val firstPage = federatedSearch.getPage(0) as FederatedSearchResult.Page
+      assertEquals(listOf(99L, 98L, 97L), firstPage.posts.map { post -> post.postDescriptor.postNo })
+      assertEquals(1, site.requests.get())
+      assertEquals(1, archive.requests.get())
+
+      // The archive's posts are all older than what the site may still return so it is not asked again
+      federatedSearch.getPage(1)
+      assertEquals(2, site.requests.get())
+      assertEquals(1, archive.requests.get())
+    }
+  }
+
+  @Test
+  fun `test a failed source is reported and excluded while the others continue`() {
+    runBlockingTest {
+      val site = FakeResponder("site", (1..4).map { no -> post(10L - no, 1000L - no) }, pageSize = 2)
+      val broken = FakeResponder("broken", emptyList(), error = IOException("Connection reset"))
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), broken.source()))
+      val pages = loadAllPages(federatedSearch)
+
+      assertEquals(listOf(9L, 8L, 7L, 6L), pages.flatMap { page -> page.posts.map { post -> post.postDescriptor.postNo } })
+      assertTrue(pages.all { page -> SiteDescriptor.create("broken") in page.failedSources })
+      assertTrue(pages.first().failedSources.values.first() is SearchError.UnknownError)
+      assertEquals(1, broken.requests.get())
+    }
+  }
+
+  @Test
+  fun `test a source that does not respond in time is reported as failed`() {
+    runBlockingTest {
+      val site = FakeResponder("site", listOf(post(2, 200), post(1, 100)))
+      val slow = FakeResponder("slow", listOf(post(3, 300)), delayMs = 60_000)
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), slow.source()), sourceTimeoutMs = 10_000)
+      val page = federatedSearch.getPage(0) as FederatedSearchResult.Page
+
+      assertEquals(listOf(2L, 1L), page.posts.map { post -> post.postDescriptor.postNo })
+      assertTrue(page.failedSources[SiteDescriptor.create("slow")] is SearchError.FailedToSearchError)
+    }
+  }
+
+  @Test
+  fun `test the page fails when every source fails and loading it again asks them again`() {
+    runBlockingTest {
+      val site = FakeResponder("site", listOf(post(2, 200), post(1, 100)), failFirstRequests = 1)
+      val archive = FakeResponder("archive", listOf(post(3, 300)), failFirstRequests = 1)
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), archive.source()))
+
+      val failure = federatedSearch.getPage(0) as FederatedSearchResult.Failure
+      assertEquals(2, failure.errors.size)
+      assertEquals(0, federatedSearch.loadedPagesCount())
+
+      val page = federatedSearch.getPage(0) as FederatedSearchResult.Page
+      assertEquals(listOf(3L, 2L, 1L), page.posts.map { post -> post.postDescriptor.postNo })
+      assertTrue(page.failedSources.isEmpty())
+    }
+  }
+
+  @Test
+  fun `test loaded pages are served from the cache`() {
+    runBlockingTest {
+      val site = FakeResponder("site", (1..6).map { no -> post(10L - no, 1000L - no) }, pageSize = 2)
+      val archive = FakeResponder("archive", (1..6).map { no -> post(10L - no, 1000L - no) }, pageSize = 3)
+
+      val federatedSearch = FederatedSearch(listOf(site.source(), archive.source()))
+      val pages = loadAllPages(federatedSearch)
+
+      val siteRequests = site.requests.get()
+      val archiveRequests = archive.requests.get()
+
+      pages.indices.reversed().forEach { pageIndex ->
+        assertEquals(pages[pageIndex], federatedSearch.getPage(pageIndex))
+      }
+
+      assertEquals(siteRequests, site.requests.get())
+      assertEquals(archiveRequests, archive.requests.get())
+
+      // Going past the end does not search again either
+      val pastTheEnd = federatedSearch.getPage(pages.size + 5) as FederatedSearchResult.Page
+      assertTrue(pastTheEnd.posts.isEmpty())
+      assertFalse(pastTheEnd.hasMore)
+      assertEquals(siteRequests, site.requests.get())
+    }
+  }
+
+  @Test
+  fun `test random overlapping sources produce every post exactly once in time order`() {
+    val random = Random(42)
+
+    repeat(200) {
+      runBlockingTest {
+        val allPosts = (1..random.nextInt(60) + 1).map { postNo ->
+          post(postNo.toLong(), random.nextInt(1000).toLong())
+        }
+
+        val responders = (0 until random.nextInt(4) + 1).map { index ->
+          val posts = allPosts
+            .filter { random.nextInt(3) != 0 }
+            .sortedByDescending { post -> post.dateTime.millis }
+            .toMutableList()
+
+          val pageSize = random.nextInt(10) + 1
+
+          // Shuffle some neighbours within the pages, the sites do not always return perfectly sorted
+          // pages
+          for (i in 0 until posts.size - 1) {
+            if ((i + 1) % pageSize != 0 && random.nextInt(5) == 0) {
+              Collections.swap(posts, i, i + 1)
+            }
+          }
+
+          FakeResponder(
+            "source$index",
+            posts,
+            pageSize = pageSize,
+            error = if (index > 0 && random.nextInt(5) == 0) IOException("Random error") else null
+          )
+        }
+
+        val federatedSearch = FederatedSearch(responders.map { responder -> responder.source() })
+        val pages = loadAllPages(federatedSearch)
+        val pagedPosts = pages.flatMap { page -> page.posts }
+
+        val expectedPostNos = responders
+          .filter { responder -> responder.error == null }
+          .flatMap { responder -> responder.posts.map { post -> post.postDescriptor.postNo } }
+          .toSet()
+
+        assertEquals(expectedPostNos.size, pagedPosts.size)
+        assertEquals(expectedPostNos, pagedPosts.map { post -> post.postDescriptor.postNo }.toSet())
+
+        // Only the posts within a page may be out of order in relation to the source results, the pages
+        // themselves are sorted
+        val pagedTimes = pagedPosts.map { post -> post.dateTime.millis }
+        assertEquals(pagedTimes.sortedDescending(), pagedTimes)
+      }
+    }
+  }
+
+  private suspend fun loadAllPages(federatedSearch: FederatedSearch): List<FederatedSearchResult.Page> {
+    val pages = mutableListOf<FederatedSearchResult.Page>()
+
+    while (true) {
+      val page = federatedSearch.getPage(pages.size) as FederatedSearchResult.Page
+      pages += page
+
+      if (!page.hasMore) {
+        return pages
+      }
+    }
+  }
+
+  private fun siteNameOf(page: FederatedSearchResult.Page, postNo: Long): String {
+    return page.posts
+      .first { post -> post.postDescriptor.postNo == postNo }
+      .postDescriptor
+      .siteDescriptor()
+      .siteName
+  }
+
+  private fun post(postNo: Long, timeSeconds: Long): FakePost {
+    return FakePost(postNo, timeSeconds * 1000L)
+  }
+
+  private class FakePost(
+    val postNo: Long,
+    val timeMs: Long
+  )
+
+  /**
+   * Pretends to be a site or an archive search. Every source reports the posts with its own site
+   * descriptor, like the archives do.
+   * */
+  private class FakeResponder(
+    val siteName: String,
+    fakePosts: List<FakePost>,
+    val pageSize: Int = Int.MAX_VALUE,
+    val delayMs: Long = 0L,
+    val error: Throwable? = null,
+    private val failFirstRequests: Int = 0
+  ) {
+    val siteDescriptor = SiteDescriptor.create(siteName)
+    val requests = AtomicInteger(0)
+
+    val posts = fakePosts.map { fakePost ->
+      SearchEntryPost(
+        isOp = false,
+        name = null,
+        subject = null,
+        postDescriptor = PostDescriptor.create(siteName, "g", 1L, fakePost.postNo),
+        dateTime = DateTime(fakePost.timeMs, DateTimeZone.UTC),
+        postImageUrlRawList = emptyList(),
+        commentRaw = null
+      )
+    }
+
+    fun source(): FederatedSearch.Source {
+      return FederatedSearch.Source(siteDescriptor) { page -> search(page) }
+    }
+
+    private suspend fun search(page: Int?): SearchResult {
+      val requestNo = requests.incrementAndGet()
+
+      if (delayMs > 0) {
+        delay(delayMs)
+      }
+
+      if (error != null) {
+        throw error
+      }
+
+      if (requestNo <= failFirstRequests) {
+        return SearchResult.Failure(SearchError.ServerError(503))
+      }
+
+      val currentPage = page ?: 0
+      val pageStart = (currentPage.toLong() * pageSize).coerceAtMost(posts.size.toLong()).toInt()
+      val pagePosts = posts.drop(pageStart).take(pageSize)
+      val hasMore = (currentPage + 1).toLong() * pageSize < posts.size
+
+      return SearchResult.Success(
+        searchParams = Chan4SearchParams(null, siteDescriptor, "query", page),
+        searchEntries = listOf(SearchEntry(pagePosts)),
+        nextPageCursor = if (hasMore) PageCursor.Page(currentPage + 1) else PageCursor.End,
+        totalFoundEntries = posts.size
+      )
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+package com.github.k1rakishou.chan.core.startup
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.StandardTestDispatcher
+import kotlinx.coroutines.test.currentTime
+import kotlinx.coroutines.test.runTest
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class StartupDependencyGraphTest {
+
+  @Test
+  fun `test every task starts as soon as its dependencies are finished`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val tracer = StartupTracer()
+    val startTimes = ConcurrentHashMap<String, Long>()
+    val finished = CopyOnWriteArrayList<String>()
+
+    fun fakeManager(name: String, durationMs: Long, vararg deps: String): StartupTask {
+      return StartupTask(name = name, dependencies = deps.toSet()) {
+        deps.forEach { dep -> assertTrue("$name started before $dep finished", finished.contains(dep)) }
+        startTimes[name] = currentTime
+        delay(durationMs)
+        finished += name
+      }
+    }
+
+    val graph = StartupDependencyGraph(
+      tasks = listOf(
+        fakeManager("bookmarks", 40, "groups"),
+        fakeManager("sites", 100),
+        fakeManager("boards", 50, "sites"),
+        fakeManager("groups", 30),
+        fakeManager("watcher", 10, "bookmarks", "boards"),
+        fakeManager("history", 20)
+      ),
+      tracer = tracer
+    )
+
+    val result = graph.execute(dispatcher)
+
+    assertTrue(result.isSuccess)
+    assertEquals(6, finished.size)
+    assertEquals(6, tracer.spans().size)
+
+    // Nothing waits for the sites and boards except for the tasks that depend on them
+    val expectedStartTimes = mapOf(
+      "sites" to 0L,
+      "groups" to 0L,
+      "history" to 0L,
+      "bookmarks" to 30L,
+      "boards" to 100L,
+      "watcher" to 150L
+    )
+
+    assertEquals(expectedStartTimes, startTimes.toMap())
+    // The critical path (sites -> boards -> watcher), not the sum of every task
+    assertEquals(160L, currentTime)
+  }
+
+  @Test
+  fun `test failed task only skips the tasks that depend on it`() = runTest {
+    val dispatcher = StandardTestDispatcher(testScheduler)
+    val executed = CopyOnWriteArrayList<String>()
+    val error = IllegalStateException("Failed to load sites")
+
+    val graph = StartupDependencyGraph(
+      tasks = listOf(
+        StartupTask("sites") { throw error },
+        StartupTask("boards", dependencies = setOf("sites")) { executed += "boards" },
+        StartupTask("watcher", dependencies = setOf("boards", "bookmarks")) { executed += "watcher" },
+        StartupTask("bookmarks") {
+          delay(10)
+          executed += "bookmarks"
+        },
+        StartupTask("filters") { executed += "filters" },
+        StartupTask("archives", dependencies = setOf("filters")) { executed += "archives" }
+      ),
+      tracer = StartupTracer()
+    )
+
+    val result = graph.execute(dispatcher)
+
+    assertEquals(setOf("bookmarks", "filters", "archives"), executed.toSet())
+    assertEquals(mapOf<String, Throwable>("sites" to error), result.failedTasks)
+    assertEquals(setOf("boards", "watcher"), result.skippedTasks)
+    assertFalse(result.isSuccess)
+  }
+
+  @Test
+  fun `test tasks are sorted by their dependencies`() {
+    val graph = StartupDependencyGraph(
+      tasks = listOf(
+        StartupTask("a") {},
+        StartupTask("b", dependencies = setOf("a")) {},
+        StartupTask("c", dependencies = setOf("b")) {},
+        StartupTask("d") {}
+      ),
+      tracer = StartupTracer()
+    )
+
+    assertEquals(listOf("a", "d", "b", "c"), graph.sortedTasks.map { task -> task.name })
+  }
+
+  @Test(expected = StartupDependencyGraph.StartupCycleException::class)
+  fun `test cycle is detected`() {
+    StartupDependencyGraph(
+      tasks = listOf(
+        StartupTask("a", dependencies = setOf("c")) {},
+        StartupTask("b", dependencies = setOf("a")) {},
+        StartupTask("c", dependencies = setOf("b")) {},
+        StartupTask("d") {}
+      ),
+      tracer = StartupTracer()
+    )
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `test unknown dependency is rejected`() {
+    StartupDependencyGraph(
+      tasks = listOf(StartupTask("a", dependencies = setOf("b")) {}),
+      tracer = StartupTracer()
+    )
+  }
+
+  @Test
+  fun `test chrome trace export`() {
+    runBlocking {
+      var time = 0L
+      val tracer = StartupTracer(nanoTimeProvider = { time })
+
+      time = 1_000_000L
+      tracer.trace("Site\"Manager") { time = 3_000_000L }
+
+      val json = tracer.toChromeTraceJson()
+      assertTrue(json.startsWith("{\"traceEvents\":[{\"name\":\"Site\\\"Manager\",\"cat\":\"startup\",\"ph\":\"X\""))
+      assertTrue(json.contains("\"ts\":1000,\"dur\":2000"))
+    }
+  }
+
+}
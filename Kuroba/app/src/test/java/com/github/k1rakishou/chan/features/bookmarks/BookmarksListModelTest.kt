@@ -0,0 +1,355 @@
+package com.github.k1rakishou.chan.features.bookmarks
+
+import com.github.k1rakishou.ChanSettings
+import com.github.k1rakishou.chan.features.bookmarks.data.GroupOfThreadBookmarkItemViews
+import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkItemView
+import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkSelection
+import com.github.k1rakishou.chan.features.bookmarks.data.ThreadBookmarkStats
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import org.joda.time.DateTime
+import org.joda.time.DateTimeZone
+import org.junit.Test
+import kotlin.random.Random
+
+class BookmarksListModelTest {
+
+  @Test
+  fun `test model matches full rebuild for random updates`() {
+    var seed = 0
+
+    for (sortOrder in ChanSettings.BookmarksSortOrder.values()) {
+      for (moveDeadBookmarksToEnd in listOf(false, true)) {
+        for (moveBookmarksWithUnreadRepliesToTop in listOf(false, true)) {
+          val config = BookmarksListModel.Config(sortOrder, moveDeadBookmarksToEnd, moveBookmarksWithUnreadRepliesToTop)
+          runRandomUpdates(config, Random(seed++))
+        }
+      }
+    }
+  }
+
+  @Test
+  fun `test unknown bookmark requires reset`() {
+    val random = Random(1)
+    val bookmarks = SyntheticBookmarks(random, bookmarksCount = 20, groupsCount = 2)
+    val config = BookmarksListModel.Config(ChanSettings.BookmarksSortOrder.CreatedOnDescending, true, true)
+
+    val model = BookmarksListModel()
+    model.reset(config, bookmarks.groupBookmarks(), null)
+
+    val newBookmark = bookmarks.createItem(random, threadNo = 1_000_000L)
+    assertNull(model.update(listOf(newBookmark)))
+  }
+
+  @Test
+  fun `test unchanged bookmarks produce no changes`() {
+    val random = Random(2)
+    val bookmarks = SyntheticBookmarks(random, bookmarksCount = 50, groupsCount = 3)
+    val config = BookmarksListModel.Config(ChanSettings.BookmarksSortOrder.UnreadPostsDescending, true, true)
+
+    val model = BookmarksListModel()
+    model.reset(config, bookmarks.groupBookmarks(), null)
+
+    assertTrue(model.update(bookmarks.items.values).isNullOrEmpty())
+    assertTrue(model.updateQuery(null).isEmpty())
+  }
+
+  @Test
+  fun `benchmark 1000 bookmarks with frequent watcher updates`() {
+    val random = Random(3)
+    val bookmarks = SyntheticBookmarks(random, bookmarksCount = 1000, groupsCount = 10)
+    val config = BookmarksListModel.Config(ChanSettings.BookmarksSortOrder.UnreadPostsDescending, true, true)
+
+    val model = BookmarksListModel()
+    model.reset(config, bookmarks.groupBookmarks(), null)
+
+    val updates = 300
+    var fullRebuildNanos = 0L
+    var modelNanos = 0L
+    var changesCount = 0
+
+    repeat(updates) {
+      // Every watcher cycle updates some of the bookmarks
+      val updated = bookmarks.updateRandom(random, count = 20)
+
+      val fullRebuildStart = System.nanoTime()
+      val expected = fullRebuild(bookmarks, config, null)
+      fullRebuildNanos += System.nanoTime() - fullRebuildStart
+
+      val modelStart = System.nanoTime()
+      val changes = model.update(updated)
+      val actual = model.toGroupedBookmarks()
+      modelNanos += System.nanoTime() - modelStart
+
+      assertNotNull(changes)
+      assertEquals(expected, actual)
+      changesCount += changes!!.size
+    }
+
+    assertTrue(
+      "${updates} watcher updates of 1000 bookmarks, " +
+        "full rebuild: ${fullRebuildNanos / updates / 1000} us per update, " +
+        "model: ${modelNanos / updates / 1000} us per update, ${changesCount / updates} changes per update",
+      modelNanos < fullRebuildNanos
+    )
+  }
+
+  private fun runRandomUpdates(config: BookmarksListModel.Config, random: Random) {
+    val bookmarks = SyntheticBookmarks(random, bookmarksCount = 60, groupsCount = 4)
+    val model = BookmarksListModel()
+    var query: String? = null
+
+    model.reset(config, bookmarks.groupBookmarks(), query)
+    assertEquals(fullRebuild(bookmarks, config, query), model.toGroupedBookmarks())
+
+    // What the UI shows, kept up to date only with the changes
+    val ui = UiMirror(model.toGroupedBookmarks())
+
+    repeat(200) {
+      if (random.nextInt(10) == 0) {
+        query = QUERIES.random(random)
+        model.updateQuery(query).forEach { change -> ui.apply(change, model.toGroupedBookmarks()) }
+      } else {
+        val updated = bookmarks.updateRandom(random, count = random.nextInt(1, 6))
+        val changes = model.update(updated)!!
+
+        val expected = model.toGroupedBookmarks()
+        changes.forEach { change -> ui.apply(change, expected) }
+      }
+
+      val expected = fullRebuild(bookmarks, config, query)
+      assertEquals(expected, model.toGroupedBookmarks())
+      ui.assertMatches(expected)
+    }
+  }
+
+  /**
+   * What BookmarksPresenter did before on every update: group the bookmarks
+   * (ThreadBookmarkGroupManager.groupBookmarks), filter them by the search query and then sort them
+   * with a couple of stable sorts.
+   * */
+  private fun fullRebuild(
+    bookmarks: SyntheticBookmarks,
+    config: BookmarksListModel.Config,
+    query: String?
+  ): List<GroupOfThreadBookmarkItemViews> {
+    val groupedBookmarks = bookmarks.groupBookmarks(hasSearchQuery = query != null)
+
+    val groupedFilteredBookmarks = if (query != null) {
+      groupedBookmarks.map { groupedBookmark ->
+        if (groupedBookmark.groupInfoText.contains(query, ignoreCase = true)) {
+          return@map groupedBookmark
+        }
+
+        groupedBookmark.threadBookmarkItemViews.removeAll { item -> !item.title.contains(query, ignoreCase = true) }
+        return@map groupedBookmark
+      }
+    } else {
+      groupedBookmarks
+    }
+
+    val comparator: Comparator<ThreadBookmarkItemView>? = when (config.sortOrder) {
+      ChanSettings.BookmarksSortOrder.CreatedOnAscending -> compareBy { it.createdOn }
+      ChanSettings.BookmarksSortOrder.CreatedOnDescending -> compareByDescending { it.createdOn }
+      ChanSettings.BookmarksSortOrder.ThreadIdAscending -> compareBy { it.threadDescriptor }
+      ChanSettings.BookmarksSortOrder.ThreadIdDescending -> compareByDescending { it.threadDescriptor }
+      ChanSettings.BookmarksSortOrder.UnreadRepliesAscending -> compareBy { it.threadBookmarkStats.newQuotes }
+      ChanSettings.BookmarksSortOrder.UnreadRepliesDescending -> compareByDescending { it.threadBookmarkStats.newQuotes }
+      ChanSettings.BookmarksSortOrder.UnreadPostsAscending -> compareBy { it.threadBookmarkStats.newPosts }
+      ChanSettings.BookmarksSortOrder.UnreadPostsDescending -> compareByDescending { it.threadBookmarkStats.newPosts }
+      ChanSettings.BookmarksSortOrder.CustomAscending,
+      ChanSettings.BookmarksSortOrder.CustomDescending -> null
+    }
+
+    groupedFilteredBookmarks.forEach { group ->
+      val items = group.threadBookmarkItemViews
+
+      when {
+        comparator != null -> items.sortWith(comparator)
+        config.sortOrder == ChanSettings.BookmarksSortOrder.CustomDescending -> items.reverse()
+      }
+
+      if (config.moveDeadBookmarksToEnd) {
+        items.sortWith(compareBy { it.threadBookmarkStats.isDeadOrNotWatching() })
+      }
+
+      val sortedByUnreadReplies = config.sortOrder == ChanSettings.BookmarksSortOrder.UnreadRepliesAscending
+        || config.sortOrder == ChanSettings.BookmarksSortOrder.UnreadRepliesDescending
+
+      if (config.moveBookmarksWithUnreadRepliesToTop && !sortedByUnreadReplies) {
+        items.sortWith(compareByDescending { it.threadBookmarkStats.newQuotes })
+      }
+    }
+
+    return groupedFilteredBookmarks
+  }
+
+  private class UiMirror(groupedBookmarks: List<GroupOfThreadBookmarkItemViews>) {
+    private val groups = mutableMapOf<String, MutableList<ChanDescriptor.ThreadDescriptor>>()
+
+    init {
+      reset(groupedBookmarks)
+    }
+
+    fun apply(change: BookmarksListModel.Change, current: List<GroupOfThreadBookmarkItemViews>) {
+      when (change) {
+        BookmarksListModel.Change.Reset -> reset(current)
+        is BookmarksListModel.Change.GroupUpdated -> {
+          // no-op
+        }
+        is BookmarksListModel.Change.GroupItemsChanged -> {
+          groups[change.groupId] = current.first { group -> group.groupId == change.groupId }
+            .threadBookmarkItemViews
+            .map { item -> item.threadDescriptor }
+            .toMutableList()
+        }
+        is BookmarksListModel.Change.ItemUpdated -> {
+          assertEquals(change.threadDescriptor, groups[change.groupId]!![change.position])
+        }
+        is BookmarksListModel.Change.ItemMoved -> {
+          val group = groups[change.groupId]!!
+          assertEquals(change.threadDescriptor, group.removeAt(change.fromPosition))
+          group.add(change.toPosition, change.threadDescriptor)
+        }
+        is BookmarksListModel.Change.ItemInserted -> {
+          groups[change.groupId]!!.add(change.position, change.threadDescriptor)
+        }
+        is BookmarksListModel.Change.ItemRemoved -> {
+          assertEquals(change.threadDescriptor, groups[change.groupId]!!.removeAt(change.position))
+        }
+      }
+    }
+
+    fun assertMatches(expected: List<GroupOfThreadBookmarkItemViews>) {
+      expected.forEach { group ->
+        if (!group.isExpanded) {
+          // Changes of collapsed groups are not reported
+          return@forEach
+        }
+
+        assertEquals(group.threadBookmarkItemViews.map { item -> item.threadDescriptor }, groups[group.groupId])
+      }
+    }
+
+    private fun reset(groupedBookmarks: List<GroupOfThreadBookmarkItemViews>) {
+      groups.clear()
+
+      groupedBookmarks.forEach { group ->
+        groups[group.groupId] = group.threadBookmarkItemViews
+          .map { item -> item.threadDescriptor }
+          .toMutableList()
+      }
+    }
+  }
+
+  private class SyntheticBookmarks(random: Random, bookmarksCount: Int, groupsCount: Int) {
+    val items = LinkedHashMap<ChanDescriptor.ThreadDescriptor, ThreadBookmarkItemView>()
+    private val groups: List<SyntheticGroup>
+
+    init {
+      groups = (0 until groupsCount).map { index ->
+        SyntheticGroup("group_${index}", GROUP_NAMES[index % GROUP_NAMES.size], isExpanded = index % 3 != 2)
+      }
+
+      repeat(bookmarksCount) { index ->
+        val item = createItem(random, 1000L + random.nextLong(0, 1_000_000L) * 10 + index)
+        items[item.threadDescriptor] = item
+        groups.random(random).threadDescriptors += item.threadDescriptor
+      }
+
+      // Custom order
+      groups.forEach { group -> group.threadDescriptors.shuffle(random) }
+    }
+
+    fun createItem(random: Random, threadNo: Long): ThreadBookmarkItemView {
+      val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", threadNo)
+
+      return ThreadBookmarkItemView(
+        threadDescriptor = threadDescriptor,
+        title = TITLES.random(random) + " " + threadNo,
+        thumbnailUrl = null,
+        highlight = false,
+        threadBookmarkStats = randomStats(random),
+        selection = null,
+        createdOn = DateTime(1_600_000_000_000L + random.nextLong(0, 1000) * 60_000L, DateTimeZone.UTC)
+      )
+    }
+
+    fun updateRandom(random: Random, count: Int): List<ThreadBookmarkItemView> {
+      val keys = items.keys.toList()
+
+      return (0 until count).map {
+        val threadDescriptor = keys.random(random)
+        val item = items[threadDescriptor]!!
+
+        val updated = when (random.nextInt(6)) {
+          0 -> item.copy(selection = ThreadBookmarkSelection(random.nextBoolean()))
+          1 -> item.copy(title = TITLES.random(random) + " " + threadDescriptor.threadNo)
+          2 -> item.copy(threadBookmarkStats = randomStats(random))
+          else -> {
+            // The usual watcher update: new posts and replies
+            val stats = item.threadBookmarkStats
+            item.copy(
+              threadBookmarkStats = stats.copy(
+                newPosts = stats.newPosts + random.nextInt(0, 5),
+                newQuotes = stats.newQuotes + if (random.nextInt(8) == 0) 1 else 0
+              )
+            )
+          }
+        }
+
+        items[threadDescriptor] = updated
+        updated
+      }
+    }
+
+    /**
+     * Same as ThreadBookmarkGroupManager.groupBookmarks()
+     * */
+    fun groupBookmarks(hasSearchQuery: Boolean = false): List<GroupOfThreadBookmarkItemViews> {
+      return groups.mapNotNull { group ->
+        if (group.threadDescriptors.isEmpty()) {
+          return@mapNotNull null
+        }
+
+        val groupItems = group.threadDescriptors.map { threadDescriptor -> items[threadDescriptor]!! }
+
+        GroupOfThreadBookmarkItemViews(
+          groupId = group.groupId,
+          groupName = group.groupName,
+          groupInfoText = GroupOfThreadBookmarkItemViews.formatGroupInfoText(
+            groupName = group.groupName,
+            watchingBookmarkInGroupCount = groupItems.count { item -> item.threadBookmarkStats.watching },
+            totalBookmarksInGroupCount = groupItems.size
+          ),
+          isExpanded = group.isExpanded || hasSearchQuery,
+          threadBookmarkItemViews = groupItems.toMutableList()
+        )
+      }
+    }
+
+    private fun randomStats(random: Random): ThreadBookmarkStats {
+      return ThreadBookmarkStats(
+        watching = random.nextInt(4) != 0,
+        newPosts = random.nextInt(0, 10),
+        newQuotes = if (random.nextInt(5) == 0) random.nextInt(1, 3) else 0,
+        totalPosts = random.nextInt(1, 500),
+        isDeleted = random.nextInt(10) == 0
+      )
+    }
+  }
+
+  private class SyntheticGroup(val groupId: String, val groupName: String, val isExpanded: Boolean) {
+    val threadDescriptors = mutableListOf<ChanDescriptor.ThreadDescriptor>()
+  }
+
+  companion object {
+    private val GROUP_NAMES = listOf("/g/", "Watching", "Archive", "Games")
+    private val TITLES = listOf("Daily programming", "Linux general", "Keyboards", "Games thread", "Archive")
+    private val QUERIES = listOf(null, "gen", "Archive", "thread", "Wat", "(3/")
+  }
+
+}
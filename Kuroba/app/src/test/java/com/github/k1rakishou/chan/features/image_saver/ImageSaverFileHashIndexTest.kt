@@ -0,0 +1,228 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import com.github.k1rakishou.model.data.download.ImageSaverFileHash
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.runBlocking
+import okio.ByteString.Companion.toByteString
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.security.MessageDigest
+import kotlin.random.Random
+
+class ImageSaverFileHashIndexTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private lateinit var storage: InMemoryStorage
+  private lateinit var fileAccessor: CountingFileAccessor
+  private lateinit var index: ImageSaverFileHashIndex
+
+  @Before
+  fun setUp() {
+    storage = InMemoryStorage()
+    fileAccessor = CountingFileAccessor()
+    index = ImageSaverFileHashIndex(storage, fileAccessor)
+  }
+
+  @Test
+  fun `test re-saving an album does not hash the files written by the saver`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("site", "board", "12345")
+      val images = (0 until 20).map { id -> Image("$id.jpg", Random(id).nextBytes(64 * 1024)) }
+
+      // First save
+      images.forEach { image -> save(dir, image) }
+      assertEquals(0L, fileAccessor.bytesHashed)
+
+      // Second save of the same album into the same directory
+      images.forEach { image ->
+        assertTrue(index.isSameFile(dir.path, image.name, image.md5, image.bytes.size.toLong()))
+      }
+
+      assertEquals(0L, fileAccessor.bytesHashed)
+    }
+  }
+
+  @Test
+  fun `test files not written by the saver are hashed only once`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("dir")
+      val image = Image("external.png", Random(1).nextBytes(100 * 1024))
+      File(dir, image.name).writeBytes(image.bytes)
+
+      assertTrue(index.isSameFile(dir.path, image.name, image.md5, image.bytes.size.toLong()))
+      assertEquals(image.bytes.size.toLong(), fileAccessor.bytesHashed)
+
+      assertTrue(index.isSameFile(dir.path, image.name, image.md5.uppercase(), image.bytes.size.toLong()))
+      assertEquals(image.bytes.size.toLong(), fileAccessor.bytesHashed)
+    }
+  }
+
+  @Test
+  fun `test duplicates are found under a different name`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("dir")
+      val image = Image("original_name.jpg", Random(2).nextBytes(32 * 1024))
+      val otherImage = Image("other.jpg", Random(3).nextBytes(32 * 1024))
+
+      save(dir, image)
+      save(dir, otherImage)
+
+      assertEquals(image.name, index.findSameFile(dir.path, image.md5, image.bytes.size.toLong()))
+      assertEquals(otherImage.name, index.findSameFile(dir.path, otherImage.md5, otherImage.bytes.size.toLong()))
+      assertFalse(index.isSameFile(dir.path, "server_name.jpg", image.md5, image.bytes.size.toLong()))
+
+      // Same name in another directory is a different file
+      val otherDir = temporaryFolder.newFolder("other_dir")
+      assertNull(index.findSameFile(otherDir.path, image.md5, image.bytes.size.toLong()))
+
+      assertEquals(0L, fileAccessor.bytesHashed)
+    }
+  }
+
+  @Test
+  fun `test externally modified file is rehashed`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("dir")
+      val image = Image("1.jpg", Random(4).nextBytes(16 * 1024))
+      val file = save(dir, image)
+
+      // Same size, different content
+      val modifiedBytes = image.bytes.copyOf().also { bytes -> bytes[0] = (bytes[0] + 1).toByte() }
+      file.writeBytes(modifiedBytes)
+      file.setLastModified(file.lastModified() + 10_000L)
+
+      assertFalse(index.isSameFile(dir.path, image.name, image.md5, image.bytes.size.toLong()))
+      assertNull(index.findSameFile(dir.path, image.md5, image.bytes.size.toLong()))
+      assertEquals(modifiedBytes.size.toLong(), fileAccessor.bytesHashed)
+
+      val modifiedImage = Image(image.name, modifiedBytes)
+      assertTrue(index.isSameFile(dir.path, image.name, modifiedImage.md5, modifiedBytes.size.toLong()))
+      assertEquals(image.name, index.findSameFile(dir.path, modifiedImage.md5, modifiedBytes.size.toLong()))
+      assertEquals(modifiedBytes.size.toLong(), fileAccessor.bytesHashed)
+    }
+  }
+
+  @Test
+  fun `test externally truncated file is rehashed`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("dir")
+      val image = Image("1.jpg", Random(5).nextBytes(16 * 1024))
+      val file = save(dir, image)
+      val lastModified = file.lastModified()
+
+      // Some tools preserve the modification time, the size change is still noticed
+      file.writeBytes(image.bytes.copyOf(1024))
+      file.setLastModified(lastModified)
+
+      assertFalse(index.isSameFile(dir.path, image.name, image.md5, image.bytes.size.toLong()))
+      assertEquals(1024L, fileAccessor.bytesHashed)
+    }
+  }
+
+  @Test
+  fun `test externally deleted file is removed from the index`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("dir")
+      val image = Image("1.jpg", Random(6).nextBytes(16 * 1024))
+      val file = save(dir, image)
+
+      assertTrue(file.delete())
+
+      assertNull(index.findSameFile(dir.path, image.md5, image.bytes.size.toLong()))
+      assertFalse(index.isSameFile(dir.path, image.name, image.md5, image.bytes.size.toLong()))
+      assertTrue(storage.entries.isEmpty())
+      assertEquals(0L, fileAccessor.bytesHashed)
+    }
+  }
+
+  @Test
+  fun `test overwritten file`() {
+    runBlocking {
+      val dir = temporaryFolder.newFolder("dir")
+      val image = Image("1.jpg", Random(7).nextBytes(16 * 1024))
+      val newImage = Image("1.jpg", Random(8).nextBytes(20 * 1024))
+
+      save(dir, image)
+
+      File(dir, image.name).delete()
+      index.onFileDeleted(dir.path, image.name)
+      save(dir, newImage)
+
+      assertNull(index.findSameFile(dir.path, image.md5, image.bytes.size.toLong()))
+      assertTrue(index.isSameFile(dir.path, newImage.name, newImage.md5, newImage.bytes.size.toLong()))
+      assertEquals(0L, fileAccessor.bytesHashed)
+    }
+  }
+
+  private suspend fun save(dir: File, image: Image): File {
+    val file = File(dir, image.name)
+    file.writeBytes(image.bytes)
+
+    index.onFileWritten(dir.path, image.name, image.md5, image.bytes.size.toLong())
+    return file
+  }
+
+  private class Image(val name: String, val bytes: ByteArray) {
+    val md5: String = MessageDigest.getInstance("MD5").digest(bytes).toByteString().hex()
+  }
+
+  private class InMemoryStorage : ImageSaverFileHashIndex.Storage {
+    val entries = mutableMapOf<Pair<String, String>, ImageSaverFileHash>()
+
+    override suspend fun select(dirUri: String, fileName: String): ImageSaverFileHash? {
+      return entries[Pair(dirUri, fileName)]
+    }
+
+    override suspend fun selectByHash(dirUri: String, fileMd5: String, fileSize: Long): List<ImageSaverFileHash> {
+      return entries.values.filter { fileHash ->
+        fileHash.dirUri == dirUri && fileHash.fileMd5 == fileMd5 && fileHash.fileSize == fileSize
+      }
+    }
+
+    override suspend fun insertOrReplace(imageSaverFileHash: ImageSaverFileHash) {
+      entries[Pair(imageSaverFileHash.dirUri, imageSaverFileHash.fileName)] = imageSaverFileHash
+    }
+
+    override suspend fun delete(dirUri: String, fileName: String) {
+      entries.remove(Pair(dirUri, fileName))
+    }
+  }
+
+  private class CountingFileAccessor : ImageSaverFileHashIndex.FileAccessor {
+    var bytesHashed = 0L
+
+    override fun length(dirUri: String, fileName: String): Long {
+      val file = File(dirUri, fileName)
+      if (!file.exists()) {
+        return -1L
+      }
+
+      return file.length()
+    }
+
+    override fun lastModified(dirUri: String, fileName: String): Long {
+      return File(dirUri, fileName).lastModified()
+    }
+
+    override fun md5(dirUri: String, fileName: String): String? {
+      val file = File(dirUri, fileName)
+      if (!file.exists()) {
+        return null
+      }
+
+      val bytes = file.readBytes()
+      bytesHashed += bytes.size
+
+      return MessageDigest.getInstance("MD5").digest(bytes).toByteString().hex()
+    }
+  }
+
+}
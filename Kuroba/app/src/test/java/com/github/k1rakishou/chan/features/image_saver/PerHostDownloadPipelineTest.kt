@@ -0,0 +1,122 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runBlockingTest
+import org.junit.Test
+import kotlin.coroutines.EmptyCoroutineContext
+
+@OptIn(ExperimentalCoroutinesApi::class)
+class PerHostDownloadPipelineTest {
+
+  @Test
+  fun `test every item is processed exactly once`() {
+    runBlockingTest {
+      val items = (0 until 100).map { index -> Item(index, "host${index % 7}", (index % 13) * 10L) }
+      val processed = mutableListOf<Item>()
+
+      pipeline(maxConcurrentDownloads = 8, maxConcurrentDownloadsPerHost = 2).process(
+        items = items,
+        hostSelector = { item -> item.host },
+        download = { item -> delay(item.durationMs); item },
+        onResult = { item, result ->
+          assertEquals(item, result)
+          processed += result
+        }
+      )
+
+      assertEquals(items.sortedBy { item -> item.id }, processed.sortedBy { item -> item.id })
+    }
+  }
+
+  @Test
+  fun `test concurrency limits are respected`() {
+    runBlockingTest {
+      val items = (0 until 40).map { index -> Item(index, "host${index % 3}", 100L) }
+
+      val active = mutableMapOf<String, Int>()
+      var activeTotal = 0
+      var maxActiveTotal = 0
+      var maxActivePerHost = 0
+
+      pipeline(maxConcurrentDownloads = 5, maxConcurrentDownloadsPerHost = 2).process(
+        items = items,
+        hostSelector = { item -> item.host },
+        download = { item ->
+          val activeForHost = active.getOrElse(item.host) { 0 } + 1
+          active[item.host] = activeForHost
+          ++activeTotal
+
+          maxActivePerHost = maxOf(maxActivePerHost, activeForHost)
+          maxActiveTotal = maxOf(maxActiveTotal, activeTotal)
+
+          delay(item.durationMs)
+
+          active[item.host] = active.getValue(item.host) - 1
+          --activeTotal
+        },
+        onResult = { _, _ -> }
+      )
+
+      assertEquals(2, maxActivePerHost)
+      assertEquals(5, maxActiveTotal)
+    }
+  }
+
+  @Test
+  fun `test one huge file does not hold the rest back`() {
+    runBlockingTest {
+      // One huge file followed by a lot of small ones, all from different hosts
+      val items = listOf(Item(0, "host0", 10_000L)) + (1 until 40).map { index -> Item(index, "host$index", 100L) }
+      val maxConcurrentDownloads = 4
+
+      pipeline(maxConcurrentDownloads = maxConcurrentDownloads, maxConcurrentDownloadsPerHost = 2).process(
+        items = items,
+        hostSelector = { item -> item.host },
+        download = { item -> delay(item.durationMs) },
+        onResult = { _, _ -> }
+      )
+
+      // With fixed batches every batch waits for its slowest download:
+      // 10000ms (the first batch) + 9 * 100ms (the rest)
+      val batchedTime = items.chunked(maxConcurrentDownloads)
+        .sumOf { batch -> batch.maxOf { item -> item.durationMs } }
+
+      assertEquals(10_900L, batchedTime)
+      assertEquals(10_000L, currentTime)
+    }
+  }
+
+  @Test
+  fun `test slow host does not block other hosts`() {
+    runBlockingTest {
+      val items = (0 until 20).map { index -> Item(index, "slow.host", 1000L) } +
+        (20 until 24).map { index -> Item(index, "fast.host", 10L) }
+      val completionTimes = mutableMapOf<String, MutableList<Long>>()
+
+      pipeline(maxConcurrentDownloads = 6, maxConcurrentDownloadsPerHost = 4).process(
+        items = items,
+        hostSelector = { item -> item.host },
+        download = { item -> delay(item.durationMs) },
+        onResult = { item, _ -> completionTimes.getOrPut(item.host) { mutableListOf() }.add(currentTime) }
+      )
+
+      // The fast host's images come last in the list, but they don't have to wait for the slow host
+      assertTrue(completionTimes.getValue("fast.host").all { time -> time <= 20L })
+      assertEquals(5000L, completionTimes.getValue("slow.host").maxOrNull())
+    }
+  }
+
+  private fun pipeline(maxConcurrentDownloads: Int, maxConcurrentDownloadsPerHost: Int): PerHostDownloadPipeline {
+    return PerHostDownloadPipeline(
+      maxConcurrentDownloads = maxConcurrentDownloads,
+      maxConcurrentDownloadsPerHost = maxConcurrentDownloadsPerHost,
+      downloadContext = EmptyCoroutineContext
+    )
+  }
+
+  private data class Item(val id: Int, val host: String, val durationMs: Long)
+
+}
@@ -0,0 +1,254 @@
+package com.github.k1rakishou.chan.features.image_saver
+
+import com.github.k1rakishou.common.BadStatusResponseException
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import kotlinx.coroutines.runBlocking
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import okhttp3.mockwebserver.SocketPolicy
+import okio.Buffer
+import org.junit.After
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import kotlin.random.Random
+
+class ResumableFileDownloaderTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val okHttpClient = OkHttpClient()
+  private lateinit var server: MockWebServer
+
+  @Before
+  fun setUp() {
+    server = MockWebServer()
+    server.start()
+  }
+
+  @After
+  fun tearDown() {
+    server.shutdown()
+  }
+
+  @Test
+  fun `test download from scratch`() {
+    runBlocking {
+      val data = Random(1).nextBytes(300 * 1024)
+      val dispatcher = RangeDispatcher(data)
+      server.dispatcher = dispatcher
+
+      val partialFile = temporaryFolder.root.resolve("partial")
+      val checkpoints = mutableListOf<Long>()
+
+      val length = downloader().download(request(), partialFile, 0L) { bytes -> checkpoints += bytes }
+
+      assertEquals(data.size.toLong(), length)
+      assertTrue(data.contentEquals(partialFile.readBytes()))
+      assertEquals(listOf<String?>(null), dispatcher.rangeHeaders)
+      assertEquals(checkpoints.sorted(), checkpoints)
+      assertEquals(data.size.toLong(), checkpoints.last())
+    }
+  }
+
+  @Test
+  fun `test download is resumed after the process was killed`() {
+    runBlocking {
+      val data = Random(2).nextBytes(300 * 1024)
+      val dispatcher = RangeDispatcher(data)
+      server.dispatcher = dispatcher
+
+      val partialFile = temporaryFolder.root.resolve("partial")
+      var persistedBytes = 0L
+
+      try {
+        downloader().download(request(), partialFile, 0L) { bytes ->
+          persistedBytes = bytes
+          throw ProcessKilledException()
+        }
+
+        fail("Must be killed")
+      } catch (error: ProcessKilledException) {
+        // expected
+      }
+
+      assertTrue(persistedBytes > 0)
+      assertTrue(persistedBytes < data.size)
+
+      val killedAt = persistedBytes
+
+      // Garbage written after the last checkpoint must not end up in the result file
+      partialFile.appendBytes(ByteArray(1000) { 0x7F })
+
+      val length = downloader().download(request(), partialFile, persistedBytes) { bytes -> persistedBytes = bytes }
+
+      assertEquals(data.size.toLong(), length)
+      assertEquals(data.size.toLong(), persistedBytes)
+      assertTrue(data.contentEquals(partialFile.readBytes()))
+      assertEquals(listOf(null, "bytes=${killedAt}-"), dispatcher.rangeHeaders)
+    }
+  }
+
+  @Test
+  fun `test download is resumed after a network error`() {
+    runBlocking {
+      val data = Random(3).nextBytes(512 * 1024)
+      val dispatcher = RangeDispatcher(data, disconnectFirstResponse = true)
+      server.dispatcher = dispatcher
+
+      val partialFile = temporaryFolder.root.resolve("partial")
+      var persistedBytes = 0L
+
+      try {
+        downloader().download(request(), partialFile, 0L) { bytes -> persistedBytes = bytes }
+        fail("Must fail")
+      } catch (error: IOException) {
+        // expected
+      }
+
+      assertTrue(persistedBytes > 0)
+      assertEquals(partialFile.length(), persistedBytes)
+      val failedAt = persistedBytes
+
+      val length = downloader().download(request(), partialFile, persistedBytes) { bytes -> persistedBytes = bytes }
+
+      assertEquals(data.size.toLong(), length)
+      assertTrue(data.contentEquals(partialFile.readBytes()))
+      assertEquals(listOf(null, "bytes=${failedAt}-"), dispatcher.rangeHeaders)
+    }
+  }
+
+  @Test
+  fun `test download starts over when server does not support ranges`() {
+    runBlocking {
+      val data = Random(4).nextBytes(100 * 1024)
+      val dispatcher = RangeDispatcher(data, supportsRange = false)
+      server.dispatcher = dispatcher
+
+      val partialFile = temporaryFolder.root.resolve("partial")
+      partialFile.writeBytes(data.copyOfRange(0, 50 * 1024))
+
+      val length = downloader().download(request(), partialFile, 50 * 1024L) { }
+
+      assertEquals(data.size.toLong(), length)
+      assertTrue(data.contentEquals(partialFile.readBytes()))
+      assertEquals("bytes=${50 * 1024}-", dispatcher.rangeHeaders.single())
+    }
+  }
+
+  @Test
+  fun `test download starts over when partial file is shorter than the checkpoint`() {
+    runBlocking {
+      val data = Random(5).nextBytes(100 * 1024)
+      val dispatcher = RangeDispatcher(data)
+      server.dispatcher = dispatcher
+
+      val partialFile = temporaryFolder.root.resolve("partial")
+      partialFile.writeBytes(data.copyOfRange(0, 10 * 1024))
+
+      val length = downloader().download(request(), partialFile, 50 * 1024L) { }
+
+      assertEquals(data.size.toLong(), length)
+      assertTrue(data.contentEquals(partialFile.readBytes()))
+      assertNull(dispatcher.rangeHeaders.single())
+    }
+  }
+
+  @Test
+  fun `test not found`() {
+    runBlocking {
+      server.enqueue(MockResponse().setResponseCode(404))
+
+      val partialFile = temporaryFolder.root.resolve("partial")
+
+      try {
+        downloader().download(request(), partialFile, 0L) { }
+        fail("Must fail")
+      } catch (error: BadStatusResponseException) {
+        assertTrue(error.isNotFoundError())
+      }
+
+      assertFalse(partialFile.exists())
+    }
+  }
+
+  @Test
+  fun `test parse content range`() {
+    assertEquals(
+      ResumableFileDownloader.ContentRange(100, 199, 1000),
+      ResumableFileDownloader.parseContentRange("bytes 100-199/1000")
+    )
+    assertEquals(
+      ResumableFileDownloader.ContentRange(0, 9, null),
+      ResumableFileDownloader.parseContentRange("bytes 0-9/*")
+    )
+    assertNull(ResumableFileDownloader.parseContentRange("bytes */1000"))
+    assertNull(ResumableFileDownloader.parseContentRange(null))
+  }
+
+  private fun downloader(): ResumableFileDownloader {
+    return ResumableFileDownloader(
+      okHttpClientProvider = { okHttpClient },
+      checkpointBytes = CHECKPOINT_BYTES
+    )
+  }
+
+  private fun request(): Request.Builder {
+    return Request.Builder().url(server.url("/image.jpg"))
+  }
+
+  private class ProcessKilledException : RuntimeException()
+
+  private class RangeDispatcher(
+    private val data: ByteArray,
+    private val supportsRange: Boolean = true,
+    private var disconnectFirstResponse: Boolean = false
+  ) : Dispatcher() {
+    val rangeHeaders = CopyOnWriteArrayList<String?>()
+
+    override fun dispatch(request: RecordedRequest): MockResponse {
+      val range = request.getHeader("Range")
+      rangeHeaders += range
+
+      val response = if (range == null || !supportsRange) {
+        MockResponse()
+          .setResponseCode(200)
+          .setBody(Buffer().write(data))
+      } else {
+        val start = range.removePrefix("bytes=").removeSuffix("-").toInt()
+        if (start >= data.size) {
+          return MockResponse().setResponseCode(416)
+        }
+
+        MockResponse()
+          .setResponseCode(206)
+          .setHeader("Content-Range", "bytes $start-${data.size - 1}/${data.size}")
+          .setBody(Buffer().write(data, start, data.size - start))
+      }
+
+      if (disconnectFirstResponse) {
+        disconnectFirstResponse = false
+        response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY)
+      }
+
+      return response
+    }
+  }
+
+  companion object {
+    private const val CHECKPOINT_BYTES = 16 * 1024L
+  }
+
+}
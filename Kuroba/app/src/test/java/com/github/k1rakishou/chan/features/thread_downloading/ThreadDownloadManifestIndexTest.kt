@@ -0,0 +1,254 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import okhttp3.HttpUrl
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import org.junit.After
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class ThreadDownloadManifestIndexTest {
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  private val appScope = CoroutineScope(Job())
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L)
+
+  private val threadDirectory: File
+    get() = File(temporaryFolder.root, ThreadDownloadingDelegate.formatDirectoryName(threadDescriptor))
+
+  @After
+  fun tearDown() {
+    appScope.coroutineContext[Job]?.cancel()
+  }
+
+  @Test
+  fun `only fully downloaded files are found after a partial download`() {
+    val index = createIndex()
+
+    download(index, "1.jpg", size = 100)
+    download(index, "1s.jpg", size = 10)
+    // The app was killed while this one was being written
+    writeFile("2.jpg", size = 50)
+
+    assertNotNull(index.findFile(threadDescriptor, mediaUrl("1.jpg")))
+    assertNotNull(index.findFile(threadDescriptor, mediaUrl("1s.jpg")))
+    assertNull(index.findFile(threadDescriptor, mediaUrl("2.jpg")))
+
+    // After the restart
+    val restartedIndex = createIndex()
+
+    assertEquals(File(threadDirectory, "1.jpg"), restartedIndex.findFile(threadDescriptor, mediaUrl("1.jpg")))
+    assertNull(restartedIndex.findFile(threadDescriptor, mediaUrl("2.jpg")))
+
+    val manifestEntry = restartedIndex.findEntry(threadDescriptor, "1.jpg")!!
+    assertEquals(100L, manifestEntry.fileSize)
+    assertEquals(mediaUrl("1.jpg").toString(), manifestEntry.mediaUrl)
+    assertEquals("md5-1.jpg", manifestEntry.fileMd5)
+  }
+
+  @Test
+  fun `deleted and modified files are dropped by the reconciliation`() {
+    val index = createIndex()
+
+    download(index, "1.jpg", size = 100)
+    download(index, "2.jpg", size = 100)
+    download(index, "3.jpg", size = 100)
+
+    File(threadDirectory, "1.jpg").delete()
+    writeFile("2.jpg", size = 20)
+
+    assertEquals(2, index.reconcile(threadDescriptor))
+    assertNull(index.findFile(threadDescriptor, mediaUrl("1.jpg")))
+    assertNull(index.findFile(threadDescriptor, mediaUrl("2.jpg")))
+    assertNotNull(index.findFile(threadDescriptor, mediaUrl("3.jpg")))
+
+    // The manifest was compacted
+    assertEquals(1, manifestLines().size)
+
+    val restartedIndex = createIndex()
+    assertNull(restartedIndex.findFile(threadDescriptor, mediaUrl("1.jpg")))
+    assertNotNull(restartedIndex.findFile(threadDescriptor, mediaUrl("3.jpg")))
+  }
+
+  @Test
+  fun `manifest line cut off by a crash is ignored and not appended to`() {
+    val index = createIndex()
+
+    download(index, "1.jpg", size = 100)
+    download(index, "2.jpg", size = 100)
+
+    // The app was killed in the middle of appending the line of 3.jpg
+    val manifestFile = File(threadDirectory, ThreadDownloadManifestIndex.MANIFEST_FILE_NAME)
+    val fullText = manifestFile.readText()
+    val lastLineStart = fullText.dropLast(1).lastIndexOf('\n') + 1
+    manifestFile.writeText(fullText + fullText.substring(lastLineStart).replace("2.jpg", "3.jpg").take(12))
+    writeFile("3.jpg", size = 100)
+
+    val restartedIndex = createIndex()
+
+    assertNotNull(restartedIndex.findFile(threadDescriptor, mediaUrl("1.jpg")))
+    assertNotNull(restartedIndex.findFile(threadDescriptor, mediaUrl("2.jpg")))
+    assertNull(restartedIndex.findFile(threadDescriptor, mediaUrl("3.jpg")))
+
+    // Downloaded again
+    download(restartedIndex, "3.jpg", size = 100)
+
+    val reloadedIndex = createIndex()
+    listOf("1.jpg", "2.jpg", "3.jpg").forEach { fileName ->
+      assertNotNull(reloadedIndex.findFile(threadDescriptor, mediaUrl(fileName)))
+    }
+
+    assertEquals(3, manifestLines().size)
+  }
+
+  @Test
+  fun `files downloaded before the manifest existed are adopted`() {
+    writeFile(".nomedia", size = 0)
+    writeFile("1.jpg", size = 100)
+    writeFile("2.jpg", size = 0)
+
+    val index = createIndex()
+
+    assertNotNull(index.findFile(threadDescriptor, mediaUrl("1.jpg")))
+    assertNull(index.findFile(threadDescriptor, mediaUrl("2.jpg")))
+    assertTrue(File(threadDirectory, ThreadDownloadManifestIndex.MANIFEST_FILE_NAME).exists())
+
+    val manifestEntry = createIndex().findEntry(threadDescriptor, "1.jpg")!!
+    assertNull(manifestEntry.fileMd5)
+    assertNull(manifestEntry.mediaUrl)
+  }
+
+  @Test
+  fun `forgotten thread is loaded again`() {
+    val index = createIndex()
+    download(index, "1.jpg", size = 100)
+    assertTrue(index.isLoaded(threadDescriptor))
+
+    threadDirectory.deleteRecursively()
+    index.forget(threadDescriptor)
+
+    assertFalse(index.isLoaded(threadDescriptor))
+    assertNull(index.findFile(threadDescriptor, mediaUrl("1.jpg")))
+  }
+
+  @Test
+  fun `cleared cache directory is loaded again`() {
+    val index = createIndex()
+    download(index, "1.jpg", size = 100)
+
+    threadDirectory.deleteRecursively()
+    index.forgetAll()
+
+    assertFalse(index.isLoaded(threadDescriptor))
+    assertNull(index.findFile(threadDescriptor, mediaUrl("1.jpg")))
+  }
+
+  @Test
+  fun `concurrent thumbnail binds are served from memory`() {
+    val filesCount = 1000
+    val threadsCount = 32
+    val lookupsPerThread = 20_000
+
+    val index = createIndex()
+    (0 until filesCount).forEach { fileNo -> download(index, "${fileNo}s.jpg", size = 10) }
+
+    val urls = (0 until filesCount * 2).map { fileNo -> mediaUrl("${fileNo}s.jpg") }
+
+    // Not loaded yet, the first binds have to wait for the manifest to be loaded
+    val restartedIndex = createIndex()
+    val executor = Executors.newFixedThreadPool(threadsCount)
+    val startLatch = CountDownLatch(1)
+    val found = AtomicInteger(0)
+    val notFound = AtomicInteger(0)
+    val maxLookupNanos = AtomicLong(0L)
+    val totalLookupNanos = AtomicLong(0L)
+
+    repeat(threadsCount) { threadIndex ->
+      executor.execute {
+        startLatch.await()
+
+        var firstLookup = true
+
+        repeat(lookupsPerThread) { lookupIndex ->
+          val url = urls[(threadIndex * 7919 + lookupIndex) % urls.size]
+
+          val start = System.nanoTime()
+          val file = restartedIndex.findFile(threadDescriptor, url)
+          val took = System.nanoTime() - start
+
+          if (file != null) found.incrementAndGet() else notFound.incrementAndGet()
+
+          // The first lookup includes the manifest loading
+          if (!firstLookup) {
+            totalLookupNanos.addAndGet(took)
+            maxLookupNanos.accumulateAndGet(took) { prev, new -> maxOf(prev, new) }
+          }
+
+          firstLookup = false
+        }
+      }
+    }
+
+    startLatch.countDown()
+    executor.shutdown()
+    assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS))
+
+    val totalLookups = threadsCount * lookupsPerThread
+    val averageLookupNanos = totalLookupNanos.get() / (totalLookups - threadsCount)
+
+    // Half of the urls were downloaded
+    assertEquals(totalLookups, found.get() + notFound.get())
+    assertEquals(totalLookups / 2, found.get())
+    // No disk access per lookup, even a slow machine does a map lookup in way less than that
+    assertTrue(
+      "average=${averageLookupNanos}ns, max=${maxLookupNanos.get() / 1000}us",
+      averageLookupNanos < TimeUnit.MICROSECONDS.toNanos(100)
+    )
+  }
+
+  private fun createIndex(): ThreadDownloadManifestIndex {
+    return ThreadDownloadManifestIndex(appScope) { temporaryFolder.root }
+  }
+
+  private fun download(index: ThreadDownloadManifestIndex, fileName: String, size: Int) {
+    writeFile(fileName, size)
+
+    index.onMediaDownloaded(
+      threadDescriptor = threadDescriptor,
+      mediaUrl = mediaUrl(fileName),
+      fileName = fileName,
+      fileSize = size.toLong(),
+      fileMd5 = "md5-$fileName"
+    )
+  }
+
+  private fun writeFile(fileName: String, size: Int) {
+    threadDirectory.mkdirs()
+    File(threadDirectory, fileName).writeBytes(ByteArray(size) { 1 })
+  }
+
+  private fun manifestLines(): List<String> {
+    return File(threadDirectory, ThreadDownloadManifestIndex.MANIFEST_FILE_NAME)
+      .readLines()
+      .filter { line -> line.isNotEmpty() }
+  }
+
+  private fun mediaUrl(fileName: String): HttpUrl {
+    return "https://i.4cdn.org/g/$fileName".toHttpUrl()
+  }
+}
@@ -0,0 +1,342 @@
+package com.github.k1rakishou.chan.features.thread_downloading
+
+import com.github.k1rakishou.common.extractFileName
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanOriginalPost
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.ChanPostImage
+import com.github.k1rakishou.model.data.post.PostComment
+import com.github.k1rakishou.model.util.ChanPostUtils
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import okhttp3.HttpUrl.Companion.toHttpUrl
+import org.joda.time.DateTimeZone
+import org.joda.time.format.DateTimeFormatterBuilder
+import org.joda.time.format.ISODateTimeFormat
+import org.junit.Test
+import java.io.StringWriter
+import java.io.Writer
+import java.util.regex.Pattern
+
+class ThreadHtmlWriterTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("test", "g", 1L)
+
+  @Test
+  fun `test output is identical to the previous exporter`() {
+    val posts = (1L..50L).map { postNo -> createPost(postNo, imagesCount = (postNo % 3).toInt()) }
+
+    val expected = buildString {
+      append(HTML_TEMPLATE_START)
+      posts.forEach { post -> append(LegacyFormatter.formatPost(post)) }
+      append(HTML_TEMPLATE_END)
+    }
+
+    val stringWriter = StringWriter()
+    val threadHtmlWriter = ThreadHtmlWriter(
+      writer = stringWriter,
+      stylesheet = ThreadHtmlWriter.Stylesheet.Linked(ThreadHtmlWriter.STYLESHEET_FILE_NAME),
+      dateTimePrinter = DATE_TIME_PRINTER
+    )
+
+    threadHtmlWriter.writeStart()
+    posts.forEach { post -> threadHtmlWriter.writePost(post) }
+    threadHtmlWriter.writeEnd()
+
+    assertEquals(expected, stringWriter.toString())
+  }
+
+  @Test
+  fun `test inlined stylesheet`() {
+    val stringWriter = StringWriter()
+    val threadHtmlWriter = ThreadHtmlWriter(
+      writer = stringWriter,
+      stylesheet = ThreadHtmlWriter.Stylesheet.Inlined { "body { color: red; }".reader() },
+      dateTimePrinter = DATE_TIME_PRINTER
+    )
+
+    threadHtmlWriter.writeStart()
+    threadHtmlWriter.writeEnd()
+
+    val html = stringWriter.toString()
+    assertTrue(html.contains("<style>\nbody { color: red; }\n</style>"))
+    assertTrue(!html.contains("tomorrow.css"))
+  }
+
+  @Test
+  fun `test huge thread is written without buffering the document`() {
+    val postsCount = 10_000L
+    val commentLength = 2048
+    val writer = MeasuringWriter()
+
+    val threadHtmlWriter = ThreadHtmlWriter(
+      writer = writer,
+      stylesheet = ThreadHtmlWriter.Stylesheet.Linked(ThreadHtmlWriter.STYLESHEET_FILE_NAME),
+      dateTimePrinter = DATE_TIME_PRINTER
+    )
+
+    threadHtmlWriter.writeStart()
+
+    // Posts are created lazily, just like they are loaded page by page from the database, so
+    // that only one post is alive at a time
+    (1L..postsCount).asSequence()
+      .map { postNo -> createPost(postNo, imagesCount = 1, comment = "a".repeat(commentLength)) }
+      .forEach { post -> threadHtmlWriter.writePost(post) }
+
+    threadHtmlWriter.writeEnd()
+
+    assertTrue(writer.totalChars > postsCount * commentLength)
+
+    // Nothing bigger than a single post comment (or template chunk) is ever handed to the writer
+    assertTrue("maxChunk=${writer.maxChunk}", writer.maxChunk <= commentLength)
+  }
+
+  private fun createPost(postNo: Long, imagesCount: Int, comment: String = "Comment <b>$postNo</b>"): ChanPost {
+    val postImages = (0 until imagesCount).map { index ->
+      ChanPostImage(
+        serverFilename = "${postNo}_$index",
+        actualThumbnailUrl = "https://i.test.org/g/${postNo}_${index}s.jpg".toHttpUrl(),
+        imageUrl = "https://i.test.org/g/${postNo}_${index}.jpg".toHttpUrl(),
+        filename = "image_$index",
+        extension = "jpg",
+        imageWidth = 1920,
+        imageHeight = 1080,
+        fileSize = 1024L * postNo
+      )
+    }
+
+    val postComment = PostComment(originalComment = comment, originalUnparsedComment = comment, emptyList())
+
+    if (postNo == threadDescriptor.threadNo) {
+      return ChanOriginalPost(
+        chanPostId = postNo,
+        postDescriptor = PostDescriptor.create(threadDescriptor, postNo),
+        postImages = postImages,
+        postIcons = mutableListOf<ChanPostHttpIcon>(),
+        repliesTo = mutableSetOf(),
+        timestamp = 1_600_000_000L + postNo,
+        postComment = postComment,
+        subject = "Thread subject",
+        tripcode = "!trip",
+        name = null,
+        posterId = null,
+        moderatorCapcode = null,
+        isSavedReply = false,
+        isSage = false,
+        repliesFrom = mutableSetOf(),
+        deleted = false,
+        posterIdColor = 0,
+        archived = false,
+        closed = false,
+        endless = false,
+        sticky = false,
+        lastModified = 0L
+      )
+    }
+
+    return ChanPost(
+      chanPostId = postNo,
+      postDescriptor = PostDescriptor.create(threadDescriptor, postNo),
+      _postImages = postImages.toMutableList(),
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = mutableSetOf(),
+      timestamp = 1_600_000_000L + postNo,
+      postComment = postComment,
+      subject = null,
+      tripcode = if (postNo % 2 == 0L) "!trip$postNo" else null,
+      name = null,
+      posterId = null,
+      moderatorCapcode = null,
+      isSavedReply = false,
+      isSage = false,
+      repliesFrom = mutableSetOf(),
+      deleted = false,
+      posterIdColor = 0,
+    )
+  }
+
+  private class MeasuringWriter : Writer() {
+    var totalChars = 0L
+      private set
+    var maxChunk = 0
+      private set
+
+    override fun write(cbuf: CharArray, off: Int, len: Int) {
+      totalChars += len
+      maxChunk = maxOf(maxChunk, len)
+    }
+
+    override fun write(str: String, off: Int, len: Int) {
+      totalChars += len
+      maxChunk = maxOf(maxChunk, len)
+    }
+
+    override fun flush() {
+    }
+
+    override fun close() {
+    }
+  }
+
+  /**
+   * The formatter that was used before the html export was made streaming.
+   * */
+  private object LegacyFormatter {
+    private val TEMPLATE_PARAMETER_PATTERN = Pattern.compile("\\{\\{\\w+\\}\\}")
+
+    fun formatPost(chanPost: ChanPost): String {
+      val template = if (chanPost is ChanOriginalPost) OP_POST_TEMPLATE else REGULAR_POST_TEMPLATE
+
+      return format(template) { templateParam ->
+        when (templateParam) {
+          "POST_NO" -> chanPost.postDescriptor.postNo.toString()
+          "ORIGINAL_POST_FILES",
+          "REGULAR_POST_FILES" -> formatPostFiles(chanPost)
+          "THREAD_SUBJECT" -> chanPost.subject ?: ""
+          "POSTER_NAME" -> chanPost.tripcode ?: ""
+          "DATE_TIME_FORMATTED" -> DATE_TIME_PRINTER.print(chanPost.timestamp * 1000L)
+          "POST_COMMENT" -> chanPost.postComment.originalUnparsedComment ?: ""
+          else -> error("Unknown template parameter: ${templateParam}")
+        }
+      }
+    }
+
+    private fun formatPostFiles(chanPost: ChanPost): String {
+      if (chanPost.postImages.isEmpty()) {
+        return ""
+      }
+
+      val template = if (chanPost is ChanOriginalPost) ORIGINAL_POST_FILE_TEMPLATE else REGULAR_POST_FILE_TEMPLATE
+
+      return buildString {
+        append("<div class=\"files_container\">")
+
+        chanPost.iteratePostImages { chanPostImage ->
+          append(format(template) { templateParam ->
+            when (templateParam) {
+              "POST_NO" -> chanPost.postDescriptor.postNo.toString()
+              "FILE_NAME_WEIGHT_DIMENS" -> {
+                val fileName = chanPostImage.formatFullOriginalFileName() ?: ""
+                val weight = ChanPostUtils.getReadableFileSize(chanPostImage.size)
+                val dimens = "${chanPostImage.imageWidth}x${chanPostImage.imageHeight}"
+
+                "${fileName}, $weight, $dimens"
+              }
+              "FULL_IMAGE_NAME" -> chanPostImage.imageUrl?.extractFileName() ?: ""
+              "THUMBNAIL_NAME" -> chanPostImage.actualThumbnailUrl?.extractFileName() ?: ""
+              "FILE_WEIGHT" -> ChanPostUtils.getReadableFileSize(chanPostImage.size)
+              else -> error("Unknown template parameter: ${templateParam}")
+            }
+          })
+        }
+
+        append("</div>")
+      }
+    }
+
+    private fun format(template: String, valueOf: (String) -> CharSequence): String {
+      val templateBuilder = StringBuilder(template.length)
+      val matcher = TEMPLATE_PARAMETER_PATTERN.matcher(template)
+      var offset = 0
+
+      while (matcher.find()) {
+        templateBuilder.append(template.substring(offset, matcher.start(0)))
+
+        val templateParam = template.substring(matcher.start(0), matcher.end(0))
+          .removePrefix("{{")
+          .removeSuffix("}}")
+
+        templateBuilder.append(valueOf(templateParam))
+        offset = matcher.end(0)
+      }
+
+      templateBuilder.append(template.substring(offset, template.length))
+      return templateBuilder.toString()
+    }
+  }
+
+  companion object {
+    private val DATE_TIME_PRINTER = DateTimeFormatterBuilder()
+      .append(ISODateTimeFormat.date())
+      .appendLiteral(' ')
+      .append(ISODateTimeFormat.hourMinuteSecond())
+      .toFormatter()
+      .withZone(DateTimeZone.UTC)
+
+    private const val HTML_TEMPLATE_START = """
+<!DOCTYPE html>
+<head>
+   <link rel="stylesheet" title="switch" href="tomorrow.css">
+   <meta charset="utf-8">
+<body class="is_thread">
+   <form name="delform" id="delform">
+      <div class="board">
+         <div class="thread">
+    """
+
+    private const val HTML_TEMPLATE_END = """
+         </div>
+         <hr>
+      </div>
+   </form>
+</body>
+</head>
+    """
+
+    private const val OP_POST_TEMPLATE = """
+            <div class="postContainer opContainer" id="pc{{POST_NO}}">
+              <div id="p{{POST_NO}}" class="post op">
+                {{ORIGINAL_POST_FILES}}
+                  <div class="postInfo desktop" id="pi{{POST_NO}}">
+                    <span class="subject">{{THREAD_SUBJECT}}</span> 
+                    <span class="nameBlock">
+                      <span class="name">{{POSTER_NAME}}</span> 
+                    </span> 
+                    <span class="dateTime">{{DATE_TIME_FORMATTED}} No. {{POST_NO}}</span> 
+                  </div>
+                  <blockquote class="postMessage" id="m{{POST_NO}}">{{POST_COMMENT}}</blockquote>
+               </div>
+            </div>
+    """
+
+    private const val REGULAR_POST_TEMPLATE = """
+            <div class="postContainer replyContainer" id="pc{{POST_NO}}">
+               <div id="p{{POST_NO}}" class="post reply">
+                  <div class="postInfo desktop" id="pi{{POST_NO}}">
+                    <span class="nameBlock">
+                      <span class="name">{{POSTER_NAME}}</span>
+                    </span> 
+                    <span class="dateTime">{{DATE_TIME_FORMATTED}} No. {{POST_NO}}</span> 
+                  </div>
+                  {{REGULAR_POST_FILES}}
+                  <blockquote class="postMessage" id="m{{POST_NO}}">{{POST_COMMENT}}</blockquote>
+               </div>
+            </div>
+    """
+
+    private const val ORIGINAL_POST_FILE_TEMPLATE = """
+                <div class="files_container">
+                  <div class="file" id="f{{POST_NO}}">
+                     <div class="fileText" id="fT{{POST_NO}}">File: 
+                      <a href="{{FULL_IMAGE_NAME}}" target="_blank">{{FILE_NAME_WEIGHT_DIMENS}}</a>
+                  </div>
+                     <a class="fileThumb" href="{{FULL_IMAGE_NAME}}" target="_blank">
+                        <img src="{{THUMBNAIL_NAME}}" alt="{{FILE_WEIGHT}}" style="height: 200px; width: 250px;" loading="lazy">
+                     </a>
+                  </div>
+                </div>
+    """
+
+    private const val REGULAR_POST_FILE_TEMPLATE = """
+                <div class="file" id="f{{POST_NO}}">
+                  <div class="fileText" id="fT{{POST_NO}}">File:
+                    <a href="{{FULL_IMAGE_NAME}}" target="_blank">{{FILE_NAME_WEIGHT_DIMENS}}</a>
+                  </div>
+                  <a class="fileThumb" href="{{FULL_IMAGE_NAME}}" target="_blank">
+                    <img src="{{THUMBNAIL_NAME}}" alt="{{FILE_WEIGHT}}" style="height: 120px; width: 125px;" loading="lazy">
+                  </a>
+                </div>
+    """
+  }
+}
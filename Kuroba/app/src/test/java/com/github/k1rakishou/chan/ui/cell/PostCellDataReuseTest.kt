@@ -0,0 +1,267 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import androidx.recyclerview.widget.ListUpdateCallback
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import com.github.k1rakishou.model.data.post.ChanPost
+import com.github.k1rakishou.model.data.post.ChanPostHttpIcon
+import com.github.k1rakishou.model.data.post.PostComment
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertSame
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+
+class PostCellDataReuseTest {
+  private val threadDescriptor = ChanDescriptor.ThreadDescriptor.create("4chan", "g", 1L)
+  private val postCellDataReuse = PostCellDataReuse<Cell>()
+  private var displayedKeys: List<PostCellDataReuse.CellKey> = emptyList()
+
+  @Test
+  fun `first update builds every cell and rebinds everything`() {
+    val refresh = refresh(posts = (1L..5L).map { postNo -> createPost(postNo) })
+
+    assertEquals(5, refresh.recomputedCount)
+    assertNull(refresh.adapterUpdates)
+  }
+
+  @Test
+  fun `only the new posts are built when the thread grows`() {
+    val posts = (1L..5L).map { postNo -> createPost(postNo) }
+    val firstRefresh = refresh(posts)
+
+    // Every refresh recreates the posts
+    val secondRefresh = refresh((1L..7L).map { postNo -> createPost(postNo) })
+
+    assertEquals(2, secondRefresh.recomputedCount)
+    assertEquals(listOf("insert 5 2"), secondRefresh.adapterUpdates)
+
+    firstRefresh.cells.forEachIndexed { index, cell -> assertSame(cell, secondRefresh.cells[index]) }
+  }
+
+  @Test
+  fun `reused cells are pointed at the new posts`() {
+    val oldPosts = (1L..3L).map { postNo -> createPost(postNo) }
+    refresh(oldPosts)
+
+    val newPosts = (1L..3L).map { postNo -> createPost(postNo) }
+    val refresh = refresh(newPosts)
+
+    assertEquals(0, refresh.recomputedCount)
+    refresh.cells.forEachIndexed { index, cell -> assertSame(newPosts[index], cell.post) }
+  }
+
+  @Test
+  fun `edited post is built again`() {
+    refresh((1L..5L).map { postNo -> createPost(postNo) })
+
+    val refresh = refresh((1L..5L).map { postNo -> createPost(postNo, comment = if (postNo == 3L) "edited" else "$postNo") })
+
+    assertEquals(1, refresh.recomputedCount)
+    assertFalse(refresh.isReused(2))
+    assertEquals("edited", refresh.cells[2].comment)
+    assertEquals(listOf("change 2 1"), refresh.adapterUpdates)
+  }
+
+  @Test
+  fun `deleted posts are built again or removed`() {
+    refresh((1L..5L).map { postNo -> createPost(postNo) })
+
+    // Post 2 got marked as deleted and post 4 is gone
+    val refresh = refresh(listOf(1L, 2L, 3L, 5L).map { postNo -> createPost(postNo, deleted = postNo == 2L) })
+
+    assertEquals(1, refresh.recomputedCount)
+    assertTrue(refresh.cells[1].deleted)
+    assertEquals(listOf("remove 3 1", "change 1 1"), refresh.adapterUpdates)
+  }
+
+  @Test
+  fun `posts mutated in place are built again`() {
+    val posts = (1L..3L).map { postNo -> createPost(postNo) }
+    refresh(posts)
+
+    posts[0].repliesFrom += PostDescriptor.create(threadDescriptor, 3L)
+    posts[2].isDeleted = true
+
+    val refresh = refresh(posts)
+
+    assertEquals(2, refresh.recomputedCount)
+    assertEquals(listOf("change 0 1", "change 2 1"), refresh.adapterUpdates)
+  }
+
+  @Test
+  fun `re-filtered posts and the posts they reply to are built again`() {
+    val posts = (1L..5L).map { postNo ->
+      val repliesFrom = if (postNo == 1L) setOf(PostDescriptor.create(threadDescriptor, 4L)) else emptySet()
+      createPost(postNo, repliesFrom = repliesFrom)
+    }
+
+    refresh(posts)
+
+    // Post 4 gets hidden: its own cell becomes a stub and the replies count of post 1 changes
+    val hiddenRefresh = refresh(posts, hiddenPostNos = setOf(4L))
+    assertEquals(2, hiddenRefresh.recomputedCount)
+    assertEquals(listOf("change 0 1", "change 3 1"), hiddenRefresh.adapterUpdates)
+
+    // Post 4 gets removed by a filter
+    val removedRefresh = refresh(posts.filter { post -> post.postNo() != 4L }, hiddenPostNos = setOf(4L))
+    assertEquals(0, removedRefresh.recomputedCount)
+    assertEquals(listOf("remove 3 1"), removedRefresh.adapterUpdates)
+
+    // The filter is removed
+    val restoredRefresh = refresh(posts)
+    assertEquals(2, restoredRefresh.recomputedCount)
+    assertEquals(listOf("insert 3 1", "change 0 1"), restoredRefresh.adapterUpdates)
+  }
+
+  @Test
+  fun `global key change rebuilds every cell`() {
+    refresh((1L..5L).map { postNo -> createPost(postNo) })
+
+    val refresh = refresh((1L..5L).map { postNo -> createPost(postNo) }, globalKey = "new theme")
+
+    assertEquals(5, refresh.recomputedCount)
+    assertNull(refresh.adapterUpdates)
+  }
+
+  @Test
+  fun `forgotten cells are built again`() {
+    refresh((1L..5L).map { postNo -> createPost(postNo) })
+    postCellDataReuse.forget(listOf(PostDescriptor.create(threadDescriptor, 2L)))
+
+    val refresh = refresh((1L..5L).map { postNo -> createPost(postNo) })
+
+    assertEquals(1, refresh.recomputedCount)
+    assertFalse(refresh.isReused(1))
+    // The content of the post did not change so there is nothing to rebind
+    assertEquals(emptyList<String>(), refresh.adapterUpdates)
+  }
+
+  @Test
+  fun `status cell is always rebound and the last seen indicator is moved`() {
+    refresh((1L..5L).map { postNo -> createPost(postNo) }, lastSeenIndicatorPosition = 2, withStatusCell = true)
+
+    val refresh = refresh(
+      posts = (1L..6L).map { postNo -> createPost(postNo) },
+      lastSeenIndicatorPosition = 5,
+      withStatusCell = true
+    )
+
+    assertEquals(1, refresh.recomputedCount)
+    // Old list: 1 2 | 3 4 5 status, new list: 1 2 3 4 5 | 6 status
+    assertEquals(
+      listOf("change 6 1", "insert 6 2", "remove 2 1"),
+      refresh.adapterUpdates
+    )
+  }
+
+  private fun refresh(
+    posts: List<ChanPost>,
+    hiddenPostNos: Set<Long> = emptySet(),
+    globalKey: Any = "global",
+    lastSeenIndicatorPosition: Int = -1,
+    withStatusCell: Boolean = false
+  ): Refresh {
+    // Same as ThreadCellData: the cell depends on its hide state and on the hide state of its replies
+    val postKeys = posts.map { post ->
+      val fingerprint = PostCellDataReuse.fingerprint(
+        post,
+        post.postNo() in hiddenPostNos,
+        post.repliesFromCopy.filter { replyFrom -> replyFrom.postNo in hiddenPostNos }
+      )
+
+      PostCellDataReuse.CellKey.Post(post.postDescriptor, fingerprint)
+    }
+
+    // Same as ThreadCellData: the reused cell keeps what it calculated but is pointed at the new post
+    val update = postCellDataReuse.update(
+      globalKey = globalKey,
+      postKeys = postKeys,
+      reuseCell = { index, prevCell -> prevCell.also { cell -> cell.post = posts[index] } },
+      createCell = { index ->
+        Cell(posts[index], posts[index].postComment.commentText().toString(), posts[index].isDeleted)
+      }
+    )
+
+    val newKeys = mutableListOf<PostCellDataReuse.CellKey>()
+    newKeys.addAll(postKeys)
+
+    if (lastSeenIndicatorPosition >= 0) {
+      newKeys.add(lastSeenIndicatorPosition, PostCellDataReuse.CellKey.LastSeenIndicator)
+    }
+
+    if (withStatusCell) {
+      newKeys.add(PostCellDataReuse.CellKey.Status)
+    }
+
+    val diffResult = PostCellDataReuse.calculateDiff(displayedKeys, newKeys, update.globalKeyChanged)
+    displayedKeys = newKeys
+
+    val adapterUpdates = diffResult?.let {
+      val recordedUpdates = mutableListOf<String>()
+      diffResult.dispatchUpdatesTo(RecordingListUpdateCallback(recordedUpdates))
+      recordedUpdates
+    }
+
+    return Refresh(update, adapterUpdates)
+  }
+
+  private fun createPost(
+    postNo: Long,
+    comment: String = "$postNo",
+    deleted: Boolean = false,
+    repliesFrom: Set<PostDescriptor> = emptySet()
+  ): ChanPost {
+    return ChanPost(
+      chanPostId = 0L,
+      postDescriptor = PostDescriptor.create(threadDescriptor, postNo),
+      _postImages = mutableListOf(),
+      postIcons = mutableListOf<ChanPostHttpIcon>(),
+      repliesTo = emptySet(),
+      timestamp = postNo,
+      postComment = PostComment(originalComment = comment, originalUnparsedComment = comment, emptyList()),
+      subject = null,
+      tripcode = null,
+      isSavedReply = false,
+      isSage = false,
+      repliesFrom = repliesFrom,
+      deleted = deleted,
+      posterIdColor = 0
+    )
+  }
+
+  private class Cell(var post: ChanPost, val comment: String, val deleted: Boolean)
+
+  private class Refresh(
+    private val update: PostCellDataReuse.Update<Cell>,
+    val adapterUpdates: List<String>?
+  ) {
+    val cells: List<Cell>
+      get() = update.cells
+    val recomputedCount: Int
+      get() = update.recomputedCount
+
+    fun isReused(index: Int): Boolean = update.isReused(index)
+  }
+
+  private class RecordingListUpdateCallback(
+    private val recordedUpdates: MutableList<String>
+  ) : ListUpdateCallback {
+    override fun onInserted(position: Int, count: Int) {
+      recordedUpdates += "insert $position $count"
+    }
+
+    override fun onRemoved(position: Int, count: Int) {
+      recordedUpdates += "remove $position $count"
+    }
+
+    override fun onMoved(fromPosition: Int, toPosition: Int) {
+      recordedUpdates += "move $fromPosition $toPosition"
+    }
+
+    override fun onChanged(position: Int, count: Int, payload: Any?) {
+      recordedUpdates += "change $position $count"
+    }
+  }
+}
@@ -0,0 +1,489 @@
+package com.github.k1rakishou.chan.ui.cell
+
+import com.github.k1rakishou.chan.ui.cell.PostTextLayoutCache.MeasuredTextKey
+import com.github.k1rakishou.chan.ui.cell.PostTextLayoutCache.TextBoundsKey
+import com.github.k1rakishou.chan.ui.cell.PostTextLayoutCache.TextKind
+import com.github.k1rakishou.model.data.descriptor.PostDescriptor
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import org.junit.Test
+import kotlin.random.Random
+
+class PostTextLayoutCacheTest {
+
+  @Test
+  fun `test cached layouts always match the layouts measured from scratch`() {
+    repeat(20) { iteration ->
+      val random = Random(iteration)
+      val thread = SyntheticThread(random, postsCount = 50)
+      val cache = PostTextLayoutCache<MeasuredText, List<Int>>(maxTextBoundsPerText = 2)
+
+      repeat(500) {
+        thread.randomChange(random, cache)
+
+        repeat(10) {
+          val post = thread.posts.random(random)
+          val textKind = TextKind.values().random(random)
+
+          assertEquals(thread.measureText(post, textKind), thread.getOrMeasureText(cache, post, textKind))
+          assertEquals(thread.measureBounds(post, textKind), thread.getOrMeasureBounds(cache, post, textKind))
+        }
+      }
+    }
+  }
+
+  @Test
+  fun `test width change only evicts text bounds`() {
+    val random = Random(100)
+    val thread = SyntheticThread(random, postsCount = 100)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+    thread.measureEverything(cache)
+
+    thread.columnWidth += 100
+    assertEquals(thread.posts.size * TextKind.values().size, cache.onColumnWidthChanged(thread.columnWidth))
+
+    thread.posts.forEach { post ->
+      TextKind.values().forEach { textKind ->
+        assertNotNull(cache.getMeasuredText(post.postDescriptor, thread.measuredTextKey(post, textKind)))
+        assertNull(cache.getTextBounds(post.postDescriptor, thread.textBoundsKey(post, textKind)))
+      }
+    }
+  }
+
+  @Test
+  fun `test theme change only evicts measured texts`() {
+    val random = Random(101)
+    val thread = SyntheticThread(random, postsCount = 100)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+    thread.measureEverything(cache)
+
+    // Re-applying the same theme evicts nothing
+    assertEquals(0, cache.onThemeChanged(thread.theme))
+
+    thread.theme += 1
+    assertEquals(thread.posts.size * TextKind.values().size, cache.onThemeChanged(thread.theme))
+
+    thread.posts.forEach { post ->
+      TextKind.values().forEach { textKind ->
+        assertNull(cache.getMeasuredText(post.postDescriptor, thread.measuredTextKey(post, textKind)))
+        assertNotNull(cache.getTextBounds(post.postDescriptor, thread.textBoundsKey(post, textKind)))
+      }
+    }
+  }
+
+  @Test
+  fun `test search query change only evicts the matching posts`() {
+    val random = Random(102)
+    val thread = SyntheticThread(random, postsCount = 200)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+
+    thread.query = "lorem"
+    thread.measureEverything(cache)
+
+    val newQuery = "dolor"
+    val expectedAffectedPosts = thread.posts
+      .filter { post ->
+        TextKind.values().any { textKind ->
+          val text = post.texts[textKind.ordinal]
+          text.contains("lorem", ignoreCase = true) || text.contains(newQuery, ignoreCase = true)
+        }
+      }
+      .map { post -> post.postDescriptor }
+      .toSet()
+
+    assertTrue(expectedAffectedPosts.isNotEmpty())
+    assertTrue(expectedAffectedPosts.size < thread.posts.size)
+
+    thread.query = newQuery
+    assertEquals(expectedAffectedPosts, cache.onSearchQueryChanged(newQuery, SyntheticThread.MIN_QUERY_LENGTH))
+
+    thread.posts.forEach { post ->
+      TextKind.values().forEach { textKind ->
+        val measuredText = cache.getMeasuredText(post.postDescriptor, thread.measuredTextKey(post, textKind))
+        val text = post.texts[textKind.ordinal]
+
+        if (text.contains("lorem", ignoreCase = true) || text.contains(newQuery, ignoreCase = true)) {
+          assertNull(measuredText)
+        } else {
+          assertEquals(thread.measureText(post, textKind), measuredText)
+        }
+
+        assertNotNull(cache.getTextBounds(post.postDescriptor, thread.textBoundsKey(post, textKind)))
+      }
+    }
+  }
+
+  @Test
+  fun `test too short search query does not evict anything`() {
+    val random = Random(103)
+    val thread = SyntheticThread(random, postsCount = 50)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+    thread.measureEverything(cache)
+
+    assertTrue(cache.onSearchQueryChanged("lo", SyntheticThread.MIN_QUERY_LENGTH).isEmpty())
+  }
+
+  @Test
+  fun `test changed post text drops everything measured for the previous text`() {
+    val random = Random(104)
+    val thread = SyntheticThread(random, postsCount = 10)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+    thread.measureEverything(cache)
+
+    val post = thread.posts.first()
+    val prevMeasuredTextKey = thread.measuredTextKey(post, TextKind.Comment)
+    val prevTextBoundsKey = thread.textBoundsKey(post, TextKind.Comment)
+
+    post.texts[TextKind.Comment.ordinal] += " (edited)"
+    thread.getOrMeasureBounds(cache, post, TextKind.Comment)
+
+    assertNull(cache.getMeasuredText(post.postDescriptor, prevMeasuredTextKey))
+    assertNull(cache.getTextBounds(post.postDescriptor, prevTextBoundsKey))
+    assertNotNull(cache.getMeasuredText(post.postDescriptor, thread.measuredTextKey(post, TextKind.Title)))
+  }
+
+  @Test
+  fun `test removed posts are evicted`() {
+    val random = Random(105)
+    val thread = SyntheticThread(random, postsCount = 30)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+    thread.measureEverything(cache)
+
+    val retained = thread.posts.take(20).map { post -> post.postDescriptor }.toSet()
+    cache.retainAll(retained)
+    assertEquals(20, cache.postsCount())
+
+    cache.invalidate(retained.take(5))
+    assertEquals(15, cache.postsCount())
+  }
+
+  @Test
+  fun `benchmark measuring a 5k post thread on the main thread`() {
+    val random = Random(106)
+    val thread = SyntheticThread(random, postsCount = 5000)
+    val cache = PostTextLayoutCache<MeasuredText, List<Int>>()
+
+    // Before: every post cell measures its texts on the main thread when it gets bound
+    var fromScratchLines = 0
+    val fromScratchNanos = measureBestNanos {
+      fromScratchLines = 0
+      thread.posts.forEach { post -> fromScratchLines += measureFromScratch(thread, post) }
+    }
+
+    // After: the preloading task measures everything on a background thread and the main thread only
+    // has to calculate the keys and look the layouts up
+    val preloadingThread = Thread { thread.measureEverything(cache) }
+    preloadingThread.start()
+    preloadingThread.join()
+
+    var cachedLines = 0
+    var misses = 0
+
+    val cachedNanos = measureBestNanos {
+      cachedLines = 0
+      misses = 0
+
+      thread.posts.forEach { post ->
+        TextKind.values().forEach { textKind ->
+          if (cache.getMeasuredText(post.postDescriptor, thread.measuredTextKey(post, textKind)) == null) {
+            ++misses
+          }
+
+          val bounds = cache.getTextBounds(post.postDescriptor, thread.textBoundsKey(post, textKind))
+          if (bounds == null) {
+            ++misses
+          } else {
+            cachedLines += bounds.size
+          }
+        }
+      }
+    }
+
+    assertEquals(0, misses)
+    assertEquals(fromScratchLines, cachedLines)
+    assertTrue(
+      "${thread.posts.size} posts, main thread measure time: from scratch ${fromScratchNanos / 1000} us, " +
+        "with precomputed layouts ${cachedNanos / 1000} us",
+      cachedNanos < fromScratchNanos
+    )
+  }
+
+  /**
+   * The best time out of a few runs (after a warm up), the others are usually slowed down by the JIT or
+   * the GC.
+   * */
+  private fun measureBestNanos(func: () -> Unit): Long {
+    repeat(2) { func() }
+
+    var best = Long.MAX_VALUE
+
+    repeat(3) {
+      val start = System.nanoTime()
+      func()
+      best = minOf(best, System.nanoTime() - start)
+    }
+
+    return best
+  }
+
+  private fun measureFromScratch(thread: SyntheticThread, post: SyntheticPost): Int {
+    var lines = 0
+
+    TextKind.values().forEach { textKind ->
+      thread.measureText(post, textKind)
+      lines += thread.measureBounds(post, textKind).size
+    }
+
+    return lines
+  }
+
+  /**
+   * Stand-in for PrecomputedText: the glyph advances of the text plus everything the result depends on
+   * so that a stale result can be detected by simply comparing it with a freshly measured one.
+   * */
+  private data class MeasuredText(
+    val text: String,
+    val spansVersion: Int,
+    val textSize: Int,
+    val theme: Int,
+    val searchQueryMatch: String,
+    val advancesSum: Float
+  )
+
+  private class SyntheticPost(
+    val postDescriptor: PostDescriptor,
+    val texts: Array<String>,
+    var spansVersion: Int = 0,
+    var metricSpansVersion: Int = 0
+  )
+
+  private class SyntheticThread(random: Random, postsCount: Int) {
+    val posts = (0 until postsCount).map { index ->
+      SyntheticPost(
+        postDescriptor = PostDescriptor.create("test", "g", 1L, index + 1L),
+        texts = arrayOf(randomText(random, 20, 1500), randomText(random, 5, 60), randomText(random, 10, 40))
+      )
+    }
+
+    var theme = 0
+    var query = ""
+    var columnWidth = 1080
+    var textSize = 14
+
+    fun randomChange(random: Random, cache: PostTextLayoutCache<MeasuredText, List<Int>>) {
+      // The cache must return correct results even if the eviction callbacks are not called
+      val notify = random.nextBoolean()
+
+      when (random.nextInt(8)) {
+        0 -> {
+          theme = random.nextInt(3)
+          if (notify) {
+            cache.onThemeChanged(theme)
+          }
+        }
+        1 -> {
+          query = listOf("", "lo", "lorem", "ipsum", "DOLOR", "xyz").random(random)
+          if (notify) {
+            cache.onSearchQueryChanged(query, MIN_QUERY_LENGTH)
+          }
+        }
+        2 -> {
+          columnWidth = listOf(720, 1080, 1440).random(random)
+          if (notify) {
+            cache.onColumnWidthChanged(columnWidth)
+          }
+        }
+        3 -> textSize = listOf(12, 14, 16).random(random)
+        4 -> {
+          // A post got edited
+          val post = posts.random(random)
+          val textKind = TextKind.values().random(random)
+          post.texts[textKind.ordinal] = randomText(random, 5, 300)
+        }
+        5 -> {
+          // Link colors changed (a quoted post got deleted etc.)
+          posts.random(random).spansVersion++
+        }
+        6 -> {
+          posts.random(random).metricSpansVersion++
+        }
+        else -> {
+          if (notify) {
+            cache.invalidate(listOf(posts.random(random).postDescriptor))
+          }
+        }
+      }
+    }
+
+    fun measureEverything(cache: PostTextLayoutCache<MeasuredText, List<Int>>) {
+      posts.forEach { post ->
+        TextKind.values().forEach { textKind ->
+          getOrMeasureText(cache, post, textKind)
+          getOrMeasureBounds(cache, post, textKind)
+        }
+      }
+    }
+
+    fun getOrMeasureText(
+      cache: PostTextLayoutCache<MeasuredText, List<Int>>,
+      post: SyntheticPost,
+      textKind: TextKind
+    ): MeasuredText {
+      val key = measuredTextKey(post, textKind)
+
+      val cached = cache.getMeasuredText(post.postDescriptor, key)
+      if (cached != null) {
+        return cached
+      }
+
+      val measuredText = measureText(post, textKind)
+      cache.putMeasuredText(post.postDescriptor, key, post.texts[textKind.ordinal], measuredText)
+
+      return measuredText
+    }
+
+    fun getOrMeasureBounds(
+      cache: PostTextLayoutCache<MeasuredText, List<Int>>,
+      post: SyntheticPost,
+      textKind: TextKind
+    ): List<Int> {
+      val key = textBoundsKey(post, textKind)
+
+      val cached = cache.getTextBounds(post.postDescriptor, key)
+      if (cached != null) {
+        return cached
+      }
+
+      val bounds = measureBounds(post, textKind)
+      cache.putTextBounds(post.postDescriptor, key, post.texts[textKind.ordinal], bounds)
+
+      return bounds
+    }
+
+    fun measuredTextKey(post: SyntheticPost, textKind: TextKind): MeasuredTextKey {
+      val text = post.texts[textKind.ordinal]
+
+      return MeasuredTextKey(
+        textKind = textKind,
+        textHash = textHash(post, text),
+        spansHash = post.spansVersion.toLong(),
+        textMetrics = textSize,
+        themeHash = theme,
+        searchQueryMatch = PostTextLayoutCache.searchQueryMatch(text, query, MIN_QUERY_LENGTH)
+      )
+    }
+
+    fun textBoundsKey(post: SyntheticPost, textKind: TextKind): TextBoundsKey {
+      val text = post.texts[textKind.ordinal]
+
+      return TextBoundsKey(
+        textKind = textKind,
+        textHash = textHash(post, text),
+        textMetrics = textSize,
+        columnWidthPx = columnWidth,
+        widthPx = availableWidth(textKind)
+      )
+    }
+
+    fun measureText(post: SyntheticPost, textKind: TextKind): MeasuredText {
+      val text = post.texts[textKind.ordinal]
+      var advancesSum = 0f
+
+      for (ch in text) {
+        advancesSum += advance(ch, post.metricSpansVersion)
+      }
+
+      return MeasuredText(
+        text = text,
+        spansVersion = post.spansVersion,
+        textSize = textSize,
+        theme = theme,
+        searchQueryMatch = PostTextLayoutCache.searchQueryMatch(text, query, MIN_QUERY_LENGTH),
+        advancesSum = advancesSum
+      )
+    }
+
+    /**
+     * Greedy line breaking by words, returns the width of every line.
+     * */
+    fun measureBounds(post: SyntheticPost, textKind: TextKind): List<Int> {
+      val text = post.texts[textKind.ordinal]
+      val availableWidth = availableWidth(textKind).toFloat()
+      val lines = ArrayList<Int>()
+
+      var lineWidth = 0f
+      var wordWidth = 0f
+
+      for (ch in text) {
+        val advance = advance(ch, post.metricSpansVersion)
+
+        if (ch == ' ') {
+          if (lineWidth + wordWidth > availableWidth && lineWidth > 0f) {
+            lines += lineWidth.toInt()
+            lineWidth = 0f
+          }
+
+          lineWidth += wordWidth + advance
+          wordWidth = 0f
+        } else {
+          wordWidth += advance
+        }
+      }
+
+      if (lineWidth + wordWidth > availableWidth && lineWidth > 0f) {
+        lines += lineWidth.toInt()
+        lineWidth = 0f
+      }
+
+      lines += (lineWidth + wordWidth).toInt()
+      return lines
+    }
+
+    private fun availableWidth(textKind: TextKind): Int {
+      // The title and the file name are on the side of the thumbnail
+      return when (textKind) {
+        TextKind.Comment -> columnWidth - 40
+        TextKind.Title,
+        TextKind.FileName -> columnWidth - 300
+      }
+    }
+
+    private fun advance(ch: Char, metricSpansVersion: Int): Float {
+      val glyphWidth = 0.5f + ((ch.code * 31 + metricSpansVersion) % 7) / 10f
+      return glyphWidth * textSize
+    }
+
+    private fun textHash(post: SyntheticPost, text: String): Long {
+      return text.hashCode().toLong() * 31 + post.metricSpansVersion
+    }
+
+    companion object {
+      const val MIN_QUERY_LENGTH = 3
+
+      private val WORDS = listOf(
+        "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipiscing", "elit", "sed", "do",
+        "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "magna", "aliqua", ">>12345", "anon"
+      )
+
+      private fun randomText(random: Random, minLength: Int, maxLength: Int): String {
+        val length = random.nextInt(minLength, maxLength)
+        val builder = StringBuilder(length + 16)
+
+        while (builder.length < length) {
+          if (builder.isNotEmpty()) {
+            builder.append(' ')
+          }
+
+          // Make the common words rare enough for the search query to match only some of the posts
+          val word = if (random.nextInt(8) == 0) WORDS.random(random) else "w${random.nextInt(1000)}"
+          builder.append(word)
+        }
+
+        return builder.toString()
+      }
+    }
+  }
+
+}
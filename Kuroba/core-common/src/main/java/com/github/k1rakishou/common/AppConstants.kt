@@ -27,6 +27,8 @@ open class AppConstants(
   val bookmarkWatchWorkUniqueTag = "BookmarkWatcherController_${flavorType.name}"
   val filterWatchWorkUniqueTag = "FilterWatcherController_${flavorType.name}"
   val threadDownloadWorkUniqueTag = "ThreadDownloadController_${flavorType.name}"
+  val filterWatcherLedgerFile: File
+  val postRepliesWatermarksFile: File
 
   val userAgent by lazy {
     val overriddenUserAgent = overrideUserAgent()
@@ -115,6 +117,16 @@ open class AppConstants(
       return field
     }
 
+  val imageSaverPartialDownloadsDir: File
+    get() {
+      if (field.exists()) {
+        return field
+      }
+
+      check(field.mkdir()) { "Failed to create ImageSaver partial downloads directory! imageSaverPartialDownloadsDir=${field.absolutePath}" }
+      return field
+    }
+
   val diskCacheDir: File
     get() {
       if (field.exists()) {
@@ -160,6 +172,9 @@ open class AppConstants(
     attachFilesMetaDir = File(context.filesDir, ATTACH_FILES_META_DIR_NAME)
     mediaPreviewsDir = File(context.filesDir, MEDIA_PREVIEWS_DIR_NAME)
     threadDownloaderCacheDir = File(context.filesDir, THREAD_DOWNLOADER_DIR_NAME)
+    imageSaverPartialDownloadsDir = File(context.filesDir, IMAGE_SAVER_PARTIAL_DOWNLOADS_DIR_NAME)
+    filterWatcherLedgerFile = File(context.filesDir, FILTER_WATCHER_LEDGER_FILE_NAME)
+    postRepliesWatermarksFile = File(context.filesDir, POST_REPLIES_WATERMARKS_FILE_NAME)
 
     mpvNativeLibsDir = File(context.filesDir, MPV_NATIVE_LIBS_DIR_NAME)
     mpvCertDir = File(context.filesDir, MPV_CERT_DIR_NAME)
@@ -226,6 +241,9 @@ open class AppConstants(
     private const val ATTACH_FILES_META_DIR_NAME = "attach_files_meta"
     private const val MEDIA_PREVIEWS_DIR_NAME = "media_previews"
     private const val THREAD_DOWNLOADER_DIR_NAME = "thread_downloader_storage"
+    private const val IMAGE_SAVER_PARTIAL_DOWNLOADS_DIR_NAME = "image_saver_partial_downloads"
+    private const val FILTER_WATCHER_LEDGER_FILE_NAME = "filter_watcher_ledger"
+    private const val POST_REPLIES_WATERMARKS_FILE_NAME = "post_replies_watermarks"
     private const val MPV_NATIVE_LIBS_DIR_NAME = "mpv_native_libs"
     private const val MPV_CERT_DIR_NAME = "certs/mpv"
     private const val EXO_PLAYER_CACHE_DIR_NAME = "exo_player_cache"
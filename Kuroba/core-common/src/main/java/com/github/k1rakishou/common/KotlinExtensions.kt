@@ -11,6 +11,7 @@ import android.text.Spannable
 import android.text.SpannableString
 import android.text.SpannableStringBuilder
 import android.text.StaticLayout
+import android.text.TextPaint
 import android.text.TextUtils
 import android.text.style.CharacterStyle
 import android.util.LruCache
@@ -1339,11 +1340,33 @@ fun TextView.getTextBounds(text: CharSequence, availableWidth: Int): TextBounds
     return TextBounds.EMPTY
   }
 
+  return paint.getTextBounds(
+    text = text,
+    availableWidth = availableWidth,
+    breakStrategy = if (AndroidUtils.isAndroidM()) breakStrategy else 0,
+    hyphenationFrequency = if (AndroidUtils.isAndroidM()) hyphenationFrequency else 0,
+    justificationMode = if (AndroidUtils.isAndroid10()) justificationMode else 0,
+    maxLines = maxLines
+  )
+}
+
+/**
+ * Same as [TextView.getTextBounds] but with the TextView parameters passed in explicitly so that the
+ * text can be measured on a background thread.
+ * */
+fun TextPaint.getTextBounds(
+  text: CharSequence,
+  availableWidth: Int,
+  breakStrategy: Int,
+  hyphenationFrequency: Int,
+  justificationMode: Int,
+  maxLines: Int
+): TextBounds {
   val staticLayout = if (AndroidUtils.isAndroidM()) {
     StaticLayout.Builder
-      .obtain(text, 0, text.length, paint, availableWidth)
+      .obtain(text, 0, text.length, this, availableWidth)
       .setBreakStrategy(breakStrategy)
-      .justificationModeTextView(this)
+      .justificationModeCompat(justificationMode)
       .setHyphenationFrequency(hyphenationFrequency)
       .setAlignment(Layout.Alignment.ALIGN_NORMAL)
       .setMaxLines(maxLines)
@@ -1351,7 +1374,7 @@ fun TextView.getTextBounds(text: CharSequence, availableWidth: Int): TextBounds
       .setLineSpacing(0f, 1f)
       .build()
   } else {
-    StaticLayout(text, paint, availableWidth, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true)
+    StaticLayout(text, this, availableWidth, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, true)
   }
 
   val lineBounds = (0 until staticLayout.lineCount)
@@ -1371,9 +1394,9 @@ fun TextView.getTextBounds(text: CharSequence, availableWidth: Int): TextBounds
   )
 }
 
-private fun StaticLayout.Builder.justificationModeTextView(textView: TextView): StaticLayout.Builder {
+private fun StaticLayout.Builder.justificationModeCompat(justificationMode: Int): StaticLayout.Builder {
   if (AndroidUtils.isAndroid10()) {
-    return setJustificationMode(textView.justificationMode)
+    return setJustificationMode(justificationMode)
   }
 
   return this
@@ -0,0 +1,233 @@
+package com.github.k1rakishou.core_logger;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured logger that moves the writing of the records off the calling thread.
+ *
+ * The calling thread only checks the level of the record against the minimal level of its tag, creates
+ * the record and puts it into a lock-free bounded queue (see {@link LogRecordQueue}). A single writer
+ * thread drains the queue, writes the records into the {@link LogSink} and keeps the most recent ones in
+ * memory (see {@link #getRecentRecords}). When the queue is full (the writer can't keep up) verbose,
+ * debug and info records are dropped and counted, the writer then reports how many were lost. Warnings
+ * and errors are never dropped, they are written on the calling thread instead.
+ *
+ * Records that are logged after {@link #close} are written on the calling thread too.
+ */
+public final class AsyncLogger {
+    private static final String TAG = "AsyncLogger";
+    private static final long WRITER_PARK_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long FLUSH_POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final LogSink logSink;
+    private final LogRecordQueue logRecordQueue;
+    private final LogHistory logHistory;
+    private final Thread writerThread;
+
+    private final ConcurrentHashMap<String, LogLevel> tagLevels = new ConcurrentHashMap<>();
+    private final AtomicBoolean writerParked = new AtomicBoolean(false);
+    private final AtomicLong droppedRecords = new AtomicLong(0);
+
+    private volatile LogLevel minLevel = LogLevel.VERBOSE;
+    private volatile boolean hasTagLevels = false;
+    private volatile boolean closed = false;
+    // Count of the records taken from the queue and written, only updated by the writer thread
+    private volatile long writtenRecords = 0;
+
+    public AsyncLogger(LogSink logSink, int queueCapacity, int historyCapacity) {
+        this.logSink = logSink;
+        this.logRecordQueue = new LogRecordQueue(queueCapacity);
+        this.logHistory = new LogHistory(historyCapacity);
+
+        this.writerThread = new Thread(this::writerLoop, "AsyncLogWriter");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    public void setMinLevel(LogLevel level) {
+        minLevel = level;
+    }
+
+    /**
+     * Overrides the minimal level for {@code tag}, null removes the override.
+     */
+    public void setTagLevel(String tag, LogLevel level) {
+        if (level == null) {
+            tagLevels.remove(tag);
+        } else {
+            tagLevels.put(tag, level);
+        }
+
+        hasTagLevels = !tagLevels.isEmpty();
+    }
+
+    public boolean isLoggable(LogLevel level, String tag) {
+        LogLevel threshold = minLevel;
+
+        if (hasTagLevels) {
+            LogLevel tagLevel = tagLevels.get(tag);
+            if (tagLevel != null) {
+                threshold = tagLevel;
+            }
+        }
+
+        return level.isAtLeast(threshold);
+    }
+
+    public void log(LogLevel level, String tag, String message, Throwable throwable) {
+        if (!isLoggable(level, tag)) {
+            return;
+        }
+
+        enqueue(createRecord(level, tag, message, throwable));
+    }
+
+    public void log(LogLevel level, String tag, MessageProvider messageProvider, Throwable throwable) {
+        if (!isLoggable(level, tag)) {
+            return;
+        }
+
+        enqueue(createRecord(level, tag, messageProvider.get(), throwable));
+    }
+
+    /**
+     * Returns up to {@code maxCount} most recently written records, oldest first.
+     */
+    public List<LogRecord> getRecentRecords(int maxCount) {
+        return logHistory.getRecent(maxCount);
+    }
+
+    /**
+     * Blocks until every record that was logged before this call is written or until {@code timeoutMs}
+     * pass. Returns false in the latter case.
+     */
+    public boolean flush(long timeoutMs) {
+        if (Thread.currentThread() == writerThread) {
+            return true;
+        }
+
+        long target = logRecordQueue.producedCount();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+
+        while (writtenRecords < target) {
+            if (!writerThread.isAlive() || System.nanoTime() - deadline >= 0) {
+                return writtenRecords >= target;
+            }
+
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(FLUSH_POLL_INTERVAL_NANOS);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes every queued record and stops the writer thread.
+     */
+    public void close(long timeoutMs) {
+        closed = true;
+        LockSupport.unpark(writerThread);
+
+        try {
+            writerThread.join(timeoutMs);
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private LogRecord createRecord(LogLevel level, String tag, String message, Throwable throwable) {
+        return new LogRecord(
+                level,
+                tag,
+                message,
+                throwable,
+                System.currentTimeMillis(),
+                Thread.currentThread().getName()
+        );
+    }
+
+    private void enqueue(LogRecord logRecord) {
+        if (closed) {
+            write(logRecord);
+            return;
+        }
+
+        if (!logRecordQueue.offer(logRecord)) {
+            if (logRecord.level.isAtLeast(LogLevel.WARN)) {
+                write(logRecord);
+            } else {
+                droppedRecords.incrementAndGet();
+            }
+
+            return;
+        }
+
+        // The offer above is a full fence so either the writer sees the new record before parking or we
+        // see that it's parked.
+        if (writerParked.get() && writerParked.compareAndSet(true, false)) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void writerLoop() {
+        while (true) {
+            // Must be read before draining so that everything that was queued before close() is written
+            boolean wasClosed = closed;
+
+            drainQueue();
+
+            if (wasClosed) {
+                // Wait for the records that were claimed but not published yet
+                while (!logRecordQueue.isEmpty()) {
+                    Thread.yield();
+                    drainQueue();
+                }
+
+                return;
+            }
+
+            writerParked.set(true);
+
+            if (logRecordQueue.isEmpty() && !closed) {
+                LockSupport.parkNanos(this, WRITER_PARK_TIMEOUT_NANOS);
+            } else {
+                // A producer claimed a slot and hasn't published the record yet
+                Thread.yield();
+            }
+
+            writerParked.set(false);
+        }
+    }
+
+    private void drainQueue() {
+        LogRecord logRecord;
+
+        while ((logRecord = logRecordQueue.poll()) != null) {
+            write(logRecord);
+            writtenRecords = writtenRecords + 1;
+        }
+
+        long dropped = droppedRecords.getAndSet(0);
+        if (dropped > 0) {
+            String message = dropped + " log records were dropped because the queue was full " +
+                    "(capacity=" + logRecordQueue.capacity() + ")";
+
+            write(createRecord(LogLevel.WARN, TAG, message, null));
+        }
+    }
+
+    private void write(LogRecord logRecord) {
+        try {
+            logSink.write(logRecord);
+        } catch (RuntimeException ignored) {
+            // The record is still kept in the history
+        }
+
+        logHistory.add(logRecord);
+    }
+}
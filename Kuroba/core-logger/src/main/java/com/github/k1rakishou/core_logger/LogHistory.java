@@ -0,0 +1,59 @@
+package com.github.k1rakishou.core_logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of the most recent log records, the oldest ones are overwritten once it's full. Written by
+ * the writer thread and read by the in-app log viewer and the issue reporter.
+ */
+final class LogHistory {
+    private final LogRecord[] records;
+    private int head = 0;
+    private int size = 0;
+
+    LogHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+
+        records = new LogRecord[capacity];
+    }
+
+    synchronized void add(LogRecord logRecord) {
+        records[head] = logRecord;
+        head = (head + 1) % records.length;
+
+        if (size < records.length) {
+            ++size;
+        }
+    }
+
+    /**
+     * Returns up to {@code maxCount} most recent records, oldest first.
+     */
+    synchronized List<LogRecord> getRecent(int maxCount) {
+        int count = Math.min(Math.max(maxCount, 0), size);
+        List<LogRecord> result = new ArrayList<>(count);
+
+        int start = head - count;
+        if (start < 0) {
+            start += records.length;
+        }
+
+        for (int i = 0; i < count; i++) {
+            result.add(records[(start + i) % records.length]);
+        }
+
+        return result;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < records.length; i++) {
+            records[i] = null;
+        }
+
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,23 @@
+package com.github.k1rakishou.core_logger;
+
+public enum LogLevel {
+    // Same priorities as in android.util.Log
+    VERBOSE(2, 'V'),
+    DEBUG(3, 'D'),
+    INFO(4, 'I'),
+    WARN(5, 'W'),
+    ERROR(6, 'E'),
+    ASSERT(7, 'A');
+
+    public final int priority;
+    public final char shortName;
+
+    LogLevel(int priority, char shortName) {
+        this.priority = priority;
+        this.shortName = shortName;
+    }
+
+    public boolean isAtLeast(LogLevel other) {
+        return priority >= other.priority;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.k1rakishou.core_logger;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeFormatterBuilder;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * A single log call. Immutable: it is created on the calling thread, handed over to the writer thread
+ * and then kept in the history of recent records that is read from any thread. Everything that is
+ * expensive to compute (the timestamp string, the stacktrace) is only formatted when the record is
+ * written or displayed.
+ */
+public final class LogRecord {
+    private static final DateTimeFormatter LOG_TIME_FORMATTER = new DateTimeFormatterBuilder()
+            .append(ISODateTimeFormat.hourMinuteSecondMillis())
+            .toFormatter();
+
+    public final LogLevel level;
+    public final String tag;
+    public final String message;
+    public final Throwable throwable;
+    public final long timestampMs;
+    public final String threadName;
+
+    public LogRecord(
+            LogLevel level,
+            String tag,
+            String message,
+            Throwable throwable,
+            long timestampMs,
+            String threadName
+    ) {
+        this.level = level;
+        this.tag = tag;
+        this.message = message;
+        this.throwable = throwable;
+        this.timestampMs = timestampMs;
+        this.threadName = threadName;
+    }
+
+    public String formatTime() {
+        return LOG_TIME_FORMATTER.print(timestampMs);
+    }
+
+    /**
+     * "12:34:56.789 D/Tag [thread]: message" followed by the stacktrace of the throwable if there is one.
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder(64 + tag.length() + message.length());
+
+        sb.append(formatTime())
+                .append(' ')
+                .append(level.shortName)
+                .append('/')
+                .append(tag)
+                .append(" [")
+                .append(threadName)
+                .append("]: ")
+                .append(message);
+
+        if (throwable != null) {
+            StringWriter stringWriter = new StringWriter(256);
+            throwable.printStackTrace(new PrintWriter(stringWriter));
+
+            String stacktrace = stringWriter.toString();
+            int end = stacktrace.length();
+
+            // Without the trailing line separator
+            while (end > 0 && Character.isWhitespace(stacktrace.charAt(end - 1))) {
+                --end;
+            }
+
+            sb.append('\n').append(stacktrace, 0, end);
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+}
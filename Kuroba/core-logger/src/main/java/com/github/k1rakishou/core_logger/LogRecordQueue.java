@@ -0,0 +1,95 @@
+package com.github.k1rakishou.core_logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer single-consumer queue of log records. Producers claim a slot with a
+ * CAS on the producer index and then publish the record into it, the consumer takes the records out in
+ * the claim order. The queue doesn't allocate anything per record (there are no linked nodes) and a
+ * full queue never blocks the producers, {@link #offer} just fails. The records themselves are not
+ * pooled: they are kept in the {@link LogHistory} after being written.
+ */
+final class LogRecordQueue {
+    private final AtomicReferenceArray<LogRecord> buffer;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicLong producerIndex = new AtomicLong(0);
+    // Only written by the consumer
+    private volatile long consumerIndex = 0;
+
+    LogRecordQueue(int requestedCapacity) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("Bad capacity: " + requestedCapacity);
+        }
+
+        capacity = roundUpToPowerOfTwo(requestedCapacity);
+        mask = capacity - 1;
+        buffer = new AtomicReferenceArray<>(capacity);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns false when the queue is full.
+     */
+    boolean offer(LogRecord logRecord) {
+        while (true) {
+            long index = producerIndex.get();
+            if (index - consumerIndex >= capacity) {
+                return false;
+            }
+
+            if (producerIndex.compareAndSet(index, index + 1)) {
+                buffer.lazySet((int) (index & mask), logRecord);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Consumer only. Returns null when the queue is empty or when the next record was claimed but is not
+     * published yet, in which case the following records are not returned either to keep the order.
+     */
+    LogRecord poll() {
+        long index = consumerIndex;
+        int offset = (int) (index & mask);
+
+        LogRecord logRecord = buffer.get(offset);
+        if (logRecord == null) {
+            return null;
+        }
+
+        // The slot must be cleared before the producers can see that it's free
+        buffer.lazySet(offset, null);
+        consumerIndex = index + 1;
+
+        return logRecord;
+    }
+
+    /**
+     * Consumer only. Also returns false when a record was claimed but is not published yet.
+     */
+    boolean isEmpty() {
+        return producerIndex.get() == consumerIndex;
+    }
+
+    /**
+     * The total number of records that were successfully offered so far.
+     */
+    long producedCount() {
+        return producerIndex.get();
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int highestOneBit = Integer.highestOneBit(value);
+        if (highestOneBit == value) {
+            return value;
+        }
+
+        return highestOneBit << 1;
+    }
+}
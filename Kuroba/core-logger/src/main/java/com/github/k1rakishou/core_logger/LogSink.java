@@ -0,0 +1,10 @@
+package com.github.k1rakishou.core_logger;
+
+/**
+ * Where {@link AsyncLogger} writes the records to. Only called from the writer thread, except for the
+ * records that are logged after the logger was closed or that could not be queued (see
+ * {@link AsyncLogger#log}) which are written on the calling thread.
+ */
+public interface LogSink {
+    void write(LogRecord logRecord);
+}
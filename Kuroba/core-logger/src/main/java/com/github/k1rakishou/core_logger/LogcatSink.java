@@ -0,0 +1,53 @@
+package com.github.k1rakishou.core_logger;
+
+import android.util.Log;
+
+/**
+ * Writes the records into logcat, in the same format {@link Logger} used before it became asynchronous:
+ * the tag is prefixed with the application label and, in non-dev builds, with the time of the log call.
+ */
+final class LogcatSink implements LogSink {
+    private final String tagPrefix;
+    private final boolean isDevBuild;
+
+    LogcatSink(String tagPrefix, boolean isDevBuild) {
+        this.tagPrefix = tagPrefix;
+        this.isDevBuild = isDevBuild;
+    }
+
+    @Override
+    public void write(LogRecord logRecord) {
+        String tag = formatTag(logRecord);
+        String message = logRecord.message;
+        Throwable throwable = logRecord.throwable;
+
+        switch (logRecord.level) {
+            case VERBOSE:
+                Log.v(tag, message, throwable);
+                break;
+            case DEBUG:
+                Log.d(tag, message, throwable);
+                break;
+            case INFO:
+                Log.i(tag, message, throwable);
+                break;
+            case WARN:
+                Log.w(tag, message, throwable);
+                break;
+            case ERROR:
+                Log.e(tag, message, throwable);
+                break;
+            case ASSERT:
+                Log.wtf(tag, message, throwable);
+                break;
+        }
+    }
+
+    private String formatTag(LogRecord logRecord) {
+        if (isDevBuild) {
+            return tagPrefix + logRecord.tag;
+        }
+
+        return "(" + logRecord.formatTime() + ") " + tagPrefix + logRecord.tag;
+    }
+}
@@ -16,116 +16,155 @@
  */
 package com.github.k1rakishou.core_logger;
 
-import android.util.Log;
-
-import org.joda.time.DateTime;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.DateTimeFormatterBuilder;
-import org.joda.time.format.ISODateTimeFormat;
+import java.util.Collections;
+import java.util.List;
 
 public class Logger {
-    private static String tagPrefix;
     private static boolean isCurrentBuildDev;
     public static final String DI_TAG = "Dependency Injection";
 
-    private static final DateTimeFormatter LOG_TIME_FORMATTER = new DateTimeFormatterBuilder()
-            .append(ISODateTimeFormat.hourMinuteSecondMillis())
-            .toFormatter();
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int HISTORY_CAPACITY = 1024;
+    private static final long FLUSH_TIMEOUT_MS = 1000;
+
+    // Only used for the logs that happen before init()
+    private static final LogSink EARLY_LOG_SINK = new LogcatSink("", true);
+    private static volatile AsyncLogger asyncLogger;
 
-    public static void init(String prefix, boolean isDevBuild) {
-        tagPrefix = prefix;
+    public static synchronized void init(String prefix, boolean isDevBuild) {
         isCurrentBuildDev = isDevBuild;
+
+        if (asyncLogger == null) {
+            asyncLogger = new AsyncLogger(new LogcatSink(prefix, isDevBuild), QUEUE_CAPACITY, HISTORY_CAPACITY);
+        }
+    }
+
+    /**
+     * Records below {@code level} are discarded on the calling thread.
+     */
+    public static void setMinLevel(LogLevel level) {
+        AsyncLogger logger = asyncLogger;
+        if (logger != null) {
+            logger.setMinLevel(level);
+        }
+    }
+
+    /**
+     * Same as {@link #setMinLevel} but only for the records with {@code tag}, null removes the override.
+     */
+    public static void setTagLevel(String tag, LogLevel level) {
+        AsyncLogger logger = asyncLogger;
+        if (logger != null) {
+            logger.setTagLevel(tag, level);
+        }
+    }
+
+    public static boolean isLoggable(LogLevel level, String tag) {
+        AsyncLogger logger = asyncLogger;
+        return logger == null || logger.isLoggable(level, tag);
     }
 
-    private static String getTime() {
-        if (isCurrentBuildDev) {
-            return "";
+    /**
+     * Returns up to {@code maxCount} most recent records, oldest first. Used by the in-app logs viewer and
+     * the crash/issue reports.
+     */
+    public static List<LogRecord> getRecentRecords(int maxCount) {
+        AsyncLogger logger = asyncLogger;
+        if (logger == null) {
+            return Collections.emptyList();
         }
 
-        return "(" + LOG_TIME_FORMATTER.print(DateTime.now()) + ") ";
+        return logger.getRecentRecords(maxCount);
+    }
+
+    /**
+     * Blocks until everything that was logged so far is written. Must be called before the process is
+     * killed (e.g. by the uncaught exception handler).
+     */
+    public static void flush() {
+        AsyncLogger logger = asyncLogger;
+        if (logger != null) {
+            logger.flush(FLUSH_TIMEOUT_MS);
+        }
     }
 
     //region VERBOSE
     public static void v(String tag, String message) {
-        if (canLog()) {
-            Log.v(getTime() + tagPrefix + tag, message);
-        }
+        log(LogLevel.VERBOSE, tag, message, null);
     }
 
     public static void v(String tag, String message, Throwable throwable) {
-        if (canLog()) {
-            Log.v(getTime() + tagPrefix + tag, message, throwable);
-        }
+        log(LogLevel.VERBOSE, tag, message, throwable);
+    }
+
+    public static void v(String tag, MessageProvider messageProvider) {
+        log(LogLevel.VERBOSE, tag, messageProvider);
     }
     //endregion VERBOSE
 
     //region DEBUG
     public static void d(String tag, String message) {
-        if (canLog()) {
-            Log.d(getTime() + tagPrefix + tag, message);
-        }
+        log(LogLevel.DEBUG, tag, message, null);
     }
 
     public static void d(String tag, String message, Throwable throwable) {
-        if (canLog()) {
-            Log.d(getTime() + tagPrefix + tag, message, throwable);
-        }
+        log(LogLevel.DEBUG, tag, message, throwable);
+    }
+
+    public static void d(String tag, MessageProvider messageProvider) {
+        log(LogLevel.DEBUG, tag, messageProvider);
     }
     //endregion DEBUG
 
     //region INFO
     public static void i(String tag, String message) {
-        Log.i(getTime() + tagPrefix + tag, message);
+        log(LogLevel.INFO, tag, message, null);
     }
 
     public static void i(String tag, String message, Throwable throwable) {
-        Log.i(getTime() + tagPrefix + tag, message, throwable);
+        log(LogLevel.INFO, tag, message, throwable);
     }
 
     //endregion INFO
 
     //region WARN
     public static void w(String tag, String message) {
-        Log.w(getTime() + tagPrefix + tag, message);
+        log(LogLevel.WARN, tag, message, null);
     }
 
     public static void w(String tag, String message, Throwable throwable) {
-        Log.w(getTime() + tagPrefix + tag, message, throwable);
+        log(LogLevel.WARN, tag, message, throwable);
     }
 
     //endregion WARN
 
     //region ERROR
     public static void e(String tag, String message) {
-        Log.e(getTime() + tagPrefix + tag, message);
+        log(LogLevel.ERROR, tag, message, null);
     }
 
     public static void e(String tag, String message, Throwable throwable) {
-        Log.e(getTime() + tagPrefix + tag, message, throwable);
+        log(LogLevel.ERROR, tag, message, throwable);
     }
     //endregion ERROR
 
     //region WTF
     public static void wtf(String tag, String message) {
-        Log.wtf(getTime() + tagPrefix + tag, message);
+        log(LogLevel.ASSERT, tag, message, null);
     }
 
     public static void wtf(String tag, String message, Throwable throwable) {
-        Log.wtf(getTime() + tagPrefix + tag, message, throwable);
+        log(LogLevel.ASSERT, tag, message, throwable);
     }
     //endregion WTF
 
     //region TEST
     public static void test(String message) {
-        if (canLog()) {
-            Log.i(getTime() + tagPrefix + "test", message);
-        }
+        log(LogLevel.INFO, "test", message, null);
     }
 
     public static void test(String message, Throwable throwable) {
-        if (canLog()) {
-            Log.i(getTime() + tagPrefix + "test", message, throwable);
-        }
+        log(LogLevel.INFO, "test", message, throwable);
     }
     //endregion TEST
 
@@ -138,7 +177,34 @@ public class Logger {
         Logger.d(tag, message);
     }
 
-    private static boolean canLog() {
-        return true;
+    private static void log(LogLevel level, String tag, String message, Throwable throwable) {
+        AsyncLogger logger = asyncLogger;
+        if (logger == null) {
+            EARLY_LOG_SINK.write(createEarlyRecord(level, tag, message, throwable));
+            return;
+        }
+
+        logger.log(level, tag, message, throwable);
+    }
+
+    private static void log(LogLevel level, String tag, MessageProvider messageProvider) {
+        AsyncLogger logger = asyncLogger;
+        if (logger == null) {
+            EARLY_LOG_SINK.write(createEarlyRecord(level, tag, messageProvider.get(), null));
+            return;
+        }
+
+        logger.log(level, tag, messageProvider, null);
+    }
+
+    private static LogRecord createEarlyRecord(LogLevel level, String tag, String message, Throwable throwable) {
+        return new LogRecord(
+                level,
+                tag,
+                message,
+                throwable,
+                System.currentTimeMillis(),
+                Thread.currentThread().getName()
+        );
     }
 }
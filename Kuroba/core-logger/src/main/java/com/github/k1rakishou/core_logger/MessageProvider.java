@@ -0,0 +1,9 @@
+package com.github.k1rakishou.core_logger;
+
+/**
+ * Builds a log message. Only invoked (on the calling thread) when the level of the record is enabled for
+ * its tag so that disabled debug logs don't pay for the string formatting.
+ */
+public interface MessageProvider {
+    String get();
+}
@@ -0,0 +1,273 @@
+package com.github.k1rakishou.core_logger
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertTrue
+import org.joda.time.DateTime
+import org.joda.time.format.DateTimeFormatterBuilder
+import org.joda.time.format.ISODateTimeFormat
+import org.junit.After
+import org.junit.Test
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+
+class AsyncLoggerTest {
+  private val loggers = mutableListOf<AsyncLogger>()
+
+  @After
+  fun tearDown() {
+    loggers.forEach { asyncLogger -> asyncLogger.close(5000) }
+  }
+
+  @Test
+  fun `records of every thread are written in the order they were logged`() {
+    val sink = RecordingSink()
+    val asyncLogger = createLogger(sink, queueCapacity = 256, historyCapacity = 100)
+    val threadsCount = 4
+    val recordsPerThread = 2000
+    val startLatch = CountDownLatch(1)
+
+    val threads = (0 until threadsCount).map { threadIndex ->
+      thread(name = "producer-$threadIndex") {
+        startLatch.await()
+
+        repeat(recordsPerThread) { recordIndex ->
+          // The queue is small (so that it wraps around many times), make sure nothing gets dropped: at
+          // most 4 * 32 records are not written yet at any time.
+          if (recordIndex % 32 == 0) {
+            assertTrue(asyncLogger.flush(5000))
+          }
+
+          asyncLogger.log(LogLevel.DEBUG, "Tag", "$threadIndex:$recordIndex", null)
+        }
+      }
+    }
+
+    startLatch.countDown()
+    threads.forEach { thread -> thread.join() }
+    assertTrue(asyncLogger.flush(5000))
+
+    assertEquals(threadsCount * recordsPerThread, sink.records.size)
+
+    val recordsByThread = sink.records.groupBy { logRecord -> logRecord.threadName }
+    assertEquals(threadsCount, recordsByThread.size)
+
+    recordsByThread.forEach { (threadName, logRecords) ->
+      val threadIndex = threadName.removePrefix("producer-")
+      val expected = (0 until recordsPerThread).map { recordIndex -> "$threadIndex:$recordIndex" }
+
+      assertEquals(expected, logRecords.map { logRecord -> logRecord.message })
+    }
+
+    // The history keeps the most recent records in the same order
+    assertEquals(sink.records.takeLast(100), asyncLogger.getRecentRecords(1000))
+    assertEquals(sink.records.takeLast(10), asyncLogger.getRecentRecords(10))
+  }
+
+  @Test
+  fun `records below the level of their tag are discarded without building the message`() {
+    val sink = RecordingSink()
+    val asyncLogger = createLogger(sink)
+    val builtMessages = AtomicInteger(0)
+
+    asyncLogger.setMinLevel(LogLevel.INFO)
+    asyncLogger.setTagLevel("Verbose", LogLevel.VERBOSE)
+    asyncLogger.setTagLevel("Quiet", LogLevel.ERROR)
+
+    asyncLogger.log(LogLevel.DEBUG, "Tag", { "debug ${builtMessages.incrementAndGet()}" }, null)
+    asyncLogger.log(LogLevel.INFO, "Tag", { "info ${builtMessages.incrementAndGet()}" }, null)
+    asyncLogger.log(LogLevel.VERBOSE, "Verbose", { "verbose ${builtMessages.incrementAndGet()}" }, null)
+    asyncLogger.log(LogLevel.WARN, "Quiet", "warn", null)
+    asyncLogger.log(LogLevel.ERROR, "Quiet", "error", null)
+
+    asyncLogger.setTagLevel("Quiet", null)
+    asyncLogger.log(LogLevel.WARN, "Quiet", "warn", null)
+
+    assertTrue(asyncLogger.flush(5000))
+
+    assertEquals(2, builtMessages.get())
+    assertFalse(asyncLogger.isLoggable(LogLevel.DEBUG, "Tag"))
+    assertEquals(
+      listOf("I/Tag info 1", "V/Verbose verbose 2", "E/Quiet error", "W/Quiet warn"),
+      sink.records.map { logRecord -> "${logRecord.level.shortName}/${logRecord.tag} ${logRecord.message}" }
+    )
+  }
+
+  @Test
+  fun `records are dropped when the queue overflows except for errors`() {
+    val writerEntered = CountDownLatch(1)
+    val releaseWriter = CountDownLatch(1)
+
+    val sink = RecordingSink { logRecord ->
+      if (logRecord.message == "blocker") {
+        writerEntered.countDown()
+        releaseWriter.await()
+      }
+    }
+
+    val asyncLogger = createLogger(sink, queueCapacity = 16, historyCapacity = 8)
+
+    // Stall the writer thread so that the queue fills up
+    asyncLogger.log(LogLevel.DEBUG, "Tag", "blocker", null)
+    assertTrue(writerEntered.await(5, TimeUnit.SECONDS))
+
+    repeat(100) { index -> asyncLogger.log(LogLevel.DEBUG, "Tag", "debug $index", null) }
+    // Written right away on the calling thread
+    asyncLogger.log(LogLevel.ERROR, "Tag", "error", null)
+    assertEquals(listOf("error"), sink.records.map { logRecord -> logRecord.message })
+    assertEquals(listOf(Thread.currentThread().name), sink.writeThreadNames)
+
+    releaseWriter.countDown()
+    assertTrue(asyncLogger.flush(5000))
+    // The drop notice is written after the queue is drained
+    awaitRecords(sink, 19)
+
+    val expected = mutableListOf<String>()
+    expected += "error"
+    expected += "blocker"
+    expected += (0 until 16).map { index -> "debug $index" }
+    expected += "84 log records were dropped because the queue was full (capacity=16)"
+
+    assertEquals(expected, sink.records.map { logRecord -> logRecord.message })
+    // Only the most recent ones are kept in memory
+    assertEquals(expected.takeLast(8), asyncLogger.getRecentRecords(100).map { logRecord -> logRecord.message })
+
+    // The queue is drained so nothing is dropped anymore
+    asyncLogger.log(LogLevel.DEBUG, "Tag", "after", null)
+    assertTrue(asyncLogger.flush(5000))
+    assertEquals("after", sink.records.last().message)
+  }
+
+  @Test
+  fun `close writes every queued record before stopping`() {
+    val sink = RecordingSink { Thread.sleep(1) }
+    val asyncLogger = createLogger(sink, queueCapacity = 1024)
+
+    repeat(500) { index -> asyncLogger.log(LogLevel.INFO, "Tag", "info $index", null) }
+    asyncLogger.close(10_000)
+
+    assertEquals((0 until 500).map { index -> "info $index" }, sink.records.map { logRecord -> logRecord.message })
+    assertTrue(sink.writeThreadNames.all { threadName -> threadName == "AsyncLogWriter" })
+
+    // Written on the calling thread once the writer is stopped
+    asyncLogger.log(LogLevel.INFO, "Tag", "after close", null)
+    assertEquals("after close", sink.records.last().message)
+    assertEquals(Thread.currentThread().name, sink.writeThreadNames.last())
+    assertTrue(asyncLogger.flush(1000))
+  }
+
+  @Test
+  fun `formatted record contains the stacktrace`() {
+    val logRecord = LogRecord(
+      LogLevel.ERROR,
+      "Tag",
+      "message",
+      IllegalStateException("boom"),
+      0L,
+      "main"
+    )
+
+    val lines = logRecord.format().lines()
+
+    assertTrue(lines[0], lines[0].endsWith(" E/Tag [main]: message"))
+    assertEquals("java.lang.IllegalStateException: boom", lines[1])
+    assertTrue(lines.last().isNotBlank())
+  }
+
+  @Test
+  fun `caller side overhead benchmark`() {
+    val iterations = 100_000
+    val sink = FormattingSink()
+
+    // What every log call used to do on the calling thread
+    val timeFormatter = DateTimeFormatterBuilder()
+      .append(ISODateTimeFormat.hourMinuteSecondMillis())
+      .toFormatter()
+
+    val synchronousNanos = measureBestAverageNanos(iterations) { index ->
+      val tag = "(" + timeFormatter.print(DateTime.now()) + ") " + "KurobaEx | " + "Tag"
+      sink.write(LogRecord(LogLevel.DEBUG, tag, "message $index", null, 0L, "main"))
+    }
+
+    val asyncLogger = createLogger(sink, queueCapacity = 65536)
+    val asyncNanos = measureBestAverageNanos(iterations) { index ->
+      asyncLogger.log(LogLevel.DEBUG, "Tag", "message $index", null)
+    }
+    assertTrue(asyncLogger.flush(10_000))
+
+    asyncLogger.setMinLevel(LogLevel.INFO)
+    val disabledNanos = measureBestAverageNanos(iterations) { index ->
+      asyncLogger.log(LogLevel.DEBUG, "Tag", { "message $index" }, null)
+    }
+
+    val timings = "synchronous=${synchronousNanos}ns, async=${asyncNanos}ns, disabled=${disabledNanos}ns"
+
+    // Relative bounds so that a slow machine doesn't fail it, only a regression like a lock or the
+    // formatting getting back to the calling thread does.
+    assertTrue(timings, asyncNanos < synchronousNanos)
+    assertTrue(timings, disabledNanos * 2 < asyncNanos)
+    assertTrue(sink.written > 0)
+  }
+
+  private fun awaitRecords(sink: RecordingSink, count: Int) {
+    val deadline = System.currentTimeMillis() + 5000
+
+    while (sink.records.size < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1)
+    }
+  }
+
+  /**
+   * The best of a few rounds, the others are usually slowed down by the JIT or the GC.
+   * */
+  private fun measureBestAverageNanos(iterations: Int, block: (Int) -> Unit): Long {
+    // Warmup
+    repeat(iterations / 10) { index -> block(index) }
+
+    return (0 until BENCHMARK_ROUNDS).minOf {
+      val start = System.nanoTime()
+      repeat(iterations) { index -> block(index) }
+
+      (System.nanoTime() - start) / iterations
+    }
+  }
+
+  private fun createLogger(
+    sink: LogSink,
+    queueCapacity: Int = 1024,
+    historyCapacity: Int = 1024
+  ): AsyncLogger {
+    return AsyncLogger(sink, queueCapacity, historyCapacity)
+      .also { asyncLogger -> loggers += asyncLogger }
+  }
+
+  private class RecordingSink(
+    private val onWrite: (LogRecord) -> Unit = {}
+  ) : LogSink {
+    val records = CopyOnWriteArrayList<LogRecord>()
+    val writeThreadNames = CopyOnWriteArrayList<String>()
+
+    override fun write(logRecord: LogRecord) {
+      onWrite(logRecord)
+      records += logRecord
+      writeThreadNames += Thread.currentThread().name
+    }
+  }
+
+  private class FormattingSink : LogSink {
+    @Volatile
+    var written = 0L
+
+    override fun write(logRecord: LogRecord) {
+      // Roughly what logcat costs: the record is formatted and copied
+      written += logRecord.format().length
+    }
+  }
+
+  companion object {
+    private const val BENCHMARK_ROUNDS = 5
+  }
+}
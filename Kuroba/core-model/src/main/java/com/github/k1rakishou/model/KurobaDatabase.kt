@@ -33,6 +33,7 @@ import com.github.k1rakishou.model.dao.ChanThreadViewableInfoDao
 import com.github.k1rakishou.model.dao.CompositeCatalogDao
 import com.github.k1rakishou.model.dao.DatabaseMetaDao
 import com.github.k1rakishou.model.dao.ImageDownloadRequestDao
+import com.github.k1rakishou.model.dao.ImageSaverFileHashDao
 import com.github.k1rakishou.model.dao.MediaServiceLinkExtraContentDao
 import com.github.k1rakishou.model.dao.NavHistoryDao
 import com.github.k1rakishou.model.dao.SeenPostDao
@@ -48,7 +49,8 @@ import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkGroupEntryEntit
 import com.github.k1rakishou.model.entity.bookmark.ThreadBookmarkReplyEntity
 import com.github.k1rakishou.model.entity.chan.board.ChanBoardEntity
 import com.github.k1rakishou.model.entity.chan.board.ChanBoardIdEntity
-import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotEntity
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotVersionEntity
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotVisitEntity
 import com.github.k1rakishou.model.entity.chan.catalog.CompositeCatalogEntity
 import com.github.k1rakishou.model.entity.chan.filter.ChanFilterBoardConstraintEntity
 import com.github.k1rakishou.model.entity.chan.filter.ChanFilterEntity
@@ -66,6 +68,7 @@ import com.github.k1rakishou.model.entity.chan.site.ChanSiteIdEntity
 import com.github.k1rakishou.model.entity.chan.thread.ChanThreadEntity
 import com.github.k1rakishou.model.entity.chan.thread.ChanThreadViewableInfoEntity
 import com.github.k1rakishou.model.entity.download.ImageDownloadRequestEntity
+import com.github.k1rakishou.model.entity.download.ImageSaverFileHashEntity
 import com.github.k1rakishou.model.entity.download.ThreadDownloadEntity
 import com.github.k1rakishou.model.entity.navigation.NavHistoryElementIdEntity
 import com.github.k1rakishou.model.entity.navigation.NavHistoryElementInfoEntity
@@ -105,6 +108,9 @@ import com.github.k1rakishou.model.migrations.Migration_v38_to_v39
 import com.github.k1rakishou.model.migrations.Migration_v39_to_v40
 import com.github.k1rakishou.model.migrations.Migration_v3_to_v4
 import com.github.k1rakishou.model.migrations.Migration_v40_to_v41
+import com.github.k1rakishou.model.migrations.Migration_v41_to_v42
+import com.github.k1rakishou.model.migrations.Migration_v42_to_v43
+import com.github.k1rakishou.model.migrations.Migration_v43_to_v44
 import com.github.k1rakishou.model.migrations.Migration_v4_to_v5
 import com.github.k1rakishou.model.migrations.Migration_v5_to_v6
 import com.github.k1rakishou.model.migrations.Migration_v6_to_v7
@@ -135,7 +141,8 @@ import java.util.concurrent.atomic.AtomicInteger
     ChanFilterEntity::class,
     ChanFilterBoardConstraintEntity::class,
     ChanFilterWatchGroupEntity::class,
-    ChanCatalogSnapshotEntity::class,
+    ChanCatalogSnapshotVersionEntity::class,
+    ChanCatalogSnapshotVisitEntity::class,
     MediaServiceLinkExtraContentEntity::class,
     SeenPostEntity::class,
     NavHistoryElementIdEntity::class,
@@ -146,13 +153,14 @@ import java.util.concurrent.atomic.AtomicInteger
     ThreadBookmarkGroupEntryEntity::class,
     ImageDownloadRequestEntity::class,
     ThreadDownloadEntity::class,
-    CompositeCatalogEntity::class
+    CompositeCatalogEntity::class,
+    ImageSaverFileHashEntity::class
   ],
   views = [
     ChanThreadsWithPosts::class,
     OldChanPostThread::class
   ],
-  version = 41,
+  version = 44,
   exportSchema = true
 )
 @TypeConverters(
@@ -194,6 +202,7 @@ abstract class KurobaDatabase : RoomDatabase() {
   abstract fun imageDownloadRequestDao(): ImageDownloadRequestDao
   abstract fun threadDownloadDao(): ThreadDownloadDao
   abstract fun compositeCatalogDao(): CompositeCatalogDao
+  abstract fun imageSaverFileHashDao(): ImageSaverFileHashDao
 
   suspend fun ensureInTransaction() {
     require(inTransaction()) { "Must be executed in a transaction!" }
@@ -285,6 +294,9 @@ abstract class KurobaDatabase : RoomDatabase() {
           Migration_v38_to_v39(),
           Migration_v39_to_v40(),
           Migration_v40_to_v41(),
+          Migration_v41_to_v42(),
+          Migration_v42_to_v43(),
+          Migration_v43_to_v44(),
         )
         .fallbackToDestructiveMigrationOnDowngrade()
         .build()
@@ -4,27 +4,100 @@ import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.Query
-import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotEntity
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotVersionEntity
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotVisitEntity
 
 @Dao
 abstract class ChanCatalogSnapshotDao {
 
+  /**
+   * Returns the latest keyframe and all the versions after it.
+   * */
   @Query("""
     SELECT *
-    FROM ${ChanCatalogSnapshotEntity.TABLE_NAME}
-    WHERE ${ChanCatalogSnapshotEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
-    ORDER BY ${ChanCatalogSnapshotEntity.THREAD_ORDER_COLUMN_NAME} ASC
+    FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+    WHERE
+        ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+    AND
+        ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} >= (
+            SELECT MAX(${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME})
+            FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+            WHERE
+                ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+            AND
+                ${ChanCatalogSnapshotVersionEntity.IS_KEYFRAME_COLUMN_NAME} = ${KurobaDatabase.SQLITE_TRUE}
+        )
+    ORDER BY ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} ASC
   """)
-  abstract suspend fun selectManyByBoardIdOrdered(ownerBoardId: Long): List<ChanCatalogSnapshotEntity>
+  abstract suspend fun selectLatestKeyframeChain(ownerBoardId: Long): List<ChanCatalogSnapshotVersionEntity>
+
+  /**
+   * Returns the last keyframe that is not newer than [version] and all the versions after it up to
+   * [version].
+   * */
+  @Query("""
+    SELECT *
+    FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+    WHERE
+        ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+    AND
+        ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} <= :version
+    AND
+        ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} >= (
+            SELECT MAX(${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME})
+            FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+            WHERE
+                ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+            AND
+                ${ChanCatalogSnapshotVersionEntity.IS_KEYFRAME_COLUMN_NAME} = ${KurobaDatabase.SQLITE_TRUE}
+            AND
+                ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} <= :version
+        )
+    ORDER BY ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} ASC
+  """)
+  abstract suspend fun selectKeyframeChain(ownerBoardId: Long, version: Long): List<ChanCatalogSnapshotVersionEntity>
+
+  @Query("""
+    SELECT MAX(${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME})
+    FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+    WHERE ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+  """)
+  abstract suspend fun selectLatestVersion(ownerBoardId: Long): Long?
+
+  @Query("""
+    SELECT MAX(${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME})
+    FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+    WHERE
+        ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+    AND
+        ${ChanCatalogSnapshotVersionEntity.IS_KEYFRAME_COLUMN_NAME} = ${KurobaDatabase.SQLITE_TRUE}
+    AND
+        ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} <= :version
+  """)
+  abstract suspend fun selectKeyframeVersionAtOrBefore(ownerBoardId: Long, version: Long): Long?
 
   @Insert(onConflict = OnConflictStrategy.ABORT)
-  abstract suspend fun insertMany(chanCatalogSnapshotEntityList: List<ChanCatalogSnapshotEntity>)
+  abstract suspend fun insert(chanCatalogSnapshotVersionEntity: ChanCatalogSnapshotVersionEntity)
 
   @Query("""
     DELETE
-    FROM ${ChanCatalogSnapshotEntity.TABLE_NAME}
-    WHERE ${ChanCatalogSnapshotEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+    FROM ${ChanCatalogSnapshotVersionEntity.TABLE_NAME}
+    WHERE
+        ${ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+    AND
+        ${ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME} < :version
   """)
-  abstract suspend fun deleteManyByBoardId(ownerBoardId: Long)
+  abstract suspend fun deleteOlderThan(ownerBoardId: Long, version: Long): Int
+
+  @Query("""
+    SELECT *
+    FROM ${ChanCatalogSnapshotVisitEntity.TABLE_NAME}
+    WHERE ${ChanCatalogSnapshotVisitEntity.OWNER_BOARD_ID_COLUMN_NAME} = :ownerBoardId
+  """)
+  abstract suspend fun selectVisit(ownerBoardId: Long): ChanCatalogSnapshotVisitEntity?
+
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract suspend fun insertOrReplaceVisit(chanCatalogSnapshotVisitEntity: ChanCatalogSnapshotVisitEntity)
 
-}
\ No newline at end of file
+}
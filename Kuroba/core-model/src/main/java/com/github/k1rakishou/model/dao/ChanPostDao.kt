@@ -52,6 +52,17 @@ abstract class ChanPostDao {
     postDatabaseIds: Collection<Long>
   ): List<ChanPostFull>
 
+  @Query("""
+        SELECT cp_id.${ChanPostIdEntity.POST_ID_COLUMN_NAME}
+        FROM ${ChanPostIdEntity.TABLE_NAME} cp_id
+        WHERE 
+            cp_id.${ChanPostIdEntity.OWNER_THREAD_ID_COLUMN_NAME} = :ownerThreadId
+        AND 
+            cp_id.${ChanPostIdEntity.POST_SUB_NO_COLUMN_NAME} = 0
+        ORDER BY cp_id.${ChanPostIdEntity.POST_NO_COLUMN_NAME} ASC
+    """)
+  abstract suspend fun selectPostIdsByThreadIdOrderedByPostNo(ownerThreadId: Long): List<Long>
+
   suspend fun selectOriginalPost(
     ownerThreadId: Long
   ): ChanPostFull? {
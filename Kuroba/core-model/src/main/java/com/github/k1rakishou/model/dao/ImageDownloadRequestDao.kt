@@ -45,6 +45,16 @@ abstract class ImageDownloadRequestDao {
   @Update(onConflict = OnConflictStrategy.IGNORE)
   abstract suspend fun updateMany(imageDownloadRequestEntities: List<ImageDownloadRequestEntity>)
 
+  @Query("""
+    UPDATE ${ImageDownloadRequestEntity.TABLE_NAME}
+    SET ${ImageDownloadRequestEntity.DOWNLOADED_BYTES_COLUMN_NAME} = :downloadedBytes
+    WHERE 
+        ${ImageDownloadRequestEntity.UNIQUE_ID_COLUMN_NAME} = :uniqueId
+    AND
+        ${ImageDownloadRequestEntity.IMAGE_FULL_URL_COLUMN_NAME} = :imageFullUrl
+  """)
+  abstract suspend fun updateDownloadedBytes(uniqueId: String, imageFullUrl: HttpUrl, downloadedBytes: Long)
+
   @Query("""
     DELETE FROM ${ImageDownloadRequestEntity.TABLE_NAME}
     WHERE ${ImageDownloadRequestEntity.UNIQUE_ID_COLUMN_NAME} = :uniqueId
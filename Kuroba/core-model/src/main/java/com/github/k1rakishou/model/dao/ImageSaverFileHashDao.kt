@@ -0,0 +1,50 @@
+package com.github.k1rakishou.model.dao
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import com.github.k1rakishou.model.entity.download.ImageSaverFileHashEntity
+
+@Dao
+abstract class ImageSaverFileHashDao {
+
+  @Insert(onConflict = OnConflictStrategy.REPLACE)
+  abstract suspend fun insertOrReplace(imageSaverFileHashEntity: ImageSaverFileHashEntity)
+
+  @Query("""
+    SELECT *
+    FROM ${ImageSaverFileHashEntity.TABLE_NAME}
+    WHERE 
+        ${ImageSaverFileHashEntity.DIR_URI_COLUMN_NAME} = :dirUri
+    AND
+        ${ImageSaverFileHashEntity.FILE_NAME_COLUMN_NAME} = :fileName
+  """)
+  abstract suspend fun select(dirUri: String, fileName: String): ImageSaverFileHashEntity?
+
+  @Query("""
+    SELECT *
+    FROM ${ImageSaverFileHashEntity.TABLE_NAME}
+    WHERE 
+        ${ImageSaverFileHashEntity.DIR_URI_COLUMN_NAME} = :dirUri
+    AND
+        ${ImageSaverFileHashEntity.FILE_MD5_COLUMN_NAME} = :fileMd5
+    AND
+        ${ImageSaverFileHashEntity.FILE_SIZE_COLUMN_NAME} = :fileSize
+  """)
+  abstract suspend fun selectByHash(
+    dirUri: String,
+    fileMd5: String,
+    fileSize: Long
+  ): List<ImageSaverFileHashEntity>
+
+  @Query("""
+    DELETE FROM ${ImageSaverFileHashEntity.TABLE_NAME}
+    WHERE 
+        ${ImageSaverFileHashEntity.DIR_URI_COLUMN_NAME} = :dirUri
+    AND
+        ${ImageSaverFileHashEntity.FILE_NAME_COLUMN_NAME} = :fileName
+  """)
+  abstract suspend fun delete(dirUri: String, fileName: String)
+
+}
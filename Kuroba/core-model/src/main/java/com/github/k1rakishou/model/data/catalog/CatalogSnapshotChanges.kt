@@ -0,0 +1,30 @@
+package com.github.k1rakishou.model.data.catalog
+
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
+
+/**
+ * How the catalog changed between two of its snapshot versions.
+ * */
+data class CatalogSnapshotChanges(
+  val newThreads: List<ChanDescriptor.ThreadDescriptor>,
+  val bumpedThreads: List<ChanDescriptor.ThreadDescriptor>,
+  val droppedThreads: List<ChanDescriptor.ThreadDescriptor>
+) {
+
+  fun isEmpty(): Boolean {
+    return newThreads.isEmpty() && bumpedThreads.isEmpty() && droppedThreads.isEmpty()
+  }
+
+  operator fun plus(other: CatalogSnapshotChanges): CatalogSnapshotChanges {
+    return CatalogSnapshotChanges(
+      newThreads = newThreads + other.newThreads,
+      bumpedThreads = bumpedThreads + other.bumpedThreads,
+      droppedThreads = droppedThreads + other.droppedThreads
+    )
+  }
+
+  companion object {
+    val EMPTY = CatalogSnapshotChanges(emptyList(), emptyList(), emptyList())
+  }
+
+}
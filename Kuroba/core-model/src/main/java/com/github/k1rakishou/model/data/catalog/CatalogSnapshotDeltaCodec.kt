@@ -0,0 +1,392 @@
+package com.github.k1rakishou.model.data.catalog
+
+import java.io.IOException
+
+/**
+ * Binary format for the versions of a board's catalog thread order. A version is either a keyframe
+ * (the whole ordered list of thread numbers) or a delta from the previous version (the removed
+ * threads plus the threads that were inserted or moved, with their new positions). A catalog refresh
+ * usually only inserts a couple of new threads and bumps a couple of old ones to the top so a delta
+ * is a handful of bytes while a keyframe is a couple hundred.
+ *
+ * Layout:
+ * ```
+ * keyframe: codec version (1 byte) | KIND_KEYFRAME (1 byte) | count (varint)
+ *   | thread numbers (zigzag delta from the previous thread number)
+ *
+ * delta: codec version (1 byte) | KIND_DELTA (1 byte) | resulting count (varint)
+ *   | removed count (varint) | removed thread numbers (sorted, zigzag delta from the previous one)
+ *   | placed count (varint) | placed threads (position gap from the previous placed thread (varint)
+ *   + zigzag thread number delta from the previous placed thread)
+ * ```
+ * Moved threads are chosen so that the threads that kept their relative order (the longest
+ * increasing subsequence) are not stored at all.
+ * */
+object CatalogSnapshotDeltaCodec {
+  const val CODEC_VERSION = 1
+
+  private const val KIND_KEYFRAME = 0
+  private const val KIND_DELTA = 1
+
+  fun encodeKeyframe(threadNos: List<Long>): ByteArray {
+    val writer = ByteWriter()
+    writer.writeByte(CODEC_VERSION)
+    writer.writeByte(KIND_KEYFRAME)
+    writer.writeVarInt(threadNos.size)
+
+    var prevThreadNo = 0L
+    threadNos.forEach { threadNo ->
+      writer.writeZigZagLong(threadNo - prevThreadNo)
+      prevThreadNo = threadNo
+    }
+
+    return writer.toByteArray()
+  }
+
+  fun encodeDelta(prevThreadNos: List<Long>, threadNos: List<Long>): ByteArray {
+    val diff = diff(prevThreadNos, threadNos)
+
+    val writer = ByteWriter()
+    writer.writeByte(CODEC_VERSION)
+    writer.writeByte(KIND_DELTA)
+    writer.writeVarInt(threadNos.size)
+
+    writer.writeVarInt(diff.removed.size)
+    var prevThreadNo = 0L
+    diff.removed.sorted().forEach { threadNo ->
+      writer.writeZigZagLong(threadNo - prevThreadNo)
+      prevThreadNo = threadNo
+    }
+
+    writer.writeVarInt(diff.placed.size)
+    var prevPosition = -1
+    prevThreadNo = 0L
+    diff.placed.forEach { placedThread ->
+      writer.writeVarInt(placedThread.position - prevPosition - 1)
+      writer.writeZigZagLong(placedThread.threadNo - prevThreadNo)
+
+      prevPosition = placedThread.position
+      prevThreadNo = placedThread.threadNo
+    }
+
+    return writer.toByteArray()
+  }
+
+  fun isKeyframe(bytes: ByteArray): Boolean {
+    return bytes.size >= 2 && bytes[1].toInt() == KIND_KEYFRAME
+  }
+
+  /**
+   * Decodes a version. [prevThreadNos] (the decoded previous version) is only required for deltas.
+   * */
+  @Throws(IOException::class)
+  fun decode(prevThreadNos: List<Long>?, bytes: ByteArray): List<Long> {
+    val reader = ByteReader(bytes)
+
+    val codecVersion = reader.readByte()
+    if (codecVersion != CODEC_VERSION) {
+      throw IOException("Unsupported codec version: ${codecVersion}")
+    }
+
+    return when (val kind = reader.readByte()) {
+      KIND_KEYFRAME -> decodeKeyframe(reader)
+      KIND_DELTA -> {
+        if (prevThreadNos == null) {
+          throw IOException("Delta without the previous version")
+        }
+
+        decodeDelta(reader, prevThreadNos)
+      }
+      else -> throw IOException("Unknown kind: ${kind}")
+    }
+  }
+
+  /**
+   * Calculates the changes required to turn [prevThreadNos] into [threadNos]. Both lists must not
+   * contain duplicates.
+   * */
+  fun diff(prevThreadNos: List<Long>, threadNos: List<Long>): Diff {
+    val threadNoSet = threadNos.toHashSet()
+    val prevThreadNoSet = prevThreadNos.toHashSet()
+
+    val removed = prevThreadNos.filter { threadNo -> threadNo !in threadNoSet }
+
+    // Positions of the threads that exist in both versions among such threads in the previous version
+    val prevCommonPositions = HashMap<Long, Int>(prevThreadNos.size)
+    prevThreadNos.forEach { threadNo ->
+      if (threadNo in threadNoSet) {
+        prevCommonPositions[threadNo] = prevCommonPositions.size
+      }
+    }
+
+    val common = threadNos.filter { threadNo -> threadNo in prevThreadNoSet }
+    val stable = longestIncreasingSubsequence(common, prevCommonPositions)
+
+    val placed = mutableListOf<PlacedThread>()
+    val bumped = mutableListOf<Long>()
+    var commonPosition = 0
+
+    threadNos.forEachIndexed { position, threadNo ->
+      if (threadNo in stable) {
+        ++commonPosition
+        return@forEachIndexed
+      }
+
+      placed += PlacedThread(position, threadNo)
+
+      val prevCommonPosition = prevCommonPositions[threadNo]
+        ?: return@forEachIndexed
+
+      if (commonPosition < prevCommonPosition) {
+        bumped += threadNo
+      }
+
+      ++commonPosition
+    }
+
+    val inserted = threadNos.filter { threadNo -> threadNo !in prevThreadNoSet }
+
+    return Diff(
+      removed = removed,
+      placed = placed,
+      inserted = inserted,
+      bumped = bumped
+    )
+  }
+
+  private fun decodeKeyframe(reader: ByteReader): List<Long> {
+    val count = reader.readCount()
+    val threadNos = ArrayList<Long>(count)
+
+    var prevThreadNo = 0L
+    repeat(count) {
+      prevThreadNo += reader.readZigZagLong()
+      threadNos += prevThreadNo
+    }
+
+    reader.ensureFullyRead()
+    return threadNos
+  }
+
+  private fun decodeDelta(reader: ByteReader, prevThreadNos: List<Long>): List<Long> {
+    val resultCount = reader.readVarInt()
+
+    val removedCount = reader.readCount()
+    val excluded = HashSet<Long>(removedCount * 2)
+    var prevThreadNo = 0L
+
+    repeat(removedCount) {
+      prevThreadNo += reader.readZigZagLong()
+      excluded += prevThreadNo
+    }
+
+    val placedCount = reader.readCount()
+    val placedPositions = IntArray(placedCount)
+    val placedThreadNos = LongArray(placedCount)
+    var prevPosition = -1
+    prevThreadNo = 0L
+
+    for (index in 0 until placedCount) {
+      prevPosition += reader.readVarInt() + 1
+      prevThreadNo += reader.readZigZagLong()
+
+      if (prevPosition >= resultCount) {
+        throw IOException("Placed thread position ${prevPosition} is out of bounds (count=${resultCount})")
+      }
+
+      placedPositions[index] = prevPosition
+      placedThreadNos[index] = prevThreadNo
+      excluded += prevThreadNo
+    }
+
+    reader.ensureFullyRead()
+
+    val stable = prevThreadNos.filter { threadNo -> threadNo !in excluded }
+    if (stable.size + placedCount != resultCount) {
+      throw IOException("Delta does not match the previous version " +
+        "(stable=${stable.size}, placed=${placedCount}, count=${resultCount})")
+    }
+
+    val result = ArrayList<Long>(resultCount)
+    var placedIndex = 0
+    var stableIndex = 0
+
+    for (position in 0 until resultCount) {
+      if (placedIndex < placedCount && placedPositions[placedIndex] == position) {
+        result += placedThreadNos[placedIndex++]
+      } else {
+        result += stable[stableIndex++]
+      }
+    }
+
+    return result
+  }
+
+  /**
+   * Returns the threads of [threadNos] that form the longest subsequence which is ordered the same
+   * way as in the previous version (by [prevPositions]). These threads didn't move relative to each
+   * other so the delta doesn't need to store them.
+   * */
+  private fun longestIncreasingSubsequence(threadNos: List<Long>, prevPositions: Map<Long, Int>): Set<Long> {
+    if (threadNos.isEmpty()) {
+      return emptySet()
+    }
+
+    val positions = IntArray(threadNos.size) { index -> prevPositions[threadNos[index]]!! }
+    // tails[length - 1] = index of the smallest tail of all increasing subsequences of this length
+    val tails = IntArray(threadNos.size)
+    val predecessors = IntArray(threadNos.size)
+    var length = 0
+
+    for (index in positions.indices) {
+      var low = 0
+      var high = length
+
+      while (low < high) {
+        val middle = (low + high) ushr 1
+
+        if (positions[tails[middle]] < positions[index]) {
+          low = middle + 1
+        } else {
+          high = middle
+        }
+      }
+
+      predecessors[index] = if (low > 0) tails[low - 1] else -1
+      tails[low] = index
+
+      if (low == length) {
+        ++length
+      }
+    }
+
+    val result = HashSet<Long>(length * 2)
+    var index = tails[length - 1]
+
+    while (index >= 0) {
+      result += threadNos[index]
+      index = predecessors[index]
+    }
+
+    return result
+  }
+
+  class Diff(
+    val removed: List<Long>,
+    // Threads that were inserted or moved, ordered by their new position
+    val placed: List<PlacedThread>,
+    val inserted: List<Long>,
+    // Moved threads that are now above the threads they were below of
+    val bumped: List<Long>
+  )
+
+  data class PlacedThread(
+    val position: Int,
+    val threadNo: Long
+  )
+
+  private class ByteWriter {
+    private var buffer = ByteArray(64)
+    private var size = 0
+
+    fun writeByte(value: Int) {
+      ensureCapacity(1)
+      buffer[size++] = value.toByte()
+    }
+
+    fun writeVarInt(value: Int) {
+      writeVarLong(value.toLong() and 0xFFFFFFFFL)
+    }
+
+    fun writeZigZagLong(value: Long) {
+      writeVarLong((value shl 1) xor (value shr 63))
+    }
+
+    fun toByteArray(): ByteArray = buffer.copyOf(size)
+
+    private fun writeVarLong(value: Long) {
+      var remaining = value
+
+      while (remaining and 0x7FL.inv() != 0L) {
+        writeByte(((remaining and 0x7FL) or 0x80L).toInt())
+        remaining = remaining ushr 7
+      }
+
+      writeByte(remaining.toInt())
+    }
+
+    private fun ensureCapacity(additional: Int) {
+      if (size + additional <= buffer.size) {
+        return
+      }
+
+      buffer = buffer.copyOf(maxOf(buffer.size * 2, size + additional))
+    }
+  }
+
+  private class ByteReader(
+    private val bytes: ByteArray
+  ) {
+    private var position = 0
+
+    fun readByte(): Int {
+      if (position >= bytes.size) {
+        throw IOException("Unexpected end of catalog snapshot at ${position}")
+      }
+
+      return bytes[position++].toInt() and 0xFF
+    }
+
+    fun readVarInt(): Int {
+      val value = readVarLong()
+      if (value ushr 31 != 0L) {
+        throw IOException("Varint is too big for an int at ${position}")
+      }
+
+      return value.toInt()
+    }
+
+    /**
+     * A count of the elements that follow. Every element takes at least one byte so anything
+     * bigger than the remaining bytes means the data is corrupted.
+     * */
+    fun readCount(): Int {
+      val count = readVarInt()
+      if (count > bytes.size - position) {
+        throw IOException("Bad element count: ${count}")
+      }
+
+      return count
+    }
+
+    fun readZigZagLong(): Long {
+      val value = readVarLong()
+      return (value ushr 1) xor -(value and 1L)
+    }
+
+    fun ensureFullyRead() {
+      if (position != bytes.size) {
+        throw IOException("Unexpected trailing data at ${position} (size=${bytes.size})")
+      }
+    }
+
+    private fun readVarLong(): Long {
+      var result = 0L
+      var shift = 0
+
+      while (shift < 64) {
+        val byte = readByte()
+        result = result or ((byte and 0x7F).toLong() shl shift)
+
+        if (byte and 0x80 == 0) {
+          return result
+        }
+
+        shift += 7
+      }
+
+      throw IOException("Malformed varint at ${position}")
+    }
+  }
+
+}
@@ -18,6 +18,8 @@ class ChanCompositeCatalogSnapshot(
   private var currentCatalogPage: Int
   @GuardedBy("lock")
   private var endReached: Boolean = false
+  @GuardedBy("lock")
+  private var mergedOrder: List<ChanDescriptor.ThreadDescriptor>? = null
 
   init {
     currentCatalogPage = getStartCatalogPage()
@@ -27,9 +29,19 @@ class ChanCompositeCatalogSnapshot(
     get() = true
   override val catalogThreadDescriptorList: List<ChanDescriptor.ThreadDescriptor>
     get() = lock.read {
-      chanCatalogSnapshots.values.flatMap { chanCatalogSnapshot ->
+      val threadDescriptors = chanCatalogSnapshots.values.flatMap { chanCatalogSnapshot ->
         chanCatalogSnapshot.catalogThreadDescriptorList
       }
+
+      val localMergedOrder = mergedOrder
+        ?: return@read threadDescriptors
+
+      // Threads that were added after the merged order was calculated go to the end
+      val threadDescriptorSet = threadDescriptors.toHashSet()
+      val mergedOrderSet = localMergedOrder.toHashSet()
+
+      return@read localMergedOrder.filter { threadDescriptor -> threadDescriptor in threadDescriptorSet } +
+        threadDescriptors.filter { threadDescriptor -> threadDescriptor !in mergedOrderSet }
     }
   override val catalogThreadDescriptorSet: Set<ChanDescriptor.ThreadDescriptor>
     get() = lock.read { catalogThreadDescriptorList.toSet() }
@@ -42,6 +54,15 @@ class ChanCompositeCatalogSnapshot(
       chanCatalogSnapshots.values.sumOf { chanCatalogSnapshot -> chanCatalogSnapshot.postsCount }
     }
 
+  /**
+   * Makes [catalogThreadDescriptorList] return the threads of all catalogs in the order of
+   * [threadDescriptors] (e.g. merged across catalogs by reply count) instead of one catalog after
+   * another.
+   * */
+  fun updateMergedOrder(threadDescriptors: List<ChanDescriptor.ThreadDescriptor>) {
+    lock.write { mergedOrder = threadDescriptors }
+  }
+
   fun get(catalogDescriptor: ChanDescriptor.CatalogDescriptor): ChanCatalogSnapshot? {
     return lock.read { chanCatalogSnapshots[catalogDescriptor] }
   }
@@ -128,6 +149,7 @@ class ChanCompositeCatalogSnapshot(
     lock.write {
       if (isUnlimitedOrCompositeCatalog) {
         endReached = false
+        mergedOrder = null
         currentCatalogPage = (overridePage - 1).coerceAtLeast(0)
       }
     }
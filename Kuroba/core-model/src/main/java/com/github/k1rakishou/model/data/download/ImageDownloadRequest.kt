@@ -13,7 +13,12 @@ data class ImageDownloadRequest(
   val status: Status = Status.Queued,
   val duplicateFileUri: Uri? = null,
   val duplicatesResolution: ImageSaverV2Options.DuplicatesResolution = ImageSaverV2Options.DuplicatesResolution.AskWhatToDo,
-  val createdOn: DateTime = DateTime.now()
+  val createdOn: DateTime = DateTime.now(),
+  /**
+   * How many bytes of the image have already been downloaded into a partial file and can be resumed
+   * from.
+   * */
+  val downloadedBytes: Long = 0L
 ) {
 
   enum class Status(val rawValue: Int) {
@@ -0,0 +1,13 @@
+package com.github.k1rakishou.model.data.download
+
+/**
+ * MD5 and size of a file in one of the image saver's output directories. [lastModified] and
+ * [fileSize] are used to detect that the file was changed by somebody else since it was hashed.
+ * */
+data class ImageSaverFileHash(
+  val dirUri: String,
+  val fileName: String,
+  val fileMd5: String,
+  val fileSize: Long,
+  val lastModified: Long
+)
@@ -139,7 +139,7 @@ class ChanOriginalPost(
       ", isSage=" + isSage +
       ", postImages=" + postImages.size +
       ", subject='" + subject + '\'' +
-      ", postComment=" + postComment.originalComment().take(64) +
+      ", postComment=" + postComment.originalCommentText().take(64) +
       '}'
   }
 
@@ -287,7 +287,7 @@ open class ChanPost(
       ", postDescriptor=" + postDescriptor +
       ", postImages=" + _postImages.size +
       ", subject='" + subject + '\'' +
-      ", postComment=" + postComment.originalComment().take(64) +
+      ", postComment=" + postComment.originalCommentText().take(64) +
       '}'
   }
 
@@ -98,6 +98,32 @@ class ChanPostImage(
     }
   }
 
+  /**
+   * Same as [copy] but the copy belongs to [postDescriptor] (e.g. a post of an archive that is moved
+   * into the thread of the original site).
+   * */
+  @Synchronized
+  fun copyForPost(postDescriptor: PostDescriptor): ChanPostImage {
+    return ChanPostImage(
+      serverFilename = serverFilename,
+      actualThumbnailUrl = actualThumbnailUrl,
+      spoilerThumbnailUrl = spoilerThumbnailUrl,
+      imageUrl = imageUrl,
+      filename = filename,
+      extension = extension,
+      imageWidth = imageWidth,
+      imageHeight = imageHeight,
+      spoiler = spoiler,
+      isInlined = isInlined,
+      fileSize = size,
+      fileHash = fileHash,
+      type = type
+    ).also { newPostImage ->
+      newPostImage.ownerPostDescriptor = postDescriptor
+      newPostImage.isPrefetched = isPrefetched
+    }
+  }
+
   fun isPlayableType(): Boolean {
     return type === ChanPostImageType.MOVIE || type === ChanPostImageType.GIF
   }
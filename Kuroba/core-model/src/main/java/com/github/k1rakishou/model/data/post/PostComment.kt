@@ -6,12 +6,15 @@ import androidx.core.text.getSpans
 import com.github.k1rakishou.common.MurmurHashUtils
 import com.github.k1rakishou.core_spannable.PostLinkable
 import com.github.k1rakishou.core_spannable.ThemeJsonSpannable
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIrSpannables
 
 // Thread safe
 class PostComment(
   @get:Synchronized
   @set:Synchronized
-  // The original comment without any custom link spannables.
+  // The original comment without any custom link spannables. Freshly parsed comments are stored as
+  // CommentIr which is converted into a Spannable the first time the spans are needed.
   private var originalComment: CharSequence,
   @get:Synchronized
   val originalUnparsedComment: String?,
@@ -43,8 +46,15 @@ class PostComment(
 
   @Synchronized
   fun copy(): PostComment {
+    val originalCommentCopy = if (originalComment is CommentIr) {
+      // Immutable
+      originalComment
+    } else {
+      SpannableString(originalComment)
+    }
+
     return PostComment(
-      SpannableString(originalComment),
+      originalCommentCopy,
       originalUnparsedComment,
       linkables.toList()
     ).also { newPostComment ->
@@ -56,7 +66,7 @@ class PostComment(
 
   @Synchronized
   fun updateComment(updater: (CharSequence) -> CharSequence) {
-    val newComment = updater(originalComment)
+    val newComment = updater(originalComment())
 
     this._updatedComment = newComment
     this._updatedCommentHash = MurmurHashUtils.murmurhash3_x64_128(newComment)
@@ -65,7 +75,7 @@ class PostComment(
   @Synchronized
   fun comment(): CharSequence {
     if (_updatedComment == null) {
-      return originalComment
+      return originalComment()
     }
 
     return _updatedComment!!
@@ -73,6 +83,33 @@ class PostComment(
 
   @Synchronized
   fun originalComment(): CharSequence {
+    val comment = originalComment
+    if (comment is CommentIr) {
+      val materializedComment = CommentIrSpannables.toSpannable(comment)
+      originalComment = materializedComment
+
+      return materializedComment
+    }
+
+    return comment
+  }
+
+  /**
+   * Same as [comment] but does not create the Android spans of the original comment. Use it when
+   * only the text is needed (filtering, searching etc).
+   * */
+  @Synchronized
+  fun commentText(): CharSequence {
+    return _updatedComment ?: originalComment
+  }
+
+  /**
+   * The original comment without creating its Android spans, either a [CommentIr] or a Spannable.
+   * Use it when only the text is needed or to persist the comment (ParcelableSpannableStringMapper
+   * handles both).
+   * */
+  @Synchronized
+  fun originalCommentText(): CharSequence {
     return originalComment
   }
 
@@ -127,13 +164,22 @@ class PostComment(
     if (javaClass != other?.javaClass) return false
 
     other as PostComment
-    if (originalComment != other.originalComment) return false
+
+    val thisOriginalComment = originalCommentText()
+    val otherOriginalComment = other.originalCommentText()
+
+    if (thisOriginalComment is CommentIr && otherOriginalComment is CommentIr) {
+      return thisOriginalComment == otherOriginalComment
+    }
+
+    if (originalComment() != other.originalComment()) return false
 
     return true
   }
 
   override fun hashCode(): Int {
-    return originalComment.hashCode()
+    // Text only so that it's the same before and after the comment is materialized
+    return originalCommentHash.hashCode()
   }
 
 }
\ No newline at end of file
@@ -1,13 +1,14 @@
 package com.github.k1rakishou.model.data.post
 
-import android.text.Spannable
 import android.text.SpannableString
 import com.github.k1rakishou.core_spannable.PostLinkable
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr
 
 // Thread safe
 class PostCommentBuilder(
   private var unparsedComment: String? = null,
-  private var parsedComment: Spannable? = null,
+  // Either a CommentIr or a Spannable
+  private var parsedComment: CharSequence? = null,
   private val postLinkables: MutableSet<PostLinkable> = mutableSetOf()
 ) {
   var commentUpdateCounter: Int = 0
@@ -20,7 +21,7 @@ class PostCommentBuilder(
   }
 
   @Synchronized
-  fun setParsedComment(comment: Spannable) {
+  fun setParsedComment(comment: CharSequence) {
     this.parsedComment = comment
   }
 
@@ -62,7 +63,8 @@ class PostCommentBuilder(
 
   @Synchronized
   fun copy(): PostCommentBuilder {
-    val parsedCommentCopy = if (parsedComment == null) {
+    val parsedCommentCopy = if (parsedComment == null || parsedComment is CommentIr) {
+      // CommentIr is immutable
       parsedComment
     } else {
       SpannableString(parsedComment)
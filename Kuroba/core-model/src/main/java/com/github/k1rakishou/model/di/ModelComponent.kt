@@ -18,6 +18,7 @@ import com.github.k1rakishou.model.repository.CompositeCatalogRepository
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository
 import com.github.k1rakishou.model.repository.HistoryNavigationRepository
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository
+import com.github.k1rakishou.model.repository.ImageSaverFileHashRepository
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import com.github.k1rakishou.model.repository.SiteRepository
@@ -58,6 +59,7 @@ interface ModelComponent {
   fun getChanPostImageRepository(): ChanPostImageRepository
   fun getChanThreadsCache(): ChanThreadsCache
   fun getImageDownloadRequestRepository(): ImageDownloadRequestRepository
+  fun getImageSaverFileHashRepository(): ImageSaverFileHashRepository
   fun getThreadDownloadRepository(): ThreadDownloadRepository
   fun getChanCatalogSnapshotCache(): ChanCatalogSnapshotCache
   fun getCompositeCatalogRepository(): CompositeCatalogRepository
@@ -21,6 +21,7 @@ import com.github.k1rakishou.model.repository.CompositeCatalogRepository
 import com.github.k1rakishou.model.repository.DatabaseMetaRepository
 import com.github.k1rakishou.model.repository.HistoryNavigationRepository
 import com.github.k1rakishou.model.repository.ImageDownloadRequestRepository
+import com.github.k1rakishou.model.repository.ImageSaverFileHashRepository
 import com.github.k1rakishou.model.repository.MediaServiceLinkExtraContentRepository
 import com.github.k1rakishou.model.repository.SeenPostRepository
 import com.github.k1rakishou.model.repository.SiteRepository
@@ -43,6 +44,7 @@ import com.github.k1rakishou.model.source.local.ChanThreadViewableInfoLocalSourc
 import com.github.k1rakishou.model.source.local.CompositeCatalogLocalSource
 import com.github.k1rakishou.model.source.local.DatabaseMetaLocalSource
 import com.github.k1rakishou.model.source.local.ImageDownloadRequestLocalSource
+import com.github.k1rakishou.model.source.local.ImageSaverFileHashLocalSource
 import com.github.k1rakishou.model.source.local.MediaServiceLinkExtraContentLocalSource
 import com.github.k1rakishou.model.source.local.NavHistoryLocalSource
 import com.github.k1rakishou.model.source.local.SeenPostLocalSource
@@ -334,6 +336,14 @@ class ModelModule {
     return ImageDownloadRequestLocalSource(database)
   }
 
+  @Singleton
+  @Provides
+  fun provideImageSaverFileHashLocalSource(
+    database: KurobaDatabase
+  ): ImageSaverFileHashLocalSource {
+    return ImageSaverFileHashLocalSource(database)
+  }
+
   @Singleton
   @Provides
   fun provideThreadDownloadLocalSource(
@@ -615,6 +625,20 @@ class ModelModule {
     )
   }
 
+  @Singleton
+  @Provides
+  fun provideImageSaverFileHashRepository(
+    database: KurobaDatabase,
+    dependencies: ModelComponent.Dependencies,
+    localSource: ImageSaverFileHashLocalSource
+  ): ImageSaverFileHashRepository {
+    return ImageSaverFileHashRepository(
+      database,
+      dependencies.coroutineScope,
+      localSource
+    )
+  }
+
   @Singleton
   @Provides
   fun provideThreadDownloadRepository(
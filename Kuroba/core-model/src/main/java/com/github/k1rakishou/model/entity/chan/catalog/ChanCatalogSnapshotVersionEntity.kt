@@ -0,0 +1,70 @@
+package com.github.k1rakishou.model.entity.chan.catalog
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.ForeignKey
+import com.github.k1rakishou.model.data.catalog.CatalogSnapshotDeltaCodec
+import com.github.k1rakishou.model.entity.chan.board.ChanBoardIdEntity
+
+/**
+ * One version of a board's catalog thread order. [payload] is either a keyframe or a delta from the
+ * previous version (see [CatalogSnapshotDeltaCodec]).
+ * */
+@Entity(
+  tableName = ChanCatalogSnapshotVersionEntity.TABLE_NAME,
+  primaryKeys = [
+    ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME,
+    ChanCatalogSnapshotVersionEntity.VERSION_COLUMN_NAME
+  ],
+  foreignKeys = [
+    ForeignKey(
+      entity = ChanBoardIdEntity::class,
+      parentColumns = [ChanBoardIdEntity.BOARD_ID_COLUMN_NAME],
+      childColumns = [ChanCatalogSnapshotVersionEntity.OWNER_BOARD_ID_COLUMN_NAME],
+      onUpdate = ForeignKey.CASCADE,
+      onDelete = ForeignKey.CASCADE
+    )
+  ]
+)
+data class ChanCatalogSnapshotVersionEntity(
+  @ColumnInfo(name = OWNER_BOARD_ID_COLUMN_NAME)
+  val ownerBoardId: Long,
+  @ColumnInfo(name = VERSION_COLUMN_NAME)
+  val version: Long,
+  @ColumnInfo(name = IS_KEYFRAME_COLUMN_NAME)
+  val isKeyframe: Boolean,
+  @ColumnInfo(name = PAYLOAD_COLUMN_NAME, typeAffinity = ColumnInfo.BLOB)
+  val payload: ByteArray
+) {
+
+  override fun equals(other: Any?): Boolean {
+    if (this === other) return true
+    if (javaClass != other?.javaClass) return false
+
+    other as ChanCatalogSnapshotVersionEntity
+
+    if (ownerBoardId != other.ownerBoardId) return false
+    if (version != other.version) return false
+    if (isKeyframe != other.isKeyframe) return false
+    if (!payload.contentEquals(other.payload)) return false
+
+    return true
+  }
+
+  override fun hashCode(): Int {
+    var result = ownerBoardId.hashCode()
+    result = 31 * result + version.hashCode()
+    result = 31 * result + isKeyframe.hashCode()
+    result = 31 * result + payload.contentHashCode()
+    return result
+  }
+
+  companion object {
+    const val TABLE_NAME = "chan_catalog_snapshot_version"
+
+    const val OWNER_BOARD_ID_COLUMN_NAME = "owner_board_id"
+    const val VERSION_COLUMN_NAME = "version"
+    const val IS_KEYFRAME_COLUMN_NAME = "is_keyframe"
+    const val PAYLOAD_COLUMN_NAME = "payload"
+  }
+}
@@ -42,7 +42,9 @@ data class ImageDownloadRequestEntity(
   @ColumnInfo(name = DUPLICATES_RESOLUTION_COLUMN_NAME)
   val duplicatesResolution: Int,
   @ColumnInfo(name = CREATED_ON_COLUMN_NAME)
-  val createdOn: DateTime
+  val createdOn: DateTime,
+  @ColumnInfo(name = DOWNLOADED_BYTES_COLUMN_NAME, defaultValue = "0")
+  val downloadedBytes: Long
 ) {
 
   fun isQueued(): Boolean {
@@ -60,5 +62,6 @@ data class ImageDownloadRequestEntity(
     const val DUPLICATE_FILE_URI_COLUMN_NAME = "duplicate_file_uri"
     const val DUPLICATES_RESOLUTION_COLUMN_NAME = "duplicates_resolution"
     const val CREATED_ON_COLUMN_NAME = "created_on"
+    const val DOWNLOADED_BYTES_COLUMN_NAME = "downloaded_bytes"
   }
 }
\ No newline at end of file
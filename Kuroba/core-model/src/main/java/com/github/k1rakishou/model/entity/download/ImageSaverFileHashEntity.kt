@@ -0,0 +1,46 @@
+package com.github.k1rakishou.model.entity.download
+
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.Index
+
+@Entity(
+  tableName = ImageSaverFileHashEntity.TABLE_NAME,
+  primaryKeys = [
+    ImageSaverFileHashEntity.DIR_URI_COLUMN_NAME,
+    ImageSaverFileHashEntity.FILE_NAME_COLUMN_NAME
+  ],
+  indices = [
+    Index(
+      value = [
+        ImageSaverFileHashEntity.DIR_URI_COLUMN_NAME,
+        ImageSaverFileHashEntity.FILE_MD5_COLUMN_NAME,
+        ImageSaverFileHashEntity.FILE_SIZE_COLUMN_NAME
+      ],
+      unique = false
+    )
+  ]
+)
+data class ImageSaverFileHashEntity(
+  @ColumnInfo(name = DIR_URI_COLUMN_NAME)
+  val dirUri: String,
+  @ColumnInfo(name = FILE_NAME_COLUMN_NAME)
+  val fileName: String,
+  @ColumnInfo(name = FILE_MD5_COLUMN_NAME)
+  val fileMd5: String,
+  @ColumnInfo(name = FILE_SIZE_COLUMN_NAME)
+  val fileSize: Long,
+  @ColumnInfo(name = LAST_MODIFIED_COLUMN_NAME)
+  val lastModified: Long
+) {
+
+  companion object {
+    const val TABLE_NAME = "image_saver_file_hash_entity"
+
+    const val DIR_URI_COLUMN_NAME = "dir_uri"
+    const val FILE_NAME_COLUMN_NAME = "file_name"
+    const val FILE_MD5_COLUMN_NAME = "file_md5"
+    const val FILE_SIZE_COLUMN_NAME = "file_size"
+    const val LAST_MODIFIED_COLUMN_NAME = "last_modified"
+  }
+}
@@ -1,6 +1,7 @@
 package com.github.k1rakishou.model.mapper
 
 import android.text.SpannableString
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr
 import com.github.k1rakishou.model.data.post.ChanOriginalPost
 import com.github.k1rakishou.model.data.post.ChanPost
 import com.github.k1rakishou.model.data.post.ChanPostBuilder
@@ -66,8 +67,11 @@ object ChanPostMapper {
   fun fromPostBuilder(chanPostBuilder: ChanPostBuilder): ChanPost {
     val postDescriptor = chanPostBuilder.postDescriptor
 
+    val comment = chanPostBuilder.postCommentBuilder.getComment()
+
     val postComment = PostComment(
-      originalComment = SpannableString(chanPostBuilder.postCommentBuilder.getComment()),
+      // CommentIr is immutable and its spans are only created once the post is displayed
+      originalComment = if (comment is CommentIr) comment else SpannableString(comment),
       originalUnparsedComment = chanPostBuilder.postCommentBuilder.getUnparsedComment(),
       linkables = chanPostBuilder.postCommentBuilder.getAllLinkables()
     )
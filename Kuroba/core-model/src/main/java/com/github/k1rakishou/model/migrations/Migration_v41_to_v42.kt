@@ -0,0 +1,14 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v41_to_v42 : Migration(41, 42) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL("ALTER TABLE image_download_request_entity ADD COLUMN downloaded_bytes INTEGER NOT NULL DEFAULT 0")
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+
+class Migration_v42_to_v43 : Migration(42, 43) {
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL("""
+        CREATE TABLE IF NOT EXISTS `image_saver_file_hash_entity` 
+        (
+          `dir_uri` TEXT NOT NULL, 
+          `file_name` TEXT NOT NULL, 
+          `file_md5` TEXT NOT NULL, 
+          `file_size` INTEGER NOT NULL, 
+          `last_modified` INTEGER NOT NULL, 
+          PRIMARY KEY(`dir_uri`, `file_name`)
+        )
+      """.trimIndent())
+
+      database.execSQL("CREATE INDEX IF NOT EXISTS `index_image_saver_file_hash_entity_dir_uri_file_md5_file_size` ON `image_saver_file_hash_entity` (`dir_uri`, `file_md5`, `file_size`)")
+    }
+  }
+
+}
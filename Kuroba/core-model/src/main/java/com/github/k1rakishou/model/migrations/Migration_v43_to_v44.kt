@@ -0,0 +1,66 @@
+package com.github.k1rakishou.model.migrations
+
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import com.github.k1rakishou.model.data.catalog.CatalogSnapshotDeltaCodec
+
+class Migration_v43_to_v44 : Migration(43, 44) {
+
+  private val insertQuery = "INSERT INTO chan_catalog_snapshot_version (owner_board_id, version, is_keyframe, payload) VALUES(?, ?, ?, ?)"
+
+  override fun migrate(database: SupportSQLiteDatabase) {
+    database.doWithoutForeignKeys {
+      database.execSQL("""
+        CREATE TABLE IF NOT EXISTS `chan_catalog_snapshot_version`
+        (
+          `owner_board_id` INTEGER NOT NULL,
+          `version` INTEGER NOT NULL,
+          `is_keyframe` INTEGER NOT NULL,
+          `payload` BLOB NOT NULL,
+          PRIMARY KEY(`owner_board_id`, `version`),
+          FOREIGN KEY(`owner_board_id`) REFERENCES `chan_board_id`(`board_id`) ON UPDATE CASCADE ON DELETE CASCADE
+        )
+      """.trimIndent())
+
+      database.execSQL("""
+        CREATE TABLE IF NOT EXISTS `chan_catalog_snapshot_visit`
+        (
+          `owner_board_id` INTEGER NOT NULL,
+          `visited_version` INTEGER NOT NULL,
+          PRIMARY KEY(`owner_board_id`),
+          FOREIGN KEY(`owner_board_id`) REFERENCES `chan_board_id`(`board_id`) ON UPDATE CASCADE ON DELETE CASCADE
+        )
+      """.trimIndent())
+
+      // Every old snapshot becomes the first keyframe of its board
+      val threadNosByBoardId = linkedMapOf<Long, MutableList<Long>>()
+
+      database.query("SELECT owner_board_id, thread_no FROM `chan_catalog_snapshot` ORDER BY owner_board_id, thread_order")
+        .use { cursor ->
+          val ownerBoardIdIndex = cursor.getColumnIndexOrThrow("owner_board_id")
+          val threadNoIndex = cursor.getColumnIndexOrThrow("thread_no")
+
+          while (cursor.moveToNext()) {
+            threadNosByBoardId
+              .getOrPut(cursor.getLong(ownerBoardIdIndex)) { mutableListOf() }
+              .add(cursor.getLong(threadNoIndex))
+          }
+        }
+
+      val statement = database.compileStatement(insertQuery)
+
+      threadNosByBoardId.forEach { (ownerBoardId, threadNos) ->
+        statement.bindLong(1, ownerBoardId)
+        statement.bindLong(2, 1L)
+        statement.bindLong(3, 1L)
+        statement.bindBlob(4, CatalogSnapshotDeltaCodec.encodeKeyframe(threadNos))
+
+        statement.executeInsert()
+        statement.clearBindings()
+      }
+
+      database.dropTable("chan_catalog_snapshot")
+    }
+  }
+
+}
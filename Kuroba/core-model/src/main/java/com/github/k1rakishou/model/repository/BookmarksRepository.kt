@@ -4,6 +4,7 @@ import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.bookmark.ThreadBookmark
+import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
 import com.github.k1rakishou.model.source.local.ThreadBookmarkLocalSource
 import com.github.k1rakishou.model.util.ensureBackgroundThread
 import kotlinx.coroutines.CoroutineScope
@@ -52,4 +53,22 @@ class BookmarksRepository(
       }
     }
   }
-}
\ No newline at end of file
+
+  @OptIn(ExperimentalTime::class)
+  suspend fun persistChanges(
+    changedBookmarks: Collection<ThreadBookmark>,
+    deletedBookmarks: Collection<ChanDescriptor.ThreadDescriptor>
+  ): ModularResult<Int> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        val (result, duration) = measureTimedValue {
+          return@measureTimedValue localSource.persistChanges(changedBookmarks, deletedBookmarks)
+        }
+
+        Logger.d(TAG, "persistChanges(changed=${changedBookmarks.size}, deleted=${deletedBookmarks.size}) " +
+          "wrote ${result} bookmarks, took $duration")
+        return@tryWithTransaction result
+      }
+    }
+  }
+}
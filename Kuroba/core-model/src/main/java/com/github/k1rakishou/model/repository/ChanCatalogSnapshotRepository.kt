@@ -5,6 +5,7 @@ import com.github.k1rakishou.common.ModularResult
 import com.github.k1rakishou.common.hashSetWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.catalog.CatalogSnapshotChanges
 import com.github.k1rakishou.model.data.catalog.ChanCatalogSnapshot
 import com.github.k1rakishou.model.data.catalog.IChanCatalogSnapshot
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
@@ -76,4 +77,22 @@ class ChanCatalogSnapshotRepository(
     }
   }
 
+  /**
+   * Returns how the catalog changed (new, bumped and dropped threads) since the previous call of this
+   * method for the same catalog and remembers the current version as the visited one. Returns null
+   * when the catalog is visited for the first time (or the previous visit was too long ago).
+   * */
+  suspend fun consumeCatalogChangesSinceLastVisit(
+    catalogDescriptor: ChanDescriptor.ICatalogDescriptor
+  ): ModularResult<CatalogSnapshotChanges?> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        val catalogSnapshotChanges = localSource.getCatalogChangesSinceLastVisit(catalogDescriptor)
+        localSource.markCatalogVisited(catalogDescriptor)
+
+        return@tryWithTransaction catalogSnapshotChanges
+      }
+    }
+  }
+
 }
\ No newline at end of file
@@ -518,6 +518,33 @@ class ChanPostRepository(
     }
   }
 
+  suspend fun getThreadPostDatabaseIds(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor
+  ): ModularResult<List<Long>> {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+    ensureBackgroundThread()
+
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction localSource.getThreadPostDatabaseIds(threadDescriptor)
+      }
+    }
+  }
+
+  suspend fun getThreadPostsByDatabaseIds(
+    threadDescriptor: ChanDescriptor.ThreadDescriptor,
+    postDatabaseIds: Collection<Long>
+  ): ModularResult<List<ChanPost>> {
+    check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
+    ensureBackgroundThread()
+
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction localSource.getThreadPostsByDatabaseIds(threadDescriptor, postDatabaseIds)
+      }
+    }
+  }
+
   suspend fun countThreadPosts(threadDatabaseId: Long): ModularResult<Int> {
     check(suspendableInitializer.isInitialized()) { "ChanPostRepository is not initialized yet!" }
 
@@ -5,6 +5,7 @@ import com.github.k1rakishou.model.KurobaDatabase
 import com.github.k1rakishou.model.data.download.ImageDownloadRequest
 import com.github.k1rakishou.model.source.local.ImageDownloadRequestLocalSource
 import kotlinx.coroutines.CoroutineScope
+import okhttp3.HttpUrl
 import java.util.concurrent.atomic.AtomicBoolean
 
 class ImageDownloadRequestRepository(
@@ -81,6 +82,18 @@ class ImageDownloadRequestRepository(
     }
   }
 
+  suspend fun updateDownloadedBytes(
+    uniqueId: String,
+    imageFullUrl: HttpUrl,
+    downloadedBytes: Long
+  ): ModularResult<Unit> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction imageDownloadRequestLocalSource.updateDownloadedBytes(uniqueId, imageFullUrl, downloadedBytes)
+      }
+    }
+  }
+
   suspend fun deleteByUniqueId(uniqueId: String): ModularResult<Unit> {
     return applicationScope.dbCall {
       return@dbCall tryWithTransaction {
@@ -0,0 +1,51 @@
+package com.github.k1rakishou.model.repository
+
+import com.github.k1rakishou.common.ModularResult
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.download.ImageSaverFileHash
+import com.github.k1rakishou.model.source.local.ImageSaverFileHashLocalSource
+import kotlinx.coroutines.CoroutineScope
+
+class ImageSaverFileHashRepository(
+  database: KurobaDatabase,
+  private val applicationScope: CoroutineScope,
+  private val imageSaverFileHashLocalSource: ImageSaverFileHashLocalSource
+) : AbstractRepository(database) {
+
+  suspend fun select(dirUri: String, fileName: String): ModularResult<ImageSaverFileHash?> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction imageSaverFileHashLocalSource.select(dirUri, fileName)
+      }
+    }
+  }
+
+  suspend fun selectByHash(
+    dirUri: String,
+    fileMd5: String,
+    fileSize: Long
+  ): ModularResult<List<ImageSaverFileHash>> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction imageSaverFileHashLocalSource.selectByHash(dirUri, fileMd5, fileSize)
+      }
+    }
+  }
+
+  suspend fun insertOrReplace(imageSaverFileHash: ImageSaverFileHash): ModularResult<Unit> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction imageSaverFileHashLocalSource.insertOrReplace(imageSaverFileHash)
+      }
+    }
+  }
+
+  suspend fun delete(dirUri: String, fileName: String): ModularResult<Unit> {
+    return applicationScope.dbCall {
+      return@dbCall tryWithTransaction {
+        return@tryWithTransaction imageSaverFileHashLocalSource.delete(dirUri, fileName)
+      }
+    }
+  }
+
+}
@@ -1,13 +1,19 @@
 package com.github.k1rakishou.model.source.local
 
+import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.catalog.CatalogSnapshotChanges
+import com.github.k1rakishou.model.data.catalog.CatalogSnapshotDeltaCodec
 import com.github.k1rakishou.model.data.catalog.ChanCatalogSnapshot
 import com.github.k1rakishou.model.data.catalog.ChanCompositeCatalogSnapshot
 import com.github.k1rakishou.model.data.catalog.IChanCatalogSnapshot
+import com.github.k1rakishou.model.data.descriptor.BoardDescriptor
 import com.github.k1rakishou.model.data.descriptor.ChanDescriptor
-import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotEntity
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotVersionEntity
+import com.github.k1rakishou.model.entity.chan.catalog.ChanCatalogSnapshotVisitEntity
 import com.github.k1rakishou.model.source.cache.ChanCatalogSnapshotCache
 import com.github.k1rakishou.model.source.cache.ChanDescriptorCache
+import java.io.IOException
 
 class ChanCatalogSnapshotLocalSource(
   database: KurobaDatabase,
@@ -37,34 +43,88 @@ class ChanCatalogSnapshotLocalSource(
 
     catalogSnapshot.mergeWith(chanCatalogSnapshot)
 
-    val boardDescriptors = when (val catalogDescriptor = catalogSnapshot.catalogDescriptor) {
-      is ChanDescriptor.CatalogDescriptor -> {
-        listOf(catalogDescriptor.boardDescriptor)
+    val boardDescriptors = getBoardDescriptors(catalogSnapshot.catalogDescriptor)
+
+    boardDescriptors.forEach { boardDescriptor ->
+      val boardId = chanDescriptorCache.getBoardIdByBoardDescriptor(boardDescriptor)
+        ?: return@forEach
+
+      val threadNos = catalogSnapshot.catalogThreadDescriptorList
+        .filter { threadDescriptor -> threadDescriptor.boardDescriptor == boardDescriptor }
+        .map { threadDescriptor -> threadDescriptor.threadNo }
+
+      if (threadNos.isEmpty()) {
+        // Nothing was loaded for this board (yet), this is not a new version of its catalog
+        return@forEach
       }
-      is ChanDescriptor.CompositeCatalogDescriptor -> {
-        catalogDescriptor.catalogDescriptors.map { descriptor -> descriptor.boardDescriptor }
+
+      storeCatalogVersion(boardId.id, threadNos)
+    }
+  }
+
+  /**
+   * Returns how the catalog changed since the last time [markCatalogVisited] was called for it.
+   * Returns null if the catalog was never visited or the visited version is too old and was already
+   * removed.
+   * */
+  suspend fun getCatalogChangesSinceLastVisit(
+    catalogDescriptor: ChanDescriptor.ICatalogDescriptor
+  ): CatalogSnapshotChanges? {
+    ensureInTransaction()
+
+    var catalogSnapshotChanges: CatalogSnapshotChanges? = null
+
+    getBoardDescriptors(catalogDescriptor).forEach { boardDescriptor ->
+      val boardId = chanDescriptorCache.getBoardIdByBoardDescriptor(boardDescriptor)
+        ?: return@forEach
+
+      val visitedVersion = chanCatalogSnapshotDao.selectVisit(boardId.id)?.visitedVersion
+        ?: return@forEach
+
+      val latestCatalogVersion = loadLatestCatalogVersion(boardId.id)
+        ?: return@forEach
+
+      if (latestCatalogVersion.version == visitedVersion) {
+        catalogSnapshotChanges = (catalogSnapshotChanges ?: CatalogSnapshotChanges.EMPTY)
+        return@forEach
       }
-      else -> {
-        error("Unknown catalogDescriptor type: ${catalogDescriptor.javaClass.simpleName}")
+
+      val visitedThreadNos = loadCatalogVersion(boardId.id, visitedVersion)
+        ?: return@forEach
+
+      val diff = CatalogSnapshotDeltaCodec.diff(visitedThreadNos, latestCatalogVersion.threadNos)
+      val toThreadDescriptors = { threadNos: List<Long> ->
+        threadNos.map { threadNo -> ChanDescriptor.ThreadDescriptor.create(boardDescriptor, threadNo) }
       }
-    }.toSet()
 
-    boardDescriptors.forEach { boardDescriptor ->
+      val boardCatalogSnapshotChanges = CatalogSnapshotChanges(
+        newThreads = toThreadDescriptors(diff.inserted),
+        bumpedThreads = toThreadDescriptors(diff.bumped),
+        droppedThreads = toThreadDescriptors(diff.removed)
+      )
+
+      catalogSnapshotChanges = (catalogSnapshotChanges ?: CatalogSnapshotChanges.EMPTY) + boardCatalogSnapshotChanges
+    }
+
+    return catalogSnapshotChanges
+  }
+
+  suspend fun markCatalogVisited(catalogDescriptor: ChanDescriptor.ICatalogDescriptor) {
+    ensureInTransaction()
+
+    getBoardDescriptors(catalogDescriptor).forEach { boardDescriptor ->
       val boardId = chanDescriptorCache.getBoardIdByBoardDescriptor(boardDescriptor)
         ?: return@forEach
 
-      val chanCatalogSnapshotEntityList = catalogSnapshot.catalogThreadDescriptorList
-        .filter { threadDescriptor -> threadDescriptor.boardDescriptor == boardDescriptor }
-        .mapIndexed { order, threadDescriptor ->
-          return@mapIndexed ChanCatalogSnapshotEntity(
-            boardId.id,
-            threadDescriptor.threadNo,
-            order
-          )
-        }
+      val latestVersion = chanCatalogSnapshotDao.selectLatestVersion(boardId.id)
+        ?: return@forEach
 
-      chanCatalogSnapshotDao.deleteManyByBoardId(boardId.id)
-      chanCatalogSnapshotDao.insertMany(chanCatalogSnapshotEntityList)
+      chanCatalogSnapshotDao.insertOrReplaceVisit(
+        ChanCatalogSnapshotVisitEntity(
+          ownerBoardId = boardId.id,
+          visitedVersion = latestVersion
+        )
+      )
     }
   }
 
@@ -79,14 +139,7 @@ class ChanCatalogSnapshotLocalSource(
       return false
     }
 
-    val boardDescriptors = when (catalogDescriptor) {
-      is ChanDescriptor.CatalogDescriptor -> {
-        listOf(catalogDescriptor.boardDescriptor)
-      }
-      is ChanDescriptor.CompositeCatalogDescriptor -> {
-        catalogDescriptor.catalogDescriptors.map { descriptor -> descriptor.boardDescriptor }
-      }
-    }.toSet()
+    val boardDescriptors = getBoardDescriptors(catalogDescriptor)
 
     var success = false
 
@@ -94,16 +147,11 @@ class ChanCatalogSnapshotLocalSource(
       val boardId = chanDescriptorCache.getBoardIdByBoardDescriptor(boardDescriptor)
         ?: return@forEach
 
-      val chanCatalogSnapshotEntityList = chanCatalogSnapshotDao.selectManyByBoardIdOrdered(boardId.id)
-      if (chanCatalogSnapshotEntityList.isEmpty()) {
-        return@forEach
-      }
+      val latestCatalogVersion = loadLatestCatalogVersion(boardId.id)
+        ?: return@forEach
 
-      val chanCatalogSnapshotEntryList = chanCatalogSnapshotEntityList.map { chanCatalogSnapshotEntity ->
-        return@map ChanDescriptor.ThreadDescriptor.create(
-          boardDescriptor,
-          chanCatalogSnapshotEntity.threadNo
-        )
+      val chanCatalogSnapshotEntryList = latestCatalogVersion.threadNos.map { threadNo ->
+        return@map ChanDescriptor.ThreadDescriptor.create(boardDescriptor, threadNo)
       }
 
       if (chanCatalogSnapshotEntryList.isEmpty()) {
@@ -141,4 +189,142 @@ class ChanCatalogSnapshotLocalSource(
     return chanCatalogSnapshotCache.get(catalogDescriptor) as ChanCatalogSnapshot?
   }
 
+  /**
+   * Stores [threadNos] as a new version of the board's catalog. Most of the time it's just a delta
+   * from the previous version (one small row instead of rewriting one row per thread). Every
+   * [KEYFRAME_INTERVAL] versions a keyframe is stored instead, which is also when the versions that
+   * are too old to be retained get removed.
+   * */
+  private suspend fun storeCatalogVersion(ownerBoardId: Long, threadNos: List<Long>) {
+    val latestCatalogVersion = loadLatestCatalogVersion(ownerBoardId)
+    if (latestCatalogVersion != null && latestCatalogVersion.threadNos == threadNos) {
+      return
+    }
+
+    val newVersion = if (latestCatalogVersion != null) {
+      latestCatalogVersion.version + 1
+    } else {
+      // There may still be versions that we failed to decode so we can't start from the beginning
+      (chanCatalogSnapshotDao.selectLatestVersion(ownerBoardId) ?: 0L) + 1
+    }
+
+    val keyframePayload = CatalogSnapshotDeltaCodec.encodeKeyframe(threadNos)
+    var payload = keyframePayload
+
+    if (latestCatalogVersion != null && latestCatalogVersion.versionsSinceKeyframe + 1 < KEYFRAME_INTERVAL) {
+      val deltaPayload = CatalogSnapshotDeltaCodec.encodeDelta(latestCatalogVersion.threadNos, threadNos)
+
+      // The catalog may have changed completely (e.g. when it wasn't opened for a long time) in
+      // which case the delta is not any smaller
+      if (deltaPayload.size < keyframePayload.size) {
+        payload = deltaPayload
+      }
+    }
+
+    val isKeyframe = payload === keyframePayload
+
+    chanCatalogSnapshotDao.insert(
+      ChanCatalogSnapshotVersionEntity(
+        ownerBoardId = ownerBoardId,
+        version = newVersion,
+        isKeyframe = isKeyframe,
+        payload = payload
+      )
+    )
+
+    if (isKeyframe) {
+      removeOldCatalogVersions(ownerBoardId, newVersion)
+    }
+  }
+
+  /**
+   * Removes everything that is not required to decode the last [MAX_RETAINED_VERSIONS] versions.
+   * */
+  private suspend fun removeOldCatalogVersions(ownerBoardId: Long, latestVersion: Long) {
+    val oldestRetainedVersion = latestVersion - MAX_RETAINED_VERSIONS + 1
+    if (oldestRetainedVersion <= 1L) {
+      return
+    }
+
+    val keyframeVersion = chanCatalogSnapshotDao.selectKeyframeVersionAtOrBefore(ownerBoardId, oldestRetainedVersion)
+      ?: return
+
+    chanCatalogSnapshotDao.deleteOlderThan(ownerBoardId, keyframeVersion)
+  }
+
+  private suspend fun loadLatestCatalogVersion(ownerBoardId: Long): CatalogVersion? {
+    return decodeKeyframeChain(ownerBoardId, chanCatalogSnapshotDao.selectLatestKeyframeChain(ownerBoardId))
+  }
+
+  private suspend fun loadCatalogVersion(ownerBoardId: Long, version: Long): List<Long>? {
+    val catalogVersion = decodeKeyframeChain(
+      ownerBoardId = ownerBoardId,
+      keyframeChain = chanCatalogSnapshotDao.selectKeyframeChain(ownerBoardId, version)
+    )
+
+    if (catalogVersion == null || catalogVersion.version != version) {
+      return null
+    }
+
+    return catalogVersion.threadNos
+  }
+
+  private fun decodeKeyframeChain(
+    ownerBoardId: Long,
+    keyframeChain: List<ChanCatalogSnapshotVersionEntity>
+  ): CatalogVersion? {
+    if (keyframeChain.isEmpty()) {
+      return null
+    }
+
+    var threadNos: List<Long>? = null
+    var prevVersion: Long? = null
+
+    try {
+      keyframeChain.forEach { versionEntity ->
+        if (prevVersion != null && versionEntity.version != prevVersion!! + 1) {
+          throw IOException("Missing version ${prevVersion!! + 1}")
+        }
+
+        threadNos = CatalogSnapshotDeltaCodec.decode(threadNos, versionEntity.payload)
+        prevVersion = versionEntity.version
+      }
+    } catch (error: IOException) {
+      Logger.e(TAG, "decodeKeyframeChain($ownerBoardId) failed to decode versions " +
+        "${keyframeChain.first().version}..${keyframeChain.last().version}", error)
+      return null
+    }
+
+    return CatalogVersion(
+      version = keyframeChain.last().version,
+      threadNos = threadNos!!,
+      versionsSinceKeyframe = keyframeChain.size - 1
+    )
+  }
+
+  private fun getBoardDescriptors(catalogDescriptor: ChanDescriptor.ICatalogDescriptor): Set<BoardDescriptor> {
+    return when (catalogDescriptor) {
+      is ChanDescriptor.CatalogDescriptor -> {
+        listOf(catalogDescriptor.boardDescriptor)
+      }
+      is ChanDescriptor.CompositeCatalogDescriptor -> {
+        catalogDescriptor.catalogDescriptors.map { descriptor -> descriptor.boardDescriptor }
+      }
+      else -> {
+        error("Unknown catalogDescriptor type: ${catalogDescriptor.javaClass.simpleName}")
+      }
+    }.toSet()
+  }
+
+  private class CatalogVersion(
+    val version: Long,
+    val threadNos: List<Long>,
+    val versionsSinceKeyframe: Int
+  )
+
+  companion object {
+    const val KEYFRAME_INTERVAL = 16
+    const val MAX_RETAINED_VERSIONS = 64
+  }
+
 }
\ No newline at end of file
@@ -232,7 +232,7 @@ class ChanPostLocalSource(
       val chanPost = chanPostList[index]
 
       val parcelableSpannableString = ParcelableSpannableStringMapper
-        .toParcelableSpannableString(chanPost.postComment.originalComment())
+        .toParcelableSpannableString(chanPost.postComment.originalCommentText())
         ?: return@mapIndexedNotNull null
 
       return@mapIndexedNotNull TextSpanMapper.toEntity(
@@ -404,10 +404,7 @@ class ChanPostLocalSource(
     }
 
     // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    val textSpansGroupedByPostId = selectTextSpansGroupedByPostId(postIdList)
 
     val postAdditionalData = getPostsAdditionalData(postIdList)
 
@@ -473,6 +470,47 @@ class ChanPostLocalSource(
     chanPostFullList.add(originalPost)
     chanPostFullList.addAll(threadPosts)
 
+    return mapChanPostFullList(descriptor, chanThreadEntity, chanPostFullList)
+  }
+
+  /**
+   * Returns database ids of all posts of a thread sorted by post no (so that the OP goes first)
+   * without loading the posts themselves.
+   * */
+  suspend fun getThreadPostDatabaseIds(descriptor: ChanDescriptor.ThreadDescriptor): List<Long> {
+    ensureInTransaction()
+
+    val chanThreadEntity = getThreadByThreadDescriptor(descriptor)
+      ?: return emptyList()
+
+    return chanPostDao.selectPostIdsByThreadIdOrderedByPostNo(chanThreadEntity.threadId)
+  }
+
+  /**
+   * Unlike [getThreadPosts] only loads the posts with [postDatabaseIds] (the OP is not loaded unless
+   * its id is passed as well) which allows loading huge threads page by page.
+   * */
+  suspend fun getThreadPostsByDatabaseIds(
+    descriptor: ChanDescriptor.ThreadDescriptor,
+    postDatabaseIds: Collection<Long>
+  ): List<ChanPost> {
+    ensureInTransaction()
+
+    val chanThreadEntity = getThreadByThreadDescriptor(descriptor)
+      ?: return emptyList()
+
+    val chanPostFullList = postDatabaseIds
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .flatMap { chunk -> chanPostDao.selectManyByThreadIdExceptOp(chanThreadEntity.threadId, chunk) }
+
+    return mapChanPostFullList(descriptor, chanThreadEntity, chanPostFullList)
+  }
+
+  private suspend fun mapChanPostFullList(
+    descriptor: ChanDescriptor.ThreadDescriptor,
+    chanThreadEntity: ChanThreadEntity,
+    chanPostFullList: List<ChanPostFull>
+  ): List<ChanPost> {
     if (chanPostFullList.isEmpty()) {
       return emptyList()
     }
@@ -480,10 +518,7 @@ class ChanPostLocalSource(
     val postIdList = chanPostFullList.map { it.chanPostIdEntity.postId }
 
     // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    val textSpansGroupedByPostId = selectTextSpansGroupedByPostId(postIdList)
 
     val postAdditionalData = getPostsAdditionalData(postIdList)
 
@@ -503,6 +538,28 @@ class ChanPostLocalSource(
       }
   }
 
+  private suspend fun selectTextSpansGroupedByPostId(postIdList: List<Long>): Map<Long, List<ChanTextSpanEntity>> {
+    ensureInTransaction()
+
+    val textSpanEntityList = postIdList
+      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
+      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
+      .map { chanTextSpanEntity ->
+        // Lazily migrate spans that are still stored in the old Parcel format
+        val migratedTextSpanEntity = TextSpanMapper.reencodeLegacySpans(chanTextSpanEntity)
+          ?: return@map chanTextSpanEntity
+
+        chanTextSpanDao.updateSpanInfoBytes(
+          textSpanId = migratedTextSpanEntity.textSpanId,
+          spanInfoBytes = migratedTextSpanEntity.spanInfoBytes
+        )
+
+        return@map migratedTextSpanEntity
+      }
+
+    return textSpanEntityList.groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+  }
+
   private suspend fun getPostsAdditionalData(postIdList: List<Long>): PostAdditionalData {
     ensureInTransaction()
 
@@ -583,10 +640,7 @@ class ChanPostLocalSource(
     val postIdList = chanPostFullList.map { it.chanPostIdEntity.postId }
 
     // Load posts' comments/subjects/tripcodes and other Spannables
-    val textSpansGroupedByPostId = postIdList
-      .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
-      .flatMap { chunk -> chanTextSpanDao.selectManyByOwnerPostIdList(chunk) }
-      .groupBy { chanTextSpanEntity -> chanTextSpanEntity.ownerPostId }
+    val textSpansGroupedByPostId = selectTextSpansGroupedByPostId(postIdList)
 
     val postAdditionalData = getPostsAdditionalData(postIdList)
 
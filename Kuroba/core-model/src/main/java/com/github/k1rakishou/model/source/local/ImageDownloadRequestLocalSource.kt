@@ -48,7 +48,8 @@ class ImageDownloadRequestLocalSource(
         status = imageDownloadRequest.status.rawValue,
         duplicateFileUri = imageDownloadRequest.duplicateFileUri,
         duplicatesResolution = imageDownloadRequest.duplicatesResolution.rawValue,
-        createdOn = DateTime.now()
+        createdOn = DateTime.now(),
+        downloadedBytes = imageDownloadRequest.downloadedBytes
       )
     }
 
@@ -67,7 +68,8 @@ class ImageDownloadRequestLocalSource(
         status = status,
         duplicateFileUri = newRequest.duplicateFileUri,
         duplicatesResolution = resolution,
-        createdOn = newRequest.createdOn
+        createdOn = newRequest.createdOn,
+        downloadedBytes = newRequest.downloadedBytes
       )
     }
   }
@@ -90,7 +92,8 @@ class ImageDownloadRequestLocalSource(
           status = status,
           duplicateFileUri = imageDownloadRequestEntity.duplicateFileUri,
           duplicatesResolution = resolution,
-          createdOn = imageDownloadRequestEntity.createdOn
+          createdOn = imageDownloadRequestEntity.createdOn,
+          downloadedBytes = imageDownloadRequestEntity.downloadedBytes
         )
       }
   }
@@ -118,7 +121,8 @@ class ImageDownloadRequestLocalSource(
           status = status,
           duplicateFileUri = imageDownloadRequestEntity.duplicateFileUri,
           duplicatesResolution = resolution,
-          createdOn = imageDownloadRequestEntity.createdOn
+          createdOn = imageDownloadRequestEntity.createdOn,
+          downloadedBytes = imageDownloadRequestEntity.downloadedBytes
         )
       }
   }
@@ -143,7 +147,8 @@ class ImageDownloadRequestLocalSource(
         status = imageDownloadRequest.status.rawValue,
         duplicateFileUri = imageDownloadRequest.duplicateFileUri,
         duplicatesResolution = imageDownloadRequest.duplicatesResolution.rawValue,
-        createdOn = DateTime.now()
+        createdOn = DateTime.now(),
+        downloadedBytes = imageDownloadRequest.downloadedBytes
       )
     }
 
@@ -168,12 +173,19 @@ class ImageDownloadRequestLocalSource(
           duplicateFileUri = imageDownloadRequest.duplicateFileUri,
           duplicatesResolution = imageDownloadRequest.duplicatesResolution.rawValue,
           createdOn = imageDownloadRequest.createdOn,
+          downloadedBytes = imageDownloadRequest.downloadedBytes
         )
       }
       .chunked(KurobaDatabase.SQLITE_IN_OPERATOR_MAX_BATCH_SIZE)
       .forEach { chunk -> imageDownloadRequestDao.updateMany(chunk) }
   }
 
+  suspend fun updateDownloadedBytes(uniqueId: String, imageFullUrl: HttpUrl, downloadedBytes: Long) {
+    ensureInTransaction()
+
+    imageDownloadRequestDao.updateDownloadedBytes(uniqueId, imageFullUrl, downloadedBytes)
+  }
+
   suspend fun deleteByUniqueId(uniqueId: String) {
     ensureInTransaction()
 
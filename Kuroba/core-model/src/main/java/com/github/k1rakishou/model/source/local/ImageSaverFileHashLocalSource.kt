@@ -0,0 +1,56 @@
+package com.github.k1rakishou.model.source.local
+
+import com.github.k1rakishou.model.KurobaDatabase
+import com.github.k1rakishou.model.data.download.ImageSaverFileHash
+import com.github.k1rakishou.model.entity.download.ImageSaverFileHashEntity
+
+class ImageSaverFileHashLocalSource(
+  database: KurobaDatabase,
+) : AbstractLocalSource(database) {
+  private val imageSaverFileHashDao = database.imageSaverFileHashDao()
+
+  suspend fun select(dirUri: String, fileName: String): ImageSaverFileHash? {
+    ensureInTransaction()
+
+    return imageSaverFileHashDao.select(dirUri, fileName)
+      ?.let { imageSaverFileHashEntity -> fromEntity(imageSaverFileHashEntity) }
+  }
+
+  suspend fun selectByHash(dirUri: String, fileMd5: String, fileSize: Long): List<ImageSaverFileHash> {
+    ensureInTransaction()
+
+    return imageSaverFileHashDao.selectByHash(dirUri, fileMd5, fileSize)
+      .map { imageSaverFileHashEntity -> fromEntity(imageSaverFileHashEntity) }
+  }
+
+  suspend fun insertOrReplace(imageSaverFileHash: ImageSaverFileHash) {
+    ensureInTransaction()
+
+    val imageSaverFileHashEntity = ImageSaverFileHashEntity(
+      dirUri = imageSaverFileHash.dirUri,
+      fileName = imageSaverFileHash.fileName,
+      fileMd5 = imageSaverFileHash.fileMd5,
+      fileSize = imageSaverFileHash.fileSize,
+      lastModified = imageSaverFileHash.lastModified
+    )
+
+    imageSaverFileHashDao.insertOrReplace(imageSaverFileHashEntity)
+  }
+
+  suspend fun delete(dirUri: String, fileName: String) {
+    ensureInTransaction()
+
+    imageSaverFileHashDao.delete(dirUri, fileName)
+  }
+
+  private fun fromEntity(imageSaverFileHashEntity: ImageSaverFileHashEntity): ImageSaverFileHash {
+    return ImageSaverFileHash(
+      dirUri = imageSaverFileHashEntity.dirUri,
+      fileName = imageSaverFileHashEntity.fileName,
+      fileMd5 = imageSaverFileHashEntity.fileMd5,
+      fileSize = imageSaverFileHashEntity.fileSize,
+      lastModified = imageSaverFileHashEntity.lastModified
+    )
+  }
+
+}
@@ -68,6 +68,34 @@ class ThreadBookmarkLocalSource(
       "deleted ${toDelete.size} bookmarks")
   }
 
+  /**
+   * Unlike [persist] only touches the bookmarks that were actually changed or deleted instead of
+   * looking through all of them.
+   * */
+  suspend fun persistChanges(
+    changedBookmarks: Collection<ThreadBookmark>,
+    deletedBookmarks: Collection<ChanDescriptor.ThreadDescriptor>
+  ): Int {
+    ensureInTransaction()
+
+    val toDelete = deletedBookmarks.filter { threadDescriptor -> threadBookmarkCache.contains(threadDescriptor) }
+    if (toDelete.isNotEmpty()) {
+      deleteBookmarks(toDelete)
+    }
+
+    val cachedBookmarks = threadBookmarkCache.getMany(changedBookmarks.map { bookmark -> bookmark.threadDescriptor })
+    val toInsertOrUpdateInDatabase = retainUpdatedBookmarks(changedBookmarks.toList(), cachedBookmarks)
+
+    if (toInsertOrUpdateInDatabase.isNotEmpty()) {
+      insertOrUpdateBookmarks(toInsertOrUpdateInDatabase)
+    }
+
+    Logger.d(TAG, "persistChanges() inserted/updated ${toInsertOrUpdateInDatabase.size} bookmarks, " +
+      "deleted ${toDelete.size} bookmarks")
+
+    return toInsertOrUpdateInDatabase.size + toDelete.size
+  }
+
   suspend fun deleteAll() {
     ensureInTransaction()
 
@@ -70,7 +70,7 @@ object ChanPostUtils {
         return post.subject.toString()
       }
 
-      val comment = post.postComment.originalComment()
+      val comment = post.postComment.originalCommentText()
 
       if (!TextUtils.isEmpty(comment)) {
         val length = min(comment.length, 64)
@@ -100,7 +100,7 @@ object ChanPostUtils {
         return "/" + post.boardDescriptor.boardCode + "/ - " + post.subject.toString()
       }
 
-      val comment = post.postComment.originalComment()
+      val comment = post.postComment.originalCommentText()
 
       if (!TextUtils.isEmpty(comment)) {
         val length = min(comment.length, maxCommentLength)
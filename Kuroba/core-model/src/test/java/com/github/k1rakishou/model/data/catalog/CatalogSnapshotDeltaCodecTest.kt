@@ -0,0 +1,250 @@
+package com.github.k1rakishou.model.data.catalog
+
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertTrue
+import junit.framework.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import java.util.*
+
+class CatalogSnapshotDeltaCodecTest {
+
+  @Test
+  fun `test keyframe round trip`() {
+    val threadNos = listOf(900L, 1200L, 1100L, 5L, Long.MAX_VALUE, 0L)
+    val bytes = CatalogSnapshotDeltaCodec.encodeKeyframe(threadNos)
+
+    assertTrue(CatalogSnapshotDeltaCodec.isKeyframe(bytes))
+    assertEquals(threadNos, CatalogSnapshotDeltaCodec.decode(null, bytes))
+    assertEquals(emptyList<Long>(), CatalogSnapshotDeltaCodec.decode(null, CatalogSnapshotDeltaCodec.encodeKeyframe(emptyList())))
+  }
+
+  @Test
+  fun `test delta of random permutations`() {
+    val random = Random(1)
+
+    repeat(2000) {
+      val prev = randomThreadNos(random, random.nextInt(40))
+      val next = (prev.filter { random.nextInt(4) != 0 } + randomThreadNos(random, random.nextInt(10)))
+        .distinct()
+        .shuffled(random)
+
+      val bytes = CatalogSnapshotDeltaCodec.encodeDelta(prev, next)
+      assertTrue(!CatalogSnapshotDeltaCodec.isKeyframe(bytes))
+      assertEquals(next, CatalogSnapshotDeltaCodec.decode(prev, bytes))
+    }
+  }
+
+  @Test
+  fun `test diff detects new bumped and dropped threads`() {
+    val prev = listOf(10L, 9L, 8L, 7L, 6L, 5L)
+    // 11 and 12 are new, 7 and 5 got bumped, 6 fell off the catalog
+    val next = listOf(12L, 5L, 11L, 7L, 10L, 9L, 8L)
+
+    val diff = CatalogSnapshotDeltaCodec.diff(prev, next)
+
+    assertEquals(listOf(12L, 11L), diff.inserted)
+    assertEquals(listOf(5L, 7L), diff.bumped)
+    assertEquals(listOf(6L), diff.removed)
+    // 10, 9, 8 kept their order so they are not stored in the delta
+    assertEquals(listOf(12L, 5L, 11L, 7L), diff.placed.map { placedThread -> placedThread.threadNo })
+  }
+
+  @Test
+  fun `test sinking threads are not bumped`() {
+    val prev = listOf(1L, 2L, 3L, 4L)
+    val next = listOf(2L, 3L, 4L, 1L)
+
+    val diff = CatalogSnapshotDeltaCodec.diff(prev, next)
+
+    assertEquals(listOf(1L), diff.placed.map { placedThread -> placedThread.threadNo })
+    assertTrue(diff.bumped.isEmpty())
+  }
+
+  @Test
+  fun `test delta applied to the wrong version is rejected`() {
+    val prev = listOf(1L, 2L, 3L, 4L)
+    val bytes = CatalogSnapshotDeltaCodec.encodeDelta(prev, listOf(5L, 1L, 2L, 3L))
+
+    assertDecodeFails(listOf(1L, 2L), bytes)
+    assertDecodeFails(null, bytes)
+    assertDecodeFails(prev, bytes.copyOf(bytes.size - 1))
+    assertDecodeFails(prev, bytes + 0.toByte())
+    assertDecodeFails(null, byteArrayOf(100, 0))
+  }
+
+  @Test
+  fun `test replaying catalog refreshes reconstructs every version`() {
+    val random = Random(42)
+    val simulation = CatalogSimulation(random, catalogSize = 150)
+    val storedVersions = mutableListOf<ByteArray>()
+
+    var prevThreadNos: List<Long>? = null
+    var versionsSinceKeyframe = 0
+    val expectedVersions = mutableListOf<List<Long>>()
+
+    repeat(500) {
+      val threadNos = simulation.refresh()
+      val bytes = encodeVersion(prevThreadNos, threadNos, versionsSinceKeyframe)
+
+      versionsSinceKeyframe = if (CatalogSnapshotDeltaCodec.isKeyframe(bytes)) 0 else versionsSinceKeyframe + 1
+      storedVersions += bytes
+      expectedVersions += threadNos
+      prevThreadNos = threadNos
+    }
+
+    // Every version is reconstructed from the last keyframe before it
+    expectedVersions.forEachIndexed { version, expected ->
+      val keyframeVersion = (version downTo 0).first { index -> CatalogSnapshotDeltaCodec.isKeyframe(storedVersions[index]) }
+      var threadNos: List<Long>? = null
+
+      for (index in keyframeVersion..version) {
+        threadNos = CatalogSnapshotDeltaCodec.decode(threadNos, storedVersions[index])
+      }
+
+      assertEquals(expected, threadNos)
+    }
+  }
+
+  @Test
+  fun `test changes since last visit match the simulated catalog`() {
+    val random = Random(7)
+    val simulation = CatalogSimulation(random, catalogSize = 150)
+
+    val visited = simulation.refresh()
+    simulation.clearHistory()
+
+    repeat(12) { simulation.refresh() }
+    val latest = simulation.current
+
+    val diff = CatalogSnapshotDeltaCodec.diff(visited, latest)
+
+    val expectedNew = simulation.created.filter { threadNo -> threadNo in latest }
+    val expectedDropped = visited.filter { threadNo -> threadNo !in latest }
+
+    assertEquals(expectedNew.toSet(), diff.inserted.toSet())
+    assertEquals(expectedDropped.toSet(), diff.removed.toSet())
+
+    // Bumped threads are the old ones that got above some thread that was above them
+    assertTrue(diff.bumped.all { threadNo -> threadNo in simulation.bumped })
+    assertTrue(diff.bumped.isNotEmpty())
+  }
+
+  @Test
+  fun `test rows and bytes written per refresh`() {
+    val random = Random(3)
+    val simulation = CatalogSimulation(random, catalogSize = 150)
+    val refreshes = 1000
+
+    var prevThreadNos: List<Long>? = null
+    var versionsSinceKeyframe = 0
+
+    var oldRowsWritten = 0L
+    var newRowsWritten = 0L
+    var newBytesWritten = 0L
+
+    repeat(refreshes) {
+      val threadNos = simulation.refresh()
+
+      // deleteManyByBoardId() + insertMany() of the whole catalog
+      oldRowsWritten += (prevThreadNos?.size ?: 0) + threadNos.size
+
+      if (threadNos == prevThreadNos) {
+        return@repeat
+      }
+
+      val bytes = encodeVersion(prevThreadNos, threadNos, versionsSinceKeyframe)
+      versionsSinceKeyframe = if (CatalogSnapshotDeltaCodec.isKeyframe(bytes)) 0 else versionsSinceKeyframe + 1
+
+      newRowsWritten += 1
+      newBytesWritten += bytes.size
+      prevThreadNos = threadNos
+    }
+
+    val keyframeSize = CatalogSnapshotDeltaCodec.encodeKeyframe(simulation.current).size
+
+    assertTrue("oldRowsWritten=${oldRowsWritten}, newRowsWritten=${newRowsWritten}", newRowsWritten * 100 < oldRowsWritten)
+    assertTrue(
+      "bytesPerRefresh=${newBytesWritten / refreshes}, keyframeSize=${keyframeSize}",
+      newBytesWritten / refreshes < keyframeSize
+    )
+  }
+
+  private fun encodeVersion(prevThreadNos: List<Long>?, threadNos: List<Long>, versionsSinceKeyframe: Int): ByteArray {
+    // Mirrors ChanCatalogSnapshotLocalSource.storeCatalogVersion()
+    val keyframe = CatalogSnapshotDeltaCodec.encodeKeyframe(threadNos)
+    if (prevThreadNos == null || versionsSinceKeyframe + 1 >= KEYFRAME_INTERVAL) {
+      return keyframe
+    }
+
+    val delta = CatalogSnapshotDeltaCodec.encodeDelta(prevThreadNos, threadNos)
+    if (delta.size < keyframe.size) {
+      return delta
+    }
+
+    return keyframe
+  }
+
+  private fun assertDecodeFails(prev: List<Long>?, bytes: ByteArray) {
+    try {
+      CatalogSnapshotDeltaCodec.decode(prev, bytes)
+      fail("decode() must have failed")
+    } catch (expected: IOException) {
+    }
+  }
+
+  private fun randomThreadNos(random: Random, count: Int): List<Long> {
+    return (0 until count).map { 1_000_000L + random.nextInt(100_000) }.distinct()
+  }
+
+  /**
+   * A bump-ordered catalog: new threads appear at the top, replied to threads get bumped to the top
+   * and the threads at the bottom fall off the catalog.
+   * */
+  private class CatalogSimulation(
+    private val random: Random,
+    private val catalogSize: Int
+  ) {
+    private var nextThreadNo = 90_000_000L
+    private val sticky = listOf(1_000L)
+
+    var current: List<Long> = sticky + (0 until catalogSize).map { nextThreadNo-- }
+      private set
+
+    val created = mutableSetOf<Long>()
+    val bumped = mutableSetOf<Long>()
+
+    init {
+      nextThreadNo = 90_000_001L
+    }
+
+    fun refresh(): List<Long> {
+      val threads = current.drop(sticky.size).toMutableList()
+
+      repeat(random.nextInt(6)) {
+        val threadNo = threads.removeAt(random.nextInt(threads.size))
+        threads.add(0, threadNo)
+        bumped += threadNo
+      }
+
+      repeat(random.nextInt(3)) {
+        val threadNo = nextThreadNo++
+        threads.add(0, threadNo)
+        created += threadNo
+      }
+
+      current = sticky + threads.take(catalogSize)
+      return current
+    }
+
+    fun clearHistory() {
+      created.clear()
+      bumped.clear()
+    }
+  }
+
+  companion object {
+    private const val KEYFRAME_INTERVAL = 16
+  }
+
+}
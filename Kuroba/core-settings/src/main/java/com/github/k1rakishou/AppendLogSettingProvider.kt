@@ -0,0 +1,222 @@
+package com.github.k1rakishou
+
+import android.content.SharedPreferences
+import com.github.k1rakishou.AppendLogSettingsStore.Op
+import com.github.k1rakishou.AppendLogSettingsStore.StoredValue
+import com.github.k1rakishou.AppendLogSettingsStore.ValueType
+import com.github.k1rakishou.common.AndroidUtils
+import com.github.k1rakishou.core_logger.Logger
+import java.io.File
+import java.io.IOException
+
+/**
+ * [SettingProvider] backed by [AppendLogSettingsStore]. Behaves like [SharedPreferencesSettingProvider]
+ * (the default value is persisted the first time a setting is read, a value of a wrong type is
+ * removed and the default is returned) but every change costs one small record appended to the log
+ * instead of rewriting the whole preferences file.
+ * */
+class AppendLogSettingProvider(
+  private val store: AppendLogSettingsStore
+) : TransactionalSettingProvider {
+
+  init {
+    store.backgroundWriteErrorListener = { error ->
+      Logger.e(TAG, "Failed to write settings changes in the background, will retry with the next change", error)
+    }
+  }
+
+  override fun getInt(key: String, def: Int): Int {
+    val storedValue = getStoredValue(key, ValueType.IntType)
+    if (storedValue == null) {
+      commit(listOf(Op.Put(key, StoredValue.ofInt(def))), sync = false)
+      return def
+    }
+
+    return storedValue.decodeInt()
+  }
+
+  override fun putInt(key: String, value: Int) {
+    commit(listOf(Op.Put(key, StoredValue.ofInt(value))), sync = false)
+  }
+
+  override fun putIntSync(key: String, value: Int) {
+    commit(listOf(Op.Put(key, StoredValue.ofInt(value))), sync = true)
+  }
+
+  override fun getLong(key: String, def: Long): Long {
+    val storedValue = getStoredValue(key, ValueType.LongType)
+    if (storedValue == null) {
+      commit(listOf(Op.Put(key, StoredValue.ofLong(def))), sync = false)
+      return def
+    }
+
+    return storedValue.decodeLong()
+  }
+
+  override fun putLong(key: String, value: Long) {
+    commit(listOf(Op.Put(key, StoredValue.ofLong(value))), sync = false)
+  }
+
+  override fun putLongSync(key: String, value: Long) {
+    commit(listOf(Op.Put(key, StoredValue.ofLong(value))), sync = true)
+  }
+
+  override fun getBoolean(key: String, def: Boolean): Boolean {
+    val storedValue = getStoredValue(key, ValueType.BooleanType)
+    if (storedValue == null) {
+      commit(listOf(Op.Put(key, StoredValue.ofBoolean(def))), sync = false)
+      return def
+    }
+
+    return storedValue.decodeBoolean()
+  }
+
+  override fun putBoolean(key: String, value: Boolean) {
+    commit(listOf(Op.Put(key, StoredValue.ofBoolean(value))), sync = false)
+  }
+
+  override fun putBooleanSync(key: String, value: Boolean) {
+    commit(listOf(Op.Put(key, StoredValue.ofBoolean(value))), sync = true)
+  }
+
+  override fun getString(key: String, def: String?): String? {
+    val storedValue = getStoredValue(key, ValueType.StringType)
+    if (storedValue == null) {
+      if (def != null) {
+        commit(listOf(Op.Put(key, StoredValue.ofString(def))), sync = false)
+      }
+
+      return def
+    }
+
+    return storedValue.decodeString()
+  }
+
+  override fun putString(key: String, value: String?) {
+    commit(listOf(putStringOp(key, value)), sync = false)
+  }
+
+  override fun putStringSync(key: String, value: String?) {
+    commit(listOf(putStringOp(key, value)), sync = true)
+  }
+
+  override fun removeSync(key: String) {
+    commit(listOf(Op.Remove(key)), sync = true)
+  }
+
+  override fun getMap(key: String): Map<String, String>? {
+    return store.getMap(key)
+  }
+
+  override fun transaction(sync: Boolean, block: TransactionalSettingProvider.Transaction.() -> Unit) {
+    val transaction = OpsCollectingTransaction()
+    block(transaction)
+
+    commit(transaction.ops, sync)
+  }
+
+  /**
+   * Returns null if there is no value or if the value has a different type, in which case it's removed.
+   * */
+  private fun getStoredValue(key: String, expectedType: ValueType): StoredValue? {
+    val storedValue = store.get(key)
+    if (storedValue == null) {
+      if (store.contains(key)) {
+        // A map is stored under this key
+        commit(listOf(Op.Remove(key)), sync = false)
+      }
+
+      return null
+    }
+
+    if (storedValue.type != expectedType) {
+      Logger.e(TAG, "getStoredValue() key '$key' has type ${storedValue.type} but $expectedType was expected")
+      commit(listOf(Op.Remove(key)), sync = false)
+      return null
+    }
+
+    return storedValue
+  }
+
+  private fun commit(ops: List<Op>, sync: Boolean) {
+    try {
+      store.commit(ops, sync)
+    } catch (error: IOException) {
+      Logger.e(TAG, "commit() failed to persist ${ops.size} change(s)", error)
+    }
+  }
+
+  private class OpsCollectingTransaction : TransactionalSettingProvider.Transaction {
+    val ops = mutableListOf<Op>()
+
+    override fun putInt(key: String, value: Int) {
+      ops += Op.Put(key, StoredValue.ofInt(value))
+    }
+
+    override fun putLong(key: String, value: Long) {
+      ops += Op.Put(key, StoredValue.ofLong(value))
+    }
+
+    override fun putBoolean(key: String, value: Boolean) {
+      ops += Op.Put(key, StoredValue.ofBoolean(value))
+    }
+
+    override fun putString(key: String, value: String?) {
+      ops += putStringOp(key, value)
+    }
+
+    override fun remove(key: String) {
+      ops += Op.Remove(key)
+    }
+
+    override fun putMap(key: String, map: Map<String, String>) {
+      ops += Op.PutMap(key, LinkedHashMap(map))
+    }
+
+    override fun putMapEntry(key: String, entryKey: String, entryValue: String) {
+      ops += Op.PutMapEntry(key, entryKey, entryValue)
+    }
+
+    override fun removeMapEntry(key: String, entryKey: String) {
+      ops += Op.RemoveMapEntry(key, entryKey)
+    }
+  }
+
+  companion object {
+    private const val TAG = "AppendLogSettingProvider"
+
+    const val LOG_FILE_EXTENSION = ".settings_log"
+
+    /**
+     * Opens the settings log that replaces the SharedPreferences file named [sharedPreferencesName].
+     * The log lives right next to the preferences file. The first time the log is opened the values
+     * are imported from [sharedPreferences] (the preferences file itself is left untouched).
+     * */
+    @JvmStatic
+    fun forSharedPreferences(
+      sharedPreferencesName: String,
+      sharedPreferences: SharedPreferences
+    ): SettingProvider {
+      val sharedPrefsDir = File(AndroidUtils.getAppDir(), ChanSettings.SHARED_PREFS_DIR_NAME)
+      val logFile = File(sharedPrefsDir, sharedPreferencesName + LOG_FILE_EXTENSION)
+
+      val store = try {
+        AppendLogSettingsStore.open(logFile) { sharedPreferences.all }
+      } catch (error: IOException) {
+        Logger.e(TAG, "Failed to open '${logFile.absolutePath}', falling back to SharedPreferences", error)
+        return SharedPreferencesSettingProvider(sharedPreferences)
+      }
+
+      return AppendLogSettingProvider(store)
+    }
+
+    private fun putStringOp(key: String, value: String?): Op {
+      if (value == null) {
+        return Op.Remove(key)
+      }
+
+      return Op.Put(key, StoredValue.ofString(value))
+    }
+  }
+
+}
@@ -0,0 +1,685 @@
+package com.github.k1rakishou
+
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.util.concurrent.Executors
+import java.util.zip.CRC32
+
+/**
+ * A key-value store that is persisted as an append-only log of transactions. Every transaction is
+ * written as a single checksummed record so a write only costs the size of the changed values (not
+ * the size of the whole store like with SharedPreferences which rewrite the whole xml file every time)
+ * and a transaction is either fully visible after a crash or not visible at all. A record that was
+ * only partially written (the process was killed, the device ran out of battery) is detected by its
+ * length or its checksum and is cut off the log when the store is opened. The records are appended by
+ * a background writer, see [commit].
+ *
+ * The log is compacted (rewritten into a single snapshot record) once it becomes several times bigger
+ * than the last snapshot.
+ *
+ * Values are kept in memory in their serialized form and are only decoded when they are accessed.
+ * */
+class AppendLogSettingsStore private constructor(
+  private val logFile: File,
+  private val minCompactionSizeBytes: Long
+) {
+  private val values = HashMap<String, StoredValue>()
+  private val maps = HashMap<String, LinkedHashMap<String, String>>()
+
+  // Taken before the lock of the store (never the other way around) by whoever writes into the file
+  private val fileLock = Any()
+
+  private var logSizeBytes = 0L
+  private var lastSnapshotSizeBytes = 0L
+  private var closed = false
+
+  // Records of the transactions that are applied in memory but are not written into the log yet
+  private val pendingRecords = ArrayList<ByteArray>()
+  private var pendingRecordsSizeBytes = 0L
+  private var writeScheduled = false
+
+  /**
+   * Called on the writer thread when a background write fails. The failed records stay pending and
+   * are written again with the next commit or [flush].
+   * */
+  @Volatile
+  var backgroundWriteErrorListener: ((IOException) -> Unit)? = null
+
+  /**
+   * Total amount of bytes written into the log file (including compactions) since the store was opened.
+   * */
+  @get:Synchronized
+  var bytesWritten = 0L
+    private set
+
+  @Synchronized
+  fun get(key: String): StoredValue? = values[key]
+
+  /**
+   * Returns a copy of the map stored under [key] or null if there is no map stored under this key.
+   * */
+  @Synchronized
+  fun getMap(key: String): Map<String, String>? = maps[key]?.let { map -> LinkedHashMap(map) }
+
+  @Synchronized
+  fun contains(key: String): Boolean = values.containsKey(key) || maps.containsKey(key)
+
+  @get:Synchronized
+  val keys: Set<String>
+    get() = values.keys + maps.keys
+
+  /**
+   * Applies [ops] atomically. The in-memory state is updated right away but the record is appended
+   * to the log by a background writer (together with every other record committed in the meantime) so
+   * that the caller (usually the main thread) doesn't wait for the disk. When [sync] is true the
+   * pending records are written and flushed onto the disk before returning instead. If writing into
+   * the log fails the in-memory state is kept so that the settings still work for the current session
+   * and the write is retried with the next commit. A failed synchronous write is thrown by this call,
+   * a failed background write is reported to [backgroundWriteErrorListener]. Once the store is
+   * [close]d the changes are only applied in memory.
+   * */
+  @Throws(IOException::class)
+  fun commit(ops: List<Op>, sync: Boolean) {
+    if (ops.isEmpty()) {
+      return
+    }
+
+    val scheduleWrite = synchronized(this) {
+      ops.forEach { op -> applyOp(op) }
+
+      if (closed) {
+        return
+      }
+
+      val record = encodeRecord(ops)
+      pendingRecords += record
+      pendingRecordsSizeBytes += record.size
+
+      if (sync || writeScheduled) {
+        return@synchronized false
+      }
+
+      writeScheduled = true
+      return@synchronized true
+    }
+
+    if (sync) {
+      writePending(forceCompaction = false, sync = true)
+      return
+    }
+
+    if (scheduleWrite) {
+      writerExecutor.execute { writePendingInBackground() }
+    }
+  }
+
+  /**
+   * Writes the records that were committed but are not in the log yet.
+   * */
+  @Throws(IOException::class)
+  fun flush() {
+    writePending(forceCompaction = false, sync = false)
+  }
+
+  /**
+   * Rewrites the log into a single record containing the current state of the store.
+   * */
+  @Throws(IOException::class)
+  fun compact() {
+    writePending(forceCompaction = true, sync = true)
+  }
+
+  /**
+   * Detaches the store from its log file. The records that are not written yet are discarded and the
+   * file is not touched anymore (neither appended to nor compacted) so that it can be safely replaced
+   * or deleted (e.g. when a backup is restored), the values are still readable and writable in memory
+   * until the app is restarted.
+   * */
+  fun close() {
+    // Wait for the write that may be in progress
+    synchronized(fileLock) {
+      synchronized(this) {
+        closed = true
+        pendingRecords.clear()
+        pendingRecordsSizeBytes = 0L
+      }
+    }
+  }
+
+  private fun flushAndClose() {
+    synchronized(fileLock) {
+      flush()
+      close()
+    }
+  }
+
+  private fun writePendingInBackground() {
+    try {
+      flush()
+    } catch (error: IOException) {
+      backgroundWriteErrorListener?.invoke(error)
+    }
+  }
+
+  private fun writePending(forceCompaction: Boolean, sync: Boolean) {
+    synchronized(fileLock) {
+      val records: List<ByteArray>
+      val recordsSizeBytes: Long
+      val snapshotRecord: ByteArray?
+
+      synchronized(this) {
+        writeScheduled = false
+
+        if (closed || (pendingRecords.isEmpty() && !forceCompaction)) {
+          return
+        }
+
+        val compactionThresholdBytes = maxOf(minCompactionSizeBytes, lastSnapshotSizeBytes * COMPACTION_RATIO)
+
+        // The snapshot already contains the pending transactions so there is no need to append them first
+        snapshotRecord = if (forceCompaction || logSizeBytes + pendingRecordsSizeBytes >= compactionThresholdBytes) {
+          encodeRecord(snapshotOps())
+        } else {
+          null
+        }
+
+        records = ArrayList(pendingRecords)
+        recordsSizeBytes = pendingRecordsSizeBytes
+
+        pendingRecords.clear()
+        pendingRecordsSizeBytes = 0L
+      }
+
+      try {
+        if (snapshotRecord != null) {
+          val snapshotSize = writeSnapshot(logFile, snapshotRecord)
+
+          synchronized(this) {
+            logSizeBytes = snapshotSize
+            lastSnapshotSizeBytes = snapshotSize
+            bytesWritten += snapshotSize
+          }
+        } else {
+          appendRecords(records, sync)
+
+          synchronized(this) {
+            logSizeBytes += recordsSizeBytes
+            bytesWritten += recordsSizeBytes
+          }
+        }
+      } catch (error: IOException) {
+        synchronized(this) {
+          // Keep the order of the transactions, the ones committed in the meantime go after these
+          pendingRecords.addAll(0, records)
+          pendingRecordsSizeBytes += recordsSizeBytes
+        }
+
+        throw error
+      }
+    }
+  }
+
+  private fun appendRecords(records: List<ByteArray>, sync: Boolean) {
+    FileOutputStream(logFile, true).use { fileOutputStream ->
+      val outputStream = BufferedOutputStream(fileOutputStream)
+      records.forEach { record -> outputStream.write(record) }
+      outputStream.flush()
+
+      if (sync) {
+        fileOutputStream.fd.sync()
+      }
+    }
+  }
+
+  private fun snapshotOps(): List<Op> {
+    val ops = ArrayList<Op>(values.size + maps.size)
+
+    values.forEach { (key, value) -> ops += Op.Put(key, value) }
+    maps.forEach { (key, map) -> ops += Op.PutMap(key, map) }
+
+    return ops
+  }
+
+  private fun applyOp(op: Op) {
+    when (op) {
+      is Op.Put -> {
+        maps.remove(op.key)
+        values[op.key] = op.value
+      }
+      is Op.Remove -> {
+        maps.remove(op.key)
+        values.remove(op.key)
+      }
+      is Op.PutMap -> {
+        values.remove(op.key)
+        maps[op.key] = LinkedHashMap(op.map)
+      }
+      is Op.PutMapEntry -> {
+        values.remove(op.key)
+        maps.getOrPut(op.key) { LinkedHashMap() }[op.entryKey] = op.entryValue
+      }
+      is Op.RemoveMapEntry -> {
+        maps[op.key]?.remove(op.entryKey)
+      }
+    }
+  }
+
+  @Synchronized
+  private fun decodeValues(): Map<String, Any> {
+    val result = LinkedHashMap<String, Any>(values.size + maps.size)
+
+    values.forEach { (key, value) ->
+      result[key] = when (value.type) {
+        ValueType.IntType -> value.decodeInt()
+        ValueType.LongType -> value.decodeLong()
+        ValueType.BooleanType -> value.decodeBoolean()
+        ValueType.StringType -> value.decodeString()
+        ValueType.FloatType -> value.decodeFloat()
+        ValueType.StringSetType -> value.decodeStringSet()
+      }
+    }
+
+    maps.forEach { (key, map) -> result[key] = LinkedHashMap(map) }
+    return result
+  }
+
+  private fun load(initialValues: () -> Map<String, *>) {
+    val bytes = logFile.readBytes()
+    val inputStream = DataInputStream(bytes.inputStream())
+
+    if (bytes.size < HEADER_SIZE || inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+      // Unknown format (e.g. the header was lost), there is nothing we can recover from the log itself
+      // so fall back to the values the log was created from instead of starting with an empty store
+      importValues(initialValues)
+      return
+    }
+
+    var offset = HEADER_SIZE
+
+    while (offset + RECORD_HEADER_SIZE <= bytes.size) {
+      val ops = decodeRecord(bytes, offset)
+        ?: break
+
+      ops.forEach { op -> applyOp(op) }
+      offset += RECORD_HEADER_SIZE + ByteBuffer.wrap(bytes, offset, 4).int
+    }
+
+    if (offset < bytes.size && !closed) {
+      // The last transaction was not fully written, cut it off so that new records don't end up
+      // after the garbage
+      RandomAccessFile(logFile, "rw").use { file -> file.setLength(offset.toLong()) }
+    }
+
+    logSizeBytes = offset.toLong()
+    lastSnapshotSizeBytes = offset.toLong()
+  }
+
+  enum class ValueType(val id: Byte) {
+    IntType(0),
+    LongType(1),
+    BooleanType(2),
+    StringType(3),
+    // Only there so that nothing is lost when SharedPreferences are imported, SettingProvider doesn't
+    // use them
+    FloatType(4),
+    StringSetType(5);
+
+    companion object {
+      fun fromId(id: Byte): ValueType? = values().firstOrNull { valueType -> valueType.id == id }
+    }
+  }
+
+  class StoredValue(
+    val type: ValueType,
+    internal val payload: ByteArray
+  ) {
+    @Volatile
+    private var decodedString: String? = null
+
+    fun decodeInt(): Int = ByteBuffer.wrap(payload).int
+    fun decodeLong(): Long = ByteBuffer.wrap(payload).long
+    fun decodeBoolean(): Boolean = payload[0] != 0.toByte()
+    fun decodeFloat(): Float = ByteBuffer.wrap(payload).float
+
+    fun decodeStringSet(): Set<String> {
+      val inputStream = DataInputStream(payload.inputStream())
+      val count = inputStream.readInt()
+
+      return (0 until count).mapTo(LinkedHashSet(count)) { inputStream.readString() }
+    }
+
+    fun decodeString(): String {
+      val decoded = decodedString
+      if (decoded != null) {
+        return decoded
+      }
+
+      return String(payload, Charsets.UTF_8)
+        .also { string -> decodedString = string }
+    }
+
+    companion object {
+      fun ofInt(value: Int) = StoredValue(ValueType.IntType, ByteBuffer.allocate(4).putInt(value).array())
+      fun ofLong(value: Long) = StoredValue(ValueType.LongType, ByteBuffer.allocate(8).putLong(value).array())
+      fun ofBoolean(value: Boolean) = StoredValue(ValueType.BooleanType, byteArrayOf(if (value) 1 else 0))
+      fun ofString(value: String) = StoredValue(ValueType.StringType, value.toByteArray(Charsets.UTF_8))
+      fun ofFloat(value: Float) = StoredValue(ValueType.FloatType, ByteBuffer.allocate(4).putFloat(value).array())
+
+      fun ofStringSet(value: Set<String>): StoredValue {
+        val payloadStream = ByteArrayOutputStream()
+
+        DataOutputStream(payloadStream).use { outputStream ->
+          outputStream.writeInt(value.size)
+          value.forEach { string -> outputStream.writeByteArray(string.toByteArray(Charsets.UTF_8)) }
+        }
+
+        return StoredValue(ValueType.StringSetType, payloadStream.toByteArray())
+      }
+    }
+  }
+
+  sealed class Op(val key: String) {
+    class Put(key: String, val value: StoredValue) : Op(key)
+    class Remove(key: String) : Op(key)
+    class PutMap(key: String, val map: Map<String, String>) : Op(key)
+    class PutMapEntry(key: String, val entryKey: String, val entryValue: String) : Op(key)
+    class RemoveMapEntry(key: String, val entryKey: String) : Op(key)
+  }
+
+  companion object {
+    private const val MAGIC = 0x4B534C47 // KSLG
+    private const val VERSION = 1
+
+    private const val HEADER_SIZE = 8
+    // payload length + payload crc32
+    private const val RECORD_HEADER_SIZE = 8
+    private const val COMPACTION_RATIO = 4
+    private const val DEFAULT_MIN_COMPACTION_SIZE_BYTES = 64 * 1024L
+
+    private const val OP_PUT: Byte = 0
+    private const val OP_REMOVE: Byte = 1
+    private const val OP_PUT_MAP: Byte = 2
+    private const val OP_PUT_MAP_ENTRY: Byte = 3
+    private const val OP_REMOVE_MAP_ENTRY: Byte = 4
+
+    private val openStores = HashMap<String, AppendLogSettingsStore>()
+
+    // Shared by all of the stores, there are only a few of them and they are rarely written at once
+    private val writerExecutor = Executors.newSingleThreadExecutor { runnable ->
+      Thread(runnable, "AppendLogSettingsWriter").apply { isDaemon = true }
+    }
+
+    /**
+     * Opens the store backed by [logFile]. If the file doesn't exist yet it's created with the values
+     * returned by [initialValues] (every type SharedPreferences can store is supported, an IOException is
+     * thrown for anything else so that the caller can keep using the original values). The import is atomic: the file only appears once all of the values are written.
+     * The same happens when the file exists but is not a settings log.
+     * */
+    @JvmStatic
+    @JvmOverloads
+    @Throws(IOException::class)
+    fun open(
+      logFile: File,
+      minCompactionSizeBytes: Long = DEFAULT_MIN_COMPACTION_SIZE_BYTES,
+      initialValues: () -> Map<String, *> = { emptyMap<String, Any>() }
+    ): AppendLogSettingsStore {
+      // The same file must not be written by two stores at once
+      val previousStore = synchronized(openStores) { openStores.remove(logFile.absolutePath) }
+      previousStore?.flushAndClose()
+
+      val store = AppendLogSettingsStore(logFile, minCompactionSizeBytes)
+
+      if (logFile.exists()) {
+        store.load(initialValues)
+      } else {
+        logFile.parentFile?.mkdirs()
+        store.importValues(initialValues)
+      }
+
+      synchronized(openStores) {
+        openStores[logFile.absolutePath] = store
+      }
+
+      return store
+    }
+
+    /**
+     * Writes the pending records of every open store on the calling thread. Called when the app goes
+     * to the background or is asked to trim its memory, after which the process may be killed at any
+     * moment without the background writer getting a chance to run (the same thing is done for
+     * SharedPreferences.apply() when an activity is stopped). Failures are reported to
+     * [backgroundWriteErrorListener] of the store.
+     * */
+    @JvmStatic
+    fun flushAll() {
+      val stores = synchronized(openStores) { openStores.values.toList() }
+
+      stores.forEach { store ->
+        try {
+          store.flush()
+        } catch (error: IOException) {
+          store.backgroundWriteErrorListener?.invoke(error)
+        }
+      }
+    }
+
+    /**
+     * Returns the values stored in [logFile] in the form SharedPreferences.getAll() would return them
+     * (maps are returned as Map<String, String>). The store that is open for [logFile] is used if there
+     * is one (so that the changes that are not written yet are included), otherwise the file is only
+     * read.
+     * */
+    @JvmStatic
+    @Throws(IOException::class)
+    fun readValues(logFile: File): Map<String, Any> {
+      val store = synchronized(openStores) { openStores[logFile.absolutePath] }
+        ?: AppendLogSettingsStore(logFile, DEFAULT_MIN_COMPACTION_SIZE_BYTES).apply {
+          // Never touch the file
+          closed = true
+          load { emptyMap<String, Any>() }
+        }
+
+      return store.decodeValues()
+    }
+
+    /**
+     * [close]s the store that was opened for [logFile] (if any). Must be called before the log file
+     * is replaced or deleted while the app is running, otherwise the next write or compaction of the
+     * still open store would overwrite the new file (or recreate the deleted one without a header).
+     * */
+    @JvmStatic
+    fun closeStore(logFile: File) {
+      val store = synchronized(openStores) { openStores.remove(logFile.absolutePath) }
+      store?.close()
+    }
+
+    private fun AppendLogSettingsStore.importValues(initialValues: () -> Map<String, *>) {
+      val ops = initialValues().mapNotNull { (key, value) ->
+        val storedValue = when (value) {
+          null -> return@mapNotNull null
+          is Int -> StoredValue.ofInt(value)
+          is Long -> StoredValue.ofLong(value)
+          is Boolean -> StoredValue.ofBoolean(value)
+          is String -> StoredValue.ofString(value)
+          is Float -> StoredValue.ofFloat(value)
+          is Set<*> -> StoredValue.ofStringSet(value.mapTo(LinkedHashSet()) { string -> string as String })
+          else -> throw IOException("Can't import '${key}', unsupported type: ${value::class.java.name}")
+        }
+
+        return@mapNotNull Op.Put(key, storedValue)
+      }
+
+      ops.forEach { op -> applyOp(op) }
+      compact()
+    }
+
+    private fun writeSnapshot(logFile: File, record: ByteArray): Long {
+      val tmpFile = File(logFile.parentFile, logFile.name + ".tmp")
+
+      FileOutputStream(tmpFile).use { outputStream ->
+        DataOutputStream(outputStream).apply {
+          writeInt(MAGIC)
+          writeInt(VERSION)
+          flush()
+        }
+
+        outputStream.write(record)
+        outputStream.fd.sync()
+      }
+
+      if (!tmpFile.renameTo(logFile)) {
+        tmpFile.delete()
+        throw IOException("Failed to rename '${tmpFile.absolutePath}' to '${logFile.absolutePath}'")
+      }
+
+      return HEADER_SIZE + record.size.toLong()
+    }
+
+    private fun encodeRecord(ops: List<Op>): ByteArray {
+      val payloadStream = ByteArrayOutputStream()
+
+      DataOutputStream(payloadStream).use { outputStream ->
+        outputStream.writeInt(ops.size)
+
+        ops.forEach { op ->
+          when (op) {
+            is Op.Put -> {
+              outputStream.writeByte(OP_PUT.toInt())
+              outputStream.writeByteArray(op.key.toByteArray(Charsets.UTF_8))
+              outputStream.writeByte(op.value.type.id.toInt())
+              outputStream.writeByteArray(op.value.payload)
+            }
+            is Op.Remove -> {
+              outputStream.writeByte(OP_REMOVE.toInt())
+              outputStream.writeByteArray(op.key.toByteArray(Charsets.UTF_8))
+            }
+            is Op.PutMap -> {
+              outputStream.writeByte(OP_PUT_MAP.toInt())
+              outputStream.writeByteArray(op.key.toByteArray(Charsets.UTF_8))
+              outputStream.writeInt(op.map.size)
+
+              op.map.forEach { (entryKey, entryValue) ->
+                outputStream.writeByteArray(entryKey.toByteArray(Charsets.UTF_8))
+                outputStream.writeByteArray(entryValue.toByteArray(Charsets.UTF_8))
+              }
+            }
+            is Op.PutMapEntry -> {
+              outputStream.writeByte(OP_PUT_MAP_ENTRY.toInt())
+              outputStream.writeByteArray(op.key.toByteArray(Charsets.UTF_8))
+              outputStream.writeByteArray(op.entryKey.toByteArray(Charsets.UTF_8))
+              outputStream.writeByteArray(op.entryValue.toByteArray(Charsets.UTF_8))
+            }
+            is Op.RemoveMapEntry -> {
+              outputStream.writeByte(OP_REMOVE_MAP_ENTRY.toInt())
+              outputStream.writeByteArray(op.key.toByteArray(Charsets.UTF_8))
+              outputStream.writeByteArray(op.entryKey.toByteArray(Charsets.UTF_8))
+            }
+          }
+        }
+      }
+
+      val payload = payloadStream.toByteArray()
+      val crc32 = CRC32().apply { update(payload) }
+
+      return ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.size)
+        .putInt(payload.size)
+        .putInt(crc32.value.toInt())
+        .put(payload)
+        .array()
+    }
+
+    /**
+     * Returns null if the record at [offset] is incomplete or corrupted.
+     * */
+    private fun decodeRecord(bytes: ByteArray, offset: Int): List<Op>? {
+      val header = ByteBuffer.wrap(bytes, offset, RECORD_HEADER_SIZE)
+      val payloadSize = header.int
+      val expectedCrc32 = header.int
+
+      if (payloadSize < 0 || payloadSize > bytes.size - offset - RECORD_HEADER_SIZE) {
+        return null
+      }
+
+      val payloadOffset = offset + RECORD_HEADER_SIZE
+      val crc32 = CRC32().apply { update(bytes, payloadOffset, payloadSize) }
+
+      if (crc32.value.toInt() != expectedCrc32) {
+        return null
+      }
+
+      return try {
+        decodeOps(DataInputStream(bytes.inputStream(payloadOffset, payloadSize)))
+      } catch (error: IOException) {
+        null
+      }
+    }
+
+    private fun decodeOps(inputStream: DataInputStream): List<Op>? {
+      val opsCount = inputStream.readInt()
+      if (opsCount < 0) {
+        return null
+      }
+
+      val ops = ArrayList<Op>()
+
+      repeat(opsCount) {
+        val op = when (inputStream.readByte()) {
+          OP_PUT -> {
+            val key = inputStream.readString()
+            val type = ValueType.fromId(inputStream.readByte())
+              ?: return null
+
+            Op.Put(key, StoredValue(type, inputStream.readByteArray()))
+          }
+          OP_REMOVE -> Op.Remove(inputStream.readString())
+          OP_PUT_MAP -> {
+            val key = inputStream.readString()
+            val entriesCount = inputStream.readInt()
+            val map = LinkedHashMap<String, String>()
+
+            repeat(entriesCount) {
+              map[inputStream.readString()] = inputStream.readString()
+            }
+
+            Op.PutMap(key, map)
+          }
+          OP_PUT_MAP_ENTRY -> {
+            Op.PutMapEntry(inputStream.readString(), inputStream.readString(), inputStream.readString())
+          }
+          OP_REMOVE_MAP_ENTRY -> Op.RemoveMapEntry(inputStream.readString(), inputStream.readString())
+          else -> return null
+        }
+
+        ops += op
+      }
+
+      return ops
+    }
+
+    private fun DataOutputStream.writeByteArray(bytes: ByteArray) {
+      writeInt(bytes.size)
+      write(bytes)
+    }
+
+    private fun DataInputStream.readByteArray(): ByteArray {
+      val size = readInt()
+      if (size < 0 || size > available()) {
+        throw IOException("Bad size: ${size}")
+      }
+
+      return ByteArray(size).also { bytes -> readFully(bytes) }
+    }
+
+    private fun DataInputStream.readString(): String {
+      return String(readByteArray(), Charsets.UTF_8)
+    }
+  }
+
+}
@@ -261,6 +261,7 @@ public class ChanSettings {
     //region THREAD DOWNLOADER
     public static IntegerSetting threadDownloaderUpdateInterval;
     public static BooleanSetting threadDownloaderDownloadMediaOnMeteredNetwork;
+    public static BooleanSetting threadDownloaderExportHtmlInlineStylesheet;
     //endregion
 
     //region APPEARANCE
@@ -335,6 +336,7 @@ public class ChanSettings {
     public static BooleanSetting postLinksTakeWholeHorizSpace;
     public static BooleanSetting markUnseenPosts;
     public static BooleanSetting markSeenThreads;
+    public static BooleanSetting mergeDeletedPostsFromArchives;
 
     // Other options
     public static BooleanSetting fullUserRotationEnable;
@@ -445,7 +447,10 @@ public class ChanSettings {
 
     private static void initInternal() {
         try {
-            SettingProvider provider = new SharedPreferencesSettingProvider(getAppMainPreferences());
+            SettingProvider provider = AppendLogSettingProvider.forSharedPreferences(
+                    chanSettingsInfo.getApplicationId() + "_preferences",
+                    getAppMainPreferences()
+            );
 
             // Must be initialized first to avoid NPEs
             isLowRamDeviceForced = new BooleanSetting(
@@ -475,6 +480,7 @@ public class ChanSettings {
             // region THREAD DOWNLOADER
             threadDownloaderUpdateInterval = new IntegerSetting(provider, "preference_thread_downloader_update_interval", (int) HOURS.toMillis(1));
             threadDownloaderDownloadMediaOnMeteredNetwork = new BooleanSetting(provider, "preference_thread_downloader_download_media_on_metered_network", false);
+            threadDownloaderExportHtmlInlineStylesheet = new BooleanSetting(provider, "preference_thread_downloader_export_html_inline_stylesheet", false);
             //endregion
 
             //region APPEARANCE
@@ -575,6 +581,7 @@ public class ChanSettings {
             postLinksTakeWholeHorizSpace = new BooleanSetting(provider, "post_links_take_whole_horiz_space", true);
             markUnseenPosts = new BooleanSetting(provider, "preference_mark_unseen_posts", true);
             markSeenThreads = new BooleanSetting(provider, "preference_mark_seen_threads", true);
+            mergeDeletedPostsFromArchives = new BooleanSetting(provider, "preference_merge_deleted_posts_from_archives", false);
 
             // Other options
             fullUserRotationEnable = new BooleanSetting(provider, "full_user_rotation_enable", true);
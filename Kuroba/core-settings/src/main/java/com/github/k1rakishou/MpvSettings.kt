@@ -14,7 +14,10 @@ object MpvSettings {
 
   fun init() {
     try {
-      val provider = SharedPreferencesSettingProvider(AndroidUtils.getMpvState())
+      val provider = AppendLogSettingProvider.forSharedPreferences(
+        AndroidUtils.MPV_PREFS_NAME,
+        AndroidUtils.getMpvState()
+      )
 
       hardwareDecoding = BooleanSetting(provider, "hardware_decoding", true)
       videoFastCode = BooleanSetting(provider, "video_fastdecode", false)
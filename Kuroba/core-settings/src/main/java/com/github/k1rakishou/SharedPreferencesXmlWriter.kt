@@ -0,0 +1,60 @@
+package com.github.k1rakishou
+
+import java.io.OutputStream
+
+/**
+ * Writes values in the format of the xml files SharedPreferences keep their values in. Used to put
+ * the settings into backups in a form that the versions of the app from before [AppendLogSettingsStore]
+ * can restore.
+ * */
+object SharedPreferencesXmlWriter {
+
+  /**
+   * Only the types SharedPreferences support (Int, Long, Boolean, Float, String and Set<String>) are
+   * allowed in [values].
+   * */
+  fun write(values: Map<String, Any>, outputStream: OutputStream) {
+    val xml = buildString {
+      append("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n")
+      append("<map>\n")
+
+      values.forEach { (key, value) ->
+        val name = escape(key)
+
+        when (value) {
+          is Int -> append("    <int name=\"$name\" value=\"$value\" />\n")
+          is Long -> append("    <long name=\"$name\" value=\"$value\" />\n")
+          is Boolean -> append("    <boolean name=\"$name\" value=\"$value\" />\n")
+          is Float -> append("    <float name=\"$name\" value=\"$value\" />\n")
+          is String -> append("    <string name=\"$name\">${escape(value)}</string>\n")
+          is Set<*> -> {
+            append("    <set name=\"$name\">\n")
+            value.forEach { string -> append("        <string>${escape(string as String)}</string>\n") }
+            append("    </set>\n")
+          }
+          else -> throw IllegalArgumentException("Unsupported type of '${key}': ${value::class.java.name}")
+        }
+      }
+
+      append("</map>\n")
+    }
+
+    outputStream.write(xml.toByteArray(Charsets.UTF_8))
+  }
+
+  private fun escape(string: String): String {
+    return buildString(string.length) {
+      string.forEach { char ->
+        when {
+          char == '&' -> append("&amp;")
+          char == '<' -> append("&lt;")
+          char == '>' -> append("&gt;")
+          char == '"' -> append("&quot;")
+          char < ' ' && char != '\n' && char != '\r' && char != '\t' -> append("&#${char.code};")
+          else -> append(char)
+        }
+      }
+    }
+  }
+
+}
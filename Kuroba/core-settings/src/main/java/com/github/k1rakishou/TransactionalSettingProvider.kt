@@ -0,0 +1,34 @@
+package com.github.k1rakishou
+
+/**
+ * A [SettingProvider] that can apply multiple changes atomically and that can store maps entry by
+ * entry (so that changing one entry doesn't require re-serializing the whole map).
+ * */
+interface TransactionalSettingProvider : SettingProvider {
+
+  /**
+   * Either all of the changes made in [block] are persisted or none of them. When [sync] is true the
+   * changes are flushed onto the disk before returning.
+   * */
+  fun transaction(sync: Boolean, block: Transaction.() -> Unit)
+
+  /**
+   * Returns the map stored under [key] or null if there is no map stored under this key (the key may
+   * still have a value of a different type, like a map serialized into a json string by an older
+   * version of the app).
+   * */
+  fun getMap(key: String): Map<String, String>?
+
+  interface Transaction {
+    fun putInt(key: String, value: Int)
+    fun putLong(key: String, value: Long)
+    fun putBoolean(key: String, value: Boolean)
+    fun putString(key: String, value: String?)
+    fun remove(key: String)
+
+    fun putMap(key: String, map: Map<String, String>)
+    fun putMapEntry(key: String, entryKey: String, entryValue: String)
+    fun removeMapEntry(key: String, entryKey: String)
+  }
+
+}
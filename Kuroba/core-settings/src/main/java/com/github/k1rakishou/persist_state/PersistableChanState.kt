@@ -3,7 +3,7 @@ package com.github.k1rakishou.persist_state
 import ReorderableMediaViewerActions
 import com.github.k1rakishou.PersistableChanStateInfo
 import com.github.k1rakishou.ReorderableBottomNavViewButtons
-import com.github.k1rakishou.SharedPreferencesSettingProvider
+import com.github.k1rakishou.AppendLogSettingProvider
 import com.github.k1rakishou.common.AndroidUtils
 import com.github.k1rakishou.core_logger.Logger
 import com.github.k1rakishou.prefs.BooleanSetting
@@ -84,7 +84,10 @@ object PersistableChanState {
 
   private fun initInternal() {
     try {
-      val provider = SharedPreferencesSettingProvider(AndroidUtils.getAppState())
+      val provider = AppendLogSettingProvider.forSharedPreferences(
+        AndroidUtils.CHAN_STATE_PREFS_NAME,
+        AndroidUtils.getAppState()
+      )
 
       applicationMigrationVersion = IntegerSetting(provider, "application_migration_version", 0)
       watchLastCount = IntegerSetting(provider, "watch_last_count", 0)
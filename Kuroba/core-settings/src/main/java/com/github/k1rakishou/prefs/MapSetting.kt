@@ -4,6 +4,7 @@ import androidx.annotation.GuardedBy
 import com.github.k1rakishou.ChanSettings
 import com.github.k1rakishou.Setting
 import com.github.k1rakishou.SettingProvider
+import com.github.k1rakishou.TransactionalSettingProvider
 import com.github.k1rakishou.common.mutableListWithCap
 import com.github.k1rakishou.core_logger.Logger
 import com.squareup.moshi.Json
@@ -26,6 +27,9 @@ class MapSetting(
   private val moshi: Moshi
     get() = _moshi.get()
 
+  // When the provider supports it the map is stored entry by entry instead of as one json string
+  private val transactionalSettingProvider = settingProvider as? TransactionalSettingProvider
+
   @Volatile
   @GuardedBy("this")
   private var cache: MutableMap<String, String>? = null
@@ -48,6 +52,22 @@ class MapSetting(
   }
 
   fun put(key: String, value: String) {
+    if (transactionalSettingProvider != null) {
+      val cacheCopy = withCache {
+        put(key, value)
+        return@withCache toMap()
+      }
+
+      val entry = mapperTo(KeyValue(key, value))
+
+      transactionalSettingProvider.transaction(sync = false) {
+        putMapEntry(this@MapSetting.key, entry.key, entry.value)
+      }
+
+      settingState.onNext(cacheCopy)
+      return
+    }
+
     val cacheCopy = withCache {
       val copy = toMutableMap()
       copy.put(key, value)
@@ -62,6 +82,26 @@ class MapSetting(
   }
 
   fun remove(key: String): String? {
+    if (transactionalSettingProvider != null) {
+      val (value, cacheCopy) = withCache {
+        val value = remove(key)
+        return@withCache value to toMap()
+      }
+
+      if (value == null) {
+        return null
+      }
+
+      val entry = mapperTo(KeyValue(key, value))
+
+      transactionalSettingProvider.transaction(sync = false) {
+        removeMapEntry(this@MapSetting.key, entry.key)
+      }
+
+      settingState.onNext(cacheCopy)
+      return value
+    }
+
     val (value, cacheCopy) = withCache {
       val copy = toMutableMap()
       val value = copy.remove(key)
@@ -78,6 +118,19 @@ class MapSetting(
       return cached
     }
 
+    val storedEntries = transactionalSettingProvider?.getMap(key)
+    if (storedEntries != null) {
+      val entries = mutableMapOf<String, String>()
+
+      storedEntries.forEach { (entryKey, entryValue) ->
+        val mapped = mapperFrom(MapSettingEntry(entryKey, entryValue))
+        entries.put(mapped.key, mapped.value)
+      }
+
+      cache = entries
+      return entries
+    }
+
     cache = mutableMapOf<String, String>()
     val json = settingProvider.getString(key, ChanSettings.EMPTY_JSON)
 
@@ -99,6 +152,12 @@ class MapSetting(
       cache = def.toMutableMap()
     }
 
+    if (transactionalSettingProvider != null) {
+      // Convert the json string into a map so that it can be updated entry by entry from now on
+      val entries = convertMapToEntries(cache!!)
+      transactionalSettingProvider.transaction(sync = false) { putMap(key, entries) }
+    }
+
     return cache!!
   }
 
@@ -107,14 +166,12 @@ class MapSetting(
       return
     }
 
-    val json = convertMapToJson(value)
-
     withCache {
       clear()
       putAll(value)
     }
 
-    settingProvider.putString(key, json)
+    persist(value, sync = false)
     settingState.onNext(value)
   }
 
@@ -123,14 +180,12 @@ class MapSetting(
       return
     }
 
-    val json = convertMapToJson(value)
-
     withCache {
       clear()
       putAll(value)
     }
 
-    settingProvider.putStringSync(key, json)
+    persist(value, sync = true)
     settingState.onNext(value)
   }
 
@@ -141,6 +196,33 @@ class MapSetting(
       .observeOn(AndroidSchedulers.mainThread())
   }
 
+  private fun persist(value: Map<String, String>, sync: Boolean) {
+    if (transactionalSettingProvider != null) {
+      val entries = convertMapToEntries(value)
+      transactionalSettingProvider.transaction(sync) { putMap(key, entries) }
+      return
+    }
+
+    val json = convertMapToJson(value)
+
+    if (sync) {
+      settingProvider.putStringSync(key, json)
+    } else {
+      settingProvider.putString(key, json)
+    }
+  }
+
+  private fun convertMapToEntries(value: Map<String, String>): Map<String, String> {
+    val entries = LinkedHashMap<String, String>(value.size)
+
+    value.entries.forEach { entry ->
+      val mapped = mapperTo(KeyValue(entry.key, entry.value))
+      entries[mapped.key] = mapped.value
+    }
+
+    return entries
+  }
+
   private fun convertMapToJson(value: Map<String, String>): String {
     val entries = mutableListWithCap<MapSettingEntry>(value.size)
 
@@ -171,6 +253,18 @@ class MapSetting(
 
   companion object {
     private const val TAG = "MapSetting"
+
+    /**
+     * Converts the entries of a map stored entry by entry by a [TransactionalSettingProvider] into the
+     * json string the map is stored as by other providers.
+     * */
+    fun convertStoredEntriesToJson(moshi: Moshi, storedEntries: Map<String, String>): String {
+      val entries = storedEntries.map { (entryKey, entryValue) -> MapSettingEntry(entryKey, entryValue) }
+
+      return moshi
+        .adapter<MapSettingEntries>(MapSettingEntries::class.java)
+        .toJson(MapSettingEntries(entries))
+    }
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,410 @@
+package com.github.k1rakishou
+
+import com.github.k1rakishou.AppendLogSettingsStore.Op
+import com.github.k1rakishou.AppendLogSettingsStore.StoredValue
+import junit.framework.Assert.assertEquals
+import junit.framework.Assert.assertFalse
+import junit.framework.Assert.assertNotNull
+import junit.framework.Assert.assertNull
+import junit.framework.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+
+class AppendLogSettingsStoreTest {
+
+  @get:Rule
+  val temporaryFolder = TemporaryFolder()
+
+  @Test
+  fun `test values survive reopening`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile)
+
+    store.commit(
+      listOf(
+        Op.Put("int", StoredValue.ofInt(-42)),
+        Op.Put("long", StoredValue.ofLong(Long.MAX_VALUE)),
+        Op.Put("boolean", StoredValue.ofBoolean(true)),
+        Op.Put("string", StoredValue.ofString("тест ☃")),
+        Op.PutMap("map", mapOf("a" to "1", "b" to "2"))
+      ),
+      sync = true
+    )
+
+    store.commit(listOf(Op.PutMapEntry("map", "c", "3"), Op.RemoveMapEntry("map", "a")), sync = false)
+    store.commit(listOf(Op.Put("removed", StoredValue.ofInt(1))), sync = false)
+    store.commit(listOf(Op.Remove("removed")), sync = false)
+
+    val reopened = AppendLogSettingsStore.open(logFile)
+
+    assertEquals(-42, reopened.get("int")!!.decodeInt())
+    assertEquals(Long.MAX_VALUE, reopened.get("long")!!.decodeLong())
+    assertTrue(reopened.get("boolean")!!.decodeBoolean())
+    assertEquals("тест ☃", reopened.get("string")!!.decodeString())
+    assertEquals(mapOf("b" to "2", "c" to "3"), reopened.getMap("map"))
+    assertFalse(reopened.contains("removed"))
+    assertEquals(setOf("int", "long", "boolean", "string", "map"), reopened.keys)
+  }
+
+  @Test
+  fun `test transaction is either fully visible or not visible at all after a crash`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile)
+
+    store.commit(listOf(Op.Put("a", StoredValue.ofInt(1)), Op.Put("b", StoredValue.ofInt(1))), sync = true)
+    val sizeBeforeTransaction = logFile.length().toInt()
+
+    store.commit(
+      listOf(
+        Op.Put("a", StoredValue.ofInt(2)),
+        Op.Put("b", StoredValue.ofInt(2)),
+        Op.PutMapEntry("map", "key", "value")
+      ),
+      sync = true
+    )
+
+    val fullLog = logFile.readBytes()
+
+    // Simulate the process being killed at every possible point while the transaction was being written
+    for (writtenBytes in sizeBeforeTransaction until fullLog.size) {
+      logFile.writeBytes(fullLog.copyOf(writtenBytes))
+
+      val reopened = AppendLogSettingsStore.open(logFile)
+      assertEquals(1, reopened.get("a")!!.decodeInt())
+      assertEquals(1, reopened.get("b")!!.decodeInt())
+      assertNull(reopened.getMap("map"))
+
+      // The partially written record is cut off so new records are not lost after it
+      assertEquals(sizeBeforeTransaction.toLong(), logFile.length())
+      reopened.commit(listOf(Op.Put("c", StoredValue.ofInt(writtenBytes))), sync = false)
+
+      val reopenedAgain = AppendLogSettingsStore.open(logFile)
+      assertEquals(1, reopenedAgain.get("a")!!.decodeInt())
+      assertEquals(writtenBytes, reopenedAgain.get("c")!!.decodeInt())
+    }
+
+    logFile.writeBytes(fullLog)
+
+    val reopened = AppendLogSettingsStore.open(logFile)
+    assertEquals(2, reopened.get("a")!!.decodeInt())
+    assertEquals(2, reopened.get("b")!!.decodeInt())
+    assertEquals(mapOf("key" to "value"), reopened.getMap("map"))
+  }
+
+  @Test
+  fun `test corrupted record is discarded`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile)
+
+    store.commit(listOf(Op.Put("a", StoredValue.ofString("first"))), sync = true)
+    store.commit(listOf(Op.Put("a", StoredValue.ofString("second"))), sync = true)
+
+    // Flip a bit in the payload of the last record
+    val bytes = logFile.readBytes()
+    bytes[bytes.size - 1] = (bytes[bytes.size - 1].toInt() xor 1).toByte()
+    logFile.writeBytes(bytes)
+
+    assertEquals("first", AppendLogSettingsStore.open(logFile).get("a")!!.decodeString())
+  }
+
+  @Test
+  fun `test unknown file is replaced with the initial values`() {
+    val logFile = logFile()
+    logFile.writeText("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>")
+
+    val store = AppendLogSettingsStore.open(logFile) { mapOf("a" to 1, "b" to "value") }
+    assertEquals(1, store.get("a")!!.decodeInt())
+    assertEquals("value", store.get("b")!!.decodeString())
+
+    store.commit(listOf(Op.Put("a", StoredValue.ofInt(2))), sync = false)
+
+    val reopened = AppendLogSettingsStore.open(logFile)
+    assertEquals(2, reopened.get("a")!!.decodeInt())
+    assertEquals("value", reopened.get("b")!!.decodeString())
+  }
+
+  @Test
+  fun `test closed store does not touch the replaced log`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile, minCompactionSizeBytes = 1024)
+    store.commit(listOf(Op.Put("a", StoredValue.ofInt(1))), sync = true)
+
+    // A backup is being restored while the app is running
+    AppendLogSettingsStore.closeStore(logFile)
+    logFile.delete()
+
+    repeat(1000) { index -> store.commit(listOf(Op.Put("a", StoredValue.ofInt(index))), sync = false) }
+    assertEquals(999, store.get("a")!!.decodeInt())
+    assertFalse(logFile.exists())
+
+    val restoredStore = AppendLogSettingsStore.open(logFile) { mapOf("a" to -1) }
+    restoredStore.commit(listOf(Op.Put("b", StoredValue.ofInt(2))), sync = false)
+
+    store.compact()
+    store.commit(listOf(Op.Put("c", StoredValue.ofInt(3))), sync = true)
+
+    val reopened = AppendLogSettingsStore.open(logFile)
+    assertEquals(-1, reopened.get("a")!!.decodeInt())
+    assertEquals(2, reopened.get("b")!!.decodeInt())
+    assertFalse(reopened.contains("c"))
+  }
+
+  @Test
+  fun `test commits are written in the background`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile)
+    val sizeAfterOpen = logFile.length()
+
+    repeat(100) { index -> store.commit(listOf(Op.Put("counter", StoredValue.ofInt(index))), sync = false) }
+    assertEquals(99, store.get("counter")!!.decodeInt())
+
+    // Written without anyone calling flush()
+    val deadline = System.currentTimeMillis() + 5000
+    while (logFile.length() == sizeAfterOpen && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1)
+    }
+
+    assertTrue(logFile.length() > sizeAfterOpen)
+
+    // A sync commit writes everything that is still pending
+    store.commit(listOf(Op.Put("sync", StoredValue.ofBoolean(true))), sync = true)
+    val fileContents = logFile.readBytes()
+
+    val reopened = AppendLogSettingsStore.open(logFile)
+    assertEquals(99, reopened.get("counter")!!.decodeInt())
+    assertTrue(reopened.get("sync")!!.decodeBoolean())
+    assertTrue(fileContents.contentEquals(logFile.readBytes()))
+  }
+
+  @Test
+  fun `test background write failure is reported to the listener instead of the next commit`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile)
+
+    val reportedError = AtomicReference<IOException>()
+    val errorReported = CountDownLatch(1)
+
+    store.backgroundWriteErrorListener = { error ->
+      reportedError.set(error)
+      errorReported.countDown()
+    }
+
+    // Nothing can be appended to a directory
+    logFile.delete()
+    logFile.mkdirs()
+
+    store.commit(listOf(Op.Put("a", StoredValue.ofInt(1))), sync = false)
+    assertTrue(errorReported.await(5, TimeUnit.SECONDS))
+    assertNotNull(reportedError.get())
+
+    // Unrelated commits don't fail because of the previous write
+    store.commit(listOf(Op.Put("b", StoredValue.ofInt(2))), sync = false)
+    assertEquals(1, store.get("a")!!.decodeInt())
+    assertEquals(2, store.get("b")!!.decodeInt())
+  }
+
+  @Test
+  fun `test log is compacted`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile, minCompactionSizeBytes = 4096)
+
+    repeat(10_000) { index ->
+      store.commit(listOf(Op.Put("counter", StoredValue.ofInt(index))), sync = false)
+      assertTrue(logFile.length() < 4096 + 64)
+    }
+
+    assertEquals(9_999, AppendLogSettingsStore.open(logFile).get("counter")!!.decodeInt())
+  }
+
+  @Test
+  fun `test shared preferences are imported once`() {
+    val logFile = logFile()
+    var importsCount = 0
+
+    val sharedPreferences = mapOf(
+      "int" to 1,
+      "long" to 2L,
+      "boolean" to false,
+      "string" to "value",
+      "float" to 1.5f,
+      "set" to setOf("a", "b")
+    )
+
+    val store = AppendLogSettingsStore.open(logFile) { ++importsCount; sharedPreferences }
+    assertEquals(sharedPreferences.keys, store.keys)
+
+    store.commit(listOf(Op.Put("int", StoredValue.ofInt(100))), sync = false)
+
+    val reopened = AppendLogSettingsStore.open(logFile) { ++importsCount; sharedPreferences }
+    assertEquals(1, importsCount)
+    assertEquals(100, reopened.get("int")!!.decodeInt())
+    assertEquals(2L, reopened.get("long")!!.decodeLong())
+    assertFalse(reopened.get("boolean")!!.decodeBoolean())
+    assertEquals("value", reopened.get("string")!!.decodeString())
+    assertEquals(1.5f, reopened.get("float")!!.decodeFloat())
+    assertEquals(setOf("a", "b"), reopened.get("set")!!.decodeStringSet())
+  }
+
+  @Test
+  fun `test values are read without touching the log`() {
+    val logFile = logFile()
+    val store = AppendLogSettingsStore.open(logFile)
+
+    store.commit(
+      listOf(
+        Op.Put("int", StoredValue.ofInt(1)),
+        Op.Put("set", StoredValue.ofStringSet(setOf("a"))),
+        Op.PutMap("map", mapOf("key" to "value"))
+      ),
+      sync = true
+    )
+
+    val expected = mapOf("int" to 1, "set" to setOf("a"), "map" to mapOf("key" to "value"))
+    assertEquals(expected, AppendLogSettingsStore.readValues(logFile))
+
+    // A partially written record is not cut off when the store is not open
+    AppendLogSettingsStore.closeStore(logFile)
+    logFile.appendBytes(byteArrayOf(0, 0, 0, 100))
+    val fileContents = logFile.readBytes()
+
+    assertEquals(expected, AppendLogSettingsStore.readValues(logFile))
+    assertTrue(fileContents.contentEquals(logFile.readBytes()))
+  }
+
+  @Test
+  fun `test provider persists default values`() {
+    val logFile = logFile()
+    val provider = AppendLogSettingProvider(AppendLogSettingsStore.open(logFile))
+
+    assertEquals(10, provider.getInt("int", 10))
+    assertEquals("def", provider.getString("string", "def"))
+
+    // The default was changed in a new version of the app, the user keeps the old one
+    val reopened = AppendLogSettingProvider(AppendLogSettingsStore.open(logFile))
+    assertEquals(10, reopened.getInt("int", 20))
+    assertEquals("def", reopened.getString("string", "new_def"))
+
+    reopened.transaction(sync = true) {
+      putInt("int", 30)
+      putString("string", null)
+      putMapEntry("map", "key", "value")
+    }
+
+    val reopenedAgain = AppendLogSettingProvider(AppendLogSettingsStore.open(logFile))
+    assertEquals(30, reopenedAgain.getInt("int", 20))
+    assertNull(reopenedAgain.getString("string", null))
+    assertEquals(mapOf("key" to "value"), reopenedAgain.getMap("map"))
+  }
+
+  @Test
+  fun `test write amplification compared to shared preferences`() {
+    val store = AppendLogSettingsStore.open(logFile())
+
+    // Roughly the amount of settings the main preferences file has
+    val settings = (0 until 300).associateTo(LinkedHashMap<String, Any>()) { index ->
+      if (index % 2 == 0) {
+        "preference_setting_number_$index" to index
+      } else {
+        "preference_setting_number_$index" to "some_setting_value_$index"
+      }
+    }
+
+    store.commit(settings.map { (key, value) -> Op.Put(key, storedValueOf(value)) }, sync = false)
+    store.flush()
+    val bytesWrittenBefore = store.bytesWritten
+
+    var sharedPreferencesBytesWritten = 0L
+
+    repeat(1000) { index ->
+      val key = "preference_setting_number_${(index * 7) % 300}"
+      val value: Any = if (settings[key] is Int) index else "new_value_$index"
+
+      settings[key] = value
+      store.commit(listOf(Op.Put(key, storedValueOf(value))), sync = false)
+
+      // Every commit()/apply() rewrites the whole xml file
+      sharedPreferencesBytesWritten += sharedPreferencesXmlSize(settings)
+    }
+
+    store.flush()
+    val logBytesWritten = store.bytesWritten - bytesWrittenBefore
+
+    assertTrue(
+      "log=${logBytesWritten}, sharedPreferences=${sharedPreferencesBytesWritten}",
+      logBytesWritten * 10 < sharedPreferencesBytesWritten
+    )
+  }
+
+  @Test
+  fun `test map entry updates do not rewrite the whole map`() {
+    val store = AppendLogSettingsStore.open(logFile())
+
+    val cookies = (0 until 50).associateTo(LinkedHashMap()) { index ->
+      "site$index.com" to "cf_clearance_" + "x".repeat(40) + index
+    }
+
+    store.commit(listOf(Op.PutMap("cloud_flare_clearance_cookie_map", cookies)), sync = false)
+    store.flush()
+    val bytesWrittenBefore = store.bytesWritten
+
+    var jsonBytesWritten = 0L
+
+    repeat(200) { index ->
+      val site = "site${index % 50}.com"
+      val cookie = "cf_clearance_" + "y".repeat(40) + index
+
+      cookies[site] = cookie
+      store.commit(listOf(Op.PutMapEntry("cloud_flare_clearance_cookie_map", site, cookie)), sync = false)
+
+      // MapSetting used to serialize the whole map into json and store it as a string
+      val json = cookies.entries.joinToString(prefix = "{\"entries\":[", postfix = "]}", separator = ",") { (key, value) ->
+        "{\"key\":\"$key\",\"value\":\"$value\"}"
+      }
+
+      jsonBytesWritten += sharedPreferencesXmlSize(mapOf("cloud_flare_clearance_cookie_map" to json))
+    }
+
+    store.flush()
+    val logBytesWritten = store.bytesWritten - bytesWrittenBefore
+
+    assertTrue("log=${logBytesWritten}, json=${jsonBytesWritten}", logBytesWritten * 10 < jsonBytesWritten)
+    assertEquals(cookies, store.getMap("cloud_flare_clearance_cookie_map"))
+  }
+
+  private fun logFile(): File = temporaryFolder.root.resolve("prefs" + AppendLogSettingProvider.LOG_FILE_EXTENSION)
+
+  private fun storedValueOf(value: Any): StoredValue {
+    return when (value) {
+      is Int -> StoredValue.ofInt(value)
+      is String -> StoredValue.ofString(value)
+      else -> throw IllegalArgumentException("Unsupported value: $value")
+    }
+  }
+
+  /**
+   * The size of the xml file SharedPreferences would write for [values].
+   * */
+  private fun sharedPreferencesXmlSize(values: Map<String, Any>): Long {
+    val xml = buildString {
+      append("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n")
+
+      values.forEach { (key, value) ->
+        when (value) {
+          is Int -> append("    <int name=\"$key\" value=\"$value\" />\n")
+          else -> append("    <string name=\"$key\">$value</string>\n")
+        }
+      }
+
+      append("</map>\n")
+    }
+
+    return xml.toByteArray(Charsets.UTF_8).size.toLong()
+  }
+
+}
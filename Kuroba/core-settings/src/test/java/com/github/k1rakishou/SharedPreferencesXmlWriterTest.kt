@@ -0,0 +1,39 @@
+package com.github.k1rakishou
+
+import junit.framework.Assert.assertEquals
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+
+class SharedPreferencesXmlWriterTest {
+
+  @Test
+  fun `test every shared preferences type is written`() {
+    val values = linkedMapOf(
+      "int" to 1,
+      "long" to 2L,
+      "boolean" to true,
+      "float" to 1.5f,
+      "string" to "<a href=\"https://example.com/?a=1&b=2\">link</a>",
+      "set" to setOf("a", "b")
+    )
+
+    val outputStream = ByteArrayOutputStream()
+    SharedPreferencesXmlWriter.write(values, outputStream)
+
+    val expected = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n" +
+      "<map>\n" +
+      "    <int name=\"int\" value=\"1\" />\n" +
+      "    <long name=\"long\" value=\"2\" />\n" +
+      "    <boolean name=\"boolean\" value=\"true\" />\n" +
+      "    <float name=\"float\" value=\"1.5\" />\n" +
+      "    <string name=\"string\">&lt;a href=&quot;https://example.com/?a=1&amp;b=2&quot;&gt;link&lt;/a&gt;</string>\n" +
+      "    <set name=\"set\">\n" +
+      "        <string>a</string>\n" +
+      "        <string>b</string>\n" +
+      "    </set>\n" +
+      "</map>\n"
+
+    assertEquals(expected, outputStream.toString("UTF-8"))
+  }
+
+}
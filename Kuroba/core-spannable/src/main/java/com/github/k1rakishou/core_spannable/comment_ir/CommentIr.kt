@@ -0,0 +1,115 @@
+package com.github.k1rakishou.core_spannable.comment_ir
+
+/**
+ * Platform independent representation of a parsed post comment: the comment text plus a packed
+ * array of spans. Every span takes [SPAN_STRIDE] ints: span type, start, end, flags and payload. The
+ * payload is either the value itself (for [SPAN_STYLE], [SPAN_ABSOLUTE_SIZE], [SPAN_FOREGROUND_COLOR]
+ * and [SPAN_BACKGROUND_COLOR]) or an index into [objects].
+ *
+ * Android spans are only created when the comment is materialized (see [CommentIrSpannables]) which
+ * allows parsing, filtering and searching posts without touching the Android text classes.
+ *
+ * Immutable, use [CommentIrBuilder] to create one.
+ * */
+class CommentIr internal constructor(
+  val text: String,
+  private val spans: IntArray,
+  val spanCount: Int,
+  private val objects: Array<Any?>
+) : CharSequence {
+
+  override val length: Int
+    get() = text.length
+
+  override fun get(index: Int): Char = text[index]
+
+  override fun subSequence(startIndex: Int, endIndex: Int): CharSequence = text.subSequence(startIndex, endIndex)
+
+  fun spanType(index: Int): Int = spans[index * SPAN_STRIDE + TYPE_OFFSET]
+  fun spanStart(index: Int): Int = spans[index * SPAN_STRIDE + START_OFFSET]
+  fun spanEnd(index: Int): Int = spans[index * SPAN_STRIDE + END_OFFSET]
+  fun spanFlags(index: Int): Int = spans[index * SPAN_STRIDE + FLAGS_OFFSET]
+  fun spanIntPayload(index: Int): Int = spans[index * SPAN_STRIDE + PAYLOAD_OFFSET]
+  fun spanObjectPayload(index: Int): Any? = objects[spans[index * SPAN_STRIDE + PAYLOAD_OFFSET]]
+
+  fun hasNoSpans(): Boolean = spanCount == 0
+
+  override fun toString(): String = text
+
+  override fun equals(other: Any?): Boolean {
+    if (this === other) return true
+    if (javaClass != other?.javaClass) return false
+
+    other as CommentIr
+
+    if (text != other.text) return false
+    if (spanCount != other.spanCount) return false
+
+    for (index in 0 until spanCount) {
+      if (spanType(index) != other.spanType(index)) return false
+      if (spanStart(index) != other.spanStart(index)) return false
+      if (spanEnd(index) != other.spanEnd(index)) return false
+      if (spanFlags(index) != other.spanFlags(index)) return false
+
+      if (hasObjectPayload(spanType(index))) {
+        if (spanObjectPayload(index) != other.spanObjectPayload(index)) return false
+      } else {
+        if (spanIntPayload(index) != other.spanIntPayload(index)) return false
+      }
+    }
+
+    return true
+  }
+
+  override fun hashCode(): Int {
+    var result = text.hashCode()
+    result = 31 * result + spanCount
+    return result
+  }
+
+  companion object {
+    internal const val SPAN_STRIDE = 5
+    internal const val TYPE_OFFSET = 0
+    internal const val START_OFFSET = 1
+    internal const val END_OFFSET = 2
+    internal const val FLAGS_OFFSET = 3
+    internal const val PAYLOAD_OFFSET = 4
+
+    // Already created span object (PostLinkable, ThemeJsonSpannable etc.)
+    const val SPAN_OBJECT = 0
+    // payload: ChanThemeColorId
+    const val SPAN_FOREGROUND_COLOR_ID = 1
+    // payload: ChanThemeColorId
+    const val SPAN_BACKGROUND_COLOR_ID = 2
+    // payload: color int
+    const val SPAN_FOREGROUND_COLOR = 3
+    // payload: color int
+    const val SPAN_BACKGROUND_COLOR = 4
+    const val SPAN_STRIKETHROUGH = 5
+    const val SPAN_UNDERLINE = 6
+    const val SPAN_OVERLINE = 7
+    const val SPAN_SUPERSCRIPT = 8
+    const val SPAN_SUBSCRIPT = 9
+    // payload: android.graphics.Typeface style int
+    const val SPAN_STYLE = 10
+    // payload: font family String
+    const val SPAN_TYPEFACE = 11
+    // payload: size in pixels
+    const val SPAN_ABSOLUTE_SIZE = 12
+
+    @JvmField
+    val EMPTY = CommentIr("", IntArray(0), 0, emptyArray())
+
+    @JvmStatic
+    fun hasObjectPayload(spanType: Int): Boolean {
+      return when (spanType) {
+        SPAN_OBJECT,
+        SPAN_FOREGROUND_COLOR_ID,
+        SPAN_BACKGROUND_COLOR_ID,
+        SPAN_TYPEFACE -> true
+        else -> false
+      }
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+package com.github.k1rakishou.core_spannable.comment_ir
+
+/**
+ * Append-only builder of [CommentIr]. The comment is built in a single pass: the text of every html
+ * node is appended once and the spans of a tag are added over the range its children were appended
+ * to, so nothing is copied when the nesting gets deeper (unlike concatenating the Spannables of every
+ * nesting level).
+ *
+ * The only way to remove something is [truncate] which is used to replace what a tag's children
+ * appended with the tag's own output.
+ * */
+class CommentIrBuilder(expectedLength: Int = 64) {
+  private val textBuilder = StringBuilder(expectedLength)
+  private var spans = IntArray(INITIAL_SPANS_CAPACITY * CommentIr.SPAN_STRIDE)
+  private val objects = ArrayList<Any?>()
+
+  var spanCount: Int = 0
+    private set
+
+  val length: Int
+    get() = textBuilder.length
+
+  /**
+   * The text appended so far. Must not be held onto after the builder is modified.
+   * */
+  val text: CharSequence
+    get() = textBuilder
+
+  fun append(text: CharSequence): CommentIrBuilder {
+    textBuilder.append(text)
+    return this
+  }
+
+  fun append(text: CharSequence, start: Int, end: Int): CommentIrBuilder {
+    textBuilder.append(text, start, end)
+    return this
+  }
+
+  fun append(char: Char): CommentIrBuilder {
+    textBuilder.append(char)
+    return this
+  }
+
+  /**
+   * Appends the text of [commentIr] together with its spans.
+   * */
+  fun appendIr(commentIr: CommentIr): CommentIrBuilder {
+    val start = textBuilder.length
+    textBuilder.append(commentIr.text)
+
+    for (index in 0 until commentIr.spanCount) {
+      val spanType = commentIr.spanType(index)
+      val spanStart = start + commentIr.spanStart(index)
+      val spanEnd = start + commentIr.spanEnd(index)
+      val flags = commentIr.spanFlags(index)
+
+      if (CommentIr.hasObjectPayload(spanType)) {
+        setObjectSpan(spanType, spanStart, spanEnd, flags, commentIr.spanObjectPayload(index)!!)
+      } else {
+        setSpan(spanType, spanStart, spanEnd, flags, commentIr.spanIntPayload(index))
+      }
+    }
+
+    return this
+  }
+
+  fun endsWith(char: Char): Boolean {
+    return textBuilder.isNotEmpty() && textBuilder[textBuilder.length - 1] == char
+  }
+
+  fun substring(start: Int, end: Int = textBuilder.length): String {
+    return textBuilder.substring(start, end)
+  }
+
+  fun setSpan(spanType: Int, start: Int, end: Int, flags: Int, intPayload: Int = 0): CommentIrBuilder {
+    require(!CommentIr.hasObjectPayload(spanType)) { "Span type $spanType requires an object payload" }
+
+    addSpan(spanType, start, end, flags, intPayload)
+    return this
+  }
+
+  fun setObjectSpan(spanType: Int, start: Int, end: Int, flags: Int, payload: Any): CommentIrBuilder {
+    require(CommentIr.hasObjectPayload(spanType)) { "Span type $spanType does not take an object payload" }
+
+    objects.add(payload)
+    addSpan(spanType, start, end, flags, objects.lastIndex)
+    return this
+  }
+
+  /**
+   * Drops the text after [textLength] and the spans added after the first [spanCount] ones.
+   * */
+  fun truncate(textLength: Int, spanCount: Int) {
+    require(textLength in 0..textBuilder.length) { "Bad textLength: $textLength, length: ${textBuilder.length}" }
+    require(spanCount in 0..this.spanCount) { "Bad spanCount: $spanCount, spanCount: ${this.spanCount}" }
+
+    textBuilder.setLength(textLength)
+
+    var objectsCount = objects.size
+    for (index in spanCount until this.spanCount) {
+      val offset = index * CommentIr.SPAN_STRIDE
+
+      if (CommentIr.hasObjectPayload(spans[offset + CommentIr.TYPE_OFFSET])) {
+        objectsCount = minOf(objectsCount, spans[offset + CommentIr.PAYLOAD_OFFSET])
+      }
+    }
+
+    while (objects.size > objectsCount) {
+      objects.removeAt(objects.lastIndex)
+    }
+
+    this.spanCount = spanCount
+  }
+
+  /**
+   * A [CommentIr] of the text starting at [textStart] and the spans starting at [spanStart] (with
+   * their offsets shifted by [textStart]).
+   * */
+  fun snapshot(textStart: Int, spanStart: Int): CommentIr {
+    val count = spanCount - spanStart
+    val newSpans = spans.copyOfRange(spanStart * CommentIr.SPAN_STRIDE, spanCount * CommentIr.SPAN_STRIDE)
+    val newObjects = ArrayList<Any?>()
+
+    for (index in 0 until count) {
+      val offset = index * CommentIr.SPAN_STRIDE
+      newSpans[offset + CommentIr.START_OFFSET] -= textStart
+      newSpans[offset + CommentIr.END_OFFSET] -= textStart
+
+      if (CommentIr.hasObjectPayload(newSpans[offset + CommentIr.TYPE_OFFSET])) {
+        newObjects.add(objects[newSpans[offset + CommentIr.PAYLOAD_OFFSET]])
+        newSpans[offset + CommentIr.PAYLOAD_OFFSET] = newObjects.lastIndex
+      }
+    }
+
+    return CommentIr(textBuilder.substring(textStart), newSpans, count, newObjects.toTypedArray())
+  }
+
+  fun build(): CommentIr {
+    if (textBuilder.isEmpty() && spanCount == 0) {
+      return CommentIr.EMPTY
+    }
+
+    return CommentIr(
+      text = textBuilder.toString(),
+      spans = spans.copyOf(spanCount * CommentIr.SPAN_STRIDE),
+      spanCount = spanCount,
+      objects = objects.toTypedArray()
+    )
+  }
+
+  private fun addSpan(spanType: Int, start: Int, end: Int, flags: Int, payload: Int) {
+    require(start in 0..end && end <= textBuilder.length) {
+      "Bad span range: start=$start, end=$end, length=${textBuilder.length}"
+    }
+
+    val offset = spanCount * CommentIr.SPAN_STRIDE
+    if (offset + CommentIr.SPAN_STRIDE > spans.size) {
+      spans = spans.copyOf(spans.size * 2)
+    }
+
+    spans[offset + CommentIr.TYPE_OFFSET] = spanType
+    spans[offset + CommentIr.START_OFFSET] = start
+    spans[offset + CommentIr.END_OFFSET] = end
+    spans[offset + CommentIr.FLAGS_OFFSET] = flags
+    spans[offset + CommentIr.PAYLOAD_OFFSET] = payload
+
+    ++spanCount
+  }
+
+  companion object {
+    private const val INITIAL_SPANS_CAPACITY = 8
+  }
+
+}
@@ -0,0 +1,105 @@
+package com.github.k1rakishou.core_spannable.comment_ir
+
+import android.text.SpannableString
+import android.text.Spanned
+import android.text.style.StrikethroughSpan
+import android.text.style.StyleSpan
+import android.text.style.TypefaceSpan
+import android.text.style.UnderlineSpan
+import com.github.k1rakishou.core_spannable.AbsoluteSizeSpanHashed
+import com.github.k1rakishou.core_spannable.BackgroundColorIdSpan
+import com.github.k1rakishou.core_spannable.BackgroundColorSpanHashed
+import com.github.k1rakishou.core_spannable.ForegroundColorIdSpan
+import com.github.k1rakishou.core_spannable.ForegroundColorSpanHashed
+import com.github.k1rakishou.core_spannable.OverlineSpan
+import com.github.k1rakishou.core_spannable.ScriptSpan
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+
+/**
+ * Conversions between [CommentIr] and the Android text classes.
+ * */
+object CommentIrSpannables {
+
+  /**
+   * Creates the Android spans of [commentIr]. This is the only place where they are created for
+   * parsed comments so it should only be called once the comment is about to be displayed.
+   * */
+  @JvmStatic
+  fun toSpannable(commentIr: CommentIr): SpannableString {
+    val spannable = SpannableString(commentIr.text)
+
+    for (index in 0 until commentIr.spanCount) {
+      spannable.setSpan(
+        createSpan(commentIr, index),
+        commentIr.spanStart(index),
+        commentIr.spanEnd(index),
+        commentIr.spanFlags(index)
+      )
+    }
+
+    return spannable
+  }
+
+  /**
+   * Materializes what was appended to [builder] after [textStart] (and the spans added after
+   * the first [spanStart] ones). Used when a tag handler needs the Android representation of its
+   * children.
+   * */
+  @JvmStatic
+  fun toSpannable(builder: CommentIrBuilder, textStart: Int, spanStart: Int): SpannableString {
+    return toSpannable(builder.snapshot(textStart, spanStart))
+  }
+
+  /**
+   * Appends [text] to [builder] keeping the spans of [text] as already created span objects.
+   * */
+  @JvmStatic
+  fun append(builder: CommentIrBuilder, text: CharSequence) {
+    if (text is CommentIr) {
+      builder.appendIr(text)
+      return
+    }
+
+    val start = builder.length
+    builder.append(text)
+
+    if (text !is Spanned) {
+      return
+    }
+
+    for (span in text.getSpans(0, text.length, Any::class.java)) {
+      builder.setObjectSpan(
+        CommentIr.SPAN_OBJECT,
+        start + text.getSpanStart(span),
+        start + text.getSpanEnd(span),
+        text.getSpanFlags(span),
+        span
+      )
+    }
+  }
+
+  @JvmStatic
+  fun createSpan(commentIr: CommentIr, index: Int): Any {
+    return when (val spanType = commentIr.spanType(index)) {
+      CommentIr.SPAN_OBJECT -> commentIr.spanObjectPayload(index)!!
+      CommentIr.SPAN_FOREGROUND_COLOR_ID -> {
+        ForegroundColorIdSpan(commentIr.spanObjectPayload(index) as ChanThemeColorId)
+      }
+      CommentIr.SPAN_BACKGROUND_COLOR_ID -> {
+        BackgroundColorIdSpan(commentIr.spanObjectPayload(index) as ChanThemeColorId)
+      }
+      CommentIr.SPAN_FOREGROUND_COLOR -> ForegroundColorSpanHashed(commentIr.spanIntPayload(index))
+      CommentIr.SPAN_BACKGROUND_COLOR -> BackgroundColorSpanHashed(commentIr.spanIntPayload(index))
+      CommentIr.SPAN_STRIKETHROUGH -> StrikethroughSpan()
+      CommentIr.SPAN_UNDERLINE -> UnderlineSpan()
+      CommentIr.SPAN_OVERLINE -> OverlineSpan()
+      CommentIr.SPAN_SUPERSCRIPT -> ScriptSpan(true)
+      CommentIr.SPAN_SUBSCRIPT -> ScriptSpan(false)
+      CommentIr.SPAN_STYLE -> StyleSpan(commentIr.spanIntPayload(index))
+      CommentIr.SPAN_TYPEFACE -> TypefaceSpan(commentIr.spanObjectPayload(index) as String)
+      CommentIr.SPAN_ABSOLUTE_SIZE -> AbsoluteSizeSpanHashed(commentIr.spanIntPayload(index))
+      else -> throw IllegalArgumentException("Unknown span type: $spanType")
+    }
+  }
+
+}
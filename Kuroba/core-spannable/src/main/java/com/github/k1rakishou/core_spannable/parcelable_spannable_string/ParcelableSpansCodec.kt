@@ -0,0 +1,478 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string
+
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import java.io.IOException
+
+/**
+ * Platform independent binary format for [ParcelableSpans] (used instead of marshalling them via
+ * android.os.Parcel, which is bulky, because it writes the class name of every span, and can only
+ * be decoded on Android).
+ *
+ * Layout:
+ * ```
+ * MAGIC (2 bytes) | codec version (1 byte) | spans version (varint)
+ * | string table size (varint) | strings (varint length + utf-8 bytes)
+ * | span type table size (varint) | span types (zigzag parcelableTypeRaw + span kind byte)
+ * | span count (varint) | spans
+ *
+ * span: span type index (varint) | zigzag start delta from the previous span's start
+ *   | zigzag length | flags (varint) | span kind specific payload
+ * ```
+ * All strings (links, board codes, quote keys etc.) are stored once in the string table and are
+ * referenced by their index.
+ * */
+object ParcelableSpansCodec {
+  const val CODEC_VERSION = 1
+
+  // A marshalled Parcel starts with ParcelableSpans.version as a little-endian int so its first
+  // byte is never 0xFE for any sane version.
+  private const val MAGIC_0 = 0xFE.toByte()
+  private const val MAGIC_1 = 0x53.toByte()
+
+  private const val KIND_NONE = 0
+  private const val KIND_ABSOLUTE_SIZE = 1
+  private const val KIND_BACKGROUND_COLOR = 2
+  private const val KIND_FOREGROUND_COLOR = 3
+  private const val KIND_BACKGROUND_COLOR_ID = 4
+  private const val KIND_FOREGROUND_COLOR_ID = 5
+  private const val KIND_POST_LINKABLE = 6
+  private const val KIND_STYLE = 7
+  private const val KIND_TYPEFACE = 8
+  private const val KIND_STRIKETHROUGH = 9
+
+  private const val LINKABLE_ARCHIVE = 0
+  private const val LINKABLE_BOARD = 1
+  private const val LINKABLE_LINK = 2
+  private const val LINKABLE_QUOTE = 3
+  private const val LINKABLE_DEAD = 4
+  private const val LINKABLE_SEARCH = 5
+  private const val LINKABLE_SPOILER = 6
+  private const val LINKABLE_THREAD_OR_POST = 7
+
+  /**
+   * Whether [bytes] were produced by [encode] (as opposed to the legacy Parcel format).
+   * */
+  @JvmStatic
+  fun isEncoded(bytes: ByteArray): Boolean {
+    return bytes.size >= 3 && bytes[0] == MAGIC_0 && bytes[1] == MAGIC_1
+  }
+
+  @JvmStatic
+  fun encode(parcelableSpans: ParcelableSpans): ByteArray {
+    val strings = StringTable()
+    val spanTypes = LinkedHashMap<Long, Int>()
+    val body = ByteWriter()
+
+    var prevSpanStart = 0
+
+    for (spanInfo in parcelableSpans.spanInfoList) {
+      val kind = kindOf(spanInfo.parcelableSpan)
+      val spanTypeKey = (spanInfo.parcelableTypeRaw.toLong() shl 8) or kind.toLong()
+      val spanTypeIndex = spanTypes.getOrPut(spanTypeKey) { spanTypes.size }
+
+      body.writeVarInt(spanTypeIndex)
+      body.writeZigZagInt(spanInfo.spanStart - prevSpanStart)
+      body.writeZigZagInt(spanInfo.spanEnd - spanInfo.spanStart)
+      body.writeVarInt(spanInfo.flags)
+      writePayload(body, strings, spanInfo.parcelableSpan)
+
+      prevSpanStart = spanInfo.spanStart
+    }
+
+    val output = ByteWriter()
+    output.writeByte(MAGIC_0.toInt())
+    output.writeByte(MAGIC_1.toInt())
+    output.writeByte(CODEC_VERSION)
+    output.writeZigZagInt(parcelableSpans.version)
+
+    output.writeVarInt(strings.size)
+    strings.forEach { string -> output.writeUtf8(string) }
+
+    output.writeVarInt(spanTypes.size)
+    spanTypes.keys.forEach { spanTypeKey ->
+      output.writeZigZagInt((spanTypeKey shr 8).toInt())
+      output.writeByte((spanTypeKey and 0xFF).toInt())
+    }
+
+    output.writeVarInt(parcelableSpans.spanInfoList.size)
+    output.writeBytes(body)
+
+    return output.toByteArray()
+  }
+
+  /**
+   * @throws IOException if [bytes] are not in this format, were written by a newer codec version
+   * or are corrupted.
+   * */
+  @JvmStatic
+  @Throws(IOException::class)
+  fun decode(bytes: ByteArray): ParcelableSpans {
+    if (!isEncoded(bytes)) {
+      throw IOException("Not an encoded span info")
+    }
+
+    val reader = ByteReader(bytes, 2)
+
+    val codecVersion = reader.readByte()
+    if (codecVersion != CODEC_VERSION) {
+      throw IOException("Unsupported codec version: ${codecVersion}")
+    }
+
+    val spansVersion = reader.readZigZagInt()
+
+    val strings = Array(reader.readCount()) { reader.readUtf8() }
+
+    val spanTypes = Array(reader.readCount()) {
+      val parcelableTypeRaw = reader.readZigZagInt()
+      val kind = reader.readByte()
+
+      parcelableTypeRaw to kind
+    }
+
+    val spanCount = reader.readCount()
+    val spanInfoList = ArrayList<ParcelableSpanInfo>(spanCount)
+    var prevSpanStart = 0
+
+    repeat(spanCount) {
+      val spanTypeIndex = reader.readVarInt()
+      if (spanTypeIndex !in spanTypes.indices) {
+        throw IOException("Bad span type index: ${spanTypeIndex}")
+      }
+
+      val (parcelableTypeRaw, kind) = spanTypes[spanTypeIndex]
+      val spanStart = prevSpanStart + reader.readZigZagInt()
+      val spanEnd = spanStart + reader.readZigZagInt()
+      val flags = reader.readVarInt()
+      val parcelableSpan = readPayload(reader, strings, kind)
+
+      spanInfoList += ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = parcelableTypeRaw,
+        parcelableSpan = parcelableSpan
+      )
+
+      prevSpanStart = spanStart
+    }
+
+    if (reader.hasRemaining()) {
+      throw IOException("Unexpected data after the last span")
+    }
+
+    return ParcelableSpans(spansVersion, spanInfoList)
+  }
+
+  private fun kindOf(parcelableSpan: ParcelableSpan?): Int {
+    return when (parcelableSpan) {
+      null -> KIND_NONE
+      is ParcelableSpan.AbsoluteSize -> KIND_ABSOLUTE_SIZE
+      is ParcelableSpan.BackgroundColor -> KIND_BACKGROUND_COLOR
+      is ParcelableSpan.ForegroundColor -> KIND_FOREGROUND_COLOR
+      is ParcelableSpan.BackgroundColorId -> KIND_BACKGROUND_COLOR_ID
+      is ParcelableSpan.ForegroundColorId -> KIND_FOREGROUND_COLOR_ID
+      is ParcelableSpan.PostLinkable -> KIND_POST_LINKABLE
+      is ParcelableSpan.Style -> KIND_STYLE
+      is ParcelableSpan.Typeface -> KIND_TYPEFACE
+      ParcelableSpan.Strikethrough -> KIND_STRIKETHROUGH
+    }
+  }
+
+  private fun writePayload(writer: ByteWriter, strings: StringTable, parcelableSpan: ParcelableSpan?) {
+    when (parcelableSpan) {
+      null,
+      ParcelableSpan.Strikethrough -> {
+        // no payload
+      }
+      is ParcelableSpan.AbsoluteSize -> writer.writeZigZagInt(parcelableSpan.size)
+      // Colors almost always have the alpha bits set so a varint would take 5 bytes
+      is ParcelableSpan.BackgroundColor -> writer.writeFixedInt(parcelableSpan.color)
+      is ParcelableSpan.ForegroundColor -> writer.writeFixedInt(parcelableSpan.color)
+      is ParcelableSpan.BackgroundColorId -> writer.writeVarInt(parcelableSpan.colorId.id)
+      is ParcelableSpan.ForegroundColorId -> writer.writeVarInt(parcelableSpan.colorId.id)
+      is ParcelableSpan.Style -> writer.writeZigZagInt(parcelableSpan.style)
+      is ParcelableSpan.Typeface -> writer.writeVarInt(strings.indexOf(parcelableSpan.family))
+      is ParcelableSpan.PostLinkable -> {
+        writer.writeVarInt(strings.indexOf(parcelableSpan.key))
+        writer.writeZigZagInt(parcelableSpan.postLinkableTypeRaw)
+        writePostLinkableValue(writer, strings, parcelableSpan.postLinkableValue)
+      }
+    }
+  }
+
+  private fun writePostLinkableValue(writer: ByteWriter, strings: StringTable, value: PostLinkableValue) {
+    when (value) {
+      is PostLinkableValue.Archive -> {
+        writer.writeByte(LINKABLE_ARCHIVE)
+        writer.writeVarInt(strings.indexOf(value.archiveDomain))
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+        writer.writeZigZagLong(value.threadNo)
+        writer.writeZigZagLong(value.postNo)
+        writer.writeZigZagLong(value.postSubNo)
+      }
+      is PostLinkableValue.Board -> {
+        writer.writeByte(LINKABLE_BOARD)
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+      }
+      is PostLinkableValue.Link -> {
+        writer.writeByte(LINKABLE_LINK)
+        writer.writeVarInt(strings.indexOf(value.link))
+      }
+      is PostLinkableValue.Quote -> {
+        writer.writeByte(LINKABLE_QUOTE)
+        writer.writeZigZagLong(value.postNo)
+        writer.writeZigZagLong(value.postSubNo)
+      }
+      is PostLinkableValue.Dead -> {
+        writer.writeByte(LINKABLE_DEAD)
+        writer.writeZigZagLong(value.postNo)
+        writer.writeZigZagLong(value.postSubNo)
+      }
+      is PostLinkableValue.Search -> {
+        writer.writeByte(LINKABLE_SEARCH)
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+        writer.writeVarInt(strings.indexOf(value.searchQuery))
+      }
+      PostLinkableValue.Spoiler -> {
+        writer.writeByte(LINKABLE_SPOILER)
+      }
+      is PostLinkableValue.ThreadOrPost -> {
+        writer.writeByte(LINKABLE_THREAD_OR_POST)
+        writer.writeVarInt(strings.indexOf(value.boardCode))
+        writer.writeZigZagLong(value.threadNo)
+        writer.writeZigZagLong(value.postNo)
+        writer.writeZigZagLong(value.postSubNo)
+      }
+    }
+  }
+
+  private fun readPayload(reader: ByteReader, strings: Array<String>, kind: Int): ParcelableSpan? {
+    return when (kind) {
+      KIND_NONE -> null
+      KIND_ABSOLUTE_SIZE -> ParcelableSpan.AbsoluteSize(reader.readZigZagInt())
+      KIND_BACKGROUND_COLOR -> ParcelableSpan.BackgroundColor(reader.readFixedInt())
+      KIND_FOREGROUND_COLOR -> ParcelableSpan.ForegroundColor(reader.readFixedInt())
+      KIND_BACKGROUND_COLOR_ID -> ParcelableSpan.BackgroundColorId(readColorId(reader))
+      KIND_FOREGROUND_COLOR_ID -> ParcelableSpan.ForegroundColorId(readColorId(reader))
+      KIND_STYLE -> ParcelableSpan.Style(reader.readZigZagInt())
+      KIND_TYPEFACE -> ParcelableSpan.Typeface(reader.readString(strings))
+      KIND_STRIKETHROUGH -> ParcelableSpan.Strikethrough
+      KIND_POST_LINKABLE -> {
+        ParcelableSpan.PostLinkable(
+          key = reader.readString(strings),
+          postLinkableTypeRaw = reader.readZigZagInt(),
+          postLinkableValue = readPostLinkableValue(reader, strings)
+        )
+      }
+      else -> throw IOException("Unknown span kind: ${kind}")
+    }
+  }
+
+  private fun readPostLinkableValue(reader: ByteReader, strings: Array<String>): PostLinkableValue {
+    return when (val linkableKind = reader.readByte()) {
+      LINKABLE_ARCHIVE -> {
+        PostLinkableValue.Archive(
+          archiveDomain = reader.readString(strings),
+          boardCode = reader.readString(strings),
+          threadNo = reader.readZigZagLong(),
+          postNo = reader.readZigZagLong(),
+          postSubNo = reader.readZigZagLong()
+        )
+      }
+      LINKABLE_BOARD -> PostLinkableValue.Board(reader.readString(strings))
+      LINKABLE_LINK -> PostLinkableValue.Link(reader.readString(strings))
+      LINKABLE_QUOTE -> PostLinkableValue.Quote(reader.readZigZagLong(), reader.readZigZagLong())
+      LINKABLE_DEAD -> PostLinkableValue.Dead(reader.readZigZagLong(), reader.readZigZagLong())
+      LINKABLE_SEARCH -> PostLinkableValue.Search(reader.readString(strings), reader.readString(strings))
+      LINKABLE_SPOILER -> PostLinkableValue.Spoiler
+      LINKABLE_THREAD_OR_POST -> {
+        PostLinkableValue.ThreadOrPost(
+          boardCode = reader.readString(strings),
+          threadNo = reader.readZigZagLong(),
+          postNo = reader.readZigZagLong(),
+          postSubNo = reader.readZigZagLong()
+        )
+      }
+      else -> throw IOException("Unknown post linkable kind: ${linkableKind}")
+    }
+  }
+
+  private fun readColorId(reader: ByteReader): ChanThemeColorId {
+    val colorId = reader.readVarInt()
+
+    return ChanThemeColorId.values().firstOrNull { chanThemeColorId -> chanThemeColorId.id == colorId }
+      ?: throw IOException("Unknown color id: ${colorId}")
+  }
+
+  private class StringTable {
+    private val indexes = LinkedHashMap<String, Int>()
+
+    val size: Int
+      get() = indexes.size
+
+    fun indexOf(string: String): Int {
+      return indexes.getOrPut(string) { indexes.size }
+    }
+
+    fun forEach(func: (String) -> Unit) {
+      indexes.keys.forEach(func)
+    }
+  }
+
+  private class ByteWriter {
+    private var buffer = ByteArray(64)
+    private var size = 0
+
+    fun writeByte(value: Int) {
+      ensureCapacity(1)
+      buffer[size++] = value.toByte()
+    }
+
+    fun writeBytes(other: ByteWriter) {
+      ensureCapacity(other.size)
+      System.arraycopy(other.buffer, 0, buffer, size, other.size)
+      size += other.size
+    }
+
+    fun writeFixedInt(value: Int) {
+      writeByte(value ushr 24)
+      writeByte(value ushr 16)
+      writeByte(value ushr 8)
+      writeByte(value)
+    }
+
+    fun writeVarInt(value: Int) {
+      writeVarLong(value.toLong() and 0xFFFFFFFFL)
+    }
+
+    fun writeZigZagInt(value: Int) {
+      writeVarInt((value shl 1) xor (value shr 31))
+    }
+
+    fun writeZigZagLong(value: Long) {
+      writeVarLong((value shl 1) xor (value shr 63))
+    }
+
+    fun writeUtf8(string: String) {
+      val bytes = string.toByteArray(Charsets.UTF_8)
+      writeVarInt(bytes.size)
+
+      ensureCapacity(bytes.size)
+      System.arraycopy(bytes, 0, buffer, size, bytes.size)
+      size += bytes.size
+    }
+
+    fun toByteArray(): ByteArray = buffer.copyOf(size)
+
+    private fun writeVarLong(value: Long) {
+      var remaining = value
+
+      while (remaining and 0x7FL.inv() != 0L) {
+        writeByte(((remaining and 0x7FL) or 0x80L).toInt())
+        remaining = remaining ushr 7
+      }
+
+      writeByte(remaining.toInt())
+    }
+
+    private fun ensureCapacity(additional: Int) {
+      if (size + additional <= buffer.size) {
+        return
+      }
+
+      buffer = buffer.copyOf(maxOf(buffer.size * 2, size + additional))
+    }
+  }
+
+  private class ByteReader(
+    private val bytes: ByteArray,
+    private var position: Int
+  ) {
+
+    fun hasRemaining(): Boolean = position < bytes.size
+
+    fun readByte(): Int {
+      if (position >= bytes.size) {
+        throw IOException("Unexpected end of span info at ${position}")
+      }
+
+      return bytes[position++].toInt() and 0xFF
+    }
+
+    fun readFixedInt(): Int {
+      return (readByte() shl 24) or (readByte() shl 16) or (readByte() shl 8) or readByte()
+    }
+
+    fun readVarInt(): Int {
+      val value = readVarLong()
+      if (value ushr 32 != 0L) {
+        throw IOException("Varint is too big for an int at ${position}")
+      }
+
+      return value.toInt()
+    }
+
+    /**
+     * A count of the elements that follow. Every element takes at least one byte so anything
+     * bigger than the remaining bytes means the data is corrupted.
+     * */
+    fun readCount(): Int {
+      val count = readVarInt()
+      if (count < 0 || count > bytes.size - position) {
+        throw IOException("Bad element count: ${count}")
+      }
+
+      return count
+    }
+
+    fun readZigZagInt(): Int {
+      val value = readVarInt()
+      return (value ushr 1) xor -(value and 1)
+    }
+
+    fun readZigZagLong(): Long {
+      val value = readVarLong()
+      return (value ushr 1) xor -(value and 1L)
+    }
+
+    fun readUtf8(): String {
+      val length = readCount()
+      val string = String(bytes, position, length, Charsets.UTF_8)
+      position += length
+
+      return string
+    }
+
+    fun readString(strings: Array<String>): String {
+      val index = readVarInt()
+      if (index !in strings.indices) {
+        throw IOException("Bad string index: ${index}")
+      }
+
+      return strings[index]
+    }
+
+    private fun readVarLong(): Long {
+      var result = 0L
+      var shift = 0
+
+      while (shift < 64) {
+        val byte = readByte()
+        result = result or ((byte and 0x7F).toLong() shl shift)
+
+        if (byte and 0x80 == 0) {
+          return result
+        }
+
+        shift += 7
+      }
+
+      throw IOException("Malformed varint at ${position}")
+    }
+  }
+
+}
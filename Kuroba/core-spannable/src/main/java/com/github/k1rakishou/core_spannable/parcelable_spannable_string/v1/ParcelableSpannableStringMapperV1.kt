@@ -21,7 +21,9 @@ import com.github.k1rakishou.core_spannable.ParcelableSpans
 import com.github.k1rakishou.core_spannable.PostLinkable
 import com.github.k1rakishou.core_spannable.PostLinkableType
 import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_spannable.comment_ir.CommentIr
 import com.github.k1rakishou.core_spannable.parcelable_spannable_string.ParcelableStringMapper
+import com.github.k1rakishou.core_themes.ChanThemeColorId
 
 internal object ParcelableSpannableStringMapperV1 : ParcelableStringMapper {
   private const val MAPPER_VERSION = 1
@@ -38,129 +40,29 @@ internal object ParcelableSpannableStringMapperV1 : ParcelableStringMapper {
     }
 
     val spanInfoList = mutableListOf<ParcelableSpanInfo>()
-    val spannableString = SpannableString(charSequence)
-    val spans = spannableString.getSpans(0, spannableString.length, CharacterStyle::class.java)
-
-    for (span in spans) {
-      val spanStart = spannableString.getSpanStart(span)
-      val spanEnd = spannableString.getSpanEnd(span)
-      val flags = spannableString.getSpanFlags(span)
-
-      if (span is ForegroundColorSpanHashed) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.ForegroundColorSpanType.value,
-          parcelableSpan = ParcelableSpan.ForegroundColor(span.foregroundColor)
-        )
-
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is BackgroundColorSpanHashed) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.BackgroundColorSpanType.value,
-          parcelableSpan = ParcelableSpan.BackgroundColor(span.backgroundColor)
-        )
-
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is ForegroundColorIdSpan) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.ForegroundColorIdSpan.value,
-          parcelableSpan = ParcelableSpan.ForegroundColorId(span.chanThemeColorId)
-        )
-
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is BackgroundColorIdSpan) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.BackgroundColorIdSpan.value,
-          parcelableSpan = ParcelableSpan.BackgroundColorId(span.chanThemeColorId)
-        )
-
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is StrikethroughSpan) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.StrikethroughSpanType.value,
-          parcelableSpan = ParcelableSpan.Strikethrough
-        )
-
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is StyleSpan) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.StyleSpanType.value,
-          parcelableSpan = ParcelableSpan.Style(span.style)
-        )
-
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is TypefaceSpan) {
-        val family = span.family
-        if (family.isNullOrEmpty()) {
-          val spanInfo = ParcelableSpanInfo(
-            spanStart = spanStart,
-            spanEnd = spanEnd,
-            flags = flags,
-            parcelableTypeRaw = ParcelableSpanType.TypefaceSpanType.value,
-            parcelableSpan = ParcelableSpan.Typeface(family!!)
-          )
 
+    if (charSequence is CommentIr) {
+      for (index in 0 until charSequence.spanCount) {
+        val spanInfo = toSpanInfo(charSequence, index)
+        if (spanInfo != null) {
           spanInfoList += spanInfo
         }
-
-        continue
       }
-
-      if (span is AbsoluteSizeSpanHashed) {
-        val spanInfo = ParcelableSpanInfo(
-          spanStart = spanStart,
-          spanEnd = spanEnd,
-          flags = flags,
-          parcelableTypeRaw = ParcelableSpanType.AbsoluteSizeSpanHashed.value,
-          parcelableSpan = ParcelableSpan.AbsoluteSize(span.size)
+    } else {
+      val spannableString = SpannableString(charSequence)
+      val spans = spannableString.getSpans(0, spannableString.length, CharacterStyle::class.java)
+
+      for (span in spans) {
+        val spanInfo = toSpanInfo(
+          span = span,
+          spanStart = spannableString.getSpanStart(span),
+          spanEnd = spannableString.getSpanEnd(span),
+          flags = spannableString.getSpanFlags(span)
         )
 
-        spanInfoList += spanInfo
-        continue
-      }
-
-      if (span is PostLinkable) {
-        val spanInfo = serializePostLinkable(span, spanStart, spanEnd, flags)
         if (spanInfo != null) {
           spanInfoList += spanInfo
         }
-
-        continue
       }
     }
 
@@ -269,6 +171,175 @@ internal object ParcelableSpannableStringMapperV1 : ParcelableStringMapper {
     return spannableString
   }
 
+  /**
+   * Serializes the typed [CommentIr] spans without creating the Android span objects first.
+   * */
+  private fun toSpanInfo(commentIr: CommentIr, index: Int): ParcelableSpanInfo? {
+    val spanStart = commentIr.spanStart(index)
+    val spanEnd = commentIr.spanEnd(index)
+    val flags = commentIr.spanFlags(index)
+
+    val parcelableSpanType: ParcelableSpanType
+    val parcelableSpan: ParcelableSpan
+
+    when (commentIr.spanType(index)) {
+      CommentIr.SPAN_OBJECT -> {
+        val span = commentIr.spanObjectPayload(index)
+          ?: return null
+
+        return toSpanInfo(span, spanStart, spanEnd, flags)
+      }
+      CommentIr.SPAN_FOREGROUND_COLOR -> {
+        parcelableSpanType = ParcelableSpanType.ForegroundColorSpanType
+        parcelableSpan = ParcelableSpan.ForegroundColor(commentIr.spanIntPayload(index))
+      }
+      CommentIr.SPAN_BACKGROUND_COLOR -> {
+        parcelableSpanType = ParcelableSpanType.BackgroundColorSpanType
+        parcelableSpan = ParcelableSpan.BackgroundColor(commentIr.spanIntPayload(index))
+      }
+      CommentIr.SPAN_FOREGROUND_COLOR_ID -> {
+        parcelableSpanType = ParcelableSpanType.ForegroundColorIdSpan
+        parcelableSpan = ParcelableSpan.ForegroundColorId(commentIr.spanObjectPayload(index) as ChanThemeColorId)
+      }
+      CommentIr.SPAN_BACKGROUND_COLOR_ID -> {
+        parcelableSpanType = ParcelableSpanType.BackgroundColorIdSpan
+        parcelableSpan = ParcelableSpan.BackgroundColorId(commentIr.spanObjectPayload(index) as ChanThemeColorId)
+      }
+      CommentIr.SPAN_STRIKETHROUGH -> {
+        parcelableSpanType = ParcelableSpanType.StrikethroughSpanType
+        parcelableSpan = ParcelableSpan.Strikethrough
+      }
+      CommentIr.SPAN_STYLE -> {
+        parcelableSpanType = ParcelableSpanType.StyleSpanType
+        parcelableSpan = ParcelableSpan.Style(commentIr.spanIntPayload(index))
+      }
+      CommentIr.SPAN_ABSOLUTE_SIZE -> {
+        parcelableSpanType = ParcelableSpanType.AbsoluteSizeSpanHashed
+        parcelableSpan = ParcelableSpan.AbsoluteSize(commentIr.spanIntPayload(index))
+      }
+      // Same as with the Android spans: underline, overline, script spans and named typefaces
+      // (see the TypefaceSpan branch below) are not stored
+      else -> return null
+    }
+
+    return ParcelableSpanInfo(
+      spanStart = spanStart,
+      spanEnd = spanEnd,
+      flags = flags,
+      parcelableTypeRaw = parcelableSpanType.value,
+      parcelableSpan = parcelableSpan
+    )
+  }
+
+  private fun toSpanInfo(span: Any, spanStart: Int, spanEnd: Int, flags: Int): ParcelableSpanInfo? {
+    if (span is ForegroundColorSpanHashed) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.ForegroundColorSpanType.value,
+        parcelableSpan = ParcelableSpan.ForegroundColor(span.foregroundColor)
+      )
+
+      return spanInfo
+    }
+
+    if (span is BackgroundColorSpanHashed) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.BackgroundColorSpanType.value,
+        parcelableSpan = ParcelableSpan.BackgroundColor(span.backgroundColor)
+      )
+
+      return spanInfo
+    }
+
+    if (span is ForegroundColorIdSpan) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.ForegroundColorIdSpan.value,
+        parcelableSpan = ParcelableSpan.ForegroundColorId(span.chanThemeColorId)
+      )
+
+      return spanInfo
+    }
+
+    if (span is BackgroundColorIdSpan) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.BackgroundColorIdSpan.value,
+        parcelableSpan = ParcelableSpan.BackgroundColorId(span.chanThemeColorId)
+      )
+
+      return spanInfo
+    }
+
+    if (span is StrikethroughSpan) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.StrikethroughSpanType.value,
+        parcelableSpan = ParcelableSpan.Strikethrough
+      )
+
+      return spanInfo
+    }
+
+    if (span is StyleSpan) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.StyleSpanType.value,
+        parcelableSpan = ParcelableSpan.Style(span.style)
+      )
+
+      return spanInfo
+    }
+
+    if (span is TypefaceSpan) {
+      val family = span.family
+      if (family.isNullOrEmpty()) {
+        val spanInfo = ParcelableSpanInfo(
+          spanStart = spanStart,
+          spanEnd = spanEnd,
+          flags = flags,
+          parcelableTypeRaw = ParcelableSpanType.TypefaceSpanType.value,
+          parcelableSpan = ParcelableSpan.Typeface(family!!)
+        )
+
+        return spanInfo
+      }
+
+      return null
+    }
+
+    if (span is AbsoluteSizeSpanHashed) {
+      val spanInfo = ParcelableSpanInfo(
+        spanStart = spanStart,
+        spanEnd = spanEnd,
+        flags = flags,
+        parcelableTypeRaw = ParcelableSpanType.AbsoluteSizeSpanHashed.value,
+        parcelableSpan = ParcelableSpan.AbsoluteSize(span.size)
+      )
+
+      return spanInfo
+    }
+
+    if (span is PostLinkable) {
+      return serializePostLinkable(span, spanStart, spanEnd, flags)
+    }
+
+    return null
+  }
+
   private fun serializePostLinkable(
     postLinkable: PostLinkable,
     spanStart: Int,
@@ -0,0 +1,321 @@
+package com.github.k1rakishou.core_spannable.comment_ir
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import kotlin.random.Random
+
+class CommentIrBuilderTest {
+
+  @Test
+  fun `test nested tags are built in one pass`() {
+    // <s><b>bold</b> spoiler</s> text
+    val builder = CommentIrBuilder()
+
+    val sStart = builder.length
+
+    val bStart = builder.length
+    builder.append("bold")
+    builder.setSpan(CommentIr.SPAN_STYLE, bStart, builder.length, FLAGS, 1)
+
+    builder.append(" spoiler")
+    builder.setObjectSpan(CommentIr.SPAN_OBJECT, sStart, builder.length, FLAGS, "spoiler")
+
+    builder.append(" text")
+
+    val commentIr = builder.build()
+
+    assertEquals("bold spoiler text", commentIr.toString())
+    assertEquals("bold spoiler text".length, commentIr.length)
+    assertEquals(2, commentIr.spanCount)
+
+    // Inner spans come first like they did with concatenated Spannables
+    assertEquals(CommentIr.SPAN_STYLE, commentIr.spanType(0))
+    assertEquals(0, commentIr.spanStart(0))
+    assertEquals(4, commentIr.spanEnd(0))
+    assertEquals(FLAGS, commentIr.spanFlags(0))
+    assertEquals(1, commentIr.spanIntPayload(0))
+
+    assertEquals(CommentIr.SPAN_OBJECT, commentIr.spanType(1))
+    assertEquals(0, commentIr.spanStart(1))
+    assertEquals(12, commentIr.spanEnd(1))
+    assertEquals("spoiler", commentIr.spanObjectPayload(1))
+  }
+
+  @Test
+  fun `test truncate drops the text spans and objects of the replaced tag`() {
+    val builder = CommentIrBuilder()
+    builder.append("keep")
+    builder.setObjectSpan(CommentIr.SPAN_OBJECT, 0, 4, FLAGS, "kept")
+
+    val textStart = builder.length
+    val spanStart = builder.spanCount
+
+    builder.append(" drop")
+    builder.setObjectSpan(CommentIr.SPAN_FOREGROUND_COLOR_ID, textStart, builder.length, FLAGS, "dropped1")
+    builder.setSpan(CommentIr.SPAN_STRIKETHROUGH, textStart, builder.length, FLAGS)
+    builder.setObjectSpan(CommentIr.SPAN_OBJECT, textStart, builder.length, FLAGS, "dropped2")
+
+    builder.truncate(textStart, spanStart)
+    builder.append(" [img]")
+    builder.setObjectSpan(CommentIr.SPAN_OBJECT, textStart, builder.length, FLAGS, "new")
+
+    val commentIr = builder.build()
+
+    assertEquals("keep [img]", commentIr.text)
+    assertEquals(2, commentIr.spanCount)
+    assertEquals("kept", commentIr.spanObjectPayload(0))
+    assertEquals("new", commentIr.spanObjectPayload(1))
+    assertEquals(4, commentIr.spanStart(1))
+  }
+
+  @Test
+  fun `test snapshot and appendIr round trip`() {
+    val random = Random(1)
+
+    repeat(500) {
+      val prefix = randomBuilder(random).build()
+      val suffix = randomBuilder(random).build()
+
+      val builder = CommentIrBuilder()
+        .appendIr(prefix)
+        .appendIr(suffix)
+
+      assertEquals(prefix.text + suffix.text, builder.text.toString())
+      assertEquals(prefix.spanCount + suffix.spanCount, builder.spanCount)
+
+      // The spans of the suffix are shifted back to where they were
+      assertEquals(suffix, builder.snapshot(prefix.length, prefix.spanCount))
+      assertEquals(suffix.hashCode(), builder.snapshot(prefix.length, prefix.spanCount).hashCode())
+
+      builder.truncate(prefix.length, prefix.spanCount)
+      assertEquals(prefix, builder.build())
+    }
+  }
+
+  @Test
+  fun `test equals compares spans and payloads`() {
+    fun build(payload: Any, style: Int): CommentIr {
+      return CommentIrBuilder()
+        .append("text")
+        .setSpan(CommentIr.SPAN_STYLE, 0, 4, FLAGS, style)
+        .setObjectSpan(CommentIr.SPAN_OBJECT, 0, 2, FLAGS, payload)
+        .build()
+    }
+
+    assertEquals(build("a", 1), build("a", 1))
+    assertNotEquals(build("a", 1), build("b", 1))
+    assertNotEquals(build("a", 1), build("a", 2))
+    assertSame(CommentIr.EMPTY, CommentIrBuilder().build())
+    assertTrue(CommentIr.EMPTY.hasNoSpans())
+  }
+
+  @Test(expected = IllegalArgumentException::class)
+  fun `test span outside of the text is rejected`() {
+    CommentIrBuilder()
+      .append("text")
+      .setSpan(CommentIr.SPAN_STYLE, 2, 5, FLAGS, 1)
+  }
+
+  @Test
+  fun `test object payload types are checked`() {
+    assertTrue(CommentIr.hasObjectPayload(CommentIr.SPAN_OBJECT))
+    assertTrue(CommentIr.hasObjectPayload(CommentIr.SPAN_TYPEFACE))
+    assertFalse(CommentIr.hasObjectPayload(CommentIr.SPAN_STYLE))
+    assertFalse(CommentIr.hasObjectPayload(CommentIr.SPAN_ABSOLUTE_SIZE))
+  }
+
+  @Test
+  fun `test single pass builder and concatenation give the same comments`() {
+    val random = Random(7)
+
+    repeat(300) {
+      val node = randomTree(random, depth = 0)
+      val concatenated = concatPerLevel(node)
+      val commentIr = singlePass(node)
+
+      assertEquals(concatenated.text, commentIr.text)
+      assertEquals(concatenated.spans.size, commentIr.spanCount)
+
+      concatenated.spans.forEachIndexed { index, span ->
+        assertEquals(span.type, commentIr.spanType(index))
+        assertEquals(span.start, commentIr.spanStart(index))
+        assertEquals(span.end, commentIr.spanEnd(index))
+      }
+    }
+  }
+
+  @Test
+  fun `test allocations and time of deeply nested and quote heavy comments`() {
+    val comments = listOf(
+      "deeply nested" to deeplyNested(depth = 300),
+      "quote heavy" to quoteHeavy(quotes = 500)
+    )
+
+    for ((name, node) in comments) {
+      val concatenated = concatPerLevel(node)
+      val commentIr = singlePass(node)
+
+      assertEquals(name, concatenated.text, commentIr.text)
+      assertEquals(name, concatenated.spans.size, commentIr.spanCount)
+
+      val (concatTime, concatBytes) = measure { concatPerLevel(node) }
+      val (singlePassTime, singlePassBytes) = measure { singlePass(node) }
+
+      val results = "${name}: concatenation per level ${concatTime / 1000} us / ${concatBytes} bytes, " +
+        "single pass ${singlePassTime / 1000} us / ${singlePassBytes} bytes"
+
+      assertTrue(results, singlePassBytes < concatBytes)
+      assertTrue(results, singlePassTime < concatTime)
+    }
+  }
+
+  /**
+   * Returns the best time in nanoseconds and the least allocated bytes out of a few runs.
+   * */
+  private fun measure(func: () -> Unit): Pair<Long, Long> {
+    val threadMXBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+    val threadId = Thread.currentThread().id
+
+    // Warm up
+    repeat(20) { func() }
+
+    var bestTime = Long.MAX_VALUE
+    var bestBytes = Long.MAX_VALUE
+
+    repeat(10) {
+      val startBytes = threadMXBean.getThreadAllocatedBytes(threadId)
+      val startTime = System.nanoTime()
+
+      func()
+
+      bestTime = minOf(bestTime, System.nanoTime() - startTime)
+      bestBytes = minOf(bestBytes, threadMXBean.getThreadAllocatedBytes(threadId) - startBytes)
+    }
+
+    return bestTime to bestBytes
+  }
+
+  private fun randomBuilder(random: Random): CommentIrBuilder {
+    val builder = CommentIrBuilder(expectedLength = 4)
+
+    repeat(random.nextInt(0, 30)) {
+      val start = builder.length
+      builder.append("x".repeat(random.nextInt(0, 10)))
+
+      if (random.nextBoolean()) {
+        builder.setSpan(CommentIr.SPAN_STYLE, start, builder.length, FLAGS, random.nextInt())
+      } else {
+        builder.setObjectSpan(CommentIr.SPAN_OBJECT, start, builder.length, FLAGS, random.nextInt())
+      }
+    }
+
+    return builder
+  }
+
+  // A simplified html tree, every tag adds one span over the text of its children
+  private sealed class Node {
+    class Text(val text: String) : Node()
+    class Tag(val spanType: Int, val children: List<Node>) : Node()
+  }
+
+  private class Span(val type: Int, val start: Int, val end: Int, val payload: Any?)
+  private class SpannedText(val text: String, val spans: List<Span>)
+
+  /**
+   * What DefaultPostParser did before: every tag concatenates the texts of its children
+   * (TextUtils.concat) and then copies the result into a new SpannableString to add its span.
+   * */
+  private fun concatPerLevel(node: Node): SpannedText {
+    return when (node) {
+      is Node.Text -> SpannedText(node.text, emptyList())
+      is Node.Tag -> {
+        val children = node.children.map { child -> concatPerLevel(child) }
+
+        val textBuilder = StringBuilder()
+        val concatSpans = ArrayList<Span>()
+
+        for (child in children) {
+          val offset = textBuilder.length
+          textBuilder.append(child.text)
+          child.spans.mapTo(concatSpans) { span -> Span(span.type, span.start + offset, span.end + offset, span.payload) }
+        }
+
+        val concatenated = SpannedText(textBuilder.toString(), concatSpans)
+
+        // new SpannableString(text) copies the text and the spans once more
+        val styledSpans = ArrayList<Span>(concatenated.spans.size + 1)
+        concatenated.spans.mapTo(styledSpans) { span -> Span(span.type, span.start, span.end, span.payload) }
+        styledSpans += Span(node.spanType, 0, concatenated.text.length, STYLE_PAYLOAD)
+
+        SpannedText(String(concatenated.text.toCharArray()), styledSpans)
+      }
+    }
+  }
+
+  private fun singlePass(node: Node): CommentIr {
+    val builder = CommentIrBuilder()
+    singlePass(node, builder)
+    return builder.build()
+  }
+
+  private fun singlePass(node: Node, builder: CommentIrBuilder) {
+    when (node) {
+      is Node.Text -> builder.append(node.text)
+      is Node.Tag -> {
+        val textStart = builder.length
+        node.children.forEach { child -> singlePass(child, builder) }
+
+        if (CommentIr.hasObjectPayload(node.spanType)) {
+          builder.setObjectSpan(node.spanType, textStart, builder.length, FLAGS, STYLE_PAYLOAD)
+        } else {
+          builder.setSpan(node.spanType, textStart, builder.length, FLAGS, 0)
+        }
+      }
+    }
+  }
+
+  private fun randomTree(random: Random, depth: Int): Node {
+    if (depth > 5 || random.nextInt(3) == 0) {
+      return Node.Text("t".repeat(random.nextInt(0, 8)))
+    }
+
+    val spanType = if (random.nextBoolean()) CommentIr.SPAN_OBJECT else CommentIr.SPAN_STRIKETHROUGH
+    return Node.Tag(spanType, (0 until random.nextInt(0, 4)).map { randomTree(random, depth + 1) })
+  }
+
+  // <s><b><i>...text...</i></b></s>
+  private fun deeplyNested(depth: Int): Node {
+    var node: Node = Node.Text("The quick brown fox jumps over the lazy dog")
+
+    repeat(depth) { level ->
+      val spanType = if (level % 2 == 0) CommentIr.SPAN_STYLE else CommentIr.SPAN_OBJECT
+      node = Node.Tag(spanType, listOf(Node.Text("level $level "), node))
+    }
+
+    return node
+  }
+
+  // <a class="quotelink">>>123</a><br>...
+  private fun quoteHeavy(quotes: Int): Node {
+    val children = (0 until quotes).flatMap { index ->
+      listOf(
+        Node.Tag(CommentIr.SPAN_OBJECT, listOf(Node.Text(">>${100_000_000 + index}"))),
+        Node.Tag(CommentIr.SPAN_STRIKETHROUGH, listOf(Node.Text(" reply text number $index\n")))
+      )
+    }
+
+    return Node.Tag(CommentIr.SPAN_STYLE, children)
+  }
+
+  companion object {
+    // (1000 << Spanned.SPAN_PRIORITY_SHIFT) & Spanned.SPAN_PRIORITY
+    private const val FLAGS = (1000 shl 16) and 0x00FF0000
+    private val STYLE_PAYLOAD = Any()
+  }
+
+}
@@ -0,0 +1,325 @@
+package com.github.k1rakishou.core_spannable.parcelable_spannable_string
+
+import com.github.k1rakishou.core_spannable.ParcelableSpan
+import com.github.k1rakishou.core_spannable.ParcelableSpanInfo
+import com.github.k1rakishou.core_spannable.ParcelableSpanType
+import com.github.k1rakishou.core_spannable.ParcelableSpans
+import com.github.k1rakishou.core_spannable.PostLinkableType
+import com.github.k1rakishou.core_spannable.PostLinkableValue
+import com.github.k1rakishou.core_themes.ChanThemeColorId
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+import kotlin.random.Random
+
+class ParcelableSpansCodecTest {
+
+  @Test
+  fun `test empty spans round trip`() {
+    assertRoundTrip(ParcelableSpans(1, emptyList()))
+  }
+
+  @Test
+  fun `test comment corpus round trip`() {
+    commentCorpus(count = 2000, seed = 1).forEach { parcelableSpans -> assertRoundTrip(parcelableSpans) }
+  }
+
+  @Test
+  fun `test random spans round trip`() {
+    val random = Random(42)
+
+    repeat(2000) {
+      val spanInfoList = (0 until random.nextInt(0, 50)).map { randomSpanInfo(random) }
+      assertRoundTrip(ParcelableSpans(random.nextInt(), spanInfoList))
+    }
+  }
+
+  @Test
+  fun `test legacy parcel bytes are not detected as encoded`() {
+    // A marshalled ParcelableSpans starts with its version as a little-endian int
+    assertFalse(ParcelableSpansCodec.isEncoded(byteArrayOf(1, 0, 0, 0, 0, 0, 0, 0)))
+    assertFalse(ParcelableSpansCodec.isEncoded(byteArrayOf()))
+    assertTrue(ParcelableSpansCodec.isEncoded(ParcelableSpansCodec.encode(ParcelableSpans())))
+  }
+
+  @Test
+  fun `test truncated or corrupted data is rejected`() {
+    val encoded = ParcelableSpansCodec.encode(commentCorpus(count = 1, seed = 2).first())
+
+    for (size in 3 until encoded.size) {
+      assertDecodeFails(encoded.copyOf(size))
+    }
+
+    assertDecodeFails(encoded + byteArrayOf(0))
+
+    val newerVersion = encoded.copyOf()
+    newerVersion[2] = (ParcelableSpansCodec.CODEC_VERSION + 1).toByte()
+    assertDecodeFails(newerVersion)
+  }
+
+  @Test
+  fun `test encoded comments are much smaller than parcel`() {
+    val corpus = commentCorpus(count = 2000, seed = 3)
+
+    val encodedSize = corpus.sumOf { parcelableSpans -> ParcelableSpansCodec.encode(parcelableSpans).size.toLong() }
+    val parcelSize = corpus.sumOf { parcelableSpans -> estimateParcelSize(parcelableSpans) }
+
+    assertTrue("encodedSize=${encodedSize}, parcelSize=${parcelSize}", encodedSize * 4 < parcelSize)
+  }
+
+  @Test
+  fun `test whole corpus round trips`() {
+    val corpus = commentCorpus(count = 2000, seed = 4)
+    var decodedSpans = 0
+
+    corpus.forEach { parcelableSpans ->
+      val decoded = ParcelableSpansCodec.decode(ParcelableSpansCodec.encode(parcelableSpans))
+
+      assertEquals(parcelableSpans.spanInfoList, decoded.spanInfoList)
+      decodedSpans += decoded.spanInfoList.size
+    }
+
+    assertTrue("decodedSpans=${decodedSpans}", decodedSpans > 0)
+  }
+
+  @Test
+  fun `test decode benchmark`() {
+    val encodedCorpus = commentCorpus(count = 2000, seed = 5)
+      .map { parcelableSpans -> ParcelableSpansCodec.encode(parcelableSpans) }
+
+    // Warm up
+    repeat(5) { encodedCorpus.forEach { bytes -> ParcelableSpansCodec.decode(bytes) } }
+
+    val iterations = 20
+    var decodedSpans = 0L
+    val start = System.nanoTime()
+
+    repeat(iterations) {
+      encodedCorpus.forEach { bytes -> decodedSpans += ParcelableSpansCodec.decode(bytes).spanInfoList.size }
+    }
+
+    val tookNanos = (System.nanoTime() - start).coerceAtLeast(1L)
+    val commentsPerSecond = encodedCorpus.size * iterations * 1_000_000_000L / tookNanos
+    val avgBytes = encodedCorpus.sumOf { bytes -> bytes.size } / encodedCorpus.size
+
+    // Loose bound (a few hundred thousand comments per second is the norm), this is only meant to catch
+    // something like decoding becoming quadratic in the number of spans, not a slow machine.
+    assertTrue(
+      "${commentsPerSecond} comments/sec (${decodedSpans} spans), avg comment size ${avgBytes} bytes",
+      commentsPerSecond > MIN_DECODED_COMMENTS_PER_SECOND
+    )
+  }
+
+  private fun assertRoundTrip(parcelableSpans: ParcelableSpans) {
+    val decoded = ParcelableSpansCodec.decode(ParcelableSpansCodec.encode(parcelableSpans))
+
+    assertEquals(parcelableSpans.version, decoded.version)
+    assertEquals(parcelableSpans.spanInfoList, decoded.spanInfoList)
+  }
+
+  private fun assertDecodeFails(bytes: ByteArray) {
+    try {
+      ParcelableSpansCodec.decode(bytes)
+      fail("Decoding must fail for ${bytes.size} bytes")
+    } catch (error: IOException) {
+      // expected
+    }
+  }
+
+  /**
+   * Spans of the kinds the comment parser produces for a typical imageboard post: quotes (with
+   * their color), greentext, links, cross-board links and bold spoilers.
+   * */
+  private fun commentCorpus(count: Int, seed: Int): List<ParcelableSpans> {
+    val random = Random(seed)
+    val boards = listOf("g", "a", "v", "vg", "tv", "sci", "diy")
+    val threadNo = random.nextLong(300_000_000L, 400_000_000L)
+
+    return (0 until count).map {
+      val spanInfoList = mutableListOf<ParcelableSpanInfo>()
+      var position = 0
+
+      repeat(random.nextInt(0, 12)) {
+        val start = position + random.nextInt(0, 40)
+        val postNo = threadNo + random.nextLong(0, 5000)
+
+        when (random.nextInt(0, 7)) {
+          0, 1, 2 -> {
+            val key = ">>${postNo}"
+            val end = start + key.length
+
+            spanInfoList += postLinkableSpan(start, end, key, PostLinkableType.Quote, PostLinkableValue.Quote(postNo))
+            spanInfoList += colorIdSpan(start, end, ChanThemeColorId.PostQuoteColor)
+            position = end
+          }
+          3 -> {
+            val end = start + random.nextInt(5, 120)
+
+            spanInfoList += colorIdSpan(start, end, ChanThemeColorId.PostInlineQuoteColor)
+            position = end
+          }
+          4 -> {
+            val link = "https://${boards.random(random)}.example.org/${random.nextLong(0, Long.MAX_VALUE)}.html"
+            val end = start + link.length
+
+            spanInfoList += postLinkableSpan(start, end, link, PostLinkableType.Link, PostLinkableValue.Link(link))
+            position = end
+          }
+          5 -> {
+            val boardCode = boards.random(random)
+            val key = ">>>/${boardCode}/${postNo}"
+            val end = start + key.length
+            val value = PostLinkableValue.ThreadOrPost(boardCode, threadNo, postNo)
+
+            spanInfoList += postLinkableSpan(start, end, key, PostLinkableType.Thread, value)
+            spanInfoList += colorIdSpan(start, end, ChanThemeColorId.PostQuoteColor)
+            position = end
+          }
+          6 -> {
+            val end = start + random.nextInt(3, 60)
+
+            spanInfoList += postLinkableSpan(start, end, "spoiler", PostLinkableType.Spoiler, PostLinkableValue.Spoiler)
+            spanInfoList += ParcelableSpanInfo(start, end, SPAN_FLAGS, ParcelableSpanType.StyleSpanType.value, ParcelableSpan.Style(1))
+            position = end
+          }
+        }
+      }
+
+      ParcelableSpans(ParcelableSpannableStringMapper.CURRENT_MAPPER_VERSION, spanInfoList)
+    }
+  }
+
+  private fun postLinkableSpan(
+    start: Int,
+    end: Int,
+    key: String,
+    postLinkableType: PostLinkableType,
+    value: PostLinkableValue
+  ): ParcelableSpanInfo {
+    return ParcelableSpanInfo(
+      spanStart = start,
+      spanEnd = end,
+      flags = SPAN_FLAGS,
+      parcelableTypeRaw = ParcelableSpanType.PostLinkable.value,
+      parcelableSpan = ParcelableSpan.PostLinkable(key, postLinkableType.value, value)
+    )
+  }
+
+  private fun colorIdSpan(start: Int, end: Int, chanThemeColorId: ChanThemeColorId): ParcelableSpanInfo {
+    return ParcelableSpanInfo(
+      spanStart = start,
+      spanEnd = end,
+      flags = SPAN_FLAGS,
+      parcelableTypeRaw = ParcelableSpanType.ForegroundColorIdSpan.value,
+      parcelableSpan = ParcelableSpan.ForegroundColorId(chanThemeColorId)
+    )
+  }
+
+  private fun randomSpanInfo(random: Random): ParcelableSpanInfo {
+    val parcelableSpan = when (random.nextInt(0, 10)) {
+      0 -> null
+      1 -> ParcelableSpan.AbsoluteSize(random.nextInt())
+      2 -> ParcelableSpan.BackgroundColor(random.nextInt())
+      3 -> ParcelableSpan.ForegroundColor(random.nextInt())
+      4 -> ParcelableSpan.BackgroundColorId(ChanThemeColorId.values().random(random))
+      5 -> ParcelableSpan.ForegroundColorId(ChanThemeColorId.values().random(random))
+      6 -> ParcelableSpan.Style(random.nextInt())
+      7 -> ParcelableSpan.Typeface(randomString(random))
+      8 -> ParcelableSpan.Strikethrough
+      else -> ParcelableSpan.PostLinkable(randomString(random), random.nextInt(), randomPostLinkableValue(random))
+    }
+
+    return ParcelableSpanInfo(
+      spanStart = random.nextInt(),
+      spanEnd = random.nextInt(),
+      flags = random.nextInt(),
+      parcelableTypeRaw = random.nextInt(-1, 10),
+      parcelableSpan = parcelableSpan
+    )
+  }
+
+  private fun randomPostLinkableValue(random: Random): PostLinkableValue {
+    return when (random.nextInt(0, 8)) {
+      0 -> PostLinkableValue.Archive(randomString(random), randomString(random), random.nextLong(), random.nextLong(), random.nextLong())
+      1 -> PostLinkableValue.Board(randomString(random))
+      2 -> PostLinkableValue.Link(randomString(random))
+      3 -> PostLinkableValue.Quote(random.nextLong(), random.nextLong())
+      4 -> PostLinkableValue.Dead(random.nextLong(), random.nextLong())
+      5 -> PostLinkableValue.Search(randomString(random), randomString(random))
+      6 -> PostLinkableValue.Spoiler
+      else -> PostLinkableValue.ThreadOrPost(randomString(random), random.nextLong(), random.nextLong(), random.nextLong())
+    }
+  }
+
+  private fun randomString(random: Random): String {
+    val alphabet = listOf("a", "b", "c", ">", "/", ":", ".", " ", "é", "あ", "😀")
+    return (0 until random.nextInt(0, 20)).joinToString(separator = "") { alphabet.random(random) }
+  }
+
+  /**
+   * Size of [parcelableSpans] marshalled via android.os.Parcel: ints take 4 bytes, longs 8, strings
+   * are UTF-16 with a length prefix and a terminator padded to 4 bytes and every nested Parcelable
+   * is prefixed with its class name.
+   * */
+  private fun estimateParcelSize(parcelableSpans: ParcelableSpans): Long {
+    fun stringSize(string: String?): Long {
+      if (string == null) {
+        return 4
+      }
+
+      return 4 + ((string.length + 1) * 2 + 3) / 4 * 4L
+    }
+
+    fun parcelableSize(parcelable: Any?, contentSize: Long): Long {
+      return stringSize(parcelable?.javaClass?.name) + contentSize
+    }
+
+    fun postLinkableValueSize(value: PostLinkableValue): Long {
+      val contentSize = when (value) {
+        is PostLinkableValue.Archive -> stringSize(value.archiveDomain) + stringSize(value.boardCode) + 24
+        is PostLinkableValue.Board -> stringSize(value.boardCode)
+        is PostLinkableValue.Link -> stringSize(value.link)
+        is PostLinkableValue.Quote -> 16
+        is PostLinkableValue.Dead -> 16
+        is PostLinkableValue.Search -> stringSize(value.boardCode) + stringSize(value.searchQuery)
+        PostLinkableValue.Spoiler -> 0
+        is PostLinkableValue.ThreadOrPost -> stringSize(value.boardCode) + 24
+      }
+
+      return parcelableSize(value, contentSize)
+    }
+
+    fun spanSize(parcelableSpan: ParcelableSpan?): Long {
+      val contentSize = when (parcelableSpan) {
+        null -> 0
+        is ParcelableSpan.AbsoluteSize -> 4
+        is ParcelableSpan.BackgroundColor -> 4
+        is ParcelableSpan.ForegroundColor -> 4
+        is ParcelableSpan.BackgroundColorId -> stringSize(parcelableSpan.colorId.name)
+        is ParcelableSpan.ForegroundColorId -> stringSize(parcelableSpan.colorId.name)
+        is ParcelableSpan.Style -> 4
+        is ParcelableSpan.Typeface -> stringSize(parcelableSpan.family)
+        ParcelableSpan.Strikethrough -> 0
+        is ParcelableSpan.PostLinkable -> {
+          stringSize(parcelableSpan.key) + 4 + postLinkableValueSize(parcelableSpan.postLinkableValue)
+        }
+      }
+
+      return parcelableSize(parcelableSpan, contentSize)
+    }
+
+    // version + list size + (list item marker + 4 ints + the span) for every span
+    return 8 + parcelableSpans.spanInfoList.sumOf { spanInfo -> 4 + 16 + spanSize(spanInfo.parcelableSpan) }
+  }
+
+  companion object {
+    // Spanned.SPAN_EXCLUSIVE_EXCLUSIVE
+    private const val SPAN_FLAGS = 33
+
+    private const val MIN_DECODED_COMMENTS_PER_SECOND = 10_000L
+  }
+
+}